@@ -14,6 +14,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
@@ -45,7 +46,10 @@ public class JCSCache {
 	private static final String DEFAULT_NAME = "Default_JCS_Name";
 	private static final int KEY_LENGTH = 9;
 
-	static Collection<Integer> keys;
+	// Keys of this cache only, so that caches of models used by different threads do not share them
+	private Collection<Integer> keys;
+	/** Distinguishes caches created within the same millisecond **/
+	private static AtomicInteger cacheCount = new AtomicInteger(0);
 	private final Long maxLifeSeconds=7200L;
 	/** Maximum number of in-memory instances before sending items to disk. Default is 50,000. */
 	private Long defaultCapacity = 200000L;
@@ -95,7 +99,7 @@ public class JCSCache {
 			//EACH RECORD TAKES APPROX 348728 BYTES IN MEMORY
 			//defaultCapacity = (long)(Runtime.getRuntime().maxMemory()/(2.0*175000));
 			Logger.getLogger("org.apache.jcs").setLevel(Level.OFF);
-			cacheName=JCSCache.DEFAULT_NAME+"_"+System.currentTimeMillis();
+			cacheName=JCSCache.DEFAULT_NAME+"_"+System.currentTimeMillis()+"_"+cacheCount.incrementAndGet();
 			CompositeCacheManager ccm = CompositeCacheManager.getUnconfiguredInstance();
 			ccm.configure(initJcsProps(cacheName));
 			cacheNames.add(cacheName);
@@ -124,7 +128,7 @@ public class JCSCache {
 	 * @param length
 	 * @return
 	 */
-	public static Integer generateRandom(int length) {
+	public Integer generateRandom(int length) {
 	    Random random = new Random();
 	    char[] digits = new char[length];
 	    digits[0] = (char) (random.nextInt(9) + '1');
@@ -0,0 +1,408 @@
+package broad.core.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import broad.core.datastructures.IntervalTree.Node;
+
+/**
+ * Read-only index of semi-open intervals with the overlap queries of IntervalTree
+ * Intervals are kept in primitive arrays sorted by start and end, with the maximum end of each subtree of the implicit binary tree over the sorted positions
+ * Intervals with the same start and end share one entry holding all their values, as the nodes of IntervalTree do
+ * The index is never modified once built, so any number of threads can query it without locking
+ */
+public class StaticIntervalIndex<V> {
+
+	// Subtrees of at most 2^SCAN_LEVEL intervals are scanned rather than descended
+	private static final int SCAN_LEVEL = 3;
+
+	private final int[] starts;
+	private final int[] ends;
+	// Maximum end of the subtree rooted at each position of the implicit tree
+	private final int[] maxEnds;
+	private final int[] numReplicates;
+	// Value of each entry and the values of all entries, the values of entry i are from valueOffsets[i] to valueOffsets[i+1]
+	private final Object[] entryValues;
+	private final Object[] values;
+	private final int[] valueOffsets;
+	private final int maxLevel;
+
+	/**
+	 * Copy the entries of an interval tree
+	 * @param tree Tree to copy, it is not kept and can be modified afterwards
+	 */
+	public StaticIntervalIndex(IntervalTree<V> tree) {
+		int n = tree.size();
+		starts = new int[n];
+		ends = new int[n];
+		numReplicates = new int[n];
+		entryValues = new Object[n];
+		valueOffsets = new int[n + 1];
+		List<Object> all = new ArrayList<Object>();
+		Iterator<Node<V>> itr = tree.iterator();
+		for (int i = 0; i < n; i++) {
+			Node<V> node = itr.next();
+			starts[i] = node.getStart();
+			ends[i] = node.getEnd();
+			numReplicates[i] = node.getNumReplicates();
+			entryValues[i] = node.getValue();
+			all.addAll(node.getContainedValues());
+			valueOffsets[i + 1] = all.size();
+		}
+		values = all.toArray();
+		maxEnds = new int[n];
+		maxLevel = index();
+	}
+
+	/**
+	 * Index intervals given as parallel lists
+	 * Values put several times on the same interval are kept once, as IntervalTree.put does
+	 * @param intervalStarts Interval starts
+	 * @param intervalEnds Interval ends
+	 * @param intervalValues Value of each interval
+	 */
+	public StaticIntervalIndex(final int[] intervalStarts, final int[] intervalEnds, List<? extends V> intervalValues) {
+		if (intervalStarts.length != intervalEnds.length || intervalStarts.length != intervalValues.size()) {
+			throw new IllegalArgumentException("Starts, ends and values must have the same length");
+		}
+		Integer[] order = new Integer[intervalStarts.length];
+		for (int i = 0; i < order.length; i++) {
+			if (intervalStarts[i] > intervalEnds[i]) {
+				throw new IllegalArgumentException("Start cannot exceed end. Start=" + intervalStarts[i] + "; end=" + intervalEnds[i]);
+			}
+			order[i] = i;
+		}
+		// Stable sort so the first value put on an interval is the value of its entry
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				if (intervalStarts[o1] != intervalStarts[o2]) return intervalStarts[o1] < intervalStarts[o2] ? -1 : 1;
+				if (intervalEnds[o1] != intervalEnds[o2]) return intervalEnds[o1] < intervalEnds[o2] ? -1 : 1;
+				return 0;
+			}
+		});
+
+		int n = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i == 0 || intervalStarts[order[i]] != intervalStarts[order[i - 1]] || intervalEnds[order[i]] != intervalEnds[order[i - 1]]) n++;
+		}
+		starts = new int[n];
+		ends = new int[n];
+		numReplicates = new int[n];
+		entryValues = new Object[n];
+		valueOffsets = new int[n + 1];
+		List<Object> all = new ArrayList<Object>(order.length);
+		Collection<Object> entry = new LinkedHashSet<Object>();
+		int e = -1;
+		for (int i = 0; i < order.length; i++) {
+			int k = order[i];
+			if (e < 0 || intervalStarts[k] != starts[e] || intervalEnds[k] != ends[e]) {
+				if (e >= 0) {
+					all.addAll(entry);
+					valueOffsets[e + 1] = all.size();
+					entry.clear();
+				}
+				e++;
+				starts[e] = intervalStarts[k];
+				ends[e] = intervalEnds[k];
+				numReplicates[e] = 1;
+				entryValues[e] = intervalValues.get(k);
+			}
+			entry.add(intervalValues.get(k));
+		}
+		if (e >= 0) {
+			all.addAll(entry);
+			valueOffsets[e + 1] = all.size();
+		}
+		values = all.toArray();
+		maxEnds = new int[n];
+		maxLevel = index();
+	}
+
+	/**
+	 * Fill in the maximum ends of the implicit tree
+	 * The node at position i has level k when the k lowest bits of i are set and bit k is not, its children are at i - 2^(k-1) and i + 2^(k-1)
+	 * Nodes past the last position are replaced by the last subtree of the lower level
+	 * @return Level of the root
+	 */
+	private int index() {
+		int n = starts.length;
+		if (n == 0) return -1;
+		int lastIndex = 0;
+		int last = 0;
+		for (int i = 0; i < n; i += 2) {
+			lastIndex = i;
+			last = maxEnds[i] = ends[i];
+		}
+		int k;
+		for (k = 1; 1L << k <= n; k++) {
+			int x = 1 << (k - 1);
+			int step = x << 2;
+			for (long i = (x << 1) - 1; i < n; i += step) {
+				int p = (int) i;
+				int left = maxEnds[p - x];
+				int right = p + x < n ? maxEnds[p + x] : last;
+				maxEnds[p] = Math.max(ends[p], Math.max(left, right));
+			}
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if (lastIndex < n && maxEnds[lastIndex] > last) last = maxEnds[lastIndex];
+		}
+		return k - 1;
+	}
+
+	/**
+	 * @return Positions of the entries overlapping [start, end) in increasing order
+	 */
+	private int[] query(int start, int end) {
+		int n = starts.length;
+		int[] rtrn = new int[16];
+		int count = 0;
+		if (n == 0) return new int[0];
+		// Each frame is a level, a position and whether the left subtree was already visited
+		int[] levels = new int[64];
+		int[] positions = new int[64];
+		boolean[] visited = new boolean[64];
+		int top = 0;
+		levels[0] = maxLevel;
+		positions[0] = (1 << maxLevel) - 1;
+		visited[0] = false;
+		top++;
+		while (top > 0) {
+			top--;
+			int k = levels[top];
+			int x = positions[top];
+			if (k <= SCAN_LEVEL) {
+				int i0 = x >> k << k;
+				int i1 = Math.min(n, i0 + (1 << (k + 1)) - 1);
+				for (int i = i0; i < i1 && starts[i] < end; i++) {
+					if (start < ends[i]) {
+						if (count == rtrn.length) rtrn = Arrays.copyOf(rtrn, 2 * count);
+						rtrn[count++] = i;
+					}
+				}
+			} else if (!visited[top]) {
+				int y = x - (1 << (k - 1));
+				visited[top] = true;
+				top++;
+				if (y >= n || maxEnds[y] > start) {
+					levels[top] = k - 1;
+					positions[top] = y;
+					visited[top] = false;
+					top++;
+				}
+			} else if (x < n && starts[x] < end) {
+				if (start < ends[x]) {
+					if (count == rtrn.length) rtrn = Arrays.copyOf(rtrn, 2 * count);
+					rtrn[count++] = x;
+				}
+				levels[top] = k - 1;
+				positions[top] = x + (1 << (k - 1));
+				visited[top] = false;
+				top++;
+			}
+		}
+		return Arrays.copyOf(rtrn, count);
+	}
+
+	/**
+	 * Return the number of intervals in the index, intervals with the same start and end count once
+	 * @return The number of intervals
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Find the entry of an interval
+	 * @param start The interval's start
+	 * @param end The interval's end
+	 * @return The entry, or null if the interval is not in the index
+	 */
+	public Entry<V> find(int start, int end) {
+		int lo = 0;
+		int hi = starts.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[mid] < start || (starts[mid] == start && ends[mid] < end)) lo = mid + 1;
+			else hi = mid;
+		}
+		if (lo < starts.length && starts[lo] == start && ends[lo] == end) return new Entry<V>(this, lo);
+		return null;
+	}
+
+	/**
+	 * Return an iterator over all intervals overlapping the specified range, in the order of IntervalTree.overlappers
+	 * @param start The range start
+	 * @param end The range end
+	 * @return An iterator
+	 */
+	public Iterator<Entry<V>> overlappers(int start, int end) {
+		return new EntryIterator(query(start, end));
+	}
+
+	/**
+	 * Return an iterator over the values of all intervals overlapping the specified range
+	 * @param start The range start
+	 * @param end The range end
+	 * @return An iterator
+	 */
+	public Iterator<V> overlappingValueIterator(int start, int end) {
+		return new ValueIterator(query(start, end));
+	}
+
+	/**
+	 * @return Number of intervals overlapping the range, counting the replicates of each interval
+	 */
+	public int numOverlappers(int start, int end) {
+		int counter = 0;
+		for (int i : query(start, end)) {
+			counter += numReplicates[i];
+		}
+		return counter;
+	}
+
+	/**
+	 * @return True if any interval overlaps [start, end)
+	 */
+	public boolean hasOverlappers(int start, int end) {
+		return query(start, end).length > 0;
+	}
+
+	/**
+	 * Return an iterator over all entries in start and end order
+	 * @return An iterator
+	 */
+	public Iterator<Entry<V>> iterator() {
+		int[] all = new int[starts.length];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		return new EntryIterator(all);
+	}
+
+	/**
+	 * @return The values of all entries in start and end order
+	 */
+	public List<V> toList() {
+		List<V> rtrn = new ArrayList<V>(values.length);
+		for (Object value : values) {
+			rtrn.add(cast(value));
+		}
+		return rtrn;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V1> V1 cast(Object value) {
+		return (V1) value;
+	}
+
+	/**
+	 * An interval of the index with its values
+	 */
+	public static class Entry<V1> {
+		private final StaticIntervalIndex<V1> index;
+		private final int position;
+
+		Entry(StaticIntervalIndex<V1> index, int position) {
+			this.index = index;
+			this.position = position;
+		}
+
+		public int getStart() {
+			return index.starts[position];
+		}
+
+		public int getEnd() {
+			return index.ends[position];
+		}
+
+		public int getLength() {
+			return getEnd() - getStart();
+		}
+
+		/**
+		 * @return The first value put on the interval
+		 */
+		public V1 getValue() {
+			return StaticIntervalIndex.<V1>cast(index.entryValues[position]);
+		}
+
+		/**
+		 * @return All values put on the interval
+		 */
+		public Collection<V1> getContainedValues() {
+			List<V1> rtrn = new ArrayList<V1>();
+			for (int i = index.valueOffsets[position]; i < index.valueOffsets[position + 1]; i++) {
+				rtrn.add(StaticIntervalIndex.<V1>cast(index.values[i]));
+			}
+			return Collections.unmodifiableList(rtrn);
+		}
+
+		public int getNumReplicates() {
+			return index.numReplicates[position];
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<V>> {
+		private final int[] positions;
+		private int next = 0;
+
+		EntryIterator(int[] positions) {
+			this.positions = positions;
+		}
+
+		public boolean hasNext() {
+			return next < positions.length;
+		}
+
+		public Entry<V> next() {
+			if (!hasNext()) throw new NoSuchElementException("No next element.");
+			return new Entry<V>(StaticIntervalIndex.this, positions[next++]);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("The index cannot be modified");
+		}
+	}
+
+	private class ValueIterator implements Iterator<V> {
+		private final int[] positions;
+		private int next = 0;
+		private int value;
+		private int valueEnd;
+
+		ValueIterator(int[] positions) {
+			this.positions = positions;
+		}
+
+		public boolean hasNext() {
+			// Skip entries left without values
+			while (value == valueEnd && next < positions.length) {
+				value = valueOffsets[positions[next]];
+				valueEnd = valueOffsets[positions[next] + 1];
+				next++;
+			}
+			return value < valueEnd;
+		}
+
+		public V next() {
+			if (!hasNext()) throw new NoSuchElementException("No next element.");
+			return cast(values[value++]);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("The index cannot be modified");
+		}
+	}
+
+}
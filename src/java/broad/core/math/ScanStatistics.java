@@ -1,6 +1,56 @@
 package broad.core.math;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Poisson scan statistic
+ * Poisson probabilities are computed in log space and the Poisson CDF through the regularized incomplete gamma function, so a p-value costs the same for any count
+ * P-values are memoized for each expected count inside and outside the window once the pair is seen again, so that scans over windows of a fixed size do not recompute them
+ * One off parameters, such as a local lambda and length per gene, are computed directly and never fill the memo
+ */
 public class ScanStatistics {
+
+	/**
+	 * Largest count whose p-value is memoized
+	 */
+	private static final int MAX_MEMOIZED_COUNT = 1 << 16;
+
+	/**
+	 * Memoized p-values are allocated in pages of this many counts
+	 */
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/**
+	 * Bound on the bytes of memoized p-values over all tables
+	 */
+	private static final long MAX_MEMOIZED_BYTES = 32L << 20;
+
+	/**
+	 * Number of parameters seen once that are remembered while waiting for a second call
+	 */
+	private static final int MAX_SEEN_ONCE = 4096;
+
+	private static Map<TableKey, PValueTable> tables = new LinkedHashMap<TableKey, PValueTable>(16, 0.75f, true);
+
+	private static Map<TableKey, Boolean> seenOnce = new LinkedHashMap<TableKey, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TableKey, Boolean> eldest) {
+			return size() > MAX_SEEN_ONCE;
+		}
+	};
+
+	private static long memoizedBytes = 0;
+	private static AtomicLong hits = new AtomicLong(0);
+	private static AtomicLong misses = new AtomicLong(0);
+
 	/**
 	 * Params written by Jesse Aug 20, 2012 ... are these definitions correct?
 	 * @param k			Observed count
@@ -11,8 +61,84 @@ public class ScanStatistics {
 	 */
 	public static double calculatePVal(int k, double lambda, double w, double T){
 		if(k<=2){return 1;}
-		double lambdaW=lambda*w;   // parameter for Poisson distribution
-		double a=((k-lambdaW)/k)*(lambda*(T-w)*poisson(k-1, lambdaW));     // poisson function = Poisson PDF
+		PValueTable table=k>MAX_MEMOIZED_COUNT ? null : getTable(lambda, w, T, false);
+		if(table==null){
+			misses.incrementAndGet();
+			return pValue(k, lambda*w, Math.log(lambda*w), lambda*(T-w));
+		}
+		return table.get(k);
+	}
+
+	/**
+	 * Scan p-values of many windows of the same size
+	 * @param k			Observed count of each window
+	 * @param lambda	# reads on chromosome / # non-masked bases on chromosome
+	 * @param w			window size
+	 * @param T			# non-masked bases on chromosome
+	 * @return The p-value of each window
+	 */
+	public static double[] calculatePVal(int[] k, double lambda, double w, double T){
+		double[] rtrn=new double[k.length];
+		calculatePVal(k, lambda, w, T, rtrn);
+		return rtrn;
+	}
+
+	/**
+	 * Scan p-values of many windows of the same size, written to an existing array
+	 * @param k			Observed count of each window
+	 * @param lambda	# reads on chromosome / # non-masked bases on chromosome
+	 * @param w			window size
+	 * @param T			# non-masked bases on chromosome
+	 * @param rtrn		Array receiving the p-value of each window, at least as long as k
+	 */
+	public static void calculatePVal(int[] k, double lambda, double w, double T, double[] rtrn){
+		// Windows of one batch share their parameters so the table is kept from the first call
+		PValueTable table=getTable(lambda, w, T, true);
+		synchronized(table) {
+			for(int i=0; i<k.length; i++){
+				if(k[i]<=2){rtrn[i]=1;}
+				else if(k[i]>MAX_MEMOIZED_COUNT){
+					misses.incrementAndGet();
+					rtrn[i]=table.compute(k[i]);
+				}
+				else{rtrn[i]=table.get(k[i]);}
+			}
+		}
+	}
+
+	/**
+	 * Scan p-values of many windows of different sizes
+	 * @param k			Observed count of each window
+	 * @param lambda	# reads on chromosome / # non-masked bases on chromosome
+	 * @param w			Size of each window
+	 * @param T			# non-masked bases on chromosome
+	 * @return The p-value of each window
+	 */
+	public static double[] calculatePVal(int[] k, double lambda, double[] w, double T){
+		if(k.length!=w.length){
+			throw new IllegalArgumentException("Counts and window sizes have different lengths: "+k.length+" "+w.length);
+		}
+		double[] rtrn=new double[k.length];
+		for(int i=0; i<k.length; i++){
+			rtrn[i]=calculatePVal(k[i], lambda, w[i], T);
+		}
+		return rtrn;
+	}
+
+	public static double calculateApproximatePVal(int k, double lambda, double w, double T, double alpha){
+		// The exact p-value no longer costs more than the approximation, and the two agree on which side of alpha they fall
+		return calculatePVal(k, lambda, w, T);
+	}
+
+	/**
+	 * @param k				Observed count
+	 * @param lambdaW		Expected count in the window
+	 * @param logLambdaW	Natural log of lambdaW
+	 * @param lambdaTw		Expected count outside the window
+	 * @return The scan p-value
+	 */
+	private static double pValue(int k, double lambdaW, double logLambdaW, double lambdaTw){
+		double a=((k-lambdaW)/k)*(lambdaTw*Math.exp(logPoisson(k-1, lambdaW, logLambdaW)));     // Poisson PDF
 		double result=Fp(k-1, lambdaW)*Math.exp(-a);					   // Fp = Poisson CDF
 		double p=1-result;
 		p=Math.abs(p);
@@ -20,32 +146,45 @@ public class ScanStatistics {
 		//p=Math.max(0, p);
 		return p;
 	}
-	
-	public static double calculateApproximatePVal(int k, double lambda, double w, double T, double alpha){
-		if(k<=2){return 1;}
-		double lambdaW=lambda*w;
-		double a=((k-lambdaW)/k)*(lambda*(T-w)*poisson(k-1, lambdaW));
-		double p=FpWithBreaking(k-1, lambdaW, a, alpha);
-		return p;
-	}
 
 	public static double poisson(int k, double lambda){
-		cern.jet.random.Poisson poiss=new cern.jet.random.Poisson(lambda, new cern.jet.random.engine.DRand());
-		return poiss.pdf(k);
+		if(k<0){return 0;}
+		return Math.exp(logPoisson(k, lambda, Math.log(lambda)));
 	}
-	
+
+	/**
+	 * @param k			Count
+	 * @param lambda	Poisson mean
+	 * @return Natural log of the Poisson probability of k
+	 */
+	public static double logPoisson(int k, double lambda){
+		return logPoisson(k, lambda, Math.log(lambda));
+	}
+
+	private static double logPoisson(int k, double lambda, double logLambda){
+		if(lambda<=0){return k==0 ? 0 : Double.NEGATIVE_INFINITY;}
+		return k*logLambda-lambda-Gamma.logGamma(k+1.0);
+	}
+
+	/**
+	 * @param k			Count
+	 * @param lambdaW	Poisson mean
+	 * @return Probability of a count of at most k
+	 */
 	public static double Fp(int k,double lambdaW){
-		double sum=0;
-		for(int i=0; i<=k; i++){
-			sum+=poisson(i, lambdaW);
-		}
-		return sum;
+		if(k<0){return 0;}
+		if(lambdaW<=0){return 1;}
+		// P(X<=k) = Q(k+1, lambda)
+		return Gamma.regularizedGammaQ(k+1.0, lambdaW);
 	}
-	
+
 	public static double FpWithBreaking(int k,double lambdaW, double a, double stopPoint){
 		double sum=0;
+		double logLambdaW=Math.log(lambdaW);
+		double logPdf=-lambdaW;
 		for(int i=0; i<=k; i++){
-			sum+=poisson(i, lambdaW);
+			if(i>0){logPdf+=logLambdaW-Math.log(i);}
+			sum+=lambdaW<=0 ? (i==0 ? 1 : 0) : Math.exp(logPdf);
 			double result=sum*Math.exp(-a);
 			double p=1-result;
 			p=Math.abs(p);
@@ -58,6 +197,165 @@ public class ScanStatistics {
 		p=Math.min(1, p);
 		return p;
 	}
-	
-	
+
+	/**
+	 * @return Number of p-values served from the memo
+	 */
+	public static long getMemoHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of p-values computed
+	 */
+	public static long getMemoMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of parameter sets with memoized p-values
+	 */
+	public static int getNumMemoTables(){
+		synchronized(tables) {
+			return tables.size();
+		}
+	}
+
+	/**
+	 * @return Bytes of memoized p-values
+	 */
+	public static long getMemoBytes(){
+		synchronized(tables) {
+			return memoizedBytes;
+		}
+	}
+
+	/**
+	 * Drop every memoized p-value and reset the counters
+	 */
+	public static void clearMemo(){
+		synchronized(tables) {
+			tables.clear();
+			seenOnce.clear();
+			memoizedBytes=0;
+			hits.set(0);
+			misses.set(0);
+		}
+	}
+
+	/**
+	 * Get the memo table for some parameters
+	 * @param admit Whether to create the table on the first call rather than the second
+	 * @return The table or null if the parameters have not been seen before
+	 */
+	private static PValueTable getTable(double lambda, double w, double T, boolean admit){
+		TableKey key=new TableKey(lambda*w, lambda*(T-w));
+		synchronized(tables) {
+			PValueTable table=tables.get(key);
+			if(table==null){
+				if(!admit && seenOnce.remove(key)==null){
+					seenOnce.put(key, Boolean.TRUE);
+					return null;
+				}
+				table=new PValueTable(key);
+				tables.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Account for a page added to a table and evict least recently used tables past the byte bound
+	 */
+	private static void addPage(PValueTable table){
+		synchronized(tables) {
+			if(table.evicted){return;}
+			table.bytes+=8L*PAGE_SIZE;
+			memoizedBytes+=8L*PAGE_SIZE;
+			Iterator<PValueTable> iter=tables.values().iterator();
+			while(memoizedBytes>MAX_MEMOIZED_BYTES && iter.hasNext()){
+				PValueTable eldest=iter.next();
+				iter.remove();
+				eldest.evicted=true;
+				memoizedBytes-=eldest.bytes;
+			}
+		}
+	}
+
+	/**
+	 * Memoized p-values for one expected count inside and outside the window, indexed by count
+	 * Pages of counts are allocated as counts in them are requested
+	 */
+	private static class PValueTable {
+
+		private double lambdaW;
+		private double logLambdaW;
+		private double lambdaTw;
+		private double[][] pages=new double[0][];
+		// Guarded by the tables lock
+		private long bytes=0;
+		private boolean evicted=false;
+
+		PValueTable(TableKey key){
+			this.lambdaW=key.lambdaW;
+			this.logLambdaW=Math.log(lambdaW);
+			this.lambdaTw=key.lambdaTw;
+		}
+
+		synchronized double get(int k){
+			int page=k>>>PAGE_BITS;
+			if(page>=pages.length){
+				double[][] grown=new double[Math.max(page+1, Math.min((MAX_MEMOIZED_COUNT>>>PAGE_BITS)+1, 2*pages.length))][];
+				System.arraycopy(pages, 0, grown, 0, pages.length);
+				pages=grown;
+			}
+			if(pages[page]==null){
+				double[] values=new double[PAGE_SIZE];
+				Arrays.fill(values, Double.NaN);
+				pages[page]=values;
+				addPage(this);
+			}
+			int offset=k&(PAGE_SIZE-1);
+			double p=pages[page][offset];
+			if(Double.isNaN(p)){
+				misses.incrementAndGet();
+				p=compute(k);
+				pages[page][offset]=p;
+			}
+			else{
+				hits.incrementAndGet();
+			}
+			return p;
+		}
+
+		double compute(int k){
+			return pValue(k, lambdaW, logLambdaW, lambdaTw);
+		}
+	}
+
+	private static class TableKey {
+
+		private double lambdaW;
+		private double lambdaTw;
+
+		TableKey(double lambdaW, double lambdaTw){
+			this.lambdaW=lambdaW;
+			this.lambdaTw=lambdaTw;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof TableKey)){return false;}
+			TableKey other=(TableKey)o;
+			return Double.compare(lambdaW, other.lambdaW)==0 && Double.compare(lambdaTw, other.lambdaTw)==0;
+		}
+
+		@Override
+		public int hashCode(){
+			long bits=Double.doubleToLongBits(lambdaW);
+			bits=31*bits+Double.doubleToLongBits(lambdaTw);
+			return (int)(bits^(bits>>>32));
+		}
+	}
+
 }
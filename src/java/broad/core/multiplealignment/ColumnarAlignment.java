@@ -0,0 +1,401 @@
+package broad.core.multiplealignment;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import Jama.Matrix;
+import broad.core.error.ParseException;
+import broad.core.siphy.ConservationUtils;
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Multiple alignment stored column by column in a memory mapped file, one byte per aligned species
+ * There is one column per reference base, as in a compressed alignment, so columns are addressed by reference position
+ * Bases are encoded with the MultipleAlignment codes, alignment gaps with GAP_CODE and unknown bases or positions outside of the alignment blocks with MISSING_CODE
+ * Files are written from a MAF file with convertMAF
+ */
+public class ColumnarAlignment {
+
+	static Logger logger = Logger.getLogger(ColumnarAlignment.class.getName());
+
+	public static final String USAGE = "Usage: ColumnarAlignment TASK=<task_num> <task_args>\n" +
+	"\tTasks:" +
+	"\n\t\t1. Convert a MAF alignment to a columnar alignment -in <alignment file in MAF format, blocks sorted by reference position> -out <Output columnar alignment file> [-species <Comma separated species to store, default is all species in the alignment>]\n";
+
+	public static final byte GAP_CODE = (byte) MultipleAlignment.GAP_CODE;
+	public static final byte MISSING_CODE = GAP_CODE + 1;
+
+	private static final int MAGIC = 0x434f4c31;
+	private static final int NUM_COLUMNS_OFFSET = 12;
+	private static final int FIXED_HEADER_LENGTH = 20;
+	private static final int CHUNK_BITS = 30;
+
+	private String referenceId;
+	private String referenceChromosome;
+	private int referenceStart;
+	private int numColumns;
+	private List<String> species;
+	private Map<String, Integer> speciesIndex;
+	private RandomAccessFile file;
+	private MappedByteBuffer[] chunks;
+	private int columnsPerChunk;
+
+	/**
+	 * @param fileName Columnar alignment file written by convertMAF
+	 * @throws IOException
+	 */
+	public ColumnarAlignment(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		if(file.readInt() != MAGIC) {
+			file.close();
+			throw new IOException(fileName + " is not a columnar alignment file");
+		}
+		int headerLength = file.readInt();
+		referenceStart = file.readInt();
+		numColumns = file.readInt();
+		int numSpecies = file.readInt();
+		referenceId = file.readUTF();
+		referenceChromosome = file.readUTF();
+		species = new ArrayList<String>(numSpecies);
+		speciesIndex = new HashMap<String, Integer>(numSpecies);
+		for(int i = 0; i < numSpecies; i++) {
+			String seqId = file.readUTF();
+			species.add(seqId);
+			speciesIndex.put(seqId, Integer.valueOf(i));
+		}
+		species = Collections.unmodifiableList(species);
+
+		// Chunks hold whole columns so a column never spans two mappings
+		columnsPerChunk = Math.max(1, (1 << CHUNK_BITS) / Math.max(1, numSpecies));
+		int numChunks = (int) (((long) numColumns + columnsPerChunk - 1) / columnsPerChunk);
+		chunks = new MappedByteBuffer[numChunks];
+		FileChannel channel = file.getChannel();
+		for(int i = 0; i < numChunks; i++) {
+			long firstColumn = (long) i * columnsPerChunk;
+			long chunkColumns = Math.min(columnsPerChunk, numColumns - firstColumn);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + firstColumn * numSpecies, chunkColumns * numSpecies);
+		}
+		logger.debug("Loaded columnar alignment " + fileName + " with " + numSpecies + " species and " + numColumns + " columns from " + referenceStart);
+	}
+
+	public String getReferenceId() { return referenceId;}
+
+	public String getReferenceChromosome() { return referenceChromosome;}
+
+	/**
+	 * @return Reference position of the first column
+	 */
+	public int getReferenceStart() { return referenceStart;}
+
+	/**
+	 * @return Reference position after the last column
+	 */
+	public int getReferenceEnd() { return referenceStart + numColumns;}
+
+	public int length() { return numColumns;}
+
+	/**
+	 * @return Stored species in the order they are indexed
+	 */
+	public List<String> getSpecies() { return species;}
+
+	public int getNumSpecies() { return species.size();}
+
+	/**
+	 * @param seqId Species name
+	 * @return Index of the species or -1 if it is not in the alignment
+	 */
+	public int getSpeciesIndex(String seqId) {
+		Integer idx = speciesIndex.get(seqId);
+		return idx == null ? -1 : idx.intValue();
+	}
+
+	/**
+	 * @param refPosition Reference position
+	 * @param speciesIdx Species index
+	 * @return Base code of the species at the position, MISSING_CODE outside of the alignment
+	 */
+	public byte getBase(int refPosition, int speciesIdx) {
+		int column = refPosition - referenceStart;
+		if(column < 0 || column >= numColumns) {
+			return MISSING_CODE;
+		}
+		return chunks[column / columnsPerChunk].get((column % columnsPerChunk) * species.size() + speciesIdx);
+	}
+
+	/**
+	 * Copy consecutive columns for some species into a buffer, species by species
+	 * @param refPosition Reference position of the first column
+	 * @param number Number of columns
+	 * @param speciesIdx Species indices, negative indices are filled with MISSING_CODE
+	 * @param buffer Buffer of length at least speciesIdx.length * number, the base of species k at column j is put in buffer[k * number + j]
+	 */
+	public void getColumns(int refPosition, int number, int[] speciesIdx, byte[] buffer) {
+		int numSpecies = species.size();
+		int column = refPosition - referenceStart;
+		for(int j = 0; j < number; j++, column++) {
+			if(column < 0 || column >= numColumns) {
+				for(int k = 0; k < speciesIdx.length; k++) {
+					buffer[k * number + j] = MISSING_CODE;
+				}
+				continue;
+			}
+			MappedByteBuffer chunk = chunks[column / columnsPerChunk];
+			int offset = (column % columnsPerChunk) * numSpecies;
+			for(int k = 0; k < speciesIdx.length; k++) {
+				buffer[k * number + j] = speciesIdx[k] < 0 ? MISSING_CODE : chunk.get(offset + speciesIdx[k]);
+			}
+		}
+	}
+
+	/**
+	 * Same as MultipleAlignment.getColumnsAsVector, for code that works on vector encoded alignments
+	 * @param start Reference position of the first column
+	 * @param number Number of columns
+	 * @return Map of species to a matrix with a column per alignment column, with a 1 at the row of the base or all 0 if there is no base
+	 */
+	public Map<String, Matrix> getColumnsAsVector(int start, int number) {
+		int[] allSpecies = new int[species.size()];
+		for(int k = 0; k < allSpecies.length; k++) {
+			allSpecies[k] = k;
+		}
+		byte[] buffer = new byte[allSpecies.length * number];
+		getColumns(start, number, allSpecies, buffer);
+		LinkedHashMap<String, Matrix> cols = new LinkedHashMap<String, Matrix>(allSpecies.length);
+		for(int k = 0; k < allSpecies.length; k++) {
+			Matrix seqRegion = new Matrix(MultipleAlignment.UNGAPPED_ALPHABET_SIZE, number);
+			for(int j = 0; j < number; j++) {
+				byte base = buffer[k * number + j];
+				if(base < MultipleAlignment.UNGAPPED_ALPHABET_SIZE) {
+					seqRegion.set(base, j, 1);
+				}
+			}
+			cols.put(species.get(k), seqRegion);
+		}
+		return cols;
+	}
+
+	/**
+	 * Finds the regions where the reference is not gapped, gaps between alignment blocks are not reference gaps.
+	 * @return A list of two sized integer arrays with the start and end of the ungapped regions relative to the reference start, each list item is of the form [start, end).
+	 */
+	public List<int[]> getUngappedReferenceIslands() {
+		List<int[]> islands = new ArrayList<int[]>();
+		int ref = getSpeciesIndex(referenceId);
+		if(ref < 0) {
+			return islands;
+		}
+		int islandStart = -1;
+		for(int i = 0; i < numColumns; i++) {
+			boolean gap = getBase(referenceStart + i, ref) == GAP_CODE;
+			if(!gap && islandStart < 0) {
+				islandStart = i;
+			} else if(gap && islandStart >= 0) {
+				int[] island = {islandStart, i};
+				islands.add(island);
+				islandStart = -1;
+			}
+		}
+		if(islandStart >= 0) {
+			int[] island = {islandStart, numColumns};
+			islands.add(island);
+		}
+		return islands;
+	}
+
+	public void close() throws IOException {
+		chunks = null;
+		file.close();
+	}
+
+	/**
+	 * Writes a columnar alignment from a MAF file in a single pass, plus a first pass to find the species if none are given
+	 * Reference gapped columns are dropped and positions not covered by any block are filled with MISSING_CODE
+	 * Blocks must be sorted by reference position, the part of a block overlapping the previous one is ignored
+	 * @param mafFile MAF alignment, the first sequence of the first block is the reference
+	 * @param outFile Columnar alignment to write
+	 * @param speciesToStore Species to store or null to store all species in the alignment
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static void convertMAF(String mafFile, String outFile, List<String> speciesToStore) throws IOException, ParseException {
+		List<String> speciesList = speciesToStore != null && !speciesToStore.isEmpty() ? new ArrayList<String>(speciesToStore) : findMAFSpecies(mafFile);
+		Map<String, Integer> index = new HashMap<String, Integer>(speciesList.size());
+		for(int i = 0; i < speciesList.size(); i++) {
+			index.put(speciesList.get(i), Integer.valueOf(i));
+		}
+		int numSpecies = speciesList.size();
+
+		BufferedReader br = new BufferedReader(new FileReader(mafFile));
+		DataOutputStream out = null;
+		String[] blockRows = new String[numSpecies];
+		String refBases = null;
+		String referenceId = null;
+		String referenceChromosome = null;
+		int blockStart = 0;
+		int referenceStart = 0;
+		int nextPosition = 0;
+		byte[] column = new byte[numSpecies];
+		String line = null;
+		try {
+			while(true) {
+				line = br.readLine();
+				boolean blockEnd = line == null || line.startsWith("a ") || line.startsWith("a\t") || line.equals("a");
+				if(blockEnd && refBases != null) {
+					if(out == null) {
+						out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 1 << 20));
+						writeHeader(out, referenceId, referenceChromosome, blockStart, speciesList);
+						referenceStart = blockStart;
+						nextPosition = blockStart;
+					}
+					nextPosition = writeBlock(out, refBases, blockRows, blockStart, nextPosition, column);
+					refBases = null;
+					Arrays.fill(blockRows, null);
+				}
+				if(line == null) {
+					break;
+				}
+				if(!line.startsWith("s ")) {
+					continue;
+				}
+				String[] lineInfo = line.substring(2).trim().split("\\s+");
+				if(lineInfo.length < 6) {
+					throw new ParseException("Invalid alignment line <" + line + ">");
+				}
+				String[] seqNameInfo = lineInfo[0].split("\\.");
+				String seqId = seqNameInfo[0];
+				if(referenceId == null) {
+					referenceId = seqId;
+					referenceChromosome = seqNameInfo.length > 1 ? seqNameInfo[1] : seqId;
+				}
+				if(seqId.equals(referenceId) && refBases == null) {
+					refBases = lineInfo[5];
+					blockStart = Integer.parseInt(lineInfo[1]);
+				}
+				Integer speciesIdx = index.get(seqId);
+				if(speciesIdx != null) {
+					blockRows[speciesIdx.intValue()] = lineInfo[5];
+				}
+			}
+		} finally {
+			br.close();
+			if(out != null) {
+				out.close();
+			}
+		}
+		if(referenceId == null) {
+			throw new ParseException("No alignment blocks in " + mafFile);
+		}
+
+		int numColumns = nextPosition - referenceStart;
+		RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+		raf.seek(NUM_COLUMNS_OFFSET);
+		raf.writeInt(numColumns);
+		raf.close();
+		logger.info("Wrote " + numColumns + " columns for " + numSpecies + " species to " + outFile);
+	}
+
+	private static List<String> findMAFSpecies(String mafFile) throws IOException {
+		List<String> speciesList = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(mafFile));
+		String line = null;
+		while((line = br.readLine()) != null) {
+			if(line.startsWith("s ")) {
+				String seqId = line.substring(2).trim().split("\\s+")[0].split("\\.")[0];
+				if(!speciesList.contains(seqId)) {
+					speciesList.add(seqId);
+				}
+			}
+		}
+		br.close();
+		return speciesList;
+	}
+
+	private static void writeHeader(DataOutputStream out, String referenceId, String referenceChromosome, int referenceStart, List<String> speciesList) throws IOException {
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		DataOutputStream namesOut = new DataOutputStream(names);
+		namesOut.writeUTF(referenceId);
+		namesOut.writeUTF(referenceChromosome);
+		for(String seqId : speciesList) {
+			namesOut.writeUTF(seqId);
+		}
+		namesOut.flush();
+		out.writeInt(MAGIC);
+		out.writeInt(FIXED_HEADER_LENGTH + names.size());
+		out.writeInt(referenceStart);
+		// Number of columns, filled in once all blocks are written
+		out.writeInt(0);
+		out.writeInt(speciesList.size());
+		names.writeTo(out);
+	}
+
+	/**
+	 * @return Reference position after the last column written
+	 */
+	private static int writeBlock(DataOutputStream out, String refBases, String[] blockRows, int blockStart, int nextPosition, byte[] column) throws IOException {
+		if(blockStart > nextPosition) {
+			Arrays.fill(column, MISSING_CODE);
+			for(int pos = nextPosition; pos < blockStart; pos++) {
+				out.write(column);
+			}
+			nextPosition = blockStart;
+		}
+		int refPosition = blockStart;
+		for(int i = 0; i < refBases.length(); i++) {
+			if(refBases.charAt(i) == '-') {
+				continue;
+			}
+			if(refPosition++ < nextPosition) {
+				continue;
+			}
+			for(int k = 0; k < column.length; k++) {
+				column[k] = blockRows[k] == null ? GAP_CODE : encode(blockRows[k].charAt(i));
+			}
+			out.write(column);
+			nextPosition++;
+		}
+		return nextPosition;
+	}
+
+	private static byte encode(char base) {
+		switch(base) {
+		case 'A': case 'a': return (byte) MultipleAlignment.A_CODE;
+		case 'C': case 'c': return (byte) MultipleAlignment.C_CODE;
+		case 'G': case 'g': return (byte) MultipleAlignment.G_CODE;
+		case 'T': case 't': return (byte) MultipleAlignment.T_CODE;
+		case '-': return GAP_CODE;
+		default: return MISSING_CODE;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, ParseException {
+		ArgumentMap argMap = CLUtil.getParameters(args, USAGE, "1");
+		if("1".equals(argMap.getTask())) {
+			String in = argMap.getInput();
+			String out = argMap.getOutput();
+			List<String> speciesToStore = ConservationUtils.commaSeparatedStringToList(argMap.get("species"));
+			convertMAF(in, out, speciesToStore);
+		} else {
+			System.err.println("Invalid task " + argMap.getTask() + "\n" + USAGE);
+		}
+	}
+
+}
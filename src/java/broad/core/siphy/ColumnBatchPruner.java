@@ -0,0 +1,375 @@
+package broad.core.siphy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forester.phylogeny.Phylogeny;
+import org.forester.phylogeny.PhylogenyNode;
+
+import broad.core.multiplealignment.ColumnarAlignment;
+
+/**
+ * Felsenstein's peeling and pruning over a window of columns of a columnar alignment at once
+ * The tree is flattened to arrays in post order and the node likelihoods of all columns in the window are kept in preallocated buffers,
+ * so fitting omega does not allocate anything per column or per node
+ * Computes the same quantities as EvolutionaryModel.omegaEMIteration, with leaves that have no base at a column uninformative as after ConservationUtils.setUninformativeNodes
+ * Not thread safe, use one pruner per thread
+ */
+public class ColumnBatchPruner {
+
+	// Nucleotide alphabet, bases are coded 0 to 3 in the alignment
+	private static final int A = 4;
+	private static final int AA = A * A;
+
+	private EvolutionaryModel model;
+	private ColumnarAlignment alignment;
+
+	// Tree in post order so children come before their parent and the root is last
+	private int numNodes;
+	private int root;
+	private int[] child1;
+	private int[] child2;
+	private int[] parent;
+	private int[] sibling;
+	private int[] leafIndex;
+	private int[] leafSpecies;
+	private double[] branchLength;
+	private double treeLength;
+
+	// Per node matrices, row major
+	private double[] transitions;
+	private double[] jMatrices;
+	private double[] v = new double[AA];
+	private double[] iv = new double[AA];
+	private double[] d = new double[A];
+	private double[] q = new double[AA];
+	private double[] pi = new double[A];
+	private double[] e = new double[AA];
+	private double[] m = new double[AA];
+	private double[] down = new double[A];
+	private double[] expD = new double[A];
+	private int[] leafCounts;
+
+	// Per column buffers, laid out node by node then base by base
+	private int window;
+	private int capacity;
+	private byte[] leafBases;
+	private double[] alpha;
+	private double[] up;
+	private double[] beta;
+	private double[] likelihoods;
+
+	/**
+	 * @param model Evolutionary model, its rate matrix decomposition and stationary distribution are read at every iteration
+	 * @param tree Binary tree whose leaves are alignment species, leaves not in the alignment are uninformative
+	 * @param alignment Alignment to read columns from
+	 */
+	public ColumnBatchPruner(EvolutionaryModel model, Phylogeny tree, ColumnarAlignment alignment) {
+		if(model.getAlphabetSize() != A) {
+			throw new IllegalArgumentException("Model alphabet size " + model.getAlphabetSize() + " is not the nucleotide alphabet size " + A);
+		}
+		this.model = model;
+		this.alignment = alignment;
+		List<PhylogenyNode> nodes = new ArrayList<PhylogenyNode>();
+		addPostOrder(tree.getRoot(), nodes);
+		numNodes = nodes.size();
+		root = numNodes - 1;
+		Map<PhylogenyNode, Integer> index = new IdentityHashMap<PhylogenyNode, Integer>(numNodes);
+		for(int n = 0; n < numNodes; n++) {
+			index.put(nodes.get(n), Integer.valueOf(n));
+		}
+		child1 = new int[numNodes];
+		child2 = new int[numNodes];
+		parent = new int[numNodes];
+		sibling = new int[numNodes];
+		leafIndex = new int[numNodes];
+		branchLength = new double[numNodes];
+		List<Integer> species = new ArrayList<Integer>();
+		for(int n = 0; n < numNodes; n++) {
+			PhylogenyNode node = nodes.get(n);
+			parent[n] = node.isRoot() ? -1 : index.get(node.getParent()).intValue();
+			branchLength[n] = node.isRoot() ? 0 : node.getDistanceToParent();
+			if(node.isExternal()) {
+				child1[n] = -1;
+				child2[n] = -1;
+				leafIndex[n] = species.size();
+				species.add(Integer.valueOf(alignment.getSpeciesIndex(node.getSeqName())));
+			} else {
+				if(node.getNumberOfChildNodes() != 2) {
+					throw new IllegalArgumentException("Tree must be binary, node " + node.getID() + " has " + node.getNumberOfChildNodes() + " children");
+				}
+				child1[n] = index.get(node.getChildNode1()).intValue();
+				child2[n] = index.get(node.getChildNode2()).intValue();
+				sibling[child1[n]] = child2[n];
+				sibling[child2[n]] = child1[n];
+				leafIndex[n] = -1;
+			}
+			if(n != root) {
+				treeLength += branchLength[n];
+			}
+		}
+		sibling[root] = -1;
+		leafSpecies = new int[species.size()];
+		for(int k = 0; k < leafSpecies.length; k++) {
+			leafSpecies[k] = species.get(k).intValue();
+		}
+		transitions = new double[numNodes * AA];
+		jMatrices = new double[numNodes * AA];
+		leafCounts = new int[numNodes];
+	}
+
+	private static void addPostOrder(PhylogenyNode node, List<PhylogenyNode> nodes) {
+		if(!node.isExternal()) {
+			addPostOrder(node.getChildNode1(), nodes);
+			addPostOrder(node.getChildNode2(), nodes);
+		}
+		nodes.add(node);
+	}
+
+	/**
+	 * @return Total branch length of the tree
+	 */
+	public double getTreeLength() {
+		return treeLength;
+	}
+
+	/**
+	 * @return Number of columns loaded
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Read the columns to fit, growing the buffers if needed
+	 * @param refPosition Reference position of the first column
+	 * @param numColumns Number of columns
+	 */
+	public void loadColumns(int refPosition, int numColumns) {
+		window = numColumns;
+		if(numColumns > capacity) {
+			capacity = numColumns;
+			leafBases = new byte[leafSpecies.length * capacity];
+			alpha = new double[numNodes * A * capacity];
+			up = new double[numNodes * A * capacity];
+			beta = new double[numNodes * A * capacity];
+			likelihoods = new double[capacity];
+		}
+		alignment.getColumns(refPosition, numColumns, leafSpecies, leafBases);
+	}
+
+	/**
+	 * Total branch length of the tree left after pruning the leaves without a base at a column, as ConservationUtils.pruneTree would leave it
+	 * @param column Column of the loaded window
+	 * @return Total branch length of the pruned tree
+	 */
+	public double getTreeLength(int column) {
+		for(int n = 0; n < numNodes; n++) {
+			if(leafIndex[n] >= 0) {
+				leafCounts[n] = leafBases[leafIndex[n] * window + column] < A ? 1 : 0;
+			} else {
+				leafCounts[n] = leafCounts[child1[n]] + leafCounts[child2[n]];
+			}
+		}
+		int numLeft = leafCounts[root];
+		double length = 0;
+		if(numLeft > 1) {
+			// A branch is kept if it separates leaves left in the tree
+			for(int n = 0; n < root; n++) {
+				if(leafCounts[n] > 0 && leafCounts[n] < numLeft) {
+					length += branchLength[n];
+				}
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * One EM iteration over all loaded columns
+	 * @param omega Tree scaling to compute the expected sufficient statistics with
+	 * @return The new omega, the expected number of transitions, the expected total time and the log likelihood at the given omega, as EvolutionaryModel.omegaEMIteration
+	 */
+	public double[] omegaEMIteration(double omega) {
+		readModel();
+		computeNodeMatrices(omega);
+		peel();
+		prune();
+
+		Arrays.fill(e, 0);
+		double logLikelihood = 0;
+		for(int j = 0; j < window; j++) {
+			logLikelihood += Math.log(likelihoods[j]);
+		}
+		for(int n = 0; n < root; n++) {
+			// M = sum over columns of beta * alpha' / likelihood
+			Arrays.fill(m, 0);
+			int nodeOffset = n * A * window;
+			for(int a = 0; a < A; a++) {
+				int betaOffset = nodeOffset + a * window;
+				for(int b = 0; b < A; b++) {
+					int alphaOffset = nodeOffset + b * window;
+					double sum = 0;
+					for(int j = 0; j < window; j++) {
+						sum += beta[betaOffset + j] * alpha[alphaOffset + j] / likelihoods[j];
+					}
+					m[a * A + b] = sum;
+				}
+			}
+			// Projected on the eigenvectors, t(V) * M * t(iV), then weighted by J
+			for(int i = 0; i < A; i++) {
+				for(int k = 0; k < A; k++) {
+					double sum = 0;
+					for(int a = 0; a < A; a++) {
+						for(int b = 0; b < A; b++) {
+							sum += v[a * A + i] * m[a * A + b] * iv[k * A + b];
+						}
+					}
+					e[i * A + k] += sum * jMatrices[n * AA + i * A + k];
+				}
+			}
+		}
+
+		// N = t(iV) * E * t(V), times Q entry by entry
+		double numOfTransitions = 0;
+		double totalTime = 0;
+		for(int i = 0; i < A; i++) {
+			for(int k = 0; k < A; k++) {
+				double sum = 0;
+				for(int a = 0; a < A; a++) {
+					for(int b = 0; b < A; b++) {
+						sum += iv[a * A + i] * e[a * A + b] * v[k * A + b];
+					}
+				}
+				double nik = sum * q[i * A + k];
+				if(i == k) {
+					totalTime -= nik;
+				} else {
+					numOfTransitions += nik;
+				}
+			}
+		}
+		double [] data = {numOfTransitions * omega / totalTime, numOfTransitions, totalTime, logLikelihood};
+		return data;
+	}
+
+	private void readModel() {
+		for(int i = 0; i < A; i++) {
+			d[i] = model.D.get(i, i);
+			pi[i] = model.getPi().get(i, i);
+			for(int k = 0; k < A; k++) {
+				v[i * A + k] = model.V.get(i, k);
+				iv[i * A + k] = model.iV.get(i, k);
+				q[i * A + k] = model.Q.get(i, k);
+			}
+		}
+	}
+
+	/**
+	 * Transition matrices exp(Q omega t) = V exp(D omega t) iV and the J matrices of EvolutionaryModel.computeJMatrix
+	 */
+	private void computeNodeMatrices(double omega) {
+		for(int n = 0; n < numNodes; n++) {
+			double dist = branchLength[n] * omega;
+			for(int k = 0; k < A; k++) {
+				expD[k] = Math.exp(d[k] * dist);
+			}
+			int offset = n * AA;
+			for(int i = 0; i < A; i++) {
+				for(int k = 0; k < A; k++) {
+					double sum = 0;
+					for(int l = 0; l < A; l++) {
+						sum += v[i * A + l] * expD[l] * iv[l * A + k];
+					}
+					transitions[offset + i * A + k] = sum;
+					if(Math.abs(d[i] - d[k]) < 0.0001) {
+						jMatrices[offset + i * A + k] = dist * expD[i];
+					} else {
+						jMatrices[offset + i * A + k] = (expD[i] - expD[k]) / (d[i] - d[k]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subtree likelihoods alpha, and their transitions to the parent node, up = P * alpha
+	 */
+	private void peel() {
+		for(int n = 0; n < numNodes; n++) {
+			int nodeOffset = n * A * window;
+			if(leafIndex[n] >= 0) {
+				int basesOffset = leafIndex[n] * window;
+				for(int a = 0; a < A; a++) {
+					int offset = nodeOffset + a * window;
+					for(int j = 0; j < window; j++) {
+						byte base = leafBases[basesOffset + j];
+						alpha[offset + j] = base >= A || base == a ? 1 : 0;
+					}
+				}
+			} else {
+				int offset1 = child1[n] * A * window;
+				int offset2 = child2[n] * A * window;
+				for(int i = 0; i < A * window; i++) {
+					alpha[nodeOffset + i] = up[offset1 + i] * up[offset2 + i];
+				}
+			}
+			int transitionOffset = n * AA;
+			for(int a = 0; a < A; a++) {
+				int offset = nodeOffset + a * window;
+				for(int j = 0; j < window; j++) {
+					up[offset + j] = 0;
+				}
+				for(int b = 0; b < A; b++) {
+					double p = transitions[transitionOffset + a * A + b];
+					int alphaOffset = nodeOffset + b * window;
+					for(int j = 0; j < window; j++) {
+						up[offset + j] += p * alpha[alphaOffset + j];
+					}
+				}
+			}
+		}
+		int rootOffset = root * A * window;
+		for(int j = 0; j < window; j++) {
+			double likelihood = 0;
+			for(int a = 0; a < A; a++) {
+				likelihood += pi[a] * alpha[rootOffset + a * window + j];
+			}
+			likelihoods[j] = likelihood;
+		}
+	}
+
+	/**
+	 * Complement tree likelihoods beta, from the root down
+	 */
+	private void prune() {
+		int rootOffset = root * A * window;
+		for(int a = 0; a < A; a++) {
+			for(int j = 0; j < window; j++) {
+				beta[rootOffset + a * window + j] = pi[a];
+			}
+		}
+		for(int n = root - 1; n >= 0; n--) {
+			int nodeOffset = n * A * window;
+			int parentOffset = parent[n] * A * window;
+			int siblingOffset = sibling[n] * A * window;
+			int transitionOffset = parent[n] * AA;
+			for(int j = 0; j < window; j++) {
+				// t(P) * beta of the parent
+				for(int a = 0; a < A; a++) {
+					double sum = 0;
+					for(int b = 0; b < A; b++) {
+						sum += transitions[transitionOffset + b * A + a] * beta[parentOffset + b * window + j];
+					}
+					down[a] = sum;
+				}
+				for(int a = 0; a < A; a++) {
+					beta[nodeOffset + a * window + j] = up[siblingOffset + a * window + j] * down[a];
+				}
+			}
+		}
+	}
+
+}
@@ -250,6 +250,37 @@ public class EvolutionaryModel {
 		return fit;
 	}
 	
+	/**
+	 * Same as fitOmega for the columns loaded in the pruner, which runs each EM iteration over all columns at once
+	 * The omega of the model is not changed.
+	 * @param pruner Pruner with the window of columns to fit
+	 * @return The fit
+	 */
+	public OmegaFit fitOmega(ColumnBatchPruner pruner) {
+		ChiSquaredDistribution chiSq = new ChiSquaredDistribution(1);
+		double iterationOmega = omega;
+		double newOmega = omega;
+		int iteration = 0;
+		OmegaFit fit = new OmegaFit();
+		double [] data = null;
+		do {
+			iterationOmega = newOmega;
+			data = pruner.omegaEMIteration(iterationOmega);
+			newOmega = data[0];
+			if(iteration == 0) {
+				fit.initialLogLikelihood = data[3];
+			}
+		}while(Math.abs(iterationOmega - newOmega) > SMALL_DIFF && iteration++ < MAX_ITERATIONS);
+
+		fit.fittedLogLikelihood = data[3];
+		fit.omega = data[0];
+		fit.numOfIterations = iteration;
+		fit.transitions = data[1];
+		fit.totalTime = data[2];
+		fit.pVal = 1- chiSq.cumulativeProbability(fit.getLogOddsScore());
+		return fit;
+	}
+	
 	public PiFit piEMIteration(Map<String, Matrix> column, PhylogenyNode root, Matrix newPI) throws UnableToFitException {		
 		PiFit fit = new PiFit();
 		nodeFittingParamMap = new HashMap<Integer, NodeLikelihoodParameters>(root.getNumberOfChildNodes());
@@ -43,6 +43,7 @@ import broad.core.math.EmpiricalDistribution;
 import broad.core.math.Statistics;
 import broad.core.motif.PositionWeightMatrix;
 import broad.core.motif.PositionWeightMatrixIO;
+import broad.core.multiplealignment.ColumnarAlignment;
 import broad.core.multiplealignment.MAFAlignment;
 import broad.core.multiplealignment.MAFIO;
 import broad.core.multiplealignment.MultipleAlignment;
@@ -63,7 +64,7 @@ public class TreeScaler {
 	"\tTasks:\n" +
 	"\t\t1. Compute scaling of tree for each site in a multiple alignment. \n\t\tParameters:\n\t\t  -in <multiple alignment file> "+
 		"\n\t\t  -mod <Neutral Evolutionary model consisting of aminoacid background distribution, mutation matrix and neutral phylogenetic tree>" +
-		"\n\t\t  -format <Alignment format default is FASTA is default>" +
+		"\n\t\t  -format <Alignment format default is FASTA is default, COLUMNAR for a columnar alignment written by ColumnarAlignment which is scanned in batches of columns>" +
 		"\n\t\t  -outdir <output directory> or -out <if a specific file name is desired>" +
 		"\n\n\t  -ref <reference sequence id, necessary if the alignment is not in MAF format>" +
 		"\n\t\t  -ignore <comma separated species to ignore>" +
@@ -216,6 +217,22 @@ public class TreeScaler {
 			
 			List<String> ignoreList = processIgnoreListString(ignoreListStr);
 			
+			if("COLUMNAR".equalsIgnoreCase(alnFileFormat)) {
+				if(sample) {
+					throw new IllegalArgumentException("Sampling is not supported for columnar alignments");
+				}
+				ColumnarAlignment columnarAlignment = new ColumnarAlignment(alnFile);
+				if(out == null) {
+					String [] alnFilePath = alnFile.split("/");
+					out = outdir + "/" + alnFilePath[alnFilePath.length - 1].replaceFirst("\\..+$", ".omegas");
+				}
+				BufferedWriter bw = new BufferedWriter(new FileWriter(out));
+				scaler.scaleTree(columnarAlignment, window, bw, ignoreList, overlap);
+				bw.close();
+				columnarAlignment.close();
+				return;
+			}
+			
 			scaler.setUpAlignment(argMap, alnFile, alnFileFormat, ignoreList); 
 
 			//scaler.alignment = MultipleAlignmentFactory.create(alnFile, alnFileFormat);
@@ -1917,6 +1934,48 @@ public class TreeScaler {
 			
 	}
 	
+	/**
+	 * Same as scaleTree for a columnar alignment, fitting each window with a ColumnBatchPruner instead of per column matrices
+	 */
+	public void scaleTree(ColumnarAlignment columnarAlignment, int window, BufferedWriter bw, List<String> ignoreList, int overlap) throws IOException {
+		Phylogeny alnTree = ConservationUtils.pruneTree(ignoreList, model.getTree());
+		ColumnBatchPruner pruner = new ColumnBatchPruner(model, alnTree, columnarAlignment);
+
+		double alignmentTreeLength = pruner.getTreeLength();
+		System.out.println("Using window " + window + " base tree total length " + alignmentTreeLength + " alignment length " + columnarAlignment.length());
+		window = Math.min(window, columnarAlignment.length());
+		System.out.println("TREE: " + alnTree.toNewHampshire(true));
+		if(alignmentTreeLength < minimumTreeLength) {
+			System.out.println("To few species aligned, alignment tree is too short " + alignmentTreeLength);
+			return;
+		}
+		
+		Iterator<int []> ungappedRegionIt = columnarAlignment.getUngappedReferenceIslands().iterator();
+		while(ungappedRegionIt.hasNext()) {
+			int [] region = ungappedRegionIt.next();
+			if(region[1] - region[0] < window) {
+				System.err.println("\tjikes ungapped island  is small " + region[0] +"-"+region[1]);
+			} else  {
+				for(int i = region[0]; i < region[1] - window + 1; i = i + window - overlap) {
+					int refPosition = i + columnarAlignment.getReferenceStart();
+					pruner.loadColumns(refPosition, window);
+					// As in scaleTree the tree length is the one left at the last column of the window
+					double minTreeLength = Math.min(alignmentTreeLength, pruner.getTreeLength(window - 1));
+					if(minTreeLength  > minimumTreeLength) {
+						OmegaFit fit =  model.fitOmega(pruner);
+						fit.setTreeLength(minTreeLength);
+						writeSiteOmegaInfo(bw, refPosition, fit);
+						if(i == region[1] - window && (region[1] - region[0] ) > (window - window/3)) { //if last base before to close to alignment end was omeagable set all remaining sites to this one.
+							for(int j = 1; j + i< region[1]; j++) {
+								writeSiteOmegaInfo(bw, refPosition + j, fit);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
 	public ArrayList<OmegaFit> scaleTree(int window, List<String> ignoreList, int overlap) throws IOException {
 		//System.out.println("Alignment length : " + alignment.getAlignedSequenceIds().size() + 
 		//		" Alignment start " + alignment.getReferenceStart() + " species aligned " + alignment.getAlignedSequenceIds() );
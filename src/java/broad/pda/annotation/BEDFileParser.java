@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import cern.colt.list.IntArrayList;
 
 import nextgen.core.annotation.AbstractAnnotation;
 import nextgen.core.annotation.Annotation;
@@ -38,6 +39,7 @@ import broad.core.annotation.GFF;
 import broad.core.annotation.LightweightGenomicAnnotation;
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
+import broad.core.datastructures.StaticIntervalIndex;
 import broad.core.parser.StringParser;
 import broad.pda.datastructures.Alignments;
 import broad.pda.gene.GeneWithIsoforms;
@@ -660,6 +662,55 @@ public class BEDFileParser {
 		return rtrn;		 
 	}
 
+	/**
+	 * Load genes into read-only indexes by chromosome, for static annotations queried from many threads
+	 * @param file BED file
+	 * @return Index of the genes of each chromosome
+	 * @throws IOException
+	 */
+	public static Map<String, StaticIntervalIndex<Gene>> loadDataByChrToIndex(File file) throws IOException{
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+	
+		// Intervals are collected as primitive arrays per chromosome and indexed once the file is read, without building a tree
+		Map<String, IntArrayList> starts=new TreeMap<String, IntArrayList>();
+		Map<String, IntArrayList> ends=new TreeMap<String, IntArrayList>();
+		Map<String, List<Gene>> genes=new TreeMap<String, List<Gene>>();
+		String nextLine;
+		int i=0;
+		while ((nextLine = reader.readLine()) != null && (nextLine.trim().length() > 0)) {
+	
+			if(looksLikeData(nextLine)){
+	
+				Gene gene = new Gene(nextLine, false);
+	
+				List<Gene> data = genes.get(gene.getChr());
+				if(data == null){
+					data = new ArrayList<Gene>();
+					genes.put(gene.getChr(), data);
+					starts.put(gene.getChr(), new IntArrayList());
+					ends.put(gene.getChr(), new IntArrayList());
+				}
+				data.add(gene);
+				starts.get(gene.getChr()).add(gene.getStart());
+				ends.get(gene.getChr()).add(gene.getEnd());
+			}
+			i++;
+			if(i%10000==0){logger.info("Loaded " + i + " genes.");}
+		}
+	
+	
+		reader.close();
+		Map<String, StaticIntervalIndex<Gene>> rtrn=new TreeMap<String, StaticIntervalIndex<Gene>>();
+		for(String chr: genes.keySet()){
+			IntArrayList chrStarts=starts.remove(chr);
+			IntArrayList chrEnds=ends.remove(chr);
+			chrStarts.trimToSize();
+			chrEnds.trimToSize();
+			rtrn.put(chr, new StaticIntervalIndex<Gene>(chrStarts.elements(), chrEnds.elements(), genes.get(chr)));
+		}
+		return rtrn;
+	}
+
 	public static Map<String, Integer> loadChrSizes(String file){
 		Map<String, Integer> rtrn=new TreeMap<String, Integer>();
 	
@@ -176,28 +176,23 @@ public class LibraryCompositionByRnaClass {
 	
 	
 	/**
-	 * For each sample, get counts of reads mapping to each RNA class as well as genome and unmapped
-	 * @param samtoolsExecutable Samtools executable file
-	 * @param bowtie2Executable Bowtie2 executable file
-	 * @param bowtie2options 
+	 * Write the combined fasta file of all RNA classes and its bowtie2 index, unless the index already exists
+	 * Samples counted by separate objects share the index
 	 * @param bowtie2BuildExecutable Bowtie2-build executable file
 	 * @param logDir Output directory for logs and alignments
 	 * @param scheduler Scheduler
-     * @param drmaaSession Active DRMAA session. Pass null if not using OGS. There should only be one active session at a time. Session should have been created in the main method of the class calling this method.
-	 * @return Map from sample name to class name to count
+	 * @param drmaaSession Active DRMAA session. Pass null if not using OGS.
+	 * @return Bowtie2 index base name
 	 * @throws IOException
 	 * @throws InterruptedException
-	 * @throws DrmaaException 
+	 * @throws DrmaaException
 	 */
-	public Map<String, Map<String, Integer>> alignAndGetCounts(String samtoolsExecutable, String bowtie2Executable, Map<String, String> bowtie2options, String bowtie2BuildExecutable, String logDir, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
+	public String makeIndex(String bowtie2BuildExecutable, String logDir, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
 		
 		File dir = new File(logDir);
+		@SuppressWarnings("unused")
 		boolean madeDir = dir.mkdir();
 		
-		// Make single fasta file for transcriptome
-		String singleFasta = logDir + "/combined_RNA_classes.fa";
-		makeSingleFasta(singleFasta);		
-		
 		// Make bowtie2 index for transcriptome
 		String btBase = logDir + "/combined_RNA_classes";
 		String bt1 = btBase + ".1.bt2";
@@ -214,10 +209,35 @@ public class LibraryCompositionByRnaClass {
 		if(!new File(rev1).exists()) writeIndex = true;
 		if(!new File(rev2).exists()) writeIndex = true;
 		
-		if(writeIndex) AlignmentUtils.makeBowtie2Index(singleFasta, btBase, bowtie2BuildExecutable, logDir, scheduler, drmaaSession);
-		else {
+		if(writeIndex) {
+			// Make single fasta file for transcriptome
+			String singleFasta = logDir + "/combined_RNA_classes.fa";
+			makeSingleFasta(singleFasta);
+			AlignmentUtils.makeBowtie2Index(singleFasta, btBase, bowtie2BuildExecutable, logDir, scheduler, drmaaSession);
+		} else {
 			logger.warn("Bowtie2 index files " + btBase + ".*.bt2 already exist. Not remaking index.");
 		}
+		return btBase;
+		
+	}
+	
+	/**
+	 * For each sample, get counts of reads mapping to each RNA class as well as genome and unmapped
+	 * @param samtoolsExecutable Samtools executable file
+	 * @param bowtie2Executable Bowtie2 executable file
+	 * @param bowtie2options 
+	 * @param bowtie2BuildExecutable Bowtie2-build executable file
+	 * @param logDir Output directory for logs and alignments
+	 * @param scheduler Scheduler
+     * @param drmaaSession Active DRMAA session. Pass null if not using OGS. There should only be one active session at a time. Session should have been created in the main method of the class calling this method.
+	 * @return Map from sample name to class name to count
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException 
+	 */
+	public Map<String, Map<String, Integer>> alignAndGetCounts(String samtoolsExecutable, String bowtie2Executable, Map<String, String> bowtie2options, String bowtie2BuildExecutable, String logDir, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
+		
+		String btBase = makeIndex(bowtie2BuildExecutable, logDir, scheduler, drmaaSession);
 		
 		// Establish file names
 		Map<String, String> samToTranscriptome = new TreeMap<String, String>();
@@ -0,0 +1,271 @@
+package broad.pda.differentialExpression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.MatrixWithHeaders;
+
+/**
+ * Computes the two group test statistics of DifferentialScoring.computeTestStatistics for many permutations of the samples
+ * The values are copied once into column-major arrays centered on the row means, and each permutation only sums the columns of its smaller group,
+ * the sums of the other group come from the row totals
+ * Rows are split in blocks scored on several threads, each block going through all permutations
+ */
+public class PermutationStatistics {
+
+	static Logger logger = Logger.getLogger(PermutationStatistics.class.getName());
+
+	private static final int ROWS_PER_BLOCK = 1024;
+
+	private int numRows;
+	private int numSamples;
+	// Column major values minus the row mean, and 2 to the power of the values for the folds
+	private double[] centered;
+	private double[] powers;
+	private double[] totalSum;
+	private double[] totalSquares;
+	private double[] totalPowers;
+	// Sample positions sorted by sample name, the order of the groups in computeTestStatistics
+	private Integer[] nameOrder;
+	private double[] fudgeFactors;
+	private boolean useFold;
+	private boolean paired;
+
+	/**
+	 * @param data Expression values
+	 * @param samples Columns of data to permute, the permuted groups are positions in this list
+	 * @param fudgeFactors Fudge factors of the test statistics, one statistic per fudge factor
+	 * @param useFold Whether to add the fold as a last statistic
+	 * @param paired Whether to use a paired t statistic when both groups have the same size
+	 */
+	public PermutationStatistics(MatrixWithHeaders data, final List<String> samples, double[] fudgeFactors, boolean useFold, boolean paired) {
+		this.fudgeFactors = fudgeFactors;
+		this.useFold = useFold;
+		this.paired = paired;
+		numRows = data.rowDimension();
+		numSamples = samples.size();
+		centered = new double[numRows * numSamples];
+		powers = new double[numRows * numSamples];
+		for (int s = 0; s < numSamples; s++) {
+			System.arraycopy(data.getColumn(samples.get(s)), 0, centered, s * numRows, numRows);
+		}
+
+		totalSum = new double[numRows];
+		totalSquares = new double[numRows];
+		totalPowers = new double[numRows];
+		for (int r = 0; r < numRows; r++) {
+			// Mean of the values that are not NaN, a NaN in the row gives NaN statistics as in DifferentialScoring
+			double sum = 0;
+			int count = 0;
+			for (int s = 0; s < numSamples; s++) {
+				double v = centered[s * numRows + r];
+				if (!Double.isNaN(v)) {
+					sum += v;
+					count++;
+				}
+			}
+			double mean = count > 0 ? sum / count : 0;
+			for (int s = 0; s < numSamples; s++) {
+				int i = s * numRows + r;
+				powers[i] = Math.pow(2, centered[i]);
+				centered[i] -= mean;
+				totalSum[r] += centered[i];
+				totalSquares[r] += centered[i] * centered[i];
+				totalPowers[r] += powers[i];
+			}
+		}
+
+		nameOrder = new Integer[numSamples];
+		for (int s = 0; s < numSamples; s++) {
+			nameOrder[s] = s;
+		}
+		Arrays.sort(nameOrder, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return samples.get(o1).compareTo(samples.get(o2));
+			}
+		});
+	}
+
+	/**
+	 * @return Names of the statistics, as the columns of DifferentialScoring.computeTestStatistics
+	 */
+	public List<String> getStatisticNames() {
+		List<String> rtrn = new ArrayList<String>();
+		for (int i = 0; i < fudgeFactors.length; i++) {
+			rtrn.add("" + fudgeFactors[i]);
+		}
+		if (useFold) {
+			rtrn.add("Fold");
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param permutations Positions of the samples of the first group in each permutation, all permutations must have the same group size
+	 * @param numThreads Number of threads
+	 * @return Statistics indexed by statistic, row and permutation
+	 */
+	public double[][][] compute(List<int[]> permutations, int numThreads) {
+		final int numPermutations = permutations.size();
+		final int numStatistics = getStatisticNames().size();
+		final double[][][] rtrn = new double[numStatistics][numRows][numPermutations];
+		if (numPermutations == 0) return rtrn;
+
+		// Both groups of each permutation in name order
+		final int[][] first = new int[numPermutations][];
+		final int[][] second = new int[numPermutations][];
+		for (int p = 0; p < numPermutations; p++) {
+			boolean[] inFirst = new boolean[numSamples];
+			for (int s : permutations.get(p)) {
+				inFirst[s] = true;
+			}
+			int n1 = permutations.get(p).length;
+			if (n1 != permutations.get(0).length) {
+				throw new IllegalArgumentException("All permutations must have the same group sizes");
+			}
+			first[p] = new int[n1];
+			second[p] = new int[numSamples - n1];
+			int i = 0;
+			int j = 0;
+			for (int s : nameOrder) {
+				if (inFirst[s]) first[p][i++] = s;
+				else second[p][j++] = s;
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "permutation-statistics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < numRows; start += ROWS_PER_BLOCK) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(numRows, start + ROWS_PER_BLOCK);
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					for (int p = 0; p < numPermutations; p++) {
+						score(first[p], second[p], blockStart, blockEnd, p, rtrn);
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing permutation statistics", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Score the rows of a block for one permutation
+	 */
+	private void score(int[] group1, int[] group2, int blockStart, int blockEnd, int p, double[][][] rtrn) {
+		int n1 = group1.length;
+		int n2 = group2.length;
+		int length = blockEnd - blockStart;
+
+		if (useFold || !(paired && n1 == n2) && !(n1 == 1 && n2 == 1)) {
+			// Sums of the smaller group, the other group is the rest of the row
+			boolean firstSmaller = n1 <= n2;
+			int[] summed = firstSmaller ? group1 : group2;
+			double[] sum = new double[length];
+			double[] squares = new double[length];
+			double[] pows = new double[length];
+			for (int s : summed) {
+				int offset = s * numRows + blockStart;
+				for (int r = 0; r < length; r++) {
+					double v = centered[offset + r];
+					sum[r] += v;
+					squares[r] += v * v;
+					pows[r] += powers[offset + r];
+				}
+			}
+			for (int r = 0; r < length; r++) {
+				int row = blockStart + r;
+				double sum1 = firstSmaller ? sum[r] : totalSum[row] - sum[r];
+				double sum2 = firstSmaller ? totalSum[row] - sum[r] : sum[r];
+				double squares1 = firstSmaller ? squares[r] : totalSquares[row] - squares[r];
+				double squares2 = firstSmaller ? totalSquares[row] - squares[r] : squares[r];
+				if (useFold) {
+					double pow1 = firstSmaller ? pows[r] : totalPowers[row] - pows[r];
+					double pow2 = firstSmaller ? totalPowers[row] - pows[r] : pows[r];
+					rtrn[fudgeFactors.length][row][p] = (pow1 / n1) / (pow2 / n2);
+				}
+				if ((paired && n1 == n2) || (n1 == 1 && n2 == 1)) continue;
+				double mean1 = sum1 / n1;
+				double mean2 = sum2 / n2;
+				// Sums of squared deviations from the group means
+				double ss1 = Math.max(0, squares1 - sum1 * mean1);
+				double ss2 = Math.max(0, squares2 - sum2 * mean2);
+				for (int f = 0; f < fudgeFactors.length; f++) {
+					double s;
+					if (n1 == 1) {
+						s = (sum1 - mean2) * Math.sqrt(n2) / (Math.sqrt(ss2 / (n2 - 1)) + fudgeFactors[f]);
+					} else if (n2 == 1) {
+						s = (sum2 - mean1) * Math.sqrt(n1) / (Math.sqrt(ss1 / (n1 - 1)) + fudgeFactors[f]);
+					} else {
+						double pooled = Math.sqrt((ss1 + ss2) / (n1 + n2 - 2));
+						s = (mean1 - mean2) * Math.sqrt((double) n1 * n2) / ((fudgeFactors[f] + pooled) * Math.sqrt(n1 + n2));
+					}
+					rtrn[f][row][p] = s;
+				}
+			}
+		}
+
+		if (paired && n1 == n2) {
+			// Paired t statistic on the differences of the samples at the same position in both groups, the fudge factor is not used
+			double[] sum = new double[length];
+			double[] squares = new double[length];
+			for (int k = 0; k < n1; k++) {
+				int offset1 = group1[k] * numRows + blockStart;
+				int offset2 = group2[k] * numRows + blockStart;
+				for (int r = 0; r < length; r++) {
+					double d = centered[offset1 + r] - centered[offset2 + r];
+					sum[r] += d;
+					squares[r] += d * d;
+				}
+			}
+			for (int r = 0; r < length; r++) {
+				double mean = sum[r] / n1;
+				double sd = Math.sqrt(Math.max(0, squares[r] - sum[r] * mean) / (n1 - 1));
+				double t = mean * Math.sqrt(n1) / sd;
+				for (int f = 0; f < fudgeFactors.length; f++) {
+					rtrn[f][blockStart + r][p] = t;
+				}
+			}
+		} else if (n1 == 1 && n2 == 1) {
+			int offset1 = group1[0] * numRows + blockStart;
+			int offset2 = group2[0] * numRows + blockStart;
+			for (int r = 0; r < length; r++) {
+				double fold = centered[offset1 + r] - centered[offset2 + r];
+				for (int f = 0; f < fudgeFactors.length; f++) {
+					rtrn[f][blockStart + r][p] = fold;
+				}
+			}
+		}
+	}
+
+}
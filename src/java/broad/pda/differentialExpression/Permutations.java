@@ -3,6 +3,7 @@ package broad.pda.differentialExpression;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -19,43 +20,59 @@ public class Permutations {
 	static Logger logger = Logger.getLogger(Permutations.class.getName());
 	//TODO This should call permuteData for multiple groups
 	public static MatrixWithHeaders[] permuteData(MatrixWithHeaders data, Collection<String> group1, Collection<String> group2, int numberPermutations, double[] fudgeFactors, boolean useFold, boolean paired) {
-		MatrixWithHeaders[] rtrn;
-		CombinationGenerator comb=new CombinationGenerator((group1.size()+group2.size()), group1.size());
+		return permuteData(data, group1, group2, numberPermutations, fudgeFactors, useFold, paired, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Test statistics of each permutation of the samples between two groups
+	 * @param numThreads Number of threads computing the statistics
+	 */
+	public static MatrixWithHeaders[] permuteData(MatrixWithHeaders data, Collection<String> group1, Collection<String> group2, int numberPermutations, double[] fudgeFactors, boolean useFold, boolean paired, int numThreads) {
 		ArrayList<String> samples=new ArrayList<String>();
 		samples.addAll(group1);
 		samples.addAll(group2);
-		
+		List<int[]> permutations=generatePermutations(group1.size(), group2.size(), numberPermutations);
+		
+		PermutationStatistics statistics=new PermutationStatistics(data, samples, fudgeFactors, useFold, paired);
+		double[][][] values=statistics.compute(permutations, numThreads);
+		List<String> columns=statistics.getStatisticNames();
+		
+		MatrixWithHeaders[] rtrn=new MatrixWithHeaders[permutations.size()];
+		for(int p=0; p<rtrn.length; p++){
+			rtrn[p]=new MatrixWithHeaders(data.getRowNames(), columns);
+			for(int c=0; c<columns.size(); c++){
+				for(int r=0; r<values[c].length; r++){
+					rtrn[p].set(r, c, values[c][r][p]);
+				}
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * All assignments of the samples to the first group if there are fewer than numberPermutations, otherwise numberPermutations random ones
+	 * @return Positions of the first group samples among the samples of both groups
+	 */
+	private static List<int[]> generatePermutations(int size1, int size2, int numberPermutations) {
+		CombinationGenerator comb=new CombinationGenerator(size1+size2, size1);
 		int totalNumberPossible=comb.getTotal();
 		if(totalNumberPossible<0){totalNumberPossible=1000; }//to account for overflow
-		logger.debug("Size of group1: "+group1.size()+" group2: "+group2.size()+" number of possible permutations: "+ totalNumberPossible);
+		logger.debug("Size of group1: "+size1+" group2: "+size2+" number of possible permutations: "+ totalNumberPossible);
 		
-		//TODO: Fix this once its working
+		List<int[]> rtrn=new ArrayList<int[]>();
 		if(totalNumberPossible<numberPermutations){
 			logger.debug("Doing all "+totalNumberPossible +" permutations");
-			//do all
-			rtrn=new MatrixWithHeaders[totalNumberPossible];
-			int i=0;
 			while(comb.hasMore()){
-				System.err.print(" "+i);
-				int[] next=comb.getNext();
-				rtrn[i]=generatePermutation(data, next, samples, fudgeFactors, useFold, paired);
-				i++;
+				// The generator reuses its array
+				rtrn.add(comb.getNext().clone());
 			}
-			System.err.println();
 		}
-		
 		else{
 			logger.debug("Doing a random "+numberPermutations+" out of "+totalNumberPossible +" possible permutations");
-			//do numPermutations randomly
-			rtrn=new MatrixWithHeaders[numberPermutations];
 			for(int i=0; i<numberPermutations; i++){
-				System.err.print(" "+i);
-				int[] next=comb.getNextRandom();
-				rtrn[i]=generatePermutation(data, next, samples, fudgeFactors, useFold, paired);
+				rtrn.add(comb.getNextRandom());
 			}
-			System.err.println();
 		}
-		
 		return rtrn;
 	}
 	
@@ -165,65 +182,33 @@ public class Permutations {
 	}
 
 	public static MatrixWithHeaders[] permuteAndAssignFDR(MatrixWithHeaders testStats, MatrixWithHeaders data, Collection<String> group1,Collection<String> group2, int numberPermutations,double[] fudgeFactors, boolean useFold, boolean paired, double alpha) {
+		return permuteAndAssignFDR(testStats, data, group1, group2, numberPermutations, fudgeFactors, useFold, paired, alpha, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * FDR and absolute FDR of the test statistics against the statistics of permuted groups, without building a matrix per permutation
+	 * @param numThreads Number of threads computing the permutation statistics
+	 */
+	public static MatrixWithHeaders[] permuteAndAssignFDR(MatrixWithHeaders testStats, MatrixWithHeaders data, Collection<String> group1,Collection<String> group2, int numberPermutations,double[] fudgeFactors, boolean useFold, boolean paired, double alpha, int numThreads) {
 		MatrixWithHeaders fdr=new MatrixWithHeaders(testStats.getRowNames(), testStats.getColumnNames()); 
 		MatrixWithHeaders absFDR=new MatrixWithHeaders(testStats.getRowNames(), testStats.getColumnNames()); 
 		
-		
-		//MatrixWithHeaders[] permMatrix; //Might not want to save this
-		CombinationGenerator comb=new CombinationGenerator((group1.size()+group2.size()), group1.size());
 		ArrayList<String> samples=new ArrayList<String>();
 		samples.addAll(group1);
 		samples.addAll(group2);
+		List<int[]> permutations=generatePermutations(group1.size(), group2.size(), numberPermutations);
+		System.err.println("Computing statistics of " + permutations.size() + " permutations");
 		
-		int totalNumberPossible=comb.getTotal();
-		if(totalNumberPossible<0){totalNumberPossible=1000; }//to account for overflow
-		System.err.println("Size of group1: "+group1.size()+" group2: "+group2.size()+" number of possible permutations: "+ totalNumberPossible);
+		PermutationStatistics statistics=new PermutationStatistics(data, samples, fudgeFactors, useFold, paired);
+		double[][][] values=statistics.compute(permutations, numThreads);
 		
+		//all genes by all permutations for each statistic
 		Map<String, Matrix> map=new TreeMap<String, Matrix>();
-		for(String column: testStats.getColumnNames()){
-			//make new matrix consisting of all genes by all permutations
-			Matrix matrix=new Matrix(testStats.rowDimension(), numberPermutations);
-			map.put(column, matrix);
-		}
-		
-		if(totalNumberPossible<numberPermutations){
-			System.err.println("Doing all "+totalNumberPossible +" permutations");
-			//do all
-			//permMatrix=new MatrixWithHeaders[totalNumberPossible];
-			int i=0;
-			while(comb.hasMore()){
-				//for each permutation
-				System.err.print(" "+i);
-				int[] next=comb.getNext();
-				MatrixWithHeaders perm=generatePermutation(data, next, samples, fudgeFactors, useFold, paired); //test stat scores for perm
-				for(String column: perm.getColumnNames()){
-					Matrix matrix=map.get(column);
-					matrix.setColumn(i, perm.getColumn(column));
-					map.put(column, matrix);
-				}
-				i++;
-			}
-			System.err.println();
+		List<String> columns=statistics.getStatisticNames();
+		for(int c=0; c<columns.size(); c++){
+			map.put(columns.get(c), new Matrix(values[c]));
 		}
 		
-		else{
-			System.err.println("Doing a random "+numberPermutations+" out of "+totalNumberPossible +" possible permutations");
-			//do numPermutations randomly
-			//permMatrix=new MatrixWithHeaders[numberPermutations];
-			for(int i=0; i<numberPermutations; i++){
-				System.err.print(" "+i);
-				int[] next=comb.getNextRandom();
-				MatrixWithHeaders perm=generatePermutation(data, next, samples, fudgeFactors, useFold, paired); //test stat scores for perm
-				for(String column: perm.getColumnNames()){
-					Matrix matrix=map.get(column);
-					matrix.setColumn(i, perm.getColumn(column));
-					map.put(column, matrix);
-				}				
-			}
-			System.err.println();
-		}
-		
-		
 		for(String column: testStats.getColumnNames()){
 			double[] observed=testStats.getColumn(column);
 			Matrix matrix=map.get(column);
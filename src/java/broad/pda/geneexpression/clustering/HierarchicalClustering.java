@@ -4,10 +4,17 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.forester.phylogeny.Phylogeny;
 import org.forester.phylogeny.PhylogenyNode;
@@ -28,6 +35,7 @@ public class HierarchicalClustering {
 	ClusterDistanceFunction distanceFunction;
 	ArrayList<Cluster>  initialColumnClusters;
 	ArrayList<Cluster>  initialRowClusters;
+	int numThreads = Runtime.getRuntime().availableProcessors();
 	
 	public HierarchicalClustering(MatrixWithHeaders data) {
 		this(data, null, null);
@@ -65,6 +73,16 @@ public class HierarchicalClustering {
 		}
 	}
 	
+	/**
+	 * @param numThreads Number of threads computing the distance matrix
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.numThreads = numThreads;
+	}
+	
 	public void setLinkage(String linkage) throws IllegalArgumentException {
 		if("complete".equalsIgnoreCase(linkage) || "single".equalsIgnoreCase(linkage) || "average".equalsIgnoreCase(linkage)) {
 			this.metric = linkage;
@@ -95,126 +113,239 @@ public class HierarchicalClustering {
 	}
 	
 	private Cluster createCluster( boolean columns) {
-		ArrayList<Cluster> initialClusters = columns? initialColumnClusters : initialRowClusters; 
-		ArrayList<Cluster> clusters = initialClusters;
+		ArrayList<Cluster> clusters = columns? initialColumnClusters : initialRowClusters; 
+		int n = clusters.size();
 
-		System.err.print("Computing similarity matrix .. ");
+		System.err.print("Computing distance matrix .. ");
 		long pTime = System.nanoTime();
-		//TODO: repeace similarityMat with a HashTable it is a much smaller structure when the groups are large 
-		// and the number of pairwise distances compared is smaller.
-		MatrixWithHeaders similarityMat = makeSimilarityMatrix(columns);
+		double[] distances = makeDistanceMatrix(clusters, columns);
 		System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
-		int level=0;
-		while(clusters.size()>1){
-			double minDistance=Double.MAX_VALUE;
-			int iMin=-1;
-			int jMin=-1;
-			
-			//Matrix similarityMatrix = new Matrix(initialClusters.size(), );
-			
-			System.err.print("level "+level);
-			pTime = System.nanoTime();
-			for(int i=0; i<initialClusters.size(); i++){
-				for(int j=i; j<initialClusters.size(); j++){
-					if(i!=j){
-						Cluster cluster1=initialClusters.get(i);
-						Cluster cluster2=initialClusters.get(j);
-						double p=distance(cluster1, cluster2, similarityMat, columns);
-						if(p<minDistance){
-							minDistance=p;
-							iMin=i;
-							jMin=j;
-						}
-					}
-				}
+		
+		System.err.print("Merging " + n + " clusters .. ");
+		pTime = System.nanoTime();
+		List<double[]> merges = nearestNeighborChain(distances, clusters);
+		System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
+		
+		// Replay the merges from closest to farthest, as the greedy search finds them
+		Collections.sort(merges, new Comparator<double[]>() {
+			public int compare(double[] o1, double[] o2) {
+				return Double.compare(o1[2], o2[2]);
 			}
-			System.err.println(" done  " +  (System.nanoTime() - pTime)/1000000);
-			Cluster cluster1=clusters.get(iMin);
-			Cluster cluster2=clusters.get(jMin);
-			//System.err.println(minDistance+" "+iMin+" "+jMin+" "+cluster1.getMembers()+" "+cluster2.getMembers());
-			
-			
-			clusters.remove(cluster1);
-			clusters.remove(cluster2);
-			Cluster merged=merge(cluster1, cluster2);
-			merged.setScore(minDistance);
-			clusters.add(merged);
+		});
+		// Current cluster of each initial cluster slot and the order it was created in, merged clusters come after the initial ones
+		int[] parent = new int[n];
+		Cluster[] current = new Cluster[n];
+		int[] created = new int[n];
+		for(int i=0; i<n; i++){
+			parent[i] = i;
+			current[i] = clusters.get(i);
+			created[i] = i;
+		}
+		int level = 0;
+		for(double[] m : merges){
+			int root1 = find(parent, (int) m[0]);
+			int root2 = find(parent, (int) m[1]);
+			// The cluster created first is listed first, as when scanning the clusters in order
+			if(created[root2] < created[root1]){
+				int tmp = root1;
+				root1 = root2;
+				root2 = tmp;
+			}
+			Cluster merged=merge(current[root1], current[root2]);
+			merged.setScore(m[2]);
+			parent[root2] = root1;
+			current[root1] = merged;
+			created[root1] = n + level;
 			level++;
 		}
 		
-		return clusters.get(0);
+		return current[find(parent, 0)];
 	}
 	
-	private MatrixWithHeaders makeSimilarityMatrix(boolean columns)  throws IllegalStateException{
-		List<String> rowColNames = columns? data.getColumnNames() : data.getRowNames();
-		MatrixWithHeaders similarityMat = new MatrixWithHeaders(rowColNames, rowColNames);
-		/*for(String r : rowColNames) {
-			for(String c : rowColNames) {
-				if(!c.equals(r)) {
-					double[] vals1=getData(data, r, columns);
-					double[] vals2=getData(data, c, columns);
-					double d=distanceFunction.measure(vals1, vals2);
-					similarityMat.set(r,c,d);
-				}
+	private static int find(int[] parent, int i) {
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	/**
+	 * Index of the distance between clusters i and j in the condensed distance matrix
+	 */
+	private static int index(int n, int i, int j) {
+		if(i > j){
+			int tmp = i;
+			i = j;
+			j = tmp;
+		}
+		return (int) ((long) i * n - (long) i * (i + 1) / 2 + j - i - 1);
+	}
+	
+	/**
+	 * Linkage distances between all pairs of initial clusters, computed on several threads
+	 * @return The upper triangle of the distance matrix, row by row
+	 */
+	private double[] makeDistanceMatrix(final List<Cluster> clusters, boolean columns) {
+		final int n = clusters.size();
+		long size = (long) n * (n - 1) / 2;
+		if(size > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("Too many clusters to compute all pairwise distances: " + n);
+		}
+		final double[] distances = new double[(int) size];
+		// Values of the members of each cluster, looked up once
+		final double[][][] values = new double[n][][];
+		for(int i=0; i<n; i++){
+			Collection<String> members = clusters.get(i).getMembers();
+			values[i] = new double[members.size()][];
+			int k = 0;
+			for(String member : members){
+				values[i][k++] = getData(data, member, columns);
 			}
-		}*/
+		}
 		
-		return similarityMat;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "distance-matrix");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int t=0; t<numThreads; t++){
+			final int first = t;
+			// Interleave rows, they get shorter along the matrix
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					for(int i=first; i<n; i+=numThreads){
+						int idx = index(n, i, i + 1);
+						for(int j=i+1; j<n; j++){
+							distances[idx++] = linkage(values[i], values[j]);
+						}
+					}
+				}
+			}));
+		}
+		try {
+			for(Future<?> f : futures){
+				f.get();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing distances", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return distances;
 	}
 	
-	
-	private double distance(Cluster cluster1, Cluster cluster2, MatrixWithHeaders similarityMat, boolean columns) throws IllegalStateException{
+	/**
+	 * Linkage distance between two clusters given the values of their members
+	 */
+	private double linkage(double[][] members1, double[][] members2) throws IllegalStateException{
+		if(members1.length == 1 && members2.length == 1){
+			return distanceFunction.measure(members1[0], members2[0]);
+		}
 		double dist = 0;
-		
 		if(metric.equalsIgnoreCase("complete")){
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					//double t = System.nanoTime();
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns) ;
-					//System.err.println("Too " + (System.nanoTime() - t)/1000000000 + " to compute dist ("+member1+","+member2+")");
-					
+			for(double[] vals1 : members1){
+				for(double[] vals2 : members2){
+					double d=distanceFunction.measure(vals1, vals2);
 					if(d>dist){dist=d;}
 				}
 			}
 		}else if(metric.equalsIgnoreCase("single")){
 			dist = Double.MAX_VALUE;
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns);
-					
+			for(double[] vals1 : members1){
+				for(double[] vals2 : members2){
+					double d=distanceFunction.measure(vals1, vals2);
 					if(d<dist){dist=d;}
 				}
 			}
 		}else if(metric.equalsIgnoreCase("average")){
-			for(String member1: cluster1.getMembers()){
-				for(String member2: cluster2.getMembers()){
-					double d=getOrUpdateDistance(member1, member2, similarityMat, columns);
-					dist += d;
+			for(double[] vals1 : members1){
+				for(double[] vals2 : members2){
+					dist += distanceFunction.measure(vals1, vals2);
 				}
 			}
-			dist =  dist/(double)(cluster1.getMembers().size() * cluster2.getMembers().size());
+			dist =  dist/(double)(members1.length * members2.length);
 		}
 		else{
 			throw new IllegalStateException("Linkage was " + metric + " it can only be one of complete, single or average, the HierarchicalCluster object is badly set up.");
 		}
-		
-		return dist;	
-		
+		return dist;
 	}
 	
-	
-	private double getOrUpdateDistance(String member1, String member2, MatrixWithHeaders similarityMat, boolean columns) {
-		double dist = similarityMat.get(member1, member2);
-		if(dist == 0 && !member1.equals(member2)) {
-			//System.err.println("Hummm... computing dist ("+member1+","+member2+")");
-			double[] vals1=getData(data, member1, columns);
-			double[] vals2=getData(data, member2, columns);
-			dist=distanceFunction.measure(vals1, vals2);
-			similarityMat.set(member1,member2,dist);
-			similarityMat.set(member2, member1,dist);
+	/**
+	 * Agglomerate the clusters following chains of nearest neighbors, which gives the same tree as always merging the closest pair for complete, single and average linkage
+	 * The distances are updated in place with the Lance-Williams formula of the linkage
+	 * @return Merges in the order they were found, as the two initial cluster slots holding the merged clusters and their distance
+	 */
+	private List<double[]> nearestNeighborChain(double[] distances, List<Cluster> clusters) {
+		int n = clusters.size();
+		boolean complete = metric.equalsIgnoreCase("complete");
+		boolean single = metric.equalsIgnoreCase("single");
+		boolean[] active = new boolean[n];
+		int[] sizes = new int[n];
+		for(int i=0; i<n; i++){
+			active[i] = true;
+			sizes[i] = clusters.get(i).getMembers().size();
 		}
+		int[] chain = new int[n];
+		int chainLength = 0;
+		List<double[]> merges = new ArrayList<double[]>(n);
 		
-		return dist;
+		for(int level=0; level<n-1; level++){
+			if(chainLength == 0){
+				int first = 0;
+				while(!active[first]) first++;
+				chain[chainLength++] = first;
+			}
+			int x;
+			int y;
+			double minDistance;
+			while(true){
+				x = chain[chainLength - 1];
+				// Prefer the previous cluster of the chain on ties so the chain ends
+				y = chainLength > 1 ? chain[chainLength - 2] : -1;
+				minDistance = y >= 0 ? distances[index(n, x, y)] : Double.MAX_VALUE;
+				for(int i=0; i<n; i++){
+					if(i == x || !active[i]) continue;
+					double d = distances[index(n, x, i)];
+					if(y < 0 || d < minDistance){
+						minDistance = d;
+						y = i;
+					}
+				}
+				if(chainLength > 1 && y == chain[chainLength - 2]) break;
+				chain[chainLength++] = y;
+			}
+			chainLength -= 2;
+			merges.add(new double[] {x, y, minDistance});
+			
+			// The merged cluster takes the slot of x
+			active[y] = false;
+			for(int k=0; k<n; k++){
+				if(k == x || !active[k]) continue;
+				int xk = index(n, x, k);
+				double dx = distances[xk];
+				double dy = distances[index(n, y, k)];
+				if(complete){
+					distances[xk] = Math.max(dx, dy);
+				}else if(single){
+					distances[xk] = Math.min(dx, dy);
+				}else{
+					distances[xk] = (sizes[x] * dx + sizes[y] * dy) / (sizes[x] + sizes[y]);
+				}
+			}
+			sizes[x] += sizes[y];
+		}
+		return merges;
 	}
 
 	private double distanceOld(Cluster cluster1, Cluster cluster2, String metric, MatrixWithHeaders data, boolean columns) {
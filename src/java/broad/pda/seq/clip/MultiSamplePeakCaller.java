@@ -40,6 +40,7 @@ import nextgen.core.coordinatesystem.TranscriptomeSpace;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.model.AlignmentModel;
 import nextgen.core.model.TranscriptomeSpaceAlignmentModel;
@@ -602,6 +603,13 @@ public class MultiSamplePeakCaller implements PeakCaller {
 					logger.info("OGS job ID is " + ogsJob.getID());
 					cmmds.put(ogsJob.getID(), cmmd);
 					break;
+				case LOCAL:
+					LocalJob localJob = new LocalJob(cmmd, null, memRequestGb);
+					jobs.add(localJob);
+					localJob.submit();
+					logger.info("Local job ID is " + localJob.getID());
+					cmmds.put(localJob.getID(), cmmd);
+					break;
 				default:
 					throw new IllegalStateException("Case fall through in switch on scheduler value");
 				}
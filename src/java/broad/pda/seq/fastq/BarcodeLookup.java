@@ -0,0 +1,145 @@
+package broad.pda.seq.fastq;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns observed barcodes to a list of expected barcodes
+ * With mismatches allowed, every sequence one substitution (including N) away from an expected barcode is precomputed, so a read costs a single table lookup
+ * Sequences within one substitution of two expected barcodes are ambiguous and not assigned
+ */
+public class BarcodeLookup {
+
+	/**
+	 * Returned for a barcode that matches no expected barcode
+	 */
+	public static final int NO_MATCH = -1;
+	/**
+	 * Returned for a barcode within one mismatch of several expected barcodes
+	 */
+	public static final int AMBIGUOUS = -2;
+	/**
+	 * Longest barcode that can be packed in a long
+	 */
+	public static final int MAX_PACKED_LENGTH = 19;
+
+	private static final String BASES = "ACGTN";
+	private static final int LENGTH_SHIFT = 3 * MAX_PACKED_LENGTH;
+
+	private LongIntHashMap packedTable = new LongIntHashMap();
+	// Barcodes that cannot be packed are looked up by their string
+	private Map<String, Integer> stringTable = new HashMap<String, Integer>();
+	private List<String> barcodes;
+
+	/**
+	 * @param expectedBarcodes Expected barcodes, the index of a barcode in this list is returned by lookup
+	 * @param allowMismatch Whether to assign barcodes with one mismatch
+	 */
+	public BarcodeLookup(List<String> expectedBarcodes, boolean allowMismatch) {
+		barcodes = expectedBarcodes;
+		Map<String, Integer> table = new HashMap<String, Integer>();
+		if(allowMismatch) {
+			for(int i = 0; i < barcodes.size(); i++) {
+				char[] variant = barcodes.get(i).toUpperCase().toCharArray();
+				for(int j = 0; j < variant.length; j++) {
+					char base = variant[j];
+					for(int k = 0; k < BASES.length(); k++) {
+						if(BASES.charAt(k) == base) continue;
+						variant[j] = BASES.charAt(k);
+						String key = new String(variant);
+						Integer other = table.get(key);
+						table.put(key, other == null || other.intValue() == i ? i : AMBIGUOUS);
+					}
+					variant[j] = base;
+				}
+			}
+		}
+		// Exact matches win over mismatches to another barcode
+		Map<String, Integer> exact = new HashMap<String, Integer>();
+		for(int i = 0; i < barcodes.size(); i++) {
+			String key = barcodes.get(i).toUpperCase();
+			if(exact.put(key, i) != null) {
+				throw new IllegalArgumentException("Barcode " + key + " is listed twice");
+			}
+		}
+		table.putAll(exact);
+		for(Map.Entry<String, Integer> entry : table.entrySet()) {
+			byte[] bytes = entry.getKey().getBytes();
+			long packed = pack(bytes, 0, bytes.length);
+			if(packed >= 0) {
+				packedTable.put(packed, entry.getValue());
+			} else {
+				stringTable.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param bytes Bytes holding the observed barcode
+	 * @param offset Start of the barcode
+	 * @param length Length of the barcode
+	 * @return Index of the assigned barcode, NO_MATCH or AMBIGUOUS
+	 */
+	public int lookup(byte[] bytes, int offset, int length) {
+		long packed = pack(bytes, offset, length);
+		if(packed >= 0) {
+			return packedTable.get(packed, NO_MATCH);
+		}
+		if(stringTable.isEmpty()) {
+			return NO_MATCH;
+		}
+		Integer rtrn = stringTable.get(new String(bytes, offset, length).toUpperCase());
+		return rtrn == null ? NO_MATCH : rtrn;
+	}
+
+	/**
+	 * @param index Index returned by lookup
+	 * @return The expected barcode
+	 */
+	public String getBarcode(int index) {
+		return barcodes.get(index);
+	}
+
+	/**
+	 * Pack a sequence of A, C, G, T and N, in either case, three bits per base together with its length
+	 * @param bytes Bytes holding the sequence
+	 * @param offset Start of the sequence
+	 * @param length Length of the sequence
+	 * @return The packed sequence, or -1 if it is too long or has other characters
+	 */
+	public static long pack(byte[] bytes, int offset, int length) {
+		if(length > MAX_PACKED_LENGTH) {
+			return -1;
+		}
+		long packed = 0;
+		for(int i = offset; i < offset + length; i++) {
+			int code;
+			switch(bytes[i]) {
+			case 'A': case 'a': code = 0; break;
+			case 'C': case 'c': code = 1; break;
+			case 'G': case 'g': code = 2; break;
+			case 'T': case 't': code = 3; break;
+			case 'N': case 'n': code = 4; break;
+			default: return -1;
+			}
+			packed = (packed << 3) | code;
+		}
+		return packed | ((long) length << LENGTH_SHIFT);
+	}
+
+	/**
+	 * @param packed Sequence packed by pack
+	 * @return The sequence in upper case
+	 */
+	public static String unpack(long packed) {
+		int length = (int) (packed >>> LENGTH_SHIFT);
+		char[] rtrn = new char[length];
+		for(int i = length - 1; i >= 0; i--) {
+			rtrn[i] = BASES.charAt((int) (packed & 7));
+			packed >>>= 3;
+		}
+		return new String(rtrn);
+	}
+
+}
@@ -0,0 +1,310 @@
+package broad.pda.seq.fastq;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import nextgen.core.writers.ParallelBGZFOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Splits a fastq file by barcode in a single pass, working on the bytes of each record without parsing it into strings
+ * The barcode is read from the read name (after # and up to /) or from the sequence of a separate index fastq file
+ * Barcodes are assigned with a BarcodeLookup, so one mismatch can be allowed at no extra cost per read
+ * Input files may be gzipped, and gzipped outputs are written as BGZF blocks compressed on several threads
+ * Counts of the observed barcodes are kept as records are written
+ */
+public class FastqDemultiplexer {
+
+	static Logger logger = Logger.getLogger(FastqDemultiplexer.class.getName());
+
+	/**
+	 * Name of the output for reads that match no barcode
+	 */
+	public static final String REMAINDER = "remainder";
+	/**
+	 * Barcode counted for reads without a barcode in their name
+	 */
+	public static final String NO_BARCODE = "NA";
+
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int BLOCKS_IN_FLIGHT_PER_OUTPUT = 4;
+
+	private BarcodeLookup lookup;
+	// Output of each expected barcode, the remainder is last
+	private int[] barcodeOutput;
+	private List<String> outputNames = new ArrayList<String>();
+	private OutputStream[] outputs;
+	private ExecutorService executor = null;
+	private LongIntHashMap packedCounts = new LongIntHashMap();
+	private Map<String, Integer> otherCounts = new HashMap<String, Integer>();
+	private long numReads = 0;
+	private long numAssigned = 0;
+	private long numAmbiguous = 0;
+
+	/**
+	 * @param samplesByBarcode Sample name of each barcode, several barcodes can go to the same sample
+	 * @param allowMismatch Whether to assign barcodes with one mismatch
+	 * @param outDir Directory of the output files, named after the samples
+	 * @param gzip Whether to gzip the outputs
+	 * @param numThreads Number of threads compressing the outputs
+	 * @throws IOException
+	 */
+	public FastqDemultiplexer(Map<String, String> samplesByBarcode, boolean allowMismatch, File outDir, boolean gzip, int numThreads) throws IOException {
+		List<String> barcodes = new ArrayList<String>(samplesByBarcode.keySet());
+		lookup = new BarcodeLookup(barcodes, allowMismatch);
+		Map<String, Integer> sampleOutputs = new LinkedHashMap<String, Integer>();
+		barcodeOutput = new int[barcodes.size()];
+		for(int i = 0; i < barcodes.size(); i++) {
+			String sample = samplesByBarcode.get(barcodes.get(i));
+			if(!sampleOutputs.containsKey(sample)) {
+				sampleOutputs.put(sample, sampleOutputs.size());
+			}
+			barcodeOutput[i] = sampleOutputs.get(sample);
+		}
+		outputNames.addAll(sampleOutputs.keySet());
+		outputNames.add(REMAINDER);
+
+		if(gzip && numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fastq-compression");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		outputs = new OutputStream[outputNames.size()];
+		for(int i = 0; i < outputs.length; i++) {
+			File file = new File(outDir, outputNames.get(i) + (gzip ? ".fq.gz" : ".fq"));
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+			if(gzip) {
+				out = executor == null ? new ParallelBGZFOutputStream(out, 1) : new ParallelBGZFOutputStream(out, executor, BLOCKS_IN_FLIGHT_PER_OUTPUT, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+			}
+			outputs[i] = out;
+		}
+	}
+
+	/**
+	 * Write each record of the fastq file to the output of its barcode and close the outputs
+	 * @param fastq Reads to split
+	 * @param indexFastq Index reads in the same order as the reads, or null to take the barcode from the read names
+	 * @throws IOException
+	 */
+	public void split(File fastq, File indexFastq) throws IOException {
+		RecordReader reader = new RecordReader(FastqParser.openInputStream(fastq));
+		RecordReader indexReader = indexFastq == null ? null : new RecordReader(FastqParser.openInputStream(indexFastq));
+		try {
+			while(reader.next()) {
+				int start;
+				int end;
+				if(indexReader == null) {
+					start = reader.lineStart[0];
+					int headerEnd = reader.lineEnd[0];
+					while(start < headerEnd && reader.record[start] != '#') start++;
+					start++;
+					end = start;
+					while(end < headerEnd && reader.record[end] != '#' && reader.record[end] != '/') end++;
+					if(start > headerEnd) {
+						count(null, 0, 0);
+						write(outputs.length - 1, reader);
+						continue;
+					}
+				} else {
+					if(!indexReader.next()) {
+						throw new IllegalArgumentException("Index file " + indexFastq + " has fewer records than " + fastq);
+					}
+					if(!sameName(reader, indexReader)) {
+						throw new IllegalArgumentException("Indexes and Reads");
+					}
+					start = indexReader.lineStart[1];
+					end = indexReader.lineEnd[1];
+				}
+				byte[] bytes = indexReader == null ? reader.record : indexReader.record;
+				count(bytes, start, end);
+				int barcode = lookup.lookup(bytes, start, end - start);
+				if(barcode >= 0) {
+					numAssigned++;
+					write(barcodeOutput[barcode], reader);
+				} else {
+					if(barcode == BarcodeLookup.AMBIGUOUS) numAmbiguous++;
+					write(outputs.length - 1, reader);
+				}
+				if(numReads % 10000000 == 0) {
+					logger.info(numReads + " reads split");
+				}
+			}
+		} finally {
+			reader.close();
+			if(indexReader != null) indexReader.close();
+			close();
+		}
+		logger.info("Split " + numReads + " reads: " + numAssigned + " assigned to a barcode, " + numAmbiguous + " ambiguous");
+	}
+
+	/**
+	 * @return Number of reads of each observed barcode
+	 */
+	public Map<String, Integer> getBarcodeCounts() {
+		Map<String, Integer> rtrn = new HashMap<String, Integer>(otherCounts);
+		for(long key : packedCounts.keys()) {
+			rtrn.put(BarcodeLookup.unpack(key), packedCounts.get(key, 0));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Names of the outputs, the last one is REMAINDER
+	 */
+	public List<String> getOutputNames() {
+		return outputNames;
+	}
+
+	private void count(byte[] bytes, int start, int end) {
+		numReads++;
+		long packed = bytes == null ? -1 : BarcodeLookup.pack(bytes, start, end - start);
+		if(packed >= 0) {
+			packedCounts.add(packed, 1);
+		} else {
+			String barcode = bytes == null ? NO_BARCODE : new String(bytes, start, end - start);
+			Integer count = otherCounts.get(barcode);
+			otherCounts.put(barcode, count == null ? 1 : count + 1);
+		}
+	}
+
+	private void write(int output, RecordReader reader) throws IOException {
+		outputs[output].write(reader.record, 0, reader.recordLength);
+	}
+
+	private void close() throws IOException {
+		try {
+			for(OutputStream out : outputs) {
+				out.close();
+			}
+		} finally {
+			if(executor != null) executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return True if the names of the current records are the same up to the first space, ignoring case
+	 */
+	private static boolean sameName(RecordReader reader, RecordReader indexReader) {
+		int i = reader.lineStart[0];
+		int j = indexReader.lineStart[0];
+		while(true) {
+			boolean readDone = i == reader.lineEnd[0] || reader.record[i] == ' ';
+			boolean indexDone = j == indexReader.lineEnd[0] || indexReader.record[j] == ' ';
+			if(readDone || indexDone) return readDone && indexDone;
+			if(Character.toUpperCase((char) reader.record[i]) != Character.toUpperCase((char) indexReader.record[j])) return false;
+			i++;
+			j++;
+		}
+	}
+
+	/**
+	 * Reads fastq records as bytes, keeping the four lines of the current record each followed by a newline
+	 */
+	static class RecordReader {
+		private InputStream in;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int bufferPosition = 0;
+		private int bufferLength = 0;
+		byte[] record = new byte[1024];
+		int recordLength = 0;
+		// Start and end, without the newline, of each line in record
+		int[] lineStart = new int[4];
+		int[] lineEnd = new int[4];
+
+		RecordReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return False if there are no more records
+		 * @throws IOException
+		 */
+		boolean next() throws IOException {
+			recordLength = 0;
+			// Skip blank lines between records
+			do {
+				if(!readLine(0)) return false;
+			} while(lineEnd[0] == lineStart[0]);
+			for(int line = 1; line < 4; line++) {
+				if(!readLine(line)) {
+					throw new IOException("Truncated fastq record " + new String(record, lineStart[0], lineEnd[0] - lineStart[0]));
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Append the next line to the record, replacing it if it is the first line
+		 */
+		private boolean readLine(int line) throws IOException {
+			if(line == 0) recordLength = 0;
+			lineStart[line] = recordLength;
+			boolean any = false;
+			while(true) {
+				if(bufferPosition == bufferLength) {
+					bufferLength = in.read(buffer);
+					bufferPosition = 0;
+					if(bufferLength <= 0) {
+						bufferLength = 0;
+						if(!any) return false;
+						break;
+					}
+				}
+				any = true;
+				int newline = bufferPosition;
+				while(newline < bufferLength && buffer[newline] != '\n') newline++;
+				append(buffer, bufferPosition, newline - bufferPosition);
+				if(newline < bufferLength) {
+					bufferPosition = newline + 1;
+					break;
+				}
+				bufferPosition = bufferLength;
+			}
+			int end = recordLength;
+			if(end > lineStart[line] && record[end - 1] == '\r') end--;
+			lineEnd[line] = end;
+			recordLength = end;
+			ensureCapacity(1);
+			record[recordLength++] = '\n';
+			return true;
+		}
+
+		private void append(byte[] bytes, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(bytes, offset, record, recordLength, length);
+			recordLength += length;
+		}
+
+		private void ensureCapacity(int length) {
+			if(recordLength + length > record.length) {
+				byte[] larger = new byte[Math.max(record.length * 2, recordLength + length)];
+				System.arraycopy(record, 0, larger, 0, recordLength);
+				record = larger;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+}
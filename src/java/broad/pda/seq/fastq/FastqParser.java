@@ -2,6 +2,7 @@ package broad.pda.seq.fastq;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 
@@ -31,12 +32,31 @@ public class FastqParser implements Iterator<FastqSequence>{
 		super();
 	}
 	
-	public void start(File fastqParser) throws FileNotFoundException {
+	public void start(File fastqParser) throws IOException {
 		this.fastqFile = fastqParser;
-		reader=new BufferedReader(new InputStreamReader(new FileInputStream(fastqFile)));
+		reader=new BufferedReader(new InputStreamReader(openInputStream(fastqFile)));
 		done=false;
 	}
 	
+	/**
+	 * Open a fastq file, decompressing it if it is gzipped
+	 * Gzipped files are recognized by their first bytes, so they do not need a .gz extension
+	 * @param fastqFile File to open
+	 * @return Stream of the uncompressed file
+	 * @throws IOException
+	 */
+	public static InputStream openInputStream(File fastqFile) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fastqFile), 1 << 16);
+		in.mark(2);
+		int first = in.read();
+		int second = in.read();
+		in.reset();
+		if(first == 0x1f && second == 0x8b) {
+			return new GZIPInputStream(in, 1 << 16);
+		}
+		return in;
+	}
+	
 	public void start (BufferedReader br) {
 		reader=br;
 		done=false;
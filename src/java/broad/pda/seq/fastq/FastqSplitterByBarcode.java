@@ -9,10 +9,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.broad.igv.Globals;
@@ -23,15 +23,17 @@ import broad.core.util.CLUtil.ArgumentMap;
 /**
  * Reads through a fastq file and writes records to different files depending on 
  * the barcode found within the start or end of the read. Reads are trimmed to remove
- * the barcode.
+ * the barcode. Reads of a barcode are held in memory until the barcode has
+ * minReadsToOutput reads, so reads of rare barcodes are never written. If more than
+ * maxPendingReads reads are held, they are dropped and the reads of barcodes that
+ * were not written yet are written in a second pass over the file.
  * @author mgarber
  *
  */
 public class FastqSplitterByBarcode {
 	static Logger logger = Logger.getLogger(FastqSplitterByBarcode.class.getName());
-	static private Pattern nameBarcodePattern = Pattern.compile("#[A,C,G,T,N]+");
-	//static private Pattern endOfReadMamePairInfo = Pattern.compile("\\(/[0-9]+$\\)");
-	static private Pattern endOfReadMamePairInfo = Pattern.compile("(/[0-9]+$)");
+	
+	static final int DEFAULT_MAX_PENDING_READS = 1000000;
 	
 	static final String USAGE = "FastqSplitterByBarcode. Reads a fastq file and writes reads to \ndifferent files depending on their barcode: " +
 			"\n\t-in <Path to the fastq file (NO standard input is supported must input a file paht)>" +
@@ -44,37 +46,62 @@ public class FastqSplitterByBarcode {
 			"\n\t-addToReadName <Add this flag if the trimmed sequence from the second read should added to the read name's end after a _BC_ separator>" +
 			"\n\t-outdir2 <Ouput directory for split files of paired read if not the same as outdir>" +
 			"\n\t-minReadsToOutput <Minimum number of reads associated to a barcode in order to output its reads> " +
+			"\n\t-maxPendingReads <Maximum number of reads of barcodes below minReadsToOutput held in memory before falling back to a second pass over the file. Default " + DEFAULT_MAX_PENDING_READS + ">" +
 			"\n";
 	
+	private boolean atEnd;
+	private int toTrim;
+	private boolean isPaired;
+	private File pair1File;
+	private File pair2File;
+	private int toTrim2;
+	private boolean atEnd2;
+	private int minReads;
+	private int maxPendingReads;
+	private boolean addTrimm2ToReadName;
+	private String outdir;
+	private String outdir2;
+	private String baseOutName;
+	
+	private BarcodeInformation bcInfo;
+	private Map<String, BufferedWriter> bcOutMap = new HashMap<String, BufferedWriter>(); 
+	private Map<String, BufferedWriter> bcOutMapP2 = new HashMap<String, BufferedWriter>(); 
+	
 	public static void main (String [] args) throws Exception {
 		Globals.setHeadless(true);
 		ArgumentMap argMap = CLUtil.getParameters(args,USAGE , "splitfile");
 		
-		boolean atEnd = argMap.containsKey("atEnd");
-		int toTrim    = argMap.getInteger("bcsize");
-		boolean isPaired = argMap.containsKey("pair2File");
-		File pair1File = new File(argMap.getInput());
-		int toTrim2  = argMap.containsKey("toTrimSecondRead") ?argMap.getInteger("toTrimSecondRead") :0;
-		boolean atEnd2 = argMap.containsKey("atEndOfSecondRead");
-		int minReads = argMap.getInteger("minReadsToOutput");
-		boolean addTrimm2ToReadName =  argMap.containsKey("addToReadName");
-		String outdir = argMap.getOutputDir();
-		String outdir2 = argMap.containsKey("outdir2") ? argMap.get("outdir2") : outdir;
-		FastqParser fqparser = new FastqParser();
-		FastqParser pairFQParser = new FastqParser();
-		
-		BarcodeInformation bcInfo = generateBCReport(pair1File, toTrim, atEnd, minReads);
-		bcInfo.write(pair1File.getAbsolutePath() + ".bc.report");
+		FastqSplitterByBarcode splitter = new FastqSplitterByBarcode();
+		splitter.atEnd = argMap.containsKey("atEnd");
+		splitter.toTrim    = argMap.getInteger("bcsize");
+		splitter.isPaired = argMap.containsKey("pair2File");
+		splitter.pair1File = new File(argMap.getInput());
+		splitter.pair2File = splitter.isPaired ? new File(argMap.getMandatory("pair2File")) : null;
+		splitter.toTrim2  = argMap.containsKey("toTrimSecondRead") ?argMap.getInteger("toTrimSecondRead") :0;
+		splitter.atEnd2 = argMap.containsKey("atEndOfSecondRead");
+		splitter.minReads = argMap.getInteger("minReadsToOutput");
+		splitter.maxPendingReads = argMap.containsKey("maxPendingReads") ? argMap.getInteger("maxPendingReads") : DEFAULT_MAX_PENDING_READS;
+		splitter.addTrimm2ToReadName =  argMap.containsKey("addToReadName");
+		splitter.outdir = argMap.getOutputDir();
+		splitter.outdir2 = argMap.containsKey("outdir2") ? argMap.get("outdir2") : splitter.outdir;
+		splitter.split();
+	}
+	
+	private void split() throws IOException {
+		// Barcodes are counted while splitting, reads of a barcode are held until it has enough reads to be written
+		bcInfo = new BarcodeInformation(minReads);
+		Map<String, List<FastqSequence[]>> pendingReads = new HashMap<String, List<FastqSequence[]>>();
+		int numPending = 0;
+		boolean secondPass = false;
 		
-		String baseOutName = pair1File.getName().replace(".fq", "");
+		baseOutName = pair1File.getName().replace(".fq", "");
 		
+		FastqParser fqparser = new FastqParser();
+		FastqParser pairFQParser = new FastqParser();
 		if(isPaired) {
-			pairFQParser.start(new File(argMap.getMandatory("pair2File")));
+			pairFQParser.start(pair2File);
 		}
-		
 		fqparser.start(pair1File);
-		Map<String, BufferedWriter> bcOutMap = new HashMap<String, BufferedWriter>(); 
-		Map<String, BufferedWriter> bcOutMapP2 = new HashMap<String, BufferedWriter>(); 
 		int numReads = 0;
 		while(fqparser.hasNext()) {
 			FastqSequence fs = fqparser.next();
@@ -89,76 +116,53 @@ public class FastqSplitterByBarcode {
 			
 			String nameBC = getNameBarcode(fs);
 			numReads++;
-			FastqSequence trimmed = atEnd ? fs.trimEndBases(toTrim) : fs.trimStartBases(toTrim);
-			String bc = trimmed.getSequence();
+			String bc = trim(fs, pairedFs);
+			bcInfo.add(nameBC, bc);
+			String jointBC = toTrim > 0 ? nameBC+"_"+bc : nameBC;
 			
 			if(bcInfo.getInnerBarcodeTotalReads(nameBC, bc) < minReads) {
-				//logger.debug("read with barcodes " + nameBC + " --- " + bc + " had only "+ bcInfo.getInnerBarcodeTotalReads(nameBC, bc) + " reads. IGNORING");
+				if(secondPass) continue;
+				List<FastqSequence[]> pending = pendingReads.get(jointBC);
+				if(pending == null) {
+					pending = new ArrayList<FastqSequence[]>();
+					pendingReads.put(jointBC, pending);
+				}
+				pending.add(new FastqSequence[] {fs, pairedFs});
+				numPending++;
+				if(numPending > maxPendingReads) {
+					// Barcodes with writers have all their reads written so far, the others are written in a second pass
+					logger.info("More than " + maxPendingReads + " reads of barcodes with fewer than " + minReads + " reads, reads of barcodes not written yet will be written in a second pass");
+					pendingReads.clear();
+					numPending = 0;
+					secondPass = true;
+				}
 				continue;
 			}
-			String jointBC = toTrim > 0 ? nameBC+"_"+bc : nameBC;
+			
 			BufferedWriter bcBW = bcOutMap.get(jointBC);
-			BufferedWriter bcBWP2 = bcOutMapP2.get(jointBC); 
 			if(bcBW == null) {
-				String fileName = "/"+ baseOutName + "."+jointBC + ".fq";
-				String out1Name =  outdir + fileName;
-				logger.info("new barcode found, opening " + out1Name + " for writting");
-				bcBW = new BufferedWriter(new FileWriter(out1Name));
-				bcOutMap.put(jointBC, bcBW);
-				if(isPaired) {
-					String out2Name = outdir2 + fileName;
-					logger.info("opening " + out2Name + " for writting paired reads");
-					bcBWP2 = new BufferedWriter(new FileWriter(out2Name));
-					bcOutMapP2.put(jointBC, bcBWP2);					
-				}
-			}
-			
-			if(isPaired) {
-				FastqSequence trimmed2 = atEnd2 ? pairedFs.trimEndBases(toTrim2) : pairedFs.trimStartBases(toTrim2);
-				if(addTrimm2ToReadName) {
-					String prefix = "_BC_".intern();
-					Matcher m = endOfReadMamePairInfo.matcher(fs.getName());
-					//logger.debug("Could find pattern? " + m.find());
-					String newP1Name = m.replaceAll(prefix+trimmed2.getSequence()+"$1");
-					fs.setName(newP1Name);
-
-					m = endOfReadMamePairInfo.matcher(fs.getDescription());
-					String newP1Descr = m.replaceAll(prefix+trimmed2.getSequence()+"$1");
-					fs.setDescription(newP1Descr);
-					
-					m = endOfReadMamePairInfo.matcher(pairedFs.getName());
-					String newP2Name = m.replaceAll(prefix+trimmed2.getSequence()+"$1");
-					pairedFs.setName(newP2Name);
-					
-					m = endOfReadMamePairInfo.matcher(pairedFs.getDescription());
-					String newP2Descr = m.replaceAll(prefix+trimmed2.getSequence()+"$1");
-					pairedFs.setDescription(newP2Descr);
+				if(secondPass) continue;
+				bcBW = openWriters(jointBC);
+				// The barcode just reached the minimum number of reads, write the reads held so far
+				List<FastqSequence[]> pending = pendingReads.remove(jointBC);
+				if(pending != null) {
+					for(FastqSequence[] pair : pending) {
+						write(pair[0], pair[1], bcBW, bcOutMapP2.get(jointBC));
+					}
+					numPending -= pending.size();
 				}
-				pairedFs.write(bcBWP2);
-				bcBWP2.newLine();
 			}
-			fs.write(bcBW);
-			bcBW.newLine();
+			write(fs, pairedFs, bcBW, bcOutMapP2.get(jointBC));
 			
 			if(numReads % 500000 == 0) {
 				logger.info(numReads + " processed");
 			}
 		}
+		bcInfo.write(pair1File.getAbsolutePath() + ".bc.report");
+		close(fqparser, pairFQParser);
 		
-		try {
-			logger.debug("closing source fastq file");
-			fqparser.close();
-		} catch (IOException e){
-			logger.error("Could not close source fastq file ",e);
-		}
-		
-		if(isPaired) {
-			try {
-				logger.debug("closing source paired fastq file");
-				pairFQParser.close();
-			} catch (IOException e){
-				logger.error("Could not close source paired source file ",e);
-			}
+		if(secondPass) {
+			writeSecondPass();
 		}
 		
 		for(String bc : bcOutMap.keySet()) {
@@ -174,48 +178,135 @@ public class FastqSplitterByBarcode {
 			}
 		}
 	}
-
-	private static BarcodeInformation generateBCReport(File fqf, int innerBarcodeSize, boolean innerBCAtEnd, int minReadsToReport) throws IOException {
+	
+	/**
+	 * Read the files again and write the reads of barcodes with enough reads that had no writer at the end of the first pass
+	 */
+	private void writeSecondPass() throws IOException {
+		Set<String> written = new HashSet<String>(bcOutMap.keySet());
 		FastqParser fqparser = new FastqParser();
-		BarcodeInformation bi = new BarcodeInformation(minReadsToReport);
-		fqparser.start(fqf);
+		FastqParser pairFQParser = new FastqParser();
+		if(isPaired) {
+			pairFQParser.start(pair2File);
+		}
+		fqparser.start(pair1File);
 		int numReads = 0;
 		while(fqparser.hasNext()) {
 			FastqSequence fs = fqparser.next();
-			if(fs == null) {
-				logger.info("Null fastqsequence at record " + bi.totalReads());
-				continue;
+			FastqSequence pairedFs = null;
+			if(isPaired) {
+				pairedFs = pairFQParser.next();
 			}
+			if(fs == null) continue;
 			numReads++;
 			String nameBC = getNameBarcode(fs);
-			String bc = "NA";
-			if(innerBarcodeSize > 0 ) {
-				FastqSequence bcSeq = innerBCAtEnd ? fs.trimEndBases(innerBarcodeSize) : fs.trimStartBases(innerBarcodeSize);
-				bc = bcSeq.getSequence();
+			String bc = trim(fs, pairedFs);
+			String jointBC = toTrim > 0 ? nameBC+"_"+bc : nameBC;
+			if(written.contains(jointBC) || bcInfo.getInnerBarcodeTotalReads(nameBC, bc) < minReads) continue;
+			BufferedWriter bcBW = bcOutMap.get(jointBC);
+			if(bcBW == null) {
+				bcBW = openWriters(jointBC);
 			}
-			bi.add(nameBC, bc);
-			if(numReads % 5000000 == 0) {
-				logger.debug(numReads + " processed for report");
+			write(fs, pairedFs, bcBW, bcOutMapP2.get(jointBC));
+			if(numReads % 500000 == 0) {
+				logger.info(numReads + " processed in second pass");
 			}
-			
-		}		
-		fqparser.close();
-		return bi;
+		}
+		close(fqparser, pairFQParser);
+	}
+	
+	/**
+	 * Trim the second read and add its trimmed bases to the read names if requested
+	 * @return The barcode at the start or end of the first read, or NA if there is none
+	 */
+	private String trim(FastqSequence fs, FastqSequence pairedFs) {
+		FastqSequence trimmed = atEnd ? fs.trimEndBases(toTrim) : fs.trimStartBases(toTrim);
+		String bc = toTrim > 0 ? trimmed.getSequence() : "NA";
+		if(isPaired) {
+			FastqSequence trimmed2 = atEnd2 ? pairedFs.trimEndBases(toTrim2) : pairedFs.trimStartBases(toTrim2);
+			if(addTrimm2ToReadName) {
+				String toAdd = "_BC_" + trimmed2.getSequence();
+				fs.setName(addBeforePairInfo(fs.getName(), toAdd));
+				fs.setDescription(addBeforePairInfo(fs.getDescription(), toAdd));
+				pairedFs.setName(addBeforePairInfo(pairedFs.getName(), toAdd));
+				pairedFs.setDescription(addBeforePairInfo(pairedFs.getDescription(), toAdd));
+			}
+		}
+		return bc;
+	}
+	
+	private BufferedWriter openWriters(String jointBC) throws IOException {
+		String fileName = "/"+ baseOutName + "."+jointBC + ".fq";
+		String out1Name =  outdir + fileName;
+		logger.info("new barcode found, opening " + out1Name + " for writting");
+		BufferedWriter bcBW = new BufferedWriter(new FileWriter(out1Name));
+		bcOutMap.put(jointBC, bcBW);
+		if(isPaired) {
+			String out2Name = outdir2 + fileName;
+			logger.info("opening " + out2Name + " for writting paired reads");
+			bcOutMapP2.put(jointBC, new BufferedWriter(new FileWriter(out2Name)));
+		}
+		return bcBW;
+	}
+	
+	private void close(FastqParser fqparser, FastqParser pairFQParser) {
+		try {
+			logger.debug("closing source fastq file");
+			fqparser.close();
+		} catch (IOException e){
+			logger.error("Could not close source fastq file ",e);
+		}
+		
+		if(isPaired) {
+			try {
+				logger.debug("closing source paired fastq file");
+				pairFQParser.close();
+			} catch (IOException e){
+				logger.error("Could not close source paired source file ",e);
+			}
+		}
+	}
+
+	private static void write(FastqSequence fs, FastqSequence pairedFs, BufferedWriter bcBW, BufferedWriter bcBWP2) throws IOException {
+		if(pairedFs != null) {
+			pairedFs.write(bcBWP2);
+			bcBWP2.newLine();
+		}
+		fs.write(bcBW);
+		bcBW.newLine();
 	}
 
-	private static String getNameBarcode(FastqSequence fs) {
+	/**
+	 * @return The bases following the first # in the read name that is followed by barcode characters, or NA
+	 */
+	static String getNameBarcode(FastqSequence fs) {
 		String name = fs.getName();
-		String bc = "NA";
-		Matcher m = nameBarcodePattern.matcher(name);
-		//logger.debug("read name: " + name);
-		if(m.find()) {
-			//logger.debug("read matched, extracting (" +m.start()+1 +","+m.end()+")");
-			bc = name.substring(m.start()+1, m.end());
-			//logger.debug("bc: " + bc);
-		} else {
-			//logger.debug("read did not match");
+		int start = name.indexOf('#');
+		while(start >= 0) {
+			int end = start + 1;
+			while(end < name.length() && isNameBarcodeChar(name.charAt(end))) end++;
+			if(end > start + 1) {
+				return name.substring(start + 1, end);
+			}
+			start = name.indexOf('#', end);
 		}
-		return bc;
+		return "NA";
+	}
+	
+	private static boolean isNameBarcodeChar(char c) {
+		return c == 'A' || c == 'C' || c == 'G' || c == 'T' || c == 'N' || c == ',';
+	}
+	
+	/**
+	 * @return The name with toAdd inserted before its trailing /[0-9]+, or the name unchanged if it has none
+	 */
+	static String addBeforePairInfo(String name, String toAdd) {
+		int digits = name.length();
+		while(digits > 0 && Character.isDigit(name.charAt(digits - 1))) digits--;
+		if(digits == name.length() || digits == 0 || name.charAt(digits - 1) != '/') {
+			return name;
+		}
+		return name.substring(0, digits - 1) + toAdd + name.substring(digits - 1);
 	}
 	
 	public static class BarcodeInformation {
@@ -0,0 +1,110 @@
+package broad.pda.seq.fastq;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative long keys to int values, used to count and look up packed barcodes without boxing
+ */
+class LongIntHashMap {
+
+	private static final long FREE = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	LongIntHashMap() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize Number of keys expected, the table grows beyond it as needed
+	 */
+	LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+	}
+
+	/**
+	 * @param key Non-negative key
+	 * @param missing Value returned if the key is not in the map
+	 * @return The value of the key
+	 */
+	int get(long key, int missing) {
+		int slot = find(key);
+		return keys[slot] == FREE ? missing : values[slot];
+	}
+
+	void put(long key, int value) {
+		int slot = find(key);
+		if(keys[slot] == FREE) {
+			keys[slot] = key;
+			if(++size * 2 > keys.length) {
+				values[slot] = value;
+				grow();
+				return;
+			}
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Add to the value of a key, which starts at 0
+	 */
+	void add(long key, int increment) {
+		int slot = find(key);
+		if(keys[slot] == FREE) {
+			put(key, increment);
+		} else {
+			values[slot] += increment;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return The keys in table order
+	 */
+	long[] keys() {
+		long[] rtrn = new long[size];
+		int i = 0;
+		for(long key : keys) {
+			if(key != FREE) rtrn[i++] = key;
+		}
+		return rtrn;
+	}
+
+	private int find(long key) {
+		if(key < 0) {
+			throw new IllegalArgumentException("Keys must be non-negative: " + key);
+		}
+		int mask = keys.length - 1;
+		// Spread the bits of packed sequences, whose low bits are often similar
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h >>> 32) & mask;
+		while(keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		Arrays.fill(keys, FREE);
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != FREE) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+}
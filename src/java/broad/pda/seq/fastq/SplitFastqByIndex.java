@@ -7,17 +7,14 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
 import broad.pda.annotation.BEDFileParser;
-//import broad.pda.rap.CountProbeKmers;
 
 import net.sf.picard.fastq.*;
 
@@ -25,66 +22,42 @@ import net.sf.picard.fastq.*;
 public class SplitFastqByIndex {
 
 	public SplitFastqByIndex(String fastq, String indexInfoFname, String index, String saveDir, boolean allowMismatch) throws IOException {
-		Map<String, FastqWriter> indexInfo=parseIndexInfo(indexInfoFname, saveDir, allowMismatch);
-		
-		FastqReader fq = new FastqReader(new File(fastq));
+		this(fastq, indexInfoFname, index, saveDir, allowMismatch, false, 1);
+	}
+	
+	/**
+	 * Split the fastq file in one pass, counting barcodes as reads are written
+	 * @param gzip Whether to gzip the split files
+	 * @param numThreads Number of threads compressing the split files
+	 */
+	public SplitFastqByIndex(String fastq, String indexInfoFname, String index, String saveDir, boolean allowMismatch, boolean gzip, int numThreads) throws IOException {
+		Map<String, String> indexInfo=parseIndexInfo(indexInfoFname);
 		
-		Map<String, Integer> barcodeCount;
-		if (index == null) {
-			barcodeCount = readAndWriteByBarcode(fq, indexInfo, allowMismatch);
-		} else {
-			FastqReader indexReader = new FastqReader(new File(index));
-			barcodeCount = readAndWriteByBarcodeSeparateIndexFile(fq, indexReader, indexInfo, allowMismatch);
-		}
+		FastqDemultiplexer demultiplexer = new FastqDemultiplexer(indexInfo, allowMismatch, new File(saveDir), gzip, numThreads);
+		demultiplexer.split(new File(fastq), index == null ? null : new File(index));
+		Map<String, Integer> barcodeCount = demultiplexer.getBarcodeCounts();
 
 		//writeBarcodeCount(saveDir+"/barcodeCount.txt", barcodeCount, false);
 		writeBarcodeCount(saveDir+"/barcodeCount.txt", barcodeCount, true);		
 	}
 
 	
-	private Map<String, FastqWriter> parseIndexInfo(String indexInfoFile, String saveDir, boolean allowMismatch) throws IOException {
-		Map<String, FastqWriter> rtrn=new HashMap<String, FastqWriter>();
+	/**
+	 * @return Sample name of each barcode in file order
+	 */
+	private Map<String, String> parseIndexInfo(String indexInfoFile) throws IOException {
+		Map<String, String> rtrn=new LinkedHashMap<String, String>();
 		
 		Collection<String> lines=BEDFileParser.loadList(indexInfoFile, true);
 		
-        final FastqWriterFactory factory = new FastqWriterFactory();
-		rtrn.put("remainder", factory.newWriter(new File(saveDir+"/remainder.fq")));
-		
 		for(String line: lines){
 			String[] tokens=line.split("\t");
-			String seq=tokens[0];
-			FastqWriter writer=factory.newWriter(new File(saveDir+"/"+tokens[1]+".fq"));
-			rtrn.put(seq, writer);
-			
-			// If we're allowing mismatches in the barcode, add degenerate sequences (e.g. for CAT add XAT, CXT, CAX)
-			if (allowMismatch) {
-				throw new UnsupportedOperationException("Need to copy back CountProbeKmers package from broad.pda.rap");
-				/*
-				Set<String> mismatchStrings = CountProbeKmers.getMismatchStrings(seq);
-				for (String str : mismatchStrings) {
-					rtrn.put(str, writer);
-				}
-				*/
-			}
+			rtrn.put(tokens[0], tokens[1]);
 		}
 
 		return rtrn;
 	}
 
-
-	private Map<String, Integer> readAndWriteByBarcode(FastqReader reader, Map<String, FastqWriter> indexInfo, boolean allowMismatch) throws IOException {
-		Map<String, Integer> barcodeCounter=new HashMap<String, Integer>();
-		
-		while (reader.hasNext()) {
-            final FastqRecord seq = reader.next();
-            String barcode = extractBarcodeFromFastq(seq);
-            
-            writeFastqRecord(seq, barcode, indexInfo, barcodeCounter, allowMismatch);
-	    }
-		closeAll(indexInfo);
-		return barcodeCounter;
-	}
-	
 	
 	public static String extractBarcodeFromFastq(FastqRecord record) {
 		String id = record.getReadHeader().split("#")[1];
@@ -92,65 +65,6 @@ public class SplitFastqByIndex {
 	}
 	
 	
-	private void writeFastqRecord(final FastqRecord seq, final String barcode, final Map<String, FastqWriter> indexInfo, Map<String, Integer> barcodeCounter, boolean allowMismatch) {
-    	FastqWriter writer;
-
-    	if (indexInfo.containsKey(barcode)) {
-    		writer = indexInfo.get(barcode);
-    	} else if (allowMismatch) {
-    		throw new UnsupportedOperationException("Need to copy back CountProbeKmers package from broad.pda.rap");
-    		/*
-    		Set<String> mismatchStrings = CountProbeKmers.getMismatchStrings(barcode);
-    		Set<String> intersection = new HashSet<String>(mismatchStrings);
-    		intersection.retainAll(indexInfo.keySet());
-    		if (intersection.isEmpty()) {
-    			writer = indexInfo.get("remainder");
-    		} else {
-    			writer = indexInfo.get(intersection.toArray()[0]);
-    		}
-    		*/
-    	} else {
-    		writer = indexInfo.get("remainder");
-    	}
-    	
-        writer.write(seq);
-        
-        int count = 0;
-        if (barcodeCounter.containsKey(barcode)) {
-        	count = barcodeCounter.get(barcode);
-        }
-        count++;
-        barcodeCounter.put(barcode, count);
-	}
-	
-	
-	private Map<String, Integer> readAndWriteByBarcodeSeparateIndexFile(FastqReader reader, FastqReader readerIndex, Map<String, FastqWriter> indexInfo, boolean allowMismatch) throws IOException {
-		Map<String, Integer> barcodeCounter=new HashMap<String, Integer>();
-		
-		while (reader.hasNext() && readerIndex.hasNext()) {
-            final FastqRecord seq = reader.next();
-            final FastqRecord index = readerIndex.next();
-            final String barcode = index.getReadString();
-            
-        	if(!seq.getReadHeader().split(" ")[0].equalsIgnoreCase(index.getReadHeader().split(" ")[0])){
-        		throw new IllegalArgumentException("Indexes and Reads");
-        	}
-        	
-            writeFastqRecord(seq, barcode, indexInfo, barcodeCounter, allowMismatch);
-	    }
-		 closeAll(indexInfo);
-		 return barcodeCounter;
-	}
-	
-	
-	private void closeAll(Map<String, FastqWriter> indexInfo) throws IOException {
-		for(String barcode: indexInfo.keySet()){
-			FastqWriter writer=indexInfo.get(barcode);
-			writer.close();
-		}
-	}
-	
-
 	/*
 	private Map<String, Integer> countBarcodes(File indexFastq) throws IOException{
 		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(indexFastq)));
@@ -201,7 +115,8 @@ public class SplitFastqByIndex {
 	
 	private static String USAGE="\n\nSplitFastqByIndex supports two file formats: one where indices are contained in a separate fastq file (old MiSeq format), and one where the indices are contained inline in the FASTQ file (i.e. HiSeq from Koch Institute).\n\n"+
 								"\tjava -jar SplitFastqByIndex -in <fastq> -outdir <output directory> -indexInfo <tab-delimited file: barcodes in col1 and sample in col2, with a header row>\n"+
-								"\t\t[-index <index fastq file>] [-allowMismatch]\n\n";
+								"\t\t[-index <index fastq file>] [-allowMismatch] [-gzip] [-numThreads <threads compressing the split files>]\n\n"+
+								"\tInputs can be gzipped. With -allowMismatch, barcodes with one mismatch to a single sample barcode are assigned to that sample.\n\n";
 		
 	public static void main(String[] args)throws IOException{
 		ArgumentMap argmap = CLUtil.getParameters(args, USAGE, "full");
@@ -210,6 +125,8 @@ public class SplitFastqByIndex {
 		String indexInfo = argmap.getMandatory("indexInfo");
 		String index = argmap.containsKey("index") ? argmap.getMandatory("index") : null;
 		boolean allowMismatch = argmap.containsKey("allowMismatch");
-		new SplitFastqByIndex(fastq, indexInfo, index, out, allowMismatch);
+		boolean gzip = argmap.containsKey("gzip");
+		int numThreads = argmap.getInteger("numThreads", 1);
+		new SplitFastqByIndex(fastq, indexInfo, index, out, allowMismatch, gzip, numThreads);
 	}
 }
@@ -255,6 +255,21 @@ public class MultiSampleScanPeakCaller implements PeakCaller {
 		useBinomialScore = binomialScore;
 	}
 	
+	/**
+	 * Read window scores of each sample from a binary window score file in the directory, writing the files that are missing or out of date
+	 * @param directory Directory of window score files
+	 * @throws IOException
+	 */
+	public void useWindowScoreFiles(String directory) throws IOException {
+		File dir = new File(directory);
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Could not make directory " + directory);
+		}
+		for(SampleData sample : allSamples) {
+			sample.useWindowScoreFile(directory);
+		}
+	}
+	
 	/**
 	 * Set cutoff for the percentage of fragments overlapping a peak that come from the most common replicate fragment
 	 * @param maxPct The max percentage
@@ -1381,6 +1396,7 @@ public class MultiSampleScanPeakCaller implements PeakCaller {
 		p.addBooleanArg("-sf", "Apply strand filter using read strand info", false, DEFAULT_FILTER_BY_STRAND);
 		p.addBooleanArg("-ef", "Print additional info in BED file", false, DEFAULT_EXTRA_FIELDS);
 		p.addBooleanArg("-binom", "Use binomial score", false,DEFAULT_USE_BINOMIAL);
+		p.addStringArg("-wsd", "Directory of binary window score files to read window scores from instead of the bam files (written if missing)", false, null);
 		p.parse(commandArgs);
 		return p;
 	}
@@ -1401,6 +1417,7 @@ public class MultiSampleScanPeakCaller implements PeakCaller {
 		boolean useStrandFilter = p.getBooleanArg("-sf");
 		boolean extraFields =  p.getBooleanArg("-ef");
 		boolean binomialScore = p.getBooleanArg("-binom");
+		String windowScoreDir = p.getStringArg("-wsd");
 		
 		MultiSampleScanPeakCaller m = new MultiSampleScanPeakCaller(sampleListFile, bedFile, chrSizeFile, windowSize, stepSize);
 		m.setExpressionScanPvalueCutoff(expressionScanPvalCutoff);
@@ -1412,6 +1429,9 @@ public class MultiSampleScanPeakCaller implements PeakCaller {
 		m.setFilterByStrand(useStrandFilter);
 		m.setExtraFields(extraFields);
 		m.setBinomialScore(binomialScore);
+		if(windowScoreDir != null) {
+			m.useWindowScoreFiles(windowScoreDir);
+		}
 		
 		return m;
 		 
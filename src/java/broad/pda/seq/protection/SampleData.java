@@ -3,9 +3,12 @@
  */
 package broad.pda.seq.protection;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -20,6 +23,7 @@ import nextgen.core.annotation.Annotation;
 import nextgen.core.annotation.Gene;
 import nextgen.core.annotation.Annotation.Strand;
 import nextgen.core.coordinatesystem.TranscriptomeSpace;
+import nextgen.core.feature.GeneWindow;
 import nextgen.core.model.TranscriptomeSpaceAlignmentModel;
 import nextgen.core.model.score.ScanStatisticScore;
 import nextgen.core.model.score.WindowProcessor;
@@ -48,7 +52,7 @@ public class SampleData {
 	protected Map<String, Collection<Gene>> genesByChr;
 	protected Map<String, Gene> genesByName;
 	protected double expressionCutoffValue;
-	//private CachedScoreFile windowScoreFile;
+	private WindowScoreFile windowScoreFile;
 	private boolean gotWindowScoresFromFile;
 	private static int DEFAULT_MAX_GENOMIC_SPAN = 100000;
 	private static int DEFAULT_MAX_FRAGMENT_LENGTH = 150;
@@ -107,8 +111,6 @@ public class SampleData {
 		windowSize = window;
 		stepSize = step;
 		logger.info("Instantiated sample data object. Name = " + sampleName + ", window size = " + windowSize + ", step size = " + stepSize);
-		//windowScoreFile = new CachedScoreFile(getDefaultWindowScoreFileName());
-		//gotWindowScoresFromFile = windowScoreFile.readWindowScoresFromFile();
 	}
 	
 	@Override
@@ -139,6 +141,7 @@ public class SampleData {
 	 * @return The number of fragments mapping to the gene
 	 */
 	public double getGeneCount(Gene gene) {
+		readGeneScoreFromFile(gene);
 		if(geneScores.containsKey(gene)) {
 			return geneScores.get(gene).getCount();
 		}
@@ -163,6 +166,7 @@ public class SampleData {
 	 * @return The scan P value of the number of fragments mapping to the gene with respect to teh coordinate space
 	 */
 	public double getGeneScanPval(Gene gene) {
+		readGeneScoreFromFile(gene);
 		if(geneScores.containsKey(gene)) {
 			return geneScores.get(gene).getScanPvalue();
 		}
@@ -187,6 +191,7 @@ public class SampleData {
 	 * @return The average coverage of the gene
 	 */
 	public double getGeneAverageCoverage(Gene gene) {
+		readGeneScoreFromFile(gene);
 		if(geneAvgCoverage.containsKey(gene)) {
 			return geneAvgCoverage.get(gene).doubleValue();
 		}
@@ -212,6 +217,7 @@ public class SampleData {
 	 * @return Whether the gene is expressed at the given significance level
 	 */
 	public boolean isExpressed(Gene gene) {
+		readGeneScoreFromFile(gene);
 		if(!geneScores.containsKey(gene)) {
 			ScanStatisticScore score = new ScanStatisticScore(data, gene, fullyContainedReads);
 			logger.debug("CHECK_GENE_EXPRESSION\t" + gene.getName());
@@ -288,11 +294,13 @@ public class SampleData {
 	
 	/**
 	 * Get the default name of the window score file in a specified directory
+	 * The name includes a hash of the absolute bam path, so samples with the same bam file name in different directories get different files
 	 * @param directory The directory
 	 * @return The file path
 	 */
 	private String getDefaultWindowScoreFileName(String directory) {
-		String name = "window_scores_" + sampleName + "_" + windowSize + "_" + stepSize;
+		String path = new File(originalBamFile).getAbsolutePath();
+		String name = "window_scores_" + new File(sampleName).getName() + "_" + Integer.toHexString(path.hashCode()) + "_" + windowSize + "_" + stepSize;
 		return directory + "/" + name;
 	}
 	
@@ -370,15 +378,35 @@ public class SampleData {
 	
 	/**
 	 * Compute and store scores for each window of gene
+	 * Scores are read from the window score file if it has the gene
 	 * @param gene The gene
 	 */
 	private void computeWindowScores(Gene gene) {
+		if(readWindowScoresFromFile(gene)) {
+			return;
+		}
 		Map<Annotation, ScanStatisticScore> scores = new TreeMap<Annotation, ScanStatisticScore>();
 		if(gene.getSize() < windowSize) {
 			logger.info(gene.getName() + " is smaller than window size. Not computing window binding site scores.");
 			windowScores.put(gene, scores);
 			return;
-		}		
+		}
+		for(ScanStatisticScore score : scoreWindows(gene)) {
+			scores.put(score.getAnnotation(), score);
+		}
+		windowScores.put(gene, scores);
+	}
+	
+	/**
+	 * Score each window of gene from the alignments
+	 * @param gene The gene
+	 * @return The window scores in the order of the gene window iterator
+	 */
+	private List<ScanStatisticScore> scoreWindows(Gene gene) {
+		List<ScanStatisticScore> scores = new ArrayList<ScanStatisticScore>();
+		if(gene.getSize() < windowSize) {
+			return scores;
+		}
 		WindowScoreIterator<ScanStatisticScore> iter = data.scan(gene, windowSize, windowSize - stepSize, processor);
 		double geneTotal = getGeneCount(gene);
 		double geneLength = gene.getSize();
@@ -392,17 +420,151 @@ public class SampleData {
 			score.setTotal(geneTotal);
 			score.setRegionTotal(count);
 			score.refreshScanPvalue(data);
-			/*logger.debug("SCORE_ALL_WINDOWS_IN_GENE\t" + gene.getName());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\t" + window.getChr() + ":" + window.getStart() + "-" + window.getEnd());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\tglobal_length=" + score.getGlobalLength());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\tglobal_count=" + score.getTotal());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\tglobal_lambda=" + score.getGlobalLambda());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\twindow_size=" + score.getCoordinateSpace().getSize(window));
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\twindow_count=" + score.getCount());
-			logger.debug("SCORE_ALL_WINDOWS_IN_GENE\tpval=" + score.getScanPvalue());*/
+			scores.add(score);
+		}
+		return scores;
+	}
+	
+	/**
+	 * Whether the window score file has scores for the gene as it is now
+	 * @param gene The gene
+	 * @return True iff there is a window score file with the gene at the same length and exon coordinates
+	 */
+	private boolean inWindowScoreFile(Gene gene) {
+		String name = gene.getName();
+		return windowScoreFile != null && windowScoreFile.contains(name) && windowScoreFile.getGeneLength(name) == gene.getSize()
+				&& windowScoreFile.getGeneFingerprint(name) == WindowScoreFile.getFingerprint(gene);
+	}
+	
+	/**
+	 * Cache the gene score and average coverage from the window score file
+	 * @param gene The gene
+	 */
+	private void readGeneScoreFromFile(Gene gene) {
+		if(geneScores.containsKey(gene) || !inWindowScoreFile(gene)) {
+			return;
+		}
+		String name = gene.getName();
+		ScanStatisticScore score = new ScanStatisticScore(data.getCoordinateSpace(), gene, windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_COUNT),
+				windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_REGION_TOTAL), windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_REGION_LENGTH),
+				windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_TOTAL), windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_GLOBAL_LENGTH),
+				windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_SCAN_P_VALUE));
+		geneScores.put(gene, score);
+		if(!geneAvgCoverage.containsKey(gene)) {
+			geneAvgCoverage.put(gene, Double.valueOf(windowScoreFile.getGeneStatistic(name, WindowScoreFile.GENE_AVERAGE_COVERAGE)));
+		}
+	}
+	
+	/**
+	 * Store the window scores of gene from the window score file
+	 * The windows are remade from the gene, in the same order as they were written
+	 * @param gene The gene
+	 * @return Whether the file had the scores of the gene
+	 */
+	private boolean readWindowScoresFromFile(Gene gene) {
+		if(!inWindowScoreFile(gene)) {
+			return false;
+		}
+		String name = gene.getName();
+		int numWindows = windowScoreFile.getNumWindows(name);
+		double geneTotal = getGeneCount(gene);
+		double geneLength = gene.getSize();
+		Map<Annotation, ScanStatisticScore> scores = new TreeMap<Annotation, ScanStatisticScore>();
+		Iterator<GeneWindow> windows = gene.getWindowIterator(windowSize, stepSize, 0);
+		int i = 0;
+		while(windows.hasNext() && i < numWindows) {
+			GeneWindow window = windows.next();
+			ScanStatisticScore score = new ScanStatisticScore(data.getCoordinateSpace(), window, windowScoreFile.getWindowCount(name, i), windowScoreFile.getWindowRegionTotal(name, i),
+					window.getSize(), geneTotal, geneLength, windowScoreFile.getWindowScanPvalue(name, i));
 			scores.put(window, score);
+			i++;
+		}
+		if(i != numWindows || windows.hasNext()) {
+			logger.warn("Window score file has " + numWindows + " windows for " + name + " but the gene has a different number. Rescoring windows.");
+			return false;
 		}
 		windowScores.put(gene, scores);
+		return true;
+	}
+	
+	/**
+	 * Use the window score file of this sample and parameters in a directory, writing it first if there is no valid file
+	 * Window and gene scores of genes in the file are then read from it instead of the bam file
+	 * @param directory Directory of window score files
+	 * @throws IOException
+	 */
+	public void useWindowScoreFile(String directory) throws IOException {
+		String fileName = getDefaultWindowScoreFileName(directory);
+		if(new File(fileName).exists()) {
+			WindowScoreFile file = null;
+			try {
+				file = new WindowScoreFile(fileName);
+			} catch(IOException e) {
+				logger.warn("Could not read window score file " + fileName + ": " + e.getMessage());
+			}
+			if(file != null && isValid(file)) {
+				windowScoreFile = file;
+				gotWindowScoresFromFile = true;
+				return;
+			}
+			logger.warn("Window score file " + fileName + " does not match the data and parameters. Writing a new one.");
+		}
+		writeWindowScoreFile(fileName);
+		windowScoreFile = new WindowScoreFile(fileName);
+	}
+	
+	/**
+	 * Whether a window score file was written for the same bam file, parameters and annotation as this sample
+	 * Genes missing from the file are scored from the bam file, but a gene whose exons differ from those it was scored with means the annotation changed
+	 * @param file The window score file
+	 * @return True iff the file can be used for this sample
+	 */
+	private boolean isValid(WindowScoreFile file) {
+		File bam = new File(originalBamFile);
+		if(file.getWindowSize() != windowSize || file.getStepSize() != stepSize || file.isFullyContained() != fullyContainedReads
+				|| file.getBamLength() != bam.length() || file.getBamLastModified() != bam.lastModified()) {
+			return false;
+		}
+		for(Gene gene : genesByName.values()) {
+			if(file.contains(gene.getName()) && file.getGeneFingerprint(gene.getName()) != WindowScoreFile.getFingerprint(gene)) {
+				logger.warn("Gene " + gene.getName() + " has different exons than in window score file.");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Score every window of every gene and write the scores to a binary window score file
+	 * Genes are written as they are scored, so their window scores are not kept in memory
+	 * @param fileName Output file
+	 * @throws IOException
+	 */
+	public void writeWindowScoreFile(String fileName) throws IOException {
+		logger.info("Writing window scores of sample " + sampleName + " to " + fileName + "...");
+		WindowScoreFile.Writer writer = new WindowScoreFile.Writer(fileName, windowSize, stepSize, fullyContainedReads, new File(originalBamFile));
+		int numDone = 0;
+		for(Gene gene : genesByName.values()) {
+			List<ScanStatisticScore> scores = scoreWindows(gene);
+			double[] counts = new double[scores.size()];
+			double[] regionTotals = new double[scores.size()];
+			double[] scanPvalues = new double[scores.size()];
+			for(int i = 0; i < scores.size(); i++) {
+				counts[i] = scores.get(i).getCount();
+				regionTotals[i] = scores.get(i).getRegionTotal();
+				scanPvalues[i] = scores.get(i).getScanPvalue();
+			}
+			getGeneCount(gene);
+			ScanStatisticScore geneScore = geneScores.get(gene);
+			double[] statistics = new double[] {geneScore.getCount(), geneScore.getTotal(), geneScore.getRegionTotal(), geneScore.getRegionLength(),
+					geneScore.getGlobalLength(), geneScore.getScanPvalue(), getGeneAverageCoverage(gene)};
+			writer.addGene(gene.getName(), gene.getSize(), WindowScoreFile.getFingerprint(gene), statistics, counts, regionTotals, scanPvalues);
+			numDone++;
+			if(numDone % 1000 == 0) {
+				logger.info("Wrote window scores of " + numDone + " genes.");
+			}
+		}
+		writer.close();
 	}
 	
 	/**
@@ -446,15 +608,6 @@ public class SampleData {
 		return stepSize;
 	}
 	
-/*	*//**
-	 * Write the window scores to a file for future use
-	 * @param m Multi sample binding site caller that this belongs to
-	 * @throws IOException
-	 *//*
-	public void writeWindowScoresToFile(MultiSampleBindingSiteCaller m) throws IOException {
-		windowScoreFile.writeWindowScoresToFile(m);
-	}
-*/	
 	/**
 	 * Get the alignment data
 	 * @return Alignment model
@@ -524,349 +677,6 @@ public class SampleData {
 		return window;
 	}
 
-/*	
-	private class CachedScoreFile {
-		
-		
-		private String TOTAL_READS_IDENTIFIER = "total_reads";
-		private String WINDOW_SIZE_IDENTIFIER = "window_size";
-		private String STEP_SIZE_IDENTIFIER = "step_size";
-		private String TOTAL_GENE_LENGTH_IDENTIFIER = "total_gene_length";
-		private String NUM_GENES_IDENTIFIER = "num_genes";
-		private String GENE_IDENTIFIER = "gene";
-		private String NOT_EXPRESSED_IDENTIFIER = "not_expressed";
-		private String DELIMITER = "=";
-		private String GLOBAL_LENGTH_IDENTIFIER = "global_length";
-		private String REGION_LENGTH_IDENTIFIER = "region_length";
-		private String GLOBAL_TOTAL_IDENTIFIER = "global_total";
-		private String REGION_TOTAL_IDENTIFIER = "region_total";
-		private String SCAN_P_VALUE_IDENTIFIER = "scan_pval";
-		private String NO_WINDOWS_IDENTIFIER = "no_windows";
-		
-		private StringParser stringParser;
-		private String fileName;
-		
-		public CachedScoreFile(String file) {
-			fileName = file;
-			stringParser = new StringParser();
-		}
-		
-		*//**
-		 * Read and store all window scores from file
-		 * First check if file is valid for this dataset and parameters
-		 * @return Whether the scores were read and stored from the file
-		 * @throws IOException 
-		 *//*
-		public boolean readWindowScoresFromFile() throws IOException {
-			
-			logger.info("Trying to read window scores from file.");
-			
-			// Check if cached file is valid
-			boolean validated = validateFile();
-			if(!validated) {
-				logger.warn("Window score file " + fileName + " not valid. Not reading scores from file.");
-				return false;
-			}
-			
-			windowScores.clear();
-			FileReader r = new FileReader(fileName);
-			BufferedReader b = new BufferedReader(r);
-			
-			TreeSet<String> genesDone = new TreeSet<String>();
-			
-			while(b.ready()) {
-				String line = b.readLine();
-				stringParser.parse(line);
-				if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) continue;
-				Gene gene = getGeneFromLine(line);
-				genesDone.add(gene.getName());
-				if(genesDone.size() % 1000 == 0) {
-					logger.info("Finished " + genesDone.size() + " genes.");
-				}
-				if(!windowScores.containsKey(gene)) {
-					Map<Annotation, ScanStatisticScore> map = new TreeMap<Annotation, ScanStatisticScore>();
-					windowScores.put(gene, map);
-				}
-				if(noWindows(line)) {
-					continue;
-				}
-				Annotation window = getWindowFromLine(line);
-				ScanStatisticScore score = getScoreFromLine(line);
-				windowScores.get(gene).put(window, score);
-				
-			}
-			
-			r.close();
-			b.close();
-			logger.info("Got window scores from file " + fileName + ".");
-			return true;
-		}
-		
-		*//**
-		 * Write scores to file
-		 * @param m Multi sample binding site caller that this belongs to
-		 * @throws IOException 
-		 *//*
-		public void writeWindowScoresToFile(MultiSampleBindingSiteCaller m) throws IOException {
-			logger.info("Writing window scores to file " + fileName);
-			FileWriter w = new FileWriter(fileName);
-			w.write(TOTAL_READS_IDENTIFIER + "\t" + data.getGlobalNumReads() + "\n");
-			w.write(NUM_GENES_IDENTIFIER + "\t" + data.getReferenceNames().size() + "\n");
-			w.write(TOTAL_GENE_LENGTH_IDENTIFIER + "\t" + data.getGlobalLength() + "\n");
-			w.write(WINDOW_SIZE_IDENTIFIER + "\t" + windowSize + "\n");
-			w.write(STEP_SIZE_IDENTIFIER + "\t" + stepSize + "\n");
-			for(String geneName : genesByName.keySet()) {
-				Gene gene = genesByName.get(geneName);
-				if(!m.isExpressed(gene)) {
-					w.write(GENE_IDENTIFIER + "\t" + geneName + "\t" + NOT_EXPRESSED_IDENTIFIER + "\n");
-					continue;
-				}
-				if(windowScores.get(gene).isEmpty()) {
-					w.write(GENE_IDENTIFIER + "\t" + geneName + "\t" + NO_WINDOWS_IDENTIFIER + "\n");
-					continue;
-				}
-				for(Annotation window : windowScores.get(gene).keySet()) {
-					ScanStatisticScore score = windowScores.get(gene).get(window);
-					String lineToWrite = GENE_IDENTIFIER + "\t" + geneName + "\t" + window.getChr() + "\t" + window.getStart() + "\t" + window.getEnd() + "\t";
-					lineToWrite += GLOBAL_LENGTH_IDENTIFIER + DELIMITER + score.getGlobalLength() + "\t";
-					lineToWrite += REGION_LENGTH_IDENTIFIER + DELIMITER + score.getRegionLength() + "\t";
-					lineToWrite += GLOBAL_TOTAL_IDENTIFIER + DELIMITER + score.getTotal() + "\t";
-					lineToWrite += REGION_TOTAL_IDENTIFIER + DELIMITER + score.getRegionTotal() + "\t";
-					lineToWrite += SCAN_P_VALUE_IDENTIFIER + DELIMITER + score.getScanPvalue();
-					w.write(lineToWrite + "\n");
-				}
-			}
-			w.close();
-		}
-		
-		*//**
-		 * Get the gene described on the line of scores
-		 * @param line The line in file
-		 * @return The gene
-		 *//*
-		private Gene getGeneFromLine(String line) {
-			stringParser.parse(line);
-			if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid gene score: " + line);
-			}
-			return genesByName.get(stringParser.asString(1));
-		}
-		
-		*//**
-		 * Whether the line indicates that the gene has no windows
-		 * @param line The line
-		 * @return Whether the line contains the no windows identifier
-		 *//*
-		private boolean noWindows(String line) {
-			stringParser.parse(line);
-			if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid gene score: " + line);
-			}
-			
-			if(stringParser.asString(2).equals(NO_WINDOWS_IDENTIFIER)) {
-				return true;
-			}
-			return false;
-			
-		}
-		
-		*//**
-		 * Get the window described on the line of scores
-		 * @param line The line in file
-		 * @return The window
-		 *//*
-		private Annotation getWindowFromLine(String line) {
-			
-			stringParser.parse(line);
-			if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid gene score: " + line);
-			}
-			
-			if(stringParser.asString(2).equals(NOT_EXPRESSED_IDENTIFIER)) {
-				return null;
-			}
-			
-			String chr = stringParser.asString(2);
-			int start = stringParser.asInt(3);
-			int end = stringParser.asInt(4);
-			return new BasicAnnotation(chr, start, end);
-			
-		}
-		
-		*//**
-		 * Get scan statistic score described on the line of scores
-		 * @param line The line in file
-		 * @return The score
-		 *//*
-		private ScanStatisticScore getScoreFromLine(String line) {
-
-			stringParser.parse(line);
-			if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid gene score: " + line);
-			}
-			
-			if(stringParser.asString(2).equals(NOT_EXPRESSED_IDENTIFIER)) {
-				return null;
-			}
-			
-			StringParser p = new StringParser();
-			
-			p.parse(stringParser.asString(5),DELIMITER);
-			if(!p.asString(0).equals(GLOBAL_LENGTH_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid global length: " + line);
-			}
-			double globalLength = p.asDouble(1);
-			
-			p.parse(stringParser.asString(6),DELIMITER);
-			if(!p.asString(0).equals(REGION_LENGTH_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid region length: " + line);
-			}
-			double regionLength = p.asDouble(1);
-			
-			p.parse(stringParser.asString(7),DELIMITER);
-			if(!p.asString(0).equals(GLOBAL_TOTAL_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid global total: " + line);
-			}
-			double globalTotal = p.asDouble(1);
-			
-			p.parse(stringParser.asString(8),DELIMITER);
-			if(!p.asString(0).equals(REGION_TOTAL_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid region total: " + line);
-			}
-			double regionTotal = p.asDouble(1);
-			
-			p.parse(stringParser.asString(9),DELIMITER);
-			if(!p.asString(0).equals(SCAN_P_VALUE_IDENTIFIER)) {
-				throw new IllegalArgumentException("Line does not contain valid scan P value: " + line);
-			}
-			double scanPval = p.asDouble(1);
-
-			ScanStatisticScore score = new ScanStatisticScore(getWindowFromLine(line));
-			score.setGlobalLength(globalLength);
-			score.setRegionLength(regionLength);
-			score.setRegionTotal(regionTotal);
-			score.setCount(regionTotal);
-			score.setTotal(globalTotal);
-			score.setScanPvalue(scanPval);
-			
-			return score;
-			
-		}
-		
-		*//**
-		 * Whether the file exists and represents the same data and parameters as this run
-		 * @return True iff the file is valid
-		 * @throws IOException 
-		 *//*
-		private boolean validateFile() throws IOException {
-			
-			File file = new File(fileName);
-			if(!file.exists()) return false;
-			
-			FileReader r = new FileReader(fileName);
-			BufferedReader b = new BufferedReader(r);
-
-			try {
-				
-				// Compare total number of reads to the data
-				String totalReadsLine = b.readLine();
-				stringParser.parse(totalReadsLine);
-				if(!stringParser.asString(0).equals(TOTAL_READS_IDENTIFIER)) crashIncorrectFileFormat();
-				double totalReads = stringParser.asDouble(1);
-				if(totalReads != data.getGlobalNumReads()) {
-					logger.warn("Cached score file is not valid because total reads do not match data.");
-					return false;
-				}
-				
-				// Compare total number of genes to the transcriptome space
-				String numGenesLine = b.readLine();
-				stringParser.parse(numGenesLine);
-				if(!stringParser.asString(0).equals(NUM_GENES_IDENTIFIER)) crashIncorrectFileFormat();
-				long numGenes = stringParser.asInt(1);
-				if(numGenes != data.getReferenceNames().size()) {
-					logger.warn("Cached score file is not valid because number of genes does not match transcriptome space.");
-					return false;
-				}
-				
-				// Compare total length of genes to the transcriptome space
-				String totalGeneLengthLine = b.readLine();
-				stringParser.parse(totalGeneLengthLine);
-				if(!stringParser.asString(0).equals(TOTAL_GENE_LENGTH_IDENTIFIER)) crashIncorrectFileFormat();
-				long totalLength = Double.valueOf(stringParser.asDouble(1)).longValue();
-				if(totalLength != data.getGlobalLength()) {
-					logger.warn("Cached score file is not valid because total length of genes does not match transcriptome space.");
-					return false;
-				}
-				
-				// Compare window size
-				String windowSizeLine = b.readLine();
-				stringParser.parse(windowSizeLine);
-				if(!stringParser.asString(0).equals(WINDOW_SIZE_IDENTIFIER)) crashIncorrectFileFormat();
-				int window = stringParser.asInt(1);
-				if(window != windowSize) {
-					logger.warn("Cached score file is not valid because window size does not match.");
-					return false;
-				}
-				
-				// Compare step size
-				String stepSizeLine = b.readLine();
-				stringParser.parse(stepSizeLine);
-				if(!stringParser.asString(0).equals(STEP_SIZE_IDENTIFIER)) crashIncorrectFileFormat();
-				int step = stringParser.asInt(1);
-				if(step != stepSize) {
-					logger.warn("Cached score file is not valid because step size does not match.");
-					return false;
-				}
-				
-				Collection<String> geneNames = data.getReferenceNames();
-				Collection<String> alreadyChecked = new TreeSet<String>();
-				while(b.ready()) {
-					String line = b.readLine();
-					stringParser.parse(line);
-					if(!stringParser.asString(0).equals(GENE_IDENTIFIER)) crashIncorrectFileFormat();
-					String geneName = stringParser.asString(1);
-					if(alreadyChecked.contains(geneName)) continue;
-					if(!geneNames.contains(geneName)) {
-						logger.warn("Cached score file is not valid because gene " + geneName + " is not in transcriptome space.");
-						return false;
-					}
-					geneNames.remove(geneName);
-					alreadyChecked.add(geneName);
-				}
-				if(!geneNames.isEmpty()) {
-					logger.warn("Cached score file is not valid because genes are missing.");
-					return false;
-				}
-				
-			} catch(Exception e) {
-				e.printStackTrace();
-				crashIncorrectFileFormat();
-			}
-			b.close();
-			r.close();
-			return true;
-			
-		}
-		
-		*//**
-		 * Throw exception and print correct file format
-		 *//*
-		private void crashIncorrectFileFormat() {
-			logger.error("Wrong format for cached score file. Sample format:");
-			logger.error("total_reads	23434888");
-			logger.error("num_genes	20000");
-			logger.error("total_gene_length	5000000");
-			logger.error("window_size	100");
-			logger.error("step_size	10");
-			logger.error("gene	NM12345	not_expressed");
-			logger.error("gene NM123456	not_expressed");
-			logger.error("gene NM123457	chr10	12345678	12345778	global_length=1000	region_length=1000	global_total=5555	region_total=6678	scan_pval=0.05");
-			throw new IllegalArgumentException("Cached score file is in wrong format.");
-		}
-		
-		
-	}
-*/	
 	
 	
 }
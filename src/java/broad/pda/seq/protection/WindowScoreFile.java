@@ -0,0 +1,345 @@
+package broad.pda.seq.protection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import nextgen.core.annotation.Annotation;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Window scores of one sample stored in a memory mapped binary file, so peak calling can be rerun with other cutoffs without rescoring windows from the bam file
+ * The file holds a header with the parameters the scores depend on, then for each gene its window counts, region totals and scan P values as packed arrays of doubles, then an index of the genes
+ * Windows are stored in the order of the gene window iterator, so they are identified by their position rather than their coordinates
+ * Each gene is stored with a fingerprint of its exon coordinates, so scores are not reused for a gene whose structure changed under the same name
+ * The file is never modified once written and is only read with absolute gets, so one instance can be shared by several threads
+ */
+public class WindowScoreFile {
+
+	static Logger logger = Logger.getLogger(WindowScoreFile.class.getName());
+
+	private static final int MAGIC = 0x57534332;
+	// The header is padded so every double of the data is aligned and never spans two chunks
+	private static final int HEADER_LENGTH = 40;
+	private static final int CHUNK_BITS = 30;
+	private static final int NUM_GENE_STATISTICS = 7;
+
+	/**
+	 * Gene level statistics, in the order they are stored
+	 */
+	public static final int GENE_COUNT = 0;
+	public static final int GENE_TOTAL = 1;
+	public static final int GENE_REGION_TOTAL = 2;
+	public static final int GENE_REGION_LENGTH = 3;
+	public static final int GENE_GLOBAL_LENGTH = 4;
+	public static final int GENE_SCAN_P_VALUE = 5;
+	public static final int GENE_AVERAGE_COVERAGE = 6;
+
+	private int windowSize;
+	private int stepSize;
+	private boolean fullyContained;
+	private long bamLength;
+	private long bamLastModified;
+	private Map<String, Integer> geneIndex;
+	private int[] geneLengths;
+	private long[] geneFingerprints;
+	private int[] numWindows;
+	private long[] dataOffsets;
+	private double[][] geneStatistics;
+	private MappedByteBuffer[] chunks;
+
+	/**
+	 * Map a window score file
+	 * @param fileName File written by a Writer
+	 * @throws IOException
+	 */
+	public WindowScoreFile(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			long length = file.length();
+			if(length < HEADER_LENGTH + 8 || file.readInt() != MAGIC) {
+				throw new IOException(fileName + " is not a window score file");
+			}
+			windowSize = file.readInt();
+			stepSize = file.readInt();
+			fullyContained = file.readInt() != 0;
+			bamLength = file.readLong();
+			bamLastModified = file.readLong();
+			file.seek(length - 8);
+			long indexOffset = file.readLong();
+
+			// Gene index
+			file.seek(indexOffset);
+			DataInputStream index = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel())));
+			int numGenes = index.readInt();
+			geneIndex = new HashMap<String, Integer>(2 * numGenes);
+			geneLengths = new int[numGenes];
+			geneFingerprints = new long[numGenes];
+			numWindows = new int[numGenes];
+			dataOffsets = new long[numGenes];
+			geneStatistics = new double[numGenes][NUM_GENE_STATISTICS];
+			for(int i = 0; i < numGenes; i++) {
+				geneIndex.put(index.readUTF(), Integer.valueOf(i));
+				geneLengths[i] = index.readInt();
+				geneFingerprints[i] = index.readLong();
+				numWindows[i] = index.readInt();
+				dataOffsets[i] = index.readLong();
+				for(int j = 0; j < NUM_GENE_STATISTICS; j++) {
+					geneStatistics[i][j] = index.readDouble();
+				}
+			}
+
+			// Window data
+			FileChannel channel = file.getChannel();
+			int numChunks = (int) ((indexOffset + (1L << CHUNK_BITS) - 1) >> CHUNK_BITS);
+			chunks = new MappedByteBuffer[numChunks];
+			for(int i = 0; i < numChunks; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, indexOffset - start));
+			}
+		} finally {
+			// Mappings stay valid after the channel is closed
+			file.close();
+		}
+		logger.info("Mapped window scores of " + geneIndex.size() + " genes from " + fileName);
+	}
+
+	public int getWindowSize() { return windowSize;}
+
+	public int getStepSize() { return stepSize;}
+
+	public boolean isFullyContained() { return fullyContained;}
+
+	/**
+	 * @return Length of the bam file the scores were computed from
+	 */
+	public long getBamLength() { return bamLength;}
+
+	/**
+	 * @return Modification time of the bam file the scores were computed from
+	 */
+	public long getBamLastModified() { return bamLastModified;}
+
+	/**
+	 * @param geneName Gene name
+	 * @return Whether the file has scores for the gene
+	 */
+	public boolean contains(String geneName) {
+		return geneIndex.containsKey(geneName);
+	}
+
+	private int getIndex(String geneName) {
+		Integer idx = geneIndex.get(geneName);
+		if(idx == null) {
+			throw new IllegalArgumentException("Gene " + geneName + " is not in the window score file");
+		}
+		return idx.intValue();
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @return Transcript length of the gene when the scores were computed
+	 */
+	public int getGeneLength(String geneName) {
+		return geneLengths[getIndex(geneName)];
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @return Fingerprint of the exon coordinates of the gene when the scores were computed
+	 */
+	public long getGeneFingerprint(String geneName) {
+		return geneFingerprints[getIndex(geneName)];
+	}
+
+	/**
+	 * Hash of the chromosome, strand and block coordinates of an annotation
+	 * @param gene The annotation
+	 * @return 64 bit FNV-1a hash of the exon structure
+	 */
+	public static long getFingerprint(Annotation gene) {
+		long hash = 0xcbf29ce484222325L;
+		hash = fingerprint(hash, gene.getChr().hashCode());
+		hash = fingerprint(hash, gene.getOrientation().ordinal());
+		for(Annotation block : gene.getBlocks()) {
+			hash = fingerprint(hash, block.getStart());
+			hash = fingerprint(hash, block.getEnd());
+		}
+		return hash;
+	}
+
+	private static long fingerprint(long hash, int value) {
+		long rtrn = hash;
+		for(int shift = 0; shift < 32; shift += 8) {
+			rtrn ^= (value >>> shift) & 0xff;
+			rtrn *= 0x100000001b3L;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @return Number of windows of the gene
+	 */
+	public int getNumWindows(String geneName) {
+		return numWindows[getIndex(geneName)];
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @param statistic One of the gene statistic constants
+	 * @return The statistic of the gene
+	 */
+	public double getGeneStatistic(String geneName, int statistic) {
+		return geneStatistics[getIndex(geneName)][statistic];
+	}
+
+	private double getDouble(long offset) {
+		return chunks[(int) (offset >> CHUNK_BITS)].getDouble((int) (offset & ((1L << CHUNK_BITS) - 1)));
+	}
+
+	private double getWindowValue(String geneName, int array, int window) {
+		int idx = getIndex(geneName);
+		if(window < 0 || window >= numWindows[idx]) {
+			throw new IndexOutOfBoundsException("Gene " + geneName + " has " + numWindows[idx] + " windows");
+		}
+		return getDouble(dataOffsets[idx] + 8L * ((long) array * numWindows[idx] + window));
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @param window Position of the window in the gene window iterator
+	 * @return Count of the window
+	 */
+	public double getWindowCount(String geneName, int window) {
+		return getWindowValue(geneName, 0, window);
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @param window Position of the window in the gene window iterator
+	 * @return Region total of the window score
+	 */
+	public double getWindowRegionTotal(String geneName, int window) {
+		return getWindowValue(geneName, 1, window);
+	}
+
+	/**
+	 * @param geneName Gene name
+	 * @param window Position of the window in the gene window iterator
+	 * @return Scan P value of the window
+	 */
+	public double getWindowScanPvalue(String geneName, int window) {
+		return getWindowValue(geneName, 2, window);
+	}
+
+	/**
+	 * Writes genes one at a time, so the scores of all genes are never held at once
+	 * The file is written under a temporary name and renamed when closed, so readers never see a partial file
+	 */
+	public static class Writer {
+
+		private File file;
+		private File tmpFile;
+		private DataOutputStream out;
+		private long offset;
+		private DataOutputStream index;
+		private ByteArrayOutputStream indexBytes;
+		private int numGenes = 0;
+
+		/**
+		 * @param fileName Output file
+		 * @param windowSize Window size
+		 * @param stepSize Step size
+		 * @param fullyContained Whether only fully contained reads were counted
+		 * @param bamFile Bam file the scores are computed from
+		 * @throws IOException
+		 */
+		public Writer(String fileName, int windowSize, int stepSize, boolean fullyContained, File bamFile) throws IOException {
+			file = new File(fileName);
+			File dir = file.getAbsoluteFile().getParentFile();
+			tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(windowSize);
+			out.writeInt(stepSize);
+			out.writeInt(fullyContained ? 1 : 0);
+			out.writeLong(bamFile.length());
+			out.writeLong(bamFile.lastModified());
+			for(offset = 32; offset < HEADER_LENGTH; offset++) {
+				out.writeByte(0);
+			}
+			indexBytes = new ByteArrayOutputStream();
+			index = new DataOutputStream(indexBytes);
+		}
+
+		/**
+		 * Add the scores of a gene
+		 * @param geneName Gene name
+		 * @param geneLength Transcript length of the gene
+		 * @param fingerprint Fingerprint of the exon coordinates of the gene
+		 * @param statistics Gene statistics indexed by the gene statistic constants
+		 * @param counts Window counts in window iterator order
+		 * @param regionTotals Region totals of the window scores
+		 * @param scanPvalues Scan P values of the windows
+		 * @throws IOException
+		 */
+		public void addGene(String geneName, int geneLength, long fingerprint, double[] statistics, double[] counts, double[] regionTotals, double[] scanPvalues) throws IOException {
+			if(statistics.length != NUM_GENE_STATISTICS) {
+				throw new IllegalArgumentException("Need " + NUM_GENE_STATISTICS + " gene statistics");
+			}
+			int n = counts.length;
+			if(regionTotals.length != n || scanPvalues.length != n) {
+				throw new IllegalArgumentException("Window arrays must have the same length");
+			}
+			index.writeUTF(geneName);
+			index.writeInt(geneLength);
+			index.writeLong(fingerprint);
+			index.writeInt(n);
+			index.writeLong(offset);
+			for(double s : statistics) {
+				index.writeDouble(s);
+			}
+			for(double[] values : new double[][] {counts, regionTotals, scanPvalues}) {
+				for(double v : values) {
+					out.writeDouble(v);
+				}
+			}
+			offset += 24L * n;
+			numGenes++;
+		}
+
+		/**
+		 * Write the gene index and move the file to its name
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			long indexOffset = offset;
+			out.writeInt(numGenes);
+			index.close();
+			indexBytes.writeTo(out);
+			out.writeLong(indexOffset);
+			out.close();
+			if(file.exists() && !file.delete()) {
+				throw new IOException("Could not replace " + file);
+			}
+			if(!tmpFile.renameTo(file)) {
+				throw new IOException("Could not move " + tmpFile + " to " + file);
+			}
+			logger.info("Wrote window scores of " + numGenes + " genes to " + file);
+		}
+	}
+
+}
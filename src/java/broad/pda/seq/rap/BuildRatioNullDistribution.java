@@ -5,6 +5,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.ggf.drmaa.DrmaaException;
 
@@ -13,19 +20,19 @@ import broad.core.math.EmpiricalDistribution;
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.cmdline.Usage;
 import net.sf.picard.util.Log;
-import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.coordinatesystem.GenomicSpace;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
 import nextgen.core.model.AlignmentModel;
 import nextgen.core.model.score.WindowScoreIterator;
-import nextgen.core.alignment.Alignment;
 import nextgen.core.model.score.*;
 import nextgen.core.annotation.Annotation;
-import nextgen.core.writers.PairedEndWriter;
-import nextgen.core.readFilters.*;
 
+/**
+ * Permutations are done in memory: reads of TARGET are shuffled with a ReadShuffler and counted in the windows directly,
+ * so no permuted BAM is written. Control counts of the windows are computed once and shared by all permutations.
+ */
 public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
     private static final Log log = Log.getInstance(BuildRatioNullDistribution.class);
 	
@@ -50,18 +57,24 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 	@Option(doc="Number of permutations", shortName="N")
 	public Integer PERMUTATIONS = 100;
 	
-	@Option(doc="Keep intermediate BAM and empirical distribution files for debugging purposes")
+	@Option(doc="Keep intermediate empirical distribution files for debugging purposes")
 	public boolean KEEP_INTERMEDIATES = false;
 	
-	@Option(doc="Use existing intermediate BAM and empirical distribution files")
+	@Option(doc="Use existing intermediate empirical distribution files")
 	public boolean USE_INTERMEDIATES = false;
 	
-	@Option(doc="Queue to submit jobs to.  If null, will simply process with one permutation", optional=true)
+	@Option(doc="Queue to submit jobs to, one job per permutation.  If null, will process all permutations in this process", optional=true)
 	public String QUEUE = null;
 	
-	@Option(doc="Set the random generator seed for reproducible behavior (note: does not work for submitting multiple jobs).", optional=true)
+	@Option(doc="Set the random generator seed for reproducible behavior.  Permutation i uses the same seed whether it is run locally or in a job.", optional=true)
 	public Integer RANDOM_SEED = null;
 	
+	@Option(doc="Number of permutations to run at the same time when not submitting jobs")
+	public int NUM_THREADS = 1;
+	
+	@Option(doc="Number of the first permutation, used to seed permutations run in separate jobs", optional=true)
+	public int FIRST_PERMUTATION = 0;
+	
 	
 	private Runtime run = Runtime.getRuntime();
 	private String jobID = LSFJob.generateJobID();
@@ -91,7 +104,7 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 				collateResults();
 				if (!KEEP_INTERMEDIATES) cleanup();
 			} else {
-				permuteOnce(OUTPUT.getAbsolutePath());
+				permute(OUTPUT.getAbsolutePath());
 			}
 			
 		} catch (Exception e) {
@@ -111,6 +124,8 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 	 */
 	private void submitJobs() throws IOException, InterruptedException, DrmaaException {
 		Collection<Job> jobs = new ArrayList<Job>();
+		// Jobs share the seed so each permutation is the same as when run locally
+		long seed = RANDOM_SEED != null ? RANDOM_SEED : new Random().nextInt();
 		for (int i = 0; i < PERMUTATIONS; i++) {
 
 			String command = "-M 4 -P RAP java -Xmx4g -cp " + 
@@ -119,9 +134,10 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 			
 			String[] argv = getCommandLineParser().getArgv();
 			for (String arg : argv) {
-				if (arg.indexOf("QUEUE") < 0 && arg.indexOf("OUTPUT") < 0) // don't set QUEUE
+				if (arg.indexOf("QUEUE") < 0 && arg.indexOf("OUTPUT") < 0 && arg.indexOf("PERMUTATIONS") < 0 && !arg.startsWith("N=") && arg.indexOf("RANDOM_SEED") < 0 && arg.indexOf("FIRST_PERMUTATION") < 0) // don't set QUEUE
 					command += " " + arg;
 			}
+			command += " PERMUTATIONS=1 RANDOM_SEED=" + seed + " FIRST_PERMUTATION=" + i;
 			
 			String outfile = OUTPUT.getAbsolutePath() + "_" + i;
 			command += " OUTPUT=" + outfile;
@@ -159,75 +175,121 @@ public class BuildRatioNullDistribution extends GenomeCommandLineProgram {
 		for (int i = 0; i < PERMUTATIONS; i++) {
 			String file = OUTPUT.getAbsolutePath() + "_" + i + ".empiricalDistribution.txt";
 			new File(file).delete();
-			file = OUTPUT.getAbsolutePath() + "_" + i + ".PairedEnd.bam";
-			new File(file).delete();
-			file = OUTPUT.getAbsolutePath() + "_" + i + ".PairedEnd.bam.bai";
-			new File(file).delete();
-			file = OUTPUT.getAbsolutePath() + "_" + i + ".PairedEnd.bam.GenomicSpaceStats";
-			new File(file).delete();
 			file = OUTPUT.getAbsolutePath() + "_" + i + ".bsub";
 			new File(file).delete();
 		}
 	}
 	
 	/**
-	 * Do the processing for a single permutation
+	 * Run the permutations in memory and write their combined empirical distribution
 	 * @param output
 	 * @throws IOException
 	 */
-	private void permuteOnce(String output) throws IOException {
-		List<Annotation> regions = getRegions();
-
-		String permutedOutput = output + PairedEndWriter.PAIRED_END_EXTENSION;
+	private void permute(String output) throws IOException {
+		String edOutput = output + ".empiricalDistribution.txt";
+		if (USE_INTERMEDIATES && new File(edOutput).exists()) {
+			log.info("Using existing empirical distribution file: " + edOutput);
+			return;
+		}
 		
-		if (USE_INTERMEDIATES && new File(permutedOutput).exists()) {
-			log.info("Using existing intermediate file: " + permutedOutput);
-		} else {
-			log.info("Setting up writer: " + permutedOutput);
-			final PairedEndWriter outputWriter = new PairedEndWriter(TARGET, permutedOutput);
-
-			// Reopen the input file in a model. Casts to genomic space.
-			((GenomicSpace) getCoordinateSpace()).setPercentMaskedAllowed(0.0);  // don't allow permuting reads to masked regions
-			AlignmentModel model = loadAlignmentModel(TARGET);
-			
-			if (RANDOM_SEED != null) GenomicSpace.setSeed(RANDOM_SEED);
-			
-			// Permute reads in the model and write to the output file
-			for (Annotation region : regions) {
-				CloseableIterator<Alignment> itr = model.getPermutedAnnotations(region);
-				while (itr.hasNext()) {
-					Alignment curr = itr.next();
-					outputWriter.addAlignment(curr);
-				}
-				itr.close();
+		// Casts to genomic space.  Reads are placed away from masked regions, windows follow PCT_MASKED_ALLOWED.
+		GenomicSpace space = (GenomicSpace) getCoordinateSpace();
+		final ReadShuffler shuffler = new ReadShuffler(space, getRegions(), loadAlignmentModel(TARGET));
+		final List<ControlWindows> windows = new ArrayList<ControlWindows>();
+		AlignmentModel control = loadAlignmentModel(CONTROL);
+		for (Annotation region : shuffler.getRegions()) {
+			windows.add(new ControlWindows(control, region));
+		}
+		
+		final long seed = RANDOM_SEED != null ? RANDOM_SEED : new Random().nextInt();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, NUM_THREADS), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "permutation");
+				t.setDaemon(true);
+				return t;
 			}
-			outputWriter.close(); // this creates a .bai index
+		});
+		List<Future<EmpiricalDistribution>> permutations = new ArrayList<Future<EmpiricalDistribution>>();
+		for (int i = FIRST_PERMUTATION; i < FIRST_PERMUTATION + PERMUTATIONS; i++) {
+			final int permutation = i;
+			permutations.add(executor.submit(new Callable<EmpiricalDistribution>() {
+				@Override
+				public EmpiricalDistribution call() {
+					return permuteOnce(shuffler, windows, new Random(ReadShuffler.getSeed(seed, permutation)));
+				}
+			}));
 		}
 		
-		String edOutput = output + ".empiricalDistribution.txt";
-		if (USE_INTERMEDIATES && new File(edOutput).exists()) {
-			log.info("Using existing empirical distribution file: " + edOutput);
-		} else {
-			// Now scan over the permuted data and calculate ratios. Casts to genomic space.
-			((GenomicSpace) getCoordinateSpace()).setPercentMaskedAllowed(PCT_MASKED_ALLOWED);  // reset pct masked allowed after changing above
-			AlignmentModel permuted = loadAlignmentModel(new File(permutedOutput));
-			AlignmentModel control = loadAlignmentModel(CONTROL);
-			WindowProcessor<RatioScore> processor = new RatioScore.Processor(permuted, control);
-
-			EmpiricalDistribution ed = getEmptyEmpiricalDistribution();
-
-			for (Annotation region : regions) {
-				WindowScoreIterator<RatioScore> windowItr = permuted.scan(region, WINDOW, OVERLAP, processor);
-				while (windowItr.hasNext()) {
-					RatioScore curr = windowItr.next();
-					ed.add(curr.getLog2RegionRatio());
-					if (curr.getLog2RegionRatio() < -20 || curr.getLog2RegionRatio() > 20) {
-						log.warn("Ratio out of bounds: " + curr);
-					}
+		EmpiricalDistribution ed = getEmptyEmpiricalDistribution();
+		try {
+			for (Future<EmpiricalDistribution> permutation : permutations) {
+				ed.addDistribution(permutation.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while permuting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		ed.write(edOutput);
+	}
+	
+	
+	/**
+	 * Shuffle the target reads once and collect the log2 ratios of all windows
+	 */
+	private static EmpiricalDistribution permuteOnce(ReadShuffler shuffler, List<ControlWindows> windows, Random random) {
+		EmpiricalDistribution ed = getEmptyEmpiricalDistribution();
+		for (int r = 0; r < windows.size(); r++) {
+			ControlWindows curr = windows.get(r);
+			int[] counts = ReadShuffler.countOverlaps(shuffler.shuffle(r, random), curr.starts, curr.ends);
+			// All shuffled reads are in the region
+			double regionTotal = shuffler.getNumReads(r);
+			for (int w = 0; w < counts.length; w++) {
+				double ratio = RatioScore.getRatio(counts[w], regionTotal, curr.counts[w], curr.regionTotal, curr.ends[w] - curr.starts[w]);
+				double log2Ratio = Math.log(ratio) / Math.log(2);
+				ed.add(log2Ratio);
+				if (log2Ratio < -20 || log2Ratio > 20) {
+					log.warn("Ratio out of bounds: " + shuffler.getRegions().get(r).getChr() + ":" + curr.starts[w] + "-" + curr.ends[w] + "\t" + log2Ratio);
 				}
 			}
-
-			ed.write(output + ".empiricalDistribution.txt");
+		}
+		return ed;
+	}
+	
+	
+	/**
+	 * Windows of a region with their control counts, which are the same in every permutation
+	 */
+	private class ControlWindows {
+		int[] starts;
+		int[] ends;
+		double[] counts;
+		double regionTotal;
+		
+		ControlWindows(AlignmentModel control, Annotation region) {
+			List<CountScore> scores = new ArrayList<CountScore>();
+			WindowScoreIterator<CountScore> itr = control.scan(region, WINDOW, OVERLAP);
+			while (itr.hasNext()) {
+				scores.add(itr.next());
+			}
+			itr.close();
+			starts = new int[scores.size()];
+			ends = new int[scores.size()];
+			counts = new double[scores.size()];
+			for (int i = 0; i < starts.length; i++) {
+				Annotation window = scores.get(i).getAnnotation();
+				starts[i] = window.getStart();
+				ends[i] = window.getEnd();
+				counts[i] = scores.get(i).getCount();
+			}
+			regionTotal = starts.length > 0 ? control.getCount(region) : 0;
 		}
 	}
 	
@@ -59,6 +59,9 @@ public abstract class GenomeCommandLineProgram extends CommandLineProgram {
 	@Option(doc="File containing gene annotations (BED)")
 	public String ANNOTATION = "/seq/lincRNA/Shari/Annotations/RefSeq_LincV3_ChromatinWithNames_nonrandom_collapsed_overlappers.bed";
 	
+	@Option(doc="Count reads from compact read stores instead of cached alignment objects, so deeper windows fit in the read cache", optional=true)
+	public boolean COMPACT_CACHE = false;
+	
 	protected CoordinateSpace coordinateSpace;
 
 	
@@ -175,6 +178,7 @@ public abstract class GenomeCommandLineProgram extends CommandLineProgram {
 		model.addFilter(new DuplicateFilter());
 		model.addFilter(new ProperPairFilter());
 		model.addFilter(new MappingQualityFilter(MIN_MAPPING_QUALITY));
+		model.setCompactCache(COMPACT_CACHE);
 	
 		// TODO need to modify PairedEndWriter to save information about the other read
 		return model;
@@ -0,0 +1,177 @@
+package broad.pda.seq.rap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.model.AlignmentModel;
+
+/**
+ * Places reads at random positions within regions, never overlapping a masked region of the genomic space
+ * Reads are kept as the lengths of their footprints on the reference, so permutations are done in memory without rewriting alignments
+ * Each permutation uses its own random generator seeded from a base seed and the permutation number, so any permutation can be reproduced alone
+ */
+public class ReadShuffler {
+	private static final Log log = Log.getInstance(ReadShuffler.class);
+
+	private List<Annotation> regions;
+	// Merged masked intervals of each region, sorted by start
+	private List<int[]> maskStarts = new ArrayList<int[]>();
+	private List<int[]> maskEnds = new ArrayList<int[]>();
+	private List<int[]> readLengths = new ArrayList<int[]>();
+
+	/**
+	 * @param space Genomic space with the masked regions
+	 * @param regions Regions to shuffle reads within
+	 * @param model Reads fully contained in each region are shuffled within it
+	 */
+	public ReadShuffler(GenomicSpace space, List<Annotation> regions, AlignmentModel model) {
+		this.regions = regions;
+		for (Annotation region : regions) {
+			loadMask(space, region);
+			readLengths.add(loadReadLengths(model, region));
+		}
+	}
+
+	private void loadMask(GenomicSpace space, Annotation region) {
+		List<Annotation> masked = space.getMaskedRegions(region);
+		int[][] intervals = new int[masked.size()][];
+		for (int i = 0; i < intervals.length; i++) {
+			intervals[i] = new int[] {masked.get(i).getStart(), masked.get(i).getEnd()};
+		}
+		Arrays.sort(intervals, new Comparator<int[]>() {
+			public int compare(int[] o1, int[] o2) {
+				return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+			}
+		});
+		int[] starts = new int[intervals.length];
+		int[] ends = new int[intervals.length];
+		int n = 0;
+		for (int[] interval : intervals) {
+			if (n > 0 && interval[0] <= ends[n - 1]) {
+				ends[n - 1] = Math.max(ends[n - 1], interval[1]);
+			} else {
+				starts[n] = interval[0];
+				ends[n] = interval[1];
+				n++;
+			}
+		}
+		maskStarts.add(Arrays.copyOf(starts, n));
+		maskEnds.add(Arrays.copyOf(ends, n));
+	}
+
+	private static int[] loadReadLengths(AlignmentModel model, Annotation region) {
+		int[] lengths = new int[1024];
+		int n = 0;
+		CloseableIterator<Alignment> itr = model.getOverlappingReads(region, true);
+		while (itr.hasNext()) {
+			Alignment read = itr.next();
+			if (n == lengths.length) lengths = Arrays.copyOf(lengths, 2 * n);
+			lengths[n++] = read.getEnd() - read.getStart();
+		}
+		itr.close();
+		log.info("Loaded " + n + " reads in " + region.toUCSC());
+		return Arrays.copyOf(lengths, n);
+	}
+
+	/**
+	 * @return Seed of the random generator for a permutation
+	 */
+	public static long getSeed(long baseSeed, int permutation) {
+		return baseSeed + 0x9E3779B97F4A7C15L * (permutation + 1);
+	}
+
+	public List<Annotation> getRegions() {
+		return regions;
+	}
+
+	/**
+	 * @return Number of reads shuffled within a region
+	 */
+	public int getNumReads(int region) {
+		return readLengths.get(region).length;
+	}
+
+	/**
+	 * Pick a new start for a read as GenomicSpace.permuteAnnotation does, keeping the last try if every try overlaps a masked region
+	 * @param region Index of the region
+	 * @param length Length of the read footprint
+	 * @param random Random generator of the permutation
+	 * @return The new start of the read
+	 */
+	public int place(int region, int length, Random random) {
+		Annotation bounds = regions.get(region);
+		int permutationSpace = bounds.size() - length;
+		if (permutationSpace <= 0) return bounds.getStart();
+		int start = bounds.getStart();
+		for (int i = 0; i < GenomicSpace.PERMUTATION_ATTEMPTS; i++) {
+			start = random.nextInt(permutationSpace) + bounds.getStart();
+			if (!isMasked(region, start, start + length)) break;
+		}
+		return start;
+	}
+
+	/**
+	 * Shuffle all reads of a region
+	 * @param region Index of the region
+	 * @param random Random generator of the permutation
+	 * @return Sorted starts and sorted ends of the shuffled reads
+	 */
+	public int[][] shuffle(int region, Random random) {
+		int[] lengths = readLengths.get(region);
+		int[] starts = new int[lengths.length];
+		int[] ends = new int[lengths.length];
+		for (int i = 0; i < lengths.length; i++) {
+			starts[i] = place(region, lengths[i], random);
+			ends[i] = starts[i] + lengths[i];
+		}
+		Arrays.sort(starts);
+		Arrays.sort(ends);
+		return new int[][] {starts, ends};
+	}
+
+	/**
+	 * @return True if [start, end) overlaps a masked interval of the region
+	 */
+	private boolean isMasked(int region, int start, int end) {
+		int[] mStarts = maskStarts.get(region);
+		int[] mEnds = maskEnds.get(region);
+		// First masked interval ending after start, ends are sorted since the intervals are merged
+		int lo = 0;
+		int hi = mEnds.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mEnds[mid] <= start) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo < mStarts.length && mStarts[lo] < end;
+	}
+
+	/**
+	 * Count reads overlapping each window from the sorted starts and ends of shuffle
+	 * @param shuffled Sorted starts and ends of the reads
+	 * @param windowStarts Window starts in increasing order
+	 * @param windowEnds Window ends in increasing order
+	 * @return Number of reads overlapping each window
+	 */
+	public static int[] countOverlaps(int[][] shuffled, int[] windowStarts, int[] windowEnds) {
+		int[] starts = shuffled[0];
+		int[] ends = shuffled[1];
+		int[] counts = new int[windowStarts.length];
+		int started = 0;
+		int ended = 0;
+		for (int w = 0; w < counts.length; w++) {
+			while (started < starts.length && starts[started] < windowEnds[w]) started++;
+			while (ended < ends.length && ends[ended] <= windowStarts[w]) ended++;
+			counts[w] = started - ended;
+		}
+		return counts;
+	}
+}
@@ -3,6 +3,7 @@ package broad.pda.seq.rap;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.cmdline.Usage;
@@ -29,7 +30,7 @@ public class ShuffleBAM extends GenomeCommandLineProgram {
 	@Option(doc="Number of permutations", shortName="N")
 	public Integer PERMUTATIONS = 1;
 	
-	@Option(doc="Set the random generator seed for reproducible behavior.", optional=true)
+	@Option(doc="Set the random generator seed for reproducible behavior.  Permutation i is the same as in BuildRatioNullDistribution with the same seed.", optional=true)
 	public Integer RANDOM_SEED = null;
 	
 
@@ -47,12 +48,14 @@ public class ShuffleBAM extends GenomeCommandLineProgram {
 	protected int doWork() {
 		
 		try {
+			long seed = RANDOM_SEED != null ? RANDOM_SEED : new Random().nextInt();
+			ReadShuffler shuffler = new ReadShuffler((GenomicSpace) getCoordinateSpace(), getRegions(), loadAlignmentModel(INPUT));
 			for (int i = 0; i < PERMUTATIONS; i++) {
 				String output = OUTPUT.getAbsolutePath();
 				if (PERMUTATIONS != 1) {
 					output = output + "_" + i;
 				}
-				permuteOnce(output);
+				permuteOnce(output, shuffler, new Random(ReadShuffler.getSeed(seed, i)));
 			}
 		} catch (Exception e) {
 			log.error(e);
@@ -62,24 +65,22 @@ public class ShuffleBAM extends GenomeCommandLineProgram {
 	}
 	
 	
-	private void permuteOnce(String output) throws IOException {
-		List<Annotation> regions = getRegions();
+	private void permuteOnce(String output, ReadShuffler shuffler, Random random) throws IOException {
+		List<Annotation> regions = shuffler.getRegions();
 		String permutedOutput = output + PairedEndWriter.PAIRED_END_EXTENSION;
 
 		log.info("Setting up writer: " + permutedOutput);
 		final PairedEndWriter outputWriter = new PairedEndWriter(INPUT, permutedOutput);
 
-		// Reopen the input file in a model. Fails if not in genomic space.
-		((GenomicSpace) getCoordinateSpace()).setPercentMaskedAllowed(0.0);  // don't allow permuting reads to masked regions
+		// Reopen the input file in a model since moving reads changes them. Fails if not in genomic space.
 		AlignmentModel model = loadAlignmentModel(INPUT);
 
-		if (RANDOM_SEED != null) GenomicSpace.setSeed(RANDOM_SEED);
-
-		// Permute reads in the model and write to the output file
-		for (Annotation region : regions) {
-			CloseableIterator<Alignment> itr = model.getPermutedAnnotations(region);
+		// Permute reads in the model and write to the output file, in the order the shuffler loaded them
+		for (int r = 0; r < regions.size(); r++) {
+			CloseableIterator<Alignment> itr = model.getOverlappingReads(regions.get(r), true);
 			while (itr.hasNext()) {
 				Alignment curr = itr.next();
+				curr.moveToCoordinate(shuffler.place(r, curr.getEnd() - curr.getStart(), random));
 				outputWriter.addAlignment(curr);
 			}
 			itr.close();
@@ -46,6 +46,9 @@ public interface AlignmentDataModel{
 	//get the number of Annotation overlapping a given region with a cached interval tree
 	public double getCountsPerAlignment(Annotation align, IntervalTree<Alignment> tree, int EF);
 	
+	//get the count a single read adds to any region it overlaps, after quality and strand filters, read weighting and normalization
+	public double getCount(Alignment record);
+	
 	//get the number of Annotation overlapping a given region with a cached interval tree
 	public double getCountsPerAlignment(Gene gene, IntervalTree<Alignment> tree, int EF);
 
@@ -434,6 +434,10 @@ public class AlignmentDataModelStats {
 		return data.getCountsPerAlignment(align, tree, extensionFactor);
 	}
 
+	public double getCount(Alignment record) {
+		return data.getCount(record);
+	}
+
 	public double getCountsPerAlignment(Gene window,IntervalTree<Alignment> tree, int extensionFactor) {
 		return data.getCountsPerAlignment(window, tree, extensionFactor);
 	}
@@ -20,6 +20,12 @@ import java.util.Set;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.util.CloseableIterator;
@@ -90,6 +96,14 @@ public class ContinuousDataAlignmentModel{
 	private boolean trimEnds;
 	private double trimQuantile = 0.25;
 	private int minAnnotationSize = 0;
+	private int numThreads = 1;
+	private File cumulativeCountDirectory = null;
+	/**
+	 * Cumulative counts of the last chromosome compared to another sample, kept for scans with other window sizes
+	 */
+	private CumulativeReadCounts comparedCounts = null;
+	private CumulativeReadCounts comparedCounts2 = null;
+	private AlignmentDataModelStats comparedData2 = null;
 	public static int DEFAULT_MIN_MAPPING_QUALITY = 5;
 	public static int DEFAULT_INSERT_SIZE_FUDGE = 20;
 	public static double DEFAULT_INS_SIZE_PVAL = 0.05;
@@ -287,6 +301,16 @@ public class ContinuousDataAlignmentModel{
 
 	public void setTrimQuantile(double quantile) {this.trimQuantile = quantile;}
 
+	/**
+	 * @param numThreads Number of threads to scan window sizes with
+	 */
+	public void setNumThreads(int numThreads) {this.numThreads = numThreads;}
+
+	/**
+	 * @param directory Directory to hold the cumulative counts of a chromosome on disk while scanning, or null to hold them in memory
+	 */
+	public void setCumulativeCountDirectory(File directory) {this.cumulativeCountDirectory = directory;}
+
 	/**
 	 * Get the underlying AlignmentDataModelStats object
 	 * @return the AlignmentDataModelStats object
@@ -638,23 +662,14 @@ public class ContinuousDataAlignmentModel{
 		return this.pairedData;
 	}
 
-	private Collection<Annotation> scan(int windowSize, double alpha,  String chr)throws IOException{
-		double T=getNumberMarkers(chr);
-	
+	/**
+	 * Collapse the significant windows of one window size into segments
+	 * @param significantWindows Merged significant windows
+	 * @return The segments
+	 * @throws IOException
+	 */
+	private Collection<Annotation> filterSignificantWindows(IntervalTree<Annotation> significantWindows)throws IOException{
 		long start=System.currentTimeMillis();
-		int criticalValue=calculateCriticalValue(new Double(T).intValue(), windowSize, T, alpha, getLambda(chr));
-		long end=System.currentTimeMillis();
-	
-		logger.info("Computing critical values  for window size "+ windowSize+" took: "+(end-start)/1000.0 + " sec. " +criticalValue);
-	
-		start=System.currentTimeMillis();
-		IntervalTree<Annotation> significantWindows = scanGenome(windowSize, criticalValue, chr);
-		end=System.currentTimeMillis();
-	
-		logger.info("Scanning window NEW took: "+(end-start)/1000.0 +  " sec.");
-	
-	
-		start=System.currentTimeMillis();
 		Collection<Annotation> windows = dedup(significantWindows);
 	
 		logger.info("Going to findMaxContiguous segments " + findMaxContiguous + " trim ends? " + trimEnds);
@@ -668,7 +683,7 @@ public class ContinuousDataAlignmentModel{
 		if(trimEnds) {
 			logger.info("Trimming window ends ... ");
 			windows = trimEnds(windows);
-			end=System.currentTimeMillis();
+			long end=System.currentTimeMillis();
 			logger.info(" took: "+(end-start)/1000.0);
 			logger.info(" Done");
 		}
@@ -688,14 +703,29 @@ public class ContinuousDataAlignmentModel{
 		return rtrn;
 	}
 
+	/**
+	 * Scan a chromosome with several window sizes
+	 * The chromosome is read once into cumulative counts and the window sizes are scanned in parallel
+	 * @param windowSizes The window sizes
+	 * @param alpha Significance level
+	 * @param chr The chromosome
+	 * @return Segments significant with any window size
+	 * @throws IOException
+	 */
 	public Collection<Annotation> scan(int[] windowSizes, double alpha,  String chr) throws IOException{
 		Collection<Annotation> rtrn=new TreeSet<Annotation>();
 	
 		double lambdaVal=getLambda(chr);
 		if(lambdaVal>0){
-			for(int i=0; i<windowSizes.length; i++){
-				Collection<Annotation> list=scan(windowSizes[i], alpha, chr);
-				rtrn.addAll(list);
+			CumulativeReadCounts counts=new CumulativeReadCounts(data, chr, chunkSize, cumulativeCountDirectory);
+			try {
+				List<IntervalTree<Annotation>> significantWindows=scanGenome(counts, windowSizes, alpha, chr);
+				for(int i=0; i<windowSizes.length; i++){
+					Collection<Annotation> list=filterSignificantWindows(significantWindows.get(i));
+					rtrn.addAll(list);
+				}
+			} finally {
+				counts.close();
 			}
 		}
 	
@@ -706,76 +736,33 @@ public class ContinuousDataAlignmentModel{
 	}
 
 	
+	/**
+	 * Write the ratio of counts to another sample in every window of a chromosome
+	 * The cumulative counts of both samples are kept until another chromosome or sample is compared or releaseComparedCounts is called
+	 * @param data2 The other sample
+	 * @param windowSize Window size
+	 * @param chr The chromosome
+	 * @param writer Writer for the ratios
+	 * @param filterSignificance Only write windows significant in the other sample
+	 * @throws IOException
+	 */
 	public void scanGenome(ContinuousDataAlignmentModel data2, int windowSize, String chr, FileWriter writer, boolean filterSignificance) throws IOException{
-		int counter=0;
-	
-		double numMarkers=getNumberMarkers(chr);
-	
-		
-		//load chunks into memory: first chunk
-		int chunkNumber=1;
-	
-		IntervalTree<Alignment> chunkAlignmentTree=data.getIntervalTree(chr, 0, chunkNumber*chunkSize);
-		IntervalTree<Alignment> chunkAlignmentTree2=data2.getData().getIntervalTree(chr, 0, chunkNumber*chunkSize);
-	
-	
-	
-		double score1=0;
-		double score2=0;
-		
-		Annotation previous=null;
-		boolean cached=false;
-	
+		if(comparedCounts == null || !comparedCounts.getChr().equals(chr) || comparedData2 != data2.getData()) {
+			releaseComparedCounts();
+			comparedCounts=new CumulativeReadCounts(data, chr, chunkSize, cumulativeCountDirectory);
+			comparedCounts2=new CumulativeReadCounts(data2.getData(), chr, chunkSize, cumulativeCountDirectory);
+			comparedData2=data2.getData();
+		}
+		CumulativeReadCounts counts=comparedCounts;
+		CumulativeReadCounts counts2=comparedCounts2;
 		for(int i=0; i<data.getChromosomeLengths().get(chr); i++){
-	
-			
-			//if score is 0 jump to end of fixed width
+
 			int start=i;
 			int end=start+windowSize;
 			Annotation current=new Alignments(chr, start, end);
-			//System.err.println("Current: " + current.toUCSC());
-			double sum=0;
-			double sum2=0;
-	
-			if(score1==0 && score2==0){
-				sum=data.getCountsPerAlignment(current, chunkAlignmentTree, extensionFactor); 
-				sum2=data2.getData().getCountsPerAlignment(current, chunkAlignmentTree2, extensionFactor);
-					
-				if(sum ==0 && sum2==0) {
-					i=start+windowSize;
-					//System.err.println("\tScore was 0 and so was sum, advancing from " + start + " to " +i);
-				} else {
-					//System.err.println("\tScore was 0, used reads to compute sum: " + sum);
-				}
-				cached=false;
-			}else{
-				/*
-				if have part of the interval scored and cached then to get next score just need to compute piece not contained
-				get score for base not covered and add
-				get score for base covered in previous that no longer contained and subtract
-				 */		
-				cached = true;
-				Annotation startPosition = new Alignments(chr, previous.getStart(), current.getStart());
-				double subtractVal=data.getCountsOfUniqueOverlappers(startPosition, current, chunkAlignmentTree, extensionFactor);
-				double subtractVal2=data2.getData().getCountsOfUniqueOverlappers(startPosition, current, chunkAlignmentTree2, extensionFactor);
-				Annotation endPosition = new Alignments(chr, previous.getEnd(), current.getEnd());
-				double addVal=data.getCountsOfUniqueOverlappers(endPosition, previous, chunkAlignmentTree, extensionFactor);
-				double addVal2=data2.getData().getCountsOfUniqueOverlappers(endPosition, previous, chunkAlignmentTree2, extensionFactor);
-				sum=(score1-subtractVal)+addVal;
-				sum2=(score2-subtractVal2)+addVal2;
-				//System.err.println("\tp: " + previous.toUCSC() + " c: " +current.toUCSC()+ " " +data.getCountsPerAlignment(current, chunkAlignmentTree, extensionFactor)+" "+subtractVal+" "+addVal+" "+data.getCountsPerAlignment(previous, chunkAlignmentTree, extensionFactor)+" score: "+score + " sum: " + sum);
-			}
-	
-			double percent=(i/numMarkers)*100;
-			if(counter% 1000000 ==1 || sum < 0){
-				double memoryPercent=Runtime.getRuntime().freeMemory()/(double)Runtime.getRuntime().totalMemory();
-				//System.err.println(counter+" % of markers done "+percent+", % memory used  "+(memoryPercent*100)+", window: "+window.toUCSC()+", sum: "+sum);
-			}
-			//assert(sum > 0);
-			score1=sum;
-			score2=sum2;
-			previous=current;
-	
+			double sum=counts.getCount(start, end);
+			double sum2=counts2.getCount(start, end);
+
 			int midPoint=(current.getEnd()-current.getStart())/2;
 			
 			double ratio=(sum+1)/(sum2+1);
@@ -793,119 +780,93 @@ public class ContinuousDataAlignmentModel{
 					writer.write(current.getChr()+"\t"+midPoint+"\t"+(midPoint+1)+"\t"+scaledRatio+"\n");
 				}
 			}
-			
-			
-			if(end>=(chunkNumber*chunkSize-1)){
-				chunkNumber++; 
-				chunkAlignmentTree=data.getIntervalTree(chr, i, Math.max(chunkNumber*this.chunkSize, end));
-				chunkAlignmentTree2=data2.getData().getIntervalTree(chr, i, Math.max(chunkNumber*this.chunkSize, end));
-			}
-	
-	
-			counter++;
 		}
 	
 	}
+
+	/**
+	 * Release the cumulative counts kept by the last comparison to another sample
+	 */
+	public void releaseComparedCounts() {
+		if(comparedCounts != null) comparedCounts.close();
+		if(comparedCounts2 != null) comparedCounts2.close();
+		comparedCounts=null;
+		comparedCounts2=null;
+		comparedData2=null;
+	}
 	
-	// to compute score take current score and subtract base pair before and add base pair after ensuring that none of the added is
-	// already overlapping the segment and none of the subtracted is in segment
-	// iterate from 0 to numMarkers-w
-	// reverse iterate from numMarkers to w
-	private IntervalTree<Annotation> scanGenome(int fixedWidth, int critVal, String chr) throws IOException{
-		int counter=0;
-	
+	/**
+	 * Scan every window of each size across a chromosome
+	 * Window counts are differences of cumulative counts, so each window size is one pass over the chromosome
+	 * @param counts Cumulative counts of the chromosome
+	 * @param windowSizes The window sizes, scanned in parallel
+	 * @param alpha Significance level
+	 * @param chr The chromosome
+	 * @return For each window size, the significant windows merged into an interval tree
+	 * @throws IOException
+	 */
+	private List<IntervalTree<Annotation>> scanGenome(final CumulativeReadCounts counts, int[] windowSizes, final double alpha, String chr) throws IOException{
 		// chr size minus masked regions
-		double numMarkers=getNumberMarkers(chr);
-	
-		IntervalTree<Annotation> rtrnTree=new IntervalTree<Annotation>();
-	
-		//load chunks into memory: first chunk
-		int chunkNumber=1;
-	
-		// get interval tree for the first chunk
-		// key is mapped coordinates of read
-		// value is number of reads mapped to position
-		IntervalTree<Alignment> chunkAlignmentTree=data.getIntervalTree(chr, 0, chunkNumber*chunkSize);
-		
-		double score=0;
-		Annotation previous=null;
-		boolean cached=false;
-	
-		// for every position in chromosome
-		for(int i=0; i<data.getChromosomeLengths().get(chr); i++) {
-				
-			long startTime=System.currentTimeMillis();
-			
-			//if score is 0 jump to end of fixed width
-			int start=i;
-			int end=start+fixedWidth;
-			Annotation current=new Alignments(chr, start, end); // the region of length fixedWidth beginning at start
-			//System.err.println("Current: " + current.toUCSC());
-			double sum=0;
-	
-			if(score==0) {
-				
-				// set sum to the number of mappings in current interval
-				//sum=data.getCountsPerAlignment(current, chunkAlignmentTree, extensionFactor); 
-				sum=data.getCountsPerAlignment(current, chunkAlignmentTree, 0); //9/9/12 re-did handling of extension factors at the get tree level 
-	
-				// if there are no reads in the current interval, skip to next interval
-				if(sum ==0) {
-					i=start+fixedWidth;
-					//System.err.println("\tScore was 0 and so was sum, advancing from " + start + " to " +i);
-				} else {
-					//System.err.println("\tScore was 0, used reads to compute sum: " + sum);
+		final double T=getNumberMarkers(chr);
+		final double lambda=getLambda(chr);
+	
+		List<Callable<List<Annotation>>> tasks=new ArrayList<Callable<List<Annotation>>>();
+		for(final int windowSize : windowSizes){
+			tasks.add(new Callable<List<Annotation>>() {
+				@Override
+				public List<Annotation> call() {
+					long start=System.currentTimeMillis();
+					int criticalValue=calculateCriticalValue(new Double(T).intValue(), windowSize, T, alpha, lambda);
+					long end=System.currentTimeMillis();
+					logger.info("Computing critical values  for window size "+ windowSize+" took: "+(end-start)/1000.0 + " sec. " +criticalValue);
+	
+					start=System.currentTimeMillis();
+					List<Annotation> windows=counts.getSignificantWindows(windowSize, criticalValue);
+					end=System.currentTimeMillis();
+					logger.info("Scanning window size "+windowSize+" took: "+(end-start)/1000.0 +  " sec.");
+					return windows;
 				}
-				cached=false; // no part of the interval has been scored
-			} else {
-				/*
-				if have part of the interval scored and cached then to get next score just need to compute piece not contained
-				get score for base not covered and add
-				get score for base covered in previous that no longer contained and subtract
-				 */		
-				cached = true; // part of the interval has been scored
-				// interval between start position of previous interval and start position of current interval - the part that has been covered
-				Annotation startPosition = new Alignments(chr, previous.getStart(), current.getStart());
-				// the number of mappings in current that have been counted
-				double subtractVal=data.getCountsOfUniqueOverlappers(startPosition, current, chunkAlignmentTree, 0); //9/9/12 re-did handling of extension factors at the get tree level
-				// interval between end position of previous interval and end position of current interval - the part that has not been covered
-				Annotation endPosition = new Alignments(chr, previous.getEnd(), current.getEnd());
-				// the number of mappings in current that have not been counted
-				double addVal=data.getCountsOfUniqueOverlappers(endPosition, previous, chunkAlignmentTree, 0);//9/9/12 re-did handling of extension factors at the get tree level
-				
-				// score is the sum of previous interval
-				// sum is the score of current interval
-				sum=(score-subtractVal)+addVal;
-				//System.err.println("\tp: " + previous.toUCSC() + " c: " +current.toUCSC()+ " " +data.getCountsPerAlignment(current, chunkAlignmentTree, extensionFactor)+" "+subtractVal+" "+addVal+" "+data.getCountsPerAlignment(previous, chunkAlignmentTree, extensionFactor)+" score: "+score + " sum: " + sum);
-			}
+			});
+		}
 	
-			//double percent=(i/numMarkers)*100;
-			//if(counter% 1000000 ==1 || sum < 0) {
-				//double memoryPercent=Runtime.getRuntime().freeMemory()/(double)Runtime.getRuntime().totalMemory();
-				//System.err.println(counter+" % of markers done "+percent+", % memory used  "+(memoryPercent*100)+", window: "+window.toUCSC()+", sum: "+sum);
-			//}
-			//assert(sum > 0);
-			score=sum;
-			previous=current;
-	
-			/***********BAD For Testing*********************/
-			//if(sum>critVal){rtrn.add(align);}
-			if(sum>critVal){
+		List<List<Annotation>> results=new ArrayList<List<Annotation>>();
+		int threads=Math.max(1, Math.min(numThreads, tasks.size()));
+		ExecutorService executor=Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t=new Thread(r, "window-scan");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<List<Annotation>>> futures=new ArrayList<Future<List<Annotation>>>();
+			for(Callable<List<Annotation>> task : tasks){
+				futures.add(executor.submit(task));
+			}
+			for(Future<List<Annotation>> future : futures){
+				results.add(future.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while scanning " + chr, e);
+		} catch(ExecutionException e) {
+			throw new IOException("Scanning " + chr + " failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	
+		List<IntervalTree<Annotation>> rtrn=new ArrayList<IntervalTree<Annotation>>();
+		for(List<Annotation> windows : results){
+			IntervalTree<Annotation> rtrnTree=new IntervalTree<Annotation>();
+			for(Annotation current : windows){
 				// merge current interval into rtrnTree 
 				Iterator<Node<Annotation>> iter=rtrnTree.overlappers(current.getStart(), current.getEnd());
 				rtrnTree=mergeAndRemove(iter, current, rtrnTree);
 			}
-			/**********************************************/
-	
-			// move on to next chunk
-			if(end>=(chunkNumber*chunkSize-1)){chunkNumber++; chunkAlignmentTree=data.getIntervalTree(chr, i, Math.max(chunkNumber*this.chunkSize, end));}
-	
-	
-			//System.out.println("Free memory after iteration: " + i + " " + Runtime.getRuntime().freeMemory());
-			counter++;
+			rtrn.add(rtrnTree);
 		}
-	
-		return rtrnTree;
+		return rtrn;
 	}
 
 
@@ -2195,6 +2156,10 @@ public class ContinuousDataAlignmentModel{
 			data.setMinContguousSegmentSize(minRemainingLength);
 			data.setTrimQuantile(trimQuantile);
 			data.setFindMaxContiguous(findMaxContiguous);
+			data.setNumThreads(argmap.containsKey("threads") ? argmap.getInteger("threads") : 1);
+			if(argmap.isPresent("countsDir")) {
+				data.setCumulativeCountDirectory(new File(argmap.get("countsDir")));
+			}
 	
 			Map<Annotation, double[]> scores = new HashMap<Annotation, double[]>();
 			int totalMappedReads = 0;
@@ -2541,6 +2506,7 @@ public class ContinuousDataAlignmentModel{
 			"\n\nTask: makePairedFile Makes a paired end alignment file from two sets of independtly aligned left and right ends, ideally the files should be name-sorted \n\t-pair1 <First pair Annotation> \n\t-pair2 <Second pair Annotation> \n\t-out <output consolidated paired end alignment> \n\t-sorted  <Include this flag if the data is already read name sorted, ideally both input files should be sorted by read name using unix sort for example> \n\t-usePair2Orientation <If the second paired rather than the first should be used to orient insert like for dUTP libraries>\n\t-forChIP <If the alignment if for ChIP rather than RNAseq then Ms will be used instead of Ns>" + 
 			"\n\nTask: chipScan - Segment the genome assuming contiguous data. Similar to the default task but optimized for contiguous data. \n -alignment <Alignment file in BAM, SAM or Alignemnt format> \n -extensionFactor <Extend reads by this factor (defaults to 0)> \n -maskFileDir <Mask File directory> \n -out <Output file name>"+ 
 			"\n -chr <Chromosome to segment>\n -sizeFile <Chromosome size file> \n -windows <Comma separated list of windows to evaluate defaults to contiguous regions of coverage> \n Optional arguments:\n -findMaxContiguous <Each significant window is trimmed by finding the contiguous sub region with coverage over a predefined threshold> -trim <Include this flag if trimming of the ends of windows based on read coverage  is desired this is expensive> \n -alpha <Desired FDR>" +
+			"\n -threads <Number of window sizes to scan in parallel, defaults to 1> \n -countsDir <Directory to hold per base cumulative counts on disk for large chromosomes, defaults to memory>" +
 			"\n\nTask: trim -  Trims end of transcripts by removing all bases whose coverage is below the specified quantile of transcript expression -in <Full BED file with annotations to trim> \n\t-alignment <Alignment file in BAM, SAM or Alignemnt format> \n\t-sizeFile <Chromosome size file> \n\t-out <Output file name> \n\t -maskFileDir <Mask File directory>\n\t-quantile <Coverage quantile below which end bases should be trimmed>"+
 			"\n\nTask: trimSegments -  Trims end of continuous segments by removing all bases whose coverage is below the specified quantile of transcript expression -in <Full BED file with annotations to trim> \n\t-alignment <Alignment file in BAM, SAM or Alignemnt format> \n\t[-sizeFile <Chromosome size file>] \n\t-out <Output file name> \n\t -maskFileDir <Mask File directory>\n\t-quantile <Coverage quantile below which end bases should be trimmed> \n\t\t-findMaxContiguous <To break up segments that have peak/valley shapes>"+
 			"\n\nTask: adjustEnds -  Takes an annotation set and adjust transcript ends based on the given alignment \n\t-in <Full BED file with annotations to trim> \n\t-alignment <Alignment file in BAM, SAM or Alignemnt format> \n\t[-sizeFile <Chromosome size file>] \n\t-out <Output file name> \n\t -maskFileDir <Mask File directory>\n\t=trimQuantile <Coverage quantile below which end bases should be trimmed> \n\t\t-findMaxContiguous <To break up segments that have peak/valley shapes>"+
@@ -0,0 +1,393 @@
+package broad.pda.seq.segmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import broad.pda.datastructures.Alignments;
+
+/**
+ * Per base cumulative read counts of one chromosome
+ * The chromosome is read once into the total count of reads starting before and ending at or before each position
+ * The count of reads overlapping any window is then a difference of two lookups, less the reads whose intron contains the window
+ * Counts are the same as AlignmentDataModel.getCountsPerAlignment with no extension factor
+ * Arrays are held in chunks, in memory or in a memory mapped temporary file for large chromosomes
+ * In memory, whole read counts take 8 bytes per base and weighted counts 16
+ */
+public class CumulativeReadCounts {
+
+	static Logger logger = Logger.getLogger(CumulativeReadCounts.class.getName());
+
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	/**
+	 * Tolerance for rounding error in differences of weighted counts
+	 */
+	private static final double EPSILON = 1e-6;
+
+	private String chr;
+	private int length;
+	private File file;
+	/**
+	 * Total count of reads starting before each position
+	 */
+	private ChunkedArray starts;
+	/**
+	 * Total count of reads ending at or before each position
+	 */
+	private ChunkedArray ends;
+	/**
+	 * Distinct intron gaps, by start then end, with the total count of reads that have them
+	 */
+	private int[] gapStart;
+	private int[] gapEnd;
+	private double[] gapCount;
+	/**
+	 * Gap indices in order of gap end
+	 */
+	private int[] gapsByEnd;
+	private IntervalTree<Integer> gapTree;
+
+	/**
+	 * Array of counts in fixed size chunks, on the heap or mapped from a file
+	 * On the heap, whole counts are held as int offsets from a long base per chunk, 4 bytes per value
+	 * The array switches to doubles when a count is not a whole number or an offset overflows an int
+	 */
+	private static class ChunkedArray {
+
+		private int size;
+		private int[][] whole;
+		private long[] base;
+		private double[][] memory;
+		private DoubleBuffer[] mapped;
+
+		ChunkedArray(int size) {
+			this.size = size;
+			int numChunks = (size + CHUNK_MASK) >> CHUNK_BITS;
+			whole = new int[numChunks][];
+			base = new long[numChunks];
+			for(int i = 0; i < numChunks; i++) {
+				whole[i] = new int[getChunkLength(i)];
+			}
+		}
+
+		ChunkedArray(FileChannel channel, long offset, int size) throws IOException {
+			this.size = size;
+			int numChunks = (size + CHUNK_MASK) >> CHUNK_BITS;
+			mapped = new DoubleBuffer[numChunks];
+			for(int i = 0; i < numChunks; i++) {
+				mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset + 8L * (i << CHUNK_BITS), 8L * getChunkLength(i)).asDoubleBuffer();
+			}
+		}
+
+		private int getChunkLength(int chunk) {
+			return Math.min(1 << CHUNK_BITS, size - (chunk << CHUNK_BITS));
+		}
+
+		double get(int i) {
+			if(whole != null) return base[i >> CHUNK_BITS] + whole[i >> CHUNK_BITS][i & CHUNK_MASK];
+			if(memory != null) return memory[i >> CHUNK_BITS][i & CHUNK_MASK];
+			return mapped[i >> CHUNK_BITS].get(i & CHUNK_MASK);
+		}
+
+		void set(int i, double value) {
+			if(memory != null) memory[i >> CHUNK_BITS][i & CHUNK_MASK] = value;
+			else mapped[i >> CHUNK_BITS].put(i & CHUNK_MASK, value);
+		}
+
+		void add(int i, double value) {
+			if(whole != null) {
+				long sum = whole[i >> CHUNK_BITS][i & CHUNK_MASK] + (long) value;
+				if(value == (long) value && sum >= Integer.MIN_VALUE && sum <= Integer.MAX_VALUE) {
+					whole[i >> CHUNK_BITS][i & CHUNK_MASK] = (int) sum;
+					return;
+				}
+				toDoubles();
+			}
+			set(i, get(i) + value);
+		}
+
+		/**
+		 * Move the values to double chunks, one chunk at a time
+		 */
+		private void toDoubles() {
+			logger.info("Holding cumulative counts as doubles");
+			memory = new double[whole.length][];
+			for(int c = 0; c < whole.length; c++) {
+				memory[c] = new double[whole[c].length];
+				for(int j = 0; j < whole[c].length; j++) {
+					memory[c][j] = base[c] + whole[c][j];
+				}
+				whole[c] = null;
+			}
+			whole = null;
+			base = null;
+		}
+
+		/**
+		 * Replace each value by the sum of the values up to and including it
+		 */
+		void prefixSum() {
+			if(whole != null) {
+				// Sums within a chunk must fit in an int offset from the sum before the chunk
+				for(int c = 0; c < whole.length && whole != null; c++) {
+					long sum = 0;
+					for(int j = 0; j < whole[c].length; j++) {
+						sum += whole[c][j];
+						if(sum < Integer.MIN_VALUE || sum > Integer.MAX_VALUE) {
+							toDoubles();
+							break;
+						}
+					}
+				}
+			}
+			if(whole != null) {
+				long sum = 0;
+				for(int c = 0; c < whole.length; c++) {
+					base[c] = sum;
+					int offset = 0;
+					for(int j = 0; j < whole[c].length; j++) {
+						offset += whole[c][j];
+						whole[c][j] = offset;
+					}
+					sum += offset;
+				}
+				return;
+			}
+			double sum = 0;
+			for(int i = 0; i < size; i++) {
+				sum += get(i);
+				set(i, sum);
+			}
+		}
+
+	}
+
+	/**
+	 * Read the counts of a chromosome into memory
+	 * @param data The alignment data
+	 * @param chr The chromosome
+	 * @param chunkSize Size of the regions to read alignments from at a time
+	 * @throws IOException
+	 */
+	public CumulativeReadCounts(AlignmentDataModelStats data, String chr, int chunkSize) throws IOException {
+		this(data, chr, chunkSize, null);
+	}
+
+	/**
+	 * Read the counts of a chromosome
+	 * @param data The alignment data
+	 * @param chr The chromosome
+	 * @param chunkSize Size of the regions to read alignments from at a time
+	 * @param directory Directory for a temporary file holding the counts, or null to hold them in memory
+	 * @throws IOException
+	 */
+	public CumulativeReadCounts(AlignmentDataModelStats data, String chr, int chunkSize, File directory) throws IOException {
+		this.chr = chr;
+		this.length = data.getChromosomeLengths().get(chr).intValue();
+		int size = length + 1;
+		if(directory == null) {
+			starts = new ChunkedArray(size);
+			ends = new ChunkedArray(size);
+		} else {
+			file = File.createTempFile("cumulative_counts_" + chr + "_", ".bin", directory);
+			file.deleteOnExit();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(16L * size);
+				starts = new ChunkedArray(raf.getChannel(), 0, size);
+				ends = new ChunkedArray(raf.getChannel(), 8L * size, size);
+			} finally {
+				// Mappings stay valid after the channel is closed
+				raf.close();
+			}
+		}
+
+		long startTime = System.currentTimeMillis();
+		Map<Long, Double> gaps = new TreeMap<Long, Double>();
+		for(int chunkStart = 0; chunkStart < length; chunkStart += chunkSize) {
+			int chunkEnd = (int) Math.min((long) chunkStart + chunkSize, length);
+			IntervalTree<Alignment> tree = data.getIntervalTree(chr, chunkStart, chunkEnd);
+			Iterator<Node<Alignment>> iter = tree.iterator();
+			while(iter.hasNext()) {
+				Node<Alignment> node = iter.next();
+				Alignment record = node.getValue();
+				// Reads overlapping the chunk start were counted with an earlier chunk
+				if(record.getStart() < chunkStart) continue;
+				double count = data.getCount(record) * node.getNumReplicates();
+				if(count == 0) continue;
+				addRead(record, count, gaps);
+			}
+		}
+		starts.prefixSum();
+		ends.prefixSum();
+		setGaps(gaps);
+		logger.info("Cumulative counts of " + chr + " with " + gapStart.length + " distinct introns took " + (System.currentTimeMillis() - startTime) / 1000.0 + " sec.");
+	}
+
+	private void addRead(Alignment record, double count, Map<Long, Double> gaps) {
+		Collection<? extends Annotation> blocks = record.getFragment(null).iterator().next().getBlocks();
+		int readStart = Integer.MAX_VALUE;
+		int readEnd = Integer.MIN_VALUE;
+		for(Annotation block : blocks) {
+			readStart = Math.min(readStart, block.getStart());
+			readEnd = Math.max(readEnd, block.getEnd());
+		}
+		if(readStart >= readEnd) return;
+		// Difference arrays, summed once all reads are added
+		if(readStart < length) starts.add(Math.max(readStart, 0) + 1, count);
+		if(readEnd <= length) ends.add(Math.max(readEnd, 0), count);
+
+		// A window inside the space between two blocks overlaps the read span but not the read
+		Annotation[] sorted = blocks.toArray(new Annotation[blocks.size()]);
+		Arrays.sort(sorted, new Comparator<Annotation>() {
+			@Override
+			public int compare(Annotation a1, Annotation a2) {
+				return a1.getStart() - a2.getStart();
+			}
+		});
+		int covered = sorted[0].getEnd();
+		for(int i = 1; i < sorted.length; i++) {
+			if(sorted[i].getStart() > covered) {
+				Long key = Long.valueOf(((long) covered << 32) | sorted[i].getStart());
+				Double previous = gaps.get(key);
+				gaps.put(key, Double.valueOf(previous == null ? count : previous.doubleValue() + count));
+			}
+			covered = Math.max(covered, sorted[i].getEnd());
+		}
+	}
+
+	private void setGaps(Map<Long, Double> gaps) {
+		int n = gaps.size();
+		gapStart = new int[n];
+		gapEnd = new int[n];
+		gapCount = new double[n];
+		gapTree = new IntervalTree<Integer>();
+		long[] byEnd = new long[n];
+		int i = 0;
+		for(Long key : gaps.keySet()) {
+			gapStart[i] = (int) (key.longValue() >>> 32);
+			gapEnd[i] = (int) (key.longValue() & 0xFFFFFFFFL);
+			gapCount[i] = gaps.get(key).doubleValue();
+			gapTree.put(gapStart[i], gapEnd[i], Integer.valueOf(i));
+			byEnd[i] = ((long) gapEnd[i] << 32) | i;
+			i++;
+		}
+		Arrays.sort(byEnd);
+		gapsByEnd = new int[n];
+		for(i = 0; i < n; i++) {
+			gapsByEnd[i] = (int) (byEnd[i] & 0xFFFFFFFFL);
+		}
+	}
+
+	/**
+	 * @return The chromosome
+	 */
+	public String getChr() {
+		return chr;
+	}
+
+	/**
+	 * @return The chromosome length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the count of reads with a block overlapping a window
+	 * @param start Window start
+	 * @param end Window end, exclusive
+	 * @return The count of reads
+	 */
+	public double getCount(int start, int end) {
+		start = Math.max(start, 0);
+		end = Math.min(end, length);
+		if(start >= end) return 0;
+		double count = starts.get(end) - ends.get(start);
+		Iterator<Node<Integer>> iter = gapTree.overlappers(start, end);
+		while(iter.hasNext()) {
+			int gap = iter.next().getValue().intValue();
+			if(gapStart[gap] <= start && gapEnd[gap] >= end) count -= gapCount[gap];
+		}
+		return Math.abs(count) < EPSILON ? 0 : count;
+	}
+
+	/**
+	 * Scan every window of a fixed size across the chromosome
+	 * @param windowSize Window size
+	 * @param criticalValue Windows with a count above this value are significant
+	 * @return Runs of overlapping significant windows, merged, in order
+	 */
+	public List<Annotation> getSignificantWindows(int windowSize, double criticalValue) {
+		List<Annotation> rtrn = new ArrayList<Annotation>();
+		int n = gapStart.length;
+		// Count of reads whose gap contains the current window
+		double inGaps = 0;
+		int numGaps = 0;
+		int nextOpen = 0;
+		int nextClose = 0;
+		int runStart = -1;
+		int runEnd = -1;
+		for(int start = 0; start < length; start++) {
+			// A gap contains the windows starting from the gap start to the gap end less the window size
+			while(nextOpen < n && gapStart[nextOpen] <= start) {
+				if(gapEnd[nextOpen] - gapStart[nextOpen] >= windowSize) {
+					inGaps += gapCount[nextOpen];
+					numGaps++;
+				}
+				nextOpen++;
+			}
+			while(nextClose < n && gapEnd[gapsByEnd[nextClose]] - windowSize < start) {
+				int gap = gapsByEnd[nextClose];
+				if(gapEnd[gap] - gapStart[gap] >= windowSize) {
+					inGaps -= gapCount[gap];
+					numGaps--;
+				}
+				nextClose++;
+			}
+			if(numGaps == 0) inGaps = 0;
+
+			double count = starts.get(Math.min(start + windowSize, length)) - ends.get(start) - inGaps;
+			if(count > criticalValue + EPSILON) {
+				if(runStart >= 0 && start > runEnd) {
+					rtrn.add(new Alignments(chr, runStart, runEnd));
+					runStart = -1;
+				}
+				if(runStart < 0) runStart = start;
+				runEnd = start + windowSize;
+			}
+		}
+		if(runStart >= 0) rtrn.add(new Alignments(chr, runStart, runEnd));
+		return rtrn;
+	}
+
+	/**
+	 * Release the counts and delete the temporary file if there is one
+	 */
+	public void close() {
+		starts = null;
+		ends = null;
+		if(file != null && !file.delete()) {
+			logger.warn("Could not delete " + file);
+		}
+	}
+
+}
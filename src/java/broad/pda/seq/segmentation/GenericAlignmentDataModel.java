@@ -555,6 +555,15 @@ public class GenericAlignmentDataModel implements AlignmentDataModel{
 	}
 	
 	
+	@Override
+	public double getCount(Alignment record) {
+		if(!passesQualAndStrandness(record)) {
+			return 0;
+		}
+		double counter = countReads(record);
+		return normalizer == null ? counter : normalizer.normalize(counter);
+	}
+	
 	private double getCountsPerAlignment(Iterator<Node<Alignment>> iter, Annotation align, int EF) {
 		double counter = 0;
 		
@@ -1850,12 +1859,12 @@ public class GenericAlignmentDataModel implements AlignmentDataModel{
 
 	@Override
 	public Map<String, Integer> getChromosomeLengths() {
-		throw new UnsupportedOperationException("TODO");
+		return getChrLengths();
 	}
 
 	@Override
 	public int getChromosomeLength(String chr) {
-		throw new UnsupportedOperationException("TODO");
+		return getChrLength(chr);
 	}
 
 	@Override
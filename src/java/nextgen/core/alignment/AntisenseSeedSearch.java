@@ -0,0 +1,267 @@
+package nextgen.core.alignment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import broad.core.sequence.Sequence;
+
+/**
+ * Candidate pairs for antisense local alignments between many sequences
+ * A pair is seeded by a k-mer of one sequence that is also in the reverse complement of the other
+ * Seeded pairs are screened by the best local alignment score in a band around the seed diagonals
+ * The seed length, band width and score cutoff follow from the length and identity thresholds, so no pair whose alignment passes them is dropped
+ * Scores are those of jaligner.SmithWatermanGotoh with a matrix from jaligner.matrix.MatrixGenerator
+ */
+class AntisenseSeedSearch {
+
+	/**
+	 * Longest k-mer to index
+	 */
+	private static final int MAX_SEED_LENGTH = 16;
+	private static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 2;
+
+	/**
+	 * Score rows and vertical gap rows reused by each thread
+	 */
+	private static ThreadLocal<int[][]> buffers = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[2][0];
+		}
+	};
+
+	private char[][] sequences;
+	private char[][] antisense;
+	private int matchScore;
+	private int mismatchScore;
+	private int gapOpen;
+	private int gapExtend;
+	private int minLength;
+	private float minIdentity;
+	private int maxLength;
+	/**
+	 * Length of seeds, or 0 if the thresholds are too low to require a shared k-mer
+	 */
+	private int seedLength;
+	/**
+	 * Lowest score of an alignment passing the thresholds, or 0 if there is no cutoff
+	 */
+	private int minScore;
+
+	/**
+	 * @param bases The sequences
+	 * @param match Match score
+	 * @param mismatch Mismatch score
+	 * @param gapOpenPenalty Gap open penalty
+	 * @param gapExtendPenalty Gap extend penalty
+	 * @param minAlignLength Min alignment length
+	 * @param minPctIdentity Min identity as a fraction of alignment length
+	 */
+	AntisenseSeedSearch(String[] bases, float match, float mismatch, float gapOpenPenalty, float gapExtendPenalty, float minAlignLength, float minPctIdentity) {
+		sequences = new char[bases.length][];
+		antisense = new char[bases.length][];
+		int longest = 0;
+		for(int i = 0; i < bases.length; i++) {
+			sequences[i] = bases[i].toCharArray();
+			antisense[i] = Sequence.reverseSequence(bases[i]).toCharArray();
+			longest = Math.max(longest, bases[i].length());
+		}
+		// An alignment is no longer than its two sequences together
+		maxLength = 2 * longest;
+		minLength = Math.max(1, (int) Math.ceil(minAlignLength));
+		minIdentity = minPctIdentity;
+
+		// Identities are split into runs by the other columns, the longest run is a shared k-mer
+		seedLength = MAX_SEED_LENGTH;
+		for(int length = minLength; length <= maxLength; length++) {
+			int identities = getMinIdentities(length);
+			int runs = length - identities + 1;
+			seedLength = Math.min(seedLength, (identities + runs - 1) / runs);
+		}
+
+		// Scores can only be screened when they are whole numbers
+		boolean integerScores = match == (int) match && mismatch == (int) mismatch && gapOpenPenalty == (int) gapOpenPenalty && gapExtendPenalty == (int) gapExtendPenalty;
+		matchScore = (int) match;
+		mismatchScore = (int) mismatch;
+		gapOpen = (int) gapOpenPenalty;
+		gapExtend = (int) gapExtendPenalty;
+		minScore = 0;
+		if(integerScores) {
+			// Each column other than an identity scores at least the worst of a mismatch and a gap
+			int worst = Math.min(mismatchScore, Math.min(-gapOpen, -gapExtend));
+			if(matchScore >= worst && minLength <= maxLength) {
+				long lowest = Long.MAX_VALUE;
+				for(int length = minLength; length <= maxLength; length++) {
+					int identities = getMinIdentities(length);
+					lowest = Math.min(lowest, (long) matchScore * identities + (long) worst * (length - identities));
+				}
+				minScore = (int) Math.max(0, Math.min(Integer.MAX_VALUE, lowest));
+			}
+		}
+	}
+
+	/**
+	 * Fewest identities in an alignment of a given length passing the identity threshold, rounded down to allow for float comparison
+	 * @param length Alignment length
+	 * @return Min number of identical columns
+	 */
+	private int getMinIdentities(int length) {
+		if(minIdentity <= 0) return 0;
+		return Math.min(length, Math.max(0, (int) Math.ceil(minIdentity * length) - 1));
+	}
+
+	/**
+	 * @return Length of seeds, or 0 if every pair is a candidate
+	 */
+	int getSeedLength() {
+		return seedLength;
+	}
+
+	/**
+	 * @return Lowest score of a passing alignment, or 0 if scores are not screened
+	 */
+	int getMinScore() {
+		return minScore;
+	}
+
+	/**
+	 * Get the pairs with a k-mer of the first sequence in the reverse complement of the second
+	 * Key is first index times the number of sequences plus second index
+	 * @return For each seeded pair, the lowest and highest diagonal of its seeds as position in the reverse complement less position in the first sequence
+	 */
+	Map<Long, int[]> getSeededPairs() {
+		int n = sequences.length;
+		Map<Long, int[]> rtrn = new HashMap<Long, int[]>();
+		if(seedLength == 0) {
+			for(int i = 0; i < n; i++) {
+				for(int j = 0; j < n; j++) {
+					rtrn.put(Long.valueOf((long) i * n + j), new int[] {-sequences[i].length, antisense[j].length});
+				}
+			}
+			return rtrn;
+		}
+
+		// Positions of each k-mer in the reverse complements
+		Map<String, List<int[]>> index = new HashMap<String, List<int[]>>();
+		for(int j = 0; j < n; j++) {
+			String seq = new String(antisense[j]);
+			for(int b = 0; b + seedLength <= seq.length(); b++) {
+				String kmer = seq.substring(b, b + seedLength);
+				List<int[]> hits = index.get(kmer);
+				if(hits == null) {
+					hits = new ArrayList<int[]>();
+					index.put(kmer, hits);
+				}
+				hits.add(new int[] {j, b});
+			}
+		}
+
+		for(int i = 0; i < n; i++) {
+			String seq = new String(sequences[i]);
+			for(int a = 0; a + seedLength <= seq.length(); a++) {
+				List<int[]> hits = index.get(seq.substring(a, a + seedLength));
+				if(hits == null) continue;
+				for(int[] hit : hits) {
+					Long key = Long.valueOf((long) i * n + hit[0]);
+					int diagonal = hit[1] - a;
+					int[] range = rtrn.get(key);
+					if(range == null) {
+						rtrn.put(key, new int[] {diagonal, diagonal});
+					} else {
+						range[0] = Math.min(range[0], diagonal);
+						range[1] = Math.max(range[1], diagonal);
+					}
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Most gaps, and so the furthest drift from a seed diagonal, of a passing alignment between two sequences
+	 * @param length1 Length of first sequence
+	 * @param length2 Length of second sequence
+	 * @return Half width of the band around the seed diagonals
+	 */
+	private int getBandWidth(int length1, int length2) {
+		int shorter = Math.min(length1, length2);
+		int rtrn = 0;
+		for(int length = minLength; length <= length1 + length2; length++) {
+			int identities = getMinIdentities(length);
+			// Columns other than identities include every gap, and the shorter sequence bounds the columns without a gap
+			if(identities > shorter) break;
+			rtrn = Math.max(rtrn, length - identities);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Whether the antisense alignment of a seeded pair can pass the thresholds
+	 * @param first Index of first sequence
+	 * @param second Index of second sequence, aligned as reverse complement
+	 * @param diagonals Lowest and highest seed diagonal
+	 * @return False if the best local alignment score in the band is below the score of any passing alignment
+	 */
+	boolean mayPass(int first, int second, int[] diagonals) {
+		if(minScore <= 0) return true;
+		char[] a1 = sequences[first];
+		char[] a2 = antisense[second];
+		int width = getBandWidth(a1.length, a2.length);
+		return getBandedScore(a1, a2, diagonals[0] - width, diagonals[1] + width, minScore) >= minScore;
+	}
+
+	/**
+	 * Best Smith Waterman Gotoh score over cells within a band of diagonals
+	 * Cells outside the band start a new local alignment and are never gapped into
+	 * @param a1 First sequence
+	 * @param a2 Second sequence
+	 * @param low Lowest diagonal, column less row
+	 * @param high Highest diagonal
+	 * @param stopScore Return as soon as a cell reaches this score
+	 * @return The best score found
+	 */
+	private int getBandedScore(char[] a1, char[] a2, int low, int high, int stopScore) {
+		int m = a1.length;
+		int n = a2.length;
+		int[][] buffer = buffers.get();
+		if(buffer[0].length < n + 1) {
+			buffer[0] = new int[n + 1];
+			buffer[1] = new int[n + 1];
+		}
+		int[] v = buffer[0];
+		int[] g = buffer[1];
+		for(int j = 0; j <= n; j++) {
+			v[j] = 0;
+			g[j] = NEGATIVE_INFINITY;
+		}
+		int best = 0;
+		for(int i = 1; i <= m; i++) {
+			int jStart = Math.max(1, i + low);
+			int jEnd = Math.min(n, i + high);
+			if(jStart > jEnd) continue;
+			// The previous row covered the diagonal neighbor of the first cell, and nothing right of its last cell
+			int vDiagonal = v[jStart - 1];
+			int vLeft = 0;
+			int h = NEGATIVE_INFINITY;
+			char c1 = a1[i - 1];
+			for(int j = jStart; j <= jEnd; j++) {
+				char c2 = a2[j - 1];
+				int f = vDiagonal + (c1 == c2 || c1 == 'N' || c2 == 'N' ? matchScore : mismatchScore);
+				g[j] = Math.max(g[j] - gapExtend, v[j] - gapOpen);
+				h = Math.max(h - gapExtend, vLeft - gapOpen);
+				vDiagonal = v[j];
+				int score = Math.max(Math.max(f, g[j]), Math.max(h, 0));
+				v[j] = score;
+				vLeft = score;
+				if(score > best) {
+					best = score;
+					if(best >= stopScore) return best;
+				}
+			}
+		}
+		return best;
+	}
+
+}
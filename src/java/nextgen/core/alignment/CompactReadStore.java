@@ -0,0 +1,864 @@
+package nextgen.core.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.annotation.AbstractAnnotation;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.CoordinateSpace;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+import nextgen.core.utils.AnnotationUtils;
+
+/**
+ * Columnar store of the reads aligned to one reference sequence
+ * Each read is a row of parallel primitive arrays (start, end, fragment bounds, weight, mapping quality, strand and flags)
+ * and its alignment blocks are kept in shared block arrays indexed by per-read offsets.
+ * Reads are sorted by start and a running maximum of read ends allows overlap queries by binary search.
+ * Counting, coverage and overlap queries run over the arrays without creating one object per read.
+ * Reads can still be seen as Alignment objects through read-only flyweight views.
+ */
+public class CompactReadStore {
+
+	private static final byte NEGATIVE = 1;
+	private static final byte UNKNOWN_STRAND = 1 << 1;
+	private static final byte PAIRED = 1 << 2;
+	private static final byte PROPER_PAIR = 1 << 3;
+	private static final byte DUPLICATE = 1 << 4;
+	private static final byte CHIMERA = 1 << 5;
+	private static final byte INDEL = 1 << 6;
+
+	private String referenceName;
+	private int size;
+	private int[] starts;
+	private int[] ends;
+	private int[] maxEnds;
+	private int[] fragmentStarts;
+	private int[] fragmentEnds;
+	private double[] weights;
+	private byte[] mappingQualities;
+	private byte[] flags;
+	private int[] blockOffsets;
+	private int[] blockStarts;
+	private int[] blockEnds;
+
+	/**
+	 * Build the store from reads on a single reference sequence
+	 * @param referenceName The reference sequence
+	 * @param reads The reads, in any order
+	 */
+	public CompactReadStore(String referenceName, Iterator<? extends Alignment> reads) {
+		this.referenceName = referenceName;
+		Builder builder = new Builder();
+		while(reads.hasNext()) {
+			Alignment read = reads.next();
+			if(!read.getReferenceName().equalsIgnoreCase(referenceName)) {
+				throw new IllegalArgumentException("Read " + read.getReadName() + " is on " + read.getReferenceName() + " not " + referenceName);
+			}
+			builder.add(read);
+		}
+		builder.build();
+	}
+
+	/**
+	 * @return The reference sequence of all reads in the store
+	 */
+	public String getReferenceName() {
+		return referenceName;
+	}
+
+	/**
+	 * @return The number of reads
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Bytes held by the arrays of the store
+	 */
+	public long getBytes() {
+		return 4L * (starts.length + ends.length + maxEnds.length + fragmentStarts.length + fragmentEnds.length + blockOffsets.length + blockStarts.length + blockEnds.length) + 8L * weights.length + mappingQualities.length + flags.length;
+	}
+
+	public int getStart(int read) {
+		return starts[read];
+	}
+
+	public int getEnd(int read) {
+		return ends[read];
+	}
+
+	public int getFragmentStart(int read) {
+		return fragmentStarts[read];
+	}
+
+	public int getFragmentEnd(int read) {
+		return fragmentEnds[read];
+	}
+
+	public double getWeight(int read) {
+		return weights[read];
+	}
+
+	public int getMappingQuality(int read) {
+		return mappingQualities[read] & 0xff;
+	}
+
+	public Annotation.Strand getOrientation(int read) {
+		if((flags[read] & UNKNOWN_STRAND) != 0) return Annotation.Strand.UNKNOWN;
+		return (flags[read] & NEGATIVE) != 0 ? Annotation.Strand.NEGATIVE : Annotation.Strand.POSITIVE;
+	}
+
+	public int getNumBlocks(int read) {
+		return blockOffsets[read + 1] - blockOffsets[read];
+	}
+
+	public int getBlockStart(int read, int block) {
+		return blockStarts[blockOffsets[read] + block];
+	}
+
+	public int getBlockEnd(int read, int block) {
+		return blockEnds[blockOffsets[read] + block];
+	}
+
+	/**
+	 * @param start Start of the query interval
+	 * @return Index of the first read that may end after start
+	 */
+	public int firstCandidate(int start) {
+		// maxEnds is non decreasing so the first read ending after start is found by binary search
+		int lo = 0;
+		int hi = size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(maxEnds[mid] <= start) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @param end End of the query interval
+	 * @return Index one past the last read starting before end
+	 */
+	public int lastCandidate(int end) {
+		int lo = 0;
+		int hi = size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] < end) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Whether a read overlaps or is contained in a set of blocks
+	 * Blocks are compared the same way as BasicAnnotation.overlaps and BasicAnnotation.contains
+	 * @param read The read
+	 * @param regionStarts Starts of the region blocks, sorted
+	 * @param regionEnds Ends of the region blocks
+	 * @param fullyContained Whether every block of the read must lie inside a region block
+	 */
+	public boolean matches(int read, int[] regionStarts, int[] regionEnds, boolean fullyContained) {
+		int from = blockOffsets[read];
+		int to = blockOffsets[read + 1];
+		if(fullyContained) {
+			for(int b = from; b < to; b++) {
+				boolean contained = false;
+				for(int r = 0; r < regionStarts.length; r++) {
+					if(regionStarts[r] <= blockStarts[b] && regionEnds[r] >= blockEnds[b]) {
+						contained = true;
+						break;
+					}
+				}
+				if(!contained) return false;
+			}
+			return true;
+		}
+		for(int b = from; b < to; b++) {
+			for(int r = 0; r < regionStarts.length; r++) {
+				if(blockStarts[b] < regionEnds[r] && regionStarts[r] < blockEnds[b]) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sum of read weights over reads overlapping (or contained in) any of the regions
+	 * @param regions The regions, all on the reference of this store
+	 * @param fullyContained Count only reads contained in a region
+	 * @param orientation If not null, count only reads with this orientation
+	 * @return The weighted count
+	 */
+	public double getCount(Collection<? extends Annotation> regions, boolean fullyContained, Annotation.Strand orientation) {
+		if(regions.isEmpty()) return 0;
+		int[][][] blocks = new int[regions.size()][][];
+		int start = Integer.MAX_VALUE;
+		int end = Integer.MIN_VALUE;
+		int r = 0;
+		for(Annotation region : regions) {
+			blocks[r++] = toArrays(region);
+			start = Math.min(start, region.getStart());
+			end = Math.max(end, region.getEnd());
+		}
+		double rtrn = 0;
+		int last = lastCandidate(end);
+		for(int i = firstCandidate(start); i < last; i++) {
+			if(orientation != null && getOrientation(i) != orientation) continue;
+			// A read matching several regions is counted once
+			for(int j = 0; j < blocks.length; j++) {
+				if(matches(i, blocks[j][0], blocks[j][1], fullyContained)) {
+					rtrn += weights[i];
+					break;
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Sum of read weights over reads overlapping an interval
+	 * @param start Start of the interval
+	 * @param end End of the interval
+	 * @param fullyContained Count only reads whose blocks all lie in the interval
+	 * @return The weighted count
+	 */
+	public double getCount(int start, int end, boolean fullyContained) {
+		int[] regionStarts = new int[] {start};
+		int[] regionEnds = new int[] {end};
+		double rtrn = 0;
+		int last = lastCandidate(end);
+		for(int i = firstCandidate(start); i < last; i++) {
+			if(matches(i, regionStarts, regionEnds, fullyContained)) {
+				rtrn += weights[i];
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Weighted per base coverage of read blocks over an interval
+	 * @param start Start of the interval
+	 * @param end End of the interval
+	 * @return Coverage of each position from start to end
+	 */
+	public double[] getCoverage(int start, int end) {
+		double[] delta = new double[end - start + 1];
+		int last = lastCandidate(end);
+		for(int i = firstCandidate(start); i < last; i++) {
+			for(int b = blockOffsets[i]; b < blockOffsets[i + 1]; b++) {
+				int s = Math.max(start, blockStarts[b]);
+				int e = Math.min(end, blockEnds[b]);
+				if(s < e) {
+					delta[s - start] += weights[i];
+					delta[e - start] -= weights[i];
+				}
+			}
+		}
+		double[] rtrn = new double[end - start];
+		double running = 0;
+		for(int i = 0; i < rtrn.length; i++) {
+			running += delta[i];
+			rtrn[i] = running;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Iterate over the reads overlapping an interval
+	 * The same view object is returned at every step and is only valid until the next call to next()
+	 * @param start Start of the interval
+	 * @param end End of the interval
+	 * @return The reads whose span overlaps the interval
+	 */
+	public CloseableIterator<Alignment> getOverlappingReads(int start, int end) {
+		return new OverlapIterator(start, end, true);
+	}
+
+	/**
+	 * Iterate over the reads overlapping an interval, creating a new view for each read
+	 * @param start Start of the interval
+	 * @param end End of the interval
+	 * @return The reads whose span overlaps the interval
+	 */
+	public CloseableIterator<Alignment> getOverlappingReadViews(int start, int end) {
+		return new OverlapIterator(start, end, false);
+	}
+
+	/**
+	 * @param read Index of the read
+	 * @return A read-only view of the read
+	 */
+	public ReadView getView(int read) {
+		ReadView view = new ReadView();
+		view.index = read;
+		return view;
+	}
+
+	private static int[][] toArrays(Annotation region) {
+		List<? extends Annotation> blocks = region.getBlocks();
+		int[][] rtrn = new int[2][blocks.size()];
+		for(int i = 0; i < blocks.size(); i++) {
+			rtrn[0][i] = blocks.get(i).getStart();
+			rtrn[1][i] = blocks.get(i).getEnd();
+		}
+		return rtrn;
+	}
+
+	private class OverlapIterator implements CloseableIterator<Alignment> {
+
+		int next;
+		int last;
+		int start;
+		boolean reuse;
+		ReadView view = new ReadView();
+
+		OverlapIterator(int start, int end, boolean reuse) {
+			this.start = start;
+			this.next = firstCandidate(start);
+			this.last = lastCandidate(end);
+			this.reuse = reuse;
+			advance();
+		}
+
+		private void advance() {
+			while(next < last && ends[next] <= start) next++;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < last;
+		}
+
+		@Override
+		public Alignment next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			ReadView rtrn = reuse ? view : new ReadView();
+			rtrn.index = next++;
+			advance();
+			return rtrn;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {}
+
+	}
+
+	/**
+	 * Collects reads into growing arrays then sorts them by start
+	 */
+	private class Builder {
+
+		int n = 0;
+		int numBlocks = 0;
+		int[] s = new int[1024];
+		int[] e = new int[1024];
+		int[] fs = new int[1024];
+		int[] fe = new int[1024];
+		double[] w = new double[1024];
+		byte[] mq = new byte[1024];
+		byte[] f = new byte[1024];
+		int[] bo = new int[1025];
+		int[] bs = new int[1024];
+		int[] be = new int[1024];
+
+		void add(Alignment read) {
+			if(n == s.length) {
+				int length = s.length * 2;
+				s = Arrays.copyOf(s, length);
+				e = Arrays.copyOf(e, length);
+				fs = Arrays.copyOf(fs, length);
+				fe = Arrays.copyOf(fe, length);
+				w = Arrays.copyOf(w, length);
+				mq = Arrays.copyOf(mq, length);
+				f = Arrays.copyOf(f, length);
+				bo = Arrays.copyOf(bo, length + 1);
+			}
+			List<? extends Annotation> blocks = read.getBlocks();
+			while(numBlocks + blocks.size() > bs.length) {
+				bs = Arrays.copyOf(bs, bs.length * 2);
+				be = Arrays.copyOf(be, be.length * 2);
+			}
+			for(Annotation block : blocks) {
+				bs[numBlocks] = block.getStart();
+				be[numBlocks] = block.getEnd();
+				numBlocks++;
+			}
+			s[n] = read.getAlignmentStart();
+			e[n] = read.getAlignmentEnd();
+			fs[n] = read.getFragmentStart();
+			fe[n] = read.getFragmentEnd();
+			w[n] = read.getWeight();
+			mq[n] = (byte) Math.min(255, Math.max(0, read.getMappingQuality()));
+			f[n] = flags(read);
+			bo[n + 1] = numBlocks;
+			n++;
+		}
+
+		private byte flags(Alignment read) {
+			byte rtrn = 0;
+			Annotation.Strand orientation = read.getOrientation();
+			if(orientation == null || orientation == Annotation.Strand.UNKNOWN) rtrn |= UNKNOWN_STRAND;
+			else if(orientation == Annotation.Strand.NEGATIVE) rtrn |= NEGATIVE;
+			if(read.isPaired()) rtrn |= PAIRED;
+			if(read.isProperPair()) rtrn |= PROPER_PAIR;
+			if(read.isDuplicate()) rtrn |= DUPLICATE;
+			if(read.isChimera()) rtrn |= CHIMERA;
+			if(read.hasIndel()) rtrn |= INDEL;
+			return rtrn;
+		}
+
+		void build() {
+			// Sort read indices by start then end using packed long keys
+			long[] order = new long[n];
+			for(int i = 0; i < n; i++) {
+				order[i] = ((long) s[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			size = n;
+			starts = new int[n];
+			ends = new int[n];
+			maxEnds = new int[n];
+			fragmentStarts = new int[n];
+			fragmentEnds = new int[n];
+			weights = new double[n];
+			mappingQualities = new byte[n];
+			flags = new byte[n];
+			blockOffsets = new int[n + 1];
+			blockStarts = new int[numBlocks];
+			blockEnds = new int[numBlocks];
+			int b = 0;
+			int maxEnd = Integer.MIN_VALUE;
+			for(int i = 0; i < n; i++) {
+				int j = (int) (order[i] & 0xffffffffL);
+				starts[i] = s[j];
+				ends[i] = e[j];
+				maxEnd = Math.max(maxEnd, e[j]);
+				maxEnds[i] = maxEnd;
+				fragmentStarts[i] = fs[j];
+				fragmentEnds[i] = fe[j];
+				weights[i] = w[j];
+				mappingQualities[i] = mq[j];
+				flags[i] = f[j];
+				for(int k = bo[j]; k < bo[j + 1]; k++) {
+					blockStarts[b] = bs[k];
+					blockEnds[b] = be[k];
+					b++;
+				}
+				blockOffsets[i + 1] = b;
+			}
+		}
+
+	}
+
+	/**
+	 * Read-only Alignment view of one read of the store
+	 * Read names, sequences and SAM attributes are not kept in the store
+	 * Operations producing new annotations work on a copy of the read blocks
+	 */
+	public class ReadView extends AbstractAnnotation implements Alignment {
+
+		int index;
+
+		/**
+		 * @return Index of the read in the store
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		private BasicAnnotation toAnnotation() {
+			List<Annotation> blocks = new ArrayList<Annotation>();
+			for(int b = blockOffsets[index]; b < blockOffsets[index + 1]; b++) {
+				blocks.add(new BasicAnnotation(referenceName, blockStarts[b], blockEnds[b]));
+			}
+			BasicAnnotation rtrn = new BasicAnnotation(blocks);
+			rtrn.setOrientation(getOrientation());
+			return rtrn;
+		}
+
+		private UnsupportedOperationException readOnly() {
+			return new UnsupportedOperationException("Reads in a CompactReadStore are read-only");
+		}
+
+		@Override
+		public String getReadName() {
+			return null;
+		}
+
+		@Override
+		public int getFragmentStart() {
+			return fragmentStarts[index];
+		}
+
+		@Override
+		public int getFragmentEnd() {
+			return fragmentEnds[index];
+		}
+
+		@Override
+		public Collection<Integer> getFragmentSize(CoordinateSpace C) {
+			Collection<Integer> rtrn = new ArrayList<Integer>();
+			Collection<? extends Window> fragments = getFragment(C);
+			if(fragments == null) {
+				rtrn.add(Integer.valueOf(getEnd() - getStart()));
+				return rtrn;
+			}
+			for(Window w : fragments) {
+				rtrn.add(w.getSize());
+			}
+			return rtrn;
+		}
+
+		@Override
+		public int getMappingQuality() {
+			return CompactReadStore.this.getMappingQuality(index);
+		}
+
+		@Override
+		public boolean isPaired() {
+			return (flags[index] & PAIRED) != 0;
+		}
+
+		@Override
+		public boolean isChimera() {
+			return (flags[index] & CHIMERA) != 0;
+		}
+
+		@Override
+		public boolean isDuplicate() {
+			return (flags[index] & DUPLICATE) != 0;
+		}
+
+		@Override
+		public void setDuplicateFlag(boolean duplicateFlag) {
+			throw readOnly();
+		}
+
+		@Override
+		public Strand getFragmentStrand() {
+			return getOrientation();
+		}
+
+		@Override
+		public int getLastFragmentPositionStranded() {
+			if(getFragmentStrand().equals(Strand.NEGATIVE)) return getFragmentStart();
+			return getFragmentEnd() - 1;
+		}
+
+		@Override
+		public int getFirstFragmentPositionStranded() {
+			if(getFragmentStrand().equals(Strand.NEGATIVE)) return getFragmentEnd() - 1;
+			return getFragmentStart();
+		}
+
+		@Override
+		public int getFragmentMidpoint(Annotation annot) {
+			return AnnotationUtils.getSubAnnotationMidpointWithinAnnotation(annot, this);
+		}
+
+		@Override
+		public Collection<? extends Window> getFragment(CoordinateSpace C) {
+			if(C == null) {
+				Collection<Window> rtrn = new ArrayList<Window>();
+				rtrn.add(new GenomeWindow(referenceName, getFragmentStart(), getFragmentEnd()));
+				return rtrn;
+			}
+			return C.getFragment(referenceName, getFragmentStart(), getFragmentEnd());
+		}
+
+		@Override
+		public Annotation getReadAlignmentBlocks(CoordinateSpace C) {
+			return toAnnotation();
+		}
+
+		@Override
+		public Collection<Annotation> getReadAlignments(CoordinateSpace space) {
+			Collection<Annotation> rtrn = new ArrayList<Annotation>();
+			rtrn.add(toAnnotation());
+			return rtrn;
+		}
+
+		@Override
+		public int getAlignmentStart() {
+			return starts[index];
+		}
+
+		@Override
+		public int getAlignmentEnd() {
+			return ends[index];
+		}
+
+		@Override
+		public boolean isMapped() {
+			return true;
+		}
+
+		@Override
+		public Object getAttribute(String string) {
+			return null;
+		}
+
+		@Override
+		public String getReadSequence() {
+			return null;
+		}
+
+		@Override
+		public double getWeight() {
+			return weights[index];
+		}
+
+		@Override
+		public boolean isProperPair() {
+			return (flags[index] & PROPER_PAIR) != 0;
+		}
+
+		@Override
+		public void setProperPairFlag(boolean properPairFlag) {
+			throw readOnly();
+		}
+
+		@Override
+		public SAMRecord toSAMRecord() {
+			throw readOnly();
+		}
+
+		@Override
+		public Collection<? extends Annotation> getSpliceConnections() {
+			return toAnnotation().getSpliceConnections();
+		}
+
+		@Override
+		public boolean hasIndel() {
+			return (flags[index] & INDEL) != 0;
+		}
+
+		@Override
+		public void setFragmentStrand(TranscriptionRead strand) {
+			throw readOnly();
+		}
+
+		@Override
+		public int[] getIntervalBetweenReads() {
+			return null;
+		}
+
+		@Override
+		public void setHeader(SAMFileHeader header) {
+			throw readOnly();
+		}
+
+		@Override
+		public SAMFileHeader getHeader() {
+			return null;
+		}
+
+		@Override
+		public int getStart() {
+			return starts[index];
+		}
+
+		@Override
+		public int getEnd() {
+			return ends[index];
+		}
+
+		@Override
+		public String getReferenceName() {
+			return referenceName;
+		}
+
+		@Override
+		public String getName() {
+			return getReadName();
+		}
+
+		@Override
+		public Strand getOrientation() {
+			return CompactReadStore.this.getOrientation(index);
+		}
+
+		@Override
+		public int numBlocks() {
+			return getNumBlocks(index);
+		}
+
+		@Override
+		public List<? extends Annotation> getBlocks() {
+			return toAnnotation().getBlocks();
+		}
+
+		@Override
+		public List<? extends Annotation> getBlocks(boolean oriented) {
+			return toAnnotation().getBlocks(oriented);
+		}
+
+		@Override
+		public int length() {
+			int rtrn = 0;
+			for(int b = blockOffsets[index]; b < blockOffsets[index + 1]; b++) {
+				rtrn += blockEnds[b] - blockStarts[b];
+			}
+			return rtrn;
+		}
+
+		@Override
+		public double getScore() {
+			return 0;
+		}
+
+		@Override
+		public boolean isUnoriented() {
+			return getOrientation() == Strand.UNKNOWN;
+		}
+
+		@Override
+		public int getReferenceCoordinateAtPosition(int positionInAnnotation, boolean ignoreOrientation) {
+			return toAnnotation().getReferenceCoordinateAtPosition(positionInAnnotation, ignoreOrientation);
+		}
+
+		@Override
+		public int getPositionAtReferenceCoordinate(int referenceCoordinate, boolean ignoreOrientation) {
+			return toAnnotation().getPositionAtReferenceCoordinate(referenceCoordinate, ignoreOrientation);
+		}
+
+		@Override
+		public void setStart(int start) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setEnd(int end) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setOrientation(Strand orientation) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setOrientation(char orientation) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setOrientedStart(int orientedStart) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setOrientedEnd(int orientedEnd) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setReferenceName(String refName) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setName(String name) {
+			throw readOnly();
+		}
+
+		@Override
+		public void setScore(double score) {
+			throw readOnly();
+		}
+
+		@Override
+		public void expand(int deltaStart, int deltaEnd) {
+			throw readOnly();
+		}
+
+		@Override
+		public void shift(int delta) {
+			throw readOnly();
+		}
+
+		@Override
+		public void moveToCoordinate(int coordinateInReference) {
+			throw readOnly();
+		}
+
+		@Override
+		public Annotation copy() {
+			return toAnnotation();
+		}
+
+		@Override
+		public List<Annotation> disect(Annotation a) {
+			return toAnnotation().disect(a);
+		}
+
+		@Override
+		public List<Annotation> disect(List<? extends Annotation> disectors) {
+			return toAnnotation().disect(disectors);
+		}
+
+		@Override
+		public Annotation minus(Annotation other) {
+			return toAnnotation().minus(other);
+		}
+
+		@Override
+		public Annotation minus(Collection<? extends Annotation> others) {
+			return toAnnotation().minus(others);
+		}
+
+		@Override
+		public boolean overlaps(Annotation other, int buffer, boolean considerOrientation) {
+			return toAnnotation().overlaps(other, buffer, considerOrientation);
+		}
+
+		@Override
+		public int getOverlap(Annotation other) {
+			return toAnnotation().getOverlap(other);
+		}
+
+		@Override
+		public boolean contains(Annotation other) {
+			return toAnnotation().contains(other);
+		}
+
+		@Override
+		public Annotation union(Annotation other) {
+			return toAnnotation().union(other);
+		}
+
+		@Override
+		public Annotation intersect(Annotation other) {
+			return toAnnotation().intersect(other);
+		}
+
+		@Override
+		public void stitchTo(Annotation next) {
+			throw readOnly();
+		}
+
+		@Override
+		public Annotation complement() {
+			return toAnnotation().complement();
+		}
+
+	}
+
+}
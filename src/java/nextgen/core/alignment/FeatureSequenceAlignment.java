@@ -7,8 +7,16 @@ import jaligner.SmithWatermanGotoh;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -33,11 +41,17 @@ public class FeatureSequenceAlignment {
 	private Map<Gene, jaligner.Sequence> sequences;
 	private TreeSet<UnorderedGenePair> featurePairs;
 	private Matrix scoringMatrix;
+	private float matchScore;
+	private float mismatchScore;
 	private float gapOpen;
 	private float gapExtend;
 	private static Logger logger = Logger.getLogger(FeatureSequenceAlignment.class.getName());
 	private TreeMap<UnorderedGenePair, jaligner.Alignment> senseAlignments;
 	private TreeMap<UnorderedGenePair, jaligner.Alignment> antisenseAlignments;
+	/**
+	 * Number of threads for the seeded antisense search, or 0 to align every pair
+	 */
+	private int seededSearchThreads = 0;
 	
 	/**
 	 * Default match score for Smith Waterman
@@ -124,6 +138,8 @@ public class FeatureSequenceAlignment {
 		}
 		logger.info("There are " + featurePairs.size() + " unordered pairs of features.");
 		
+		this.matchScore = matchScore;
+		this.mismatchScore = mismatchScore;
 		gapOpen = gapOpenPenalty;
 		gapExtend = gapExtendPenalty;
 		scoringMatrix = MatrixGenerator.generate(matchScore, mismatchScore);
@@ -195,6 +211,15 @@ public class FeatureSequenceAlignment {
 	 * @param gene2 Gene 2
 	 */
 	private void alignAntisense(UnorderedGenePair genes) {
+		antisenseAlignments.put(genes, computeAntisenseAlignment(genes));
+	}
+	
+	/**
+	 * Align the sequences of two genes in antisense direction without storing the alignment
+	 * @param genes Gene pair
+	 * @return The alignment of the first gene to the reverse complement of the second, with start of the second in its own coordinates
+	 */
+	private jaligner.Alignment computeAntisenseAlignment(UnorderedGenePair genes) {
 		Gene gene1 = genes.getFirstGene();
 		Gene gene2 = genes.getSecondGene();
 		jaligner.Sequence seq1 = sequences.get(gene1);
@@ -206,7 +231,7 @@ public class FeatureSequenceAlignment {
 		jaligner.Alignment antisenseAlign = SmithWatermanGotoh.align(seq1, seq2antisense, scoringMatrix, gapOpen, gapExtend);
 		int correctedStart2 = seq2antisense.length() - antisenseAlign.getStart2() - antisenseAlign.getLength() + antisenseAlign.getGaps2();
 		antisenseAlign.setStart2(correctedStart2);
-		antisenseAlignments.put(genes, antisenseAlign);
+		return antisenseAlign;
 	}
 
 	/**
@@ -251,6 +276,9 @@ public class FeatureSequenceAlignment {
 	 * @return All antisense alignments of unordered gene pair passing criteria
 	 */
 	public Map<UnorderedGenePair, jaligner.Alignment> getAllPairwiseAntisenseAlignments(float minAlignLength, float minPctIdentity) {
+		if(seededSearchThreads > 0) {
+			return getAllPairwiseAntisenseAlignments(minAlignLength, minPctIdentity, seededSearchThreads);
+		}
 		Map<UnorderedGenePair, jaligner.Alignment> rtrn = new TreeMap<UnorderedGenePair, jaligner.Alignment>();
 		for(UnorderedGenePair genes : featurePairs) {
 			jaligner.Alignment align = getAntisenseAlignment(genes);
@@ -261,6 +289,123 @@ public class FeatureSequenceAlignment {
 		return rtrn;
 	}
 	
+	/**
+	 * Find antisense alignments by seeded search rather than aligning every pair
+	 * @param numThreads Number of threads for the seeded search, or 0 to align every pair
+	 */
+	public void setSeededAntisenseSearch(int numThreads) {
+		seededSearchThreads = numThreads;
+	}
+	
+	/**
+	 * Get all antisense direction alignments passing thresholds, aligning only pairs that share a k-mer in antisense direction
+	 * The seed length and a banded score cutoff are set by the thresholds, so the alignments are the same as when aligning every pair
+	 * @param minAlignLength Min alignment length
+	 * @param minPctIdentity Min percent identity
+	 * @param numThreads Number of threads to align seeded pairs with
+	 * @return All antisense alignments of unordered gene pair passing criteria
+	 */
+	public Map<UnorderedGenePair, jaligner.Alignment> getAllPairwiseAntisenseAlignments(float minAlignLength, float minPctIdentity, int numThreads) {
+		List<Gene> genes = new ArrayList<Gene>(sequences.keySet());
+		Map<Gene, Integer> geneIndex = new TreeMap<Gene, Integer>();
+		String[] bases = new String[genes.size()];
+		for(int i = 0; i < genes.size(); i++) {
+			geneIndex.put(genes.get(i), Integer.valueOf(i));
+			bases[i] = sequences.get(genes.get(i)).getSequence();
+		}
+		final AntisenseSeedSearch search = new AntisenseSeedSearch(bases, matchScore, mismatchScore, gapOpen, gapExtend, minAlignLength, minPctIdentity);
+		Map<Long, int[]> seeds = search.getSeededPairs();
+		final List<UnorderedGenePair> candidates = new ArrayList<UnorderedGenePair>();
+		final List<int[]> candidateIndices = new ArrayList<int[]>();
+		final List<int[]> candidateDiagonals = new ArrayList<int[]>();
+		for(UnorderedGenePair pair : featurePairs) {
+			int first = geneIndex.get(pair.getFirstGene()).intValue();
+			int second = geneIndex.get(pair.getSecondGene()).intValue();
+			int[] diagonals = seeds.get(Long.valueOf((long) first * genes.size() + second));
+			if(diagonals == null) continue;
+			candidates.add(pair);
+			candidateIndices.add(new int[] {first, second});
+			candidateDiagonals.add(diagonals);
+		}
+		logger.info("Seed length " + search.getSeedLength() + " leaves " + candidates.size() + " of " + featurePairs.size() + " pairs to screen with min banded score " + search.getMinScore() + ".");
+
+		// Align slices of the seeded pairs in parallel, keeping alignments in order
+		List<jaligner.Alignment> aligns = new ArrayList<jaligner.Alignment>();
+		int threads = Math.max(1, Math.min(numThreads, candidates.size()));
+		if(threads == 1) {
+			for(jaligner.Alignment align : alignSeededPairs(search, candidates, candidateIndices, candidateDiagonals, 0, candidates.size())) {
+				aligns.add(align);
+			}
+		} else {
+			int sliceSize = (candidates.size() + 4 * threads - 1) / (4 * threads);
+			ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "antisense-seeded-alignment");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			try {
+				List<Future<jaligner.Alignment[]>> futures = new ArrayList<Future<jaligner.Alignment[]>>();
+				for(int sliceStart = 0; sliceStart < candidates.size(); sliceStart += sliceSize) {
+					final int start = sliceStart;
+					final int end = Math.min(candidates.size(), sliceStart + sliceSize);
+					futures.add(executor.submit(new Callable<jaligner.Alignment[]>() {
+						@Override
+						public jaligner.Alignment[] call() {
+							return alignSeededPairs(search, candidates, candidateIndices, candidateDiagonals, start, end);
+						}
+					}));
+				}
+				for(Future<jaligner.Alignment[]> future : futures) {
+					for(jaligner.Alignment align : future.get()) {
+						aligns.add(align);
+					}
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while aligning seeded pairs", e);
+			} catch(ExecutionException e) {
+				throw new IllegalStateException("Antisense alignment failed", e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		Map<UnorderedGenePair, jaligner.Alignment> rtrn = new TreeMap<UnorderedGenePair, jaligner.Alignment>();
+		for(int k = 0; k < candidates.size(); k++) {
+			jaligner.Alignment align = aligns.get(k);
+			if(align == null) continue;
+			antisenseAlignments.put(candidates.get(k), align);
+			if(align.getLength() >= minAlignLength && align.getPercentIdentity() >= minPctIdentity) {
+				rtrn.put(candidates.get(k), align);
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Align a slice of the seeded pairs in antisense direction
+	 * @param search The seeds and score cutoff
+	 * @param candidates Seeded gene pairs
+	 * @param indices Index of first and second gene of each pair in the search
+	 * @param diagonals Lowest and highest seed diagonal of each pair
+	 * @param start First pair of the slice
+	 * @param end Last pair of the slice, exclusive
+	 * @return The alignment of each pair in the slice, or null where the banded score cannot pass
+	 */
+	private jaligner.Alignment[] alignSeededPairs(AntisenseSeedSearch search, List<UnorderedGenePair> candidates, List<int[]> indices, List<int[]> diagonals, int start, int end) {
+		jaligner.Alignment[] rtrn = new jaligner.Alignment[end - start];
+		for(int k = start; k < end; k++) {
+			int[] pair = indices.get(k);
+			if(search.mayPass(pair[0], pair[1], diagonals.get(k))) {
+				rtrn[k - start] = computeAntisenseAlignment(candidates.get(k));
+			}
+		}
+		return rtrn;
+	}
+	
 	/**
 	 * Write all pairwise alignments (sense direction only) to bed file in genome coordinates
 	 * @param outBedFile Output bed file
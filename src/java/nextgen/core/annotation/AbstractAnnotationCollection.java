@@ -4,6 +4,7 @@ import java.util.Iterator;
 
 import nextgen.core.feature.Window;
 import nextgen.core.model.score.CountScore;
+import nextgen.core.model.score.ParallelWindowScoreIterator;
 import nextgen.core.model.score.WindowProcessor;
 import nextgen.core.model.score.WindowScore;
 import nextgen.core.model.score.WindowScoreIterator;
@@ -109,6 +110,31 @@ public abstract class AbstractAnnotationCollection<T extends Annotation> impleme
 		return scan(region, windowSize, overlap, getCountProcessor());
 	}
 	
+	/**
+	 * Iterate through the whole coordinate space in windows and score them on several threads
+	 * Windows on different chromosomes are scored independently and the scores are returned in coordinate order
+	 * The processor is shared by the threads, see ParallelWindowScoreIterator for what it may do
+	 * @param numThreads number of threads scoring windows, the single threaded scan is used for one thread
+	 */
+	public <W extends WindowScore> WindowScoreIterator<W> scan(int windowSize, int overlap, WindowProcessor<W> processor, int numThreads) {
+		if (numThreads <= 1) return scan(windowSize, overlap, processor);
+		prepareParallelScan();
+		Iterator<? extends Window> windowIterator = getCoordinateSpace().getWindowIterator(windowSize, overlap);
+		return new ParallelWindowScoreIterator<W>(windowIterator, processor, null, numThreads);
+	}
+	
+	public <W extends WindowScore> WindowScoreIterator<W> scan(Annotation region, int windowSize, int overlap, WindowProcessor<W> processor, int numThreads) {
+		if (numThreads <= 1) return scan(region, windowSize, overlap, processor);
+		prepareParallelScan();
+		Iterator<? extends Window> windowIterator = getCoordinateSpace().getWindowIterator(region, windowSize, overlap);
+		return new ParallelWindowScoreIterator<W>(windowIterator, processor, region, numThreads);
+	}
+	
+	
+	/**
+	 * Compute any lazily computed state before windows are scored on several threads
+	 */
+	protected void prepareParallelScan() {}
 	
 	protected WindowProcessor<CountScore> getCountProcessor() {
 		return new CountScore.Processor(this);
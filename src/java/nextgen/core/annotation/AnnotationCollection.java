@@ -164,6 +164,20 @@ public interface AnnotationCollection<T extends Annotation> {
 	public <W extends WindowScore> WindowScoreIterator<W> scan(int windowSize, int overlap, WindowProcessor<W> processor);
 	public <W extends WindowScore> WindowScoreIterator<W> scan(Annotation region, int windowSize, int overlap, WindowProcessor<W> processor);
 	public WindowScoreIterator<CountScore> scan(Annotation region, int windowSize, int overlap);
+	
+	/**
+	 * Score windows of the whole coordinate space on several threads
+	 * Scores are returned in the same order as the single threaded scan
+	 * @param numThreads Number of threads scoring windows
+	 */
+	public <W extends WindowScore> WindowScoreIterator<W> scan(int windowSize, int overlap, WindowProcessor<W> processor, int numThreads);
+	
+	/**
+	 * Score windows of a region on several threads
+	 * Scores are returned in the same order as the single threaded scan
+	 * @param numThreads Number of threads scoring windows
+	 */
+	public <W extends WindowScore> WindowScoreIterator<W> scan(Annotation region, int windowSize, int overlap, WindowProcessor<W> processor, int numThreads);
 
 
 	public double getRefSequenceLambda(String refname);
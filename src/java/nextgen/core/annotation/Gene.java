@@ -13,6 +13,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import nextgen.core.feature.GeneWindow;
+import nextgen.core.feature.GeneWindowIterator;
 
 import org.apache.log4j.Logger;
 
@@ -629,9 +630,9 @@ public class Gene extends BasicAnnotation {
 	 */
 	public Iterator<Integer> getAllPositions() {
 		TreeSet<Integer> positions = new TreeSet<Integer>();
-		Collection<GeneWindow> windows = getWindows(1);
-		for(GeneWindow window : windows) {
-			positions.add(window.getStart());
+		GeneWindowIterator windows = getWindowIterator(1, 1, 0);
+		while(windows.advance()) {
+			positions.add(Integer.valueOf(windows.getReferenceStart()));
 		}
 		return positions.iterator();
 	}
@@ -659,65 +660,25 @@ public class Gene extends BasicAnnotation {
 	}
 
 	public Collection<GeneWindow> getWindows(int windowSize, int stepSize, int start) {
-		// Account for erroneous input by user
-		if(stepSize < 1) {
-			throw new IllegalArgumentException("Step size must be >= 1");
-		}
-		
-		// Initializes a collection of GeneWindow (or Genes) called subGenes which is a TreeSet
 		Collection<GeneWindow> subGenes = new TreeSet<GeneWindow>();
-		
-		// Our collection exons which is a generic implementation of Annotation is a collection of all exons
-		
-		Collection<? extends Annotation > exons = getBlocks();
-		
-		// Iterates through all exons in our collection exons
-		for(Annotation exon: exons) {
-			//logger.info("Exon: " + exon.toUCSC());
-			// If the exon is larger than the input window size
-			if(exon.getSize() >= windowSize) { //TODO should be >= ?
-				logger.debug(this.toUCSC() + "\texon_size\t" + exon.getSize() + "\twindow_size\t" + windowSize);
-				for(int i = exon.getStart(); i <= exon.getEnd() - windowSize; i++) {
-					logger.debug(this.toUCSC() + "\ti\t" + i);
-					GeneWindow subGene = new GeneWindow(new Gene(getChr(), i, i + windowSize));
-					subGene.addSourceAnnotation(this);
-					subGene.setOrientation(this.getOrientation());
-					// GeneWindow subGene = new Basic(getChr(), i, i + windowSize);
-					subGenes.add(subGene);
-					logger.debug(this.toUCSC() + "\tadded\t" + subGene.toUCSC());
-				}
-			}
-			
-			for(int i = Math.max(exon.getEnd() - windowSize, exon.getStart()); i < exon.getEnd(); i++) {
-				//logger.info("Size: " + this.getSize() + " ExonSize: " + exon.getSize() + " " + i + " start: " + exon.getStart() + " end: " + exon.getEnd());
-				int relativeStart = getPositionAtReferenceCoordinate(i, true);
-				int size = relativeStart + windowSize;
-				logger.debug(this.toUCSC() + "\ti\t" + i + "\trel_start\t" + relativeStart + "\tsize\t" + size);
-				if(relativeStart + windowSize < this.getSize()) { //TODO should be <= ?
-					//Gene exonGene =  new Gene(exon);
-					//GeneWindow subGene = this.trimAbsolute(i, i+windowSize);
-					GeneWindow subGene = this.trimGene(relativeStart, relativeStart + windowSize);
-					//GeneWindow subGene = this.trimGeneNew(exonGene, relativeStart, relativeStart+windowSize);
-					subGene.setOrientation(this.getOrientation());
-					subGenes.add(subGene);
-					//logger.info("" + subGene.toBED());
-					logger.debug(this.toUCSC() + "\tsubgene\t" + subGene.toUCSC());
-				}
-			}	
+		Iterator<GeneWindow> windows = getWindowIterator(windowSize, stepSize, start);
+		while(windows.hasNext()) {
+			subGenes.add(windows.next());
 		}
-		
-		// Need full gene sequence, not just exons
-		/*for(Annotation exon: exons) {
-			// do intron windows
-			for(int i = exon.getEnd() - windowSize + 1; i < exon.getEnd() - windowSize; i++) {
-				 subGene = new Basic(getChr(), i, i + windowSize);
-				subGenes.add((GeneWindow) subGene);
-			}
-		}*/
-			
 		return subGenes;
 	}
 	
+	/**
+	 * Get the windows of the gene one at a time in transcript order, without building them all up front
+	 * @param windowSize Window size in transcript coordinates
+	 * @param stepSize Step size
+	 * @param start Transcript position of the first window
+	 * @return Iterator over the windows
+	 */
+	public GeneWindowIterator getWindowIterator(int windowSize, int stepSize, int start) {
+		return new GeneWindowIterator(this, windowSize, stepSize, start);
+	}
+	
 	public Gene getStartCodon() {
 		if(this.getCDS() == null) return null;
 		Gene gene=this.getCDS();
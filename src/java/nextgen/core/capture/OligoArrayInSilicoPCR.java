@@ -9,19 +9,18 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import broad.core.datastructures.Pair;
-import broad.core.motif.SearchException;
 import broad.core.parser.CommandLineParser;
 import broad.core.parser.StringParser;
-import broad.core.primer3.isPCRLike;
 import broad.core.sequence.Sequence;
 
+import nextgen.core.capture.PrimerPairMatcher.Amplicon;
+
 /**
  * Perform in silico PCR on primers and corresponding oligo sets
  * Verify that primers amplify all the oligos they are associated with
@@ -34,6 +33,8 @@ public class OligoArrayInSilicoPCR {
 	
 	private Map<Pair<String>, List<Sequence>> oligoSetsByPrimer;
 	private FileWriter resultsWriter;
+	private int numThreads = 1;
+	private int maxMismatches = 0;
 	private static Logger logger = Logger.getLogger(OligoArrayInSilicoPCR.class.getName());
 	
 	/**
@@ -74,62 +75,55 @@ public class OligoArrayInSilicoPCR {
 	}
 	
 	/**
-	 * Check that the primer pair amplifies all the oligos
-	 * Write any problems to output stream and keep going
-	 * @param primerPair Primer pair
-	 * @param oligos Oligos
-	 * @throws SearchException
-	 * @throws IOException
+	 * @param threads Number of threads to split the oligos between
 	 */
-	private void checkSelf(Pair<String> primerPair, List<Sequence> oligos) throws SearchException, IOException {
-		isPCRLike ispcr = new isPCRLike(primerPair, oligos);
-		Collection<Sequence> amplicons = ispcr.getAllPossibleAmplicons();
-		Collection<String> ampliconNames = new TreeSet<String>();
-		for(Sequence a : amplicons) {
-			ampliconNames.add(a.getId());
-		}
-		for(Sequence oligo : oligos) {
-			if(!ampliconNames.contains(oligo.getId())) {
-				resultsWriter.write("Oligo " + oligo.getId() + " not amplified by self primer pair " + primerPair.getValue1() + " " + primerPair.getValue2() + "\n");
-			} else {
-				logger.debug("Oligo " + oligo.getId() + " correctly amplified by self primer pair " + primerPair.getValue1() + " " + primerPair.getValue2());
-			}
-		}
+	public void setNumThreads(int threads) {
+		numThreads = threads;
 	}
 	
 	/**
-	 * Check that the primer pair does not amplify any part of any of the oligos
-	 * Write any problems to output stream and keep going
-	 * @param primerPair Primer pair
-	 * @param oligos Oligos
-	 * @throws SearchException
-	 * @throws IOException
+	 * @param mismatches Max number of mismatched bases in the 3' end of each primer
 	 */
-	private void checkOther(Pair<String> primerPair, List<Sequence> oligos) throws SearchException, IOException {
-		isPCRLike ispcr = new isPCRLike(primerPair, oligos);
-		Collection<Sequence> amplicons = ispcr.getAllPossibleAmplicons();
-		if(amplicons.isEmpty()) {
-			logger.debug("Primers " + primerPair.getValue1() + " " + primerPair.getValue2() + " correctly fail to amplify " + oligos.size() + " oligos");
-		}
-		for(Sequence amplicon : amplicons) {
-			resultsWriter.write("Primers " + primerPair.getValue1() + " " + primerPair.getValue2() + " amplify sequence " + amplicon.getId() + " " + amplicon.getSequenceBases() + "\n");
-		}
+	public void setMaxMismatches(int mismatches) {
+		maxMismatches = mismatches;
 	}
 	
 	/**
 	 * Check that all primer pairs amplify their associated oligos
 	 * Check that primer pairs do not amplify any part of other oligos
+	 * All primers are matched against each oligo in one scan
 	 * Write any problems to output stream and keep going
-	 * @throws SearchException
 	 * @throws IOException
 	 */
-	public void checkAll() throws SearchException, IOException {
-		for(Pair<String> primer : oligoSetsByPrimer.keySet()) {
-			logger.info("Checking primers " + primer.getValue1() + " " + primer.getValue2());
-			checkSelf(primer, oligoSetsByPrimer.get(primer));
-			for(Pair<String> otherPrimer : oligoSetsByPrimer.keySet()) {
-				if(primer.equals(otherPrimer)) continue;
-				checkOther(primer, oligoSetsByPrimer.get(otherPrimer));
+	public void checkAll() throws IOException {
+		List<Pair<String>> primers = new ArrayList<Pair<String>>(oligoSetsByPrimer.keySet());
+		List<Sequence> oligos = new ArrayList<Sequence>();
+		List<Pair<String>> selfPrimers = new ArrayList<Pair<String>>();
+		for(Pair<String> primer : primers) {
+			for(Sequence oligo : oligoSetsByPrimer.get(primer)) {
+				oligos.add(oligo);
+				selfPrimers.add(primer);
+			}
+		}
+		logger.info("Checking " + primers.size() + " primer pairs against " + oligos.size() + " oligos");
+		PrimerPairMatcher matcher = new PrimerPairMatcher(primers, maxMismatches);
+		List<List<Amplicon>> amplicons = matcher.getAmplicons(oligos, numThreads);
+		for(int i = 0; i < oligos.size(); i++) {
+			Sequence oligo = oligos.get(i);
+			Pair<String> self = selfPrimers.get(i);
+			boolean amplifiedBySelf = false;
+			for(Amplicon amplicon : amplicons.get(i)) {
+				Pair<String> primerPair = amplicon.getPrimers();
+				if(primerPair.equals(self)) {
+					amplifiedBySelf = true;
+					continue;
+				}
+				resultsWriter.write("Primers " + primerPair.getValue1() + " " + primerPair.getValue2() + " amplify sequence " + oligo.getId() + " " + oligo.getSequenceBases().substring(amplicon.getStart(), amplicon.getEnd()) + "\n");
+			}
+			if(!amplifiedBySelf) {
+				resultsWriter.write("Oligo " + oligo.getId() + " not amplified by self primer pair " + self.getValue1() + " " + self.getValue2() + "\n");
+			} else {
+				logger.debug("Oligo " + oligo.getId() + " correctly amplified by self primer pair " + self.getValue1() + " " + self.getValue2());
 			}
 		}
 	}
@@ -210,20 +204,23 @@ public class OligoArrayInSilicoPCR {
 	/**
 	 * @param args
 	 * @throws IOException 
-	 * @throws SearchException 
 	 */
-	public static void main(String[] args) throws IOException, SearchException {
+	public static void main(String[] args) throws IOException {
 		
 		//logger.setLevel(Level.DEBUG);
 		
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-i", "Input file: either table of primers and oligos (format: oligo_ID  left_primer  right_primer  oligo_sequence) or file containing list of such table files", true);
 		p.addStringArg("-o", "Output file", true);
+		p.addIntArg("-t", "Number of threads", false, 1);
+		p.addIntArg("-mm", "Max mismatches in the 3' end of each primer", false, 0);
 		p.parse(args);
 		String input = p.getStringArg("-i");
 		String output = p.getStringArg("-o");
 		
 		OligoArrayInSilicoPCR a = new OligoArrayInSilicoPCR(input, output);
+		a.setNumThreads(p.getIntArg("-t"));
+		a.setMaxMismatches(p.getIntArg("-mm"));
 		a.checkAll();
 		
 		logger.info("");
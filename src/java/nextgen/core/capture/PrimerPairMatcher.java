@@ -0,0 +1,403 @@
+package nextgen.core.capture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.Pair;
+import broad.core.sequence.Sequence;
+
+/**
+ * In silico PCR of many primer pairs against many oligos, scanning each oligo once
+ * The 3' ends of all left primers and the reverse complements of the 3' ends of all right primers go into one Aho-Corasick automaton
+ * A primer pair amplifies an oligo if its left primer matches at or before a match of its right primer, as in broad.core.primer3.isPCRLike
+ * Matches with mismatches are found by adding every variant of each primer end within the mismatch budget to the automaton
+ */
+public class PrimerPairMatcher {
+
+	private static Logger logger = Logger.getLogger(PrimerPairMatcher.class.getName());
+
+	/**
+	 * Number of bases at the 3' end of each primer that must match, as in isPCRLike
+	 */
+	public static final int MATCH_LENGTH = 10;
+
+	private static final String BASES = "ACGT";
+	/**
+	 * Bases matched by each IUPAC code in a primer
+	 */
+	private static final Map<Character, String> IUPAC = new HashMap<Character, String>();
+	static {
+		IUPAC.put(Character.valueOf('A'), "A");
+		IUPAC.put(Character.valueOf('C'), "C");
+		IUPAC.put(Character.valueOf('G'), "G");
+		IUPAC.put(Character.valueOf('T'), "T");
+		IUPAC.put(Character.valueOf('R'), "AG");
+		IUPAC.put(Character.valueOf('Y'), "CT");
+		IUPAC.put(Character.valueOf('W'), "AT");
+		IUPAC.put(Character.valueOf('M'), "AC");
+		IUPAC.put(Character.valueOf('K'), "GT");
+		IUPAC.put(Character.valueOf('S'), "CG");
+		IUPAC.put(Character.valueOf('B'), "CGT");
+		IUPAC.put(Character.valueOf('D'), "AGT");
+		IUPAC.put(Character.valueOf('H'), "ACT");
+		IUPAC.put(Character.valueOf('V'), "ACG");
+		IUPAC.put(Character.valueOf('N'), "ACGT");
+	}
+
+	private List<Pair<String>> primerPairs;
+	private int maxMismatches;
+	/**
+	 * Distinct primer ends to match, and the length of each
+	 */
+	private int numEnds;
+	private int[] endLength;
+	/**
+	 * Left end and right end of each primer pair
+	 */
+	private int[] leftEnd;
+	private int[] rightEnd;
+	/**
+	 * Primer pairs by their left end
+	 */
+	private int[][] pairsByLeftEnd;
+	/**
+	 * Automaton transitions by state and base, and the primer ends matched on reaching each state
+	 */
+	private int[][] transitions;
+	private int[][] outputs;
+
+	/**
+	 * An oligo region amplified by a primer pair
+	 */
+	public static class Amplicon {
+
+		private Pair<String> primers;
+		private int start;
+		private int end;
+
+		Amplicon(Pair<String> primers, int start, int end) {
+			this.primers = primers;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return The primer pair
+		 */
+		public Pair<String> getPrimers() {
+			return primers;
+		}
+
+		/**
+		 * @return Start of the left primer match in the oligo
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return End of the right primer match in the oligo, exclusive
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+	}
+
+	/**
+	 * @param primers Primer pairs, left primer first, each as written 5' to 3'
+	 * @param maxMismatches Max number of mismatched bases in the 3' end of each primer
+	 */
+	public PrimerPairMatcher(List<Pair<String>> primers, int maxMismatches) {
+		primerPairs = new ArrayList<Pair<String>>(primers);
+		this.maxMismatches = maxMismatches;
+		int n = primerPairs.size();
+		leftEnd = new int[n];
+		rightEnd = new int[n];
+		Map<String, Integer> endIndex = new HashMap<String, Integer>();
+		List<String> ends = new ArrayList<String>();
+		for(int i = 0; i < n; i++) {
+			String left = Sequence.get3Prime(primerPairs.get(i).getValue1(), MATCH_LENGTH).toUpperCase();
+			String right = Sequence.reverseSequence(Sequence.get3Prime(primerPairs.get(i).getValue2(), MATCH_LENGTH)).toUpperCase();
+			leftEnd[i] = getIndex(left, endIndex, ends);
+			rightEnd[i] = getIndex(right, endIndex, ends);
+		}
+		numEnds = ends.size();
+		endLength = new int[numEnds];
+		for(int e = 0; e < numEnds; e++) {
+			endLength[e] = ends.get(e).length();
+		}
+		List<List<Integer>> byLeft = new ArrayList<List<Integer>>();
+		for(int e = 0; e < numEnds; e++) {
+			byLeft.add(new ArrayList<Integer>());
+		}
+		for(int i = 0; i < n; i++) {
+			byLeft.get(leftEnd[i]).add(Integer.valueOf(i));
+		}
+		pairsByLeftEnd = new int[numEnds][];
+		for(int e = 0; e < numEnds; e++) {
+			pairsByLeftEnd[e] = new int[byLeft.get(e).size()];
+			for(int k = 0; k < pairsByLeftEnd[e].length; k++) {
+				pairsByLeftEnd[e][k] = byLeft.get(e).get(k).intValue();
+			}
+		}
+		buildAutomaton(ends);
+		logger.info("Built automaton with " + transitions.length + " states for " + numEnds + " distinct primer ends of " + n + " primer pairs with up to " + maxMismatches + " mismatches.");
+	}
+
+	private static int getIndex(String end, Map<String, Integer> endIndex, List<String> ends) {
+		Integer index = endIndex.get(end);
+		if(index == null) {
+			index = Integer.valueOf(ends.size());
+			endIndex.put(end, index);
+			ends.add(end);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * @param c A base
+	 * @return Index of the base in the automaton alphabet, or -1 if it is not A, C, G or T
+	 */
+	private static int baseIndex(char c) {
+		switch(c) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': return 3;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Add every variant of each primer end to a trie, then link each state to its longest proper suffix state
+	 * @param ends The distinct primer ends
+	 */
+	private void buildAutomaton(List<String> ends) {
+		List<int[]> trie = new ArrayList<int[]>();
+		List<TreeSet<Integer>> matched = new ArrayList<TreeSet<Integer>>();
+		trie.add(newState());
+		matched.add(new TreeSet<Integer>());
+		for(int e = 0; e < ends.size(); e++) {
+			addVariants(ends.get(e), 0, maxMismatches, 0, e, trie, matched);
+		}
+
+		int numStates = trie.size();
+		transitions = trie.toArray(new int[numStates][]);
+		int[] fail = new int[numStates];
+		// Breadth first, so the suffix state of each state is complete before it is used
+		int[] queue = new int[numStates];
+		int head = 0;
+		int tail = 0;
+		for(int b = 0; b < BASES.length(); b++) {
+			int next = transitions[0][b];
+			if(next < 0) {
+				transitions[0][b] = 0;
+			} else {
+				fail[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		while(head < tail) {
+			int state = queue[head++];
+			matched.get(state).addAll(matched.get(fail[state]));
+			for(int b = 0; b < BASES.length(); b++) {
+				int next = transitions[state][b];
+				if(next < 0) {
+					transitions[state][b] = transitions[fail[state]][b];
+				} else {
+					fail[next] = transitions[fail[state]][b];
+					queue[tail++] = next;
+				}
+			}
+		}
+		outputs = new int[numStates][];
+		for(int s = 0; s < numStates; s++) {
+			outputs[s] = new int[matched.get(s).size()];
+			int k = 0;
+			for(Integer e : matched.get(s)) {
+				outputs[s][k++] = e.intValue();
+			}
+		}
+	}
+
+	private static int[] newState() {
+		int[] rtrn = new int[BASES.length()];
+		Arrays.fill(rtrn, -1);
+		return rtrn;
+	}
+
+	/**
+	 * Add the variants of a primer end from a position on, with the rest of the mismatch budget
+	 */
+	private static void addVariants(String end, int position, int mismatches, int state, int endId, List<int[]> trie, List<TreeSet<Integer>> matched) {
+		if(position == end.length()) {
+			matched.get(state).add(Integer.valueOf(endId));
+			return;
+		}
+		char c = end.charAt(position);
+		String bases = IUPAC.get(Character.valueOf(c));
+		if(bases == null) {
+			throw new IllegalArgumentException("Primer end " + end + " has unsupported base " + c);
+		}
+		for(int b = 0; b < BASES.length(); b++) {
+			char base = BASES.charAt(b);
+			boolean mismatch = bases.indexOf(base) < 0;
+			if(mismatch && mismatches == 0) continue;
+			int next = trie.get(state)[b];
+			if(next < 0) {
+				next = trie.size();
+				trie.add(newState());
+				matched.add(new TreeSet<Integer>());
+				trie.get(state)[b] = next;
+			}
+			addVariants(end, position + 1, mismatch ? mismatches - 1 : mismatches, next, endId, trie, matched);
+		}
+	}
+
+	/**
+	 * @return The primer pairs
+	 */
+	public List<Pair<String>> getPrimerPairs() {
+		return primerPairs;
+	}
+
+	/**
+	 * Get every primer pair that amplifies an oligo
+	 * @param oligo The oligo sequence
+	 * @return The longest amplicon of each amplifying primer pair, in order of primer pair
+	 */
+	public List<Amplicon> getAmplicons(Sequence oligo) {
+		int[] firstStart = new int[numEnds];
+		int[] lastEnd = new int[numEnds];
+		Arrays.fill(firstStart, -1);
+		return getAmplicons(oligo.getSequenceBases(), firstStart, lastEnd);
+	}
+
+	/**
+	 * @param bases The oligo bases
+	 * @param firstStart Work array of first match start of each primer end, all -1 on entry and on return
+	 * @param lastEnd Work array of last match end of each primer end
+	 * @return The longest amplicon of each amplifying primer pair, in order of primer pair
+	 */
+	private List<Amplicon> getAmplicons(String bases, int[] firstStart, int[] lastEnd) {
+		List<Integer> seen = new ArrayList<Integer>();
+		int state = 0;
+		for(int i = 0; i < bases.length(); i++) {
+			int b = baseIndex(bases.charAt(i));
+			if(b < 0) {
+				state = 0;
+				continue;
+			}
+			state = transitions[state][b];
+			for(int e : outputs[state]) {
+				if(firstStart[e] < 0) {
+					firstStart[e] = i + 1 - endLength[e];
+					seen.add(Integer.valueOf(e));
+				}
+				lastEnd[e] = i + 1;
+			}
+		}
+
+		// The first left match and the last right match amplify if any pair of matches does
+		TreeSet<Integer> amplifying = new TreeSet<Integer>();
+		for(Integer e : seen) {
+			for(int pair : pairsByLeftEnd[e.intValue()]) {
+				int right = rightEnd[pair];
+				if(firstStart[right] < 0) continue;
+				int start = firstStart[leftEnd[pair]];
+				int end = lastEnd[right];
+				if(start <= end - endLength[right] && start + endLength[leftEnd[pair]] <= end) {
+					amplifying.add(Integer.valueOf(pair));
+				}
+			}
+		}
+		List<Amplicon> rtrn = new ArrayList<Amplicon>();
+		for(Integer pair : amplifying) {
+			int p = pair.intValue();
+			rtrn.add(new Amplicon(primerPairs.get(p), firstStart[leftEnd[p]], lastEnd[rightEnd[p]]));
+		}
+		for(Integer e : seen) {
+			firstStart[e.intValue()] = -1;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Get every primer pair that amplifies each of a set of oligos
+	 * @param oligos The oligos
+	 * @param numThreads Number of threads to split the oligos between
+	 * @return For each oligo in order, the longest amplicon of each amplifying primer pair
+	 */
+	public List<List<Amplicon>> getAmplicons(final List<Sequence> oligos, int numThreads) {
+		List<List<Amplicon>> rtrn = new ArrayList<List<Amplicon>>();
+		int threads = Math.max(1, Math.min(numThreads, oligos.size()));
+		if(threads == 1) {
+			rtrn.addAll(getAmplicons(oligos, 0, oligos.size()));
+			return rtrn;
+		}
+		int shardSize = (oligos.size() + 4 * threads - 1) / (4 * threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "primer-pair-matcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<List<List<Amplicon>>>> futures = new ArrayList<Future<List<List<Amplicon>>>>();
+			for(int shardStart = 0; shardStart < oligos.size(); shardStart += shardSize) {
+				final int start = shardStart;
+				final int end = Math.min(oligos.size(), shardStart + shardSize);
+				futures.add(executor.submit(new Callable<List<List<Amplicon>>>() {
+					@Override
+					public List<List<Amplicon>> call() {
+						return getAmplicons(oligos, start, end);
+					}
+				}));
+			}
+			for(Future<List<List<Amplicon>>> future : futures) {
+				rtrn.addAll(future.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while matching primers", e);
+		} catch(ExecutionException e) {
+			throw new IllegalStateException("Primer matching failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param oligos The oligos
+	 * @param start First oligo of the shard
+	 * @param end Last oligo of the shard, exclusive
+	 * @return Amplicons of each oligo in the shard
+	 */
+	private List<List<Amplicon>> getAmplicons(List<Sequence> oligos, int start, int end) {
+		int[] firstStart = new int[numEnds];
+		int[] lastEnd = new int[numEnds];
+		Arrays.fill(firstStart, -1);
+		List<List<Amplicon>> rtrn = new ArrayList<List<Amplicon>>();
+		for(int i = start; i < end; i++) {
+			rtrn.add(getAmplicons(oligos.get(i).getSequenceBases(), firstStart, lastEnd));
+		}
+		return rtrn;
+	}
+
+}
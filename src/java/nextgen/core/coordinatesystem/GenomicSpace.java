@@ -17,7 +17,9 @@ import nextgen.core.annotation.BasicAnnotation;
 import nextgen.core.annotation.Gene;
 import nextgen.core.feature.GenomeWindow;
 import nextgen.core.feature.Window;
+import broad.core.annotation.ShortBED;
 import broad.core.annotation.ShortBEDReader;
+import broad.core.datastructures.IntervalTree;
 import broad.pda.annotation.BEDFileParser;
 
 import org.apache.commons.collections15.Predicate;
@@ -308,6 +310,20 @@ public class GenomicSpace implements CoordinateSpace{
 		return permuteAnnotation(a, new BasicAnnotation(a.getChr(), 0, chromosomeSizes.get(a.getChr())));
 	}
 	
+	/**
+	 * @return Masked regions overlapping the region
+	 */
+	public List<Annotation> getMaskedRegions(Annotation region) {
+		List<Annotation> rtrn = new ArrayList<Annotation>();
+		IntervalTree<ShortBED> tree = maskedRegions.size() > 0 ? maskedRegions.getChromosomeTree(region.getChr()) : null;
+		if (tree == null) return rtrn;
+		Iterator<ShortBED> itr = new IntervalTree.ValuesIterator<ShortBED>(tree.overlappers(region.getStart(), region.getEnd()));
+		while (itr.hasNext()) {
+			rtrn.add(itr.next());
+		}
+		return rtrn;
+	}
+	
 	public boolean hasChromosome(String chr) {
 		return chromosomeSizes.containsKey(chr);
 	}
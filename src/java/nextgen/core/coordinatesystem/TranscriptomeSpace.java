@@ -23,6 +23,7 @@ import nextgen.core.model.score.WindowScoreIterator;
 import nextgen.core.scripture.BuildScriptureCoordinateSpace;
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
+import broad.core.datastructures.StaticIntervalIndex;
 import broad.pda.annotation.BEDFileParser;
 import broad.pda.datastructures.Alignments;
 
@@ -260,8 +261,8 @@ public class TranscriptomeSpace implements CoordinateSpace{
 		}
 		
 		private Iterator<? extends Window> makeWindows(Gene gene, int windowSize, int step){
-			Collection<? extends Window> rtrn=gene.getWindows(windowSize, step, 0);
-			return rtrn.iterator();
+			// Windows are made as the scan reaches them rather than collected for the whole gene
+			return gene.getWindowIterator(windowSize, step, 0);
 			
 			/*Collection<Window> temp=new TreeSet<Window>();
 			//for each gene trim from relative 0 to relative end in increments of windowSize
@@ -292,12 +293,13 @@ public class TranscriptomeSpace implements CoordinateSpace{
 	
 protected class GeneTree {
 		
-		Map<String, IntervalTree<Gene>> tree;
+		// Genes are not added once the space is built, so the trees are frozen into indexes that scanning threads can share
+		Map<String, StaticIntervalIndex<Gene>> tree;
 		Map<String, Annotation> metaAnnotation; //This is the collapsed exons of the each chromosome	
 		Map<String, Gene> genesByName;
 		
 		GeneTree(Map<String, Collection<Gene>> geneMap){
-			tree=new TreeMap<String, IntervalTree<Gene>>();
+			tree=new TreeMap<String, StaticIntervalIndex<Gene>>();
 			metaAnnotation=new TreeMap<String, Annotation>();
 			genesByName = new TreeMap<String, Gene>();
 			
@@ -306,7 +308,7 @@ protected class GeneTree {
 				for(Gene gene : genes) {
 					genesByName.put(gene.getName(),gene);
 				}
-				IntervalTree<Gene> t=makeTree(genes);
+				StaticIntervalIndex<Gene> t=new StaticIntervalIndex<Gene>(makeTree(genes));
 				tree.put(chr, t);
 				Annotation meta=makeMetaAnnotation(genes);
 				metaAnnotation.put(chr, meta);
@@ -382,7 +384,7 @@ protected class GeneTree {
 						
 			//Get overlapping regions.
 			// Note: the blocks in the overlappers do not necessarily intersect with the region
-			Iterator<Node<Gene>> iter=tree.get(region.getChr()).overlappers(region.getStart(), region.getEnd());
+			Iterator<StaticIntervalIndex.Entry<Gene>> iter=tree.get(region.getChr()).overlappers(region.getStart(), region.getEnd());
 						
 			//iterate through and trim ends
 			while(iter.hasNext()){
@@ -424,7 +426,7 @@ protected class GeneTree {
 			
 			Collection<GeneWindow> rtrn=new TreeSet<GeneWindow>();
 			//Get overlapping regions
-			Iterator<Node<Gene>> iter=tree.get(chr).iterator();
+			Iterator<StaticIntervalIndex.Entry<Gene>> iter=tree.get(chr).iterator();
 			//iterate through and trim ends
 			while(iter.hasNext()){
 				Gene g=iter.next().getValue();
@@ -0,0 +1,130 @@
+package nextgen.core.feature;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Gene;
+
+/**
+ * Iterates over the windows of a gene one at a time, walking its blocks in transcript coordinates from the leftmost block
+ * Windows are made only when asked for, so scanning a long transcript holds no more than the current window
+ * advance() moves to the next window without making it, for callers that only need its reference coordinates
+ */
+public class GeneWindowIterator implements Iterator<GeneWindow> {
+
+	private Gene gene;
+	private int windowSize;
+	private int stepSize;
+	private int[] blockStarts;
+	private int[] blockEnds;
+	// Transcript position of the start of each block, and the transcript length at the end
+	private int[] blockOffsets;
+
+	// Transcript position of the current window, and the blocks holding its first and last bases
+	private int position;
+	private int firstBlock = 0;
+	private int lastBlock = 0;
+
+	/**
+	 * @param gene Gene to scan
+	 * @param windowSize Window size in transcript coordinates
+	 * @param stepSize Distance between the starts of consecutive windows
+	 * @param start Transcript position of the first window
+	 */
+	public GeneWindowIterator(Gene gene, int windowSize, int stepSize, int start) {
+		if(stepSize < 1) {
+			throw new IllegalArgumentException("Step size must be >= 1");
+		}
+		if(windowSize < 1) {
+			throw new IllegalArgumentException("Window size must be >= 1");
+		}
+		this.gene = gene;
+		this.windowSize = windowSize;
+		this.stepSize = stepSize;
+		List<? extends Annotation> blocks = gene.getBlocks();
+		blockStarts = new int[blocks.size()];
+		blockEnds = new int[blocks.size()];
+		blockOffsets = new int[blocks.size() + 1];
+		for(int b = 0; b < blocks.size(); b++) {
+			blockStarts[b] = blocks.get(b).getStart();
+			blockEnds[b] = blocks.get(b).getEnd();
+			blockOffsets[b + 1] = blockOffsets[b] + blockEnds[b] - blockStarts[b];
+		}
+		this.position = Math.max(0, start) - stepSize;
+	}
+
+	private int getTranscriptLength() {
+		return blockOffsets[blockOffsets.length - 1];
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position + stepSize + windowSize <= getTranscriptLength();
+	}
+
+	/**
+	 * Move to the next window without making it
+	 * @return False if there are no more windows
+	 */
+	public boolean advance() {
+		if(!hasNext()) return false;
+		position += stepSize;
+		while(blockOffsets[firstBlock + 1] <= position) firstBlock++;
+		int last = position + windowSize - 1;
+		if(lastBlock < firstBlock) lastBlock = firstBlock;
+		while(blockOffsets[lastBlock + 1] <= last) lastBlock++;
+		return true;
+	}
+
+	/**
+	 * @return Transcript position of the current window
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return Reference start of the current window
+	 */
+	public int getReferenceStart() {
+		return blockStarts[firstBlock] + position - blockOffsets[firstBlock];
+	}
+
+	/**
+	 * @return Reference end of the current window
+	 */
+	public int getReferenceEnd() {
+		return blockStarts[lastBlock] + position + windowSize - blockOffsets[lastBlock];
+	}
+
+	/**
+	 * @return True if the current window spans an intron
+	 */
+	public boolean isSpliced() {
+		return firstBlock != lastBlock;
+	}
+
+	@Override
+	public GeneWindow next() {
+		if(!advance()) throw new NoSuchElementException("No next window");
+		int start = getReferenceStart();
+		int end = getReferenceEnd();
+		if(!isSpliced()) {
+			GeneWindow window = new GeneWindow(new Gene(gene.getChr(), start, end));
+			window.addSourceAnnotation(gene);
+			window.setOrientation(gene.getOrientation());
+			return window;
+		}
+		GeneWindow window = gene.trimAbsolute(start, end);
+		window.setOrientation(gene.getOrientation());
+		return window;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
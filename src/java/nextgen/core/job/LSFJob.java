@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import org.apache.log4j.Logger;
@@ -27,6 +28,7 @@ public class LSFJob implements Job {
 	private int memory;
 	private static Logger logger = Logger.getLogger(LSFJob.class.getName());
 	static int waitTime=60000; //1 minute
+	private static AtomicLong jobCount = new AtomicLong();
 	
 	/**
 	 * @param jobID Job ID
@@ -216,10 +218,10 @@ public class LSFJob implements Job {
 	
 	
 	/**
-	 * @return A unique job ID based on system time
+	 * @return A unique job ID based on system time and a count of IDs generated, so jobs submitted at the same time from several threads differ
 	 */
 	public static String generateJobID() {
-		String jobID="U"+System.nanoTime();
+		String jobID="U"+System.nanoTime()+"_"+jobCount.incrementAndGet();
 		return jobID;
 	}
 
@@ -0,0 +1,241 @@
+package nextgen.core.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A job run as a shell command on this machine, for running pipelines without a cluster
+ * Jobs are queued in a LocalJobPool and start when enough CPU and memory slots are free
+ * Standard output and error of the command are written to a file named after the job in the working directory
+ */
+public class LocalJob implements Job {
+
+	private static Logger logger = Logger.getLogger(LocalJob.class.getName());
+	private static AtomicLong jobCount = new AtomicLong();
+
+	private enum Status {
+		CREATED,
+		PENDING,
+		RUNNING,
+		DONE,
+		FAILED
+	}
+
+	private String command;
+	private String jobID;
+	private File outputFile;
+	private int numCpus;
+	private int memory;
+	private LocalJobPool pool;
+	private Status status = Status.CREATED;
+	private boolean killed = false;
+	private Process process;
+	private CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param cmmd Command to run
+	 */
+	public LocalJob(String cmmd) {
+		this(cmmd, null);
+	}
+
+	/**
+	 * @param cmmd Command to run
+	 * @param jobName A simple name for the job e.g. to identify it in output files
+	 */
+	public LocalJob(String cmmd, String jobName) {
+		this(cmmd, jobName, 0);
+	}
+
+	/**
+	 * @param cmmd Command to run
+	 * @param jobName A simple name for the job e.g. to identify it in output files
+	 * @param memoryRequest Memory request in Gb
+	 */
+	public LocalJob(String cmmd, String jobName, int memoryRequest) {
+		this(cmmd, jobName, null, 1, memoryRequest);
+	}
+
+	/**
+	 * @param cmmd Command to run
+	 * @param jobName A simple name for the job e.g. to identify it in output files
+	 * @param outFile File for standard output and error of the command, or null to name it after the job
+	 * @param cpuRequest Number of CPUs used by the command
+	 * @param memoryRequest Memory request in Gb
+	 */
+	public LocalJob(String cmmd, String jobName, String outFile, int cpuRequest, int memoryRequest) {
+		this(LocalJobPool.getDefaultPool(), cmmd, jobName, outFile, cpuRequest, memoryRequest);
+	}
+
+	/**
+	 * @param jobPool Pool to run the job in
+	 * @param cmmd Command to run
+	 * @param jobName A simple name for the job e.g. to identify it in output files
+	 * @param outFile File for standard output and error of the command, or null to name it after the job
+	 * @param cpuRequest Number of CPUs used by the command
+	 * @param memoryRequest Memory request in Gb
+	 */
+	public LocalJob(LocalJobPool jobPool, String cmmd, String jobName, String outFile, int cpuRequest, int memoryRequest) {
+		if(cpuRequest < 1 || memoryRequest < 0) {
+			throw new IllegalArgumentException("Job must request at least one CPU and non-negative memory");
+		}
+		pool = jobPool;
+		command = cmmd;
+		jobID = (jobName == null ? "local_job" : jobName) + "_" + System.currentTimeMillis() + "_" + jobCount.incrementAndGet();
+		outputFile = new File(outFile == null ? jobID + ".out" : outFile);
+		numCpus = cpuRequest;
+		memory = memoryRequest;
+	}
+
+	@Override
+	public String getID() {
+		return jobID;
+	}
+
+	/**
+	 * @return Number of CPUs requested
+	 */
+	public int getNumCpus() {
+		return numCpus;
+	}
+
+	/**
+	 * @return Memory requested in Gb
+	 */
+	public int getMemory() {
+		return memory;
+	}
+
+	/**
+	 * @return File with standard output and error of the command
+	 */
+	public File getOutputFile() {
+		return outputFile;
+	}
+
+	@Override
+	public synchronized void submit() {
+		if(status != Status.CREATED) {
+			throw new IllegalStateException("Job " + jobID + " was already submitted");
+		}
+		status = Status.PENDING;
+		logger.info("Job submitted with ID " + jobID + ".");
+		logger.info("Command: " + command);
+		pool.submit(this);
+	}
+
+	/**
+	 * Run the command and wait for it, called by the pool once the job holds its slots
+	 * Completion is signalled by finish once the pool has released the slots
+	 */
+	void run() {
+		try {
+			synchronized(this) {
+				if(killed) return;
+				ProcessBuilder pb = new ProcessBuilder("/bin/bash", "-c", command);
+				pb.redirectErrorStream(true);
+				pb.redirectOutput(outputFile);
+				process = pb.start();
+				status = Status.RUNNING;
+			}
+			int exitValue = process.waitFor();
+			synchronized(this) {
+				status = exitValue == 0 && !killed ? Status.DONE : Status.FAILED;
+			}
+			logger.info("Job " + jobID + " finished with exit status " + exitValue + ".");
+		} catch(IOException e) {
+			logger.error("Could not start job " + jobID + ": " + e.getMessage());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(process != null) process.destroy();
+		} finally {
+			synchronized(this) {
+				if(status != Status.DONE) status = Status.FAILED;
+			}
+		}
+	}
+
+	/**
+	 * Signal jobs waiting for this one, called by the pool after releasing its slots
+	 */
+	void finish() {
+		finished.countDown();
+	}
+
+	@Override
+	public void waitFor() throws InterruptedException {
+		if(status == Status.CREATED) {
+			throw new IllegalStateException("Job " + jobID + " has not been submitted");
+		}
+		finished.await();
+		if(failed()) {
+			logger.warn("Job " + jobID + " failed. See " + outputFile + ".");
+		}
+	}
+
+	/**
+	 * The job signals its own completion, so there is no need to check at an interval
+	 */
+	@Override
+	public void waitFor(int interval) throws InterruptedException {
+		waitFor();
+	}
+
+	@Override
+	public synchronized boolean isPending() {
+		return status == Status.PENDING;
+	}
+
+	/**
+	 * Local jobs are never suspended
+	 */
+	@Override
+	public boolean isSuspended() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isRunning() {
+		return status == Status.RUNNING;
+	}
+
+	@Override
+	public boolean completed() {
+		return succeeded() || failed();
+	}
+
+	@Override
+	public synchronized boolean succeeded() {
+		return status == Status.DONE;
+	}
+
+	@Override
+	public synchronized boolean failed() {
+		return status == Status.FAILED;
+	}
+
+	@Override
+	public void kill() {
+		synchronized(this) {
+			if(status == Status.DONE || status == Status.FAILED) return;
+			killed = true;
+			if(status == Status.RUNNING) {
+				logger.info("Killing job " + jobID + ".");
+				process.destroy();
+				return;
+			}
+		}
+		// Not started yet
+		if(pool.cancel(this)) {
+			synchronized(this) {
+				status = Status.FAILED;
+			}
+			finished.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package nextgen.core.job;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs local jobs on this machine within a fixed number of CPU and memory slots
+ * Jobs start in submission order as soon as enough slots are free, and a job requesting more than the whole pool is limited to the whole pool so it can still run
+ * Each running job holds one thread of the pool while it waits for its process
+ */
+public class LocalJobPool {
+
+	private static Logger logger = Logger.getLogger(LocalJobPool.class.getName());
+
+	private static LocalJobPool defaultPool;
+
+	private int totalCpus;
+	private int totalMemory;
+	private int freeCpus;
+	private int freeMemory;
+	private LinkedList<LocalJob> queue = new LinkedList<LocalJob>();
+	private ExecutorService executor;
+
+	/**
+	 * @param numCpus Number of CPU slots
+	 * @param memoryGb Memory slots in Gb
+	 */
+	public LocalJobPool(int numCpus, int memoryGb) {
+		if(numCpus < 1 || memoryGb < 1) {
+			throw new IllegalArgumentException("Pool must have at least one CPU and 1Gb of memory");
+		}
+		totalCpus = numCpus;
+		totalMemory = memoryGb;
+		freeCpus = numCpus;
+		freeMemory = memoryGb;
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "local-job");
+				// Jobs are not waited for unless requested
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Get the pool used by local jobs that are not given one
+	 * Unless set with setDefaultPool, it has one CPU slot per available processor and unlimited memory
+	 * @return The default pool
+	 */
+	public static synchronized LocalJobPool getDefaultPool() {
+		if(defaultPool == null) {
+			defaultPool = new LocalJobPool(Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Replace the default pool, e.g. to limit the memory used by all jobs
+	 * Jobs already submitted keep running in the old pool
+	 * @param numCpus Number of CPU slots
+	 * @param memoryGb Memory slots in Gb
+	 */
+	public static synchronized void setDefaultPool(int numCpus, int memoryGb) {
+		defaultPool = new LocalJobPool(numCpus, memoryGb);
+		logger.info("Local jobs will use " + numCpus + " CPUs and " + memoryGb + "Gb of memory");
+	}
+
+	/**
+	 * @return Number of CPU slots
+	 */
+	public int getTotalCpus() {
+		return totalCpus;
+	}
+
+	/**
+	 * @return Memory slots in Gb
+	 */
+	public int getTotalMemory() {
+		return totalMemory;
+	}
+
+	/**
+	 * @return Number of CPU slots not held by running jobs
+	 */
+	public synchronized int getFreeCpus() {
+		return freeCpus;
+	}
+
+	/**
+	 * @return Memory slots in Gb not held by running jobs
+	 */
+	public synchronized int getFreeMemory() {
+		return freeMemory;
+	}
+
+	/**
+	 * @return Number of jobs waiting for slots
+	 */
+	public synchronized int getNumPending() {
+		return queue.size();
+	}
+
+	/**
+	 * @param job Job to queue
+	 */
+	synchronized void submit(LocalJob job) {
+		queue.add(job);
+		dispatch();
+	}
+
+	/**
+	 * @param job Job to remove from the queue
+	 * @return True if the job was still waiting for slots
+	 */
+	synchronized boolean cancel(LocalJob job) {
+		return queue.remove(job);
+	}
+
+	/**
+	 * @param job Job to limit
+	 * @return CPU slots the job holds while running
+	 */
+	int getCpus(LocalJob job) {
+		return Math.min(job.getNumCpus(), totalCpus);
+	}
+
+	/**
+	 * @param job Job to limit
+	 * @return Memory slots the job holds while running
+	 */
+	int getMemory(LocalJob job) {
+		return Math.min(job.getMemory(), totalMemory);
+	}
+
+	private synchronized void release(LocalJob job) {
+		freeCpus += getCpus(job);
+		freeMemory += getMemory(job);
+		dispatch();
+	}
+
+	/**
+	 * Start queued jobs in order while the first one fits in the free slots
+	 */
+	private void dispatch() {
+		while(!queue.isEmpty()) {
+			final LocalJob job = queue.getFirst();
+			int cpus = getCpus(job);
+			int memory = getMemory(job);
+			if(cpus > freeCpus || memory > freeMemory) {
+				return;
+			}
+			queue.removeFirst();
+			freeCpus -= cpus;
+			freeMemory -= memory;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						// Slots are free before anyone waiting for the job is woken
+						release(job);
+						job.finish();
+					}
+				}
+			});
+		}
+	}
+
+}
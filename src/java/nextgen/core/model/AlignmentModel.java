@@ -21,6 +21,7 @@ import broad.pda.datastructures.Alignments;
 
 import net.sf.samtools.util.CloseableIterator;
 import nextgen.core.alignment.Alignment;
+import nextgen.core.alignment.CompactReadStore;
 import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
 import nextgen.core.annotation.*;
 import nextgen.core.coordinatesystem.CoordinateSpace;
@@ -68,9 +69,11 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	//private double globalRpkmConstant = -99;
 	private Cache cache;
 	int cacheSize=500000;
-	private boolean hasGlobalStats = false;
+	private volatile boolean hasGlobalStats = false;
+	private boolean compactCache = false;
 	private SortedMap<String, Double> refSequenceCounts=new TreeMap<String, Double>();
 	private TranscriptionRead strand;
+	private boolean fragment;
 	
 	/**
 	 * Build with a BAM file
@@ -114,6 +117,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 
 		this.bamFile=bamFile;
 		strand = transcriptionRead;
+		this.fragment = fragment;
 		if (readOrCreatePairedEndBam) {
 			this.bamFile = PairedEndReader.getOrCreatePairedEndFile(bamFile,transcriptionRead);
 			String file = PairedEndReader.getPairedEndFile(bamFile);
@@ -202,10 +206,26 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		return true; 
 	}
 	
+	/**
+	 * Compute global stats unless they are already known
+	 * Threads scoring windows of the same model wait for a single computation
+	 */
+	public synchronized void ensureGlobalStats() {
+		if(!this.hasGlobalStats) computeGlobalStats();
+	}
+	
+	/**
+	 * Global stats are needed by most window scores, so they are computed before threads start scoring
+	 */
+	@Override
+	protected void prepareParallelScan() {
+		ensureGlobalStats();
+	}
+	
 	/**
 	 * Compute global stats and cache to a file for future use, or read from file if already cached
 	 */
-	public void computeGlobalStats() {
+	public synchronized void computeGlobalStats() {
 		try {
 			
 			SortedMap<String, Double> stats = null; 
@@ -256,9 +276,6 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			}
 			this.globalCountReferenceSeqs = refSeqTotal;
 
-
-			this.hasGlobalStats = true;
-
 			if (!loaded) {
 				// Store global stats in a file
 				logger.info("Writing global stats to file " + precomputedStats + " for future use.");
@@ -271,6 +288,8 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			stats.remove("globalLambda");
 			stats.remove("globalPairedFragments");
 			refSequenceCounts = stats;
+			// Set last so that threads checking without the lock see complete stats
+			this.hasGlobalStats = true;
 		} catch (IOException e) {
 			throw new RuntimeIOException(e.getMessage());
 		}
@@ -332,9 +351,13 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		}
 		if (refAnnotation != null && window.equals(refAnnotation)) {
 			//logger.info("getting saved chr count");
-			if(!this.hasGlobalStats) computeGlobalStats();
+			if(!this.hasGlobalStats) ensureGlobalStats();
 			return refSequenceCounts.get(window.getChr());
 		} else {
+			if(compactCache) {
+				double count = cache.getCompactCount(window, fullyContained);
+				if(count >= 0) return count;
+			}
 			try{
 				iter=getOverlappingReadCounts(window, fullyContained);
 			} catch (IllegalStateException e) {
@@ -390,7 +413,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	
 	public double getGlobalLambda() {
 		if(!this.hasGlobalStats){
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		return this.globalLambda;
 	}
@@ -398,14 +421,14 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	
 	public double getGlobalLength() {
 		if (!this.hasGlobalStats) {
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		return this.globalLength;
 	}
 	
 	public double getGlobalPairedFragments() {
 		if (!this.hasGlobalStats) {
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		return this.globalPairedFragments;
 	}
@@ -605,7 +628,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	 * @return Total read count
 	 */
 	public double getGlobalNumReads() {
-		if(!this.hasGlobalStats) computeGlobalStats();
+		if(!this.hasGlobalStats) ensureGlobalStats();
 		return this.globalCount;
 	}
 
@@ -614,7 +637,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	 * @return Total read count on coordinate space
 	 */
 	public double getGlobalNumReadsReferenceSeqs() {
-		if(!this.hasGlobalStats) computeGlobalStats();
+		if(!this.hasGlobalStats) ensureGlobalStats();
 		return this.globalCountReferenceSeqs;
 	}
 
@@ -871,24 +894,29 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	}
 	
 	
-	private class Cache{
-		String cacheChr = null;
-		int cacheStart = 0;
-		int cacheEnd = 0;
-		boolean fullyContained = false;
+	private class Cache implements AlignmentWindowCache.WindowLoader<IntervalTree<Alignment>> {
 		int cacheSize;
-		IntervalTree<Alignment> cachedTree;
+		AlignmentWindowCache<IntervalTree<Alignment>> windows;
+		AlignmentWindowCache<CompactReadStore> compactWindows;
 		
-		//FLAG TO INDICATE WHETHER UPDATE CACHE FAILED
-		boolean updateCacheFailed;
 		// Collection of trouble regions for which the update cache has failed at least once.
 		Map<String,List<Annotation>> troubleRegions;
 		
 		PairedEndReader reader;
 		
+		// Readers of each thread for queries past the cache, so they stream without holding the shared reader
+		ThreadLocal<PairedEndReader> queryReaders=new ThreadLocal<PairedEndReader>() {
+			@Override
+			protected PairedEndReader initialValue() {
+				return new PairedEndReader(new File(bamFile), strand, fragment);
+			}
+		};
+		
 		Cache(PairedEndReader reader, int cacheSize){
 			this.reader=reader;
 			this.cacheSize=cacheSize;
+			this.windows=new AlignmentWindowCache<IntervalTree<Alignment>>(this, cacheSize);
+			this.compactWindows=new AlignmentWindowCache<CompactReadStore>(new CompactLoader(), cacheSize);
 			troubleRegions = new HashMap<String,List<Annotation>>();
 		}
 		
@@ -903,30 +931,17 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			//if larger than the cache size then just return the query directly
 			if(window.getSize()>this.cacheSize || isTroubleRegion(window)){
 				//logger.info("Get reads for the entire window of size "+window.getSize()+" for "+window.toUCSC());
-				return getReads(window, fullyContained);
-			}
-			//else if doesnt contain the window then update cache and query again
-			else if (!contains(window) || this.fullyContained != fullyContained) {
-				//logger.info("Updating cache for "+window.getSize()+" for "+window.toUCSC());
-				updateCache(window.getReferenceName(), window.getStart(), window.getEnd(), fullyContained);
-				//IF UPDATE CACHE FAILED, GET READS WITHOUT CACHE
-				if(this.updateCacheFailed){
-					logger.info("Tried updating cache. Update cache aborted.");
-					return getReads(window, fullyContained);
-				}
+				return getReadsStreamed(window, fullyContained);
 			}
-			if(this.updateCacheFailed){
-				//logger.info("Update cache failed for "+window.toUCSC());
-				return getReads(window, fullyContained);
+			//else find a cached window containing the region, loading one if needed
+			IntervalTree<Alignment> tree=windows.get(window, fullyContained);
+			//IF UPDATE CACHE FAILED, GET READS WITHOUT CACHE
+			if(tree==null){
+				logger.info("Tried updating cache. Update cache aborted.");
+				return getReadsStreamed(window, fullyContained);
 			}
 			//pull reads from cache
-			return getReadsFromCache(window);
-		}
-		
-		private CloseableIterator<AlignmentCount> getReadsFromCache(Annotation window) {
-			// TODO:  Can't we just call cachedTree.overlappersValueIterator(window.getStart(), window.getEnd()) and get rid of the NodeIterator?
-			//  it looks like overlappingValueIterator can handle multiple values per node
-			return new NodeIterator(this.cachedTree.overlappers(window.getStart(), window.getEnd()));
+			return new NodeIterator(tree.overlappers(window.getStart(), window.getEnd()));
 		}
 		
 		/**
@@ -935,68 +950,90 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		 * @return
 		 */
 		private boolean isTroubleRegion(Annotation window){
-			if(troubleRegions.containsKey(window.getChr())){
-				for(Annotation region:troubleRegions.get(window.getChr())){
-					if(region.overlapsStranded(window)){
-						return true;
+			synchronized(troubleRegions) {
+				if(troubleRegions.containsKey(window.getChr())){
+					for(Annotation region:troubleRegions.get(window.getChr())){
+						if(region.overlapsStranded(window)){
+							return true;
+						}
 					}
 				}
 			}
 			return false;
 		}
-
+		
 		/**
-		 * Update the cache to have these new positions
-		 * @param chr
-		 * @param start
-		 * @param end
+		 * Count the reads in a window from the compact read store
+		 * @return The count or -1 if the window cannot be served from the compact store
 		 */
-		private void updateCache(String chr, int start, int end, boolean fullyContained) {
-			int newStart=start;
-			int newEnd=end;
-
-			// if window is larger than cache size 
-			//@skadri TODO: Isn't this checked in query() already?
-			// (this will happen in TranscriptomeSpace if a transcript is longer than the cache size)
-			if ((end-start) > this.cacheSize) {
-				newStart=start;
-				newEnd=end;
-			} else {
-				if (this.cacheChr == null || chr.equalsIgnoreCase(this.cacheChr)) { 
-					if (end > this.cacheEnd) {
-						// Set the cache to start and the beginning of the requested sequence
-						newStart = start;
-						newEnd = start + this.cacheSize;
-					} else if (start < this.cacheStart) {
-						// Maybe we're scanning backwards?  So we'll fix the cache to the end of the window
-						newEnd = end;
-						newStart = end - this.cacheSize;
-					}
-				}
+		private double getCompactCount(Annotation window, boolean fullyContained) {
+			CompactReadStore store=getCompactReads(window, fullyContained);
+			if(store==null){
+				return -1;
 			}
-
-			this.cacheChr=chr;
-			this.cacheStart=newStart;
-			this.cacheEnd=newEnd;
-			this.fullyContained = fullyContained;
-
-			Window update=new GenomeWindow(this.cacheChr, this.cacheStart, this.cacheEnd);
-
-			this.cachedTree=getIntervalTree(update, fullyContained);
+			Annotation.Strand orientation=strand.equals(TranscriptionRead.UNSTRANDED) ? null : window.getOrientation();
+			return store.getCount(coordinateSpace.getFragment(window), fullyContained, orientation);
 		}
 		
+		private CompactReadStore getCompactReads(Annotation window, boolean fullyContained) {
+			if(window.getSize()>this.cacheSize || isTroubleRegion(window)){
+				return null;
+			}
+			return compactWindows.get(window, fullyContained);
+		}
+		
+		/**
+		 * Load the reads over a window missing from the cache
+		 * Reads are pulled from the shared reader one window at a time
+		 */
+		@Override
+		public IntervalTree<Alignment> load(Window w, boolean fullyContained) {
+			synchronized(reader) {
+				return getIntervalTree(w, fullyContained);
+			}
+		}
+		
+		@Override
+		public long getBytes(IntervalTree<Alignment> loaded) {
+			return AlignmentWindowCache.estimateBytes(loaded);
+		}
+		
+		/**
+		 * Loads the valid reads of a window into a compact read store
+		 */
+		private class CompactLoader implements AlignmentWindowCache.WindowLoader<CompactReadStore> {
+			
+			@Override
+			public CompactReadStore load(Window w, boolean fullyContained) {
+				synchronized(reader) {
+					CloseableIterator<Alignment> iter=new CloseableFilterIterator<Alignment>(reader.query(w, fullyContained), new Predicate<Alignment>() {
+						@Override
+						public boolean evaluate(Alignment read) {
+							return isValid(read);
+						}
+					});
+					CompactReadStore rtrn=new CompactReadStore(w.getReferenceName(), iter);
+					iter.close();
+					return rtrn;
+				}
+			}
+			
+			@Override
+			public long getBytes(CompactReadStore loaded) {
+				return loaded.getBytes();
+			}
+		}
+
 		/**
 		 * Returns an interval tree of reads over the specified window
 		 * @param w
 		 * @param fullyContained
-		 * @return
+		 * @return The tree or null if the update was aborted
 		 */
 		private IntervalTree<Alignment> getIntervalTree(Window w, boolean fullyContained) {
 			int counter=0;
 			// 80%
 			double memoryThreshold = Runtime.getRuntime().maxMemory()*0.2;
-			//Assume update cache will not fail
-			updateCacheFailed = false;
 			//Set at 2 million reads
 			double threshold = 500000;
 		 	IntervalTree<Alignment> tree=new IntervalTree<Alignment>();
@@ -1011,12 +1048,13 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 					if(Runtime.getRuntime().freeMemory()<memoryThreshold){
 						logger.info("Update cache aborted because "+w.toUCSC()+" has "+counter+" reads which is more than "+threshold+" and memory used is more than 80%");
 						tree = null;
-						updateCacheFailed = true;
 						//Add region to troubleRegions
-						if(!troubleRegions.containsKey(w.getChr())){
-							troubleRegions.put(w.getChr(), new ArrayList<Annotation>());
+						synchronized(troubleRegions) {
+							if(!troubleRegions.containsKey(w.getChr())){
+								troubleRegions.put(w.getChr(), new ArrayList<Annotation>());
+							}
+							troubleRegions.get(w.getChr()).add(w);
 						}
-						troubleRegions.get(w.getChr()).add(w);
 						break;
 					}
 				}
@@ -1033,29 +1071,64 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			return new WrapAlignmentCountIterator(this.reader.query(w, fullyContained));
 		}
 		
-		
-		private CloseableIterator<AlignmentCount> getReads(){
-			return new FilteredIterator(new WrapAlignmentCountIterator(reader.iterator()));
-		}
-		
 		/**
-		 * Does the current cache have the window?
-		 * @param region The window to determine whether its in the cache
+		 * Stream the reads of a window past the cache from the calling thread's own reader
 		 */
-		private boolean contains(Annotation region) {
-			if (this.cacheChr==null) {
-				//Not yet initialized so cant be contained in cache
-				return false;
-			}
-			
-			if (this.cacheChr.equalsIgnoreCase(region.getReferenceName())) {
-				if (this.cacheStart <= region.getStart() && this.cacheEnd >= region.getEnd()) { return true; }
-			}
-			
-			return false;
+		private CloseableIterator<AlignmentCount> getReadsStreamed(Annotation w, boolean fullyContained){
+			return new WrapAlignmentCountIterator(queryReaders.get().query(w, fullyContained));
 		}
 		
 		
+		private CloseableIterator<AlignmentCount> getReads(){
+			return new FilteredIterator(new WrapAlignmentCountIterator(reader.iterator()));
+		}
+		
+	}
+
+	/**
+	 * The read cache holds many windows bounded by an estimate of their size in bytes and evicted in least recently used order
+	 * Its hit, miss and rebuild counters can be used to size it
+	 * @return The read cache of this model
+	 */
+	public AlignmentWindowCache<IntervalTree<Alignment>> getReadCache() {
+		return this.cache.windows;
+	}
+	
+	/**
+	 * @return The cache of compact read stores used for counting when the compact cache is on
+	 */
+	public AlignmentWindowCache<CompactReadStore> getCompactReadCache() {
+		return this.cache.compactWindows;
+	}
+	
+	/**
+	 * Set the bound on the estimated bytes held by the read caches
+	 * @param maxBytes Maximum bytes of cached reads
+	 */
+	public void setCacheMaxBytes(long maxBytes) {
+		this.cache.windows.setMaxBytes(maxBytes);
+		this.cache.compactWindows.setMaxBytes(maxBytes);
+	}
+	
+	/**
+	 * Count reads from compact read stores instead of cached Alignment objects
+	 * Cached regions then hold primitive arrays instead of one SAMRecord backed object per read, so much larger or deeper windows fit in memory
+	 * Queries returning Alignment objects still go through the regular cache
+	 * @param compactCache Whether to count from compact read stores
+	 */
+	public void setCompactCache(boolean compactCache) {
+		this.compactCache = compactCache;
+	}
+	
+	/**
+	 * Get the compact store of the cached window containing a region
+	 * The store holds the valid reads of the window and answers counting, coverage and overlap queries without creating objects per read
+	 * @param region The region
+	 * @param fullyContained Whether the store should hold only reads fully contained in the cached window
+	 * @return The store or null if the region is too large to cache
+	 */
+	public CompactReadStore getCompactReads(Annotation region, boolean fullyContained) {
+		return this.cache.getCompactReads(region, fullyContained);
 	}
 
 	public boolean containsReference(String refName){
@@ -1064,14 +1137,14 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	
 	public double getGlobalCount() {
 		if (!this.hasGlobalStats) {
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		return this.globalCount;
 	}
 
 	public double getGlobalCountReferenceSeqs() {
 		if (!this.hasGlobalStats) {
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		return this.globalCountReferenceSeqs;
 	}
@@ -1169,7 +1242,7 @@ public class AlignmentModel extends AbstractAnnotationCollection<Alignment> {
 
 	public double getRefSequenceLambda(String refName) {
 		if (!hasGlobalStats) {
-			computeGlobalStats();
+			ensureGlobalStats();
 		}
 		if(!containsReference(refName)) return 0.0;
 		return refSequenceCounts.get(refName) / getRefSequenceLength(refName);
@@ -0,0 +1,404 @@
+package nextgen.core.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+
+import nextgen.core.alignment.Alignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+
+/**
+ * Read cache holding many windows of reads at once
+ * The reads of a window can be held in any structure (an interval tree of alignments or a compact read store) built by the window loader
+ * Windows are spread over shards by reference name so that threads scanning different chromosomes do not contend
+ * Each shard keeps its windows in least recently used order and the cache as a whole is bounded by an estimate of the bytes held by the cached reads
+ * When the bound is exceeded the least recently used windows of the shard being filled are evicted first, then those of the other shards
+ * The structures handed out are never modified once built, so they can be queried from several threads at once
+ */
+public class AlignmentWindowCache<T> {
+
+	static Logger logger = Logger.getLogger(AlignmentWindowCache.class.getName());
+
+	/**
+	 * Rough heap footprint of one cached read: the record, its blocks and the interval tree node holding it
+	 */
+	public static final long ESTIMATED_BYTES_PER_READ = 1536;
+
+	/**
+	 * Default number of shards
+	 */
+	public static final int DEFAULT_NUM_SHARDS = 16;
+
+	/**
+	 * Default fraction of the maximum heap that cached reads may use
+	 */
+	public static final double DEFAULT_HEAP_FRACTION = 0.25;
+
+	/**
+	 * Builds the reads for a window that is missing from the cache
+	 */
+	public interface WindowLoader<T> {
+
+		/**
+		 * @param window The window to load
+		 * @param fullyContained Whether to load only reads fully contained in the window
+		 * @return The reads over the window or null if the window could not be loaded
+		 */
+		public T load(Window window, boolean fullyContained);
+
+		/**
+		 * @param loaded Reads returned by load
+		 * @return Estimated bytes held by the reads
+		 */
+		public long getBytes(T loaded);
+
+	}
+
+	private WindowLoader<T> loader;
+	private int windowSize;
+	private long maxBytes;
+	private List<Shard> shards;
+	private AtomicLong cachedBytes = new AtomicLong(0);
+
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong rebuilds = new AtomicLong(0);
+	private AtomicLong failedRebuilds = new AtomicLong(0);
+	private AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * @param loader Builds the reads for windows missing from the cache
+	 * @param windowSize Size of each window loaded on a miss
+	 */
+	public AlignmentWindowCache(WindowLoader<T> loader, int windowSize) {
+		this(loader, windowSize, (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION), DEFAULT_NUM_SHARDS);
+	}
+
+	/**
+	 * @param loader Builds the reads for windows missing from the cache
+	 * @param windowSize Size of each window loaded on a miss
+	 * @param maxBytes Bound on the estimated bytes of all cached reads
+	 * @param numShards Number of shards
+	 */
+	public AlignmentWindowCache(WindowLoader<T> loader, int windowSize, long maxBytes, int numShards) {
+		if(numShards < 1) {
+			throw new IllegalArgumentException("Number of shards must be at least 1");
+		}
+		this.loader = loader;
+		this.windowSize = windowSize;
+		this.maxBytes = maxBytes;
+		this.shards = new ArrayList<Shard>(numShards);
+		for(int i = 0; i < numShards; i++) {
+			this.shards.add(new Shard());
+		}
+	}
+
+	/**
+	 * Get the cached reads for a window, loading a new window into the cache if no cached window contains it
+	 * @param region The region to query
+	 * @param fullyContained Whether the reads should be fully contained in the cached window
+	 * @return The reads of a cached window containing the region or null if the window could not be loaded
+	 */
+	public T get(Annotation region, boolean fullyContained) {
+		Shard shard = getShard(region.getReferenceName());
+		CachedWindow<T> loaded;
+		synchronized(shard) {
+			CachedWindow<T> cached = shard.find(region, fullyContained);
+			if(cached != null) {
+				hits.incrementAndGet();
+				return cached.reads;
+			}
+			misses.incrementAndGet();
+			Window update = nextWindow(shard, region);
+			T reads = loader.load(update, fullyContained);
+			if(reads == null) {
+				failedRebuilds.incrementAndGet();
+				return null;
+			}
+			rebuilds.incrementAndGet();
+			loaded = new CachedWindow<T>(update, fullyContained, reads, loader.getBytes(reads));
+			shard.put(loaded);
+			cachedBytes.addAndGet(loaded.bytes);
+			shard.last.put(update.getReferenceName(), loaded);
+			// Make room within this shard first but never evict the window just loaded
+			while(cachedBytes.get() > maxBytes && shard.evictEldest(loaded)) {}
+		}
+		if(cachedBytes.get() > maxBytes) {
+			evictFromOtherShards(shard);
+		}
+		return loaded.reads;
+	}
+
+	/**
+	 * Choose the window to load for a region missing from the cache
+	 * Windows start at the region unless the region precedes the last window loaded on the same reference, in which case we are scanning backwards and the window ends at the region
+	 */
+	private Window nextWindow(Shard shard, Annotation region) {
+		String chr = region.getReferenceName();
+		int start = region.getStart();
+		int end = region.getEnd();
+		if(end - start >= windowSize) {
+			return new GenomeWindow(chr, start, end);
+		}
+		CachedWindow<T> last = shard.last.get(chr);
+		if(last != null && start < last.start) {
+			return new GenomeWindow(chr, Math.max(0, end - windowSize), end);
+		}
+		return new GenomeWindow(chr, start, start + windowSize);
+	}
+
+	private void evictFromOtherShards(Shard filled) {
+		for(Shard shard : shards) {
+			if(shard == filled) continue;
+			synchronized(shard) {
+				while(cachedBytes.get() > maxBytes && shard.evictEldest(null)) {}
+			}
+			if(cachedBytes.get() <= maxBytes) return;
+		}
+	}
+
+	/**
+	 * Estimate the bytes held by an interval tree of alignments
+	 * @param tree The tree
+	 * @return Number of reads in the tree times ESTIMATED_BYTES_PER_READ
+	 */
+	public static long estimateBytes(IntervalTree<Alignment> tree) {
+		long rtrn = 0;
+		Iterator<Node<Alignment>> iter = tree.iterator();
+		while(iter.hasNext()) {
+			rtrn += iter.next().getContainedValues().size();
+		}
+		return rtrn * ESTIMATED_BYTES_PER_READ;
+	}
+
+	private Shard getShard(String chr) {
+		return shards.get((chr.hashCode() & Integer.MAX_VALUE) % shards.size());
+	}
+
+	/**
+	 * Drop all cached windows
+	 * Counters are kept
+	 */
+	public void clear() {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(CachedWindow<T> window : shard.windows.values()) {
+					cachedBytes.addAndGet(-window.bytes);
+				}
+				shard.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of queries answered from a cached window
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of queries that no cached window could answer
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of windows loaded into the cache
+	 */
+	public long getRebuilds() {
+		return rebuilds.get();
+	}
+
+	/**
+	 * @return Number of window loads that were aborted by the loader
+	 */
+	public long getFailedRebuilds() {
+		return failedRebuilds.get();
+	}
+
+	/**
+	 * @return Number of windows evicted to stay within the byte bound
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Estimated bytes held by cached reads
+	 */
+	public long getCachedBytes() {
+		return cachedBytes.get();
+	}
+
+	/**
+	 * @return Bound on the estimated bytes held by cached reads
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes New bound on the estimated bytes held by cached reads, applied from the next load
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return Number of windows currently cached
+	 */
+	public int getNumWindows() {
+		int rtrn = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				rtrn += shard.windows.size();
+			}
+		}
+		return rtrn;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + " misses=" + getMisses() + " rebuilds=" + getRebuilds() + " failedRebuilds=" + getFailedRebuilds() + " evictions=" + getEvictions() + " windows=" + getNumWindows() + " bytes=" + getCachedBytes() + "/" + getMaxBytes();
+	}
+
+	/**
+	 * Windows of one shard in least recently used order
+	 */
+	private class Shard {
+
+		LinkedHashMap<String, CachedWindow<T>> windows = new LinkedHashMap<String, CachedWindow<T>>(16, 0.75f, true);
+		// Last window loaded on each reference, used to detect backwards scans
+		Map<String, CachedWindow<T>> last = new LinkedHashMap<String, CachedWindow<T>>();
+
+		// Windows of each reference by start position, to find a containing window by binary search
+		Map<String, TreeMap<Integer, List<CachedWindow<T>>>> byStart = new HashMap<String, TreeMap<Integer, List<CachedWindow<T>>>>();
+		// Longest window held, bounding how far before the region a containing window can start
+		int maxLength = 0;
+
+		CachedWindow<T> find(Annotation region, boolean fullyContained) {
+			TreeMap<Integer, List<CachedWindow<T>>> starts = byStart.get(indexKey(region.getReferenceName(), fullyContained));
+			if(starts == null) return null;
+			CachedWindow<T> found = null;
+			for(List<CachedWindow<T>> atStart : starts.subMap(Integer.valueOf(region.getStart() - maxLength), true, Integer.valueOf(region.getStart()), true).descendingMap().values()) {
+				for(CachedWindow<T> window : atStart) {
+					if(window.contains(region, fullyContained)) {
+						found = window;
+						break;
+					}
+				}
+				if(found != null) break;
+			}
+			if(found != null) {
+				// Touch the entry to move it to the most recently used end
+				windows.get(found.key);
+			}
+			return found;
+		}
+
+		void put(CachedWindow<T> window) {
+			CachedWindow<T> old = windows.put(window.key, window);
+			if(old != null) {
+				cachedBytes.addAndGet(-old.bytes);
+				unindex(old);
+			}
+			String key = indexKey(window.chr, window.fullyContained);
+			TreeMap<Integer, List<CachedWindow<T>>> starts = byStart.get(key);
+			if(starts == null) {
+				starts = new TreeMap<Integer, List<CachedWindow<T>>>();
+				byStart.put(key, starts);
+			}
+			List<CachedWindow<T>> atStart = starts.get(Integer.valueOf(window.start));
+			if(atStart == null) {
+				atStart = new ArrayList<CachedWindow<T>>(1);
+				starts.put(Integer.valueOf(window.start), atStart);
+			}
+			atStart.add(window);
+			maxLength = Math.max(maxLength, window.end - window.start);
+		}
+
+		private void unindex(CachedWindow<T> window) {
+			String key = indexKey(window.chr, window.fullyContained);
+			TreeMap<Integer, List<CachedWindow<T>>> starts = byStart.get(key);
+			List<CachedWindow<T>> atStart = starts.get(Integer.valueOf(window.start));
+			atStart.remove(window);
+			if(atStart.isEmpty()) starts.remove(Integer.valueOf(window.start));
+			if(starts.isEmpty()) byStart.remove(key);
+		}
+
+		void clear() {
+			windows.clear();
+			last.clear();
+			byStart.clear();
+			maxLength = 0;
+		}
+
+		/**
+		 * Evict the least recently used window unless it is the one to keep
+		 * @return True if a window was evicted
+		 */
+		boolean evictEldest(CachedWindow<T> keep) {
+			Iterator<CachedWindow<T>> iter = windows.values().iterator();
+			if(!iter.hasNext()) return false;
+			CachedWindow<T> eldest = iter.next();
+			if(eldest == keep) return false;
+			iter.remove();
+			unindex(eldest);
+			if(last.get(eldest.chr) == eldest) {
+				last.remove(eldest.chr);
+			}
+			cachedBytes.addAndGet(-eldest.bytes);
+			evictions.incrementAndGet();
+			return true;
+		}
+
+	}
+
+	private static String indexKey(String chr, boolean fullyContained) {
+		return chr.toLowerCase() + ":" + fullyContained;
+	}
+
+	/**
+	 * A loaded window and its reads
+	 */
+	private static class CachedWindow<T> {
+
+		String key;
+		String chr;
+		int start;
+		int end;
+		boolean fullyContained;
+		T reads;
+		long bytes;
+
+		CachedWindow(Window window, boolean fullyContained, T reads, long bytes) {
+			this.chr = window.getReferenceName();
+			this.start = window.getStart();
+			this.end = window.getEnd();
+			this.fullyContained = fullyContained;
+			this.reads = reads;
+			this.key = chr + ":" + start + "-" + end + ":" + fullyContained;
+			this.bytes = bytes;
+		}
+
+		boolean contains(Annotation region, boolean fullyContained) {
+			return this.fullyContained == fullyContained && chr.equalsIgnoreCase(region.getReferenceName()) && start <= region.getStart() && end >= region.getEnd();
+		}
+
+	}
+
+}
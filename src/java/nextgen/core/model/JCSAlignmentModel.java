@@ -883,16 +883,10 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 	}
 	
 	
-	private class Cache{
-		String cacheChr = null;
-		int cacheStart = 0;
-		int cacheEnd = 0;
-		boolean fullyContained = false;
+	private class Cache implements AlignmentWindowCache.WindowLoader<IntervalTree<Alignment>> {
 		int cacheSize;
-		IntervalTree<Alignment> cachedTree;
+		AlignmentWindowCache<IntervalTree<Alignment>> windows;
 		
-		//FLAG TO INDICATE WHETHER UPDATE CACHE FAILED
-		boolean updateCacheFailed;
 		// Collection of trouble regions for which the update cache has failed at least once.
 		Map<String,List<Annotation>> troubleRegions;
 		
@@ -901,6 +895,7 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		Cache(PairedEndReader reader, int cacheSize){
 			this.reader=reader;
 			this.cacheSize=cacheSize;
+			this.windows=new AlignmentWindowCache<IntervalTree<Alignment>>(this, cacheSize);
 			troubleRegions = new HashMap<String,List<Annotation>>();
 		}
 		
@@ -917,28 +912,15 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 				//logger.info("Get reads for the entire window of size "+window.getSize()+" for "+window.toUCSC());
 				return getReads(window, fullyContained);
 			}
-			//else if doesnt contain the window then update cache and query again
-			else if (!contains(window) || this.fullyContained != fullyContained) {
-				//logger.info("Updating cache for "+window.getSize()+" for "+window.toUCSC());
-				updateCache(window.getReferenceName(), window.getStart(), window.getEnd(), fullyContained);
-				//IF UPDATE CACHE FAILED, GET READS WITHOUT CACHE
-				if(this.updateCacheFailed){
-					logger.info("Tried updating cache. Update cache aborted.");
-					return getReads(window, fullyContained);
-				}
-			}
-			if(this.updateCacheFailed){
-				logger.info("Update cache failed for "+window.toUCSC());
+			//else find a cached window containing the region, loading one if needed
+			IntervalTree<Alignment> tree=windows.get(window, fullyContained);
+			//IF UPDATE CACHE FAILED, GET READS WITHOUT CACHE
+			if(tree==null){
+				logger.info("Tried updating cache. Update cache aborted.");
 				return getReads(window, fullyContained);
 			}
 			//pull reads from cache
-			return getReadsFromCache(window);
-		}
-		
-		private CloseableIterator<AlignmentCount> getReadsFromCache(Annotation window) {
-			// TODO:  Can't we just call cachedTree.overlappersValueIterator(window.getStart(), window.getEnd()) and get rid of the NodeIterator?
-			//  it looks like overlappingValueIterator can handle multiple values per node
-			return new NodeIterator(this.cachedTree.overlappers(window.getStart(), window.getEnd()));
+			return new NodeIterator(tree.overlappers(window.getStart(), window.getEnd()));
 		}
 		
 		/**
@@ -947,68 +929,44 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 		 * @return
 		 */
 		private boolean isTroubleRegion(Annotation window){
-			if(troubleRegions.containsKey(window.getChr())){
-				for(Annotation region:troubleRegions.get(window.getChr())){
-					if(region.overlapsStranded(window)){
-						return true;
+			synchronized(troubleRegions) {
+				if(troubleRegions.containsKey(window.getChr())){
+					for(Annotation region:troubleRegions.get(window.getChr())){
+						if(region.overlapsStranded(window)){
+							return true;
+						}
 					}
 				}
 			}
 			return false;
 		}
-
+		
 		/**
-		 * Update the cache to have these new positions
-		 * @param chr
-		 * @param start
-		 * @param end
+		 * Load the reads over a window missing from the cache
+		 * Reads are pulled from the shared reader one window at a time
 		 */
-		private void updateCache(String chr, int start, int end, boolean fullyContained) {
-			int newStart=start;
-			int newEnd=end;
-
-			// if window is larger than cache size 
-			//@skadri TODO: Isn't this checked in query() already?
-			// (this will happen in TranscriptomeSpace if a transcript is longer than the cache size)
-			if ((end-start) > this.cacheSize) {
-				newStart=start;
-				newEnd=end;
-			} else {
-				if (this.cacheChr == null || chr.equalsIgnoreCase(this.cacheChr)) { 
-					if (end > this.cacheEnd) {
-						// Set the cache to start and the beginning of the requested sequence
-						newStart = start;
-						newEnd = start + this.cacheSize;
-					} else if (start < this.cacheStart) {
-						// Maybe we're scanning backwards?  So we'll fix the cache to the end of the window
-						newEnd = end;
-						newStart = end - this.cacheSize;
-					}
-				}
+		@Override
+		public IntervalTree<Alignment> load(Window w, boolean fullyContained) {
+			synchronized(reader) {
+				return getIntervalTree(w, fullyContained);
 			}
-
-			this.cacheChr=chr;
-			this.cacheStart=newStart;
-			this.cacheEnd=newEnd;
-			this.fullyContained = fullyContained;
-
-			Window update=new GenomeWindow(this.cacheChr, this.cacheStart, this.cacheEnd);
-
-			this.cachedTree=getIntervalTree(update, fullyContained);
 		}
 		
+		@Override
+		public long getBytes(IntervalTree<Alignment> loaded) {
+			return AlignmentWindowCache.estimateBytes(loaded);
+		}
+
 		/**
 		 * Returns an interval tree of reads over the specified window
 		 * @param w
 		 * @param fullyContained
-		 * @return
+		 * @return The tree or null if the update was aborted
 		 */
 		private IntervalTree<Alignment> getIntervalTree(Window w, boolean fullyContained) {
 			int counter=0;
 			// 80%
 			double memoryThreshold = Runtime.getRuntime().maxMemory()*0.2;
-			//Assume update cache will not fail
-			updateCacheFailed = false;
 			//Set at 2 million reads
 			double threshold = 500000;
 		 	IntervalTree<Alignment> tree=new IntervalTree<Alignment>();
@@ -1023,12 +981,13 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 					if(Runtime.getRuntime().freeMemory()<memoryThreshold){
 						logger.info("Update cache aborted because "+w.toUCSC()+" has "+counter+" reads which is more than "+threshold+" and memory used is more than 80%");
 						tree = null;
-						updateCacheFailed = true;
 						//Add region to troubleRegions
-						if(!troubleRegions.containsKey(w.getChr())){
-							troubleRegions.put(w.getChr(), new ArrayList<Annotation>());
+						synchronized(troubleRegions) {
+							if(!troubleRegions.containsKey(w.getChr())){
+								troubleRegions.put(w.getChr(), new ArrayList<Annotation>());
+							}
+							troubleRegions.get(w.getChr()).add(w);
 						}
-						troubleRegions.get(w.getChr()).add(w);
 						break;
 					}
 				}
@@ -1050,24 +1009,6 @@ public class JCSAlignmentModel extends AbstractAnnotationCollection<Alignment> {
 			return new FilteredIterator(new WrapAlignmentCountIterator(reader.iterator()));
 		}
 		
-		/**
-		 * Does the current cache have the window?
-		 * @param region The window to determine whether its in the cache
-		 */
-		private boolean contains(Annotation region) {
-			if (this.cacheChr==null) {
-				//Not yet initialized so cant be contained in cache
-				return false;
-			}
-			
-			if (this.cacheChr.equalsIgnoreCase(region.getReferenceName())) {
-				if (this.cacheStart <= region.getStart() && this.cacheEnd >= region.getEnd()) { return true; }
-			}
-			
-			return false;
-		}
-		
-		
 	}
 
 	public boolean containsReference(String refName){
@@ -0,0 +1,157 @@
+package nextgen.core.model.score;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import nextgen.core.annotation.Annotation;
+
+/**
+ * Scores windows on several threads and returns the scores in the same order as WindowScoreIterator
+ * Windows are grouped into batches that never span two chromosomes, and each batch is scored on one thread passing the previous score from window to window
+ * The processor is shared by all threads, so processWindow must not change the processor state after initRegion and must only read models that are safe to share
+ * AlignmentModel is: its global stats are computed once under a lock, cached windows are loaded under the reader lock, and reads past the cache are pulled from the reader under the same lock
+ */
+public class ParallelWindowScoreIterator<T extends WindowScore> extends WindowScoreIterator<T> {
+
+	/**
+	 * Maximum number of windows scored in one batch
+	 */
+	public static int DEFAULT_BATCH_SIZE = 1000;
+
+	private ExecutorService executor;
+	private int batchSize;
+	private int maxPending;
+	private LinkedList<Future<List<T>>> pending = new LinkedList<Future<List<T>>>();
+	private Iterator<T> current = null;
+	private Annotation lookahead = null;
+
+	/**
+	 * @param windowIterator Windows to score in order
+	 * @param processor Processor shared by all threads
+	 * @param region Region the windows come from, or null for the whole coordinate space
+	 * @param numThreads Number of threads scoring windows
+	 */
+	public ParallelWindowScoreIterator(Iterator<? extends Annotation> windowIterator, WindowProcessor<T> processor, Annotation region, int numThreads) {
+		this(windowIterator, processor, region, numThreads, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param windowIterator Windows to score in order
+	 * @param processor Processor shared by all threads
+	 * @param region Region the windows come from, or null for the whole coordinate space
+	 * @param numThreads Number of threads scoring windows
+	 * @param maxBatchSize Maximum number of windows scored in one batch
+	 */
+	public ParallelWindowScoreIterator(Iterator<? extends Annotation> windowIterator, WindowProcessor<T> processor, Annotation region, int numThreads, int maxBatchSize) {
+		super(windowIterator, processor, region);
+		if(numThreads < 1 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Number of threads and batch size must be positive");
+		}
+		batchSize = maxBatchSize;
+		// Keep a few batches per thread queued so threads don't wait on the consumer, without holding the whole scan in memory
+		maxPending = 4 * numThreads;
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "window-scan");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(current != null && current.hasNext()) return true;
+		submitBatches();
+		if(pending.isEmpty()) {
+			executor.shutdown();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if(current == null || !current.hasNext()) {
+			current = getBatch(pending.removeFirst()).iterator();
+			submitBatches();
+		}
+		return current.next();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		super.close();
+	}
+
+	/**
+	 * Queue batches of windows until enough are pending or the windows run out
+	 */
+	private void submitBatches() {
+		while(pending.size() < maxPending && (lookahead != null || itr.hasNext())) {
+			final List<Annotation> batch = nextBatch();
+			pending.add(executor.submit(new Callable<List<T>>() {
+				@Override
+				public List<T> call() {
+					List<T> scores = new ArrayList<T>(batch.size());
+					T previous = null;
+					for(Annotation window : batch) {
+						previous = processor.processWindow(window, previous);
+						scores.add(previous);
+					}
+					return scores;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * @return Next windows up to the batch size, stopping before a window on another chromosome
+	 */
+	private List<Annotation> nextBatch() {
+		List<Annotation> batch = new ArrayList<Annotation>();
+		Annotation first = lookahead != null ? lookahead : itr.next();
+		lookahead = null;
+		batch.add(first);
+		while(batch.size() < batchSize && itr.hasNext()) {
+			Annotation window = itr.next();
+			if(!window.getChr().equals(first.getChr())) {
+				lookahead = window;
+				break;
+			}
+			batch.add(window);
+		}
+		return batch;
+	}
+
+	private List<T> getBatch(Future<List<T>> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			throw new IllegalStateException("Interrupted while scoring windows", e);
+		} catch(ExecutionException e) {
+			executor.shutdownNow();
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+}
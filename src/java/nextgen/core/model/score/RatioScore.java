@@ -130,7 +130,15 @@ public class RatioScore extends CountScore {
 	}
 	
 	public double getRegionRatio() {
-		return (getRegionNumeratorRPKM() + RPKM_OFFSET) / (getRegionDenominatorRPKM() + RPKM_OFFSET);
+		return getRatio(getNumeratorCount(), getNumeratorRegionTotal(), getDenominatorCount(), getDenominatorRegionTotal(), getAnnotation().size());
+	}
+	
+	/**
+	 * Ratio of numerator and denominator RPKMs without building a score, for computing many ratios from raw counts
+	 * @param windowSize Size of the window the counts come from
+	 */
+	public static double getRatio(double nCount, double nTotal, double dCount, double dTotal, int windowSize) {
+		return (CountScore.asRPKM(nCount, nTotal, windowSize) + RPKM_OFFSET) / (CountScore.asRPKM(dCount, dTotal, windowSize) + RPKM_OFFSET);
 	}
 	
 	public double getLog2RegionRatio() {
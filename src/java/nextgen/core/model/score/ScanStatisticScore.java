@@ -104,6 +104,25 @@ public class ScanStatisticScore extends CountScore {
 		setScanPvalue(ScanStatistics.calculatePVal(new Double(getCount()).intValue(), getGlobalLambda(), model.getCoordinateSpace().getSize(annotation), getGlobalLength()));
 	}
 	
+	/**
+	 * Score with statistics that were already computed, without counting reads
+	 * @param coordSpace Coordinate space of the annotation
+	 * @param annotation Annotation
+	 * @param count Number of fragments in the annotation
+	 * @param regionTotal Total number of fragments mapping to local region
+	 * @param regionLength Total length of local region
+	 * @param globalTotal Global number of fragments
+	 * @param globalLength Global length
+	 * @param scanPvalue Scan P value
+	 */
+	public ScanStatisticScore(CoordinateSpace coordSpace, Annotation annotation, double count, double regionTotal, double regionLength, double globalTotal, double globalLength, double scanPvalue) {
+		super(annotation, count, regionTotal, globalTotal);
+		this.coordSpace = coordSpace;
+		setRegionLength(regionLength);
+		setGlobalLength(globalLength);
+		setScanPvalue(scanPvalue);
+	}
+
 	public CoordinateSpace getCoordinateSpace() {
 		return coordSpace;
 	}
@@ -8,6 +8,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -24,6 +25,7 @@ import nextgen.core.coordinatesystem.TranscriptomeSpace;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.model.ScanStatisticDataAlignmentModel;
 import nextgen.core.pipeline.util.AlignmentUtils;
@@ -130,6 +132,13 @@ public class RNASeqPipeline {
 	static String LIBRARY_STATS_DIRECTORY = "library_stats";
 	static String FILTER_RRNA_DIRECTORY = "filter_rRNA";
 	static String ALIGN_TO_TRANSCRIPTS_DIRECTORY = "bowtie_to_transcripts";
+	static String RNA_CLASS_DIRECTORY = "rna_class_counts";
+	static String CHECKPOINT_DIRECTORY = "pipeline_checkpoints";
+	
+	/**
+	 * Table of time spent in each stage
+	 */
+	static String STAGE_TIMING_REPORT = "pipeline_stage_times.txt";
 
 	/**
 	 * @param inputListFile The input list of fastq files
@@ -165,75 +174,19 @@ public class RNASeqPipeline {
 			sampleNames = new TreeSet<String>();
 			leftFqs = new TreeMap<String,String>();
 			rightFqs = new TreeMap<String,String>();
-			currentLeftFqs = new TreeMap<String,String>();
-			currentRightFqs = new TreeMap<String,String>();
+			// Samples update these from their own threads
+			currentLeftFqs = Collections.synchronizedMap(new TreeMap<String,String>());
+			currentRightFqs = Collections.synchronizedMap(new TreeMap<String,String>());
 			pairedData = new TreeMap<String,Boolean>();
-			currentBamFiles = new TreeMap<String,String>();
+			currentBamFiles = Collections.synchronizedMap(new TreeMap<String,String>());
 			nameToCondition = new TreeMap<String,String>();
 			queueName = configFile.getSingleValueField(sectionBasicOptions, optionQueueName);
 			
 			//Read the Fq list
 			readFqList(inputListFile);
 
-			// Split and trim barcodes
-			if(configFile.hasOption(sectionCommands, optionSplitTrimBarcodes)){
-				splitTrimBarcodes();
-			}
-			
-			// Clip sequencing adapters
-			if(configFile.hasOption(sectionCommands, optionTrimAdapters)) {
-				if(!configFile.hasOption(sectionBasicOptions, optionFastxDirectory)) {
-					throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionFastxDirectory.getName());
-				}
-				if(!configFile.hasOption(sectionBasicOptions, optionRead1Adapter)) {
-					throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionRead1Adapter.getName());
-				}
-				if(!configFile.hasOption(sectionBasicOptions, optionFastqUtilsJar)) {
-					throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionFastqUtilsJar.getName());
-				}
-				String fastxDir = configFile.getSingleValueField(sectionBasicOptions, optionFastxDirectory);
-				String adapter1 = configFile.getSingleValueField(sectionBasicOptions, optionRead1Adapter);
-				String adapter2 = null;
-				if(configFile.hasOption(sectionBasicOptions, optionRead2Adapter)) adapter2 = configFile.getSingleValueField(sectionBasicOptions, optionRead2Adapter);
-				Map<String, ArrayList<String>> clippedFqs = FastqUtils.clipAdapters(fastxDir, currentLeftFqs, currentRightFqs, adapter1, adapter2, fastqReadIdPairNumberDelimiter, scheduler, drmaaSession, configFile.getSingleValueField(sectionBasicOptions, optionFastqUtilsJar));
-				// Update current fastq files
-				for(String sample : clippedFqs.keySet()) {
-					currentLeftFqs.put(sample, clippedFqs.get(sample).get(0));
-					if(clippedFqs.get(sample).size() > 1) {
-						currentRightFqs.put(sample, clippedFqs.get(sample).get(1));
-					}
-				}
-			}
-			
-			// Count reads
-			// Quantify duplicates
-			// Estimate library size
-			if(configFile.hasOption(sectionCommands, optionComputeLibraryStats)){
-				calculateLibraryStats();
-			}
-			
-			// Characterize library composition by RNA class
-			if(configFile.hasOption(sectionCommands, optionCountRnaClasses)){
-				quantifyRNAClasses();
-			}
-			
-			// Update current fastqs with reads not matching rRNA
-			if(configFile.hasOption(sectionCommands, optionFilterRrna)){
-				filterrRNA();
-			}
-			
-			// Align to transcript sequences
-			// Calculate median fragment size for each sequence
-			if(configFile.hasOption(sectionCommands, optionAlignToTranscripts)) {
-				alignToTranscripts();
-			}
-			
-			// Align to genome
-			// Generate bam and tdf files
-			// Generate fragment size distributions
-			if(configFile.hasOption(sectionCommands, optionAlign)){
-				alignToGenome();
-			}
+			// Run the requested stages, reusing outputs of earlier runs where they are up to date
+			runBasicStages();
 			
 		}
 		
@@ -269,6 +222,652 @@ public class RNASeqPipeline {
 				|| configFile.hasOption(sectionCommands, optionCountRnaClasses) || configFile.hasOption(sectionCommands, optionFilterRrna) || configFile.hasOption(sectionCommands, optionAlign) || configFile.hasOption(sectionCommands, optionAlignToTranscripts));
 	}
 	
+	/**
+	 * Run the basic commands from the config file as a stage graph
+	 * Each stage records a checkpoint per sample in CHECKPOINT_DIRECTORY and is skipped for samples whose inputs and outputs are unchanged
+	 * Stages that handle each sample on its own run per sample, so one sample can be aligned while another is still being filtered
+	 * Stage times are written to STAGE_TIMING_REPORT
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void runBasicStages() throws IOException, InterruptedException, DrmaaException {
+
+		// Samples mostly wait for their scheduler jobs, so each sample gets a thread
+		StageGraph graph = new StageGraph(CHECKPOINT_DIRECTORY, STAGE_TIMING_REPORT, sampleNames.size());
+
+		// The last stage that replaced the current fastq files
+		String fastqStage = null;
+
+		// Split and trim barcodes
+		if(configFile.hasOption(sectionCommands, optionSplitTrimBarcodes)){
+			final Map<String, String> left = new TreeMap<String, String>(leftFqs);
+			final Map<String, String> right = new TreeMap<String, String>(rightFqs);
+			graph.addStage(new StageGraph.Stage("SPLIT_TRIM_BARCODES") {
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(left, right, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					return new ArrayList<String>();
+				}
+				@Override
+				public void run(Collection<String> samples) {
+					splitTrimBarcodes(samples);
+				}
+			});
+		}
+
+		// Clip sequencing adapters
+		if(configFile.hasOption(sectionCommands, optionTrimAdapters)) {
+			if(!configFile.hasOption(sectionBasicOptions, optionFastxDirectory)) {
+				throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionFastxDirectory.getName());
+			}
+			if(!configFile.hasOption(sectionBasicOptions, optionRead1Adapter)) {
+				throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionRead1Adapter.getName());
+			}
+			if(!configFile.hasOption(sectionBasicOptions, optionFastqUtilsJar)) {
+				throw new IllegalArgumentException("In order to clip adapters, must provide config file option " + optionFastqUtilsJar.getName());
+			}
+			final String fastxDir = configFile.getSingleValueField(sectionBasicOptions, optionFastxDirectory);
+			final String adapter1 = configFile.getSingleValueField(sectionBasicOptions, optionRead1Adapter);
+			final String adapter2 = configFile.hasOption(sectionBasicOptions, optionRead2Adapter) ? configFile.getSingleValueField(sectionBasicOptions, optionRead2Adapter) : null;
+			// The unclipped files, since the current fastq maps are replaced by the stage
+			final Map<String, String> unclippedLeft = new TreeMap<String, String>(currentLeftFqs);
+			final Map<String, String> unclippedRight = new TreeMap<String, String>(currentRightFqs);
+			graph.addStage(new StageGraph.Stage("CLIP_ADAPTERS") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(unclippedLeft, unclippedRight, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					for(String fq : getInputFiles(sample)) {
+						rtrn.add(fq + ".clipped.fq");
+					}
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					Map<String, String> left = new TreeMap<String, String>();
+					Map<String, String> right = new TreeMap<String, String>();
+					for(String sample : samples) {
+						left.put(sample, unclippedLeft.get(sample));
+						if(unclippedRight.containsKey(sample)) right.put(sample, unclippedRight.get(sample));
+					}
+					Map<String, ArrayList<String>> clippedFqs = FastqUtils.clipAdapters(fastxDir, left, right, adapter1, adapter2, fastqReadIdPairNumberDelimiter, scheduler, drmaaSession, configFile.getSingleValueField(sectionBasicOptions, optionFastqUtilsJar));
+					// Update current fastq files
+					for(String sample : clippedFqs.keySet()) {
+						currentLeftFqs.put(sample, clippedFqs.get(sample).get(0));
+						if(clippedFqs.get(sample).size() > 1) {
+							currentRightFqs.put(sample, clippedFqs.get(sample).get(1));
+						}
+					}
+				}
+				@Override
+				public void restore(String sample) {
+					currentLeftFqs.put(sample, unclippedLeft.get(sample) + ".clipped.fq");
+					if(unclippedRight.containsKey(sample)) currentRightFqs.put(sample, unclippedRight.get(sample) + ".clipped.fq");
+				}
+			});
+			fastqStage = "CLIP_ADAPTERS";
+		}
+		String[] fastqDependency = fastqStage == null ? new String[0] : new String[] {fastqStage};
+
+		// Count reads
+		// Quantify duplicates
+		// Estimate library size
+		if(configFile.hasOption(sectionCommands, optionComputeLibraryStats)){
+			final Map<String, String> left = new TreeMap<String, String>(leftFqs);
+			final Map<String, String> right = new TreeMap<String, String>(rightFqs);
+			graph.addStage(new StageGraph.Stage("LIBRARY_STATS") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(left, right, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getLibraryStatsFile(sample));
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException {
+					calculateLibraryStats(samples);
+				}
+				@Override
+				public Collection<String> getSummaryFiles() {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(LIBRARY_STATS_DIRECTORY + "/library_stats.out");
+					return rtrn;
+				}
+				@Override
+				public void summarize(Collection<String> samples) throws IOException {
+					Collection<String> tables = new ArrayList<String>();
+					for(String sample : samples) {
+						if(left.containsKey(sample)) tables.add(getLibraryStatsFile(sample));
+					}
+					concatenateTables(tables, getSummaryFiles().iterator().next());
+				}
+			});
+		}
+
+		// Characterize library composition by RNA class
+		if(configFile.hasOption(sectionCommands, optionCountRnaClasses)){
+			graph.addStage(new StageGraph.Stage("RNA_CLASSES", fastqDependency) {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(currentLeftFqs, currentRightFqs, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getRnaClassCountFile(sample));
+					rtrn.add(getRnaClassPercentageFile(sample));
+					return rtrn;
+				}
+				@Override
+				public void prepare() throws IOException, InterruptedException, DrmaaException {
+					makeRnaClassIndex();
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					quantifyRNAClasses(samples);
+				}
+				@Override
+				public Collection<String> getSummaryFiles() {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(RNA_CLASS_DIRECTORY + "/counts_by_class.out");
+					rtrn.add(RNA_CLASS_DIRECTORY + "/percentages_by_class.out");
+					return rtrn;
+				}
+				@Override
+				public void summarize(Collection<String> samples) throws IOException {
+					Collection<String> counts = new ArrayList<String>();
+					Collection<String> percentages = new ArrayList<String>();
+					for(String sample : samples) {
+						if(!leftFqs.containsKey(sample)) continue;
+						counts.add(getRnaClassCountFile(sample));
+						percentages.add(getRnaClassPercentageFile(sample));
+					}
+					concatenateTables(counts, RNA_CLASS_DIRECTORY + "/counts_by_class.out");
+					concatenateTables(percentages, RNA_CLASS_DIRECTORY + "/percentages_by_class.out");
+				}
+			});
+		}
+
+		// Update current fastqs with reads not matching rRNA
+		if(configFile.hasOption(sectionCommands, optionFilterRrna)){
+			graph.addStage(new StageGraph.Stage("FILTER_RRNA", fastqDependency) {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(currentLeftFqs, currentRightFqs, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					if(pairedData.get(sample).booleanValue()) {
+						rtrn.add(FILTER_RRNA_DIRECTORY + "/" + sample + "_filtered_rRNA_1.fq");
+						rtrn.add(FILTER_RRNA_DIRECTORY + "/" + sample + "_filtered_rRNA_2.fq");
+					} else {
+						rtrn.add(FILTER_RRNA_DIRECTORY + "/" + sample + "_filtered_rRNA.fq");
+					}
+					return rtrn;
+				}
+				@Override
+				public void prepare() throws IOException, InterruptedException, DrmaaException {
+					makeRrnaIndex();
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					filterrRNA(samples);
+				}
+				@Override
+				public void restore(String sample) {
+					List<String> filtered = new ArrayList<String>(getOutputFiles(sample));
+					currentLeftFqs.put(sample, filtered.get(0));
+					if(filtered.size() > 1) currentRightFqs.put(sample, filtered.get(1));
+				}
+			});
+			fastqDependency = new String[] {"FILTER_RRNA"};
+		}
+
+		// Align to transcript sequences
+		// Calculate median fragment size for each sequence
+		if(configFile.hasOption(sectionCommands, optionAlignToTranscripts)) {
+			graph.addStage(new StageGraph.Stage("ALIGN_TO_TRANSCRIPTS", fastqDependency) {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					return fastqFiles(currentLeftFqs, currentRightFqs, sample);
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getTranscriptBam(sample));
+					return rtrn;
+				}
+				@Override
+				public void prepare() throws IOException, InterruptedException, DrmaaException {
+					prepareTranscriptAlignment();
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					alignToTranscripts(samples);
+				}
+				@Override
+				public Collection<String> getSummaryFiles() {
+					Collection<String> rtrn = new ArrayList<String>();
+					if(configFile.hasSection(sectionFragmentSizeDistribution)) rtrn.add(ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/fragment_size_median");
+					return rtrn;
+				}
+				@Override
+				public void summarize(Collection<String> samples) throws IOException {
+					writeTranscriptFragmentSizeMedians(samples);
+				}
+			});
+		}
+
+		// Align to genome
+		// Generate bam and tdf files
+		// Generate fragment size distributions
+		if(configFile.hasOption(sectionCommands, optionAlign)){
+			addGenomeAlignmentStages(graph, fastqDependency);
+		}
+
+		graph.run(sampleNames);
+
+	}
+
+	/**
+	 * Add the stages that align to the genome and process the bam files
+	 * 1. Align to genome with tophat
+	 * 2. If specified, use Novoalign to align unmapped reads and merge Tophat+Novoalign bam files
+	 * 3. If specified, merge samples into new samples
+	 * 4. Index bam files
+	 * 5. Make tdf files, fragment size distributions, global stats and wig files
+	 * @param graph The stage graph
+	 * @param fastqDependency The stage that made the current fastq files, if any
+	 */
+	private void addGenomeAlignmentStages(StageGraph graph, String[] fastqDependency) {
+
+		final boolean novoalign = configFile.hasOption(sectionBasicOptions, optionNovoalignExecutable);
+		// Set before any stage runs since samples reach the stages at different times
+		currentBamDir = novoalign ? MERGED_TOPHAT_NOVOALIGN_DIRECTORY : TOPHAT_DIRECTORY;
+
+		graph.addStage(new StageGraph.Stage("TOPHAT", fastqDependency) {
+			@Override
+			public boolean isPerSample() {
+				return true;
+			}
+			@Override
+			public Collection<String> getInputFiles(String sample) {
+				return fastqFiles(currentLeftFqs, currentRightFqs, sample);
+			}
+			@Override
+			public Collection<String> getOutputFiles(String sample) {
+				Collection<String> rtrn = new ArrayList<String>();
+				rtrn.add(getTophatBam(sample));
+				return rtrn;
+			}
+			@Override
+			public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+				alignWithTophat(samples);
+			}
+			@Override
+			public void restore(String sample) {
+				currentBamFiles.put(sample, getTophatBam(sample));
+			}
+		});
+		String bamStage = "TOPHAT";
+
+		// *** Novoalign steps ***
+		// Only run if novoalign path was provided in config file
+		if(novoalign) {
+			graph.addStage(new StageGraph.Stage("NOVOALIGN", "TOPHAT") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getTophatBam(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getNovoalignBam(sample));
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					alignUnmappedWithNovoalign(samples);
+				}
+			});
+			graph.addStage(new StageGraph.Stage("MERGE_TOPHAT_NOVOALIGN", "TOPHAT", "NOVOALIGN") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getTophatBam(sample));
+					rtrn.add(getNovoalignBam(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(getMergedTophatNovoalignBam(sample));
+					rtrn.add(getMappingCountFile(sample));
+					rtrn.add(getMappingPercentageFile(sample));
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					mergeTophatNovoalign(samples, configFile.getSingleValueField(sectionBasicOptions, optionPicardDir));
+					// Count mapped and unmapped reads
+					countMappingsMergedAlignments(samples, configFile.getSingleValueField(sectionBasicOptions, optionSamtoolsPath));
+					restoreAll(samples);
+				}
+				@Override
+				public void restore(String sample) {
+					currentBamFiles.put(sample, getMergedTophatNovoalignBam(sample));
+					logger.info("Current bam file for sample " + sample + " is " + currentBamFiles.get(sample));
+				}
+				@Override
+				public Collection<String> getSummaryFiles() {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_count.out");
+					rtrn.add(MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_percentage.out");
+					return rtrn;
+				}
+				@Override
+				public void summarize(Collection<String> samples) throws IOException {
+					Collection<String> counts = new ArrayList<String>();
+					Collection<String> percentages = new ArrayList<String>();
+					for(String sample : samples) {
+						if(!leftFqs.containsKey(sample)) continue;
+						counts.add(getMappingCountFile(sample));
+						percentages.add(getMappingPercentageFile(sample));
+					}
+					concatenateTables(counts, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_count.out");
+					concatenateTables(percentages, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_percentage.out");
+				}
+				private void restoreAll(Collection<String> samples) {
+					for(String sample : samples) {
+						restore(sample);
+					}
+				}
+			});
+			bamStage = "MERGE_TOPHAT_NOVOALIGN";
+		} // *** Done with novoalign steps ***
+
+		// Merge bam files of sample sets into new samples, which go through the following stages with the others
+		if(configFile.hasOption(sectionBasicOptions, optionSamplesToMerge)) {
+			graph.addStage(new StageGraph.Stage("MERGE_SAMPLES", bamStage) {
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamFiles.get(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					Map<String, Collection<String>> setsToMerge = getSetsToMerge();
+					for(String mergedName : setsToMerge.keySet()) {
+						if(setsToMerge.get(mergedName).contains(sample)) rtrn.add(getMergedSampleBam(mergedName));
+					}
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					logger.info("");
+					logger.info("Merging bam files...");
+					mergeBamFiles(samples, configFile.getSingleValueField(sectionBasicOptions, optionPicardDir));
+					logger.info("Done merging bam files.");
+				}
+				@Override
+				public void restore(String sample) {
+					Map<String, Collection<String>> setsToMerge = getSetsToMerge();
+					for(String mergedName : setsToMerge.keySet()) {
+						if(setsToMerge.get(mergedName).contains(sample)) addMergedSample(mergedName, setsToMerge.get(mergedName));
+					}
+				}
+			});
+			bamStage = "MERGE_SAMPLES";
+		}
+
+		// Index current bam files
+		graph.addStage(new StageGraph.Stage("INDEX_BAMS", bamStage) {
+			@Override
+			public boolean isPerSample() {
+				return true;
+			}
+			@Override
+			public Collection<String> getInputFiles(String sample) {
+				Collection<String> rtrn = new ArrayList<String>();
+				rtrn.add(currentBamFiles.get(sample));
+				return rtrn;
+			}
+			@Override
+			public Collection<String> getOutputFiles(String sample) {
+				Collection<String> rtrn = new ArrayList<String>();
+				rtrn.add(currentBamFiles.get(sample) + ".bai");
+				return rtrn;
+			}
+			@Override
+			public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+				indexCurrentBams(samples, configFile.getSingleValueField(sectionBasicOptions, optionSamtoolsPath));
+			}
+		});
+
+		// Make tdf files from current bam files
+		if(configFile.hasOption(sectionBasicOptions, optionIgvToolsExecutable)) {
+			graph.addStage(new StageGraph.Stage("TDF", "INDEX_BAMS") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamFiles.get(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamFiles.get(sample) + ".tdf");
+					return rtrn;
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					BamUtils.makeTdfs(getCurrentBamFiles(samples), currentBamDir, configFile.getSingleValueField(sectionBasicOptions, optionGenomeAssemblyName), configFile.getSingleValueField(sectionBasicOptions, optionIgvToolsExecutable), scheduler, drmaaSession);
+				}
+			});
+		}
+
+		// Make fragment size distributions
+		// The distributions are only written as tables of all samples
+		if(configFile.hasSection(sectionFragmentSizeDistribution)) {
+			graph.addStage(new StageGraph.Stage("FRAGMENT_SIZES", "INDEX_BAMS") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamFiles.get(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					return new ArrayList<String>();
+				}
+				@Override
+				public void run(Collection<String> samples) {}
+				@Override
+				public Collection<String> getSummaryFiles() {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamDir + "/fragment_size_histogram");
+					rtrn.add(currentBamDir + "/fragment_size_median");
+					rtrn.add(currentBamDir + "/fragment_size_median_individual_genes");
+					return rtrn;
+				}
+				@Override
+				public void summarize(Collection<String> samples) throws IOException {
+					logger.info("");
+					logger.info("Making fragment size distributions for bam files...");
+					makeFragmentSizeDistributionCurrentBams(samples);
+					logger.info("All fragment size distributions created.");
+				}
+			});
+		}
+
+		// Compute global transcriptome space stats
+		// The stats files are named by the stats jar and are not tracked
+		if(configFile.hasOption(sectionBasicOptions, optionAlignGlobalStatsJar)) {
+			if(configFile.hasOption(sectionBasicOptions, optionTranscriptomeSpaceStatsBedFile) || configFile.hasOption(sectionBasicOptions, optionGenomicSpaceStatsSizeFile)) {
+				graph.addStage(new StageGraph.Stage("GLOBAL_STATS", "INDEX_BAMS") {
+					@Override
+					public boolean isPerSample() {
+						return true;
+					}
+					@Override
+					public Collection<String> getInputFiles(String sample) {
+						Collection<String> rtrn = new ArrayList<String>();
+						rtrn.add(currentBamFiles.get(sample));
+						return rtrn;
+					}
+					@Override
+					public Collection<String> getOutputFiles(String sample) {
+						return new ArrayList<String>();
+					}
+					@Override
+					public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+						writeAlignmentGlobalStats(samples, configFile.getSingleValueField(sectionBasicOptions, optionAlignGlobalStatsJar), configFile.getSingleValueField(sectionBasicOptions, optionTranscriptomeSpaceStatsBedFile), configFile.getSingleValueField(sectionBasicOptions, optionGenomicSpaceStatsSizeFile));
+					}
+				});
+			}
+		}
+
+		// Make wig and bigwig files of fragment ends and midpoints
+		// Wig files of position fragment counts use too much memory and are not written
+		// The file names depend on whether the reads are paired and on the converter, so they are not tracked
+		if(configFile.hasOption(sectionBasicOptions, optionWigWriterJar) && configFile.hasOption(sectionBasicOptions, optionBedFileForWig)) {
+			graph.addStage(new StageGraph.Stage("WIG", "INDEX_BAMS") {
+				@Override
+				public boolean isPerSample() {
+					return true;
+				}
+				@Override
+				public Collection<String> getInputFiles(String sample) {
+					Collection<String> rtrn = new ArrayList<String>();
+					rtrn.add(currentBamFiles.get(sample));
+					return rtrn;
+				}
+				@Override
+				public Collection<String> getOutputFiles(String sample) {
+					return new ArrayList<String>();
+				}
+				@Override
+				public void prepare() throws IOException {
+					// Shared by all samples
+					FastaUtils.writeSizeFile(configFile.getSingleValueField(sectionBasicOptions, optionGenomeFasta));
+				}
+				@Override
+				public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+					logger.info("");
+					logger.info("Making wig and bigwig files of fragment end points for " + samples + ".");
+					writeWigFragmentEndsAndMidpoints(getCurrentBamFiles(samples), currentBamDir, configFile.getSingleValueField(sectionBasicOptions, optionGenomeFasta), configFile.getSingleValueField(sectionBasicOptions, optionBedFileForWig), configFile.getSingleValueField(sectionBasicOptions, optionWigWriterJar));
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * @param left Read 1 fastq file by sample name
+	 * @param right Read 2 fastq file by sample name
+	 * @param sample Sample name
+	 * @return The fastq files for the sample
+	 */
+	private static Collection<String> fastqFiles(Map<String, String> left, Map<String, String> right, String sample) {
+		Collection<String> rtrn = new ArrayList<String>();
+		rtrn.add(left.get(sample));
+		if(right.containsKey(sample)) rtrn.add(right.get(sample));
+		return rtrn;
+	}
+
+	/**
+	 * @param samples Sample names
+	 * @return The current bam file of each sample
+	 */
+	private Map<String, String> getCurrentBamFiles(Collection<String> samples) {
+		Map<String, String> rtrn = new TreeMap<String, String>();
+		for(String sample : samples) {
+			rtrn.put(sample, currentBamFiles.get(sample));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Write a table with the header line of the first table and the other lines of all tables
+	 * @param tables Tables with a header line, such as one per sample. Missing tables are skipped.
+	 * @param output Output table
+	 * @throws IOException
+	 */
+	private static void concatenateTables(Collection<String> tables, String output) throws IOException {
+		FileWriter w = new FileWriter(output);
+		boolean first = true;
+		for(String table : tables) {
+			if(!new File(table).exists()) {
+				logger.warn("Table " + table + " does not exist. Not adding it to " + output + ".");
+				continue;
+			}
+			BufferedReader b = new BufferedReader(new FileReader(table));
+			String header = b.readLine();
+			if(first && header != null) {
+				w.write(header + "\n");
+				first = false;
+			}
+			String line;
+			while((line = b.readLine()) != null) {
+				w.write(line + "\n");
+			}
+			b.close();
+		}
+		w.close();
+		logger.info("Wrote table " + output + ".");
+	}
+
 	/**
 	 * 
 	 * @param fileName
@@ -338,8 +937,8 @@ public class RNASeqPipeline {
 			throw new IllegalArgumentException("File " + fileName + " is invalid.");
 		}
 		
-		currentLeftFqs = leftFqs;
-		currentRightFqs = rightFqs;
+		currentLeftFqs.putAll(leftFqs);
+		currentRightFqs.putAll(rightFqs);
 		
 		int pa = currentRightFqs.isEmpty() ? 0 : currentRightFqs.keySet().size();
 		int u = currentLeftFqs.keySet().size() - pa;
@@ -349,23 +948,34 @@ public class RNASeqPipeline {
 	
 	/**
 	 * TASK 1: SPLIT_TRIM_BARCODES
+	 * @param samples The samples to split
 	 */
-	private void splitTrimBarcodes(){
+	private void splitTrimBarcodes(@SuppressWarnings("unused") Collection<String> samples){
 		// TODO: finish
 	}
 	
 	
 	
+	/**
+	 * @param sample Sample name
+	 * @return The library stats table for the sample
+	 */
+	private static String getLibraryStatsFile(String sample) {
+		return LIBRARY_STATS_DIRECTORY + "/" + sample + "_library_stats.out";
+	}
+	
 	/**
 	 * TASK 2: CALCULATE LIBRARY STATS
 	 * For each library, count total reads, unique reads, percent duplicates, and estimated library size
+	 * Each sample gets its own table, which are combined into library_stats.out by the stage
 	 * @author prussell
+	 * @param samples The samples to calculate stats for
 	 * @throws IOException 
 	 */
-	private void calculateLibraryStats() throws IOException {
+	private void calculateLibraryStats(Collection<String> samples) throws IOException {
 		
 		logger.info("");
-		logger.info("Calculating library stats...");
+		logger.info("Calculating library stats for " + samples + "...");
 		
 		// Make directory for library stats
 		File dir = new File(LIBRARY_STATS_DIRECTORY);
@@ -374,58 +984,51 @@ public class RNASeqPipeline {
 		if(!dir.exists()) {
 			throw new IOException("Could not create directory " + LIBRARY_STATS_DIRECTORY);
 		}
-		String output = LIBRARY_STATS_DIRECTORY + "/" + "library_stats.out";
-		File outputFile = new File(output);
-		if(outputFile.exists()) {
-			logger.warn("Library stats file " + output + " exists. Not calculating new library stats.");
-			return;
-		}
-		
-		logger.info("Writing library stats to file " + output + ".");
-		FileWriter w = new FileWriter(output);
 		
 		// Get stats for each sample
-		boolean first = true;
-		for(String sample : leftFqs.keySet()) {
+		for(String sample : samples) {
+			String output = getLibraryStatsFile(sample);
+			if(new File(output).exists()) {
+				logger.warn("Library stats file " + output + " exists. Not calculating new library stats.");
+				continue;
+			}
 			logger.info("Calculating library stats for sample " + sample + "...");
-			if(first && pairedData.get(sample).booleanValue()) {
+			FileWriter w = new FileWriter(output);
+			if(pairedData.get(sample).booleanValue()) {
 				w.write("Sample\tTotal_read_pairs\tUnique_read_pairs\tPercent_duplicated\tEst_library_size\n");
-			}
-			if(first && !pairedData.get(sample).booleanValue()) {
+			} else {
 				w.write("Sample\tTotal_reads\tUnique_reads\tPercent_duplicated\tEst_library_size\n");
 			}
-			first = false;
 			FastqLibraryStats d = new FastqLibraryStats(leftFqs.get(sample), pairedData.get(sample).booleanValue() ? rightFqs.get(sample) : null);
 			w.write(sample + "\t" + d.getTotalReads() + "\t" + d.getNumUniqueReads() + "\t" + d.getPercentDuplicated() + "\t" + d.getEstimatedLibrarySize() + "\n");
+			w.close();
+			logger.info("Wrote library stats to file " + output + ".");
 		}
-		w.close();
 		logger.info("");
 		logger.info("Done calculating library stats.");
 	}
 	
 	/**
-	 * TASK 3: CALCULATE RNA CLASSES
-	 * Quantify percentage of reads originating from each RNA class
-	 * @author prussell
-	 * @throws IOException 
-	 * @throws InterruptedException 
-	 * @throws DrmaaException 
+	 * @param sample Sample name
+	 * @return The table of read counts by RNA class for the sample
 	 */
-	private void quantifyRNAClasses() throws IOException, InterruptedException, DrmaaException{
-		
-		logger.info("");
-		logger.info("Quantifying RNA classes...");
-		
-		// Make directory for RNA classes
-		String rnaClassDir = "rna_class_counts";
-		File dir = new File(rnaClassDir);
-		@SuppressWarnings("unused")
-		boolean madeDir = dir.mkdir();
-		if(!dir.exists()) {
-			throw new IOException("Could not create directory " + rnaClassDir);
-		}
-		
-		// Get options from config file
+	private static String getRnaClassCountFile(String sample) {
+		return RNA_CLASS_DIRECTORY + "/" + sample + "_counts_by_class.out";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The table of read percentages by RNA class for the sample
+	 */
+	private static String getRnaClassPercentageFile(String sample) {
+		return RNA_CLASS_DIRECTORY + "/" + sample + "_percentages_by_class.out";
+	}
+	
+	/**
+	 * Get the RNA class fasta files from the config file and check the other options needed to quantify RNA classes
+	 * @return Map of RNA class name to fasta file
+	 */
+	private Map<String, String> getRnaClassFiles() {
 		if(!configFile.hasOption(sectionBasicOptions, optionRnaClassFastaFile)) {
 			throw new IllegalArgumentException("In order to quantify RNA classes, config file must specify option " + optionRnaClassFastaFile.getName());
 		}
@@ -433,7 +1036,6 @@ public class RNASeqPipeline {
 		for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionRnaClassFastaFile)) {
 			classFiles.put(value.asString(1), value.asString(2));
 		}
-		
 		if(!configFile.hasOption(sectionBasicOptions, optionGenomeBowtieIndex)) {
 			throw new IllegalArgumentException("In order to quantify RNA classes, config file must specify option " + optionGenomeBowtieIndex.getName());
 		}
@@ -446,53 +1048,88 @@ public class RNASeqPipeline {
 		if(!configFile.hasOption(sectionBasicOptions, optionSamtoolsPath)) {
 			throw new IllegalArgumentException("In order to quantify RNA classes, config file must specify option " + optionSamtoolsPath.getName());
 		}
+		return classFiles;
+	}
+	
+	/**
+	 * Make the bowtie2 index of all RNA classes, shared by the samples
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void makeRnaClassIndex() throws IOException, InterruptedException, DrmaaException {
+		Map<String, String> classFiles = getRnaClassFiles();
+		String genomeBowtieIndex = configFile.getSingleValueField(sectionBasicOptions, optionGenomeBowtieIndex);
+		String bowtie2BuildExecutable = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2BuildExecutable);
+		LibraryCompositionByRnaClass lcrc = new LibraryCompositionByRnaClass(genomeBowtieIndex, classFiles, new TreeMap<String, String>(), null, logger);
+		lcrc.makeIndex(bowtie2BuildExecutable, RNA_CLASS_DIRECTORY, scheduler, drmaaSession);
+	}
+	
+	/**
+	 * TASK 3: CALCULATE RNA CLASSES
+	 * Quantify percentage of reads originating from each RNA class
+	 * Each sample gets its own tables, which are combined into counts_by_class.out and percentages_by_class.out by the stage
+	 * @author prussell
+	 * @param samples The samples to quantify
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 * @throws DrmaaException 
+	 */
+	private void quantifyRNAClasses(Collection<String> samples) throws IOException, InterruptedException, DrmaaException{
 		
+		logger.info("");
+		logger.info("Quantifying RNA classes for " + samples + "...");
 		
+		// Get options from config file
+		Map<String, String> classFiles = getRnaClassFiles();
 		String genomeBowtieIndex = configFile.getSingleValueField(sectionBasicOptions, optionGenomeBowtieIndex);
 		String bowtie2Executable = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2Executable);
 		String bowtie2BuildExecutable = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2BuildExecutable);
 		String samtoolsExecutable = configFile.getSingleValueField(sectionBasicOptions, optionSamtoolsPath);
-		
-		// Files to write tables to
-		String countFileName = rnaClassDir + "/counts_by_class.out";
-		String pctFileName = rnaClassDir + "/percentages_by_class.out";
-		File countFile = new File(countFileName);
-		File pctFile = new File(pctFileName);
-		if(countFile.exists() && pctFile.exists()) {
-			logger.warn("RNA class files " + countFileName + " and " + pctFileName + " already exist. Not rerunning RNA class counts.");
-			logger.info("");
-			logger.info("Done quantifying RNA classes.");
-			return;
-		}
-		
-		// Align and count reads for each library and RNA class
-		LibraryCompositionByRnaClass lcrc = new LibraryCompositionByRnaClass(genomeBowtieIndex, classFiles, currentLeftFqs, currentRightFqs, logger);
 		Map<String, String> bowtie2options = new TreeMap<String, String>();
 		for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionBowtie2Option)) {
 			bowtie2options.put(value.asString(1), value.getLastFields(2));
 		}
-		Map<String, Integer> totalReadCounts = lcrc.getTotalReadCounts();
-		Map<String, Map<String, Integer>> classCounts = lcrc.alignAndGetCounts(samtoolsExecutable, bowtie2Executable, bowtie2options, bowtie2BuildExecutable, rnaClassDir, scheduler, drmaaSession);
-		
-		logger.info("Writing table of counts to file " + countFileName);
-		logger.info("Writing table of percentages to file " + pctFileName);
-		FileWriter countWriter = new FileWriter(countFileName);
-		FileWriter pctWriter = new FileWriter(pctFileName);
-		
-		// Get set of class names
-		Iterator<String> iter = classCounts.keySet().iterator();
-		Set<String> classNames = classCounts.get(iter.next()).keySet();
-		String header = "Sample\t";
-		for(String className : classNames) {
-			header += className;
-			header += "\t";
-		}
-		header += "\n";
-		countWriter.write(header);
-		pctWriter.write(header);
 		
-		// Get counts and make percentages
-		for(String sample : classCounts.keySet()) {
+		for(String sample : samples) {
+			
+			// Files to write tables to
+			String countFileName = getRnaClassCountFile(sample);
+			String pctFileName = getRnaClassPercentageFile(sample);
+			if(new File(countFileName).exists() && new File(pctFileName).exists()) {
+				logger.warn("RNA class files " + countFileName + " and " + pctFileName + " already exist. Not rerunning RNA class counts.");
+				continue;
+			}
+			
+			// Align and count reads for each RNA class
+			Map<String, String> left = new TreeMap<String, String>();
+			left.put(sample, currentLeftFqs.get(sample));
+			Map<String, String> right = null;
+			if(pairedData.get(sample).booleanValue()) {
+				right = new TreeMap<String, String>();
+				right.put(sample, currentRightFqs.get(sample));
+			}
+			LibraryCompositionByRnaClass lcrc = new LibraryCompositionByRnaClass(genomeBowtieIndex, classFiles, left, right, logger);
+			Map<String, Integer> totalReadCounts = lcrc.getTotalReadCounts();
+			Map<String, Map<String, Integer>> classCounts = lcrc.alignAndGetCounts(samtoolsExecutable, bowtie2Executable, bowtie2options, bowtie2BuildExecutable, RNA_CLASS_DIRECTORY, scheduler, drmaaSession);
+			
+			logger.info("Writing table of counts to file " + countFileName);
+			logger.info("Writing table of percentages to file " + pctFileName);
+			FileWriter countWriter = new FileWriter(countFileName);
+			FileWriter pctWriter = new FileWriter(pctFileName);
+			
+			// Get set of class names
+			Set<String> classNames = classCounts.get(sample).keySet();
+			String header = "Sample\t";
+			for(String className : classNames) {
+				header += className;
+				header += "\t";
+			}
+			header += "\n";
+			countWriter.write(header);
+			pctWriter.write(header);
+			
+			// Get counts and make percentages
 			String countLine = sample + "\t";
 			String pctLine = sample + "\t";
 			for(String className : classNames) {
@@ -506,10 +1143,10 @@ public class RNASeqPipeline {
 			pctLine += "\n";
 			countWriter.write(countLine);
 			pctWriter.write(pctLine);
+			
+			countWriter.close();
+			pctWriter.close();
 		}
-
-		countWriter.close();
-		pctWriter.close();
 		
 		logger.info("");
 		logger.info("Done quantifying RNA classes.");
@@ -517,15 +1154,37 @@ public class RNASeqPipeline {
 
 	}
 	
+	/**
+	 * Make the bowtie2 index of ribosomal RNA sequences, shared by the samples
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void makeRrnaIndex() throws IOException, InterruptedException, DrmaaException {
+		File outDirFile = new File(FILTER_RRNA_DIRECTORY);
+		@SuppressWarnings("unused")
+		boolean madeDir = outDirFile.mkdir();
+		if(!configFile.hasOption(sectionBasicOptions, optionRrnaSequences)) {
+			throw new IllegalArgumentException("In order to filter ribosomal RNA, must provide config file option " + optionRrnaSequences.getName());
+		}
+		if(!configFile.hasOption(sectionBasicOptions, optionBowtie2BuildExecutable)) {
+			throw new IllegalArgumentException("In order to filter ribosomal RNA, must provide config file option " + optionBowtie2BuildExecutable.getName());
+		}
+		String rRnaFasta = configFile.getSingleValueField(sectionBasicOptions, optionRrnaSequences);
+		String bowtieBuild = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2BuildExecutable);
+		AlignmentUtils.makeBowtie2Index(rRnaFasta, FILTER_RRNA_DIRECTORY + "/rRNA", bowtieBuild, FILTER_RRNA_DIRECTORY, scheduler, drmaaSession);
+	}
+	
 	/**
 	 * TASK 4: FILTER OUT RRNA
 	 * Align reads to rRNA, retain reads that do not align, and replace current fastq files with files of non aligning reads
 	 * @author prussell
+	 * @param samples The samples to filter
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 * @throws DrmaaException 
 	 */
-	private void filterrRNA() throws IOException, InterruptedException, DrmaaException{
+	private void filterrRNA(Collection<String> samples) throws IOException, InterruptedException, DrmaaException{
 		
 		// Establish paths and software locations
 		File outDirFile = new File(FILTER_RRNA_DIRECTORY);
@@ -536,23 +1195,18 @@ public class RNASeqPipeline {
 		if(!configFile.hasOption(sectionBasicOptions, optionRrnaSequences)) {
 			throw new IllegalArgumentException("In order to filter ribosomal RNA, must provide config file option " + optionRrnaSequences.getName());
 		}
-		if(!configFile.hasOption(sectionBasicOptions, optionBowtie2BuildExecutable)) {
-			throw new IllegalArgumentException("In order to filter ribosomal RNA, must provide config file option " + optionBowtie2BuildExecutable.getName());
-		}
 		if(!configFile.hasOption(sectionBasicOptions, optionBowtie2Executable)) {
 			throw new IllegalArgumentException("In order to filter ribosomal RNA, must provide config file option " + optionBowtie2Executable.getName());
 		}
 
 		
 		String rRnaFasta = configFile.getSingleValueField(sectionBasicOptions, optionRrnaSequences);
-		String bowtieBuild = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2BuildExecutable);
 		String bowtie = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2Executable);
 		
 		logger.info("");
-		logger.info("Filtering ribosomal RNA by removing reads that map to sequences in " + rRnaFasta);
+		logger.info("Filtering ribosomal RNA from " + samples + " by removing reads that map to sequences in " + rRnaFasta);
 		
-		// Make bowtie2 index for ribosomal RNA
-		AlignmentUtils.makeBowtie2Index(rRnaFasta, outIndex, bowtieBuild, FILTER_RRNA_DIRECTORY, scheduler, drmaaSession);
+		// The bowtie2 index for ribosomal RNA is made by makeRrnaIndex before any sample is filtered
 		
 		// Establish output file names
 		Map<String, String> outRibosomalMap = new TreeMap<String, String>();
@@ -563,7 +1217,7 @@ public class RNASeqPipeline {
 		Collection<Job> jobs = new ArrayList<Job>();
 		
 		// Align each sample to rRNA
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 
 			String outRibosomal = FILTER_RRNA_DIRECTORY + "/" + sample + "_ribosomal_mappings.sam";
 			outRibosomalMap.put(sample, outRibosomal);
@@ -612,7 +1266,7 @@ public class RNASeqPipeline {
 		logger.info("Done aligning to rRNAs. Updating current fastq files to filtered files.");
 		
 		// Update current fastq files to the ribosome filtered files
-		for(String sample : leftFqs.keySet()) {
+		for(String sample : samples) {
 			if(pairedData.get(sample).booleanValue()) {
 				currentLeftFqs.put(sample, outFilteredPaired1Map.get(sample));
 				currentRightFqs.put(sample, outFilteredPaired2Map.get(sample));
@@ -628,8 +1282,14 @@ public class RNASeqPipeline {
 		logger.info("Delete sam files to save disk space. Keep fastq files for future pipeline runs.");
 	}
 	
-	private void alignToTranscripts() throws IOException, InterruptedException, DrmaaException{
-		
+	/**
+	 * Check the options needed to align to transcripts and make the files shared by the samples
+	 * These are the bowtie2 index, the fasta index and the sequence size file of the transcripts
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void prepareTranscriptAlignment() throws IOException, InterruptedException, DrmaaException {
 		
 		// Establish paths and software locations
 		File outDirFile = new File(ALIGN_TO_TRANSCRIPTS_DIRECTORY);
@@ -652,10 +1312,44 @@ public class RNASeqPipeline {
 		if(!configFile.hasOption(sectionBasicOptions, optionPicardDir)) {
 			throw new IllegalArgumentException("In order to align to transcripts, must provide config file option " + optionPicardDir.getName());
 		}
-
+		if(!configFile.hasOption(sectionBasicOptions, optionIgvToolsExecutable)) {
+			throw new IllegalArgumentException("In order to make tdf, must provide config file option " + optionIgvToolsExecutable.getName());
+		}
 		
 		String fasta = configFile.getSingleValueField(sectionBasicOptions, optionTranscriptFasta);
 		String bowtieBuild = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2BuildExecutable);
+		String samtools = configFile.getSingleValueField(sectionBasicOptions, optionSamtoolsPath);
+		
+		// Make bowtie2 index for transcripts
+		AlignmentUtils.makeBowtie2Index(fasta, outIndex, bowtieBuild, ALIGN_TO_TRANSCRIPTS_DIRECTORY, scheduler, drmaaSession);
+		
+		logger.info("Indexing fasta file.");
+		String indexedFasta = fasta + ".fai";
+		File indexedFastaFile = new File(indexedFasta);
+		if(indexedFastaFile.exists()) {
+			logger.warn("Fasta index " + indexedFasta + " already exists. Not remaking fasta index.");
+		} else {
+			FastaUtils.indexFastaFile(fasta, samtools, ALIGN_TO_TRANSCRIPTS_DIRECTORY, scheduler, drmaaSession);
+			logger.info("Done indexing fasta file.");
+		}
+		
+		// Used by the wig writers
+		FastaUtils.writeSizeFile(fasta);
+		
+	}
+	
+	/**
+	 * Align to transcript sequences and make paired end bam, tdf and wig files
+	 * The shared index files are made by prepareTranscriptAlignment
+	 * @param samples The samples to align
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void alignToTranscripts(Collection<String> samples) throws IOException, InterruptedException, DrmaaException{
+		
+		String outIndex = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/transcripts";
+		String fasta = configFile.getSingleValueField(sectionBasicOptions, optionTranscriptFasta);
 		String bowtie = configFile.getSingleValueField(sectionBasicOptions, optionBowtie2Executable);
 		Map<String, String> bowtie2options = new TreeMap<String, String>();
 		for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionBowtie2Option)) {
@@ -665,21 +1359,7 @@ public class RNASeqPipeline {
 		String picardJarDir = configFile.getSingleValueField(sectionBasicOptions, optionPicardDir);
 		
 		logger.info("");
-		logger.info("Aligning to transcript sequences in " + fasta);
-		
-		// Get transcript names and sizes
-		Map<String, Integer> sequenceSizes = new TreeMap<String, Integer>();
-		FastaSequenceIO fsio = new FastaSequenceIO(fasta);
-		List<Sequence> seqs = fsio.loadAll();
-		for(Sequence seq : seqs) {
-			String name = seq.getId();
-			int len = seq.getLength();
-			sequenceSizes.put(name, Integer.valueOf(len));
-			logger.info("Got sequence " + name + "\tlength=" + len);
-		}
-		
-		// Make bowtie2 index for transcripts
-		AlignmentUtils.makeBowtie2Index(fasta, outIndex, bowtieBuild, ALIGN_TO_TRANSCRIPTS_DIRECTORY, scheduler, drmaaSession);
+		logger.info("Aligning " + samples + " to transcript sequences in " + fasta);
 		
 		// Establish output file names
 		ArrayList<Job> jobs = new ArrayList<Job>();
@@ -687,10 +1367,10 @@ public class RNASeqPipeline {
 		Map<String, String> unsortedBamOutput = new TreeMap<String, String>();
 		Map<String, String> sortedBamOutput = new TreeMap<String, String>();
 		Map<String, String> peBamOutput = new TreeMap<String, String>();
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 			String sam = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/" + sample + "_transcript_mappings.sam";
 			String unsortedBam = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/" + sample + "_transcript_mappings_unsorted.bam";
-			String sortedBam = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/" + sample + "_transcript_mappings.bam";
+			String sortedBam = getTranscriptBam(sample);
 			String peBam = sortedBam + PairedEndWriter.PAIRED_END_EXTENSION;
 			samOutput.put(sample, sam);
 			unsortedBamOutput.put(sample, unsortedBam);
@@ -699,7 +1379,7 @@ public class RNASeqPipeline {
 		}
 		
 		// Align each sample
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 			boolean paired = pairedData.get(sample).booleanValue();
 			String sam = samOutput.get(sample);
 			
@@ -730,7 +1410,7 @@ public class RNASeqPipeline {
 		logger.info("");
 		logger.info("Done aligning to transcripts. Converting sam to bam files.");
 		Map<String, String> bsubDir = new TreeMap<String, String>();
-		for(String sample : sampleNames) bsubDir.put(sample, ALIGN_TO_TRANSCRIPTS_DIRECTORY);
+		for(String sample : samples) bsubDir.put(sample, ALIGN_TO_TRANSCRIPTS_DIRECTORY);
 		BamUtils.samToBam(samOutput, unsortedBamOutput, sortedBamOutput, bsubDir, samtools, scheduler, drmaaSession);
 		
 		logger.info("");
@@ -738,8 +1418,9 @@ public class RNASeqPipeline {
 		logger.info("Sorting bam files.");
 		BamUtils.sortBamFiles(unsortedBamOutput, sortedBamOutput, bsubDir, sortedBamOutput, picardJarDir, scheduler, drmaaSession);
 		// Delete unsorted bam files
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 			File unsorted = new File(unsortedBamOutput.get(sample));
+			if(!unsorted.exists()) continue;
 			boolean deleted = unsorted.delete();
 			if(!deleted) logger.warn("Could not delete unsorted bam file " + unsortedBamOutput.get(sample) + ". Delete manually.");
 		}
@@ -747,57 +1428,12 @@ public class RNASeqPipeline {
 		logger.info("");
 		logger.info("Done sorting bam files. Indexing sorted bam files.");
 		BamUtils.indexBamFiles(sortedBamOutput, samtools, scheduler, drmaaSession);
-				
-		if(configFile.hasSection(sectionFragmentSizeDistribution)) {
-			logger.info("");
-			logger.info("Getting median fragment sizes per transcript.");
-			String outputMedians = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/fragment_size_median";
-			File outputMedianFile = new File(outputMedians);
-			if(outputMedianFile.exists()) {
-				logger.warn("File " + outputMedians + " already exists. Not recalculating median fragment sizes.");
-			} else {
-				// Calculate median of each sequence for each sample
-				Map< String, Map<String, Double> > mediansBySample = new TreeMap<String, Map< String, Double>>();
-				GenomicSpace gs = new GenomicSpace(sequenceSizes);
-				for(String sample : sampleNames) {
-					Map<String, Double> medianBySequence = new TreeMap<String, Double>();
-					ScanStatisticDataAlignmentModel data = new ScanStatisticDataAlignmentModel(sortedBamOutput.get(sample), gs);
-					data.addFilter(new ProperPairFilter());
-					data.addFilter(new GenomicSpanFilter(configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistMaxSize).asInt(1)));
-					for(String seqName : sequenceSizes.keySet()) {
-						Annotation seq = gs.getReferenceAnnotation(seqName);
-						try {
-							double median = data.getMedianReadSize(seq, gs, configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistMaxSize).asInt(1), configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistNumBins).asInt(1));
-							medianBySequence.put(seqName, Double.valueOf(median));
-						} catch (IllegalArgumentException e) {
-							continue;
-						}
-					}
-					mediansBySample.put(sample, medianBySequence);
-				}
-				// Write file
-				FileWriter w = new FileWriter(outputMedians);
-				String header = "Sample\t";
-				for(String seqName : sequenceSizes.keySet()) {
-					header += seqName + "\t";
-				}
-				w.write(header + "\n");
-				for(String sample : sampleNames) {
-					String line = sample + "\t";
-					for(String seqName : sequenceSizes.keySet()) {
-						line += mediansBySample.get(sample).get(seqName) + "\t";
-					}
-					w.write(line + "\n");
-				}
-				w.close();
-			}
-		}
 		
 		// Make paired end bam files
 		logger.info("");
 		logger.info("Making paired end bam files.");
 		Collection<String> bamFilesToTranslate = new TreeSet<String>();
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 			if(!pairedData.get(sample).booleanValue()) {
 				continue;
 			}
@@ -813,21 +1449,6 @@ public class RNASeqPipeline {
 		// Make tdf of paired end bam files
 		logger.info("");
 		logger.info("Making tdf coverage files of paired end bam files.");
-		logger.info("Indexing fasta file.");
-		String indexedFasta = fasta + ".fai";
-		File indexedFastaFile = new File(indexedFasta);
-		if(indexedFastaFile.exists()) {
-			logger.warn("Fasta index " + indexedFasta + " already exists. Not remaking fasta index.");
-		} else {
-			FastaUtils.indexFastaFile(fasta, samtools, ALIGN_TO_TRANSCRIPTS_DIRECTORY, scheduler, drmaaSession);
-			logger.info("Done indexing fasta file.");
-		}
-		logger.info("Making tdf files.");
-		
-		if(!configFile.hasOption(sectionBasicOptions, optionIgvToolsExecutable)) {
-			throw new IllegalArgumentException("In order to make tdf, must provide config file option " + optionIgvToolsExecutable.getName());
-		}
-		
 		BamUtils.makeTdfs(peBamOutput, ALIGN_TO_TRANSCRIPTS_DIRECTORY, fasta, configFile.getSingleValueField(sectionBasicOptions, optionIgvToolsExecutable), scheduler, drmaaSession);
 		
 		// Make wig and bigwig files of fragment ends
@@ -836,32 +1457,157 @@ public class RNASeqPipeline {
 		writeWigFragmentEndsAndMidpoints(sortedBamOutput, ALIGN_TO_TRANSCRIPTS_DIRECTORY, fasta, null, configFile.getSingleValueField(sectionBasicOptions, optionWigWriterJar));
 		WigUtils.writeWigPositionCount(sortedBamOutput, ALIGN_TO_TRANSCRIPTS_DIRECTORY, null, fasta, configFile.getSingleValueField(sectionBasicOptions, optionWigToBigWigExecutable), configFile.getSingleValueField(sectionBasicOptions, optionWigWriterJar), scheduler, drmaaSession);
 		logger.info("");
-		logger.info("Done aligning to transcripts.");
+		logger.info("Done aligning " + samples + " to transcripts.");
+		
+
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The sorted bam file of alignments to transcripts
+	 */
+	private static String getTranscriptBam(String sample) {
+		return ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/" + sample + "_transcript_mappings.bam";
+	}
+	
+	/**
+	 * Calculate the median fragment size of each transcript sequence for each sample and write them to one table
+	 * @param samples The samples to include
+	 * @throws IOException
+	 */
+	private void writeTranscriptFragmentSizeMedians(Collection<String> samples) throws IOException {
+		
+		logger.info("");
+		logger.info("Getting median fragment sizes per transcript.");
+		String fasta = configFile.getSingleValueField(sectionBasicOptions, optionTranscriptFasta);
+		String outputMedians = ALIGN_TO_TRANSCRIPTS_DIRECTORY + "/fragment_size_median";
+		
+		// Get transcript names and sizes
+		Map<String, Integer> sequenceSizes = new TreeMap<String, Integer>();
+		FastaSequenceIO fsio = new FastaSequenceIO(fasta);
+		List<Sequence> seqs = fsio.loadAll();
+		for(Sequence seq : seqs) {
+			String name = seq.getId();
+			int len = seq.getLength();
+			sequenceSizes.put(name, Integer.valueOf(len));
+			logger.info("Got sequence " + name + "\tlength=" + len);
+		}
 		
+		// Calculate median of each sequence for each sample
+		Map< String, Map<String, Double> > mediansBySample = new TreeMap<String, Map< String, Double>>();
+		GenomicSpace gs = new GenomicSpace(sequenceSizes);
+		for(String sample : samples) {
+			Map<String, Double> medianBySequence = new TreeMap<String, Double>();
+			ScanStatisticDataAlignmentModel data = new ScanStatisticDataAlignmentModel(getTranscriptBam(sample), gs);
+			data.addFilter(new ProperPairFilter());
+			data.addFilter(new GenomicSpanFilter(configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistMaxSize).asInt(1)));
+			for(String seqName : sequenceSizes.keySet()) {
+				Annotation seq = gs.getReferenceAnnotation(seqName);
+				try {
+					double median = data.getMedianReadSize(seq, gs, configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistMaxSize).asInt(1), configFile.getSingleValue(sectionFragmentSizeDistribution, optionFragmentSizeDistNumBins).asInt(1));
+					medianBySequence.put(seqName, Double.valueOf(median));
+				} catch (IllegalArgumentException e) {
+					continue;
+				}
+			}
+			mediansBySample.put(sample, medianBySequence);
+		}
+		// Write file
+		FileWriter w = new FileWriter(outputMedians);
+		String header = "Sample\t";
+		for(String seqName : sequenceSizes.keySet()) {
+			header += seqName + "\t";
+		}
+		w.write(header + "\n");
+		for(String sample : samples) {
+			String line = sample + "\t";
+			for(String seqName : sequenceSizes.keySet()) {
+				line += mediansBySample.get(sample).get(seqName) + "\t";
+			}
+			w.write(line + "\n");
+		}
+		w.close();
+		
+	}
 
+	/**
+	 * @param sample Sample name
+	 * @return The sorted tophat bam file
+	 */
+	private static String getTophatBam(String sample) {
+		return TOPHAT_DIRECTORY + "/" + sample + ".bam";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The sorted novoalign bam file of reads not mapped by tophat
+	 */
+	private static String getNovoalignBam(String sample) {
+		return NOVOALIGN_DIRECTORY + "/" + sample + ".bam";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The merged tophat and novoalign bam file
+	 */
+	private static String getMergedTophatNovoalignBam(String sample) {
+		return MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + ".bam";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The table of mapped and unmapped read counts in the merged tophat and novoalign bam file
+	 */
+	private static String getMappingCountFile(String sample) {
+		return MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + "_mapped_unmapped_count.out";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The table of mapped and unmapped read percentages in the merged tophat and novoalign bam file
+	 */
+	private static String getMappingPercentageFile(String sample) {
+		return MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + "_mapped_unmapped_percentage.out";
+	}
+	
+	/**
+	 * @param sample Sample name
+	 * @return The tophat output directory for the sample
+	 */
+	private static String getTophatDir(String sample) {
+		return TOPHAT_DIRECTORY + "/" + TOPHAT_DIRECTORY + "_" + sample;
+	}
+	
+	/**
+	 * Get tophat options from the config file, without the output directory which is set for each sample
+	 * @return Map of tophat flag to option
+	 */
+	private Map<String, String> getTophatOptions() {
+		Map<String, String> tophatOptions = new TreeMap<String, String>();
+		for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionTophatOption)) {
+			tophatOptions.put(value.asString(1), value.getLastFields(2));
+		}
+		if(tophatOptions.containsKey("-o") || tophatOptions.containsKey("--output-dir")) {
+			logger.warn("Overriding tophat output directory provided in config file. Creating directories for each sample.");
+			tophatOptions.remove("-o");
+			tophatOptions.remove("--output-dir");
+		}
+		return tophatOptions;
 	}
-
 	
 	/**
 	 * TASK 5: ALIGN TO GENOME
-	 * 1. Align to genome with tophat
-	 * 2. If specified, use Novoalign to align unmapped reads and merge Tophat+Novoalign bam files
-	 * 3. Report alignment statistics
-	 * 4. Index bam files
-	 * 5. Make tdf and cda files
-	 * 6. Run Picard metrics
+	 * Align current fastq files to genome with tophat, sort the bam files and make them the current bam files
 	 * @author prussell
+	 * @param samples The samples to align
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 * @throws DrmaaException 
 	 */
-	private void alignToGenome() throws IOException, InterruptedException, DrmaaException{
+	private void alignWithTophat(Collection<String> samples) throws IOException, InterruptedException, DrmaaException{
 		
 		logger.info("");
-		logger.info("Aligning to genome...");
-
-		logger.info("");
-		logger.info("Aligning current fastq files to genome using Tophat...");
+		logger.info("Aligning current fastq files of " + samples + " to genome using Tophat...");
 
 		if(!configFile.hasOption(sectionBasicOptions, optionGenomeBowtieIndex)) {
 			throw new IllegalArgumentException("In order to align to genome, config file must specify option " + optionGenomeBowtieIndex.getName());
@@ -885,236 +1631,140 @@ public class RNASeqPipeline {
 		File tophatDirFile = new File(TOPHAT_DIRECTORY);
 		tophatDirFile.mkdir();
 		
-		// Get tophat options
-		Map<String, String> tophatOptions = new TreeMap<String, String>();
-		for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionTophatOption)) {
-			tophatOptions.put(value.asString(1), value.getLastFields(2));
-		}
-		if(tophatOptions.containsKey("-o") || tophatOptions.containsKey("--output-dir")) {
-			logger.warn("Overriding tophat output directory provided in config file. Creating directories for each sample.");
-			tophatOptions.remove("-o");
-			tophatOptions.remove("--output-dir");
-		}
+		Map<String, String> tophatOptions = getTophatOptions();
 		
 		// Establish output directories
 		Map<String, String> tophatDirsPerSample = new TreeMap<String, String>();
-		Map<String, String> tophatSubdirsPerSample = new TreeMap<String, String>();
 		Map<String, String> tophatBamUnsorted = new TreeMap<String, String>();
 		Map<String, String> tophatBamSorted = new TreeMap<String, String>();  // where the bam file will be moved to
-		for(String sample : sampleNames) {
-			tophatDirsPerSample.put(sample, TOPHAT_DIRECTORY + "/" + TOPHAT_DIRECTORY + "_" + sample);
-			tophatSubdirsPerSample.put(sample, TOPHAT_DIRECTORY + "_" + sample);
-			tophatBamSorted.put(sample, TOPHAT_DIRECTORY + "/" + sample + ".bam");
+		for(String sample : samples) {
+			tophatDirsPerSample.put(sample, getTophatDir(sample));
+			tophatBamSorted.put(sample, getTophatBam(sample));
 			tophatBamUnsorted.put(sample, TOPHAT_DIRECTORY + "/" + sample + ".unsorted.bam");
 		}
 		
 		// Run tophat
-		Map<String, String> unsortedRun = AlignmentUtils.runTophat(tophat, samtools, sampleNames, leftFqs, rightFqs, tophatOptions, tophatDirsPerSample, tophatBamUnsorted, tophatBamSorted, genomeIndex, queueName, TOPHAT_DIRECTORY, scheduler, drmaaSession);
+		Map<String, String> unsortedRun = AlignmentUtils.runTophat(tophat, samtools, samples, currentLeftFqs, currentRightFqs, tophatOptions, tophatDirsPerSample, tophatBamUnsorted, tophatBamSorted, genomeIndex, queueName, TOPHAT_DIRECTORY, scheduler, drmaaSession);
 		// Sort bam files
 		BamUtils.sortBamFiles(unsortedRun, tophatBamSorted, tophatDirsPerSample, tophatBamSorted, picardJarDir, scheduler, drmaaSession);
-		// Delete unsorted bam files
-		for(String sample : sampleNames) {
+		// Delete unsorted bam files of the samples tophat ran for
+		for(String sample : unsortedRun.keySet()) {
 			File unsorted = new File(unsortedRun.get(sample));
+			if(!unsorted.exists()) continue;
 			boolean deleted = unsorted.delete();
-			if(!deleted) logger.warn("Could not delete unsorted bam file " + tophatBamUnsorted.get(sample) + ". Delete manually.");
+			if(!deleted) logger.warn("Could not delete unsorted bam file " + unsortedRun.get(sample) + ". Delete manually.");
 		}
 		currentBamFiles.putAll(tophatBamSorted);
-		// Update current bam directory
-		currentBamDir = TOPHAT_DIRECTORY;
 		logger.info("Done running tophat.");
 		
-		// *** Novoalign steps ***
-		// Only run if novoalign path was provided in config file
-		if(configFile.hasOption(sectionBasicOptions, optionNovoalignExecutable)) {
-		
-			logger.info("");
-			logger.info("Entering steps to align unmapped reads with Novoalign...");
-			
-			// Make sure genome novoindex was provided in config file
-			if(!configFile.hasOption(sectionBasicOptions, optionGenomeNovoindex)) {
-				throw new IllegalArgumentException("Novoalign index for genome is required. Specify in config file with option genome_novoindex.");
-			}
-			
-			String novoalign = configFile.getSingleValueField(sectionBasicOptions, optionNovoalignExecutable);
-			String novoIndex = configFile.getSingleValueField(sectionBasicOptions, optionGenomeNovoindex);
-			
-			// Convert tophat unmapped.bam files to fastq files
-			logger.info("");
-			logger.info("Getting unaligned reads in fastq format...");
-			boolean version2 = tophat.substring(tophat.length()-1).equals("2");
-			Map<String, String[]> unmappedFastq = unmappedToFastq(tophatDirsPerSample, picardJarDir, version2);
-			logger.info("Got unaligned reads in fastq format.");
-		
-			// Run novoalign with unmapped reads
-			logger.info("");
-			logger.info("Aligning unmapped reads to genome with Novoalign...");
-			
-			// Establish file locations
-			File novoDirFile = new File(NOVOALIGN_DIRECTORY);
-			@SuppressWarnings("unused")
-			boolean madeNovDir = novoDirFile.mkdir();
-			Map<String, String> novoDirsPerSample = new TreeMap<String, String>();
-			Map<String, String> novoSubdirsPerSample = new TreeMap<String, String>();
-			Map<String, String> novoSamOutput = new TreeMap<String, String>();
-			Map<String, String> novoSamOutputNoHeader = new TreeMap<String, String>();
-			Map<String, String> novoBamOutput = new TreeMap<String, String>();
-			Map<String, String> novoSamOutputReheadered = new TreeMap<String, String>();
-			Map<String, String> novoSortedBam = new TreeMap<String, String>();
-			Map<String, String> novoBamFinalPath = new TreeMap<String, String>(); // the final location for bam file
-			
-			// Make directories for each sample
-			for(String sample : sampleNames) {
-				String dir = NOVOALIGN_DIRECTORY + "/" + NOVOALIGN_DIRECTORY + "_" + sample;
-				File dirFile = new File(dir);
-				@SuppressWarnings("unused")
-				boolean madeSampleDir = dirFile.mkdir();
-				novoDirsPerSample.put(sample,dir);
-				novoSubdirsPerSample.put(sample, NOVOALIGN_DIRECTORY + "_" + sample);
-				novoSamOutput.put(sample, dir + "/" + novoalign + "_" + sample + ".sam");
-				novoSamOutputReheadered.put(sample, dir + "/" + novoalign + "_" + sample + "_reheadered.sam");
-				novoBamOutput.put(sample, dir + "/" + novoalign + "_" + sample + ".bam");
-				novoSortedBam.put(sample, dir + "/" + novoalign + "_" + sample + ".sorted.bam");
-				novoBamFinalPath.put(sample, NOVOALIGN_DIRECTORY + "/" + sample + ".bam");
-				novoSamOutputNoHeader.put(sample, dir + "/" + novoalign + "_" + sample + "_noheader.sam");
-			}
-			
-			// Run Novoalign
-			runNovoalignOnUnmappedReads(tophatOptions, novoIndex, novoalign, novoDirsPerSample, novoSamOutput, novoBamFinalPath, unmappedFastq, version2);
-			logger.info("Done running novoalign.");
-			
-			// Reheader novoalign sam files to match tophat sam header
-			logger.info("");
-			logger.info("Replacing headers in novoalign sam files with header from tophat alignments...");
-			replaceNovoalignSamHeaders(tophatBamSorted, novoSamOutput, novoSamOutputNoHeader, novoSamOutputReheadered, novoBamFinalPath, samtools);
-			logger.info("Done replacing sam headers.");
-			
-			// Convert novoalign sam files to bam format
-			logger.info("");
-			logger.info("Converting novoalign sam files to bam format...");
-			BamUtils.samToBam(novoSamOutput, novoBamOutput, novoBamFinalPath, novoDirsPerSample, samtools, scheduler, drmaaSession);
-			logger.info("All samples done converting to bam format.");
-			
-			// Sort the bam files
-			logger.info("");
-			logger.info("Sorting novoalign bam files...");
-			BamUtils.sortBamFiles(novoBamOutput, novoSortedBam, novoDirsPerSample, novoBamFinalPath, picardJarDir, scheduler, drmaaSession);
-			logger.info("All bam files sorted.");
-			
-			// Move all novoalign bam files to one directory
-			logger.info("");
-			logger.info("Moving all sorted novoalign bam files to directory " + NOVOALIGN_DIRECTORY + "...");
-			for(String sample : sampleNames) {
-				File finalBam = new File(novoBamFinalPath.get(sample));
-				if(finalBam.exists()) {
-					logger.warn("Alignment file " + finalBam + " already exists. Not replacing file.");
-					continue;					
-				}
-				String cmmd = "mv " + novoSortedBam.get(sample) + " " + novoBamFinalPath.get(sample);
-				Process p = Runtime.getRuntime().exec(cmmd, null);
-				p.waitFor();
-			}
-	
-			// Merge tophat and novoalign bam files
-			logger.info("");
-			logger.info("Merging tophat and novoalign bam files in directory " + MERGED_TOPHAT_NOVOALIGN_DIRECTORY	+ "...");
-			mergeTophatNovoalign(tophatBamSorted, novoBamFinalPath, picardJarDir);
-			logger.info("All bam files merged.");
-			
-			// Update current bam files to merged bams
-			logger.info("");
-			logger.info("Updating current bam files...");
-			for(String sample : sampleNames) {
-				currentBamFiles.put(sample, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + ".bam");
-				logger.info("Current bam file for sample " + sample + " is " + currentBamFiles.get(sample));
-			}
-			
-			// Update current bam directory
-			currentBamDir = MERGED_TOPHAT_NOVOALIGN_DIRECTORY;
-	
-			// Count mapped and unmapped reads
-			logger.info("");
-			logger.info("Counting mapped and unmapped reads...");
-			countMappingsMergedAlignments(samtools);
-			logger.info("Done counting mappings.");
-	
+	}
 	
-		} // *** Done with novoalign steps ***
+	/**
+	 * Align reads not mapped by tophat with Novoalign and write sorted bam files to NOVOALIGN_DIRECTORY
+	 * @param samples The samples to align
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void alignUnmappedWithNovoalign(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
 		
-		// Merge bam files
 		logger.info("");
-		logger.info("Merging bam files...");
-		try {
-			mergeBamFiles(picardJarDir);
-		} catch (IllegalArgumentException e) {
-			// Make sure current bam files are ordered the same way as reference genome
-			logger.info("");
-			logger.info("Reordering bam files in directory " + currentBamDir + "...");
-			reorderCurrentBams(picardJarDir);
-			logger.info("Done reordering bam files.");					
+		logger.info("Entering steps to align unmapped reads of " + samples + " with Novoalign...");
+		
+		// Make sure genome novoindex was provided in config file
+		if(!configFile.hasOption(sectionBasicOptions, optionGenomeNovoindex)) {
+			throw new IllegalArgumentException("Novoalign index for genome is required. Specify in config file with option genome_novoindex.");
 		}
-		mergeBamFiles(picardJarDir);
-		logger.info("Done merging bam files.");
 		
-		// Index current bam files
+		String novoalign = configFile.getSingleValueField(sectionBasicOptions, optionNovoalignExecutable);
+		String novoIndex = configFile.getSingleValueField(sectionBasicOptions, optionGenomeNovoindex);
+		String samtools = configFile.getSingleValueField(sectionBasicOptions, optionSamtoolsPath);
+		String tophat = configFile.getSingleValueField(sectionBasicOptions, optionTophatExecutable);
+		String picardJarDir = configFile.getSingleValueField(sectionBasicOptions, optionPicardDir);
+		
+		Map<String, String> tophatDirsPerSample = new TreeMap<String, String>();
+		Map<String, String> tophatBamSorted = new TreeMap<String, String>();
+		for(String sample : samples) {
+			tophatDirsPerSample.put(sample, getTophatDir(sample));
+			tophatBamSorted.put(sample, getTophatBam(sample));
+		}
+		
+		// Convert tophat unmapped.bam files to fastq files
 		logger.info("");
-		logger.info("Indexing bam files...");
-		indexCurrentBams(samtools);
-		logger.info("All bam files indexed.");
-
-		// Collect Picard metrics
+		logger.info("Getting unaligned reads in fastq format...");
+		boolean version2 = tophat.substring(tophat.length()-1).equals("2");
+		Map<String, String[]> unmappedFastq = unmappedToFastq(tophatDirsPerSample, picardJarDir, version2);
+		logger.info("Got unaligned reads in fastq format.");
+	
+		// Run novoalign with unmapped reads
 		logger.info("");
-		logger.info("Collecting Picard metrics for bam files in directory " + currentBamDir + "...");
-		//collectPicardMetricsCurrentBams(picardJarDir);
-		logger.info("All Picard metrics done.");
+		logger.info("Aligning unmapped reads to genome with Novoalign...");
 		
-		// Make tdf files from current bam files
-		if(configFile.hasOption(sectionBasicOptions, optionIgvToolsExecutable)) {
-			logger.info("");
-			logger.info("Making tdf files for bam files...");
-			BamUtils.makeTdfs(currentBamFiles, currentBamDir, configFile.getSingleValueField(sectionBasicOptions, optionGenomeAssemblyName), configFile.getSingleValueField(sectionBasicOptions, optionIgvToolsExecutable), scheduler, drmaaSession);
-			logger.info("All tdf files created.");
+		// Establish file locations
+		File novoDirFile = new File(NOVOALIGN_DIRECTORY);
+		@SuppressWarnings("unused")
+		boolean madeNovDir = novoDirFile.mkdir();
+		Map<String, String> novoDirsPerSample = new TreeMap<String, String>();
+		Map<String, String> novoSamOutput = new TreeMap<String, String>();
+		Map<String, String> novoSamOutputNoHeader = new TreeMap<String, String>();
+		Map<String, String> novoBamOutput = new TreeMap<String, String>();
+		Map<String, String> novoSamOutputReheadered = new TreeMap<String, String>();
+		Map<String, String> novoSortedBam = new TreeMap<String, String>();
+		Map<String, String> novoBamFinalPath = new TreeMap<String, String>(); // the final location for bam file
+		
+		// Make directories for each sample
+		for(String sample : samples) {
+			String dir = NOVOALIGN_DIRECTORY + "/" + NOVOALIGN_DIRECTORY + "_" + sample;
+			File dirFile = new File(dir);
+			@SuppressWarnings("unused")
+			boolean madeSampleDir = dirFile.mkdir();
+			novoDirsPerSample.put(sample,dir);
+			novoSamOutput.put(sample, dir + "/" + novoalign + "_" + sample + ".sam");
+			novoSamOutputReheadered.put(sample, dir + "/" + novoalign + "_" + sample + "_reheadered.sam");
+			novoBamOutput.put(sample, dir + "/" + novoalign + "_" + sample + ".bam");
+			novoSortedBam.put(sample, dir + "/" + novoalign + "_" + sample + ".sorted.bam");
+			novoBamFinalPath.put(sample, getNovoalignBam(sample));
+			novoSamOutputNoHeader.put(sample, dir + "/" + novoalign + "_" + sample + "_noheader.sam");
 		}
 		
-		// Make fragment size distributions
-		if(configFile.hasSection(sectionFragmentSizeDistribution)) {
-			logger.info("");
-			logger.info("Making fragment size distributions for bam files...");
-			makeFragmentSizeDistributionCurrentBams();
-			logger.info("All fragment size distributions created.");
-		}
+		// Run Novoalign
+		runNovoalignOnUnmappedReads(getTophatOptions(), novoIndex, novoalign, novoDirsPerSample, novoSamOutput, novoBamFinalPath, unmappedFastq, version2);
+		logger.info("Done running novoalign.");
 		
-		// Compute global transcriptome space stats
-		if(configFile.hasOption(sectionBasicOptions, optionAlignGlobalStatsJar)) {
-			if(configFile.hasOption(sectionBasicOptions, optionTranscriptomeSpaceStatsBedFile) || configFile.hasOption(sectionBasicOptions, optionGenomicSpaceStatsSizeFile)) {
-				writeAlignmentGlobalStats(configFile.getSingleValueField(sectionBasicOptions, optionAlignGlobalStatsJar), configFile.getSingleValueField(sectionBasicOptions, optionTranscriptomeSpaceStatsBedFile), configFile.getSingleValueField(sectionBasicOptions, optionGenomicSpaceStatsSizeFile));
-			}
-		}
-
-		// Make wig and bigwig files of fragment ends and midpoints
-		if(configFile.hasOption(sectionBasicOptions, optionWigToBigWigExecutable) && configFile.hasOption(sectionBasicOptions, optionBedFileForWig)) {
-			logger.info("");
-			logger.info("Making wig and bigwig files of fragment end points.");
-			writeWigFragmentEndsAndMidpoints(currentBamFiles, currentBamDir, configFile.getSingleValueField(sectionBasicOptions, optionGenomeFasta), configFile.getSingleValueField(sectionBasicOptions, optionBedFileForWig), configFile.getSingleValueField(sectionBasicOptions, optionWigWriterJar));
-			logger.info("");
-			logger.info("Done writing wig files.\n");
-		}
+		// Reheader novoalign sam files to match tophat sam header
+		logger.info("");
+		logger.info("Replacing headers in novoalign sam files with header from tophat alignments...");
+		replaceNovoalignSamHeaders(tophatBamSorted, novoSamOutput, novoSamOutputNoHeader, novoSamOutputReheadered, novoBamFinalPath, samtools);
+		logger.info("Done replacing sam headers.");
 		
-		// Make wig files of position fragment counts and normalized position counts
-		if(configFile.hasOption(sectionBasicOptions, optionWigWriterJar) && configFile.hasOption(sectionBasicOptions, optionBedFileForWig)) {
-			logger.info("");
-			logger.info("Making wig files of position fragment counts and position counts normalized to transcript average coverage.");
-			logger.info("TODO: uses too much memory. Skipping.");
-			//TODO uses too much memory
-			//writeWigPositionCount(currentBamFiles, currentBamDir, configFile.getSingleValueField(sectionBasicOptions, optionBedFileForWig), configFile.getSingleValueField(sectionBasicOptions, optionGenomeFasta));
-			logger.info("");
-			logger.info("Done writing wig files.\n");
-		}
+		// Convert novoalign sam files to bam format
+		logger.info("");
+		logger.info("Converting novoalign sam files to bam format...");
+		BamUtils.samToBam(novoSamOutput, novoBamOutput, novoBamFinalPath, novoDirsPerSample, samtools, scheduler, drmaaSession);
+		logger.info("All samples done converting to bam format.");
 		
+		// Sort the bam files
+		logger.info("");
+		logger.info("Sorting novoalign bam files...");
+		BamUtils.sortBamFiles(novoBamOutput, novoSortedBam, novoDirsPerSample, novoBamFinalPath, picardJarDir, scheduler, drmaaSession);
+		logger.info("All bam files sorted.");
 		
+		// Move all novoalign bam files to one directory
+		logger.info("");
+		logger.info("Moving all sorted novoalign bam files to directory " + NOVOALIGN_DIRECTORY + "...");
+		for(String sample : samples) {
+			File finalBam = new File(novoBamFinalPath.get(sample));
+			if(finalBam.exists()) {
+				logger.warn("Alignment file " + finalBam + " already exists. Not replacing file.");
+				continue;					
+			}
+			String cmmd = "mv " + novoSortedBam.get(sample) + " " + novoBamFinalPath.get(sample);
+			Process p = Runtime.getRuntime().exec(cmmd, null);
+			p.waitFor();
+		}
 		
 	}
 	
-
 	/**
 	 * Convert unmapped reads to fastq format if necessary and get fastq file names
 	 * @param tophatDirsPerSample Directories containing tophat output, by sample name
@@ -1138,7 +1788,7 @@ public class RNASeqPipeline {
 			}
 			return rtrn;
 		}
-		for(String sample : sampleNames) {
+		for(String sample : tophatDirsPerSample.keySet()) {
 			// Tophat version 1 writes unmapped files in fastq format
 			// Just get the names
 			String[] files = new String[2];
@@ -1162,7 +1812,7 @@ public class RNASeqPipeline {
 		ArrayList<Job> convertJobs = new ArrayList<Job>();
 		// Store names of fastq files
 		Map<String, String> unmappedFastq1 = new TreeMap<String,String>();
-		for(String sample : sampleNames) {
+		for(String sample : tophatDirsPerSample.keySet()) {
 			String dir = tophatDirsPerSample.get(sample);
 			// Use Picard program SamToFastq
 			String cmmd = "java -jar " + picardJarDir + "/SamToFastq.jar INPUT=" + dir + "/unmapped.bam VALIDATION_STRINGENCY=SILENT ";
@@ -1182,7 +1832,7 @@ public class RNASeqPipeline {
 			logger.info("Running Picard command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, dir + "/sam_to_fastq_" + jobID + ".bsub", "hour", 16);
@@ -1197,6 +1847,12 @@ public class RNASeqPipeline {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 convertJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "unmapped_fastq", 16);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                convertJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -1254,7 +1910,7 @@ public class RNASeqPipeline {
 		String cmmdBase = novoalign + novoOptionsString;
 		ArrayList<Job> novoJobs = new ArrayList<Job>();
 		Map<String, String> novoBsubFiles = new TreeMap<String, String>();
-		for(String sample : sampleNames) {
+		for(String sample : novoDirsPerSample.keySet()) {
 			File outdir = new File(novoDirsPerSample.get(sample));
 			outdir.mkdir();
 			File sam = new File(novoSamOutput.get(sample));
@@ -1274,7 +1930,7 @@ public class RNASeqPipeline {
 			logger.info("Running novoalign command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				String bsubFile = outdir + "/novoalign_" + jobID + ".bsub";
@@ -1293,6 +1949,14 @@ public class RNASeqPipeline {
                 ogsJob.submit();
                 novoJobs.add(ogsJob);
                 break;*/
+            case LOCAL:
+				// Command output goes where the LSF output would, since it is parsed below
+				String outFile = outdir + "/novoalign_" + System.currentTimeMillis() + ".out";
+				LocalJob localJob = new LocalJob(cmmd, "novoalign", outFile, 1, 8);
+				localJob.submit();
+				novoJobs.add(localJob);
+				novoBsubFiles.put(sample, outFile);
+				break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 			}
@@ -1305,7 +1969,7 @@ public class RNASeqPipeline {
 		logger.info("");
 		logger.info("Parsing LSF output to sam files...");
 		StringParser stringparse = new StringParser();
-		for(String sample : sampleNames) {
+		for(String sample : novoDirsPerSample.keySet()) {
 			File sam = new File(novoSamOutput.get(sample));
 			// Check if Novoalign has already been run
 			if(sam.exists()) {
@@ -1345,27 +2009,22 @@ public class RNASeqPipeline {
 	}
 	
 	/**
-	 * Replace headers in novoalign sam files with header from tophat files
-	 * @param tophatBamFinalPath Bam files produced by tophat, to get header
-	 * @param novoSamOutput Sam files containing novoalign alignments
-	 * @param novoSamOutputNoHeader Files to write novoalign alignments with no header
-	 * @param novoSamOutputReheadered Files to write reheadered novoalign sam alignments
-	 * @param novoBamFinalPath Final novoalign bam files; skip if already exists
+	 * Write the sam header of a tophat bam file to the novoalign directory, with sort order unsorted, unless it already exists
+	 * Samples aligned at the same time share the file
+	 * @param tophatBam Bam file produced by tophat
 	 * @param samtools Samtools executable
+	 * @return The header file
 	 * @throws IOException
 	 * @throws InterruptedException
-	 * @throws DrmaaException 
+	 * @throws DrmaaException
 	 */
-	private void replaceNovoalignSamHeaders(Map<String, String> tophatBamFinalPath, Map<String, String> novoSamOutput, Map<String, String> novoSamOutputNoHeader, Map<String, String> novoSamOutputReheadered, Map<String, String> novoBamFinalPath, String samtools) throws IOException, InterruptedException, DrmaaException {
-		// First get tophat header and write to novoalign directory
-		Iterator<String> tophatBamIter = tophatBamFinalPath.keySet().iterator();
-		String firstTophatBam = tophatBamFinalPath.get(tophatBamIter.next());
+	private synchronized String writeTophatSamHeader(String tophatBam, String samtools) throws IOException, InterruptedException, DrmaaException {
 		String getHeaderCmmd = samtools + " view -H -o ";
 		String tmpHeader = NOVOALIGN_DIRECTORY + "/tophat_sam_header_sorted.sam";
 		String tophatHeader = NOVOALIGN_DIRECTORY + "/tophat_sam_header.sam";
 		getHeaderCmmd += tmpHeader + " ";
-		getHeaderCmmd += firstTophatBam;
-		String getHeaderJobID = Long.valueOf(System.currentTimeMillis()).toString();
+		getHeaderCmmd += tophatBam;
+		String getHeaderJobID = LSFJob.generateJobID();
 		logger.info("");
 		logger.info("Getting sam header from tophat alignments to reheader novoalign sam files");
 		File tophatHeaderFile = new File(tophatHeader);
@@ -1390,6 +2049,13 @@ public class RNASeqPipeline {
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
 				logger.info("Waiting for samtools view to finish...");
 				ogsJob.waitFor();
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(getHeaderCmmd, "replace_sam_header", 1);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+				logger.info("Waiting for samtools view to finish...");
+				localJob.waitFor();
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -1409,10 +2075,29 @@ public class RNASeqPipeline {
 			f.delete();
 		}
 		logger.info("Done getting header.");
+		return tophatHeader;
+	}
+	
+	/**
+	 * Replace headers in novoalign sam files with header from tophat files
+	 * @param tophatBamFinalPath Bam files produced by tophat, to get header
+	 * @param novoSamOutput Sam files containing novoalign alignments
+	 * @param novoSamOutputNoHeader Files to write novoalign alignments with no header
+	 * @param novoSamOutputReheadered Files to write reheadered novoalign sam alignments
+	 * @param novoBamFinalPath Final novoalign bam files; skip if already exists
+	 * @param samtools Samtools executable
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException 
+	 */
+	private void replaceNovoalignSamHeaders(Map<String, String> tophatBamFinalPath, Map<String, String> novoSamOutput, Map<String, String> novoSamOutputNoHeader, Map<String, String> novoSamOutputReheadered, Map<String, String> novoBamFinalPath, String samtools) throws IOException, InterruptedException, DrmaaException {
+		// First get tophat header and write to novoalign directory
+		Iterator<String> tophatBamIter = tophatBamFinalPath.keySet().iterator();
+		String tophatHeader = writeTophatSamHeader(tophatBamFinalPath.get(tophatBamIter.next()), samtools);
 		
 		// Now reheader each novoalign sam
 
-		for(String sample : sampleNames) {
+		for(String sample : novoBamFinalPath.keySet()) {
 			File finalBam = new File(novoBamFinalPath.get(sample));
 			if(finalBam.exists()) {
 				logger.warn("Alignment file " + finalBam + " already exists. Not looking for sam file or replacing header.");
@@ -1454,22 +2139,21 @@ public class RNASeqPipeline {
 	
 	/**
 	 * Merge tophat and novoalign bam files
-	 * @param tophatBamFinalPath Mapping of sample name to final tophat bam file
-	 * @param novoBamFinalPath Mapping of sample name to final novoalign bam file
+	 * @param samples The samples to merge
 	 * @param picardJarDir Directory containing Picard jar files
 	 * @throws IOException
 	 * @throws InterruptedException
 	 * @throws DrmaaException 
 	 */
-	private void mergeTophatNovoalign(Map<String, String> tophatBamFinalPath, Map<String, String> novoBamFinalPath, String picardJarDir) throws IOException, InterruptedException, DrmaaException {
+	private void mergeTophatNovoalign(Collection<String> samples, String picardJarDir) throws IOException, InterruptedException, DrmaaException {
 		File mergedDir = new File(MERGED_TOPHAT_NOVOALIGN_DIRECTORY);
 		@SuppressWarnings("unused")
 		boolean madeMergedDir = mergedDir.mkdir();
 		ArrayList<Job> mergeJobs = new ArrayList<Job>();
-		for(String sample : sampleNames) {
-			String tophatBam = tophatBamFinalPath.get(sample);
-			String novoBam = novoBamFinalPath.get(sample); 
-			String mergedBam = MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + ".bam";
+		for(String sample : samples) {
+			String tophatBam = getTophatBam(sample);
+			String novoBam = getNovoalignBam(sample); 
+			String mergedBam = getMergedTophatNovoalignBam(sample);
 			File mergedFile = new File(mergedBam);
 			// Check if merged files already exist
 			if(mergedFile.exists()) {
@@ -1481,7 +2165,7 @@ public class RNASeqPipeline {
 			logger.info("Running Picard command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/merge_bams_" + jobID + ".bsub", "hour", 1);
@@ -1496,6 +2180,12 @@ public class RNASeqPipeline {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 mergeJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "merge_tophat_novoalign", 1);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                mergeJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -1508,40 +2198,46 @@ public class RNASeqPipeline {
 	
 	/**
 	 * Count merged tophat and novoalign alignments
+	 * Each sample gets its own tables, which are combined into mapped_unmapped_count.out and mapped_unmapped_percentage.out by the stage
+	 * @param samples The samples to count
 	 * @param samtools Samtools executable
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private void countMappingsMergedAlignments(String samtools) throws IOException, InterruptedException {
-		String mergedCountFile = MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_count.out";
-		String mergedPctFile = MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/mapped_unmapped_percentage.out";
-		FileWriter mw = new FileWriter(mergedCountFile);
-		FileWriter mwp = new FileWriter(mergedPctFile);
+	private void countMappingsMergedAlignments(Collection<String> samples, String samtools) throws IOException, InterruptedException {
+		logger.info("");
+		logger.info("Counting mapped and unmapped reads...");
 		String mergedHeader = "Sample\tMapped\tUnmapped\n";
-		mw.write(mergedHeader);
-		mwp.write(mergedHeader);
-		for(String sample : sampleNames) {
-			int mapped = AlignmentUtils.countAlignments(samtools, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + ".bam", MERGED_TOPHAT_NOVOALIGN_DIRECTORY, false, false);
-			int unmapped = AlignmentUtils.countAlignments(samtools, MERGED_TOPHAT_NOVOALIGN_DIRECTORY + "/" + sample + ".bam", MERGED_TOPHAT_NOVOALIGN_DIRECTORY, true, false);
+		for(String sample : samples) {
+			String mergedCountFile = getMappingCountFile(sample);
+			String mergedPctFile = getMappingPercentageFile(sample);
+			int mapped = AlignmentUtils.countAlignments(samtools, getMergedTophatNovoalignBam(sample), MERGED_TOPHAT_NOVOALIGN_DIRECTORY, false, false);
+			int unmapped = AlignmentUtils.countAlignments(samtools, getMergedTophatNovoalignBam(sample), MERGED_TOPHAT_NOVOALIGN_DIRECTORY, true, false);
 			int total = mapped + unmapped;
+			FileWriter mw = new FileWriter(mergedCountFile);
+			FileWriter mwp = new FileWriter(mergedPctFile);
+			mw.write(mergedHeader);
+			mwp.write(mergedHeader);
 			mw.write(sample + "\t" + mapped + "\t" + unmapped + "\n");
 			mwp.write(sample + "\t" + (double)mapped/(double)total + "\t" + (double)unmapped/(double)total + "\n");
+			mw.close();
+			mwp.close();
+			logger.info("Wrote table of counts to file " + mergedCountFile);
+			logger.info("Wrote table of percentages to file " + mergedPctFile);
 		}
-		mw.close();
-		mwp.close();
-		logger.info("Wrote table of counts to file " + mergedCountFile);
-		logger.info("Wrote table of percentages to file " + mergedPctFile);
+		logger.info("Done counting mappings.");
 	}
 	
 	/**
 	 * Index current bam files and write bai files to current bam directory
+	 * @param samples The samples to index
 	 * @param samtools Samtools executable
 	 * @throws IOException
 	 * @throws InterruptedException
 	 * @throws DrmaaException 
 	 */
-	private void indexCurrentBams(String samtools) throws IOException, InterruptedException, DrmaaException {
-		BamUtils.indexBamFiles(currentBamFiles, samtools, scheduler, drmaaSession);
+	private void indexCurrentBams(Collection<String> samples, String samtools) throws IOException, InterruptedException, DrmaaException {
+		BamUtils.indexBamFiles(getCurrentBamFiles(samples), samtools, scheduler, drmaaSession);
 	}
 	
 	
@@ -1556,10 +2252,7 @@ public class RNASeqPipeline {
 	 * @throws DrmaaException 
 	 */
 	private void writeWigPositionCount(Map<String, String> bamFiles, String bamDir, String geneBedFile, String refFasta) throws IOException, InterruptedException, DrmaaException {
-		if(!configFile.hasOption(sectionBasicOptions, optionWigToBigWigExecutable)) {
-			throw new IllegalArgumentException("In order to write wig file, must specify " + optionWigToBigWigExecutable.getName() + " in config file.");
-		}
-		if(!configFile.hasOption(sectionBasicOptions, optionWigToBigWigExecutable)) {
+		if(!configFile.hasOption(sectionBasicOptions, optionWigWriterJar)) {
 			throw new IllegalArgumentException("In order to write wig file, must specify " + optionWigWriterJar.getName() + " in config file.");
 		}
 		String wigToBigWig = configFile.getSingleValueField(sectionBasicOptions, optionWigToBigWigExecutable);
@@ -1581,9 +2274,7 @@ public class RNASeqPipeline {
 	 * @throws DrmaaException 
 	 */
 	private void writeWigFragmentEndsAndMidpoints(Map<String, String> bamFiles, String bamDir, String refFasta, String geneBedFile, String wigWriterJar) throws IOException, InterruptedException, DrmaaException {
-		if(!configFile.hasOption(sectionBasicOptions, optionWigToBigWigExecutable)) {
-			throw new IllegalArgumentException("In order to write wig file, must specify " + optionWigToBigWigExecutable.getName() + " in config file.");
-		}
+		// Without wigToBigWig, WigWriter writes the bigwig files directly
 		String wigToBigWig = configFile.getSingleValueField(sectionBasicOptions, optionWigToBigWigExecutable);
 		WigUtils.writeWigFragmentEndsAndMidpoints(bamFiles, pairedData, bamDir, refFasta, geneBedFile, wigWriterJar, wigToBigWig, scheduler, drmaaSession);
 	}
@@ -1591,23 +2282,30 @@ public class RNASeqPipeline {
 	
 	
 	/**
-	 * Reorder current bam files to match reference genome
+	 * Reorder bam files to match reference genome
+	 * The reordered files are written next to the originals with extension .reordered
+	 * @param bamFiles Bam files by name
 	 * @param picardDir Directory containing Picard jar files
+	 * @return The reordered bam files by name
 	 * @throws IOException
 	 * @throws InterruptedException
 	 * @throws DrmaaException 
 	 */
-	private void reorderCurrentBams(String picardDir) throws IOException, InterruptedException, DrmaaException {
+	private Map<String, String> reorderBams(Map<String, String> bamFiles, String picardDir) throws IOException, InterruptedException, DrmaaException {
 		ArrayList<Job> reorderJobs = new ArrayList<Job>();
 		Map<String, String> reordered = new TreeMap<String, String>();
-		for(String sample : sampleNames) {
-			String bam = currentBamFiles.get(sample);
+		for(String sample : bamFiles.keySet()) {
+			String bam = bamFiles.get(sample);
 			reordered.put(sample, bam + ".reordered");
-			String cmmd = "java -jar " + picardDir + "/ReorderSam.jar I=" + bam + " O=" + reordered.get(sample) + " R=" + configFile.getSingleValue(sectionBasicOptions, optionGenomeFasta);
+			if(new File(reordered.get(sample)).exists()) {
+				logger.warn("Reordered bam file " + reordered.get(sample) + " already exists. Not reordering again.");
+				continue;
+			}
+			String cmmd = "java -jar " + picardDir + "/ReorderSam.jar I=" + bam + " O=" + reordered.get(sample) + " R=" + configFile.getSingleValueField(sectionBasicOptions, optionGenomeFasta);
 			logger.info("Running picard command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, currentBamDir + "/reorder_bam_" + jobID + ".bsub", "week", 16);
@@ -1622,6 +2320,12 @@ public class RNASeqPipeline {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 reorderJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "reorder_bam", 16);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                reorderJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -1629,16 +2333,12 @@ public class RNASeqPipeline {
 		}
 		logger.info("Waiting for picard jobs to finish...");
 		JobUtils.waitForAll(reorderJobs);
-		// Replace bam files with reordered files
-		for(String sample : sampleNames) {
-			String mvcmmd = "mv " + reordered.get(sample) + " " + currentBamFiles.get(sample);
-			Process p = Runtime.getRuntime().exec(mvcmmd);
-			p.waitFor();
-		}
+		return reordered;
 	}
 	
 	/**
 	 * Write global stats for current bam files
+	 * @param samples The samples to write stats for
 	 * @param alignmentGlobalStatsJar Jar file for alignment global stats
 	 * @param bedFile Bed file for transcriptome space stats. To skip, pass null.
 	 * @param chrSizeFile Chromosome size file for genomic space stats. To skip, pass null.
@@ -1646,15 +2346,16 @@ public class RNASeqPipeline {
 	 * @throws InterruptedException
 	 * @throws DrmaaException 
 	 */
-	private void writeAlignmentGlobalStats(String alignmentGlobalStatsJar, String bedFile, String chrSizeFile) throws IOException, InterruptedException, DrmaaException {
-		logger.info("Writing global stats for alignments...");
+	private void writeAlignmentGlobalStats(Collection<String> samples, String alignmentGlobalStatsJar, String bedFile, String chrSizeFile) throws IOException, InterruptedException, DrmaaException {
+		logger.info("Writing global stats for alignments of " + samples + "...");
 		ArrayList<Job> jobs = new ArrayList<Job>();
+		Map<String, String> bamFiles = getCurrentBamFiles(samples);
 		if(bedFile != null) {
-			Collection<Job> tJobs = BamUtils.writeTranscriptomeSpaceStats(currentBamFiles, bedFile, alignmentGlobalStatsJar, currentBamDir, scheduler, drmaaSession);
+			Collection<Job> tJobs = BamUtils.writeTranscriptomeSpaceStats(bamFiles, bedFile, alignmentGlobalStatsJar, currentBamDir, scheduler, drmaaSession);
 			jobs.addAll(tJobs);
 		}
 		if(chrSizeFile != null) {
-			Collection<Job> gJobs = BamUtils.writeGenomicSpaceStats(currentBamFiles, chrSizeFile, alignmentGlobalStatsJar, currentBamDir, scheduler, drmaaSession);
+			Collection<Job> gJobs = BamUtils.writeGenomicSpaceStats(bamFiles, chrSizeFile, alignmentGlobalStatsJar, currentBamDir, scheduler, drmaaSession);
 			jobs.addAll(gJobs);
 		}
 		JobUtils.waitForAll(jobs);
@@ -1662,17 +2363,10 @@ public class RNASeqPipeline {
 	}
 	
 
-
-
 	/**
-	 * Merge specified samples into new bam files
-	 * Add merged samples to sample name list and current bam files
-	 * @param picardJarDir Directory containing Picard executables
-	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws DrmaaException 
+	 * @return The sets of samples to merge from the config file, by merged sample name
 	 */
-	private void mergeBamFiles(String picardJarDir) throws IOException, InterruptedException, DrmaaException {
+	private Map<String, Collection<String>> getSetsToMerge() {
 		Map<String, Collection<String>> setsToMerge = new TreeMap<String, Collection<String>>();
 		if(configFile.hasOption(sectionBasicOptions, optionSamplesToMerge)) {
 			for(ConfigFileOptionValue value : configFile.getOptionValues(sectionBasicOptions, optionSamplesToMerge)) {
@@ -1684,6 +2378,94 @@ public class RNASeqPipeline {
 				setsToMerge.put(newName, oldNames);
 			}
 		}
+		return setsToMerge;
+	}
+	
+	/**
+	 * @param mergedName Merged sample name
+	 * @return The merged bam file
+	 */
+	private String getMergedSampleBam(String mergedName) {
+		return currentBamDir + "/" + mergedName + ".bam";
+	}
+	
+	/**
+	 * Add a merged sample to sample name list and current bam files
+	 * @param mergedName Merged sample name
+	 * @param samplesToMerge The samples it was merged from
+	 */
+	private void addMergedSample(String mergedName, Collection<String> samplesToMerge) {
+		currentBamFiles.put(mergedName, getMergedSampleBam(mergedName));
+		sampleNames.add(mergedName);
+		pairedData.put(mergedName, pairedData.get(samplesToMerge.iterator().next()));
+	}
+	
+	/**
+	 * Submit jobs to merge bam files
+	 * @param inputs Bam files to merge by merged bam file
+	 * @param picardJarDir Directory containing Picard executables
+	 * @return The jobs by merged bam file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private Map<String, Job> submitMergeJobs(Map<String, Collection<String>> inputs, String picardJarDir) throws IOException, InterruptedException, DrmaaException {
+		Map<String, Job> jobs = new TreeMap<String, Job>();
+		for(String mergedBam : inputs.keySet()) {
+			logger.info("Creating merged bam file " + mergedBam + ".");
+			String inputArgs = "";
+			for(String bam : inputs.get(mergedBam)) {
+				inputArgs += "INPUT=" + bam + " ";
+			}
+			String output = "OUTPUT=" + mergedBam;
+			String cmmd = "java -jar " + picardJarDir + "/MergeSamFiles.jar " + inputArgs + " " + output + " ASSUME_SORTED=true MERGE_SEQUENCE_DICTIONARIES=true";
+			logger.info("Running picard command: " + cmmd);
+			switch(scheduler) {
+			case LSF:
+				String jobID = LSFJob.generateJobID();
+				logger.info("LSF job ID is " + jobID + ".");
+				// Submit job
+				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, currentBamDir + "/merge_bam_files_" + jobID + ".bsub", "week", 8);	
+				job.submit();
+				jobs.put(mergedBam, job);
+				break;
+            case OGS:
+                if(drmaaSession == null) {
+                        throw new IllegalArgumentException("DRMAA session is null. Must provide an active DRMAA session to use OGS. There can only be one active session at a time. Session should have been created in the main method of the class calling this method.");
+                }
+                OGSJob ogsJob = new OGSJob(drmaaSession, cmmd, "merge_bam_files");
+                ogsJob.submit();
+                logger.info("OGS job ID is " + ogsJob.getID() + ".");
+                jobs.put(mergedBam, ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "merge_bam_files", 8);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                jobs.put(mergedBam, localJob);
+                break;
+			default:
+				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
+			}
+		}
+		logger.info("Waiting for picard jobs to finish...");
+		JobUtils.waitForAll(jobs.values());
+		return jobs;
+	}
+
+	/**
+	 * Merge specified samples into new bam files
+	 * Only sets with at least one of the given samples are merged
+	 * Add merged samples to sample name list and current bam files
+	 * If a merge fails, the bam files of the set are reordered to match the reference genome and merged again
+	 * @param samples The samples whose bam files changed
+	 * @param picardJarDir Directory containing Picard executables
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException 
+	 */
+	private void mergeBamFiles(Collection<String> samples, String picardJarDir) throws IOException, InterruptedException, DrmaaException {
+		Map<String, Collection<String>> setsToMerge = getSetsToMerge();
 		if(setsToMerge.isEmpty()) {
 			logger.info("No sets to merge.");
 			return;
@@ -1698,13 +2480,7 @@ public class RNASeqPipeline {
 			}
 		}
 		
-		Map<String, String> mergedFiles = new TreeMap<String, String>();
-		Map<String, Boolean> paired = new TreeMap<String, Boolean>();
-		for(String mergedName : setsToMerge.keySet()) {
-			String mergedBam = currentBamDir + "/" + mergedName + ".bam";
-			mergedFiles.put(mergedName, mergedBam);
-		}
-		ArrayList<Job> jobs = new ArrayList<Job>();
+		Map<String, Collection<String>> inputs = new TreeMap<String, Collection<String>>();
 		for(String mergedName : setsToMerge.keySet()) {
 			
 			// Check if all files to merge are same sequencing format
@@ -1715,69 +2491,66 @@ public class RNASeqPipeline {
 					throw new IllegalArgumentException("All samples to merge must be same format (paired or unpaired)");
 				}
 			}
-			paired.put(mergedName, Boolean.valueOf(isPaired));
 			
-			File file = new File(mergedFiles.get(mergedName));
+			String mergedBam = getMergedSampleBam(mergedName);
+			boolean changed = false;
+			for(String sample : samplesToMerge) {
+				if(samples.contains(sample)) changed = true;
+			}
+			if(!changed) {
+				logger.info("Bam files merged into " + mergedName + " have not changed. Not rerunning bam file merge.");
+				continue;
+			}
+			File file = new File(mergedBam);
 			if(file.exists()) {
 				logger.info("Merged bam file " + file + " already exists. Not rerunning bam file merge.");
 				continue;
 			}
-			logger.info("Creating merged bam file " + file + ".");
-			String inputs = "";
+			Collection<String> bams = new ArrayList<String>();
 			for(String sample : samplesToMerge) {
-				inputs += "INPUT=" + currentBamFiles.get(sample) + " ";
+				bams.add(currentBamFiles.get(sample));
 			}
-			String output = "OUTPUT=" + mergedFiles.get(mergedName);
-			String cmmd = "java -jar " + picardJarDir + "/MergeSamFiles.jar " + inputs + " " + output + " ASSUME_SORTED=true MERGE_SEQUENCE_DICTIONARIES=true";
-			logger.info("Running picard command: " + cmmd);
-			switch(scheduler) {
-			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
-				logger.info("LSF job ID is " + jobID + ".");
-				// Submit job
-				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, currentBamDir + "/merge_bam_files_" + jobID + ".bsub", "week", 8);	
-				job.submit();
-				jobs.add(job);
-				break;
-            case OGS:
-                if(drmaaSession == null) {
-                        throw new IllegalArgumentException("DRMAA session is null. Must provide an active DRMAA session to use OGS. There can only be one active session at a time. Session should have been created in the main method of the class calling this method.");
-                }
-                OGSJob ogsJob = new OGSJob(drmaaSession, cmmd, "merge_bam_files");
-                ogsJob.submit();
-                logger.info("OGS job ID is " + ogsJob.getID() + ".");
-                jobs.add(ogsJob);
-                break;
-			default:
-				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
+			inputs.put(mergedBam, bams);
+		}
+		Map<String, Job> jobs = submitMergeJobs(inputs, picardJarDir);
+		
+		// Bam files whose sequences are in a different order than the reference genome can't be merged
+		Map<String, Collection<String>> retry = new TreeMap<String, Collection<String>>();
+		for(String mergedBam : jobs.keySet()) {
+			if(!jobs.get(mergedBam).failed() && new File(mergedBam).exists()) continue;
+			logger.warn("Could not merge bam files into " + mergedBam + ". Reordering bam files to match reference genome and merging again.");
+			File partial = new File(mergedBam);
+			if(partial.exists() && !partial.delete()) {
+				throw new IOException("Could not delete partial merged bam file " + mergedBam);
 			}
+			Map<String, String> toReorder = new TreeMap<String, String>();
+			for(String bam : inputs.get(mergedBam)) {
+				toReorder.put(bam, bam);
+			}
+			retry.put(mergedBam, reorderBams(toReorder, picardJarDir).values());
+		}
+		if(!retry.isEmpty()) {
+			submitMergeJobs(retry, picardJarDir);
 		}
-		logger.info("Waiting for picard jobs to finish...");
-		JobUtils.waitForAll(jobs);
 		
 		// Update current bam files and sample names
-		currentBamFiles.putAll(mergedFiles);
-		sampleNames.addAll(mergedFiles.keySet());
-		pairedData.putAll(paired);
+		for(String mergedName : setsToMerge.keySet()) {
+			addMergedSample(mergedName, setsToMerge.get(mergedName));
+		}
 	}
 	
 	
 	/**
 	 * Write fragment size distribution for all paired bam files
+	 * The tables are rewritten from all given samples
+	 * @param samples The samples to include
 	 * @throws IOException
 	 */
-	private void makeFragmentSizeDistributionCurrentBams() throws IOException {
+	private void makeFragmentSizeDistributionCurrentBams(Collection<String> samples) throws IOException {
 		
 		String distFileName = currentBamDir + "/fragment_size_histogram";
-		File distFile = new File(distFileName);
 		String medianFileName = currentBamDir + "/fragment_size_median";
-		File medianFile = new File(medianFileName);
 		String indGeneFileName = currentBamDir + "/fragment_size_median_individual_genes";
-		File indGeneFile = new File(indGeneFileName);
-		if(distFile.exists() && medianFile.exists() && indGeneFile.exists()) {
-			logger.warn("Fragment size distribution file " + distFileName + " and median files " + medianFileName + " and " + indGeneFileName + " already exist. Not remaking files.");
-			return;
-		}
 		
 		String annotation = configFile.getSingleValueField(sectionFragmentSizeDistribution, optionFragmentSizeDistBedAnnotation);
 		TranscriptomeSpace coord = new TranscriptomeSpace(BEDFileParser.loadDataByChr(new File(annotation)));
@@ -1788,7 +2561,7 @@ public class RNASeqPipeline {
 		Map<String, EmpiricalDistribution> distributions = new TreeMap<String, EmpiricalDistribution>();
 		Map<String, ScanStatisticDataAlignmentModel> data = new TreeMap<String, ScanStatisticDataAlignmentModel>();
 		
-		for(String sample : sampleNames) {
+		for(String sample : samples) {
 			if(!pairedData.get(sample).booleanValue()) {
 				logger.info("Not making fragment size histogram for sample " + sample + " because data is not paired.");
 				continue;
@@ -1841,14 +2614,14 @@ public class RNASeqPipeline {
 		if(!indGeneNames.isEmpty()) {
 			Map<String, Gene> genesByName = BEDFileParser.loadDataByName(new File(annotation));
 			String header2 = "Gene\t";
-			for(String sampleName : sampleNames) {
+			for(String sampleName : distributions.keySet()) {
 				header2 += sampleName + "\t";
 			}
 			w3.write(header2 + "\n");
 			for(String geneName : indGeneNames) {
 				logger.info(geneName);
 				String line = geneName + "\t";
-				for(String sampleName : sampleNames) {
+				for(String sampleName : distributions.keySet()) {
 					String value;
 					try {
 						value = Double.valueOf(data.get(sampleName).getReadSizeDistribution(genesByName.get(geneName), coord, maxFragmentSize, numBins).getMedianOfAllDataValues()).toString();
@@ -1913,7 +2686,7 @@ public class RNASeqPipeline {
 				logger.info("Running Picard command: " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					// Submit job
 					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, picardMetricsDir + "/picard_alignment_summary_metrics_" + jobID + ".bsub", "hour", 4);
@@ -1928,6 +2701,12 @@ public class RNASeqPipeline {
                     ogsJob.submit();
                     logger.info("OGS job ID is " + ogsJob.getID() + ".");
                     pmJobs.add(ogsJob);
+                    break;
+                case LOCAL:
+                    LocalJob localJob = new LocalJob(cmmd, "picard_metrics", 4);
+                    localJob.submit();
+                    logger.info("Local job ID is " + localJob.getID() + ".");
+                    pmJobs.add(localJob);
                     break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
@@ -1947,7 +2726,7 @@ public class RNASeqPipeline {
 				logger.info("Running Picard command: " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					// Submit job
 					LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, picardMetricsDir + "/picard_insert_size_metrics_" + jobID + ".bsub", "hour", 4);
@@ -1962,6 +2741,12 @@ public class RNASeqPipeline {
                     ogsJob.submit();
                     logger.info("OGS job ID is " + ogsJob.getID() + ".");
                     pmJobs.add(ogsJob);
+                    break;
+                case LOCAL:
+                    LocalJob localJob = new LocalJob(cmmd, "picard_metrics", 4);
+                    localJob.submit();
+                    logger.info("Local job ID is " + localJob.getID() + ".");
+                    pmJobs.add(localJob);
                     break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
@@ -1987,7 +2772,7 @@ public class RNASeqPipeline {
 				logger.info("Running Picard command: " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					// Submit job
 					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, picardMetricsDir + "/picard_rnaseq_metrics_" + jobID + ".bsub", "hour", 4);
@@ -2002,6 +2787,12 @@ public class RNASeqPipeline {
                     ogsJob.submit();
                     logger.info("OGS job ID is " + ogsJob.getID() + ".");
                     pmJobs.add(ogsJob);
+                    break;
+                case LOCAL:
+                    LocalJob localJob = new LocalJob(cmmd, "picard_metrics", 4);
+                    localJob.submit();
+                    logger.info("Local job ID is " + localJob.getID() + ".");
+                    pmJobs.add(localJob);
                     break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
@@ -15,7 +15,11 @@ public enum Scheduler {
 	/**
 	 * Open Grid Scheduler (formerly Sun Grid Engine)
 	 */
-	OGS;
+	OGS,
+	/**
+	 * Jobs run on this machine, see nextgen.core.job.LocalJobPool
+	 */
+	LOCAL;
 	
 	/**
 	 * DRMAA session
@@ -46,6 +50,7 @@ public enum Scheduler {
 		switch(this) {
 		case LSF: return "LSF";
 		case OGS: return "OGS";
+		case LOCAL: return "LOCAL";
 		default: throw new IllegalArgumentException("Not implemented.");
 		}
 	}
@@ -61,6 +66,9 @@ public enum Scheduler {
 		if(name.equals("OGS")) {
 			return OGS;
 		}
+		if(name.equals("LOCAL")) {
+			return LOCAL;
+		}
 		throw new IllegalArgumentException("Scheduler name " + name + " not recognized.");
 	}
 	
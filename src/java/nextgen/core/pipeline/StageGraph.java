@@ -0,0 +1,540 @@
+package nextgen.core.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ggf.drmaa.DrmaaException;
+
+/**
+ * Runs pipeline stages in dependency order with resumable per sample checkpoints
+ * After a stage runs, the size and modification time of its input and output files are recorded for each sample
+ * A stage is rerun for a sample when its checkpoint is missing or stale, or when an upstream stage was rerun for the sample
+ * Outputs of a stale checkpoint are deleted before the rerun, so steps that skip existing files do not keep them
+ * Consecutive per sample stages are run for each sample on its own thread, so a sample moves to the next stage without waiting for the others
+ * Cohort stages wait for every sample to finish the stages before them
+ * Elapsed time per stage is written to a report file after each stage
+ */
+public class StageGraph {
+
+	static Logger logger = Logger.getLogger(StageGraph.class.getName());
+
+	private static String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	private Map<String, Stage> stages;
+	private File checkpointDir;
+	private String reportFile;
+	private List<String> report;
+	private int numThreads;
+	private Map<String, Set<String>> rerunByStage;
+	private Set<Stage> prepared;
+
+	/**
+	 * A pipeline stage with per sample input and output files
+	 */
+	public static abstract class Stage {
+
+		private String name;
+		private Collection<String> dependencies;
+
+		/**
+		 * @param name Stage name, used for the checkpoint file
+		 * @param dependencies Names of stages that must run first
+		 */
+		public Stage(String name, String... dependencies) {
+			this.name = name;
+			this.dependencies = Arrays.asList(dependencies);
+		}
+
+		/**
+		 * @return Stage name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Names of stages that must run first
+		 */
+		public Collection<String> getDependencies() {
+			return dependencies;
+		}
+
+		/**
+		 * Get the files the stage reads for a sample, before the stage runs
+		 * @param sample Sample name
+		 * @return Input file names
+		 */
+		public abstract Collection<String> getInputFiles(String sample);
+
+		/**
+		 * Get the files the stage produces for a sample
+		 * @param sample Sample name
+		 * @return Output file names
+		 */
+		public abstract Collection<String> getOutputFiles(String sample);
+
+		/**
+		 * Run the stage for some samples
+		 * Per sample stages are called with one sample at a time, from several threads
+		 * @param samples The samples without a valid checkpoint
+		 * @throws IOException
+		 * @throws InterruptedException
+		 * @throws DrmaaException
+		 */
+		public abstract void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException;
+
+		/**
+		 * Update pipeline state for a sample whose outputs are reused from an earlier run
+		 * @param sample Sample name
+		 */
+		public void restore(String sample) {}
+
+		/**
+		 * Whether the stage processes each sample independently of the others
+		 * A sample can then go through consecutive per sample stages while other samples are still in earlier ones
+		 * @return True if the stage can run for one sample at a time
+		 */
+		public boolean isPerSample() {
+			return false;
+		}
+
+		/**
+		 * Set up state shared by all samples, such as an index, before the stage first runs for any sample
+		 * Called at most once per run of the graph, and not at all if every sample is up to date
+		 * @throws IOException
+		 * @throws InterruptedException
+		 * @throws DrmaaException
+		 */
+		public void prepare() throws IOException, InterruptedException, DrmaaException {}
+
+		/**
+		 * Get cohort level files made from the outputs of all samples, such as tables with a row per sample
+		 * @return Summary file names
+		 */
+		public Collection<String> getSummaryFiles() {
+			return Collections.emptyList();
+		}
+
+		/**
+		 * Write the summary files from all samples
+		 * Called after the stage when it ran for any sample or a summary file is missing
+		 * @param samples All samples
+		 * @throws IOException
+		 * @throws InterruptedException
+		 * @throws DrmaaException
+		 */
+		public void summarize(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {}
+
+	}
+
+	/**
+	 * Run per sample stages on one thread
+	 * @param checkpointDirectory Directory to write checkpoint files to
+	 * @param reportFile File to write the stage timing report to
+	 */
+	public StageGraph(String checkpointDirectory, String reportFile) {
+		this(checkpointDirectory, reportFile, 1);
+	}
+
+	/**
+	 * @param checkpointDirectory Directory to write checkpoint files to
+	 * @param reportFile File to write the stage timing report to
+	 * @param numThreads Number of samples to run through per sample stages at once
+	 */
+	public StageGraph(String checkpointDirectory, String reportFile, int numThreads) {
+		this.stages = new LinkedHashMap<String, Stage>();
+		this.checkpointDir = new File(checkpointDirectory);
+		this.reportFile = reportFile;
+		this.report = new ArrayList<String>();
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Add a stage
+	 * Dependencies must already have been added
+	 * @param stage The stage
+	 */
+	public void addStage(Stage stage) {
+		if(stages.containsKey(stage.getName())) {
+			throw new IllegalArgumentException("Stage " + stage.getName() + " already added");
+		}
+		for(String dependency : stage.getDependencies()) {
+			if(!stages.containsKey(dependency)) {
+				throw new IllegalArgumentException("Stage " + stage.getName() + " depends on unknown stage " + dependency);
+			}
+		}
+		stages.put(stage.getName(), stage);
+	}
+
+	/**
+	 * Run all stages for the samples
+	 * Stages run in the order they were added, which respects dependencies
+	 * Samples added to the collection by a cohort stage are included in later stages
+	 * @param samples Sample names
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	public void run(Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+		if(!checkpointDir.exists() && !checkpointDir.mkdirs()) {
+			throw new IOException("Could not create directory " + checkpointDir);
+		}
+		rerunByStage = new TreeMap<String, Set<String>>();
+		prepared = Collections.synchronizedSet(new HashSet<Stage>());
+		List<Stage> segment = new ArrayList<Stage>();
+		for(Stage stage : stages.values()) {
+			if(stage.isPerSample()) {
+				segment.add(stage);
+				continue;
+			}
+			runPerSampleStages(segment, samples);
+			segment.clear();
+			runCohortStage(stage, samples);
+		}
+		runPerSampleStages(segment, samples);
+	}
+
+	/**
+	 * Run a stage that processes its pending samples together
+	 * @param stage The stage
+	 * @param samples All samples
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void runCohortStage(Stage stage, Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+		long start = System.currentTimeMillis();
+		Collection<String> allSamples = new ArrayList<String>(samples);
+		Map<String, String> checkpoint = readCheckpoint(stage);
+		Map<String, String> inputFingerprints = new TreeMap<String, String>();
+		Set<String> pending = Collections.synchronizedSet(new TreeSet<String>());
+		for(String sample : allSamples) {
+			inputFingerprints.put(sample, fingerprint(stage.getInputFiles(sample)));
+			if(isStale(stage, sample, inputFingerprints.get(sample), checkpoint)) {
+				pending.add(sample);
+			}
+		}
+		rerunByStage.put(stage.getName(), pending);
+
+		if(pending.isEmpty()) {
+			logger.info("");
+			logger.info("All outputs of stage " + stage.getName() + " are up to date. Skipping stage.");
+		} else {
+			logger.info("");
+			logger.info("Running stage " + stage.getName() + " for " + pending.size() + " of " + allSamples.size() + " samples...");
+			prepare(stage);
+			stage.run(new TreeSet<String>(pending));
+		}
+
+		// Reused samples still update pipeline state
+		for(String sample : allSamples) {
+			if(!pending.contains(sample)) stage.restore(sample);
+		}
+
+		for(String sample : pending) {
+			recordCheckpoint(stage, sample, inputFingerprints.get(sample), checkpoint);
+		}
+		writeCheckpoint(stage, checkpoint);
+		summarize(stage, samples);
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		logger.info("Stage " + stage.getName() + " took " + seconds + " seconds.");
+		report.add(stage.getName() + "\t" + pending.size() + "\t" + (allSamples.size() - pending.size()) + "\t" + seconds);
+		writeReport();
+	}
+
+	/**
+	 * Run each sample through a series of per sample stages independently of the other samples
+	 * Checkpoints are written as each sample finishes each stage
+	 * If a sample fails, the other samples still finish, then the first failure is thrown
+	 * Stage times in the report are summed over samples
+	 * @param segment Consecutive per sample stages
+	 * @param samples All samples
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void runPerSampleStages(final List<Stage> segment, Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+		if(segment.isEmpty()) return;
+		List<String> allSamples = new ArrayList<String>(samples);
+		final Map<Stage, Map<String, String>> checkpoints = new LinkedHashMap<Stage, Map<String, String>>();
+		final Map<Stage, AtomicLong> millis = new LinkedHashMap<Stage, AtomicLong>();
+		for(Stage stage : segment) {
+			checkpoints.put(stage, readCheckpoint(stage));
+			millis.put(stage, new AtomicLong());
+			rerunByStage.put(stage.getName(), Collections.synchronizedSet(new TreeSet<String>()));
+		}
+		logger.info("");
+		List<String> names = new ArrayList<String>();
+		for(Stage stage : segment) {
+			names.add(stage.getName());
+		}
+		logger.info("Running per sample stages " + names + " for " + allSamples.size() + " samples...");
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, Math.max(1, allSamples.size())));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(final String sample : allSamples) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for(Stage stage : segment) {
+						long start = System.currentTimeMillis();
+						runSample(stage, sample, checkpoints.get(stage));
+						millis.get(stage).addAndGet(System.currentTimeMillis() - start);
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+		Throwable failure = null;
+		for(Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch(ExecutionException e) {
+				if(failure == null) failure = e.getCause();
+			}
+		}
+		if(failure != null) {
+			if(failure instanceof IOException) throw (IOException) failure;
+			if(failure instanceof InterruptedException) throw (InterruptedException) failure;
+			if(failure instanceof DrmaaException) throw (DrmaaException) failure;
+			if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if(failure instanceof Error) throw (Error) failure;
+			throw new IllegalStateException(failure);
+		}
+
+		for(Stage stage : segment) {
+			long start = System.currentTimeMillis();
+			summarize(stage, samples);
+			int numRun = rerunByStage.get(stage.getName()).size();
+			double seconds = (millis.get(stage).get() + System.currentTimeMillis() - start) / 1000.0;
+			logger.info("Stage " + stage.getName() + " ran for " + numRun + " of " + allSamples.size() + " samples and took " + seconds + " seconds summed over samples.");
+			report.add(stage.getName() + "\t" + numRun + "\t" + (allSamples.size() - numRun) + "\t" + seconds);
+		}
+		writeReport();
+	}
+
+	/**
+	 * Run a per sample stage for one sample if its checkpoint is stale, otherwise restore the sample
+	 * @param stage The stage
+	 * @param sample Sample name
+	 * @param checkpoint Checkpoint of the stage, shared by the threads
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void runSample(Stage stage, String sample, Map<String, String> checkpoint) throws IOException, InterruptedException, DrmaaException {
+		String inputFingerprint = fingerprint(stage.getInputFiles(sample));
+		boolean stale;
+		synchronized(checkpoint) {
+			stale = isStale(stage, sample, inputFingerprint, checkpoint);
+		}
+		if(!stale) {
+			stage.restore(sample);
+			return;
+		}
+		rerunByStage.get(stage.getName()).add(sample);
+		logger.info("Running stage " + stage.getName() + " for sample " + sample + "...");
+		prepare(stage);
+		stage.run(Collections.singletonList(sample));
+		synchronized(checkpoint) {
+			recordCheckpoint(stage, sample, inputFingerprint, checkpoint);
+			writeCheckpoint(stage, checkpoint);
+		}
+	}
+
+	/**
+	 * Whether a stage must run for a sample
+	 * Deletes the outputs recorded by a checkpoint that no longer matches, including when an upstream stage reran
+	 * Outputs without any checkpoint, such as those of a run before checkpoints were kept, are left for the stage to reuse or replace
+	 * @param stage The stage
+	 * @param sample Sample name
+	 * @param inputFingerprint Fingerprint of the input files
+	 * @param checkpoint Checkpoint of the stage
+	 * @return True iff the checkpoint is missing or stale or an upstream stage was rerun for the sample
+	 */
+	private boolean isStale(Stage stage, String sample, String inputFingerprint, Map<String, String> checkpoint) {
+		boolean upstreamRerun = false;
+		for(String dependency : stage.getDependencies()) {
+			if(rerunByStage.get(dependency).contains(sample)) upstreamRerun = true;
+		}
+		String current = fingerprint(inputFingerprint, stage.getOutputFiles(sample));
+		String previous = checkpoint.get(sample);
+		if(!upstreamRerun && current != null && current.equals(previous)) {
+			return false;
+		}
+		if(previous != null) {
+			for(String output : stage.getOutputFiles(sample)) {
+				File file = new File(output);
+				if(file.exists() && !file.delete()) {
+					logger.warn("Could not delete stale output " + output + " of stage " + stage.getName() + ".");
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record the checkpoint of a sample after the stage ran
+	 * @param stage The stage
+	 * @param sample Sample name
+	 * @param inputFingerprint Fingerprint of the input files before the stage ran
+	 * @param checkpoint Checkpoint to update
+	 */
+	private static void recordCheckpoint(Stage stage, String sample, String inputFingerprint, Map<String, String> checkpoint) {
+		String done = fingerprint(inputFingerprint, stage.getOutputFiles(sample));
+		if(done == null) {
+			logger.warn("Stage " + stage.getName() + " did not produce all outputs for sample " + sample + ". Sample will be rerun next time.");
+			checkpoint.remove(sample);
+		} else {
+			checkpoint.put(sample, done);
+		}
+	}
+
+	/**
+	 * Prepare a stage the first time it runs for any sample
+	 * Threads reaching the stage at the same time wait for the one preparing it
+	 * @param stage The stage
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void prepare(Stage stage) throws IOException, InterruptedException, DrmaaException {
+		synchronized(stage) {
+			if(prepared.contains(stage)) return;
+			stage.prepare();
+			prepared.add(stage);
+		}
+	}
+
+	/**
+	 * Write the summary files of a stage if it ran for any sample or a summary file is missing
+	 * @param stage The stage
+	 * @param samples All samples
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException
+	 */
+	private void summarize(Stage stage, Collection<String> samples) throws IOException, InterruptedException, DrmaaException {
+		Collection<String> summaryFiles = stage.getSummaryFiles();
+		if(summaryFiles.isEmpty()) return;
+		if(rerunByStage.get(stage.getName()).isEmpty() && fingerprint(summaryFiles) != null) return;
+		logger.info("Writing summary files of stage " + stage.getName() + "...");
+		stage.summarize(new ArrayList<String>(samples));
+	}
+
+	/**
+	 * Get the fingerprint of a stage for a sample
+	 * @param inputFingerprint Fingerprint of the input files
+	 * @param outputs Output files
+	 * @return Fingerprint of inputs and outputs, or null if an output file does not exist
+	 */
+	private static String fingerprint(String inputFingerprint, Collection<String> outputs) {
+		String outputFingerprint = fingerprint(outputs);
+		if(outputFingerprint == null) return null;
+		return inputFingerprint + "\t" + outputFingerprint;
+	}
+
+	/**
+	 * Get the fingerprint of a set of files from their sizes and modification times
+	 * @param fileNames File names
+	 * @return Fingerprint, or null if a file does not exist
+	 */
+	static String fingerprint(Collection<String> fileNames) {
+		StringBuilder sb = new StringBuilder();
+		for(String fileName : fileNames) {
+			File file = new File(fileName);
+			if(!file.exists()) return null;
+			if(sb.length() > 0) sb.append(";");
+			sb.append(fileName + ":" + file.length() + ":" + file.lastModified());
+		}
+		return sb.toString();
+	}
+
+	private File getCheckpointFile(Stage stage) {
+		return new File(checkpointDir, stage.getName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * @param stage The stage
+	 * @return Map of sample name to fingerprint from the last run of the stage
+	 * @throws IOException
+	 */
+	private Map<String, String> readCheckpoint(Stage stage) throws IOException {
+		Map<String, String> rtrn = new TreeMap<String, String>();
+		File file = getCheckpointFile(stage);
+		if(!file.exists()) return rtrn;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if(tab < 0) continue;
+				rtrn.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} finally {
+			reader.close();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Write the checkpoint to a temporary file and rename it so an interrupted write leaves the old checkpoint
+	 * @param stage The stage
+	 * @param checkpoint Map of sample name to fingerprint
+	 * @throws IOException
+	 */
+	private void writeCheckpoint(Stage stage, Map<String, String> checkpoint) throws IOException {
+		File file = getCheckpointFile(stage);
+		File tmp = new File(file.getPath() + ".tmp");
+		FileWriter w = new FileWriter(tmp);
+		try {
+			for(String sample : checkpoint.keySet()) {
+				w.write(sample + "\t" + checkpoint.get(sample) + "\n");
+			}
+		} finally {
+			w.close();
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Could not replace checkpoint file " + file);
+		}
+		if(!tmp.renameTo(file)) {
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	private void writeReport() throws IOException {
+		FileWriter w = new FileWriter(reportFile);
+		try {
+			w.write("Stage\tSamples_run\tSamples_skipped\tSeconds\n");
+			for(String line : report) {
+				w.write(line + "\n");
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+}
@@ -16,6 +16,7 @@ import java.util.TreeMap;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.pipeline.Scheduler;
 
@@ -183,7 +184,7 @@ public class AlignmentUtils {
 		
 		String cmmd = bowtie2BuildExecutable + " " + fastaFile + " " + outBtIndexBase;
 		logger.info("Submitting command " + cmmd);
-		String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+		String jobID = LSFJob.generateJobID();
 		String output = bsubOutputDir + "/make_bowtie_index_" + jobID + ".bsub";
 		switch(scheduler) {
 			case LSF:
@@ -199,6 +200,12 @@ public class AlignmentUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 ogsJob.waitFor();
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "bowtie2_index", 4);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                localJob.waitFor();
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -299,7 +306,7 @@ public class AlignmentUtils {
 		
 		switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				String output = bsubOutDir + "/run_bowtie_" + jobID + ".bsub";
 				logger.info("Writing bsub output to file " + output);
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, output, "week", 4);
@@ -314,6 +321,11 @@ public class AlignmentUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 return ogsJob;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "bowtie2", 4);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                return localJob;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 		}
@@ -531,7 +543,7 @@ public class AlignmentUtils {
 			
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, tophatCmmd, outdir + "/tophat_" + jobID + ".bsub", queueName, 16);
 				tophatJobs.add(lsfJob);
 				logger.info("LSF job ID is " + jobID + ".");
@@ -546,6 +558,12 @@ public class AlignmentUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 tophatJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(tophatCmmd, "tophat", 16);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                tophatJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
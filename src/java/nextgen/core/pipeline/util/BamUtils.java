@@ -13,6 +13,7 @@ import net.sf.samtools.SAMFileReader;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.pipeline.Scheduler;
 
@@ -151,7 +152,7 @@ public class BamUtils {
 			logger.info("Running command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutputDir + "/compute_genomic_space_stats_" + jobID + ".bsub", "week", 32);		
@@ -166,6 +167,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 jobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "genomic_space_stats", 32);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                jobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -248,7 +255,7 @@ public class BamUtils {
 			logger.info("Running command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutDir + "/compute_transcriptome_space_stats_" + jobID + ".bsub", "week", 32);	
@@ -263,6 +270,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 jobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "transcriptome_space_stats", 32);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                jobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -342,7 +355,7 @@ public class BamUtils {
 			logger.info("Running command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutDir + "/create_paired_end_bam_" + jobID + ".bsub", "week", 32);		
@@ -357,6 +370,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 jobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "paired_end_writer", 32);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                jobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -397,7 +416,7 @@ public class BamUtils {
 			logger.info("Running igvtools command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				// Submit job
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutDir + "/make_tdf_" + jobID + ".bsub", "hour", 1);
@@ -412,6 +431,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 tdfJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "make_tdf", 1);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                tdfJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -538,7 +563,7 @@ public class BamUtils {
 			logger.info("Running Samtools command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutputDirs.get(sample) + "/sam_to_bam_" + jobID + ".bsub", "hour", 1);
 				lsfJob.submit();
@@ -552,6 +577,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 cbJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "sam_to_bam", 1);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                cbJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -669,7 +700,7 @@ public class BamUtils {
 			logger.info("Running Picard command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutputDirs.get(sample) + "/sort_bam_" + jobID + ".bsub", "hour", 4);
 				lsfJob.submit();
@@ -683,6 +714,12 @@ public class BamUtils {
                 ogsJob.submit();
                 logger.info("OGS job ID is " + ogsJob.getID() + ".");
                 sbJobs.add(ogsJob);
+                break;
+            case LOCAL:
+                LocalJob localJob = new LocalJob(cmmd, "sort_bam", 4);
+                localJob.submit();
+                logger.info("Local job ID is " + localJob.getID() + ".");
+                sbJobs.add(localJob);
                 break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -718,7 +755,7 @@ public class BamUtils {
 			logger.info("Running samtools command: " + cmmd);
 			switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					// Submit job
 					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, indexfile.getParent() + "/index_bam_" + jobID + ".bsub", "hour", 1);
@@ -733,6 +770,12 @@ public class BamUtils {
 	                ogsJob.submit();
 	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                indexJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "index_bam", 1);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                indexJobs.add(localJob);
 	                break;
 	
 				default:
@@ -7,6 +7,7 @@ import java.util.Collection;
 
 
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.pipeline.Scheduler;
 
@@ -55,7 +56,7 @@ public class FastaUtils {
 		logger.info("Running samtools command: " + cmmd);
 		switch(scheduler) {
 		case LSF:
-			String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+			String jobID = LSFJob.generateJobID();
 			logger.info("LSF job ID is " + jobID + ".");
 			LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bsubOutDir + "/index_fasta_" + jobID + ".bsub", "hour", 4);
 			job.submit();
@@ -72,6 +73,13 @@ public class FastaUtils {
 			logger.info("Waiting for samtools faidx job to finish...");
 			ogsJob.waitFor();
             break;
+        case LOCAL:
+            LocalJob localJob = new LocalJob(cmmd, "index_fasta", 4);
+            localJob.submit();
+            logger.info("Local job ID is " + localJob.getID() + ".");
+			logger.info("Waiting for samtools faidx job to finish...");
+			localJob.waitFor();
+            break;
 		default:
 			throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 		}
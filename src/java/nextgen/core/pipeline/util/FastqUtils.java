@@ -13,6 +13,7 @@ import java.util.TreeSet;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.pipeline.Scheduler;
 
@@ -112,7 +113,7 @@ public class FastqUtils {
 				logger.info("Running fastx command: " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, "fastx_clipper_" + jobID + ".bsub", "week", 4);
 					lsfJob.submit();
@@ -127,6 +128,12 @@ public class FastqUtils {
 					logger.info("OGS job ID is " + ogsJob.getID() + ".");
 					jobs.add(ogsJob);
 					break;
+				case LOCAL:
+					LocalJob localJob = new LocalJob(cmmd, "fastx_clip_adapters", 4);
+					localJob.submit();
+					logger.info("Local job ID is " + localJob.getID() + ".");
+					jobs.add(localJob);
+					break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 				}
@@ -156,7 +163,7 @@ public class FastqUtils {
 						logger.info("Running fastx command: " + cmmd);
 						switch(scheduler) {
 						case LSF:
-							String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+							String jobID = LSFJob.generateJobID();
 							logger.info("LSF job ID is " + jobID + ".");
 							LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, "fastx_clipper_" + jobID + ".bsub", "week", 4);
 							lsfJob.submit();
@@ -171,6 +178,12 @@ public class FastqUtils {
 							logger.info("OGS job ID is " + ogsJob.getID() + ".");
 							jobs.add(ogsJob);
 							break;
+						case LOCAL:
+							LocalJob localJob = new LocalJob(cmmd, "fastx_clip_adapters", 4);
+							localJob.submit();
+							logger.info("Local job ID is " + localJob.getID() + ".");
+							jobs.add(localJob);
+							break;
 						default:
 							throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 						}
@@ -224,7 +237,7 @@ public class FastqUtils {
 			logger.info("Running command: " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, "filter_fastq_" + jobID + ".bsub", "week", 32);
 				lsfJob.submit();
@@ -239,6 +252,12 @@ public class FastqUtils {
 				logger.info("OGS job ID is " + ogsJob.getID() + ".");
 				filterJobs.add(ogsJob);
 				break;
+			case LOCAL:
+				LocalJob localJob = new LocalJob(cmmd, "filter_fastq", 32);
+				localJob.submit();
+				logger.info("Local job ID is " + localJob.getID() + ".");
+				filterJobs.add(localJob);
+				break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
 			}
@@ -15,6 +15,7 @@ import nextgen.core.annotation.Gene;
 import nextgen.core.job.Job;
 import nextgen.core.job.JobUtils;
 import nextgen.core.job.LSFJob;
+import nextgen.core.job.LocalJob;
 import nextgen.core.job.OGSJob;
 import nextgen.core.pipeline.Scheduler;
 import nextgen.core.readFilters.FirstOfPairFilter;
@@ -45,7 +46,7 @@ public class WigUtils {
 	 * @param refFasta Fasta file of sequences these bam files were aligned against
 	 * @param geneBedFile Bed file of genes to count reads in or null if using genomic space
 	 * @param wigWriterJar WigWriter jar file
-	 * @param wigToBigWigExecutable WigToBigWig executable file
+	 * @param wigToBigWigExecutable WigToBigWig executable file, or null to have WigWriter write the bigwig files directly
 	 * @param scheduler Scheduler
 	 * @param drmaaSession Active DRMAA session. Pass null if not using OGS. There should only be one active session at a time. Session should have been created in the main method of the class calling this method.
 	 * @throws IOException
@@ -76,6 +77,12 @@ public class WigUtils {
 		if(geneBedFile == null) {
 			chrSizesForWigWriter = chrSizesForWigToBigWig;
 		}
+		
+		// Without the UCSC converter, WigWriter writes the bigwig files itself
+		String bigwigArgs = "";
+		if(wigToBigWigExecutable == null) {
+			bigwigArgs = " -bw true -bs " + chrSizesForWigToBigWig;
+		}
 	
 		// Make file names
 		for(String sampleName : bamFiles.keySet()) {
@@ -109,13 +116,13 @@ public class WigUtils {
 				if(read1wigFile.exists() || read1bigwigFile.exists()) {
 					logger.warn("Read 1 wig file or bigwig file for sample " + sampleName + " already exists. Not remaking wig file.");
 				} else {
-					String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix1 + " -c " + chrSizesForWigWriter + " -sp beginning -pp true -r1 true -pe false"; 
+					String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix1 + " -c " + chrSizesForWigWriter + " -sp beginning -pp true -r1 true -pe false" + bigwigArgs; 
 					logger.info("");
 					logger.info("Writing fragment ends of read 1 from bam file " + bamFile + " to wig file " + wig1 + ".");
 					logger.info("Running WigWriter command " + cmmd);
 					switch(scheduler) {
 					case LSF:
-						String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+						String jobID = LSFJob.generateJobID();
 						logger.info("LSF job ID is " + jobID + ".");
 						LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_fragment_ends_" + jobID + ".bsub", "week", 32);
 						lsfJob.submit();
@@ -129,6 +136,12 @@ public class WigUtils {
 		                ogsJob.submit();
 		                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 		                wigJobs.add(ogsJob);
+		                break;
+		            case LOCAL:
+		                LocalJob localJob = new LocalJob(cmmd, "wig_fragment_ends", 32);
+		                localJob.submit();
+		                logger.info("Local job ID is " + localJob.getID() + ".");
+		                wigJobs.add(localJob);
 		                break;
 					default:
 						throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -147,13 +160,13 @@ public class WigUtils {
 			} else {
 				logger.info("Writing fragment midpoints from bam file " + bamFile + " to wig file " + midpointWigFile + ".");
 				String prefix = midpointWigFileName.replaceAll(".wig", "");
-				String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix + " -c " + chrSizesForWigWriter + " -sp midpoint -pp true -pe true"; 
+				String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix + " -c " + chrSizesForWigWriter + " -sp midpoint -pp true -pe true" + bigwigArgs; 
 				logger.info("");
 				logger.info("Writing fragment midpoints from bam file " + bamFile + " to wig file " + midpointWigFileName + ".");
 				logger.info("Running WigWriter command " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_fragment_midpoints_" + jobID + ".bsub", "week", 32);
 					lsfJob.submit();
@@ -167,6 +180,12 @@ public class WigUtils {
 	                ogsJob.submit();
 	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                wigJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "wig_fragment_midpoints", 32);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                wigJobs.add(localJob);
 	                break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -184,13 +203,13 @@ public class WigUtils {
 					logger.warn("Read 2 wig file or bigwig file for sample " + sampleName + " already exists. Not remaking wig file.");
 				} else {
 					String prefix2 = wig2.replaceAll(".wig", "");
-					String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix2 + " -c " + chrSizesForWigWriter + " -sp beginning -pp true -r2 true -pe false"; 
+					String cmmd = "java -Xmx30g -Xms29g -Xmn28g -jar " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -o " + prefix2 + " -c " + chrSizesForWigWriter + " -sp beginning -pp true -r2 true -pe false" + bigwigArgs; 
 					logger.info("");
 					logger.info("Writing fragment ends of read 2 from bam file " + bamFile + " to wig file " + wig2 + ".");
 					logger.info("Running WigWriter command " + cmmd);
 					switch(scheduler) {
 					case LSF:
-						String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+						String jobID = LSFJob.generateJobID();
 						logger.info("LSF job ID is " + jobID + ".");
 						LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_fragment_ends_" + jobID + ".bsub", "week", 32);
 						lsfJob.submit();
@@ -204,6 +223,12 @@ public class WigUtils {
 		                ogsJob.submit();
 		                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 		                wigJobs.add(ogsJob);
+		                break;
+		            case LOCAL:
+		                LocalJob localJob = new LocalJob(cmmd, "wig_fragment_ends", 32);
+		                localJob.submit();
+		                logger.info("Local job ID is " + localJob.getID() + ".");
+		                wigJobs.add(localJob);
 		                break;
 					default:
 						throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -216,6 +241,9 @@ public class WigUtils {
 		logger.info("");
 		logger.info("Waiting for WigWriter jobs to finish...");
 		JobUtils.waitForAll(wigJobs);
+		if(wigToBigWigExecutable == null) {
+			return;
+		}
 	
 		
 		
@@ -234,7 +262,7 @@ public class WigUtils {
 				logger.info("Running UCSC command " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					LSFJob lsfJob = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_to_bigwig_" + jobID + ".bsub", "hour", 4);
 					lsfJob.submit();
@@ -248,6 +276,12 @@ public class WigUtils {
 	                ogsJob.submit();
 	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                bigwigJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "bigwig_fragment_ends", 4);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                bigwigJobs.add(localJob);
 	                break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -267,7 +301,7 @@ public class WigUtils {
 				logger.info("Running UCSC command " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_to_bigwig_" + jobID + ".bsub", "hour", 4);
 					job.submit();
@@ -281,6 +315,12 @@ public class WigUtils {
 	                ogsJob.submit();
 	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                bigwigJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "bigwig_fragment_ends", 4);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                bigwigJobs.add(localJob);
 	                break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -300,7 +340,7 @@ public class WigUtils {
 				logger.info("Running UCSC command " + cmmd);
 				switch(scheduler) {
 				case LSF:
-					String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+					String jobID = LSFJob.generateJobID();
 					logger.info("LSF job ID is " + jobID + ".");
 					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_to_bigwig_" + jobID + ".bsub", "hour", 4);
 					job.submit();
@@ -314,6 +354,12 @@ public class WigUtils {
 	                ogsJob.submit();
 	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                bigwigJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "bigwig_fragment_ends", 4);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                bigwigJobs.add(localJob);
 	                break;
 				default:
 					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -357,7 +403,7 @@ public class WigUtils {
 	 * @param bamDir Bam directory
 	 * @param geneBedFile Bed file of genes to use
 	 * @param refFasta Reference fasta file
-	 * @param wigToBigWigExecutable WigToBigWig executable file
+	 * @param wigToBigWigExecutable WigToBigWig executable file, or null to have WigWriter write the bigwig files directly
 	 * @param wigWriterJar WigWriter jar file
 	 * @param scheduler Scheduler
 	 * @param drmaaSession Active DRMAA session. Pass null if not using OGS. There should only be one active session at a time. Session should have been created in the main method of the class calling this method.
@@ -375,6 +421,10 @@ public class WigUtils {
 			chrNames.addAll(FastaSequenceIO.getSequenceNames(refFasta));
 			chrSizeFile = FastaSequenceIO.createSizeFile(refFasta);
 		}
+		if(wigToBigWigExecutable == null) {
+			writeBigwigPositionCount(bamFiles, bamDir, geneBedFile, refFasta, chrSizeFile, wigWriterJar, scheduler, drmaaSession);
+			return;
+		}
 		Map<String, Map<String, String>> normalizedWigFiles = new TreeMap<String, Map<String, String>>();
 		Map<String, String> fullNormalizedWigFiles = new TreeMap<String, String>();
 		Map<String, String> fullNormalizedBigwigFiles = new TreeMap<String, String>();
@@ -423,7 +473,7 @@ public class WigUtils {
 					logger.info("Running command: " + cmmd);
 					switch(scheduler) {
 					case LSF:
-						String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+						String jobID = LSFJob.generateJobID();
 						logger.info("LSF job ID is " + jobID + ".");
 						// Submit job
 						LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/write_wig_normalized_" + sample + "_" + chr + "_" + jobID + ".bsub", "week", 16);
@@ -438,6 +488,12 @@ public class WigUtils {
 	                    ogsJob.submit();
 	                    logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                    wigJobs.add(ogsJob);
+	                    break;
+	                case LOCAL:
+	                    LocalJob localJob = new LocalJob(cmmd, "wig_position_count", 16);
+	                    localJob.submit();
+	                    logger.info("Local job ID is " + localJob.getID() + ".");
+	                    wigJobs.add(localJob);
 	                    break;
 					default:
 						throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -464,7 +520,7 @@ public class WigUtils {
 					logger.info("Running command: " + cmmd);
 					switch(scheduler) {
 					case LSF:
-						String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+						String jobID = LSFJob.generateJobID();
 						logger.info("LSF job ID is " + jobID + ".");
 						// Submit job
 						LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/write_wig_unnormalized_" + sample + "_" + chr + "_" + jobID + ".bsub", "week", 16);
@@ -479,6 +535,12 @@ public class WigUtils {
 	                    ogsJob.submit();
 	                    logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	                    wigJobs.add(ogsJob);
+	                    break;
+	                case LOCAL:
+	                    LocalJob localJob = new LocalJob(cmmd, "wig_position_count", 16);
+	                    localJob.submit();
+	                    logger.info("Local job ID is " + localJob.getID() + ".");
+	                    wigJobs.add(localJob);
 	                    break;
 					default:
 						throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " not supported.");
@@ -546,7 +608,7 @@ public class WigUtils {
 			logger.info("Running UCSC command " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_to_bigwig_normalized_" + jobID + ".bsub", "hour", 4);
 				job.submit();
@@ -560,6 +622,12 @@ public class WigUtils {
 	            ogsJob.submit();
 	            logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	            bigwigJobs.add(ogsJob);
+	            break;
+	        case LOCAL:
+	            LocalJob localJob = new LocalJob(cmmd, "wig_position_count", 4);
+	            localJob.submit();
+	            logger.info("Local job ID is " + localJob.getID() + ".");
+	            bigwigJobs.add(localJob);
 	            break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
@@ -580,7 +648,7 @@ public class WigUtils {
 			logger.info("Running UCSC command " + cmmd);
 			switch(scheduler) {
 			case LSF:
-				String jobID = Long.valueOf(System.currentTimeMillis()).toString();
+				String jobID = LSFJob.generateJobID();
 				logger.info("LSF job ID is " + jobID + ".");
 				LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/wig_to_bigwig_unnormalized_" + jobID + ".bsub", "hour", 4);
 				job.submit();
@@ -594,6 +662,12 @@ public class WigUtils {
 	            ogsJob.submit();
 	            logger.info("OGS job ID is " + ogsJob.getID() + ".");
 	            bigwigJobs.add(ogsJob);
+	            break;
+	        case LOCAL:
+	            LocalJob localJob = new LocalJob(cmmd, "wig_position_count", 4);
+	            localJob.submit();
+	            logger.info("Local job ID is " + localJob.getID() + ".");
+	            bigwigJobs.add(localJob);
 	            break;
 			default:
 				throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
@@ -604,6 +678,71 @@ public class WigUtils {
 		logger.info("Done writing wig files.");
 	}
 
+	/**
+	 * Write bigwig files of raw position count and position count normalized by average coverage over gene with WigWriter, without per chromosome wig files
+	 * @param bamFiles Bam files by sample name
+	 * @param bamDir Bam directory
+	 * @param geneBedFile Bed file of genes to use
+	 * @param refFasta Reference fasta file
+	 * @param chrSizeFile Chromosome size file for genomic space or null if using transcriptome space
+	 * @param wigWriterJar WigWriter jar file
+	 * @param scheduler Scheduler
+	 * @param drmaaSession Active DRMAA session. Pass null if not using OGS.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws DrmaaException 
+	 */
+	private static void writeBigwigPositionCount(Map<String, String> bamFiles, String bamDir, String geneBedFile, String refFasta, String chrSizeFile, String wigWriterJar, Scheduler scheduler, Session drmaaSession) throws IOException, InterruptedException, DrmaaException {
+		String sizeFile = FastaUtils.writeSizeFile(refFasta);
+		ArrayList<Job> bigwigJobs = new ArrayList<Job>();
+		for(String sample : bamFiles.keySet()) {
+			String bamFile = bamFiles.get(sample);
+			for(boolean normalize : new boolean[] {true, false}) {
+				String prefix = bamDir + "/" + sample + (normalize ? ".normalized" : "");
+				String bigwig = prefix + ".bw";
+				if(new File(bigwig).exists()) {
+					logger.warn("Bigwig file " + bigwig + " already exists. Not remaking file.");
+					continue;
+				}
+				String cmmd = "java -jar -Xmx30g -Xms29g -Xmn28g " + wigWriterJar + " -b " + bamFile + " -g " + geneBedFile + " -n " + normalize + " -o " + prefix + " -bw true -bs " + sizeFile;
+				if(chrSizeFile != null) {
+					cmmd += " -c " + chrSizeFile;
+				}
+				logger.info("Writing bigwig file " + bigwig + "...");
+				logger.info("Running command: " + cmmd);
+				switch(scheduler) {
+				case LSF:
+					String jobID = LSFJob.generateJobID();
+					logger.info("LSF job ID is " + jobID + ".");
+					LSFJob job = new LSFJob(Runtime.getRuntime(), jobID, cmmd, bamDir + "/write_bigwig_" + sample + "_" + jobID + ".bsub", "week", 32);
+					job.submit();
+					bigwigJobs.add(job);
+					break;
+	            case OGS:
+	                if(drmaaSession == null) {
+	                        throw new IllegalArgumentException("DRMAA session is null. Must provide an active DRMAA session to use OGS. There can only be one active session at a time. Session should have been created in the main method of the class calling this method.");
+	                }
+	                OGSJob ogsJob = new OGSJob(drmaaSession, cmmd, "bigwig_position_count");
+	                ogsJob.submit();
+	                logger.info("OGS job ID is " + ogsJob.getID() + ".");
+	                bigwigJobs.add(ogsJob);
+	                break;
+	            case LOCAL:
+	                LocalJob localJob = new LocalJob(cmmd, "bigwig_position_count", 32);
+	                localJob.submit();
+	                logger.info("Local job ID is " + localJob.getID() + ".");
+	                bigwigJobs.add(localJob);
+	                break;
+				default:
+					throw new IllegalArgumentException("Scheduler " + scheduler.toString() + " is not supported.");
+				}
+			}
+		}
+		logger.info("Waiting for bigwig writer jobs to finish...");
+		JobUtils.waitForAll(bigwigJobs);
+		logger.info("Done writing bigwig files.");
+	}
+
 	/**
 	 * Write fragment end points and midpoints to wig and bigwig files
 	 * @param sampleName Sample name
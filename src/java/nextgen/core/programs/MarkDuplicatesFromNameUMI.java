@@ -9,23 +9,34 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.sf.picard.util.Log;
 import net.sf.samtools.BAMFileWriter;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileSpan;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
 import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
-import broad.core.datastructures.IntervalTree;
-import broad.core.datastructures.IntervalTree.Node;
+import cern.colt.list.IntArrayList;
+import cern.colt.map.OpenIntIntHashMap;
+import cern.colt.map.OpenIntObjectHashMap;
+
 import broad.core.math.Statistics;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
@@ -57,6 +68,7 @@ public class MarkDuplicatesFromNameUMI {
 			"\n\t-allowedFracOfMean<Optional double between 0 and 1, model parameter,default 0.02>" +
 			"\n\t-numToIncrement<Optional postive integer, model parameter, default 5>" +
 			"\n\t-revisedBCCountsFile <Optional file name to record revised counts by position for positions with number of barcodes duplicated above minNumBCsToApplyModel>" +
+			"\n\t-numThreads<Optional number of chromosomes to mark at once, the input must be an indexed BAM file, default 1>" +
 			"\n\t-revisedBCStatsFile<Optional file name to write revised stats on total dups by adjusted number unique bcs when  number of barcodes duplicated above minNumBCsToApplyModel>" +
 			"\n";
 	
@@ -77,11 +89,17 @@ public class MarkDuplicatesFromNameUMI {
 		writer.setSortOrder(SortOrder.coordinate, false);
 		header.addProgramRecord(new SAMProgramRecord("nextgen.core.programs.MarkDuplicatesFromNameUMI --in tophat_to_genome/50ng_R2.bam -out markdup.two_pass/50ng_R2.mark.dups.pass1.bam -out2 markdup.two_pass/50ng_R2.mark.dups.pass2.bam-bcSize 4 -bcCountsFile -bcHistogram markdup.two_pass/50ng_R2.mark.dups.mark.dups.bam.bchist.txt markdup.two_pass/50ng_R2.counts.txt -bcStatsFile markdup.two_pass/50ng_R2.stats.txt -revisedBCCountsFile markdup.two_pass/50ng_R2.counts.revised.txt -revisedBCStatsFile markdup.two_pass/50ng_R2.stats.revised.txt"));
 		writer.setHeader(header);
+		reader.close();
+		
+		// Alignments that are not adjusted are written to out2 while marking, so the marked file is not read back
+		BAMFileWriter writer2 = null;
+		if(argMap.containsKey("out2")) {
+			writer2 = new BAMFileWriter(new File(argMap.getMandatory("out2")));
+			writer2.setSortOrder(SortOrder.coordinate, false);
+			writer2.setHeader(header);
+		}
 		
 		MarkDuplicatesResults result;					
-		String out2;
-		SAMFileReader reader2;
-		BAMFileWriter writer2;
 		boolean calcThreshold1;
 		if (argMap.containsKey("calculateThreshold1")){
 			calcThreshold1= argMap.isFlagTrue("calculateThreshold1");
@@ -130,10 +148,11 @@ public class MarkDuplicatesFromNameUMI {
 		if(argMap.containsKey("bcCountsFile")) {
 			exportCounts = true;
 		}
+		int numThreads = argMap.getInteger("numThreads", 1);
 
 		
 		try {
-			result = markDuplicates(bcSize, reader, writer, exportCounts, threshold1, threshold2, allowedFracOfMean, numToIncrement);
+			result = markDuplicates(bcSize, new File(alnFile), writer, writer2, exportCounts, threshold1, threshold2, allowedFracOfMean, numToIncrement, numThreads);
 			
 			if (calcThreshold1){
 				result.setThreshold1AndMeanNumDup(numBCs);
@@ -182,28 +201,27 @@ public class MarkDuplicatesFromNameUMI {
 	
 			
 		}finally {
-			reader.close();
 			writer.close();
 		}
 		
-		if(!argMap.containsKey("out2")){
+		if(writer2 == null){
 		
 			log.info("No out2 file.  Adjustments to initial markings are not performed.");
 		
 		} else if(threshold2 >= Math.pow(4, bcSize)) {
 		
 			log.info("Adjustments to initial markings are not performed as threshold2 equals or exceeds the number of possible barcodes.");
+			try {
+				adjustNumFlagged(result, writer2, false);
+			} finally {
+				result.deleteCandidates();
+				writer2.close();
+			}
 		
 		} else {
-			out2 = argMap.getMandatory("out2");
-			reader2 = new SAMFileReader(new File(out));
-			writer2 = new BAMFileWriter(new File(out2));
-			writer2.setSortOrder(SortOrder.coordinate, false);
-			SAMFileHeader header2 = reader2.getFileHeader();
-			writer2.setHeader(header2);
 			try {
 				
-				adjustNumFlagged(bcSize, reader2, writer2, result);
+				adjustNumFlagged(result, writer2, true);
 				System.out.println("REPORT for 2nd Pass: ");
 				System.out.println("Number aligned marked as dups " + result.numAlignedMarked);
 				System.out.println("Number unmarked alignments " + result.numUnmarked);
@@ -222,7 +240,7 @@ public class MarkDuplicatesFromNameUMI {
 				}
 				
 			} finally{
-				reader2.close();
+				result.deleteCandidates();
 				writer2.close();
 			}
 		}
@@ -237,224 +255,372 @@ public class MarkDuplicatesFromNameUMI {
 
 	}
 
-	public static MarkDuplicatesResults markDuplicates(int bcSize, SAMFileReader reader, BAMFileWriter writer, 
-			boolean exportCounts, int threshold1, int threshold2, double allowedFracOfMean, int numToIncrement) {
+	/**
+	 * Mark duplicates of the input and collect the statistics used to set the thresholds
+	 * Each chromosome is marked on its own, on several threads if the input is an indexed BAM
+	 * Positions at which at least threshold2 barcodes are duplicated are kept aside for adjustNumFlagged, all other alignments are also written to the adjusted output
+	 * @param bcSize Number of characters at the end of the read name that constitute the barcode
+	 * @param input Sorted alignment file
+	 * @param writer Output of the marked alignments
+	 * @param writer2 Adjusted output or null if no adjustment is made
+	 * @param exportCounts Whether to keep the counts at each position
+	 * @param threshold1 Initial threshold1
+	 * @param threshold2 Initial threshold2, positions at which at least this many barcodes are duplicated are candidates for adjustment
+	 * @param allowedFracOfMean Model parameter
+	 * @param numToIncrement Model parameter
+	 * @param numThreads Number of chromosomes marked at once
+	 * @return The statistics of the marked alignments
+	 */
+	public static MarkDuplicatesResults markDuplicates(int bcSize, File input, SAMFileWriter writer, SAMFileWriter writer2, 
+			boolean exportCounts, int threshold1, int threshold2, double allowedFracOfMean, int numToIncrement, int numThreads) {
 
 		MarkDuplicatesResults result = new MarkDuplicatesResults(threshold1, threshold2, allowedFracOfMean);
-		StringBuilder degenerateBC = new StringBuilder();
-		for (int i = 0; i < bcSize; i++) {
-			degenerateBC.append("N");
-		}
-		int currentStart = 0;
-		IntervalTree<Set<String>> currentBarcodeTree = new IntervalTree<Set<String>>();
-		HashMap<String, Integer>  currentBarcodeDuplicates = new HashMap<String, Integer>(); 
 		int numBCs = (int) Math.pow(4, bcSize) + 1; //the +1 is for degenerate (containing N barcodes).
-		int curAlnNum = 0;
-		int lastStart = 0;
-		
 		
 		result.initHistNumUniqueBC(numBCs);
 		result.initHistNumDupBC(numBCs);
 		result.initStatsByNumDistinctBCSeen(numBCs);
 		result.initStatsByNumBCDup(numBCs);
-		int start = 0;
-		int end = 0;
 		
-
-		SAMRecordIterator sri = reader.iterator();
-		while(sri.hasNext()) {
-			SAMRecord samR = sri.next();
-			String readName = samR.getReadName();
-			String bc = readName.substring(readName.length() - bcSize);
-			if(bc.contains("N")) { //Only one degenerate barcode allowed. May revisit later.
-				bc = degenerateBC.toString();
-				result.addToDegenerateBCs();
-			}
-			
-			start = samR.getAlignmentStart();
-			end   = samR.getAlignmentEnd();
-			result.alnNum++;
-			curAlnNum++;
-			if(currentStart != start || !sri.hasNext()) { //Its OK if we do not mark the last alignment as duplicated ... we'll leave
-				lastStart = currentStart;
-				currentStart = start;
-				currentBarcodeTree.clear();
-				int currentNumDup = 0;
-				int currentNumUnique = 0;
-
-				for (String seenBC : currentBarcodeDuplicates.keySet()) {
-					int numOfSeenBC = currentBarcodeDuplicates.get(seenBC);
-					
-			
-					if( numOfSeenBC == 1) {
-						result.numUnique++;
-						currentNumUnique++;
-					} else {
-						result.duplicationStats.addValue(numOfSeenBC);
-						result.numDup += numOfSeenBC;
-						currentNumDup += numOfSeenBC;
-					}
+		SAMFileReader reader = new SAMFileReader(input);
+		try {
+			if(numThreads > 1 && reader.hasIndex()) {
+				markChromosomesInParallel(bcSize, input, reader.getFileHeader(), writer, writer2, exportCounts, threshold2, numThreads, result);
+			} else {
+				if(numThreads > 1) {
+					log.info("Input has no index, marking chromosomes one at a time.");
 				}
-				int currentNumBCDup = currentBarcodeDuplicates.size() - currentNumUnique;
-				
-				if (currentBarcodeDuplicates.size() != 0){
-					if (exportCounts){
-						result.addCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);
-					}
-					result.histNumUniqueBC[currentBarcodeDuplicates.size()-1] += 1;	
-					result.updateStatsByNumDistinctBCSeen(currentBarcodeDuplicates.size(), currentNumBCDup);
-					
-					if (currentBarcodeDuplicates.size() != currentNumUnique){
-			
-						result.updateStatsByNumBCDup(currentNumBCDup, currentNumDup);
-						
+				SAMRecordIterator sri = reader.iterator();
+				SAMRecord next = sri.hasNext() ? sri.next() : null;
+				while(next != null) {
+					ChromosomeMarker marker = new ChromosomeMarker(bcSize, threshold2, writer, writer2);
+					Integer referenceIndex = next.getReferenceIndex();
+					while(next != null && next.getReferenceIndex().equals(referenceIndex)) {
+						marker.add(next);
+						next = sri.hasNext() ? sri.next() : null;
 					}
+					result.addChromosome(marker.finish(), bcSize, exportCounts);
 				}
-				
-				
-				if (currentNumBCDup != 0){
-					result.histNumDupBC[currentNumBCDup - 1] += 1;
-					if (currentNumBCDup >= threshold2){
-						result.addStartToEvalList(result.alnNum - curAlnNum, lastStart);
-						result.addRevisedCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);  //these initial counts  used in adjusting marking and corrected on 2nd pass
-					}
-				}
-
-				curAlnNum = 0;
-				currentBarcodeDuplicates.clear();
-			}
-
-			String compositeBCName = getCompositeBC(bc, start, end);
-			Node<Set<String>> intervalBarcodeNode = currentBarcodeTree.find(start, end);
-			if(intervalBarcodeNode == null) {
-				Set<String> intervalBarcodes = new TreeSet<String>();
-				intervalBarcodes.add(bc);
-				currentBarcodeTree.put(start, end, intervalBarcodes);
-				currentBarcodeDuplicates.put(compositeBCName, 1);
-				result.numUnmarked++;
-				result.addBarcode(bc);
-			} else {
-				Set<String> intervalBarcodes = intervalBarcodeNode.getValue();
-				if (intervalBarcodes.contains(bc) ) {
-					samR.setDuplicateReadFlag(true);
-					result.numAlignedMarked++;
-					currentBarcodeDuplicates.put(compositeBCName, currentBarcodeDuplicates.get(compositeBCName)+1);
-				} else {
-					currentBarcodeDuplicates.put(compositeBCName, 1);
-					intervalBarcodes.add(bc);
-					result.numUnmarked++;
-				}
+				sri.close();
 			}
-
-			writer.addAlignment(samR);
+		} finally {
+			reader.close();
 		}
 		
-		
 		return result;
 
 	}
+	
+	/**
+	 * Mark each chromosome, and the unplaced reads, with its own reader of the indexed input
+	 * Results are added in the order of the sequence dictionary, so they do not depend on the number of threads
+	 */
+	private static void markChromosomesInParallel(final int bcSize, final File input, SAMFileHeader header, final SAMFileWriter writer, final SAMFileWriter writer2, 
+			boolean exportCounts, final int threshold2, int numThreads, MarkDuplicatesResults result) {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mark-duplicates");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<ChromosomeResult>> futures = new ArrayList<Future<ChromosomeResult>>();
+			List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(header.getSequenceDictionary().getSequences());
+			// Reads without a position are marked last, as in the sorted file
+			sequences.add(null);
+			for(final SAMSequenceRecord sequence : sequences) {
+				futures.add(executor.submit(new Callable<ChromosomeResult>() {
+					@Override
+					public ChromosomeResult call() {
+						ChromosomeMarker marker = new ChromosomeMarker(bcSize, threshold2, writer, writer2);
+						SAMFileReader chrReader = new SAMFileReader(input);
+						try {
+							SAMRecordIterator sri;
+							if(sequence == null) {
+								sri = chrReader.queryUnmapped();
+							} else {
+								// The whole span of the chromosome also holds unmapped reads placed with their mates, which a query by position would miss
+								SAMFileSpan span = chrReader.getIndex().getSpanOverlapping(sequence.getSequenceIndex(), 1, sequence.getSequenceLength());
+								if(span == null || span.isEmpty()) return marker.finish();
+								sri = chrReader.iterator(span);
+							}
+							while(sri.hasNext()) {
+								SAMRecord samR = sri.next();
+								// Blocks at the ends of the span can hold alignments of neighboring chromosomes
+								if(sequence == null || samR.getReferenceIndex().intValue() == sequence.getSequenceIndex()) {
+									marker.add(samR);
+								}
+							}
+							sri.close();
+						} finally {
+							chrReader.close();
+						}
+						return marker.finish();
+					}
+				}));
+			}
+			for(Future<ChromosomeResult> future : futures) {
+				try {
+					result.addChromosome(future.get(), bcSize, exportCounts);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while marking duplicates", e);
+				} catch(ExecutionException e) {
+					if(e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-	private static String getCompositeBC(String bc, int start, int end) {
-		return bc+start+"."+end;
+	/**
+	 * @param readName Read name ending with the barcode
+	 * @param bcSize Barcode length
+	 * @return The barcode packed two bits per base, or 4^bcSize if it contains any other character than A, C, G or T
+	 */
+	static int encodeBarcode(String readName, int bcSize) {
+		int offset = readName.length() - bcSize;
+		if(offset < 0) {
+			throw new IllegalArgumentException("Read name " + readName + " is shorter than the barcode size " + bcSize);
+		}
+		int code = 0;
+		for(int i = offset; i < readName.length(); i++) {
+			code <<= 2;
+			switch(readName.charAt(i)) {
+			case 'A': break;
+			case 'C': code |= 1; break;
+			case 'G': code |= 2; break;
+			case 'T': code |= 3; break;
+			default: return 1 << (2 * bcSize);
+			}
+		}
+		return code;
 	}
 
+	/**
+	 * @param code Barcode packed by encodeBarcode
+	 * @param bcSize Barcode length
+	 * @return The barcode, all N for the degenerate barcode
+	 */
+	static String decodeBarcode(int code, int bcSize) {
+		char[] bc = new char[bcSize];
+		boolean degenerate = code == 1 << (2 * bcSize);
+		for(int i = bcSize - 1; i >= 0; i--) {
+			bc[i] = degenerate ? 'N' : "ACGT".charAt(code & 3);
+			code >>= 2;
+		}
+		return new String(bc);
+	}
 	
-	
-	private static void adjustNumFlagged(int bcSize, SAMFileReader reader2, BAMFileWriter writer2, MarkDuplicatesResults result){	
-
-		int currentStart = 0;
-		double dupScore = 0;
-		boolean evalFlag = false;
-		int startsToEvalIndex = 0;
-		int firstAlnToEval = result.startsToEval.get(0)[0];
-		int firstStartToEval = result.startsToEval.get(0)[1];
-		int currentNumUnique = 0;
-		int currentAdjustedNumBCDup = 0; 
-		int currentNumDup = 0;
-		result.numUnmarked = 0;
-		result.numAlignedMarked = 0;
+	/**
+	 * Adjust the markings at the positions kept aside by markDuplicates and write them to the adjusted output
+	 * @param result Result of markDuplicates with the final thresholds set
+	 * @param writer2 Adjusted output
+	 * @param adjust False to write the positions with their initial markings
+	 */
+	private static void adjustNumFlagged(MarkDuplicatesResults result, SAMFileWriter writer2, boolean adjust){	
+
 		result.numRemovedMark = 0;
-		int alnNum = 0;
+		int candidate = 0;
 		// using depth of 10 as estimate, lower should be better estimate as all dups expected to be pcr dups, but lowest depth numbers are a little funky.
 		double estStDevDupPerBC = result.statsByNumBCDup[9].getStandardDeviation()/Math.sqrt(10);  
-		SAMRecordIterator sri = reader2.iterator();
-		while(sri.hasNext()) {
-			SAMRecord samR = sri.next();
-			int start = samR.getAlignmentStart();
-			boolean readFlagged = samR.getDuplicateReadFlag();
-			alnNum++;
-			if(currentStart != start || !sri.hasNext()) { //Its OK if we do not mark the last alignment as duplicated ... we'll leave
-				currentStart = start;
+		for(File candidateFile : result.candidateFiles) {
+			SAMFileReader reader2 = new SAMFileReader(candidateFile);
+			SAMRecordIterator sri = reader2.iterator();
+			while(sri.hasNext()) {
+				int[] counts = result.revisedPositionCounts.get(candidate);
+				int currentNumUnique = counts[0];
+				int currentAdjustedNumBCDup = counts[1];
+				int currentNumDup = counts[2];
+				boolean evalFlag = adjust && currentAdjustedNumBCDup > result.threshold2 && 
+						currentNumDup > (result.meanNumDup*currentAdjustedNumBCDup + 3*Math.sqrt(currentAdjustedNumBCDup)*estStDevDupPerBC);
+				double dupScore = result.meanNumDup/2 - currentAdjustedNumBCDup*result.meanNumDup - currentNumUnique;
+				for(int i = 0; i < result.candidateGroupSizes.get(candidate); i++) {
+					SAMRecord samR = sri.next();
+					if (evalFlag){
+						dupScore++;
+						if (samR.getDuplicateReadFlag() && dupScore >= result.meanNumDup){
+							samR.setDuplicateReadFlag(false);  
+							dupScore = dupScore - result.meanNumDup;
+							result.numRemovedMark++;
+							currentAdjustedNumBCDup++;
+						}
+					}
+					writer2.addAlignment(samR);
+				}
 				if (evalFlag){
-					
 					int e[] = {currentNumUnique, currentAdjustedNumBCDup,currentNumDup};
-					result.revisedPositionCounts.set(startsToEvalIndex - 1, e);
+					result.revisedPositionCounts.set(candidate, e);
 					if (currentAdjustedNumBCDup > result.maxAdjustedNumBCDup) {
 						result.maxAdjustedNumBCDup = currentAdjustedNumBCDup;
 					}
 				}
-				
-				if (alnNum == firstAlnToEval && start == firstStartToEval){
-
-				 	currentAdjustedNumBCDup = result.revisedPositionCounts.get(startsToEvalIndex)[1];
-				 	currentNumDup = result.revisedPositionCounts.get(startsToEvalIndex)[2];
-				 	if (currentAdjustedNumBCDup > result.threshold2 && 
-				 			currentNumDup > (result.meanNumDup*currentAdjustedNumBCDup + 3*Math.sqrt(currentAdjustedNumBCDup)*estStDevDupPerBC)) {
-						evalFlag = true;
-						currentNumUnique = result.revisedPositionCounts.get(startsToEvalIndex)[0];				
-						dupScore = result.meanNumDup/2 - currentAdjustedNumBCDup*result.meanNumDup - currentNumUnique; 				
-					} else {
-						evalFlag = false;
-					}
-				 	startsToEvalIndex ++;						
-					if (startsToEvalIndex < result.startsToEval.size()){
-						firstAlnToEval = result.startsToEval.get(startsToEvalIndex)[0];
-						firstStartToEval = result.startsToEval.get(startsToEvalIndex)[1];
-					} else {
-						System.out.println("Completed adjustments.");
-					}
-							
+				candidate++;
+			}
+			sri.close();
+			reader2.close();
+		}
+		if(adjust) {
+			System.out.println("Completed adjustments.");
+			result.numAlignedMarked -= result.numRemovedMark;
+			result.numUnmarked += result.numRemovedMark;
+			result.tallyRevisedStats();
+		}
+
+	}
+	
+	/**
+	 * Counts and candidate positions of one chromosome
+	 */
+	private static class ChromosomeResult {
+		private int alnNum = 0;
+		private int numUnmarked = 0;
+		private int numAlignedMarked = 0;
+		private int degenerateBCs = 0;
+		// Number of new (start, end) intervals first seen with each barcode
+		private int[] bcOccurrences;
+		// For each position: number of unique barcodes, number of duplicated barcodes, then the number of reads of each duplicated barcode
+		private IntArrayList positions = new IntArrayList();
+		// Alignments at positions with at least threshold2 duplicated barcodes, or null
+		private File candidateFile = null;
+		private IntArrayList candidateGroupSizes = new IntArrayList();
+	}
+
+	/**
+	 * Marks the alignments of one chromosome, given in sorted order, one start position at a time
+	 * Barcodes are packed into ints and counted in primitive hash maps by alignment end, so an alignment is a duplicate if an earlier one has the same start, end and barcode
+	 */
+	private static class ChromosomeMarker {
+		private int bcSize;
+		private int threshold2;
+		private SAMFileWriter writer;
+		private SAMFileWriter writer2;
+		private SAMFileWriter candidateWriter = null;
+		private ChromosomeResult result = new ChromosomeResult();
+		private int degenerateCode;
+		private int currentStart = -1;
+		private List<SAMRecord> group = new ArrayList<SAMRecord>();
+		// Alignment end to counts of each barcode with that end at the current start
+		private OpenIntObjectHashMap barcodesByEnd = new OpenIntObjectHashMap();
+		private List<OpenIntIntHashMap> usedMaps = new ArrayList<OpenIntIntHashMap>();
+		private List<OpenIntIntHashMap> freeMaps = new ArrayList<OpenIntIntHashMap>();
+		private IntArrayList counts = new IntArrayList();
+
+		ChromosomeMarker(int bcSize, int threshold2, SAMFileWriter writer, SAMFileWriter writer2) {
+			this.bcSize = bcSize;
+			this.threshold2 = threshold2;
+			this.writer = writer;
+			this.writer2 = writer2;
+			degenerateCode = 1 << (2 * bcSize);
+			result.bcOccurrences = new int[degenerateCode + 1];
+		}
+
+		void add(SAMRecord samR) {
+			if(samR.getAlignmentStart() != currentStart) {
+				finishPosition();
+				currentStart = samR.getAlignmentStart();
+			}
+			int bc = encodeBarcode(samR.getReadName(), bcSize);
+			if(bc == degenerateCode) { //Only one degenerate barcode allowed. May revisit later.
+				result.degenerateBCs++;
+			}
+			result.alnNum++;
+			int end = samR.getAlignmentEnd();
+			OpenIntIntHashMap endBarcodes = (OpenIntIntHashMap) barcodesByEnd.get(end);
+			if(endBarcodes == null) {
+				endBarcodes = freeMaps.isEmpty() ? new OpenIntIntHashMap() : freeMaps.remove(freeMaps.size() - 1);
+				usedMaps.add(endBarcodes);
+				barcodesByEnd.put(end, endBarcodes);
+				endBarcodes.put(bc, 1);
+				result.numUnmarked++;
+				result.bcOccurrences[bc]++;
+			} else {
+				int numOfSeenBC = endBarcodes.get(bc);
+				if(numOfSeenBC > 0) {
+					samR.setDuplicateReadFlag(true);
+					result.numAlignedMarked++;
 				} else {
-					evalFlag = false;
+					result.numUnmarked++;
 				}
-				
-								
+				endBarcodes.put(bc, numOfSeenBC + 1);
 			}
-			if (evalFlag){
-				dupScore++;
-				if (!readFlagged){
-					
-					result.numUnmarked++;
+			group.add(samR);
+		}
 
-				
-				} else if (readFlagged){
-					if (dupScore >= result.meanNumDup){
-						samR.setDuplicateReadFlag(false);  
-						dupScore = dupScore - result.meanNumDup;
-						result.numRemovedMark++;
-						result.numUnmarked++;
-						currentAdjustedNumBCDup++;
-						
-					
+		/**
+		 * Record the barcode counts at the current start and write its alignments
+		 */
+		private void finishPosition() {
+			if(group.isEmpty()) return;
+			int numUnique = 0;
+			int numBCDup = 0;
+			int positionIndex = result.positions.size();
+			result.positions.add(0);
+			result.positions.add(0);
+			for(OpenIntIntHashMap endBarcodes : usedMaps) {
+				endBarcodes.values(counts);
+				for(int i = 0; i < counts.size(); i++) {
+					if(counts.getQuick(i) == 1) {
+						numUnique++;
 					} else {
-						result.numAlignedMarked++;
-						
+						numBCDup++;
+						result.positions.add(counts.getQuick(i));
 					}
 				}
-			} else {
-				if (readFlagged){
-					result.numAlignedMarked++;			
+				endBarcodes.clear();
+				freeMaps.add(endBarcodes);
+			}
+			result.positions.setQuick(positionIndex, numUnique);
+			result.positions.setQuick(positionIndex + 1, numBCDup);
+			usedMaps.clear();
+			barcodesByEnd.clear();
+
+			synchronized(writer) {
+				for(SAMRecord samR : group) writer.addAlignment(samR);
+			}
+			if(writer2 != null) {
+				if(numBCDup >= threshold2) {
+					writeCandidates();
 				} else {
-					result.numUnmarked++;
+					synchronized(writer2) {
+						for(SAMRecord samR : group) writer2.addAlignment(samR);
+					}
 				}
 			}
-			
-			writer2.addAlignment(samR);
-					
-			
+			group.clear();
+		}
+
+		/**
+		 * Keep the alignments at the current start aside until the final threshold2 is known
+		 */
+		private void writeCandidates() {
+			if(candidateWriter == null) {
+				try {
+					result.candidateFile = File.createTempFile("umi_candidates", ".bam");
+				} catch(IOException e) {
+					throw new IllegalStateException("Could not create a temporary file for positions to adjust", e);
+				}
+				result.candidateFile.deleteOnExit();
+				candidateWriter = new SAMFileWriterFactory().makeBAMWriter(group.get(0).getHeader(), true, result.candidateFile, 1);
+			}
+			// Adjustments go through the alignments in the order of the sorted output
+			List<SAMRecord> sorted = new ArrayList<SAMRecord>(group);
+			Collections.sort(sorted, new SAMRecordCoordinateComparator());
+			for(SAMRecord samR : sorted) candidateWriter.addAlignment(samR);
+			result.candidateGroupSizes.add(group.size());
 		}
-		result.tallyRevisedStats();
 
+		ChromosomeResult finish() {
+			finishPosition();
+			if(candidateWriter != null) candidateWriter.close();
+			return result;
+		}
 	}
 
 	public static class MarkDuplicatesResults {
@@ -476,7 +642,8 @@ public class MarkDuplicatesFromNameUMI {
 		private SummaryStatistics[] revisedStatsByAdjustedNumBCDup;
 		private double meanNumDup;
 		private int numRemovedMark = 0;
-		private List<int[]> startsToEval = new ArrayList<int[]>(); //1st alignment #, start 
+		private List<File> candidateFiles = new ArrayList<File>(); // alignments at positions to adjust, by chromosome
+		private IntArrayList candidateGroupSizes = new IntArrayList(); // number of alignments at each position to adjust
 		private int degenerateBCs = 0;
 		
 		private SimpleRegression lfit = new SimpleRegression(false);  // better name
@@ -526,9 +693,88 @@ public class MarkDuplicatesFromNameUMI {
 		
 		}
 		
-		public void addStartToEvalList(int alnNumber, int start){
-			int[] e = {alnNumber, start};
-			startsToEval.add(e);
+		/**
+		 * Add the counts of a chromosome, at each position in order
+		 * @param chromosome Counts of the chromosome
+		 * @param bcSize Barcode length
+		 * @param exportCounts Whether to keep the counts at each position
+		 */
+		void addChromosome(ChromosomeResult chromosome, int bcSize, boolean exportCounts) {
+			alnNum += chromosome.alnNum;
+			numUnmarked += chromosome.numUnmarked;
+			numAlignedMarked += chromosome.numAlignedMarked;
+			degenerateBCs += chromosome.degenerateBCs;
+			for(int bc = 0; bc < chromosome.bcOccurrences.length; bc++) {
+				if(chromosome.bcOccurrences[bc] > 0) {
+					String bcName = decodeBarcode(bc, bcSize);
+					Integer seen = bcOccurrences.get(bcName);
+					bcOccurrences.put(bcName, (seen == null ? 0 : seen) + chromosome.bcOccurrences[bc]);
+				}
+			}
+			
+			IntArrayList positions = chromosome.positions;
+			int i = 0;
+			while(i < positions.size()) {
+				int currentNumUnique = positions.getQuick(i++);
+				int currentNumBCDup = positions.getQuick(i++);
+				int currentNumDup = 0;
+				for(int j = 0; j < currentNumBCDup; j++) {
+					int numOfSeenBC = positions.getQuick(i++);
+					duplicationStats.addValue(numOfSeenBC);
+					currentNumDup += numOfSeenBC;
+				}
+				numUnique += currentNumUnique;
+				numDup += currentNumDup;
+				int currentNumBC = currentNumUnique + currentNumBCDup;
+				// A barcode seen with several alignment ends counts once per end, so the last bin of the histograms also holds larger counts
+				int numBCBin = Math.min(currentNumBC, histNumUniqueBC.length);
+				int numBCDupBin = Math.min(currentNumBCDup, histNumDupBC.length);
+				
+				if (exportCounts){
+					addCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);
+				}
+				histNumUniqueBC[numBCBin-1] += 1;	
+				updateStatsByNumDistinctBCSeen(numBCBin, currentNumBCDup);
+				
+				if (currentNumBCDup != 0){
+					updateStatsByNumBCDup(numBCDupBin, currentNumDup);
+					histNumDupBC[numBCDupBin - 1] += 1;
+					if (currentNumBCDup >= threshold2){
+						addRevisedCountsByPosition(currentNumUnique, currentNumBCDup,currentNumDup);  //these initial counts  used in adjusting marking and corrected on 2nd pass
+					}
+				}
+			}
+			
+			if(chromosome.candidateFile != null) {
+				candidateFiles.add(chromosome.candidateFile);
+				candidateGroupSizes.addAllOf(chromosome.candidateGroupSizes);
+			}
+		}
+		
+		/**
+		 * Delete the alignments kept aside for adjustment
+		 */
+		public void deleteCandidates() {
+			for(File candidateFile : candidateFiles) {
+				candidateFile.delete();
+			}
+			candidateFiles.clear();
+		}
+		
+		public int getNumAlignments() {
+			return alnNum;
+		}
+		
+		public int getNumAlignedMarked() {
+			return numAlignedMarked;
+		}
+		
+		public int getNumUnmarked() {
+			return numUnmarked;
+		}
+		
+		public int getNumRemovedMark() {
+			return numRemovedMark;
 		}
 		
 		public void initHistNumUniqueBC(int numBCs){
@@ -754,6 +1000,10 @@ public class MarkDuplicatesFromNameUMI {
 		
 		public void tallyRevisedStats(){
 			
+			// Positions that were not adjusted can have more duplicated barcodes than any adjusted one
+			for (int[] counts : revisedPositionCounts){
+				maxAdjustedNumBCDup = Math.max(maxAdjustedNumBCDup, counts[1]);
+			}
 			int statsLength = maxAdjustedNumBCDup - threshold2 + 1;
 			
 			if (statsLength <= 0){
@@ -0,0 +1,560 @@
+package nextgen.core.readers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+import broad.core.parser.CommandLineParser;
+
+import nextgen.core.annotation.Annotation;
+
+/**
+ * Answers region queries on a BigWig file without reading the whole file
+ * The file is memory mapped and only the chromosome names are read up front, each query walks the R tree index and decodes the sections it overlaps
+ * Values come back as primitive arrays with NaN where there is no data, and summaries of long regions are taken from the zoom levels where possible
+ * Queries only use absolute reads of the mapped file, so one instance can be shared by several threads
+ * Reads files written by nextgen.core.writers.BigWigWriter or the UCSC tools, with bedGraph, variable step and fixed step sections
+ */
+public class BigWigReader {
+
+	static Logger logger = Logger.getLogger(BigWigReader.class.getName());
+
+	private static final int BIGWIG_MAGIC = 0x888FFC26;
+	private static final int CHROM_TREE_MAGIC = 0x78CA8C91;
+	private static final int R_TREE_MAGIC = 0x2468ACE0;
+	private static final int CHUNK_BITS = 30;
+	private static final int R_TREE_HEADER_LENGTH = 48;
+	private static final int SECTION_HEADER_LENGTH = 24;
+	private static final int ZOOM_RECORD_LENGTH = 32;
+	private static final byte BEDGRAPH_SECTION = 1;
+	private static final byte VARIABLE_STEP_SECTION = 2;
+	private static final byte FIXED_STEP_SECTION = 3;
+	// Zoom levels are used for a summary when the region holds at least this many bins of the level
+	private static final int MIN_ZOOM_BINS = 4;
+
+	private MappedByteBuffer[] chunks;
+	private long fileLength;
+	private ByteOrder order;
+	private int uncompressBufSize;
+	private long fullIndexOffset;
+	private int[] zoomReductions;
+	private long[] zoomIndexOffsets;
+	private Summary totalSummary;
+	private Map<String, Integer> chrIds;
+	private Map<String, Integer> chrSizes;
+
+	/**
+	 * Map a BigWig file and read its header and chromosome names
+	 * @param fileName BigWig file
+	 * @throws IOException
+	 */
+	public BigWigReader(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			fileLength = file.length();
+			FileChannel channel = file.getChannel();
+			int numChunks = (int) ((fileLength + (1L << CHUNK_BITS) - 1) >> CHUNK_BITS);
+			chunks = new MappedByteBuffer[numChunks];
+			for(int i = 0; i < numChunks; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, fileLength - start));
+			}
+		} finally {
+			// Mappings stay valid after the channel is closed
+			file.close();
+		}
+		if(fileLength < 64) {
+			throw new IOException(fileName + " is not a BigWig file");
+		}
+		order = ByteOrder.LITTLE_ENDIAN;
+		if(read(0, 4).getInt() != BIGWIG_MAGIC) {
+			order = ByteOrder.BIG_ENDIAN;
+			if(read(0, 4).getInt() != BIGWIG_MAGIC) {
+				throw new IOException(fileName + " is not a BigWig file");
+			}
+		}
+		ByteBuffer header = read(0, 64);
+		header.position(6);
+		int numZoomLevels = header.getShort() & 0xFFFF;
+		long chromTreeOffset = header.getLong();
+		// Full data offset
+		header.getLong();
+		fullIndexOffset = header.getLong();
+		// Field counts and autoSql offset are only used by BigBed
+		header.position(44);
+		long totalSummaryOffset = header.getLong();
+		uncompressBufSize = header.getInt();
+
+		zoomReductions = new int[numZoomLevels];
+		zoomIndexOffsets = new long[numZoomLevels];
+		ByteBuffer zoomHeaders = read(64, 24 * numZoomLevels);
+		for(int z = 0; z < numZoomLevels; z++) {
+			zoomReductions[z] = zoomHeaders.getInt();
+			// Reserved and zoom data offset
+			zoomHeaders.getInt();
+			zoomHeaders.getLong();
+			zoomIndexOffsets[z] = zoomHeaders.getLong();
+		}
+		if(totalSummaryOffset > 0) {
+			ByteBuffer summary = read(totalSummaryOffset, 40);
+			totalSummary = new Summary();
+			totalSummary.basesCovered = summary.getLong();
+			totalSummary.min = summary.getDouble();
+			totalSummary.max = summary.getDouble();
+			totalSummary.sum = summary.getDouble();
+			totalSummary.sumSquares = summary.getDouble();
+		}
+		readChromosomeTree(chromTreeOffset);
+		logger.info("Mapped BigWig file " + fileName + " with " + chrIds.size() + " chromosomes and " + numZoomLevels + " zoom levels");
+	}
+
+	/**
+	 * Read bytes of the mapped file, copying them only if they span two chunks
+	 * @param offset File offset
+	 * @param length Number of bytes
+	 * @return Buffer holding the bytes from position 0, in the byte order of the file
+	 */
+	private ByteBuffer read(long offset, int length) {
+		if(offset < 0 || offset + length > fileLength) {
+			throw new IllegalStateException("Read past the end of the BigWig file: " + offset + " + " + length);
+		}
+		int chunk = (int) (offset >> CHUNK_BITS);
+		int chunkOffset = (int) (offset & ((1L << CHUNK_BITS) - 1));
+		ByteBuffer rtrn;
+		if(chunkOffset + length <= chunks[chunk].capacity()) {
+			ByteBuffer view = chunks[chunk].duplicate();
+			view.position(chunkOffset);
+			view.limit(chunkOffset + length);
+			rtrn = view.slice();
+		} else {
+			byte[] bytes = new byte[length];
+			int copied = 0;
+			while(copied < length) {
+				ByteBuffer view = chunks[chunk].duplicate();
+				view.position(chunkOffset);
+				int n = Math.min(length - copied, view.remaining());
+				view.get(bytes, copied, n);
+				copied += n;
+				chunk++;
+				chunkOffset = 0;
+			}
+			rtrn = ByteBuffer.wrap(bytes);
+		}
+		return rtrn.order(order);
+	}
+
+	/**
+	 * Read the bytes of a data block, uncompressing them if the file is compressed
+	 * @param offset File offset of the block
+	 * @param size Size of the block in the file
+	 * @param inflater Inflater, reset before use
+	 * @return Buffer holding the uncompressed block
+	 */
+	private ByteBuffer readBlock(long offset, int size, Inflater inflater) {
+		ByteBuffer block = read(offset, size);
+		if(uncompressBufSize == 0) {
+			return block;
+		}
+		byte[] compressed = new byte[size];
+		block.get(compressed);
+		byte[] uncompressed = new byte[uncompressBufSize];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int length = inflater.inflate(uncompressed);
+			return ByteBuffer.wrap(uncompressed, 0, length).slice().order(order);
+		} catch(DataFormatException e) {
+			throw new IllegalStateException("Corrupt data block at offset " + offset, e);
+		}
+	}
+
+	private void readChromosomeTree(long offset) throws IOException {
+		ByteBuffer header = read(offset, 32);
+		if(header.getInt() != CHROM_TREE_MAGIC) {
+			throw new IOException("Bad chromosome tree in BigWig file");
+		}
+		// Block size
+		header.getInt();
+		int keySize = header.getInt();
+		int valSize = header.getInt();
+		chrIds = new TreeMap<String, Integer>();
+		chrSizes = new TreeMap<String, Integer>();
+		readChromosomeNode(offset + 32, keySize, valSize);
+	}
+
+	private void readChromosomeNode(long offset, int keySize, int valSize) throws IOException {
+		ByteBuffer nodeHeader = read(offset, 4);
+		boolean isLeaf = nodeHeader.get() != 0;
+		nodeHeader.get();
+		int count = nodeHeader.getShort() & 0xFFFF;
+		int itemLength = keySize + (isLeaf ? valSize : 8);
+		ByteBuffer items = read(offset + 4, count * itemLength);
+		byte[] key = new byte[keySize];
+		for(int i = 0; i < count; i++) {
+			items.position(i * itemLength);
+			items.get(key);
+			if(isLeaf) {
+				int length = 0;
+				while(length < keySize && key[length] != 0) length++;
+				String name = new String(key, 0, length, "US-ASCII");
+				chrIds.put(name, Integer.valueOf(items.getInt()));
+				chrSizes.put(name, Integer.valueOf(items.getInt()));
+			} else {
+				readChromosomeNode(items.getLong(), keySize, valSize);
+			}
+		}
+	}
+
+	/**
+	 * @return The chromosome names in the file
+	 */
+	public Collection<String> getChromosomeNames() {
+		return Collections.unmodifiableCollection(chrIds.keySet());
+	}
+
+	/**
+	 * @param chr Chromosome name
+	 * @return Size of the chromosome
+	 */
+	public int getChromosomeSize(String chr) {
+		Integer size = chrSizes.get(chr);
+		if(size == null) {
+			throw new IllegalArgumentException("BigWig file does not contain chromosome " + chr);
+		}
+		return size.intValue();
+	}
+
+	/**
+	 * @return Reduction of each zoom level, from finest to coarsest
+	 */
+	public int[] getZoomReductions() {
+		return zoomReductions.clone();
+	}
+
+	/**
+	 * @return Summary of all values in the file, or null if the file has no summary
+	 */
+	public Summary getTotalSummary() {
+		return totalSummary;
+	}
+
+	/**
+	 * Offsets and sizes of the blocks indexed by an R tree that overlap a region
+	 * @param indexOffset Offset of the R tree
+	 * @param chrId Chromosome ID
+	 * @param start Region start
+	 * @param end Region end
+	 * @return Pairs of block offset and size
+	 */
+	private List<long[]> findBlocks(long indexOffset, int chrId, int start, int end) {
+		ByteBuffer header = read(indexOffset, R_TREE_HEADER_LENGTH);
+		if(header.getInt() != R_TREE_MAGIC) {
+			throw new IllegalStateException("Bad R tree in BigWig file at offset " + indexOffset);
+		}
+		List<long[]> rtrn = new ArrayList<long[]>();
+		findBlocks(indexOffset + R_TREE_HEADER_LENGTH, chrId, start, end, rtrn);
+		return rtrn;
+	}
+
+	private void findBlocks(long nodeOffset, int chrId, int start, int end, List<long[]> blocks) {
+		ByteBuffer nodeHeader = read(nodeOffset, 4);
+		boolean isLeaf = nodeHeader.get() != 0;
+		nodeHeader.get();
+		int count = nodeHeader.getShort() & 0xFFFF;
+		int itemLength = isLeaf ? 32 : 24;
+		ByteBuffer items = read(nodeOffset + 4, count * itemLength);
+		for(int i = 0; i < count; i++) {
+			int startChrom = items.getInt();
+			int startBase = items.getInt();
+			int endChrom = items.getInt();
+			int endBase = items.getInt();
+			long offset = items.getLong();
+			long size = isLeaf ? items.getLong() : 0;
+			boolean overlaps = compare(chrId, start, endChrom, endBase) < 0 && compare(chrId, end, startChrom, startBase) > 0;
+			if(!overlaps) continue;
+			if(isLeaf) {
+				blocks.add(new long[] {offset, size});
+			} else {
+				findBlocks(offset, chrId, start, end, blocks);
+			}
+		}
+	}
+
+	private static int compare(int chrom1, int base1, int chrom2, int base2) {
+		if(chrom1 != chrom2) return chrom1 < chrom2 ? -1 : 1;
+		if(base1 != base2) return base1 < base2 ? -1 : 1;
+		return 0;
+	}
+
+	private int getChrId(String chr) {
+		Integer id = chrIds.get(chr);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Visitor of the items of the sections overlapping a region
+	 */
+	private interface ItemVisitor {
+		public void visit(int start, int end, float value);
+	}
+
+	private void visitItems(String chr, int start, int end, ItemVisitor visitor) {
+		int chrId = getChrId(chr);
+		if(chrId < 0 || end <= start) return;
+		Inflater inflater = new Inflater();
+		try {
+			for(long[] block : findBlocks(fullIndexOffset, chrId, start, end)) {
+				ByteBuffer section = readBlock(block[0], (int) block[1], inflater);
+				int sectionChrId = section.getInt();
+				int sectionStart = section.getInt();
+				// Section end
+				section.getInt();
+				int itemStep = section.getInt();
+				int itemSpan = section.getInt();
+				byte type = section.get();
+				section.get();
+				int numItems = section.getShort() & 0xFFFF;
+				if(sectionChrId != chrId) continue;
+				section.position(SECTION_HEADER_LENGTH);
+				for(int i = 0; i < numItems; i++) {
+					int itemStart;
+					int itemEnd;
+					if(type == BEDGRAPH_SECTION) {
+						itemStart = section.getInt();
+						itemEnd = section.getInt();
+					} else if(type == VARIABLE_STEP_SECTION) {
+						itemStart = section.getInt();
+						itemEnd = itemStart + itemSpan;
+					} else if(type == FIXED_STEP_SECTION) {
+						itemStart = sectionStart + i * itemStep;
+						itemEnd = itemStart + itemSpan;
+					} else {
+						throw new IllegalStateException("Unknown BigWig section type " + type);
+					}
+					float value = section.getFloat();
+					if(itemEnd > start && itemStart < end) {
+						visitor.visit(Math.max(start, itemStart), Math.min(end, itemEnd), value);
+					}
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Get the value of each position in an interval
+	 * @param chr Chromosome
+	 * @param start First position (inclusive, zero based)
+	 * @param end Last position (exclusive)
+	 * @return Value of each position from start, NaN where the file has no data
+	 */
+	public float[] getValues(String chr, final int start, int end) {
+		final float[] rtrn = new float[Math.max(0, end - start)];
+		Arrays.fill(rtrn, Float.NaN);
+		visitItems(chr, start, end, new ItemVisitor() {
+			@Override
+			public void visit(int itemStart, int itemEnd, float value) {
+				Arrays.fill(rtrn, itemStart - start, itemEnd - start, value);
+			}
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Get values on the blocks of an annotation
+	 * @param region The annotation
+	 * @return Value of each position of the blocks in increasing genomic order, NaN where the file has no data
+	 */
+	public float[] getValues(Annotation region) {
+		float[] rtrn = new float[region.getSize()];
+		int i = 0;
+		for(Annotation block : region.getBlocks()) {
+			float[] values = getValues(region.getChr(), block.getStart(), block.getEnd());
+			System.arraycopy(values, 0, rtrn, i, values.length);
+			i += values.length;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Get value at specified position
+	 * @param chr Chromosome
+	 * @param pos Zero based position
+	 * @return Value
+	 */
+	public double getValue(String chr, int pos) {
+		float value = getValues(chr, pos, pos + 1)[0];
+		if(Float.isNaN(value)) {
+			throw new IllegalArgumentException("BigWig file does not contain position " + chr + " " + pos);
+		}
+		return value;
+	}
+
+	/**
+	 * Summarize the values in an interval
+	 * Zoom records that lie inside the interval are used as they are and only the ends of the interval are read from the full data
+	 * Sums from zoom records are stored as floats, so they can differ from the sum of the values in the last digits
+	 * @param chr Chromosome
+	 * @param start First position (inclusive, zero based)
+	 * @param end Last position (exclusive)
+	 * @return Summary of the values in the interval
+	 */
+	public Summary getSummary(String chr, int start, int end) {
+		Summary rtrn = new Summary();
+		int chrId = getChrId(chr);
+		if(chrId < 0 || end <= start) return rtrn;
+		int level = -1;
+		for(int z = 0; z < zoomReductions.length; z++) {
+			if((long) zoomReductions[z] * MIN_ZOOM_BINS <= end - start) level = z;
+		}
+		if(level < 0) {
+			addFullData(chr, start, end, rtrn);
+			return rtrn;
+		}
+		// Records of one level do not overlap, so those inside the interval leave only its ends to read
+		int innerStart = end;
+		int innerEnd = start;
+		Inflater inflater = new Inflater();
+		try {
+			for(long[] block : findBlocks(zoomIndexOffsets[level], chrId, start, end)) {
+				ByteBuffer records = readBlock(block[0], (int) block[1], inflater);
+				while(records.remaining() >= ZOOM_RECORD_LENGTH) {
+					int recordChrId = records.getInt();
+					int recordStart = records.getInt();
+					int recordEnd = records.getInt();
+					int validCount = records.getInt();
+					float min = records.getFloat();
+					float max = records.getFloat();
+					float sum = records.getFloat();
+					float sumSquares = records.getFloat();
+					if(recordChrId != chrId || recordStart < start || recordEnd > end || validCount == 0) continue;
+					rtrn.add(validCount, min, max, sum, sumSquares);
+					innerStart = Math.min(innerStart, recordStart);
+					innerEnd = Math.max(innerEnd, recordEnd);
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+		if(innerStart >= innerEnd) {
+			addFullData(chr, start, end, rtrn);
+		} else {
+			addFullData(chr, start, innerStart, rtrn);
+			addFullData(chr, innerEnd, end, rtrn);
+		}
+		return rtrn;
+	}
+
+	private void addFullData(String chr, int start, int end, final Summary summary) {
+		visitItems(chr, start, end, new ItemVisitor() {
+			@Override
+			public void visit(int itemStart, int itemEnd, float value) {
+				int length = itemEnd - itemStart;
+				summary.add(length, value, value, (double) value * length, (double) value * value * length);
+			}
+		});
+	}
+
+	/**
+	 * Summarize the values on the blocks of an annotation
+	 * @param region The annotation
+	 * @return Summary of the values on the blocks
+	 */
+	public Summary getSummary(Annotation region) {
+		Summary rtrn = new Summary();
+		for(Annotation block : region.getBlocks()) {
+			Summary blockSummary = getSummary(region.getChr(), block.getStart(), block.getEnd());
+			rtrn.add(blockSummary.basesCovered, blockSummary.min, blockSummary.max, blockSummary.sum, blockSummary.sumSquares);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Number of positions with data and their minimum, maximum, sum and sum of squares
+	 */
+	public static class Summary {
+
+		private long basesCovered = 0;
+		private double min = Double.NaN;
+		private double max = Double.NaN;
+		private double sum = 0;
+		private double sumSquares = 0;
+
+		void add(long numBases, double minVal, double maxVal, double sumData, double sumSquaresData) {
+			if(numBases == 0) return;
+			min = basesCovered == 0 ? minVal : Math.min(min, minVal);
+			max = basesCovered == 0 ? maxVal : Math.max(max, maxVal);
+			basesCovered += numBases;
+			sum += sumData;
+			sumSquares += sumSquaresData;
+		}
+
+		/**
+		 * @return Number of positions with data
+		 */
+		public long getBasesCovered() { return basesCovered;}
+
+		/**
+		 * @return Smallest value, NaN if no positions have data
+		 */
+		public double getMin() { return min;}
+
+		/**
+		 * @return Largest value, NaN if no positions have data
+		 */
+		public double getMax() { return max;}
+
+		/**
+		 * @return Sum of the values
+		 */
+		public double getSum() { return sum;}
+
+		/**
+		 * @return Sum of the squares of the values
+		 */
+		public double getSumSquares() { return sumSquares;}
+
+		/**
+		 * @return Mean value over the positions with data, NaN if there are none
+		 */
+		public double getMean() {
+			return basesCovered == 0 ? Double.NaN : sum / basesCovered;
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-i", "Input bigwig file", true);
+		p.addStringArg("-chr", "Chromosome", true);
+		p.addIntArg("-s", "Region start (zero based, inclusive)", true);
+		p.addIntArg("-e", "Region end (exclusive)", true);
+		p.parse(args);
+		BigWigReader reader = new BigWigReader(p.getStringArg("-i"));
+		Summary summary = reader.getSummary(p.getStringArg("-chr"), p.getIntArg("-s"), p.getIntArg("-e"));
+		System.out.println("bases_covered\t" + summary.getBasesCovered());
+		System.out.println("mean\t" + summary.getMean());
+		System.out.println("min\t" + summary.getMin());
+		System.out.println("max\t" + summary.getMax());
+		System.out.println("sum\t" + summary.getSum());
+	}
+
+}
@@ -381,7 +381,8 @@ public class PairedEndReader {
 		if (result == null) {
 			result = PairedEndWriter.getDefaultFile(fileToCheck);
 			PairedEndWriter writer = new PairedEndWriter(new File(fileToCheck), result);
-			writer.convertInputToPairedEnd(txnRead);
+			writer.setCompressionThreads(Runtime.getRuntime().availableProcessors());
+			writer.convertInputToPairedEndStreaming(txnRead);
 		}
 		return result;
 	}
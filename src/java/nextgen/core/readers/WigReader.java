@@ -20,6 +20,8 @@ import broad.core.parser.StringParser;
 
 
 /**
+ * Reads a whole wig file into memory
+ * For genome wide tracks, write a bigwig and query it with BigWigReader instead
  * @author prussell
  *
  */
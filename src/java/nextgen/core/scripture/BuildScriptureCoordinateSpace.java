@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -15,6 +16,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.collections15.Predicate;
 import org.apache.log4j.Logger;
@@ -82,6 +88,8 @@ public class BuildScriptureCoordinateSpace {
 	private int constant = 10000;
 	private double globalPairedLambda=0.0;
 	File bamfile;
+	private static int DEFAULT_NUM_THREADS = 1;
+	private int numThreads = DEFAULT_NUM_THREADS;
 	//double globalFragments;
 	
 /*	public BuildScriptureCoordinateSpace(File bamFile){
@@ -218,6 +226,28 @@ public class BuildScriptureCoordinateSpace {
 		}
 	} 
 	
+	/**
+	 * Worker assembling a single chromosome with the parameters of the parent
+	 * The worker opens its own alignment model and numbers its assemblies from the same starting point as any other chromosome,
+	 * so the assembly of a chromosome does not depend on which other chromosomes were assembled before it or at the same time
+	 * @param parent
+	 */
+	private BuildScriptureCoordinateSpace(BuildScriptureCoordinateSpace parent){
+		
+		bamfile=parent.bamfile;
+		bamFileName=parent.bamFileName;
+		this.graphs=new TreeMap<String, ChromosomeTranscriptGraph>();
+		genomeSeq=parent.genomeSeq;
+		windowSize=parent.windowSize;
+		outName=parent.outName;
+		coveragePercentThreshold=parent.coveragePercentThreshold;
+		alpha=parent.alpha;
+		THRESHOLD_SPURIOUS=parent.THRESHOLD_SPURIOUS;
+		minSpliceReads=parent.minSpliceReads;
+		minSplicePercent=parent.minSplicePercent;
+		constant=parent.constant;
+	}
+	
 	private void setThresholds(ArgumentMap argMap){ 
 		
 		if(argMap!=null){
@@ -225,21 +255,79 @@ public class BuildScriptureCoordinateSpace {
 			alpha = argMap.getDouble("alpha", DEFAULT_ALPHA);
 			minSpliceReads = argMap.getDouble("minSpliceReads", MIN_SPLICE_READS);
 			minSplicePercent = argMap.getDouble("percentSpliceReads", MIN_SPLICE_PERCENT);
+			numThreads = argMap.getInteger("threads", DEFAULT_NUM_THREADS);
 		}
 	}
 
-	private void assemble(TranscriptionRead strand) {
+	/**
+	 * Assembles all expressed chromosomes, each on its own worker
+	 * Chromosomes are started largest first on a pool of numThreads threads so that the longest assemblies do not run last
+	 * The graphs are collected by chromosome name, so the result is the same for any number of threads
+	 * @param strand
+	 */
+	private void assemble(final TranscriptionRead strand) {
 		//Iterate over all chromosomes
+		List<String> chromosomes = new ArrayList<String>();
 		for(String chr: space.getReferenceNames()){
-			logger.info("Reference name: "+chr);
 			if(model.getRefSequenceLambda(chr)==0.0){
 				logger.info(chr+" is not expressed in the alignment file");
 			}
 			else{
-				ChromosomeTranscriptGraph graph=assemble(chr,strand);
-				this.graphs.put(chr, graph);
+				chromosomes.add(chr);
+			}
+		}
+		if(chromosomes.isEmpty()){
+			return;
+		}
+		Collections.sort(chromosomes, new Comparator<String>(){
+			@Override
+			public int compare(String chr1, String chr2) {
+				long length1 = model.getRefSequenceLength(chr1);
+				long length2 = model.getRefSequenceLength(chr2);
+				if(length1!=length2){
+					return length1>length2 ? -1 : 1;
+				}
+				return chr1.compareTo(chr2);
+			}
+		});
+		
+		int threads = Math.max(1, Math.min(numThreads, chromosomes.size()));
+		logger.info("Assembling "+chromosomes.size()+" chromosomes using "+threads+" threads");
+		if(threads==1){
+			for(String chr: chromosomes){
+				logger.info("Reference name: "+chr);
+				this.graphs.put(chr, new BuildScriptureCoordinateSpace(this).assemble(chr,strand));
 			}
 		}
+		else{
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			Map<String, Future<ChromosomeTranscriptGraph>> futures = new TreeMap<String, Future<ChromosomeTranscriptGraph>>();
+			for(final String chr: chromosomes){
+				final BuildScriptureCoordinateSpace worker = new BuildScriptureCoordinateSpace(this);
+				futures.put(chr, executor.submit(new Callable<ChromosomeTranscriptGraph>(){
+					@Override
+					public ChromosomeTranscriptGraph call() {
+						logger.info("Reference name: "+chr);
+						return worker.assemble(chr,strand);
+					}
+				}));
+			}
+			executor.shutdown();
+			try{
+				for(String chr: futures.keySet()){
+					this.graphs.put(chr, futures.get(chr).get());
+				}
+			} catch(InterruptedException e){
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while assembling chromosomes", e);
+			} catch(ExecutionException e){
+				executor.shutdownNow();
+				throw new IllegalStateException("Assembly failed", e.getCause());
+			}
+		}
+		// Scoring of the final transcripts uses the same reads as the assembly
+		initializeAssemblyModel(strand);
 	}
 
 	private void postProcess(Map<String, Collection<Gene>> oldGenes) throws IOException{
@@ -747,11 +835,7 @@ public class BuildScriptureCoordinateSpace {
 	 */
 	private ChromosomeTranscriptGraph assembleDirectly(String chr,TranscriptionRead strand){
 		
-		model=new JCSAlignmentModel(bamfile.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(),true,strand,false);
-		model.addFilter(new ReadsToReconstructFilter());
-		model.addFilter(new IndelFilter());
-		model.addFilter(new GenomicSpanFilter(20000000));
-		this.space=model.getCoordinateSpace();
+		initializeAssemblyModel(strand);
 
 		long S = System.currentTimeMillis();	
 		logger.info("Assembling spliced reads");
@@ -790,7 +874,6 @@ public class BuildScriptureCoordinateSpace {
 		model.addFilter(new ProperPairFilter());
 		model.addFilter(new IndelFilter());
 		model.addFilter(new GenomicSpanFilter(20000000));*/
-		globalPairedLambda = model.getGlobalPairedFragments()/model.getGlobalLength();
 		logger.info("Intron retention filter");
 		//REMOVE SPURIOUS
 		start = System.currentTimeMillis();
@@ -840,6 +923,20 @@ public class BuildScriptureCoordinateSpace {
 		return graph;
 	}
 
+	/**
+	 * Opens a new alignment model restricted to the reads used for reconstruction
+	 * @param strand
+	 */
+	private void initializeAssemblyModel(TranscriptionRead strand){
+		
+		model=new JCSAlignmentModel(bamfile.getAbsolutePath(), null, new ArrayList<Predicate<Alignment>>(),true,strand,false);
+		model.addFilter(new ReadsToReconstructFilter());
+		model.addFilter(new IndelFilter());
+		model.addFilter(new GenomicSpanFilter(20000000));
+		this.space=model.getCoordinateSpace();
+		globalPairedLambda = model.getGlobalPairedFragments()/model.getGlobalLength();
+	}
+
 	private void extendAssembly(IntervalTree<Assembly> tree) {
 		//We have a set of assemblies that are all incompatible
 		//We want to link up parts
@@ -2696,7 +2793,7 @@ public class BuildScriptureCoordinateSpace {
 		
 		//For each chromosome
 		for(String chr: this.graphs.keySet()){
-			List<GraphPath<Annotation, TranscriptGraphEdge>> paths=this.graphs.get(chr).getPaths();
+			List<GraphPath<Annotation, TranscriptGraphEdge>> paths=this.graphs.get(chr).getPaths(numThreads);
 			Collection<Gene> genes=new TreeSet<Gene>();
 			for(GraphPath<Annotation, TranscriptGraphEdge> path: paths){
 				//logger.debug(path.toString());
@@ -2981,6 +3078,7 @@ public class BuildScriptureCoordinateSpace {
 			"\n\t\t-minSpliceReads <The minimum number of splice reads allowed to support a single intron transcript. DEFAULT: 3> "+
 			"\n\t\t-percentSpliceReads <The minimum percentage of the average splice counts for a transcript, that an intron can be supported by. DEFAULT: 0.05> "+
 			"\n\t\t-alpha <The significance p-value threshold for reconstructions. DEFAULT: 0.01> "+
+			"\n\t\t-threads <Number of chromosomes assembled at the same time. DEFAULT: 1> "+
 			"\n";
 	
 	//static String usage=" args[0]=bam file \n\t args[1]=minimum percentage threshold for coverage \n\t args[2]: Fasta file with Genome sequence"
@@ -51,9 +51,17 @@ public class ChromosomeTranscriptGraph implements Serializable{
 	}
 
 	public List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths() {
+		return getPaths(1);
+	}
+
+	/**
+	 * @param numThreads Number of threads to enumerate connected components of each strand with
+	 * @return Paths on the plus strand followed by paths on the minus strand
+	 */
+	public List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths(int numThreads) {
 		List<GraphPath<Annotation, TranscriptGraphEdge>> paths = new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>();
-		paths.addAll(plusGraph.getPaths());
-		paths.addAll(negativeGraph.getPaths());
+		paths.addAll(plusGraph.getPaths(numThreads));
+		paths.addAll(negativeGraph.getPaths(numThreads));
 		return paths;
 	}
 
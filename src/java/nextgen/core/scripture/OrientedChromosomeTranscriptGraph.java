@@ -18,8 +18,6 @@ import org.apache.log4j.Logger;
 import org.jgrapht.EdgeFactory;
 import org.jgrapht.GraphPath;
 import org.jgrapht.Graphs;
-import org.jgrapht.alg.ConnectivityInspector;
-import org.jgrapht.alg.KShortestPaths;
 import org.jgrapht.graph.DefaultDirectedWeightedGraph;
 import org.jgrapht.graph.DefaultWeightedEdge;
 import org.jgrapht.graph.GraphPathImpl;
@@ -210,34 +208,17 @@ public class OrientedChromosomeTranscriptGraph extends DefaultDirectedWeightedGr
 	}
 
 	public List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths() {
-		List<GraphPath<Annotation, TranscriptGraphEdge>> paths = new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>();
-
-		//ORPHAN PATHS
-		//paths.addAll(getOrphanPaths());
-		
-		//NON-ORPHAN PATHS
-		Collection<Annotation> sources = getSourceVertices();
-		ConnectivityInspector<Annotation, TranscriptGraphEdge> ci = new ConnectivityInspector<Annotation, OrientedChromosomeTranscriptGraph.TranscriptGraphEdge>(this);
-		
-		//For each source
-		for(Annotation s : sources) {
-			KShortestPaths<Annotation, TranscriptGraphEdge> shortesPathAlg = new KShortestPaths<Annotation, OrientedChromosomeTranscriptGraph.TranscriptGraphEdge>(this, s, MAX_PATHS);
-			java.util.Set<Annotation> connectedSetOfS =  ci.connectedSetOf(s);
-			logger.debug("Connected set of " + s.toUCSC() + " is " + connectedSetOfS);
-			for(Annotation t : connectedSetOfS) {
-				if(isSink(t)) {
-					List<GraphPath<Annotation, TranscriptGraphEdge>> sToTPaths = shortesPathAlg.getPaths(t);
-					if(sToTPaths == null) {
-						//logger.debug("Paths from " + s + " to " + t + " where null ");
-					} else {
-						//logger.debug("Paths from " + s + " to " + t + ": " + sToTPaths);
-						paths.addAll(sToTPaths);
-					}
-				}
-			}
-		}
+		return getPaths(1);
+	}
 
-		return paths;
+	/**
+	 * Get up to MAX_PATHS lightest paths from each source to each sink in the same connected component
+	 * Orphan vertices are not included
+	 * @param numThreads Number of threads to enumerate connected components with
+	 * @return The paths, by source in vertex order
+	 */
+	public List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths(int numThreads) {
+		return new SpliceDag(this).getPaths(MAX_PATHS, numThreads);
 	}
 
 	public static Gene pathToGene(GraphPath<Annotation, TranscriptGraphEdge> gp) {
@@ -0,0 +1,287 @@
+package nextgen.core.scripture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.scripture.OrientedChromosomeTranscriptGraph.TranscriptGraphEdge;
+
+import org.apache.log4j.Logger;
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.GraphPathImpl;
+
+/**
+ * Integer indexed copy of an OrientedChromosomeTranscriptGraph for path enumeration
+ * Splice graphs are acyclic, so one pass in topological order finds the k lightest paths from a source to every sink
+ * Connected components share no vertices and are enumerated in parallel
+ */
+class SpliceDag {
+
+	static Logger logger = Logger.getLogger(SpliceDag.class.getName());
+
+	private OrientedChromosomeTranscriptGraph graph;
+	private Annotation[] vertices;
+	private int[][] inFrom;
+	private TranscriptGraphEdge[][] inEdges;
+	private double[][] inWeights;
+	private boolean[] isSource;
+	private boolean[] isSink;
+	/**
+	 * Vertices of each connected component in topological order
+	 */
+	private List<int[]> components;
+	/**
+	 * Position of each vertex in the topological order of its component
+	 */
+	private int[] positionInComponent;
+
+	/**
+	 * A path to a vertex, linked to the path to the previous vertex
+	 */
+	private static class PartialPath {
+		double weight;
+		PartialPath previous;
+		TranscriptGraphEdge edge;
+
+		PartialPath(double weight, PartialPath previous, TranscriptGraphEdge edge) {
+			this.weight = weight;
+			this.previous = previous;
+			this.edge = edge;
+		}
+	}
+
+	private static Comparator<PartialPath> BY_WEIGHT = new Comparator<PartialPath>() {
+		@Override
+		public int compare(PartialPath p1, PartialPath p2) {
+			return Double.compare(p1.weight, p2.weight);
+		}
+	};
+
+	/**
+	 * @param graph The graph to copy
+	 */
+	SpliceDag(OrientedChromosomeTranscriptGraph graph) {
+		this.graph = graph;
+		List<Annotation> sorted = new ArrayList<Annotation>(graph.vertexSet());
+		Collections.sort(sorted);
+		int n = sorted.size();
+		vertices = sorted.toArray(new Annotation[n]);
+		Map<Annotation, Integer> index = new HashMap<Annotation, Integer>();
+		for(int i = 0; i < n; i++) {
+			index.put(vertices[i], Integer.valueOf(i));
+		}
+
+		inFrom = new int[n][];
+		inEdges = new TranscriptGraphEdge[n][];
+		inWeights = new double[n][];
+		int[][] outTo = new int[n][];
+		isSource = new boolean[n];
+		isSink = new boolean[n];
+		for(int v = 0; v < n; v++) {
+			List<TranscriptGraphEdge> in = new ArrayList<TranscriptGraphEdge>(graph.incomingEdgesOf(vertices[v]));
+			inFrom[v] = new int[in.size()];
+			inEdges[v] = in.toArray(new TranscriptGraphEdge[in.size()]);
+			inWeights[v] = new double[in.size()];
+			for(int i = 0; i < in.size(); i++) {
+				inFrom[v][i] = index.get(graph.getEdgeSource(in.get(i))).intValue();
+				inWeights[v][i] = graph.getEdgeWeight(in.get(i));
+			}
+			List<TranscriptGraphEdge> out = new ArrayList<TranscriptGraphEdge>(graph.outgoingEdgesOf(vertices[v]));
+			outTo[v] = new int[out.size()];
+			for(int i = 0; i < out.size(); i++) {
+				outTo[v][i] = index.get(graph.getEdgeTarget(out.get(i))).intValue();
+			}
+			isSource[v] = in.isEmpty() && !out.isEmpty();
+			isSink[v] = out.isEmpty() && !in.isEmpty();
+		}
+
+		int[] order = topologicalOrder(outTo);
+		int[] componentId = connectedComponents(outTo);
+		// Split the order by component, keeping components in order of their first vertex
+		Map<Integer, List<Integer>> byComponent = new HashMap<Integer, List<Integer>>();
+		for(int v : order) {
+			Integer c = Integer.valueOf(componentId[v]);
+			if(!byComponent.containsKey(c)) byComponent.put(c, new ArrayList<Integer>());
+			byComponent.get(c).add(Integer.valueOf(v));
+		}
+		components = new ArrayList<int[]>();
+		positionInComponent = new int[n];
+		for(int v = 0; v < n; v++) {
+			if(componentId[v] != v) continue;
+			List<Integer> members = byComponent.get(Integer.valueOf(v));
+			int[] component = new int[members.size()];
+			for(int i = 0; i < component.length; i++) {
+				component[i] = members.get(i).intValue();
+				positionInComponent[component[i]] = i;
+			}
+			components.add(component);
+		}
+	}
+
+	/**
+	 * @param outTo Targets of the outgoing edges of each vertex
+	 * @return The vertices in topological order
+	 */
+	private static int[] topologicalOrder(int[][] outTo) {
+		int n = outTo.length;
+		int[] inDegree = new int[n];
+		for(int v = 0; v < n; v++) {
+			for(int w : outTo[v]) inDegree[w]++;
+		}
+		int[] order = new int[n];
+		int head = 0;
+		int tail = 0;
+		for(int v = 0; v < n; v++) {
+			if(inDegree[v] == 0) order[tail++] = v;
+		}
+		while(head < tail) {
+			int v = order[head++];
+			for(int w : outTo[v]) {
+				if(--inDegree[w] == 0) order[tail++] = w;
+			}
+		}
+		if(tail != n) {
+			throw new IllegalStateException("Transcript graph has a cycle");
+		}
+		return order;
+	}
+
+	/**
+	 * @param outTo Targets of the outgoing edges of each vertex
+	 * @return For each vertex, the smallest vertex in its connected component
+	 */
+	private static int[] connectedComponents(int[][] outTo) {
+		int n = outTo.length;
+		int[] parent = new int[n];
+		for(int v = 0; v < n; v++) parent[v] = v;
+		for(int v = 0; v < n; v++) {
+			for(int w : outTo[v]) {
+				int a = find(parent, v);
+				int b = find(parent, w);
+				if(a < b) parent[b] = a;
+				else if(b < a) parent[a] = b;
+			}
+		}
+		for(int v = 0; v < n; v++) parent[v] = find(parent, v);
+		return parent;
+	}
+
+	private static int find(int[] parent, int v) {
+		while(parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+
+	/**
+	 * Get the lightest paths from each source to each sink it reaches
+	 * @param maxPaths Maximum number of paths for each pair of source and sink
+	 * @param numThreads Number of threads to enumerate connected components with
+	 * @return The paths, by source in vertex order
+	 */
+	List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths(final int maxPaths, int numThreads) {
+		List<GraphPath<Annotation, TranscriptGraphEdge>> paths = new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>();
+		int threads = Math.max(1, Math.min(numThreads, components.size()));
+		if(threads == 1) {
+			for(int[] component : components) {
+				paths.addAll(getPaths(component, maxPaths));
+			}
+			return paths;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "splice-dag-paths");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<List<GraphPath<Annotation, TranscriptGraphEdge>>>> futures = new ArrayList<Future<List<GraphPath<Annotation, TranscriptGraphEdge>>>>();
+			for(final int[] component : components) {
+				futures.add(executor.submit(new Callable<List<GraphPath<Annotation, TranscriptGraphEdge>>>() {
+					@Override
+					public List<GraphPath<Annotation, TranscriptGraphEdge>> call() {
+						return getPaths(component, maxPaths);
+					}
+				}));
+			}
+			for(Future<List<GraphPath<Annotation, TranscriptGraphEdge>>> future : futures) {
+				paths.addAll(future.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while enumerating paths", e);
+		} catch(ExecutionException e) {
+			throw new IllegalStateException("Path enumeration failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return paths;
+	}
+
+	/**
+	 * @param component Vertices of a connected component in topological order
+	 * @param maxPaths Maximum number of paths for each pair of source and sink
+	 * @return The lightest paths from each source in the component to each sink
+	 */
+	private List<GraphPath<Annotation, TranscriptGraphEdge>> getPaths(int[] component, int maxPaths) {
+		List<GraphPath<Annotation, TranscriptGraphEdge>> paths = new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>();
+		// Sources in vertex order
+		List<Integer> sources = new ArrayList<Integer>();
+		for(int v : component) {
+			if(isSource[v]) sources.add(Integer.valueOf(v));
+		}
+		Collections.sort(sources);
+
+		PartialPath[][] best = new PartialPath[component.length][];
+		List<PartialPath> candidates = new ArrayList<PartialPath>();
+		for(Integer source : sources) {
+			int start = positionInComponent[source.intValue()];
+			for(int i = start; i < component.length; i++) best[i] = null;
+			best[start] = new PartialPath[] {new PartialPath(0, null, null)};
+
+			// Keep the lightest paths into each vertex from the lightest paths into its predecessors
+			for(int i = start + 1; i < component.length; i++) {
+				int v = component[i];
+				candidates.clear();
+				for(int e = 0; e < inFrom[v].length; e++) {
+					int u = positionInComponent[inFrom[v][e]];
+					if(u < start || best[u] == null) continue;
+					for(PartialPath p : best[u]) {
+						candidates.add(new PartialPath(p.weight + inWeights[v][e], p, inEdges[v][e]));
+					}
+				}
+				if(candidates.isEmpty()) continue;
+				Collections.sort(candidates, BY_WEIGHT);
+				best[i] = candidates.subList(0, Math.min(maxPaths, candidates.size())).toArray(new PartialPath[0]);
+			}
+
+			for(int i = start + 1; i < component.length; i++) {
+				int v = component[i];
+				if(!isSink[v] || best[i] == null) continue;
+				for(PartialPath p : best[i]) {
+					List<TranscriptGraphEdge> edges = new ArrayList<TranscriptGraphEdge>();
+					for(PartialPath q = p; q.edge != null; q = q.previous) {
+						edges.add(q.edge);
+					}
+					Collections.reverse(edges);
+					paths.add(new GraphPathImpl<Annotation, TranscriptGraphEdge>(graph, vertices[source.intValue()], vertices[v], edges, p.weight));
+				}
+			}
+		}
+		return paths;
+	}
+
+}
@@ -105,6 +105,14 @@ public class PairwiseWindowHybridization {
 		return alignments.getAllPairwiseAntisenseAlignments(minAlignLength, minPctIdentity);
 	}
 	
+	/**
+	 * Find hybridizing pairs by seeded search, aligning only pairs of windows that share a k-mer in antisense direction
+	 * @param numThreads Number of threads for the seeded search, or 0 to align every pair of windows
+	 */
+	public void setSeededSearch(int numThreads) {
+		alignments.setSeededAntisenseSearch(numThreads);
+	}
+	
 	/**
 	 * Get the midpoint of the window in transcript coordinates of the gene
 	 * @param region The window
@@ -238,6 +246,7 @@ public class PairwiseWindowHybridization {
 		p.addFloatArg("-ge", "Gap extend penalty for Smith Waterman", false, FeatureSequenceAlignment.DEFAULT_GAP_EXTEND_PENALTY);
 		p.addIntArg("-ml", "Min alignment length", true);
 		p.addFloatArg("-mp", "Min percent identity", true);
+		p.addIntArg("-sd", "Number of threads for seeded search of hybridizing pairs, or 0 to align every pair of windows", false, 0);
 		p.parse(args);
 		String bedFile = p.getStringArg("-b");
 		Collection<Gene> genes = BEDFileParser.loadData(new File(bedFile));
@@ -254,10 +263,12 @@ public class PairwiseWindowHybridization {
 		int minAlignLength = p.getIntArg("-ml");
 		float minPctIdentity = p.getFloatArg("-mp");
 		String bedOverlap = p.getStringArg("-bo");
+		int seededSearchThreads = p.getIntArg("-sd");
 
 		boolean first = true;
 		for(Gene gene : genes) {
 			PairwiseWindowHybridization pwh = new PairwiseWindowHybridization(gene, chromosomes, windowSize, stepSize, matchScore, mismatchScore, gapOpenPenalty, gapExtendPenalty);
+			pwh.setSeededSearch(seededSearchThreads);
 			logger.info("Writing hybridizing pairs for gene " + gene.getName() + " to file " + outBed);
 			if(outBed != null) {
 				pwh.writeAllHybridizingPairsToBed(outBed, !first, minAlignLength, minPctIdentity);
@@ -0,0 +1,107 @@
+package nextgen.core.tests;
+
+import broad.core.datastructures.IntervalTree;
+
+import nextgen.core.alignment.Alignment;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+import nextgen.core.model.AlignmentWindowCache;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the nextgen.core.model.AlignmentWindowCache class
+ */
+public class TestAlignmentWindowCache extends TestCase {
+
+	/**
+	 * Loader putting one placeholder read per window
+	 */
+	private static class OneReadLoader implements AlignmentWindowCache.WindowLoader<IntervalTree<Alignment>> {
+		int loads = 0;
+		@Override
+		public IntervalTree<Alignment> load(Window window, boolean fullyContained) {
+			loads++;
+			IntervalTree<Alignment> tree = new IntervalTree<Alignment>();
+			tree.put(window.getStart(), window.getEnd(), null);
+			return tree;
+		}
+		@Override
+		public long getBytes(IntervalTree<Alignment> loaded) {
+			return AlignmentWindowCache.estimateBytes(loaded);
+		}
+	}
+
+	/**
+	 * Queries on several chromosomes should all be served from cached windows
+	 */
+	public void testInterleavedChromosomes() {
+		OneReadLoader loader = new OneReadLoader();
+		AlignmentWindowCache<IntervalTree<Alignment>> cache = new AlignmentWindowCache<IntervalTree<Alignment>>(loader, 1000, Long.MAX_VALUE, 4);
+		for(int i = 0; i < 10; i++) {
+			assertNotNull(cache.get(new GenomeWindow("chr1", 100 + i, 200 + i), false));
+			assertNotNull(cache.get(new GenomeWindow("chr2", 100 + i, 200 + i), false));
+			assertNotNull(cache.get(new GenomeWindow("chrX", 100 + i, 200 + i), false));
+		}
+		assertEquals(3, loader.loads);
+		assertEquals(3, cache.getRebuilds());
+		assertEquals(3, cache.getMisses());
+		assertEquals(27, cache.getHits());
+		assertEquals(3, cache.getNumWindows());
+	}
+
+	/**
+	 * The least recently used window is evicted once the byte bound is reached
+	 */
+	public void testLeastRecentlyUsedEviction() {
+		OneReadLoader loader = new OneReadLoader();
+		AlignmentWindowCache<IntervalTree<Alignment>> cache = new AlignmentWindowCache<IntervalTree<Alignment>>(loader, 1000, 2 * AlignmentWindowCache.ESTIMATED_BYTES_PER_READ, 1);
+		cache.get(new GenomeWindow("chr1", 0, 10), false);
+		cache.get(new GenomeWindow("chr2", 0, 10), false);
+		// Touch chr1 so that chr2 is the eldest
+		cache.get(new GenomeWindow("chr1", 20, 30), false);
+		cache.get(new GenomeWindow("chr3", 0, 10), false);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getNumWindows());
+		cache.get(new GenomeWindow("chr1", 40, 50), false);
+		assertEquals(3, loader.loads);
+		cache.get(new GenomeWindow("chr2", 40, 50), false);
+		assertEquals(4, loader.loads);
+	}
+
+	/**
+	 * Windows loaded for fully contained reads do not answer overlapping read queries
+	 */
+	public void testFullyContainedIsPartOfTheKey() {
+		OneReadLoader loader = new OneReadLoader();
+		AlignmentWindowCache<IntervalTree<Alignment>> cache = new AlignmentWindowCache<IntervalTree<Alignment>>(loader, 1000);
+		cache.get(new GenomeWindow("chr1", 0, 10), false);
+		cache.get(new GenomeWindow("chr1", 0, 10), true);
+		assertEquals(2, loader.loads);
+	}
+
+	/**
+	 * Many windows on one chromosome, including a long one, are found by start position whichever order they were loaded in
+	 */
+	public void testManyWindowsOnOneChromosome() {
+		OneReadLoader loader = new OneReadLoader();
+		AlignmentWindowCache<IntervalTree<Alignment>> cache = new AlignmentWindowCache<IntervalTree<Alignment>>(loader, 1000, Long.MAX_VALUE, 1);
+		for(int i = 0; i < 50; i++) {
+			cache.get(new GenomeWindow("chr1", i * 1000, i * 1000 + 10), false);
+		}
+		cache.get(new GenomeWindow("chr1", 100000, 105000), false);
+		assertEquals(51, loader.loads);
+		for(int i = 49; i >= 0; i--) {
+			cache.get(new GenomeWindow("chr1", i * 1000 + 500, i * 1000 + 600), false);
+		}
+		cache.get(new GenomeWindow("chr1", 104000, 104500), false);
+		cache.get(new GenomeWindow("CHR1", 2500, 2600), false);
+		assertEquals(51, loader.loads);
+		// Spans two windows
+		cache.get(new GenomeWindow("chr1", 2995, 3005), false);
+		assertEquals(52, loader.loads);
+		cache.clear();
+		cache.get(new GenomeWindow("chr1", 500, 600), false);
+		assertEquals(53, loader.loads);
+	}
+}
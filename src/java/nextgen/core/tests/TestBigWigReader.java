@@ -0,0 +1,177 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.readers.BigWigReader;
+import nextgen.core.writers.BigWigWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that nextgen.core.readers.BigWigReader returns the values written by nextgen.core.writers.BigWigWriter
+ */
+public class TestBigWigReader extends TestCase {
+
+	private File bigwig;
+	private Map<String, float[]> values;
+	private BigWigReader reader;
+
+	@Override
+	protected void setUp() throws IOException {
+		bigwig = File.createTempFile("test", ".bw");
+		Random random = new Random(7);
+		values = new TreeMap<String, float[]>();
+		Map<String, Integer> sizes = new TreeMap<String, Integer>();
+		String[] names = new String[] {"chr1", "chr2", "chr3"};
+		int[] lengths = new int[] {2000000, 300000, 1000};
+		for (int c = 0; c < names.length; c++) {
+			float[] v = new float[lengths[c]];
+			Arrays.fill(v, Float.NaN);
+			int i = random.nextInt(500);
+			while (i < v.length) {
+				int stretch = random.nextInt(20000);
+				float value = 0;
+				for (int j = i; j < Math.min(v.length, i + stretch); j++) {
+					if (random.nextInt(3) == 0) value = random.nextInt(100) / 8f;
+					v[j] = value;
+				}
+				i += stretch + random.nextInt(5000);
+			}
+			values.put(names[c], v);
+			sizes.put(names[c], Integer.valueOf(lengths[c]));
+		}
+		BigWigWriter writer = new BigWigWriter(bigwig.getAbsolutePath(), sizes, 2);
+		for (String chr : values.keySet()) {
+			writer.addChromosome(chr, values.get(chr));
+		}
+		writer.close();
+		reader = new BigWigReader(bigwig.getAbsolutePath());
+	}
+
+	@Override
+	protected void tearDown() {
+		bigwig.delete();
+	}
+
+	public void testChromosomes() {
+		assertEquals(values.keySet(), new TreeSet<String>(reader.getChromosomeNames()));
+		assertEquals(300000, reader.getChromosomeSize("chr2"));
+		assertTrue(reader.getZoomReductions().length > 1);
+	}
+
+	public void testValues() {
+		Random random = new Random(3);
+		for (int q = 0; q < 300; q++) {
+			String chr = q % 3 == 0 ? "chr2" : "chr1";
+			float[] expected = values.get(chr);
+			int start = random.nextInt(expected.length);
+			int end = Math.min(expected.length, start + random.nextInt(q % 2 == 0 ? 100 : 50000));
+			float[] observed = reader.getValues(chr, start, end);
+			assertEquals(end - start, observed.length);
+			for (int i = 0; i < observed.length; i++) {
+				assertEquals(chr + ":" + (start + i), Float.isNaN(expected[start + i]), Float.isNaN(observed[i]));
+				if (!Float.isNaN(observed[i])) {
+					assertEquals(expected[start + i], observed[i], 0);
+				}
+			}
+		}
+		// Past the data and on a chromosome not in the file
+		assertTrue(Float.isNaN(reader.getValues("chr3", 1000, 1010)[5]));
+		assertEquals(10, reader.getValues("chrZ", 0, 10).length);
+		assertTrue(Float.isNaN(reader.getValues("chrZ", 0, 10)[0]));
+	}
+
+	public void testValue() {
+		float[] expected = values.get("chr1");
+		for (int pos = 0; pos < 5000; pos += 7) {
+			if (Float.isNaN(expected[pos])) {
+				try {
+					reader.getValue("chr1", pos);
+					fail("Position with no data should not have a value");
+				} catch (IllegalArgumentException e) {
+					// expected
+				}
+			} else {
+				assertEquals(expected[pos], reader.getValue("chr1", pos), 0);
+			}
+		}
+	}
+
+	public void testAnnotationValues() {
+		Collection<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 1000, 1500, Strand.POSITIVE));
+		exons.add(new BasicAnnotation("chr1", 30000, 30100, Strand.POSITIVE));
+		exons.add(new BasicAnnotation("chr1", 90000, 92000, Strand.POSITIVE));
+		Gene gene = new Gene(exons, "gene", Strand.POSITIVE);
+		float[] observed = reader.getValues(gene);
+		assertEquals(gene.getSize(), observed.length);
+		float[] expected = values.get("chr1");
+		int i = 0;
+		double sum = 0;
+		for (Annotation exon : gene.getBlocks()) {
+			for (int pos = exon.getStart(); pos < exon.getEnd(); pos++) {
+				if (Float.isNaN(expected[pos])) {
+					assertTrue(Float.isNaN(observed[i]));
+				} else {
+					assertEquals(expected[pos], observed[i], 0);
+					sum += expected[pos];
+				}
+				i++;
+			}
+		}
+		assertEquals(sum, reader.getSummary(gene).getSum(), 1e-6 * Math.max(1, sum));
+	}
+
+	public void testSummary() {
+		Random random = new Random(5);
+		for (int q = 0; q < 200; q++) {
+			String chr = q % 4 == 0 ? "chr2" : "chr1";
+			float[] v = values.get(chr);
+			int start = random.nextInt(v.length);
+			int end = Math.min(v.length, start + random.nextInt(q % 2 == 0 ? 1000 : 1000000));
+			long covered = 0;
+			double sum = 0;
+			double max = Double.NEGATIVE_INFINITY;
+			double min = Double.POSITIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				if (Float.isNaN(v[i])) continue;
+				covered++;
+				sum += v[i];
+				max = Math.max(max, v[i]);
+				min = Math.min(min, v[i]);
+			}
+			BigWigReader.Summary summary = reader.getSummary(chr, start, end);
+			assertEquals(covered, summary.getBasesCovered());
+			// Zoom record sums are floats
+			assertEquals(sum, summary.getSum(), 1e-5 * Math.max(1, sum));
+			if (covered > 0) {
+				assertEquals(max, summary.getMax(), 0);
+				assertEquals(min, summary.getMin(), 0);
+				assertEquals(sum / covered, summary.getMean(), 1e-5 * Math.max(1, sum / covered));
+			} else {
+				assertTrue(Double.isNaN(summary.getMean()));
+			}
+		}
+		BigWigReader.Summary total = reader.getTotalSummary();
+		long covered = 0;
+		for (float[] v : values.values()) {
+			for (float f : v) {
+				if (!Float.isNaN(f)) covered++;
+			}
+		}
+		assertEquals(covered, total.getBasesCovered());
+	}
+
+}
@@ -0,0 +1,175 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import nextgen.core.writers.BigWigWriter;
+
+import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BigWigIterator;
+import org.broad.igv.bbfile.WigItem;
+import org.broad.igv.bbfile.ZoomDataRecord;
+import org.broad.igv.bbfile.ZoomLevelIterator;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that files written by nextgen.core.writers.BigWigWriter are read back by the IGV BigWig reader
+ */
+public class TestBigWigWriter extends TestCase {
+
+	private File bigwig;
+	private Map<String, float[]> values;
+	private Map<String, Integer> sizes;
+
+	@Override
+	protected void setUp() throws IOException {
+		bigwig = File.createTempFile("test", ".bw");
+		Random random = new Random(11);
+		values = new TreeMap<String, float[]>();
+		sizes = new TreeMap<String, Integer>();
+		String[] names = new String[] {"chr1", "chr10", "chr2", "chrM", "chrX"};
+		int[] lengths = new int[] {400000, 30000, 250000, 16000, 5};
+		for (int c = 0; c < names.length; c++) {
+			float[] v = new float[lengths[c]];
+			Arrays.fill(v, Float.NaN);
+			// Covered stretches with runs of equal values, and some gaps with no data
+			int i = random.nextInt(100);
+			while (i < v.length) {
+				int stretch = random.nextInt(3000);
+				for (int j = i; j < Math.min(v.length, i + stretch); j++) {
+					v[j] = random.nextInt(4) == 0 ? v[Math.max(i, j - 1)] : random.nextInt(50) / 4f;
+					if (Float.isNaN(v[j])) v[j] = 0;
+				}
+				i += stretch + random.nextInt(2000);
+			}
+			values.put(names[c], v);
+			sizes.put(names[c], Integer.valueOf(lengths[c] + c));
+		}
+		// A chromosome with no data
+		sizes.put("chrY", Integer.valueOf(1000));
+	}
+
+	@Override
+	protected void tearDown() {
+		bigwig.delete();
+	}
+
+	private void write(int numThreads) throws IOException {
+		BigWigWriter writer = new BigWigWriter(bigwig.getAbsolutePath(), sizes, numThreads);
+		for (String chr : values.keySet()) {
+			writer.addChromosome(chr, values.get(chr));
+		}
+		writer.close();
+	}
+
+	private void checkValues(BBFileReader reader) throws IOException {
+		assertTrue(reader.isBigWigFile());
+		assertEquals(sizes.size(), reader.getChromosomeNames().size());
+		for (String chr : values.keySet()) {
+			float[] expected = values.get(chr);
+			float[] observed = new float[expected.length];
+			Arrays.fill(observed, Float.NaN);
+			BigWigIterator iter = reader.getBigWigIterator(chr, 0, chr, expected.length, false);
+			while (iter.hasNext()) {
+				WigItem item = iter.next();
+				for (int i = item.getStartBase(); i < item.getEndBase(); i++) {
+					assertTrue(chr + ":" + i, Float.isNaN(observed[i]));
+					observed[i] = item.getWigValue();
+				}
+			}
+			for (int i = 0; i < expected.length; i++) {
+				assertEquals(chr + ":" + i, Float.isNaN(expected[i]), Float.isNaN(observed[i]));
+				if (!Float.isNaN(expected[i])) {
+					assertEquals(chr + ":" + i, expected[i], observed[i], 0);
+				}
+			}
+		}
+	}
+
+	public void testReadBack() throws IOException {
+		write(1);
+		checkValues(new BBFileReader(bigwig.getAbsolutePath()));
+	}
+
+	public void testParallelReadBack() throws IOException {
+		write(3);
+		BBFileReader reader = new BBFileReader(bigwig.getAbsolutePath());
+		checkValues(reader);
+		assertFalse(reader.getBigWigIterator("chrY", 0, "chrY", 1000, false).hasNext());
+	}
+
+	public void testSummaries() throws IOException {
+		write(2);
+		BBFileReader reader = new BBFileReader(bigwig.getAbsolutePath());
+		long covered = 0;
+		double sum = 0;
+		Map<String, Double> sumByChr = new TreeMap<String, Double>();
+		Map<String, Integer> coveredByChr = new TreeMap<String, Integer>();
+		for (String chr : values.keySet()) {
+			double chrSum = 0;
+			int chrCovered = 0;
+			for (float v : values.get(chr)) {
+				if (!Float.isNaN(v)) {
+					chrCovered++;
+					chrSum += v;
+				}
+			}
+			covered += chrCovered;
+			sum += chrSum;
+			sumByChr.put(chr, Double.valueOf(chrSum));
+			coveredByChr.put(chr, Integer.valueOf(chrCovered));
+		}
+		assertEquals(covered, reader.getTotalSummaryBlock().getBasesCovered());
+		// This IGV reader reads the summary values as floats, but the format stores doubles
+		RandomAccessFile file = new RandomAccessFile(bigwig, "r");
+		try {
+			ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).order(ByteOrder.LITTLE_ENDIAN);
+			int summaryOffset = (int) buffer.getLong(44);
+			assertEquals(covered, buffer.getLong(summaryOffset));
+			assertEquals(sum, buffer.getDouble(summaryOffset + 24), sum * 1e-9);
+		} finally {
+			file.close();
+		}
+
+		assertTrue(reader.getZoomLevelCount() > 1);
+		for (int level = 1; level <= reader.getZoomLevelCount(); level++) {
+			for (String chr : values.keySet()) {
+				long levelCovered = 0;
+				double levelSum = 0;
+				ZoomLevelIterator iter = reader.getZoomLevelIterator(level, chr, 0, chr, sizes.get(chr).intValue(), false);
+				while (iter.hasNext()) {
+					ZoomDataRecord record = iter.next();
+					levelCovered += record.getBasesCovered();
+					levelSum += record.getSumData();
+					assertTrue(record.getMinVal() <= record.getMaxVal());
+				}
+				double expectedSum = sumByChr.get(chr).doubleValue();
+				assertEquals(chr + " level " + level, coveredByChr.get(chr).intValue(), levelCovered);
+				assertEquals(chr + " level " + level, expectedSum, levelSum, Math.max(1e-3, expectedSum * 1e-4));
+			}
+		}
+	}
+
+	public void testChromosomeOrder() throws IOException {
+		BigWigWriter writer = new BigWigWriter(bigwig.getAbsolutePath(), sizes, 1);
+		try {
+			writer.addChromosome("chr2", values.get("chr2"));
+			writer.addChromosome("chr1", values.get("chr1"));
+			fail("Chromosomes out of order should not be written");
+		} catch (IllegalArgumentException e) {
+			// expected
+		} finally {
+			writer.close();
+		}
+	}
+
+}
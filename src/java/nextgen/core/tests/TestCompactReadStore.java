@@ -0,0 +1,183 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.alignment.CompactReadStore;
+import nextgen.core.alignment.SingleEndAlignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.model.AlignmentModel;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the nextgen.core.alignment.CompactReadStore class against the Annotation overlap functions
+ */
+public class TestCompactReadStore extends TestCase {
+
+	private List<Alignment> makeReads(int n, long seed) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		Random random = new Random(seed);
+		List<Alignment> rtrn = new ArrayList<Alignment>();
+		for(int i = 0; i < n; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName("chr1");
+			record.setAlignmentStart(1 + random.nextInt(5000));
+			// One in four reads is spliced
+			record.setCigarString(random.nextInt(4) == 0 ? "20M" + (50 + random.nextInt(500)) + "N30M" : "50M");
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			record.setReadString(new String(new char[50]).replace('\0', 'A'));
+			rtrn.add(new SingleEndAlignment(record));
+		}
+		return rtrn;
+	}
+
+	public void testCountMatchesOverlaps() {
+		List<Alignment> reads = makeReads(2000, 7);
+		CompactReadStore store = new CompactReadStore("chr1", reads.iterator());
+		assertEquals(reads.size(), store.size());
+		Random random = new Random(11);
+		for(int q = 0; q < 200; q++) {
+			int start = random.nextInt(5500);
+			int end = start + 1 + random.nextInt(300);
+			Annotation window = new BasicAnnotation("chr1", start, end);
+			int overlapping = 0;
+			int contained = 0;
+			for(Alignment read : reads) {
+				if(window.overlaps(read)) overlapping++;
+				if(window.contains(read)) contained++;
+			}
+			Collection<Annotation> regions = new ArrayList<Annotation>();
+			regions.add(window);
+			assertEquals(overlapping, store.getCount(start, end, false), 1e-9);
+			assertEquals(contained, store.getCount(start, end, true), 1e-9);
+			assertEquals(overlapping, store.getCount(regions, false, null), 1e-9);
+		}
+	}
+
+	public void testCoverageAndOverlappers() {
+		List<Alignment> reads = makeReads(500, 3);
+		CompactReadStore store = new CompactReadStore("chr1", reads.iterator());
+		int start = 1000;
+		int end = 1200;
+		double[] coverage = store.getCoverage(start, end);
+		for(int pos = start; pos < end; pos++) {
+			Annotation base = new BasicAnnotation("chr1", pos, pos + 1);
+			int expected = 0;
+			for(Alignment read : reads) {
+				if(read.overlaps(base)) expected++;
+			}
+			assertEquals(expected, coverage[pos - start], 1e-9);
+		}
+		int spanning = 0;
+		for(Alignment read : reads) {
+			if(read.getStart() < end && read.getEnd() > start) spanning++;
+		}
+		int seen = 0;
+		CloseableIterator<Alignment> iter = store.getOverlappingReads(start, end);
+		while(iter.hasNext()) {
+			Alignment view = iter.next();
+			assertTrue(view.getStart() < end && view.getEnd() > start);
+			seen++;
+		}
+		iter.close();
+		assertEquals(spanning, seen);
+	}
+
+	/**
+	 * Write an indexed bam of single end reads, some spliced and some multimapping
+	 * Reads with the same start have the same number of hits so their weights agree
+	 */
+	private File makeBam(File dir) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		header.addSequence(new SAMSequenceRecord("chr2", 100000));
+		header.setSortOrder(SortOrder.coordinate);
+		Random random = new Random(17);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for(int i = 0; i < 3000; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName(i % 4 == 0 ? "chr2" : "chr1");
+			int start = 1 + random.nextInt(20000);
+			record.setAlignmentStart(start);
+			record.setCigarString(random.nextInt(4) == 0 ? "20M" + (50 + random.nextInt(500)) + "N30M" : "50M");
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			record.setReadString(new String(new char[50]).replace('\0', 'A'));
+			record.setBaseQualityString(new String(new char[50]).replace('\0', 'I'));
+			record.setMappingQuality(255);
+			record.setAttribute("NH", Integer.valueOf(1 + start % 3));
+			records.add(record);
+		}
+		Collections.sort(records, new SAMRecordCoordinateComparator());
+		File bam = new File(dir, "reads.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return bam;
+	}
+
+	public void testModelCountMatchesCachedReads() throws IOException {
+		File dir = File.createTempFile("compactCount", "");
+		dir.delete();
+		dir.mkdirs();
+		File bam = makeBam(dir);
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		sizes.put("chr1", 100000);
+		sizes.put("chr2", 100000);
+		GenomicSpace space = new GenomicSpace(sizes);
+		AlignmentModel cached = new AlignmentModel(bam.getAbsolutePath(), space, false);
+		AlignmentModel compact = new AlignmentModel(bam.getAbsolutePath(), space, false);
+		compact.setCompactCache(true);
+		Random random = new Random(23);
+		int nonZero = 0;
+		for(int q = 0; q < 300; q++) {
+			String chr = q % 3 == 0 ? "chr2" : "chr1";
+			int start = random.nextInt(20500);
+			Annotation window;
+			if(q % 5 == 0) {
+				// Two blocks, as for a spliced gene
+				List<Annotation> blocks = new ArrayList<Annotation>();
+				blocks.add(new BasicAnnotation(chr, start, start + 100));
+				blocks.add(new BasicAnnotation(chr, start + 400, start + 600));
+				window = new BasicAnnotation(blocks, Strand.POSITIVE, "gene" + q);
+			} else {
+				window = new BasicAnnotation(chr, start, start + 1 + random.nextInt(400), Strand.POSITIVE);
+			}
+			boolean fullyContained = q % 2 == 0;
+			double expected = cached.getCount(window, fullyContained);
+			assertEquals(window.toUCSC(), expected, compact.getCount(window, fullyContained), 1e-9);
+			if(expected > 0) nonZero++;
+		}
+		assertTrue(nonZero > 150);
+		assertTrue(compact.getCompactReadCache().getHits() > 0);
+		assertEquals(0, cached.getCompactReadCache().getHits() + cached.getCompactReadCache().getMisses());
+		for(File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,93 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nextgen.editing.crispr.score.GuideEfficacySVM;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the nextgen.editing.crispr.score.GuideEfficacySVM class
+ */
+public class TestGuideEfficacySVM extends TestCase {
+
+	public void testFeatures() {
+		double[] features = GuideEfficacySVM.getFeatures("acTGACTGACTGACTGACTGNGG");
+		assertEquals(4 * GuideEfficacySVM.NUM_POSITIONS, features.length);
+		// Bases are in the order A, C, T, G at each position
+		assertEquals(1.0, features[0]);
+		assertEquals(1.0, features[5]);
+		assertEquals(1.0, features[10]);
+		assertEquals(1.0, features[15]);
+		double sum = 0;
+		for(double f : features) sum += f;
+		assertEquals((double) GuideEfficacySVM.NUM_POSITIONS, sum);
+		try {
+			GuideEfficacySVM.getFeatures("ACTGACTGACTGACTGACTN");
+			fail();
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testBatchMatchesSingle() throws Exception {
+		GuideEfficacySVM model = GuideEfficacySVM.getDefaultModel();
+		assertSame(model, GuideEfficacySVM.getDefaultModel());
+		Random random = new Random(7);
+		List<String> guides = new ArrayList<String>();
+		for(int i = 0; i < 2500; i++) {
+			StringBuilder sb = new StringBuilder();
+			for(int j = 0; j < GuideEfficacySVM.NUM_POSITIONS; j++) {
+				sb.append("ACGT".charAt(random.nextInt(4)));
+			}
+			guides.add(sb.toString());
+		}
+		Map<String, Double> scores = model.score(guides, 4);
+		for(String guide : guides) {
+			double score = model.score(guide);
+			assertTrue(score > 0 && score < 1);
+			assertEquals(score, scores.get(guide).doubleValue(), 0);
+		}
+	}
+
+	private static String randomGuide(Random random, char first) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(first);
+		for(int j = 1; j < GuideEfficacySVM.NUM_POSITIONS; j++) {
+			sb.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Guides starting with A are depleted and all others are not
+	 * The first training example is depleted so scores are the probability of not being depleted
+	 */
+	public void testSeparableFixture() {
+		Random random = new Random(19);
+		List<double[]> features = new ArrayList<double[]>();
+		List<Integer> labels = new ArrayList<Integer>();
+		for(int i = 0; i < 120; i++) {
+			boolean depleted = i % 2 == 0;
+			features.add(GuideEfficacySVM.getFeatures(randomGuide(random, depleted ? 'A' : "CGT".charAt(random.nextInt(3)))));
+			labels.add(Integer.valueOf(depleted ? -1 : 1));
+		}
+		GuideEfficacySVM model = new GuideEfficacySVM(features, labels);
+		double maxDepleted = 0;
+		double minKept = 1;
+		for(int i = 0; i < 50; i++) {
+			double depleted = model.score(randomGuide(random, 'A'));
+			double kept = model.score(randomGuide(random, "CGT".charAt(i % 3)));
+			// Every held out guide is classified correctly
+			assertTrue("Depleted guide scored " + depleted, depleted < 0.5);
+			assertTrue("Kept guide scored " + kept, kept > 0.5);
+			maxDepleted = Math.max(maxDepleted, depleted);
+			minKept = Math.min(minKept, kept);
+		}
+		assertTrue(maxDepleted < minKept);
+	}
+
+}
@@ -0,0 +1,91 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import nextgen.core.job.LocalJob;
+import nextgen.core.job.LocalJobPool;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the nextgen.core.job.LocalJob and nextgen.core.job.LocalJobPool classes
+ */
+public class TestLocalJob extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("local_job", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String outFile(String name) {
+		return new File(dir, name + ".out").getAbsolutePath();
+	}
+
+	public void testExitStatus() throws InterruptedException {
+		LocalJobPool pool = new LocalJobPool(2, 4);
+		LocalJob ok = new LocalJob(pool, "echo hello", "ok", outFile("ok"), 1, 1);
+		LocalJob bad = new LocalJob(pool, "exit 3", "bad", outFile("bad"), 1, 1);
+		ok.submit();
+		bad.submit();
+		ok.waitFor();
+		bad.waitFor();
+		assertTrue(ok.succeeded());
+		assertFalse(ok.failed());
+		assertTrue(bad.failed());
+		assertTrue(ok.getOutputFile().length() > 0);
+		assertEquals(2, pool.getFreeCpus());
+		assertEquals(4, pool.getFreeMemory());
+	}
+
+	public void testSlotLimit() throws InterruptedException {
+		LocalJobPool pool = new LocalJobPool(2, 4);
+		LocalJob first = new LocalJob(pool, "sleep 30", "first", outFile("first"), 1, 3);
+		LocalJob second = new LocalJob(pool, "echo second", "second", outFile("second"), 1, 3);
+		// Requests more than the pool so is limited to the whole pool
+		LocalJob big = new LocalJob(pool, "echo big", "big", outFile("big"), 8, 1);
+		first.submit();
+		second.submit();
+		big.submit();
+		// Second job does not fit in the memory left by the first, and the big job waits behind it
+		assertTrue(second.isPending());
+		assertTrue(big.isPending());
+		assertEquals(2, pool.getNumPending());
+		first.kill();
+		first.waitFor();
+		second.waitFor();
+		big.waitFor();
+		assertTrue(first.failed());
+		assertTrue(second.succeeded());
+		assertTrue(big.succeeded());
+		assertEquals(0, pool.getNumPending());
+	}
+
+	public void testKillPending() throws InterruptedException {
+		LocalJobPool pool = new LocalJobPool(1, 1);
+		LocalJob running = new LocalJob(pool, "sleep 30", "running", outFile("running"), 1, 1);
+		LocalJob pending = new LocalJob(pool, "echo pending", "pending", outFile("pending"), 1, 1);
+		running.submit();
+		pending.submit();
+		pending.kill();
+		pending.waitFor();
+		assertTrue(pending.failed());
+		assertFalse(pending.getOutputFile().exists());
+		running.kill();
+		running.waitFor();
+		assertTrue(running.failed());
+	}
+
+}
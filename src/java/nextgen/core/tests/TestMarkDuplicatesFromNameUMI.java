@@ -0,0 +1,155 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.programs.MarkDuplicatesFromNameUMI;
+import nextgen.core.programs.MarkDuplicatesFromNameUMI.MarkDuplicatesResults;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests duplicate marking by nextgen.core.programs.MarkDuplicatesFromNameUMI
+ */
+public class TestMarkDuplicatesFromNameUMI extends TestCase {
+
+	private SAMFileHeader makeHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr3", 1000000));
+		header.setSortOrder(SortOrder.coordinate);
+		return header;
+	}
+
+	private SAMRecord makeRecord(SAMFileHeader header, String name, int chr, int start, int length) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceIndex(chr);
+		record.setAlignmentStart(start);
+		record.setCigarString(length + "M");
+		record.setReadString(new String(new char[length]).replace('\0', 'A'));
+		record.setBaseQualityString(new String(new char[length]).replace('\0', 'I'));
+		return record;
+	}
+
+	private File write(File dir, SAMFileHeader header, List<SAMRecord> records) {
+		File input = new File(dir, "input.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, input);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return input;
+	}
+
+	private List<String> read(File file) {
+		List<String> rtrn = new ArrayList<String>();
+		SAMFileReader reader = new SAMFileReader(file);
+		for(SAMRecord record : reader) {
+			rtrn.add(record.getReadName() + " " + record.getReferenceName() + ":" + record.getAlignmentStart() + " " + record.getDuplicateReadFlag());
+		}
+		reader.close();
+		return rtrn;
+	}
+
+	private MarkDuplicatesResults mark(File input, File output, int numThreads) {
+		SAMFileReader reader = new SAMFileReader(input);
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), false, output);
+		reader.close();
+		MarkDuplicatesResults result = MarkDuplicatesFromNameUMI.markDuplicates(2, input, writer, null, false, 30, 30, 0.02, 5, numThreads);
+		writer.close();
+		return result;
+	}
+
+	private File makeDir() {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "test_umi_" + System.nanoTime());
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	public void testMarking() {
+		File dir = makeDir();
+		SAMFileHeader header = makeHeader();
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		records.add(makeRecord(header, "r1:AC", 0, 100, 50));
+		// Same start, end and barcode
+		records.add(makeRecord(header, "r2:AC", 0, 100, 50));
+		// Different barcode
+		records.add(makeRecord(header, "r3:GT", 0, 100, 50));
+		// Different end
+		records.add(makeRecord(header, "r4:AC", 0, 100, 60));
+		// Degenerate barcodes are all the same barcode
+		records.add(makeRecord(header, "r5:NA", 0, 100, 50));
+		records.add(makeRecord(header, "r6:CN", 0, 100, 50));
+		// Different start
+		records.add(makeRecord(header, "r7:AC", 0, 101, 50));
+		// Same position on another chromosome
+		records.add(makeRecord(header, "r8:AC", 1, 100, 50));
+		File input = write(dir, header, records);
+
+		File output = new File(dir, "marked.bam");
+		MarkDuplicatesResults result = mark(input, output, 1);
+		List<String> marked = read(output);
+		assertEquals(8, marked.size());
+		assertTrue(marked.contains("r1:AC chr1:100 false"));
+		assertTrue(marked.contains("r2:AC chr1:100 true"));
+		assertTrue(marked.contains("r3:GT chr1:100 false"));
+		assertTrue(marked.contains("r4:AC chr1:100 false"));
+		assertTrue(marked.contains("r5:NA chr1:100 false"));
+		assertTrue(marked.contains("r6:CN chr1:100 true"));
+		assertTrue(marked.contains("r7:AC chr1:101 false"));
+		assertTrue(marked.contains("r8:AC chr2:100 false"));
+		assertEquals(8, result.getNumAlignments());
+		assertEquals(2, result.getNumAlignedMarked());
+		assertEquals(6, result.getNumUnmarked());
+		assertEquals(2, result.getNumDegenerateBCs());
+		new File(dir, "input.bai").delete();
+		input.delete();
+		output.delete();
+	}
+
+	public void testParallelMatchesSequential() {
+		File dir = makeDir();
+		SAMFileHeader header = makeHeader();
+		Random random = new Random(3);
+		String bases = "ACGT";
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for(int chr = 0; chr < 3; chr++) {
+			int start = 1;
+			for(int position = 0; position < 300; position++) {
+				start += 1 + random.nextInt(100);
+				int depth = 1 + random.nextInt(40);
+				for(int i = 0; i < depth; i++) {
+					String bc = "" + bases.charAt(random.nextInt(4)) + bases.charAt(random.nextInt(4));
+					records.add(makeRecord(header, "read" + records.size() + ":" + bc, chr, start, random.nextBoolean() ? 50 : 40));
+				}
+			}
+		}
+		File input = write(dir, header, records);
+
+		File sequentialOutput = new File(dir, "sequential.bam");
+		MarkDuplicatesResults sequential = mark(input, sequentialOutput, 1);
+		File parallelOutput = new File(dir, "parallel.bam");
+		MarkDuplicatesResults parallel = mark(input, parallelOutput, 3);
+		assertEquals(read(sequentialOutput), read(parallelOutput));
+		assertEquals(records.size(), parallel.getNumAlignments());
+		assertEquals(sequential.getNumAlignedMarked(), parallel.getNumAlignedMarked());
+		assertTrue(parallel.getNumAlignedMarked() > 0);
+		new File(dir, "input.bai").delete();
+		input.delete();
+		sequentialOutput.delete();
+		parallelOutput.delete();
+	}
+
+}
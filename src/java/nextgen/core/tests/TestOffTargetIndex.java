@@ -0,0 +1,146 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import broad.core.sequence.Sequence;
+
+import nextgen.editing.crispr.OffTargetIndex;
+import nextgen.editing.crispr.score.GuideOffTargetScore;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the nextgen.editing.crispr.OffTargetIndex class against a brute force scan of a random genome
+ */
+public class TestOffTargetIndex extends TestCase {
+
+	private static final String[] CHRS = {"chr1", "chr2"};
+	private File dir;
+	private String[] genome;
+	private OffTargetIndex index;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("testOffTargetIndex", "");
+		dir.delete();
+		dir.mkdir();
+		Random random = new Random(3);
+		genome = new String[CHRS.length];
+		File fasta = new File(dir, "genome.fa");
+		FileWriter w = new FileWriter(fasta);
+		for(int c = 0; c < CHRS.length; c++) {
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 20000; i++) {
+				// Low complexity so that guides have many near matches
+				sb.append(i % 997 < 5 ? 'N' : "ACGT".charAt(random.nextInt(c == 0 ? 4 : 2)));
+			}
+			genome[c] = sb.toString();
+			w.write(">" + CHRS[c] + "\n");
+			for(int i = 0; i < genome[c].length(); i += 60) {
+				w.write(genome[c].substring(i, Math.min(genome[c].length(), i + 60)).toLowerCase() + "\n");
+			}
+		}
+		w.close();
+		index = OffTargetIndex.getOrBuild(new File(dir, "genome.fa.ngg.idx"), fasta.getAbsolutePath());
+	}
+
+	@Override
+	protected void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	public void testSearchMatchesBruteForce() throws InterruptedException {
+		Random random = new Random(5);
+		List<String> guides = new ArrayList<String>();
+		for(int i = 0; i < 150; i++) {
+			String chr = genome[random.nextInt(2)];
+			int start = random.nextInt(chr.length() - 20);
+			String guide = chr.substring(start, start + 20);
+			if(guide.indexOf('N') < 0) guides.add(guide);
+		}
+		Map<String, List<OffTargetIndex.Hit>> hits = index.search(guides, 3, 4);
+		for(String guide : guides) {
+			for(int mm = 0; mm <= 3; mm++) {
+				TreeSet<String> expected = bruteForce(guide, mm);
+				TreeSet<String> found = new TreeSet<String>();
+				for(OffTargetIndex.Hit hit : index.search(guide, mm)) {
+					assertTrue(found.add(hit.toString()));
+				}
+				assertEquals(expected, found);
+				if(mm == 3) {
+					assertEquals(expected.size(), hits.get(guide).size());
+				}
+			}
+		}
+	}
+
+	public void testMismatchPositions() {
+		// Minus strand of the second chromosome has only two bases, so many sites are near the guide
+		String guide = Sequence.reverseSequence(genome[1]).substring(500, 520);
+		int numHits = 0;
+		for(OffTargetIndex.Hit hit : index.search(guide, 3)) {
+			String site = siteSequence(hit);
+			int n = 0;
+			for(int i = 0; i < 20; i++) {
+				if(site.charAt(i) != guide.charAt(i)) {
+					assertEquals(i, hit.getMismatchPositions()[n++]);
+				}
+			}
+			assertEquals(n, hit.getNumMismatches());
+			numHits++;
+		}
+		assertTrue(numHits > 0);
+	}
+
+	public void testHitScore() {
+		assertEquals(100.0, GuideOffTargetScore.hitScore(new int[0]), 1e-9);
+		assertEquals(100 * (1 - 0.583), GuideOffTargetScore.hitScore(new int[] {19}), 1e-9);
+		// Two adjacent mismatches at the PAM proximal end
+		double expected = 100 * (1 - 0.685) * (1 - 0.583) / ((19 - 1.0) / 19 * 4 + 1) / 4;
+		assertEquals(expected, GuideOffTargetScore.hitScore(new int[] {18, 19}), 1e-9);
+	}
+
+	private String siteSequence(OffTargetIndex.Hit hit) {
+		String chr = genome[hit.getChr().equals(CHRS[0]) ? 0 : 1];
+		String plus = chr.substring(hit.getStart(), hit.getEnd());
+		return hit.getStrand().toString().equals("+") ? plus : Sequence.reverseSequence(plus);
+	}
+
+	private TreeSet<String> bruteForce(String guide, int maxMismatches) {
+		TreeSet<String> rtrn = new TreeSet<String>();
+		for(int c = 0; c < CHRS.length; c++) {
+			String chr = genome[c];
+			String rc = Sequence.reverseSequence(chr);
+			for(int i = 0; i + 23 <= chr.length(); i++) {
+				// 20mer then NGG on the plus strand, sites containing other bases are not indexed
+				if(chr.startsWith("GG", i + 21) && chr.substring(i, i + 23).indexOf('N') < 0 && mismatches(chr, i, guide) <= maxMismatches) {
+					rtrn.add(CHRS[c] + ":" + i + "-" + (i + 20) + ":+:" + mismatches(chr, i, guide));
+				}
+				// Same on the minus strand, reported in plus strand coordinates
+				if(rc.startsWith("GG", i + 21) && rc.substring(i, i + 23).indexOf('N') < 0 && mismatches(rc, i, guide) <= maxMismatches) {
+					int start = chr.length() - i - 20;
+					rtrn.add(CHRS[c] + ":" + start + "-" + (start + 20) + ":-:" + mismatches(rc, i, guide));
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	private static int mismatches(String seq, int start, String guide) {
+		int rtrn = 0;
+		for(int i = 0; i < 20; i++) {
+			if(seq.charAt(start + i) != guide.charAt(i)) rtrn++;
+		}
+		return rtrn;
+	}
+}
@@ -0,0 +1,127 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
+import nextgen.core.writers.PairedEndWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that the streaming conversion of nextgen.core.writers.PairedEndWriter gives the same file as the in-memory conversion
+ */
+public class TestPairedEndWriter extends TestCase {
+
+	private File makeInput(File dir, int numPairs) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		header.setSortOrder(SortOrder.coordinate);
+		Random random = new Random(5);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for(int i = 0; i < numPairs; i++) {
+			String chr = i % 3 == 0 ? "chr2" : "chr1";
+			int start1 = 1 + random.nextInt(100000);
+			int start2 = start1 + random.nextInt(i % 10 == 0 ? 50000 : 500);
+			SAMRecord r1 = makeRecord(header, "pair" + i, chr, start1, start2, true);
+			SAMRecord r2 = makeRecord(header, "pair" + i, chr, start2, start1, false);
+			records.add(r1);
+			// Some mates are missing from the file
+			if(i % 7 != 0) records.add(r2);
+		}
+		Collections.sort(records, new SAMRecordCoordinateComparator());
+		File input = new File(dir, "input.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, input);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return input;
+	}
+
+	private SAMRecord makeRecord(SAMFileHeader header, String name, String chr, int start, int mateStart, boolean first) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName(chr);
+		record.setAlignmentStart(start);
+		record.setCigarString("50M");
+		record.setReadString(new String(new char[50]).replace('\0', 'A'));
+		record.setBaseQualityString(new String(new char[50]).replace('\0', 'I'));
+		record.setReadPairedFlag(true);
+		record.setProperPairFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setReadNegativeStrandFlag(!first);
+		record.setMateNegativeStrandFlag(first);
+		record.setMateReferenceName(chr);
+		record.setMateAlignmentStart(mateStart);
+		record.setInferredInsertSize(first ? mateStart + 50 - start : start - mateStart - 50);
+		return record;
+	}
+
+	private List<String> read(String file) {
+		List<String> rtrn = new ArrayList<String>();
+		SAMFileReader reader = new SAMFileReader(new File(file));
+		for(SAMRecord record : reader) {
+			// Fragment records keep the bases of the first mate under a cigar spanning the fragment, so only the alignment fields are compared
+			String[] fields = record.getSAMString().trim().split("\t");
+			fields[9] = "*";
+			fields[10] = "*";
+			rtrn.add(Arrays.toString(fields));
+		}
+		reader.close();
+		return rtrn;
+	}
+
+	private void checkStreamingMatchesInMemory(int numPairs) throws IOException {
+		File dir = File.createTempFile("pairedEnd", "");
+		dir.delete();
+		dir.mkdirs();
+		File input = makeInput(dir, numPairs);
+
+		PairedEndWriter inMemory = new PairedEndWriter(input, new File(dir, "inMemory.bam").getAbsolutePath());
+		inMemory.convertInputToPairedEnd(TranscriptionRead.FIRST_OF_PAIR);
+
+		PairedEndWriter streaming = new PairedEndWriter(input, new File(dir, "streaming.bam").getAbsolutePath());
+		streaming.setMaxRecordsInRam(4);
+		streaming.setCompressionThreads(3);
+		streaming.setTmpDir(dir);
+		streaming.convertInputToPairedEndStreaming(TranscriptionRead.FIRST_OF_PAIR);
+
+		List<String> expected = read(inMemory.getOutputFile());
+		List<String> observed = read(streaming.getOutputFile());
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, observed);
+		assertTrue(new File(streaming.getOutputFile() + ".bai").exists());
+
+		for(File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testStreamingMatchesInMemory() throws IOException {
+		checkStreamingMatchesInMemory(400);
+	}
+
+	/**
+	 * Enough pairs waiting for distant mates that spilled runs are merged
+	 */
+	public void testMergedRunsMatchInMemory() throws IOException {
+		checkStreamingMatchesInMemory(5000);
+	}
+}
@@ -0,0 +1,188 @@
+package nextgen.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.coordinatesystem.GenomicSpace;
+import nextgen.core.model.AlignmentModel;
+import nextgen.core.model.score.CountScore;
+import nextgen.core.model.score.LengthScore;
+import nextgen.core.model.score.ParallelWindowScoreIterator;
+import nextgen.core.model.score.ScanStatisticScore;
+import nextgen.core.model.score.WindowProcessor;
+import nextgen.core.model.score.WindowScore;
+import nextgen.core.model.score.WindowScoreIterator;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that nextgen.core.model.score.ParallelWindowScoreIterator returns the same windows in the same order as the single threaded scan
+ */
+public class TestParallelScan extends TestCase {
+
+	/**
+	 * Fails if the previous score passed to a window comes from another chromosome
+	 */
+	private static class CheckingProcessor extends WindowProcessor.AbstractProcessor<LengthScore> {
+		public LengthScore processWindow(Annotation annotation) {
+			return new LengthScore(annotation);
+		}
+
+		public LengthScore processWindow(Annotation annotation, LengthScore previousScore) {
+			if(previousScore != null && !previousScore.getAnnotation().getChr().equals(annotation.getChr())) {
+				throw new IllegalStateException("Previous score from " + previousScore.getAnnotation().getChr() + " passed to window on " + annotation.getChr());
+			}
+			return processWindow(annotation);
+		}
+	}
+
+	private GenomicSpace makeSpace() {
+		Map<String,Integer> sizes = new HashMap<String,Integer>();
+		sizes.put("chr1", 25000);
+		sizes.put("chr2", 7000);
+		sizes.put("chr3", 130);
+		sizes.put("chr4", 40000);
+		return new GenomicSpace(sizes);
+	}
+
+	private List<String> collect(WindowScoreIterator<LengthScore> itr) {
+		List<String> rtrn = new ArrayList<String>();
+		while(itr.hasNext()) {
+			rtrn.add(itr.next().getAnnotation().toUCSC());
+		}
+		itr.close();
+		return rtrn;
+	}
+
+	public void testSameOrderAsSequential() {
+		GenomicSpace space = makeSpace();
+		List<String> sequential = collect(new WindowScoreIterator<LengthScore>(space.getWindowIterator(100, 50), new LengthScore.Processor(null) {
+			public LengthScore processWindow(Annotation annotation) {
+				return new LengthScore(annotation);
+			}
+		}, null));
+		assertTrue(sequential.size() > 1000);
+		for(int batchSize : new int[] {1, 7, 1000}) {
+			List<String> parallel = collect(new ParallelWindowScoreIterator<LengthScore>(space.getWindowIterator(100, 50), new CheckingProcessor(), null, 4, batchSize));
+			assertEquals(sequential, parallel);
+		}
+	}
+
+	public void testProcessorErrorIsRethrown() {
+		WindowProcessor<LengthScore> failing = new CheckingProcessor() {
+			public LengthScore processWindow(Annotation annotation) {
+				if(annotation.getChr().equals("chr2")) throw new IllegalArgumentException("bad window");
+				return new LengthScore(annotation);
+			}
+		};
+		WindowScoreIterator<LengthScore> itr = new ParallelWindowScoreIterator<LengthScore>(makeSpace().getWindowIterator(100, 50), failing, null, 3, 50);
+		try {
+			collect(itr);
+			fail("Expected the processor exception");
+		} catch(IllegalArgumentException e) {
+			assertEquals("bad window", e.getMessage());
+		}
+		itr.close();
+	}
+
+	/**
+	 * Write an indexed bam of single end reads over two chromosomes
+	 */
+	private File makeBam(File dir, Map<String,Integer> sizes) {
+		SAMFileHeader header = new SAMFileHeader();
+		for(String chr : sizes.keySet()) {
+			header.addSequence(new SAMSequenceRecord(chr, sizes.get(chr).intValue()));
+		}
+		header.setSortOrder(SortOrder.coordinate);
+		Random random = new Random(31);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for(int i = 0; i < 4000; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			String chr = i % 3 == 0 ? "chr2" : "chr1";
+			record.setReferenceName(chr);
+			record.setAlignmentStart(1 + random.nextInt(sizes.get(chr).intValue() - 1000));
+			record.setCigarString(random.nextInt(5) == 0 ? "25M" + (100 + random.nextInt(400)) + "N25M" : "50M");
+			record.setReadNegativeStrandFlag(random.nextBoolean());
+			record.setReadString(new String(new char[50]).replace('\0', 'A'));
+			record.setBaseQualityString(new String(new char[50]).replace('\0', 'I'));
+			record.setMappingQuality(255);
+			records.add(record);
+		}
+		Collections.sort(records, new SAMRecordCoordinateComparator());
+		File bam = new File(dir, "reads.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+		for(SAMRecord record : records) {
+			writer.addAlignment(record);
+		}
+		writer.close();
+		return bam;
+	}
+
+	private static <T extends WindowScore> List<T> collectScores(WindowScoreIterator<T> itr) {
+		List<T> rtrn = new ArrayList<T>();
+		while(itr.hasNext()) {
+			rtrn.add(itr.next());
+		}
+		itr.close();
+		return rtrn;
+	}
+
+	/**
+	 * Count and scan statistic scores of a bam backed model are the same on several threads, with global stats computed lazily and a cache small enough that threads keep loading windows from the shared reader
+	 */
+	public void testAlignmentModelScores() throws IOException {
+		File dir = File.createTempFile("parallelScan", "");
+		dir.delete();
+		dir.mkdirs();
+		Map<String,Integer> sizes = new HashMap<String,Integer>();
+		sizes.put("chr1", 60000);
+		sizes.put("chr2", 30000);
+		File bam = makeBam(dir, sizes);
+
+		AlignmentModel sequentialModel = new AlignmentModel(bam.getAbsolutePath(), new GenomicSpace(sizes), false);
+		List<CountScore> expectedCounts = collectScores(sequentialModel.scan(200, 100, new CountScore.Processor(sequentialModel)));
+		List<ScanStatisticScore> expectedScans = collectScores(sequentialModel.scan(200, 100, new ScanStatisticScore.Processor(sequentialModel)));
+		assertTrue(expectedCounts.size() > 500);
+
+		for(String file : dir.list()) {
+			if(file.endsWith("Stats")) new File(dir, file).delete();
+		}
+		AlignmentModel parallelModel = new AlignmentModel(bam.getAbsolutePath(), new GenomicSpace(sizes), false);
+		parallelModel.setCacheMaxBytes(1);
+		List<CountScore> counts = collectScores(parallelModel.scan(200, 100, new CountScore.Processor(parallelModel), 4));
+		List<ScanStatisticScore> scans = collectScores(parallelModel.scan(200, 100, new ScanStatisticScore.Processor(parallelModel), 4));
+		assertEquals(expectedCounts.size(), counts.size());
+		assertEquals(expectedScans.size(), scans.size());
+		double total = 0;
+		for(int i = 0; i < counts.size(); i++) {
+			assertEquals(expectedCounts.get(i).getAnnotation().toUCSC(), counts.get(i).getAnnotation().toUCSC());
+			assertEquals(expectedCounts.get(i).getCount(), counts.get(i).getCount(), 1e-9);
+			assertEquals(expectedScans.get(i).getCount(), scans.get(i).getCount(), 1e-9);
+			assertEquals(expectedScans.get(i).getScanPvalue(), scans.get(i).getScanPvalue(), 1e-12);
+			total += counts.get(i).getCount();
+		}
+		assertTrue(total > 0);
+		assertTrue(parallelModel.getReadCache().getEvictions() > 0);
+
+		for(File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,135 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import nextgen.core.capture.PrimerPairMatcher;
+import nextgen.core.capture.PrimerPairMatcher.Amplicon;
+
+import broad.core.datastructures.Pair;
+import broad.core.motif.SearchException;
+import broad.core.primer3.isPCRLike;
+import broad.core.sequence.Sequence;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that nextgen.core.capture.PrimerPairMatcher finds the same amplifying primer pairs as broad.core.primer3.isPCRLike
+ */
+public class TestPrimerPairMatcher extends TestCase {
+
+	private static final char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+
+	private List<Pair<String>> primers;
+	private List<Sequence> oligos;
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < length; i++) {
+			sb.append(BASES[random.nextInt(4)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Oligos flanked by the primers of their own pair, some also containing primers of other pairs in either order
+	 */
+	@Override
+	protected void setUp() {
+		Random random = new Random(13);
+		primers = new ArrayList<Pair<String>>();
+		for(int i = 0; i < 40; i++) {
+			primers.add(new Pair<String>(randomBases(random, 20), randomBases(random, 20)));
+		}
+		// Pairs sharing a primer with another pair
+		primers.add(new Pair<String>(primers.get(0).getValue1(), randomBases(random, 20)));
+		primers.add(new Pair<String>(randomBases(random, 20), primers.get(1).getValue2()));
+		oligos = new ArrayList<Sequence>();
+		for(int i = 0; i < 300; i++) {
+			Pair<String> self = primers.get(i % primers.size());
+			StringBuilder bases = new StringBuilder(randomBases(random, 120));
+			if(i % 10 != 0) {
+				// Some oligos are not amplified by their own pair
+				bases.insert(0, self.getValue1());
+				bases.append(Sequence.reverseSequence(self.getValue2()));
+			}
+			if(i % 3 == 0) {
+				Pair<String> other = primers.get(random.nextInt(primers.size()));
+				int position = random.nextInt(bases.length());
+				String insert = random.nextBoolean() ? other.getValue1() + randomBases(random, 15) + Sequence.reverseSequence(other.getValue2()) : Sequence.reverseSequence(other.getValue2()) + other.getValue1();
+				bases.insert(position, i % 2 == 0 ? insert : insert.toLowerCase());
+			}
+			Sequence oligo = new Sequence("oligo" + i);
+			oligo.setSequenceBases(bases.toString());
+			oligos.add(oligo);
+		}
+	}
+
+	private static Map<String, TreeSet<String>> byOligo(List<Sequence> oligos, List<List<Amplicon>> amplicons) {
+		Map<String, TreeSet<String>> rtrn = new TreeMap<String, TreeSet<String>>();
+		for(int i = 0; i < oligos.size(); i++) {
+			TreeSet<String> pairs = new TreeSet<String>();
+			for(Amplicon amplicon : amplicons.get(i)) {
+				pairs.add(amplicon.getPrimers().getValue1() + " " + amplicon.getPrimers().getValue2());
+			}
+			rtrn.put(oligos.get(i).getId(), pairs);
+		}
+		return rtrn;
+	}
+
+	public void testSameAsIsPCR() throws SearchException {
+		Map<String, TreeSet<String>> expected = new TreeMap<String, TreeSet<String>>();
+		for(Sequence oligo : oligos) {
+			expected.put(oligo.getId(), new TreeSet<String>());
+		}
+		for(Pair<String> pair : primers) {
+			Collection<Sequence> amplicons = new isPCRLike(pair, oligos).getAllPossibleAmplicons();
+			for(Sequence amplicon : amplicons) {
+				expected.get(amplicon.getId()).add(pair.getValue1() + " " + pair.getValue2());
+			}
+		}
+		PrimerPairMatcher matcher = new PrimerPairMatcher(primers, 0);
+		assertEquals(expected, byOligo(oligos, matcher.getAmplicons(oligos, 1)));
+		assertEquals(expected, byOligo(oligos, matcher.getAmplicons(oligos, 4)));
+	}
+
+	public void testAmpliconCoordinates() {
+		PrimerPairMatcher matcher = new PrimerPairMatcher(primers, 0);
+		for(int i = 1; i < 20; i++) {
+			if(i % 3 == 0 || i % 10 == 0) continue;
+			Sequence oligo = oligos.get(i);
+			List<Amplicon> amplicons = matcher.getAmplicons(oligo);
+			assertEquals(1, amplicons.size());
+			assertEquals(primers.get(i), amplicons.get(0).getPrimers());
+			// The 3' ends of the primers are matched
+			assertEquals(10, amplicons.get(0).getStart());
+			assertEquals(oligo.getLength() - 10, amplicons.get(0).getEnd());
+		}
+	}
+
+	public void testMismatches() {
+		Pair<String> pair = primers.get(5);
+		// One mismatch in the 3' end of each primer
+		StringBuilder left = new StringBuilder(pair.getValue1());
+		left.setCharAt(15, left.charAt(15) == 'A' ? 'C' : 'A');
+		StringBuilder right = new StringBuilder(Sequence.reverseSequence(pair.getValue2()));
+		right.setCharAt(2, right.charAt(2) == 'G' ? 'T' : 'G');
+		Sequence oligo = new Sequence("mismatched");
+		oligo.setSequenceBases(left + "ACGTTGCAACGTTGCA" + right);
+		List<Sequence> mismatched = new ArrayList<Sequence>();
+		mismatched.add(oligo);
+		assertTrue(new PrimerPairMatcher(primers, 0).getAmplicons(mismatched, 1).get(0).isEmpty());
+		List<Amplicon> amplicons = new PrimerPairMatcher(primers, 1).getAmplicons(mismatched, 1).get(0);
+		boolean found = false;
+		for(Amplicon amplicon : amplicons) {
+			if(amplicon.getPrimers().equals(pair)) found = true;
+		}
+		assertTrue(found);
+	}
+
+}
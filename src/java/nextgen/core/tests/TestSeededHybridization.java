@@ -0,0 +1,112 @@
+package nextgen.core.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import nextgen.core.alignment.FeatureSequenceAlignment.UnorderedGenePair;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.structure.PairwiseWindowHybridization;
+
+import broad.core.sequence.Sequence;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that the seeded antisense search of nextgen.core.structure.PairwiseWindowHybridization finds the same alignments as aligning every pair of windows
+ */
+public class TestSeededHybridization extends TestCase {
+
+	private static final int LENGTH = 2400;
+	private static final char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+
+	private Gene transcript;
+	private Map<String, Sequence> chrs;
+
+	/**
+	 * A random transcript with reverse complement copies of some of its own segments, with mismatches, gaps, soft masked and unknown bases
+	 */
+	@Override
+	protected void setUp() {
+		Random random = new Random(3);
+		StringBuilder bases = new StringBuilder();
+		for(int i = 0; i < LENGTH; i++) {
+			bases.append(BASES[random.nextInt(4)]);
+		}
+		for(int copy = 0; copy < 12; copy++) {
+			int length = 15 + random.nextInt(40);
+			int from = random.nextInt(LENGTH / 2 - length);
+			int to = LENGTH / 2 + random.nextInt(LENGTH / 2 - length);
+			StringBuilder segment = new StringBuilder(Sequence.reverseSequence(bases.substring(from, from + length)));
+			for(int i = 0; i < copy % 4; i++) {
+				int position = random.nextInt(segment.length());
+				switch(random.nextInt(3)) {
+				case 0:
+					segment.setCharAt(position, BASES[random.nextInt(4)]);
+					break;
+				case 1:
+					segment.deleteCharAt(position);
+					break;
+				default:
+					segment.insert(position, BASES[random.nextInt(4)]);
+				}
+			}
+			bases.replace(to, to + segment.length(), segment.toString());
+		}
+		for(int i = 0; i < 5; i++) {
+			bases.setCharAt(random.nextInt(LENGTH), 'N');
+			int position = random.nextInt(LENGTH);
+			bases.setCharAt(position, Character.toLowerCase(bases.charAt(position)));
+		}
+		Sequence chr = new Sequence("chr1");
+		chr.setSequenceBases(bases.substring(0, LENGTH));
+		chrs = new TreeMap<String, Sequence>();
+		chrs.put("chr1", chr);
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 0, 1100, Strand.POSITIVE));
+		exons.add(new BasicAnnotation("chr1", 1300, LENGTH, Strand.POSITIVE));
+		transcript = new Gene(exons, "transcript", Strand.POSITIVE);
+	}
+
+	private static String toString(jaligner.Alignment align) {
+		return align.getScore() + " " + align.getStart1() + " " + align.getStart2() + " " + align.getLength() + " " + align.getIdentity() + " " + align.getGaps() + " " + new String(align.getSequence1()) + " " + new String(align.getSequence2());
+	}
+
+	private static Map<String, String> byName(Map<UnorderedGenePair, jaligner.Alignment> aligns) {
+		Map<String, String> rtrn = new TreeMap<String, String>();
+		for(UnorderedGenePair pair : aligns.keySet()) {
+			rtrn.put(pair.getFirstGene().toUCSC() + " " + pair.getSecondGene().toUCSC(), toString(aligns.get(pair)));
+		}
+		return rtrn;
+	}
+
+	private void checkSearch(float minLength, float minIdentity) throws IOException {
+		PairwiseWindowHybridization exhaustive = new PairwiseWindowHybridization(transcript, chrs, 100, 30);
+		Map<String, String> expected = byName(exhaustive.getAllHybridizingPairs(minLength, minIdentity));
+		assertFalse(expected.isEmpty());
+		for(int numThreads : new int[] {1, 3}) {
+			PairwiseWindowHybridization seeded = new PairwiseWindowHybridization(transcript, chrs, 100, 30);
+			seeded.setSeededSearch(numThreads);
+			assertEquals(expected, byName(seeded.getAllHybridizingPairs(minLength, minIdentity)));
+		}
+	}
+
+	public void testLongIdenticalMatches() throws IOException {
+		checkSearch(30, 0.95f);
+	}
+
+	public void testShortMatchesWithMismatches() throws IOException {
+		checkSearch(15, 0.8f);
+	}
+
+	public void testLowIdentity() throws IOException {
+		checkSearch(12, 0.6f);
+	}
+
+}
@@ -0,0 +1,169 @@
+package nextgen.core.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.scripture.OrientedChromosomeTranscriptGraph;
+import nextgen.core.scripture.OrientedChromosomeTranscriptGraph.TranscriptGraphEdge;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.Graphs;
+import org.jgrapht.alg.KShortestPaths;
+import org.jgrapht.graph.GraphPathImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that nextgen.core.scripture.OrientedChromosomeTranscriptGraph finds the lightest paths from each source to each sink
+ */
+public class TestSpliceGraphPaths extends TestCase {
+
+	private static final int MAX_PATHS = 20;
+
+	/**
+	 * Make a graph of several loci, each with exons joined by random forward edges of distinct random weights
+	 */
+	private static OrientedChromosomeTranscriptGraph randomGraph(Random random, Strand strand) {
+		OrientedChromosomeTranscriptGraph graph = new OrientedChromosomeTranscriptGraph("chr1", strand.toString());
+		int position = 1000;
+		for(int locus = 0; locus < 12; locus++) {
+			int numExons = 2 + random.nextInt(14);
+			List<Annotation> exons = new ArrayList<Annotation>();
+			for(int i = 0; i < numExons; i++) {
+				int start = position + random.nextInt(200);
+				int end = start + 50 + random.nextInt(200);
+				exons.add(new BasicAnnotation("chr1", start, end, strand));
+				position = end + 100;
+			}
+			if(strand == Strand.NEGATIVE) Collections.reverse(exons);
+			for(int i = 0; i < numExons - 1; i++) {
+				// Always connect to the next exon, and sometimes skip ahead
+				graph.addEdge(exons.get(i), exons.get(i + 1));
+				for(int j = i + 2; j < numExons; j++) {
+					if(random.nextInt(3) == 0) graph.addEdge(exons.get(i), exons.get(j));
+				}
+			}
+			position += 5000;
+		}
+		for(TranscriptGraphEdge edge : graph.edgeSet()) {
+			graph.setEdgeWeight(edge, 1 + random.nextDouble());
+		}
+		return graph;
+	}
+
+	private static String toString(GraphPath<Annotation, TranscriptGraphEdge> path) {
+		StringBuilder sb = new StringBuilder();
+		for(Annotation v : Graphs.getPathVertexList(path)) {
+			sb.append(v.toUCSC() + ";");
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, TreeSet<String>> bySourceAndSink(List<GraphPath<Annotation, TranscriptGraphEdge>> paths) {
+		Map<String, TreeSet<String>> rtrn = new TreeMap<String, TreeSet<String>>();
+		for(GraphPath<Annotation, TranscriptGraphEdge> path : paths) {
+			String key = path.getStartVertex().toUCSC() + " " + path.getEndVertex().toUCSC();
+			if(!rtrn.containsKey(key)) rtrn.put(key, new TreeSet<String>());
+			rtrn.get(key).add(toString(path));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * The paths found by a k shortest paths search from each source to each sink
+	 */
+	private static List<GraphPath<Annotation, TranscriptGraphEdge>> expectedPaths(OrientedChromosomeTranscriptGraph graph) {
+		List<GraphPath<Annotation, TranscriptGraphEdge>> paths = new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>();
+		for(Annotation s : graph.getSourceVertices()) {
+			KShortestPaths<Annotation, TranscriptGraphEdge> alg = new KShortestPaths<Annotation, TranscriptGraphEdge>(graph, s, MAX_PATHS);
+			for(Annotation t : graph.getSinkVertices()) {
+				List<GraphPath<Annotation, TranscriptGraphEdge>> sToT = alg.getPaths(t);
+				if(sToT != null) paths.addAll(sToT);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Every path from a vertex to a sink, by depth first search
+	 */
+	private static void allPaths(OrientedChromosomeTranscriptGraph graph, Annotation v, List<TranscriptGraphEdge> prefix, double weight, Map<String, List<GraphPath<Annotation, TranscriptGraphEdge>>> paths) {
+		if(!prefix.isEmpty() && graph.outgoingEdgesOf(v).isEmpty()) {
+			Annotation source = graph.getEdgeSource(prefix.get(0));
+			String key = source.toUCSC() + " " + v.toUCSC();
+			if(!paths.containsKey(key)) paths.put(key, new ArrayList<GraphPath<Annotation, TranscriptGraphEdge>>());
+			paths.get(key).add(new GraphPathImpl<Annotation, TranscriptGraphEdge>(graph, source, v, new ArrayList<TranscriptGraphEdge>(prefix), weight));
+			return;
+		}
+		for(TranscriptGraphEdge e : graph.outgoingEdgesOf(v)) {
+			prefix.add(e);
+			allPaths(graph, graph.getEdgeTarget(e), prefix, weight + graph.getEdgeWeight(e), paths);
+			prefix.remove(prefix.size() - 1);
+		}
+	}
+
+	private static void checkPaths(OrientedChromosomeTranscriptGraph graph) {
+		Map<String, TreeSet<String>> observed = bySourceAndSink(graph.getPaths());
+		assertEquals(observed, bySourceAndSink(graph.getPaths(4)));
+		Map<String, List<GraphPath<Annotation, TranscriptGraphEdge>>> all = new TreeMap<String, List<GraphPath<Annotation, TranscriptGraphEdge>>>();
+		for(Annotation s : graph.getSourceVertices()) {
+			allPaths(graph, s, new ArrayList<TranscriptGraphEdge>(), 0, all);
+		}
+		Map<String, TreeSet<String>> lightest = new TreeMap<String, TreeSet<String>>();
+		for(String key : all.keySet()) {
+			List<GraphPath<Annotation, TranscriptGraphEdge>> paths = all.get(key);
+			Collections.sort(paths, new Comparator<GraphPath<Annotation, TranscriptGraphEdge>>() {
+				@Override
+				public int compare(GraphPath<Annotation, TranscriptGraphEdge> p1, GraphPath<Annotation, TranscriptGraphEdge> p2) {
+					return Double.compare(p1.getWeight(), p2.getWeight());
+				}
+			});
+			lightest.put(key, bySourceAndSink(paths.subList(0, Math.min(MAX_PATHS, paths.size()))).get(key));
+		}
+		assertEquals(lightest, observed);
+		// Same as the k shortest paths search where there are no more than MAX_PATHS paths
+		// With more paths that search does not always keep the lightest ones
+		Map<String, TreeSet<String>> expected = bySourceAndSink(expectedPaths(graph));
+		for(String key : all.keySet()) {
+			if(all.get(key).size() <= MAX_PATHS) {
+				assertEquals(expected.get(key), observed.get(key));
+			}
+		}
+	}
+
+	public void testPositiveStrand() {
+		Random random = new Random(17);
+		for(int g = 0; g < 5; g++) {
+			checkPaths(randomGraph(random, Strand.POSITIVE));
+		}
+	}
+
+	public void testNegativeStrand() {
+		Random random = new Random(23);
+		for(int g = 0; g < 5; g++) {
+			checkPaths(randomGraph(random, Strand.NEGATIVE));
+		}
+	}
+
+	public void testPathWeights() {
+		OrientedChromosomeTranscriptGraph graph = randomGraph(new Random(5), Strand.POSITIVE);
+		for(GraphPath<Annotation, TranscriptGraphEdge> path : graph.getPaths(2)) {
+			double weight = 0;
+			for(TranscriptGraphEdge edge : path.getEdgeList()) {
+				weight += graph.getEdgeWeight(edge);
+			}
+			assertEquals(weight, path.getWeight(), 1e-9);
+			assertEquals(path.getEdgeList().size() + 1, OrientedChromosomeTranscriptGraph.pathToGene(path).getBlocks().size());
+		}
+	}
+
+}
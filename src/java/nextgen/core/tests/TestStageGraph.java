@@ -0,0 +1,243 @@
+package nextgen.core.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nextgen.core.pipeline.StageGraph;
+
+import org.ggf.drmaa.DrmaaException;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that nextgen.core.pipeline.StageGraph reruns only the stages and samples whose checkpoints are stale
+ */
+public class TestStageGraph extends TestCase {
+
+	private File dir;
+	private Collection<String> samples = Arrays.asList("s1", "s2", "s3");
+
+	/**
+	 * A stage that writes one file per sample from the output of the previous stage, and a summary of all samples
+	 */
+	private class FileStage extends StageGraph.Stage {
+
+		Collection<String> ran = Collections.synchronizedSet(new TreeSet<String>());
+		Collection<String> restored = Collections.synchronizedSet(new TreeSet<String>());
+		// Samples whose output already existed when the stage ran for them
+		Collection<String> found = Collections.synchronizedSet(new TreeSet<String>());
+		AtomicInteger numPrepared = new AtomicInteger();
+		private String input;
+		private boolean perSample;
+
+		FileStage(String name, String input, String... dependencies) {
+			this(name, input, false, dependencies);
+		}
+
+		FileStage(String name, String input, boolean perSample, String... dependencies) {
+			super(name, dependencies);
+			this.input = input;
+			this.perSample = perSample;
+		}
+
+		@Override
+		public boolean isPerSample() {
+			return perSample;
+		}
+
+		@Override
+		public void prepare() {
+			numPrepared.incrementAndGet();
+		}
+
+		@Override
+		public Collection<String> getSummaryFiles() {
+			Collection<String> rtrn = new ArrayList<String>();
+			rtrn.add(new File(dir, getName() + "_summary").getPath());
+			return rtrn;
+		}
+
+		@Override
+		public void summarize(Collection<String> all) throws IOException {
+			write(getSummaryFiles().iterator().next(), all.toString());
+		}
+
+		private String file(String stage, String sample) {
+			return new File(dir, stage + "_" + sample).getPath();
+		}
+
+		@Override
+		public Collection<String> getInputFiles(String sample) {
+			Collection<String> rtrn = new ArrayList<String>();
+			if(input != null) rtrn.add(file(input, sample));
+			return rtrn;
+		}
+
+		@Override
+		public Collection<String> getOutputFiles(String sample) {
+			Collection<String> rtrn = new ArrayList<String>();
+			rtrn.add(file(getName(), sample));
+			return rtrn;
+		}
+
+		@Override
+		public void run(Collection<String> toRun) throws IOException, InterruptedException, DrmaaException {
+			for(String sample : toRun) {
+				if(new File(file(getName(), sample)).exists()) found.add(sample);
+				write(file(getName(), sample), getName() + " " + sample);
+				ran.add(sample);
+			}
+		}
+
+		@Override
+		public void restore(String sample) {
+			restored.add(sample);
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("stages", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		if(file.isDirectory()) {
+			for(File f : file.listFiles()) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+	private static void write(String fileName, String contents) throws IOException {
+		FileWriter w = new FileWriter(fileName);
+		w.write(contents);
+		w.close();
+	}
+
+	private FileStage[] runStages() throws IOException, InterruptedException, DrmaaException {
+		StageGraph graph = new StageGraph(new File(dir, "checkpoints").getPath(), new File(dir, "report.txt").getPath());
+		FileStage[] stages = new FileStage[] {new FileStage("A", null), new FileStage("B", "A", "A"), new FileStage("C", null)};
+		for(FileStage stage : stages) {
+			graph.addStage(stage);
+		}
+		graph.run(samples);
+		return stages;
+	}
+
+	public void testResume() throws IOException, InterruptedException, DrmaaException {
+		FileStage[] first = runStages();
+		for(FileStage stage : first) {
+			assertEquals(samples, new ArrayList<String>(stage.ran));
+			assertTrue(stage.restored.isEmpty());
+		}
+
+		// Nothing changed
+		FileStage[] second = runStages();
+		for(FileStage stage : second) {
+			assertTrue(stage.ran.isEmpty());
+			assertEquals(samples, new ArrayList<String>(stage.restored));
+		}
+
+		// A changed output reruns the stage and everything downstream for that sample only
+		write(new File(dir, "A_s2").getPath(), "changed by hand");
+		// A missing output reruns the stage
+		assertTrue(new File(dir, "B_s3").delete());
+		FileStage[] third = runStages();
+		assertEquals(Arrays.asList("s2"), new ArrayList<String>(third[0].ran));
+		assertEquals(Arrays.asList("s2", "s3"), new ArrayList<String>(third[1].ran));
+		assertEquals(Arrays.asList("s1"), new ArrayList<String>(third[1].restored));
+		assertTrue(third[2].ran.isEmpty());
+		// Outputs of stale checkpoints are deleted before the rerun
+		assertTrue(third[0].found.isEmpty());
+		assertTrue(third[1].found.isEmpty());
+
+		// One line per stage after the header
+		BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "report.txt")));
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(2).startsWith("B\t2\t1\t"));
+	}
+
+	public void testPerSampleStages() throws IOException, InterruptedException, DrmaaException {
+		final CountDownLatch s1ReachedB = new CountDownLatch(1);
+		final List<Boolean> s2Waited = Collections.synchronizedList(new ArrayList<Boolean>());
+		// s2 can only finish A once s1 has run B
+		FileStage a = new FileStage("A", null, true) {
+			@Override
+			public void run(Collection<String> toRun) throws IOException, InterruptedException, DrmaaException {
+				if(toRun.contains("s2")) s2Waited.add(Boolean.valueOf(s1ReachedB.await(30, TimeUnit.SECONDS)));
+				super.run(toRun);
+			}
+		};
+		FileStage b = new FileStage("B", "A", true, "A") {
+			@Override
+			public void run(Collection<String> toRun) throws IOException, InterruptedException, DrmaaException {
+				assertEquals(1, toRun.size());
+				super.run(toRun);
+				if(toRun.contains("s1")) s1ReachedB.countDown();
+			}
+		};
+		FileStage c = new FileStage("C", "B", "B");
+		StageGraph graph = new StageGraph(new File(dir, "checkpoints").getPath(), new File(dir, "report.txt").getPath(), 2);
+		graph.addStage(a);
+		graph.addStage(b);
+		graph.addStage(c);
+		List<String> twoSamples = Arrays.asList("s1", "s2");
+		graph.run(twoSamples);
+
+		assertEquals(Arrays.asList(Boolean.TRUE), s2Waited);
+		assertEquals(twoSamples, new ArrayList<String>(b.ran));
+		// The cohort stage waits for all samples
+		assertEquals(twoSamples, new ArrayList<String>(c.ran));
+		assertEquals(1, a.numPrepared.get());
+		assertEquals(1, b.numPrepared.get());
+		BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "B_summary")));
+		assertEquals(twoSamples.toString(), reader.readLine());
+		reader.close();
+
+		// Nothing to prepare when every sample is up to date
+		FileStage a2 = new FileStage("A", null, true);
+		StageGraph again = new StageGraph(new File(dir, "checkpoints").getPath(), new File(dir, "report.txt").getPath(), 2);
+		again.addStage(a2);
+		again.run(twoSamples);
+		assertTrue(a2.ran.isEmpty());
+		assertEquals(0, a2.numPrepared.get());
+	}
+
+	public void testUnknownDependency() {
+		StageGraph graph = new StageGraph(new File(dir, "checkpoints").getPath(), new File(dir, "report.txt").getPath());
+		try {
+			graph.addStage(new FileStage("B", "A", "A"));
+			fail("Stage with unknown dependency should not be added");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -2,8 +2,10 @@ package nextgen.core.tests;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 
 import nextgen.core.feature.GeneWindow;
+import nextgen.core.feature.GeneWindowIterator;
 import nextgen.core.feature.GenomeWindow;
 import nextgen.core.feature.Window;
 
@@ -56,4 +58,66 @@ public class TestWindow extends TestCase{
 		X = new GenomeWindow(new BasicAnnotation(vertices));
 		System.out.println(X.toBED());
 	}
+
+	private Gene makeGene() {
+		Collection<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr2", 100, 130, "-"));
+		exons.add(new BasicAnnotation("chr2", 200, 205, "-"));
+		exons.add(new BasicAnnotation("chr2", 300, 360, "-"));
+		return new Gene(exons, "gene", Annotation.Strand.NEGATIVE);
+	}
+	
+	/**
+	 * Windows are the trimmed gene at every step of the transcript, up to a window ending at the last base
+	 */
+	public void testGeneWindowIterator() {
+		Gene gene = makeGene();
+		int length = 95;
+		for (int windowSize : new int[] {1, 4, 10, 95}) {
+			for (int step : new int[] {1, 3, 10}) {
+				Iterator<GeneWindow> windows = gene.getWindowIterator(windowSize, step, 2);
+				int position = 2;
+				int count = 0;
+				while (windows.hasNext()) {
+					GeneWindow window = windows.next();
+					assertEquals(windowSize, window.getSize());
+					GeneWindow trimmed = gene.trimAbsolute(gene.getReferenceCoordinateAtPosition(position, true), window.getEnd());
+					assertEquals(trimmed.toBED(), window.toBED());
+					assertEquals(Annotation.Strand.NEGATIVE, window.getOrientation());
+					position += step;
+					count++;
+				}
+				int expected = length - windowSize - 2 < 0 ? 0 : (length - windowSize - 2) / step + 1;
+				assertEquals(expected, count);
+				assertEquals(expected, gene.getWindows(windowSize, step, 2).size());
+			}
+		}
+		assertFalse(gene.getWindowIterator(96, 1, 0).hasNext());
+	}
+	
+	public void testGeneWindowCursor() {
+		Gene gene = makeGene();
+		GeneWindowIterator cursor = gene.getWindowIterator(10, 5, 0);
+		int count = 0;
+		while (cursor.advance()) {
+			assertEquals(5 * count, cursor.getPosition());
+			assertEquals(gene.getReferenceCoordinateAtPosition(cursor.getPosition(), true), cursor.getReferenceStart());
+			count++;
+		}
+		assertEquals(18, count);
+		// Last base of the first exon to the second exon
+		cursor = gene.getWindowIterator(6, 1, 29);
+		assertTrue(cursor.advance());
+		assertTrue(cursor.isSpliced());
+		assertEquals(129, cursor.getReferenceStart());
+		assertEquals(205, cursor.getReferenceEnd());
+		
+		Iterator<Integer> positions = gene.getAllPositions();
+		int numPositions = 0;
+		while (positions.hasNext()) {
+			positions.next();
+			numPositions++;
+		}
+		assertEquals(95, numPositions);
+	}
 }
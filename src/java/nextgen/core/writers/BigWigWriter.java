@@ -0,0 +1,696 @@
+package nextgen.core.writers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes per base values of each chromosome to an indexed BigWig file with zoom level summaries, without an intermediate wig file
+ * Each chromosome is given as an array of values, with NaN at positions that have no data, and is stored as bedGraph sections of runs of equal values
+ * Chromosomes are encoded and compressed on several threads and written in order, with at most one chromosome per thread in flight
+ * The file follows the UCSC BigWig format (version 4) and can be read by the UCSC browser, IGV and the UCSC tools
+ */
+public class BigWigWriter {
+
+	static Logger logger = Logger.getLogger(BigWigWriter.class.getName());
+
+	private static final int BIGWIG_MAGIC = 0x888FFC26;
+	private static final int CHROM_TREE_MAGIC = 0x78CA8C91;
+	private static final int R_TREE_MAGIC = 0x2468ACE0;
+	private static final int VERSION = 4;
+	private static final int HEADER_LENGTH = 64;
+	private static final int ZOOM_HEADER_LENGTH = 24;
+	private static final int TOTAL_SUMMARY_LENGTH = 40;
+	private static final int SECTION_HEADER_LENGTH = 24;
+	private static final int BEDGRAPH_ITEM_LENGTH = 12;
+	private static final int ZOOM_RECORD_LENGTH = 32;
+	private static final byte BEDGRAPH_SECTION = 1;
+	private static final int ITEMS_PER_SLOT = 1024;
+	private static final int BLOCK_SIZE = 256;
+
+	/**
+	 * Largest number of zoom levels
+	 */
+	public static final int MAX_ZOOM_LEVELS = 10;
+	private static final int INITIAL_ZOOM_REDUCTION = 64;
+	private static final int ZOOM_INCREMENT = 4;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private String[] chrNames;
+	private Map<String, Integer> chrIds;
+	private int[] chrSizes;
+	private int[] zoomReductions;
+	private ExecutorService executor;
+	private int maxInFlight;
+	private Deque<Future<EncodedChromosome>> inFlight = new ArrayDeque<Future<EncodedChromosome>>();
+	private int lastChrId = -1;
+	private long fullDataOffset;
+	private long numSections = 0;
+	private List<IndexItem> sectionIndex = new ArrayList<IndexItem>();
+	private List<List<byte[]>> zoomBlocks;
+	private List<List<IndexItem>> zoomIndex;
+	private int maxUncompressedSize = 0;
+	private long basesCovered = 0;
+	private double minVal = Double.POSITIVE_INFINITY;
+	private double maxVal = Double.NEGATIVE_INFINITY;
+	private double sumData = 0;
+	private double sumSquares = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param fileName Output BigWig file
+	 * @param chrSizes Size of every chromosome that may be written, by name
+	 * @param numThreads Number of threads encoding chromosomes, chromosomes are encoded on the calling thread if 1
+	 * @throws IOException
+	 */
+	public BigWigWriter(String fileName, Map<String, Integer> chrSizes, int numThreads) throws IOException {
+		// Chromosome IDs follow the byte order of the names, as the chromosome tree requires
+		TreeMap<String, Integer> sorted = new TreeMap<String, Integer>(chrSizes);
+		chrNames = sorted.keySet().toArray(new String[sorted.size()]);
+		this.chrSizes = new int[chrNames.length];
+		chrIds = new TreeMap<String, Integer>();
+		int maxSize = 0;
+		for(int i = 0; i < chrNames.length; i++) {
+			this.chrSizes[i] = sorted.get(chrNames[i]).intValue();
+			chrIds.put(chrNames[i], Integer.valueOf(i));
+			maxSize = Math.max(maxSize, this.chrSizes[i]);
+		}
+		zoomReductions = getZoomReductions(maxSize);
+		zoomBlocks = new ArrayList<List<byte[]>>();
+		zoomIndex = new ArrayList<List<IndexItem>>();
+		for(int z = 0; z < zoomReductions.length; z++) {
+			zoomBlocks.add(new ArrayList<byte[]>());
+			zoomIndex.add(new ArrayList<IndexItem>());
+		}
+		if(numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bigwig-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			maxInFlight = numThreads;
+		}
+
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		// Header, zoom headers and total summary are written when the file is closed
+		channel.position(HEADER_LENGTH + MAX_ZOOM_LEVELS * ZOOM_HEADER_LENGTH + TOTAL_SUMMARY_LENGTH);
+		writeChromosomeTree();
+		fullDataOffset = channel.position();
+		// Number of sections, filled in when the file is closed
+		write(ByteBuffer.allocate(8));
+	}
+
+	/**
+	 * Zoom levels growing by a constant factor until one bin holds the largest chromosome
+	 * @param maxChrSize Size of the largest chromosome
+	 * @return The reduction of each zoom level
+	 */
+	private static int[] getZoomReductions(int maxChrSize) {
+		List<Integer> reductions = new ArrayList<Integer>();
+		long reduction = INITIAL_ZOOM_REDUCTION;
+		while(reductions.size() < MAX_ZOOM_LEVELS && (reductions.isEmpty() || reduction <= maxChrSize)) {
+			reductions.add(Integer.valueOf((int) reduction));
+			reduction *= ZOOM_INCREMENT;
+		}
+		int[] rtrn = new int[reductions.size()];
+		for(int i = 0; i < rtrn.length; i++) {
+			rtrn[i] = reductions.get(i).intValue();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Add the values of a chromosome
+	 * Chromosomes must be added in order of their names and each one at most once
+	 * The array is read on another thread and must not be modified afterwards
+	 * @param chr Chromosome name
+	 * @param values Value of each base from the start of the chromosome, NaN for bases with no data
+	 * @throws IOException
+	 */
+	public void addChromosome(String chr, final float[] values) throws IOException {
+		Integer id = chrIds.get(chr);
+		if(id == null) {
+			throw new IllegalArgumentException("Chromosome " + chr + " is not in the chromosome sizes");
+		}
+		if(id.intValue() <= lastChrId) {
+			throw new IllegalArgumentException("Chromosome " + chr + " was added out of order or more than once");
+		}
+		if(values.length > chrSizes[id.intValue()]) {
+			throw new IllegalArgumentException("Chromosome " + chr + " has " + values.length + " values but size " + chrSizes[id.intValue()]);
+		}
+		lastChrId = id.intValue();
+		final int chrId = lastChrId;
+		if(executor == null) {
+			writeChromosome(encode(chrId, values, zoomReductions));
+			return;
+		}
+		inFlight.addLast(executor.submit(new Callable<EncodedChromosome>() {
+			@Override
+			public EncodedChromosome call() {
+				return encode(chrId, values, zoomReductions);
+			}
+		}));
+		while(inFlight.size() > maxInFlight) {
+			writeOldestChromosome();
+		}
+	}
+
+	private void writeOldestChromosome() throws IOException {
+		try {
+			writeChromosome(inFlight.removeFirst().get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding", e);
+		} catch(ExecutionException e) {
+			throw new IOException("Failed to encode chromosome", e.getCause());
+		}
+	}
+
+	/**
+	 * Write the data sections of an encoded chromosome and keep its zoom blocks until the end of the file
+	 * @param encoded The encoded chromosome
+	 * @throws IOException
+	 */
+	private void writeChromosome(EncodedChromosome encoded) throws IOException {
+		for(int i = 0; i < encoded.sections.size(); i++) {
+			byte[] section = encoded.sections.get(i);
+			IndexItem item = encoded.sectionBounds.get(i);
+			item.offset = channel.position();
+			item.size = section.length;
+			write(ByteBuffer.wrap(section));
+			sectionIndex.add(item);
+		}
+		numSections += encoded.sections.size();
+		for(int z = 0; z < zoomReductions.length; z++) {
+			zoomBlocks.get(z).addAll(encoded.zoomBlocks.get(z));
+			zoomIndex.get(z).addAll(encoded.zoomBounds.get(z));
+		}
+		maxUncompressedSize = Math.max(maxUncompressedSize, encoded.maxUncompressedSize);
+		basesCovered += encoded.basesCovered;
+		minVal = Math.min(minVal, encoded.minVal);
+		maxVal = Math.max(maxVal, encoded.maxVal);
+		sumData += encoded.sumData;
+		sumSquares += encoded.sumSquares;
+		logger.debug("Wrote " + encoded.sections.size() + " sections for " + chrNames[encoded.chrId]);
+	}
+
+	/**
+	 * Write the pending chromosomes, the indexes and the zoom levels
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(closed) return;
+		try {
+			while(!inFlight.isEmpty()) {
+				writeOldestChromosome();
+			}
+			long fullIndexOffset = channel.position();
+			writeRTree(sectionIndex, fullIndexOffset);
+
+			long[] zoomDataOffsets = new long[zoomReductions.length];
+			long[] zoomIndexOffsets = new long[zoomReductions.length];
+			for(int z = 0; z < zoomReductions.length; z++) {
+				zoomDataOffsets[z] = channel.position();
+				List<byte[]> blocks = zoomBlocks.get(z);
+				List<IndexItem> bounds = zoomIndex.get(z);
+				ByteBuffer count = newBuffer(4);
+				count.putInt(blocks.size());
+				count.flip();
+				write(count);
+				for(int i = 0; i < blocks.size(); i++) {
+					bounds.get(i).offset = channel.position();
+					bounds.get(i).size = blocks.get(i).length;
+					write(ByteBuffer.wrap(blocks.get(i)));
+				}
+				// Free the blocks before writing the next level
+				blocks.clear();
+				zoomIndexOffsets[z] = channel.position();
+				writeRTree(bounds, zoomIndexOffsets[z]);
+			}
+			ByteBuffer end = newBuffer(4);
+			end.putInt(BIGWIG_MAGIC);
+			end.flip();
+			write(end);
+
+			ByteBuffer count = newBuffer(8);
+			count.putLong(numSections);
+			count.flip();
+			channel.write(count, fullDataOffset);
+			writeHeader(fullIndexOffset, zoomDataOffsets, zoomIndexOffsets);
+			logger.info("Wrote " + numSections + " sections and " + zoomReductions.length + " zoom levels");
+		} finally {
+			closed = true;
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+			file.close();
+		}
+	}
+
+	private static ByteBuffer newBuffer(int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write the remaining bytes of a buffer at the current position of the file
+	 * @param buffer The buffer
+	 * @throws IOException
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void writeHeader(long fullIndexOffset, long[] zoomDataOffsets, long[] zoomIndexOffsets) throws IOException {
+		ByteBuffer header = newBuffer(HEADER_LENGTH + MAX_ZOOM_LEVELS * ZOOM_HEADER_LENGTH + TOTAL_SUMMARY_LENGTH);
+		header.putInt(BIGWIG_MAGIC);
+		header.putShort((short) VERSION);
+		header.putShort((short) zoomReductions.length);
+		// Chromosome tree offset
+		header.putLong(HEADER_LENGTH + MAX_ZOOM_LEVELS * ZOOM_HEADER_LENGTH + TOTAL_SUMMARY_LENGTH);
+		header.putLong(fullDataOffset);
+		header.putLong(fullIndexOffset);
+		// Field count and defined field count are only used by BigBed
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		// No autoSql
+		header.putLong(0);
+		header.putLong(HEADER_LENGTH + MAX_ZOOM_LEVELS * ZOOM_HEADER_LENGTH);
+		header.putInt(maxUncompressedSize);
+		// No extension header
+		header.putLong(0);
+		for(int z = 0; z < zoomReductions.length; z++) {
+			header.putInt(zoomReductions[z]);
+			header.putInt(0);
+			header.putLong(zoomDataOffsets[z]);
+			header.putLong(zoomIndexOffsets[z]);
+		}
+		header.position(HEADER_LENGTH + MAX_ZOOM_LEVELS * ZOOM_HEADER_LENGTH);
+		header.putLong(basesCovered);
+		header.putDouble(basesCovered == 0 ? 0 : minVal);
+		header.putDouble(basesCovered == 0 ? 0 : maxVal);
+		header.putDouble(sumData);
+		header.putDouble(sumSquares);
+		header.flip();
+		channel.write(header, 0);
+	}
+
+	/**
+	 * Write the B+ tree mapping chromosome names to IDs and sizes, as one leaf holding every chromosome
+	 * @throws IOException
+	 */
+	private void writeChromosomeTree() throws IOException {
+		int keySize = 1;
+		byte[][] keys = new byte[chrNames.length][];
+		for(int i = 0; i < chrNames.length; i++) {
+			keys[i] = chrNames[i].getBytes("US-ASCII");
+			keySize = Math.max(keySize, keys[i].length);
+		}
+		ByteBuffer tree = newBuffer(32 + 4 + chrNames.length * (keySize + 8));
+		tree.putInt(CHROM_TREE_MAGIC);
+		tree.putInt(Math.max(1, chrNames.length));
+		tree.putInt(keySize);
+		tree.putInt(8);
+		tree.putLong(chrNames.length);
+		tree.putLong(0);
+		// Leaf node
+		tree.put((byte) 1);
+		tree.put((byte) 0);
+		tree.putShort((short) chrNames.length);
+		for(int i = 0; i < chrNames.length; i++) {
+			tree.put(keys[i]);
+			for(int j = keys[i].length; j < keySize; j++) {
+				tree.put((byte) 0);
+			}
+			tree.putInt(i);
+			tree.putInt(chrSizes[i]);
+		}
+		tree.flip();
+		write(tree);
+	}
+
+	/**
+	 * Write an R tree indexing blocks that are sorted by position, root first and leaves last
+	 * @param items Bounds, offset and size of each block
+	 * @param treeOffset File offset where the tree starts
+	 * @throws IOException
+	 */
+	private void writeRTree(List<IndexItem> items, long treeOffset) throws IOException {
+		// Levels from the leaves up, each node covering up to BLOCK_SIZE nodes or items of the level below
+		List<List<IndexItem>> levels = new ArrayList<List<IndexItem>>();
+		List<IndexItem> below = items;
+		do {
+			List<IndexItem> level = new ArrayList<IndexItem>();
+			for(int i = 0; i < below.size() || i == 0; i += BLOCK_SIZE) {
+				level.add(IndexItem.covering(below, i, Math.min(below.size(), i + BLOCK_SIZE)));
+			}
+			levels.add(level);
+			below = level;
+		} while(below.size() > 1);
+
+		// Node offsets, root level first
+		long offset = treeOffset + 48;
+		for(int l = levels.size() - 1; l >= 0; l--) {
+			int entryLength = l == 0 ? 32 : 24;
+			for(IndexItem node : levels.get(l)) {
+				node.offset = offset;
+				offset += 4 + entryLength * node.numChildren;
+			}
+		}
+
+		IndexItem root = levels.get(levels.size() - 1).get(0);
+		ByteBuffer header = newBuffer(48);
+		header.putInt(R_TREE_MAGIC);
+		header.putInt(BLOCK_SIZE);
+		header.putLong(items.size());
+		header.putInt(root.startChrom);
+		header.putInt(root.startBase);
+		header.putInt(root.endChrom);
+		header.putInt(root.endBase);
+		// End of the indexed data
+		header.putLong(treeOffset);
+		header.putInt(ITEMS_PER_SLOT);
+		header.putInt(0);
+		header.flip();
+		write(header);
+
+		for(int l = levels.size() - 1; l >= 0; l--) {
+			List<IndexItem> children = l == 0 ? items : levels.get(l - 1);
+			for(IndexItem node : levels.get(l)) {
+				ByteBuffer buffer = newBuffer(4 + (l == 0 ? 32 : 24) * node.numChildren);
+				buffer.put((byte) (l == 0 ? 1 : 0));
+				buffer.put((byte) 0);
+				buffer.putShort((short) node.numChildren);
+				for(int i = node.firstChild; i < node.firstChild + node.numChildren; i++) {
+					IndexItem child = children.get(i);
+					buffer.putInt(child.startChrom);
+					buffer.putInt(child.startBase);
+					buffer.putInt(child.endChrom);
+					buffer.putInt(child.endBase);
+					buffer.putLong(child.offset);
+					if(l == 0) {
+						buffer.putLong(child.size);
+					}
+				}
+				buffer.flip();
+				write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Encode the values of a chromosome as compressed bedGraph sections and zoom blocks
+	 * @param chrId Chromosome ID
+	 * @param values Value of each base, NaN for bases with no data
+	 * @param zoomReductions Reduction of each zoom level
+	 * @return The encoded chromosome
+	 */
+	static EncodedChromosome encode(int chrId, float[] values, int[] zoomReductions) {
+		EncodedChromosome rtrn = new EncodedChromosome(chrId, zoomReductions.length);
+		Deflater deflater = new Deflater();
+		try {
+			ByteBuffer section = newBuffer(SECTION_HEADER_LENGTH + ITEMS_PER_SLOT * BEDGRAPH_ITEM_LENGTH);
+			int numItems = 0;
+			int sectionStart = 0;
+			ZoomAccumulator[] zooms = new ZoomAccumulator[zoomReductions.length];
+			for(int z = 0; z < zooms.length; z++) {
+				zooms[z] = new ZoomAccumulator(chrId, zoomReductions[z], newBuffer(ITEMS_PER_SLOT * ZOOM_RECORD_LENGTH));
+			}
+			int i = 0;
+			while(i < values.length) {
+				float value = values[i];
+				if(Float.isNaN(value)) {
+					i++;
+					continue;
+				}
+				// Run of equal values
+				int start = i;
+				while(i < values.length && values[i] == value) {
+					i++;
+				}
+				int end = i;
+				if(numItems == 0) {
+					section.position(SECTION_HEADER_LENGTH);
+					sectionStart = start;
+				}
+				section.putInt(start);
+				section.putInt(end);
+				section.putFloat(value);
+				numItems++;
+				if(numItems == ITEMS_PER_SLOT) {
+					rtrn.addSection(section, deflater, sectionStart, end, numItems);
+					numItems = 0;
+				}
+				long length = end - start;
+				rtrn.basesCovered += length;
+				rtrn.minVal = Math.min(rtrn.minVal, value);
+				rtrn.maxVal = Math.max(rtrn.maxVal, value);
+				rtrn.sumData += (double) value * length;
+				rtrn.sumSquares += (double) value * value * length;
+				for(int z = 0; z < zooms.length; z++) {
+					zooms[z].add(start, end, value, rtrn, z, deflater);
+				}
+			}
+			if(numItems > 0) {
+				int lastEnd = section.getInt(SECTION_HEADER_LENGTH + (numItems - 1) * BEDGRAPH_ITEM_LENGTH + 4);
+				rtrn.addSection(section, deflater, sectionStart, lastEnd, numItems);
+			}
+			for(int z = 0; z < zooms.length; z++) {
+				zooms[z].finish(rtrn, z, deflater);
+			}
+		} finally {
+			deflater.end();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Compress bytes in zlib format as the BigWig readers expect
+	 * @param bytes Uncompressed bytes
+	 * @param length Number of bytes to compress
+	 * @param deflater Deflater, reset before use
+	 * @return The compressed bytes
+	 */
+	static byte[] compress(byte[] bytes, int length, Deflater deflater) {
+		deflater.reset();
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+		byte[] buffer = new byte[8192];
+		while(!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Summaries of the values in bins of one zoom level, flushed to compressed blocks of up to ITEMS_PER_SLOT records
+	 * Bins are aligned to multiples of the reduction and each record covers the bases with data in its bin
+	 */
+	private static class ZoomAccumulator {
+
+		private int chrId;
+		private int reduction;
+		private ByteBuffer block;
+		private int numRecords = 0;
+		private int blockStart;
+		private int blockEnd;
+		private int bin = -1;
+		private int recordStart;
+		private int recordEnd;
+		private int validCount;
+		private float min;
+		private float max;
+		private double sum;
+		private double sumSquares;
+
+		ZoomAccumulator(int chrId, int reduction, ByteBuffer block) {
+			this.chrId = chrId;
+			this.reduction = reduction;
+			this.block = block;
+		}
+
+		void add(int start, int end, float value, EncodedChromosome encoded, int level, Deflater deflater) {
+			while(start < end) {
+				int startBin = start / reduction;
+				int binEnd = (int) Math.min((long) (startBin + 1) * reduction, end);
+				if(startBin != bin) {
+					finishRecord(encoded, level, deflater);
+					bin = startBin;
+					recordStart = start;
+					validCount = 0;
+					min = value;
+					max = value;
+					sum = 0;
+					sumSquares = 0;
+				}
+				int length = binEnd - start;
+				recordEnd = binEnd;
+				validCount += length;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				sum += (double) value * length;
+				sumSquares += (double) value * value * length;
+				start = binEnd;
+			}
+		}
+
+		private void finishRecord(EncodedChromosome encoded, int level, Deflater deflater) {
+			if(bin < 0) return;
+			if(numRecords == 0) {
+				block.clear();
+				blockStart = recordStart;
+			}
+			block.putInt(chrId);
+			block.putInt(recordStart);
+			block.putInt(recordEnd);
+			block.putInt(validCount);
+			block.putFloat(min);
+			block.putFloat(max);
+			block.putFloat((float) sum);
+			block.putFloat((float) sumSquares);
+			blockEnd = recordEnd;
+			numRecords++;
+			bin = -1;
+			if(numRecords == ITEMS_PER_SLOT) {
+				flushBlock(encoded, level, deflater);
+			}
+		}
+
+		private void flushBlock(EncodedChromosome encoded, int level, Deflater deflater) {
+			int length = block.position();
+			encoded.zoomBlocks.get(level).add(compress(block.array(), length, deflater));
+			encoded.zoomBounds.get(level).add(new IndexItem(chrId, blockStart, blockEnd));
+			encoded.maxUncompressedSize = Math.max(encoded.maxUncompressedSize, length);
+			numRecords = 0;
+		}
+
+		void finish(EncodedChromosome encoded, int level, Deflater deflater) {
+			finishRecord(encoded, level, deflater);
+			if(numRecords > 0) {
+				flushBlock(encoded, level, deflater);
+			}
+		}
+	}
+
+	/**
+	 * Compressed sections and zoom blocks of one chromosome with its summary statistics
+	 */
+	static class EncodedChromosome {
+
+		int chrId;
+		List<byte[]> sections = new ArrayList<byte[]>();
+		List<IndexItem> sectionBounds = new ArrayList<IndexItem>();
+		List<List<byte[]>> zoomBlocks = new ArrayList<List<byte[]>>();
+		List<List<IndexItem>> zoomBounds = new ArrayList<List<IndexItem>>();
+		int maxUncompressedSize = 0;
+		long basesCovered = 0;
+		double minVal = Double.POSITIVE_INFINITY;
+		double maxVal = Double.NEGATIVE_INFINITY;
+		double sumData = 0;
+		double sumSquares = 0;
+
+		EncodedChromosome(int chrId, int numZoomLevels) {
+			this.chrId = chrId;
+			for(int z = 0; z < numZoomLevels; z++) {
+				zoomBlocks.add(new ArrayList<byte[]>());
+				zoomBounds.add(new ArrayList<IndexItem>());
+			}
+		}
+
+		/**
+		 * Fill in the header of a bedGraph section and add it compressed
+		 */
+		void addSection(ByteBuffer section, Deflater deflater, int start, int end, int numItems) {
+			int length = section.position();
+			section.putInt(0, chrId);
+			section.putInt(4, start);
+			section.putInt(8, end);
+			// Item step and span are only used by fixed and variable step sections
+			section.putInt(12, 0);
+			section.putInt(16, 0);
+			section.put(20, BEDGRAPH_SECTION);
+			section.put(21, (byte) 0);
+			section.putShort(22, (short) numItems);
+			sections.add(compress(section.array(), length, deflater));
+			sectionBounds.add(new IndexItem(chrId, start, end));
+			maxUncompressedSize = Math.max(maxUncompressedSize, length);
+		}
+	}
+
+	/**
+	 * Bounds of a block or R tree node with its file offset
+	 */
+	static class IndexItem {
+
+		int startChrom;
+		int startBase;
+		int endChrom;
+		int endBase;
+		long offset;
+		long size;
+		int firstChild;
+		int numChildren;
+
+		IndexItem(int chrId, int start, int end) {
+			startChrom = chrId;
+			startBase = start;
+			endChrom = chrId;
+			endBase = end;
+		}
+
+		/**
+		 * @param items Items sorted by position
+		 * @param from First item covered
+		 * @param to End of the covered items, exclusive
+		 * @return Node covering the items
+		 */
+		static IndexItem covering(List<IndexItem> items, int from, int to) {
+			IndexItem rtrn = new IndexItem(0, 0, 0);
+			rtrn.firstChild = from;
+			rtrn.numChildren = to - from;
+			if(to > from) {
+				IndexItem first = items.get(from);
+				rtrn.startChrom = first.startChrom;
+				rtrn.startBase = first.startBase;
+				rtrn.endChrom = first.endChrom;
+				rtrn.endBase = first.endBase;
+				for(int i = from + 1; i < to; i++) {
+					IndexItem item = items.get(i);
+					if(item.endChrom > rtrn.endChrom || (item.endChrom == rtrn.endChrom && item.endBase > rtrn.endBase)) {
+						rtrn.endChrom = item.endChrom;
+						rtrn.endBase = item.endBase;
+					}
+				}
+			}
+			return rtrn;
+		}
+	}
+
+}
@@ -1,6 +1,10 @@
 package nextgen.core.writers;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -17,7 +21,14 @@ import net.sf.samtools.SAMTag;
 import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
 import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+import net.sf.samtools.util.SortingCollection;
 import nextgen.core.alignment.Alignment;
 import nextgen.core.alignment.AlignmentPair;
 import nextgen.core.alignment.AbstractPairedEndAlignment.TranscriptionRead;
@@ -55,6 +66,12 @@ public class PairedEndWriter {
 	private SAMFileHeader header;
 	private BAMRecordCodec testCodec;
 	private int maxAllowableInsert=500000;
+	public static int DEFAULT_MAX_RECORDS_IN_RAM = 500000;
+	private int maxRecordsInRam=DEFAULT_MAX_RECORDS_IN_RAM;
+	private int compressionThreads=1;
+	private File tmpDir=new File(System.getProperty("java.io.tmpdir"));
+	// Used instead of writer when blocks are compressed on several threads
+	private SortingCollection<SAMRecord> sortedOutput;
 	
 	
 	/**
@@ -77,13 +94,6 @@ public class PairedEndWriter {
 		//set header to pairedEnd
 		header.setAttribute(mateLineFlag, "mergedPairedEndFormat");
 		
-		//We are going to write a BAM File directly
-		File outFile = new File(this.output);
-		//if (outFile.exists()) outFile.delete();
-		writer=new BAMFileWriter(outFile);
-		writer.setSortOrder(SortOrder.coordinate, false);
-		writer.setHeader(header);
-		
 		testCodec = new BAMRecordCodec(header);
 		testCodec.setOutputStream(new NullOutputStream());
 	}
@@ -92,6 +102,52 @@ public class PairedEndWriter {
 		maxAllowableInsert = x;
 	}
 	
+	/**
+	 * Bounds the number of records held in memory by the streaming conversion and by the sort preceding parallel compression
+	 * @param x Maximum number of records in memory
+	 */
+	public void setMaxRecordsInRam(int x) {
+		maxRecordsInRam = x;
+	}
+	
+	/**
+	 * Compress the output on several threads
+	 * Must be set before the first record is added
+	 * @param x Number of compression threads
+	 */
+	public void setCompressionThreads(int x) {
+		if(writer!=null || sortedOutput!=null){
+			throw new IllegalStateException("Compression threads must be set before records are added");
+		}
+		compressionThreads = x;
+	}
+	
+	/**
+	 * @param dir Directory for records spilled to disk
+	 */
+	public void setTmpDir(File dir) {
+		tmpDir = dir;
+	}
+	
+	/**
+	 * Open the output on the first record
+	 * With a single compression thread records go to a BAMFileWriter, otherwise they are sorted here and compressed on close
+	 */
+	private void openOutput() {
+		if(writer!=null || sortedOutput!=null) return;
+		if(compressionThreads>1){
+			sortedOutput = SortingCollection.newInstance(SAMRecord.class, new BAMRecordCodec(header), new SAMRecordCoordinateComparator(), maxRecordsInRam, tmpDir);
+		}
+		else{
+			//We are going to write a BAM File directly
+			File outFile = new File(this.output);
+			//if (outFile.exists()) outFile.delete();
+			writer=new BAMFileWriter(outFile);
+			writer.setSortOrder(SortOrder.coordinate, false);
+			writer.setHeader(header);
+		}
+	}
+	
 	/**
 	 * Convert the bamFile provided in the constructor to paired end format.
 	 * If no transcription read is supplied, set to unstranded
@@ -151,19 +207,7 @@ public class PairedEndWriter {
 			//If the read is not paired or the mate is unmapped, write it as it is
 			if(!record.getReadPairedFlag() || record.getMateUnmappedFlag()){//SK: using the !(passes distance checks) wrote really bad alignments ESP because the addRecord() function did not check for this
 				//SK: This clause is ONLY for single mapped reads
-				//mate unmapped so just write it
-				if(record.getReadPairedFlag()) {record.setMateUnmappedFlag(true);} //revised for single end @zhuxp
-				//If first read is in direction of transcription change orientation of second read
-				if(txnRead.equals(TranscriptionRead.FIRST_OF_PAIR) && !record.getFirstOfPairFlag()){
-					record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
-				}
-				//Second read is the transcription read change the orientation of the first read
-				else if(txnRead.equals(TranscriptionRead.SECOND_OF_PAIR) && record.getFirstOfPairFlag()){
-						record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
-				}//UNSTRANDED: DO nothing
-				
-				//writer.addAlignment(record); MG: We need to be consistent how we write alignments
-				addRecord(record);
+				writeSingleEnd(record, txnRead);
 				single++;
 			}
 			// read is paired && mate is mapped	
@@ -207,6 +251,109 @@ public class PairedEndWriter {
 	}
 
 	
+	/**
+	 * Convert the bamFile provided in the constructor to paired end format in a single pass with bounded memory
+	 * The input must be sorted by coordinate
+	 * Mates whose pair can no longer be completed are dropped as soon as the scan passes their mate's position rather than at the end of the chromosome,
+	 * and when more than maxRecordsInRam mates are waiting the ones whose mates are furthest ahead are spilled to disk
+	 */
+	public void convertInputToPairedEndStreaming(TranscriptionRead txnRead) {
+		if(header.getSortOrder()!=SortOrder.coordinate){
+			logger.warn("Input is not flagged as coordinate sorted, pairs further than a chromosome apart in the file will not be matched");
+		}
+		SAMRecordIterator iter = reader.iterator();
+		PendingMateBuffer pending = new PendingMateBuffer(header, maxRecordsInRam, tmpDir);
+		int numRead = 0;
+		int single = 0;
+		int paired = 0;
+		int evicted = 0;
+		String prevChr=null;
+		
+		try{
+			while(iter.hasNext()) {
+				SAMRecord record=iter.next();
+				String name=record.getReadName();
+				
+				if(prevChr==null){
+					prevChr=record.getReferenceName();
+				}
+				//If the read is unmapped, skip
+				if(record.getReadUnmappedFlag()) continue;
+				
+				// Purge collection if moving to new chromosome
+				if(!record.getReferenceName().equals(prevChr) && !record.getReferenceName().equals("*")){
+					prevChr = record.getReferenceName();
+					writeRemainder(pending.drain());
+				}
+				
+				// Drop pairs whose mates were expected before this read
+				Map<String, AlignmentPair> unmatched = pending.advance(record.getAlignmentStart());
+				for(String key: unmatched.keySet()){
+					writeUnmatched(key, unmatched.get(key));
+				}
+				evicted+=unmatched.size();
+				
+				//If the read is not paired or the mate is unmapped, write it as it is
+				if(!record.getReadPairedFlag() || record.getMateUnmappedFlag()){
+					writeSingleEnd(record, txnRead);
+					single++;
+				}
+				// read is paired && mate is mapped	
+				else{
+					AlignmentPair pair = pending.get(name);
+					if(pair==null){pair=new AlignmentPair();}
+					pair.add(record);
+					
+					if(passesDistanceChecks(record)){
+						if(pair.isComplete()){
+							paired++;
+							pending.remove(name);
+							writeAll(pair.makePairs());
+						}
+						else{
+							pending.put(name, pair);
+						}
+					}
+				}
+				
+				numRead++;
+				if(numRead % 1000000 == 0) {
+					logger.info("Processed " + numRead + " reads, free mem: " + Runtime.getRuntime().freeMemory() + " waiting mates : " + pending.size()+" on "+record.getReferenceName()+" Single alignments : "+single+ " Paired alignments "+paired+" Unmatched : "+evicted+" Spilled : "+pending.getNumSpilled());
+				}
+			}
+			
+			//Write remainder
+			writeRemainder(pending.drain());
+		} finally{
+			pending.close();
+			iter.close();
+		}
+		if(evicted > 0) {
+			logger.warn("WARNING "+evicted+" mates whose pair was not found at the mate position");
+		}
+		
+		close();
+	}
+	
+	/**
+	 * Write a read whose mate is not mapped, flipping its orientation if it is not the transcription read
+	 */
+	private void writeSingleEnd(SAMRecord record, TranscriptionRead txnRead) {
+		//mate unmapped so just write it
+		if(record.getReadPairedFlag()) {record.setMateUnmappedFlag(true);} //revised for single end @zhuxp
+		//If first read is in direction of transcription change orientation of second read
+		if(txnRead.equals(TranscriptionRead.FIRST_OF_PAIR) && !record.getFirstOfPairFlag()){
+			record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
+		}
+		//Second read is the transcription read change the orientation of the first read
+		else if(txnRead.equals(TranscriptionRead.SECOND_OF_PAIR) && record.getFirstOfPairFlag()){
+				record.setReadNegativeStrandFlag(!record.getReadNegativeStrandFlag());
+		}//UNSTRANDED: DO nothing
+		
+		//writer.addAlignment(record); MG: We need to be consistent how we write alignments
+		addRecord(record);
+	}
+
 	/**
 	 * This function checks whether the given record and its mate:
 	 * 			- are on the same chromosome
@@ -235,35 +382,38 @@ public class PairedEndWriter {
 			logger.warn("WARNING Remainder: "+tempCollection.size()+" writing as single end reads");
 		}
 		for(String name: tempCollection.keySet()){
-			Pair<Collection<SAMRecord>> pair=tempCollection.get(name);
-			Collection<SAMRecord> records;
+			writeUnmatched(name, tempCollection.get(name));
+		}
+	}
+	
+	private void writeUnmatched(String name, AlignmentPair pair) {
+		Collection<SAMRecord> records;
+		
+		if(pair.hasValue1() && pair.hasValue2()){
+			//throw new IllegalStateException("There are samples in both pairs that are unaccounted for: "+name);
+			logger.error("There are samples in both pairs that are unaccounted for: "+name);
 			
-			if(pair.hasValue1() && pair.hasValue2()){
-				//throw new IllegalStateException("There are samples in both pairs that are unaccounted for: "+name);
-				logger.error("There are samples in both pairs that are unaccounted for: "+name);
-				
-				Collection<SAMRecord> fragmentRecords = tempCollection.get(name).makePairs();
-				//write to output
-				writeAll(fragmentRecords);
-			}
-			else{
-				if(pair.hasValue1()){records=pair.getValue1();}
-				else{records=pair.getValue2();}
+			Collection<SAMRecord> fragmentRecords = pair.makePairs();
+			//write to output
+			writeAll(fragmentRecords);
+		}
+		else{
+			if(pair.hasValue1()){records=pair.getValue1();}
+			else{records=pair.getValue2();}
+			
+			for(SAMRecord record: records) {
+				// If mate is unpaired, fix SAMRecord settings accordingly
+	            
+				// Why were the following changes added?  This seems to break things. -Jesse
+				//record.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+	            //record.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
 				
-				for(SAMRecord record: records) {
-					// If mate is unpaired, fix SAMRecord settings accordingly
-		            
-					// Why were the following changes added?  This seems to break things. -Jesse
-					//record.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
-		            //record.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
-					
-		            record.setMateReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
-		            record.setMateAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
-		            record.setMateNegativeStrandFlag(!record.getReadNegativeStrandFlag());
-		            record.setMateUnmappedFlag(true);
-		            record.setAttribute(SAMTag.MQ.name(), null);
-		            record.setInferredInsertSize(0);
-				}
+	            record.setMateReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+	            record.setMateAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+	            record.setMateNegativeStrandFlag(!record.getReadNegativeStrandFlag());
+	            record.setMateUnmappedFlag(true);
+	            record.setAttribute(SAMTag.MQ.name(), null);
+	            record.setInferredInsertSize(0);
 			}
 		}
 	}
@@ -358,12 +508,22 @@ public class PairedEndWriter {
 			}
 //		}
 
-		if (encoded) writer.addAlignment(record);
+		if (encoded) {
+			openOutput();
+			if(sortedOutput!=null){sortedOutput.add(record);}
+			else{writer.addAlignment(record);}
+		}
 	}
 	
 	
 	public void close() {
-		writer.close();
+		openOutput();
+		if(sortedOutput!=null){
+			writeSortedOutput();
+		}
+		else{
+			writer.close();
+		}
 		
 		//Now build a BAM index
 		File transcriptomeBamIdxFile = new File( this.output + BAMIndex.BAMIndexSuffix);
@@ -373,4 +533,38 @@ public class PairedEndWriter {
 		reader2.close();
 	}
 	
+	/**
+	 * Write the sorted records as BAM, compressing blocks on compressionThreads threads
+	 */
+	private void writeSortedOutput() {
+		header.setSortOrder(SortOrder.coordinate);
+		try {
+			ParallelBGZFOutputStream out = new ParallelBGZFOutputStream(new BufferedOutputStream(new FileOutputStream(this.output)), compressionThreads);
+			BinaryCodec binaryCodec = new BinaryCodec(out);
+			// BAM header: magic, text header and reference dictionary
+			binaryCodec.writeBytes("BAM\1".getBytes("US-ASCII"));
+			StringWriter headerText = new StringWriter();
+			new SAMTextHeaderCodec().encode(headerText, header);
+			binaryCodec.writeString(headerText.toString(), true, false);
+			binaryCodec.writeInt(header.getSequenceDictionary().size());
+			for(SAMSequenceRecord sequence: header.getSequenceDictionary().getSequences()){
+				binaryCodec.writeString(sequence.getSequenceName(), true, true);
+				binaryCodec.writeInt(sequence.getSequenceLength());
+			}
+			
+			BAMRecordCodec recordCodec = new BAMRecordCodec(header);
+			recordCodec.setOutputStream(out, this.output);
+			CloseableIterator<SAMRecord> iter = sortedOutput.iterator();
+			while(iter.hasNext()){
+				recordCodec.encode(iter.next());
+			}
+			iter.close();
+			out.close();
+		} catch(IOException e) {
+			throw new RuntimeIOException("Could not write " + this.output, e);
+		} finally {
+			sortedOutput.cleanup();
+		}
+	}
+	
 }
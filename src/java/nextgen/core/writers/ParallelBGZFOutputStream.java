@@ -0,0 +1,232 @@
+package nextgen.core.writers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Block compressed (BGZF) output stream compressing blocks on several threads
+ * Blocks are cut at the same size as net.sf.samtools.util.BlockCompressedOutputStream and written in order, so the output can be read and indexed like any BAM file
+ * At most a few blocks per thread are in flight, so memory use does not depend on the amount of data written
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+
+	private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+	private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+	private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+	private OutputStream out;
+	private int compressionLevel;
+	private ExecutorService executor;
+	private boolean ownsExecutor = true;
+	private int maxInFlight;
+	private Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int numBuffered = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param out Stream receiving the compressed blocks
+	 * @param numThreads Number of compression threads, blocks are compressed on the calling thread if 1
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, int numThreads) {
+		this(out, numThreads, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+	}
+
+	/**
+	 * @param out Stream receiving the compressed blocks
+	 * @param numThreads Number of compression threads, blocks are compressed on the calling thread if 1
+	 * @param compressionLevel Deflate compression level
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, int numThreads, int compressionLevel) {
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		if(numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads);
+			maxInFlight = numThreads * BLOCKS_IN_FLIGHT_PER_THREAD;
+		}
+	}
+
+	/**
+	 * Compress blocks with threads shared by several streams, e.g. one per output file
+	 * The executor is not shut down when the stream is closed
+	 * @param out Stream receiving the compressed blocks
+	 * @param sharedExecutor Executor compressing the blocks
+	 * @param maxBlocksInFlight Number of blocks of this stream compressed at once
+	 * @param compressionLevel Deflate compression level
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, ExecutorService sharedExecutor, int maxBlocksInFlight, int compressionLevel) {
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		executor = sharedExecutor;
+		ownsExecutor = false;
+		maxInFlight = maxBlocksInFlight;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[numBuffered++] = (byte) b;
+		if(numBuffered == BLOCK_SIZE) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			int n = Math.min(length, BLOCK_SIZE - numBuffered);
+			System.arraycopy(bytes, offset, buffer, numBuffered, n);
+			numBuffered += n;
+			offset += n;
+			length -= n;
+			if(numBuffered == BLOCK_SIZE) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Compress the buffered bytes as a block, even if the block is not full, and write all pending blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(numBuffered > 0) {
+			submitBlock();
+		}
+		while(!inFlight.isEmpty()) {
+			writeOldestBlock();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write all pending blocks followed by the empty block marking the end of a BGZF file
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		try {
+			flush();
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			out.close();
+		} finally {
+			closed = true;
+			if(executor != null && ownsExecutor) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] block = buffer;
+		final int length = numBuffered;
+		buffer = new byte[BLOCK_SIZE];
+		numBuffered = 0;
+		if(executor == null) {
+			out.write(compressBlock(block, length, compressionLevel));
+			return;
+		}
+		inFlight.addLast(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(block, length, compressionLevel);
+			}
+		}));
+		while(inFlight.size() > maxInFlight) {
+			writeOldestBlock();
+		}
+	}
+
+	private void writeOldestBlock() throws IOException {
+		try {
+			out.write(inFlight.removeFirst().get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch(ExecutionException e) {
+			throw new IOException("Failed to compress block", e.getCause());
+		}
+	}
+
+	/**
+	 * Compress bytes into one BGZF block, storing them uncompressed if deflate does not make them fit
+	 * @param bytes Uncompressed bytes
+	 * @param length Number of bytes to compress
+	 * @param level Deflate compression level
+	 * @return The complete block with its header and footer
+	 */
+	static byte[] compressBlock(byte[] bytes, int length, int level) {
+		byte[] deflated = new byte[MAX_DEFLATED_SIZE];
+		int deflatedLength = deflate(bytes, length, level, deflated);
+		if(deflatedLength < 0) {
+			deflatedLength = deflate(bytes, length, Deflater.NO_COMPRESSION, deflated);
+			if(deflatedLength < 0) {
+				throw new IllegalStateException("Block does not fit uncompressed in a BGZF block: " + length);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+
+		int blockLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] rtrn = new byte[blockLength];
+		int i = 0;
+		rtrn[i++] = BlockCompressedStreamConstants.GZIP_ID1;
+		rtrn[i++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+		rtrn[i++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+		rtrn[i++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+		// Modification time
+		i = putInt(rtrn, i, 0);
+		rtrn[i++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+		rtrn[i++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+		i = putShort(rtrn, i, BlockCompressedStreamConstants.GZIP_XLEN);
+		rtrn[i++] = BlockCompressedStreamConstants.BGZF_ID1;
+		rtrn[i++] = BlockCompressedStreamConstants.BGZF_ID2;
+		i = putShort(rtrn, i, BlockCompressedStreamConstants.BGZF_LEN);
+		i = putShort(rtrn, i, blockLength - 1);
+		System.arraycopy(deflated, 0, rtrn, i, deflatedLength);
+		i += deflatedLength;
+		i = putInt(rtrn, i, (int) crc.getValue());
+		putInt(rtrn, i, length);
+		return rtrn;
+	}
+
+	/**
+	 * @return Number of deflated bytes or -1 if they do not fit in the output
+	 */
+	private static int deflate(byte[] bytes, int length, int level, byte[] output) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+			int deflatedLength = deflater.deflate(output, 0, output.length);
+			return deflater.finished() ? deflatedLength : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		return offset + 2;
+	}
+
+	private static int putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		bytes[offset + 2] = (byte) (value >> 16);
+		bytes[offset + 3] = (byte) (value >> 24);
+		return offset + 4;
+	}
+
+}
@@ -0,0 +1,392 @@
+package nextgen.core.writers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.RuntimeIOException;
+import nextgen.core.alignment.AlignmentPair;
+
+/**
+ * Mates waiting for their pair while a coordinate sorted file of a single reference is scanned
+ * Each waiting pair is keyed by the positions its missing mates were aligned to
+ * Once the scan passes the last of these positions the mates of a uniquely aligned pair can no longer arrive and the pair is evicted
+ * When more than a fixed number of records are waiting, uniquely aligned pairs whose mates are furthest ahead are spilled to a sorted run on disk until half that number remain, and read back when the scan reaches their mates
+ * Runs are merged into one once too many are open
+ */
+class PendingMateBuffer {
+
+	static Logger logger = Logger.getLogger(PendingMateBuffer.class.getName());
+
+	/**
+	 * Number of spilled runs kept open before they are merged
+	 */
+	static int MAX_OPEN_RUNS = 64;
+
+	private SAMFileHeader header;
+	private int maxRecordsInRam;
+	private File tmpDir;
+
+	private Map<String, Pending> pending = new HashMap<String, Pending>();
+	private PriorityQueue<Pending> byLastMate = new PriorityQueue<Pending>(11, new Comparator<Pending>() {
+		@Override
+		public int compare(Pending p1, Pending p2) {
+			return p1.lastMateStart < p2.lastMateStart ? -1 : (p1.lastMateStart == p2.lastMateStart ? 0 : 1);
+		}
+	});
+	private PriorityQueue<SpilledRun> runs = new PriorityQueue<SpilledRun>();
+	private int numRecords = 0;
+	private long numSpilled = 0;
+	// Records waiting in memory above which the next spill is tried
+	private int spillAt;
+
+	/**
+	 * @param header Header of the records
+	 * @param maxRecordsInRam Number of waiting records above which pairs are spilled to disk
+	 * @param tmpDir Directory for spilled runs
+	 */
+	PendingMateBuffer(SAMFileHeader header, int maxRecordsInRam, File tmpDir) {
+		this.header = header;
+		this.maxRecordsInRam = maxRecordsInRam;
+		this.tmpDir = tmpDir;
+		this.spillAt = maxRecordsInRam;
+	}
+
+	/**
+	 * @param name Read name
+	 * @return The waiting pair with this name or null
+	 */
+	AlignmentPair get(String name) {
+		Pending p = pending.get(name);
+		return p == null ? null : p.pair;
+	}
+
+	/**
+	 * Add or update a waiting pair after a record was added to it
+	 * @param name Read name
+	 * @param pair The pair
+	 */
+	void put(String name, AlignmentPair pair) {
+		Pending old = pending.get(name);
+		Pending p = new Pending(name, pair);
+		if(old != null) {
+			p.lastMateStart = old.lastMateStart;
+			p.unique = old.unique;
+			numRecords -= old.numRecords;
+		}
+		p.setMates(pair);
+		numRecords += p.numRecords;
+		pending.put(name, p);
+		// The entry replaced in the map stays in the queue and is skipped when polled
+		byLastMate.add(p);
+	}
+
+	/**
+	 * @param name Read name of a pair that no longer waits
+	 */
+	void remove(String name) {
+		Pending p = pending.remove(name);
+		if(p != null) {
+			numRecords -= p.numRecords;
+		}
+	}
+
+	/**
+	 * Move the scan to a position
+	 * Spilled pairs whose mates start at or before the position are read back, and uniquely aligned pairs whose mates start before the position are evicted
+	 * @param position Alignment start of the next record
+	 * @return Evicted pairs by read name
+	 */
+	Map<String, AlignmentPair> advance(int position) {
+		restore(position);
+		Map<String, AlignmentPair> rtrn = null;
+		while(!byLastMate.isEmpty() && byLastMate.peek().lastMateStart < position) {
+			Pending p = byLastMate.poll();
+			if(pending.get(p.name) != p || !p.unique) continue;
+			if(rtrn == null) rtrn = new TreeMap<String, AlignmentPair>();
+			rtrn.put(p.name, p.pair);
+			remove(p.name);
+		}
+		if(numRecords > spillAt) {
+			spill(position);
+		}
+		return rtrn == null ? Collections.<String, AlignmentPair>emptyMap() : rtrn;
+	}
+
+	/**
+	 * Remove all waiting pairs, including those spilled to disk
+	 * @return All waiting pairs by read name
+	 */
+	Map<String, AlignmentPair> drain() {
+		restore(Integer.MAX_VALUE);
+		Map<String, AlignmentPair> rtrn = new TreeMap<String, AlignmentPair>();
+		for(Pending p : pending.values()) {
+			rtrn.put(p.name, p.pair);
+		}
+		pending.clear();
+		byLastMate.clear();
+		numRecords = 0;
+		return rtrn;
+	}
+
+	/**
+	 * @return Number of records waiting in memory
+	 */
+	int size() {
+		return numRecords;
+	}
+
+	/**
+	 * @return Number of pairs spilled to disk so far
+	 */
+	long getNumSpilled() {
+		return numSpilled;
+	}
+
+	/**
+	 * Delete all spilled runs
+	 */
+	void close() {
+		for(SpilledRun run : runs) {
+			run.close();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * Spill the unique pairs whose mates are furthest ahead until half the records allowed in memory remain
+	 * If not enough pairs can leave memory, the next spill waits until as many records again have been added
+	 */
+	private void spill(int position) {
+		List<Pending> candidates = new ArrayList<Pending>();
+		for(Pending p : pending.values()) {
+			// Mates of pairs aligned to several places may arrive under other names' keys, so only unique pairs leave memory
+			if(p.unique && p.firstMateStart > position) {
+				candidates.add(p);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Pending>() {
+			@Override
+			public int compare(Pending p1, Pending p2) {
+				return p1.firstMateStart < p2.firstMateStart ? -1 : (p1.firstMateStart == p2.firstMateStart ? 0 : 1);
+			}
+		});
+		int lowWater = maxRecordsInRam / 2;
+		int from = candidates.size();
+		int remaining = numRecords;
+		while(from > 0 && remaining > lowWater) {
+			from--;
+			remaining -= candidates.get(from).numRecords;
+		}
+		List<Pending> toSpill = candidates.subList(from, candidates.size());
+		if(!toSpill.isEmpty()) {
+			try {
+				File file = File.createTempFile("pendingMates", ".run", tmpDir);
+				file.deleteOnExit();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+				BAMRecordCodec codec = new BAMRecordCodec(header);
+				codec.setOutputStream(out, file.getAbsolutePath());
+				for(Pending p : toSpill) {
+					writePair(out, codec, p.firstMateStart, p.pair);
+					remove(p.name);
+				}
+				out.close();
+				runs.add(new SpilledRun(file, header));
+			} catch(IOException e) {
+				throw new RuntimeIOException("Could not spill pending mates to " + tmpDir, e);
+			}
+			numSpilled += toSpill.size();
+			logger.debug("Spilled " + toSpill.size() + " pairs waiting for their mates");
+			if(runs.size() > MAX_OPEN_RUNS) {
+				mergeRuns();
+			}
+		}
+		spillAt = Math.max(maxRecordsInRam, numRecords + lowWater);
+	}
+
+	/**
+	 * Merge all open runs into a single run
+	 */
+	private void mergeRuns() {
+		int merged = runs.size();
+		try {
+			File file = File.createTempFile("pendingMates", ".run", tmpDir);
+			file.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			BAMRecordCodec codec = new BAMRecordCodec(header);
+			codec.setOutputStream(out, file.getAbsolutePath());
+			while(!runs.isEmpty()) {
+				SpilledRun run = runs.poll();
+				int mateStart = run.nextMateStart;
+				writePair(out, codec, mateStart, run.readPair());
+				if(run.advance()) {
+					runs.add(run);
+				}
+			}
+			out.close();
+			runs.add(new SpilledRun(file, header));
+		} catch(IOException e) {
+			throw new RuntimeIOException("Could not merge pending mates in " + tmpDir, e);
+		}
+		logger.debug("Merged " + merged + " runs of pairs waiting for their mates");
+	}
+
+	private static void writePair(DataOutputStream out, BAMRecordCodec codec, int mateStart, AlignmentPair pair) throws IOException {
+		out.writeInt(mateStart);
+		writeRecords(out, codec, pair.hasValue1() ? pair.getValue1() : null);
+		writeRecords(out, codec, pair.hasValue2() ? pair.getValue2() : null);
+	}
+
+	private static void writeRecords(DataOutputStream out, BAMRecordCodec codec, Collection<SAMRecord> records) throws IOException {
+		if(records == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(records.size());
+		for(SAMRecord record : records) {
+			codec.encode(record);
+		}
+	}
+
+	private void restore(int position) {
+		while(!runs.isEmpty() && runs.peek().nextMateStart <= position) {
+			SpilledRun run = runs.poll();
+			AlignmentPair pair = run.readPair();
+			put(run.readName, pair);
+			if(run.advance()) {
+				runs.add(run);
+			}
+		}
+	}
+
+	/**
+	 * A waiting pair and the positions of its missing mates
+	 */
+	private static class Pending {
+
+		String name;
+		AlignmentPair pair;
+		int numRecords = 0;
+		int firstMateStart = Integer.MAX_VALUE;
+		int lastMateStart = Integer.MIN_VALUE;
+		boolean unique = true;
+
+		Pending(String name, AlignmentPair pair) {
+			this.name = name;
+			this.pair = pair;
+		}
+
+		void setMates(AlignmentPair pair) {
+			numRecords = 0;
+			firstMateStart = Integer.MAX_VALUE;
+			if(pair.hasValue1()) addMates(pair.getValue1());
+			if(pair.hasValue2()) addMates(pair.getValue2());
+		}
+
+		private void addMates(Collection<SAMRecord> records) {
+			for(SAMRecord record : records) {
+				numRecords++;
+				int mateStart = record.getMateAlignmentStart();
+				firstMateStart = Math.min(firstMateStart, mateStart);
+				lastMateStart = Math.max(lastMateStart, mateStart);
+				Object nh = record.getAttribute("NH");
+				if(nh != null && Integer.parseInt(nh.toString()) > 1) {
+					unique = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A sorted run of spilled pairs read back one pair at a time
+	 */
+	private static class SpilledRun implements Comparable<SpilledRun> {
+
+		File file;
+		DataInputStream in;
+		BAMRecordCodec codec;
+		int nextMateStart;
+		String readName;
+
+		SpilledRun(File file, SAMFileHeader header) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.codec = new BAMRecordCodec(header);
+			this.codec.setInputStream(in, file.getAbsolutePath());
+			if(!advance()) {
+				throw new IllegalStateException("Empty run " + file);
+			}
+		}
+
+		/**
+		 * Read the key of the next pair
+		 * @return False if the run is exhausted, in which case it is closed
+		 */
+		boolean advance() {
+			try {
+				nextMateStart = in.readInt();
+				return true;
+			} catch(EOFException e) {
+				close();
+				return false;
+			} catch(IOException e) {
+				throw new RuntimeIOException("Could not read spilled mates from " + file, e);
+			}
+		}
+
+		/**
+		 * Read the records of the next pair, setting readName
+		 */
+		AlignmentPair readPair() {
+			AlignmentPair rtrn = new AlignmentPair();
+			try {
+				for(int side = 0; side < 2; side++) {
+					int n = in.readInt();
+					for(int i = 0; i < n; i++) {
+						SAMRecord record = codec.decode();
+						rtrn.add(record);
+						readName = record.getReadName();
+					}
+				}
+			} catch(IOException e) {
+				throw new RuntimeIOException("Could not read spilled mates from " + file, e);
+			}
+			return rtrn;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch(IOException e) {
+				logger.warn("Could not close " + file);
+			}
+			file.delete();
+		}
+
+		@Override
+		public int compareTo(SpilledRun other) {
+			return nextMateStart < other.nextMateStart ? -1 : (nextMateStart == other.nextMateStart ? 0 : 1);
+		}
+	}
+
+}
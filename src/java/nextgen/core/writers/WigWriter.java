@@ -6,9 +6,11 @@ package nextgen.core.writers;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -57,6 +59,7 @@ public class WigWriter {
 	protected static boolean DEFAULT_USE_FRAGMENTS = true;
 	protected static int DEFAULT_MAX_FRAGMENT_LENGTH = 2000;
 	protected static int DEFAULT_MAX_GENOMIC_SPAN = 300000;
+	protected static int DEFAULT_NUM_THREADS = 4;
 	static Logger logger = Logger.getLogger(WigWriter.class.getName());
 	private PositionWithinAlignment positionWithinAlignment;
 
@@ -409,6 +412,96 @@ public class WigWriter {
 		return getCounts(genomeSpace.getEntireChromosome(chr));
 	}
 	
+	/**
+	 * Get counts across a whole chromosome as one value per position
+	 * @param chr Chromosome name
+	 * @param chrSize Chromosome size
+	 * @return Count at each zero based position, NaN for positions with no count
+	 * @throws IOException
+	 */
+	private float[] getCoverage(String chr, int chrSize) throws IOException {
+		float[] coverage = new float[chrSize];
+		Arrays.fill(coverage, Float.NaN);
+		if(isTranscriptomeSpace) {
+			CountLogger c = new CountLogger(genesByChr.get(chr).size(), 10);
+			for(Gene gene : genesByChr.get(chr)) {
+				addCounts(gene, coverage);
+				c.advance();
+			}
+		} else {
+			logger.info("Getting counts for entire chromosome " + chr);
+			addCounts(genomeSpace.getEntireChromosome(chr), coverage);
+		}
+		return coverage;
+	}
+	
+	/**
+	 * Write the counts of a region into a chromosome array, replacing earlier counts at the same positions
+	 * Whole read counts are scanned straight into the array with the same values as the normalization gives by position
+	 * @param region The region
+	 * @param coverage Counts by position on the chromosome
+	 * @throws IOException
+	 */
+	private void addCounts(Annotation region, float[] coverage) throws IOException {
+		if(readSinglePositionOnly || bothFiles) {
+			for(Entry<Integer, Double> count : getCounts(region).entrySet()) {
+				int pos = count.getKey().intValue();
+				if(pos >= 0 && pos < coverage.length) {
+					coverage[pos] = count.getValue().floatValue();
+				}
+			}
+			return;
+		}
+		WindowScoreIterator<CountScore> iter = data.scan(region, 1, 0, new CountScore.Processor(data));
+		double sum = 0;
+		int numPositions = 0;
+		while(iter.hasNext()) {
+			CountScore score = iter.next();
+			int pos = score.getAnnotation().getStart();
+			double count = score.getCount();
+			sum += count;
+			numPositions++;
+			if(pos >= 0 && pos < coverage.length) {
+				coverage[pos] = (float) count;
+			}
+		}
+		if(!normalize) {
+			return;
+		}
+		// Transcript average normalization divides by the average count over the region and has no counts if the average is zero
+		double average = sum / numPositions;
+		for(Annotation block : region.getBlocks()) {
+			for(int pos = Math.max(0, block.getStart()); pos < Math.min(coverage.length, block.getEnd()); pos++) {
+				coverage[pos] = average == 0 ? Float.NaN : (float) (coverage[pos] / average);
+			}
+		}
+	}
+	
+	/**
+	 * Get the size of each chromosome to write
+	 * @param chrSizeFile Chromosome size file, or null to use the genomic space or the end of the last gene on each chromosome
+	 * @return Chromosome size by name
+	 */
+	private Map<String, Integer> getChromosomeSizes(String chrSizeFile) {
+		GenomicSpace sizes = chrSizeFile != null ? new GenomicSpace(chrSizeFile) : genomeSpace;
+		Map<String, Integer> rtrn = new TreeMap<String, Integer>();
+		for(String chrName : chrNames) {
+			if(sizes != null && sizes.getReferenceNames().contains(chrName)) {
+				rtrn.put(chrName, Integer.valueOf((int) sizes.getLength(chrName)));
+				continue;
+			}
+			if(genesByChr == null || !genesByChr.containsKey(chrName)) {
+				throw new IllegalArgumentException("No size for chromosome " + chrName);
+			}
+			int end = 0;
+			for(Gene gene : genesByChr.get(chrName)) {
+				end = Math.max(end, gene.getEnd());
+			}
+			rtrn.put(chrName, Integer.valueOf(end));
+		}
+		return rtrn;
+	}
+	
 	/**
 	 * Get the one based wig format position for a zero based coordinate
 	 * @param zeroBasedCoordinate The zero based coordinate
@@ -469,6 +562,30 @@ public class WigWriter {
 
 	}
 	
+	/**
+	 * Write all counts to an indexed bigwig file with zoom levels, without writing a wig file
+	 * Counts of each chromosome are kept in one array while the bigwig writer encodes earlier chromosomes in parallel
+	 * @param outFilePrefix Output file prefix for bigwig
+	 * @param chrSizeFile Chromosome size file for the bigwig, or null to use the genomic space or the end of the last gene on each chromosome
+	 * @param numThreads Number of threads encoding chromosomes
+	 * @throws IOException
+	 */
+	public void writeFullBigWig(String outFilePrefix, String chrSizeFile, int numThreads) throws IOException {
+		String bigwigFile = outFilePrefix + ".bw";
+		Map<String, Integer> chrSizes = getChromosomeSizes(chrSizeFile);
+		BigWigWriter w = new BigWigWriter(bigwigFile, chrSizes, numThreads);
+		try {
+			for(String chrName : chrNames) {
+				if(isTranscriptomeSpace && genesByChr.get(chrName).isEmpty()) continue;
+				logger.info("Writing counts for chromosome " + chrName + "...");
+				w.addChromosome(chrName, getCoverage(chrName, chrSizes.get(chrName).intValue()));
+			}
+		} finally {
+			w.close();
+		}
+		logger.info("Done writing bigwig file.");
+	}
+	
 	/**
 	 * Collapse all overlapping genes within a collection into a non-overlapping set (considering strand)
 	 * @param genes Collection of genes you wish to collapse
@@ -558,6 +675,9 @@ public class WigWriter {
 		p.addBooleanArg("-pp", "Proper pairs only", false, false);
 		p.addBooleanArg("-r1", "Read 1 only", false, false);
 		p.addBooleanArg("-r2", "Read 2 only", false, false);
+		p.addBooleanArg("-bw", "Write an indexed bigwig file instead of a wig file", false, false);
+		p.addStringArg("-bs", "Chromosome size file for bigwig (default: chromosome size file for genomic space or end of last gene)", false, null);
+		p.addIntArg("-t", "Number of threads compressing bigwig chromosomes (each holds one chromosome of counts in memory)", false, DEFAULT_NUM_THREADS);
 		
 		p.parse(args);
 		return p;
@@ -622,7 +742,12 @@ public class WigWriter {
 	public static void main(String[] args) throws IOException {
 
 		WigWriter ww = buildFromCommandLine(args);
-		ww.writeFullWig(getOutFileFromCommandArgs(args));
+		CommandLineParser p = getCommandLineParser(args);
+		if(p.getBooleanArg("-bw")) {
+			ww.writeFullBigWig(getOutFileFromCommandArgs(args), p.getStringArg("-bs"), p.getIntArg("-t"));
+		} else {
+			ww.writeFullWig(getOutFileFromCommandArgs(args));
+		}
 		
 	}
 	
@@ -60,12 +60,13 @@ public class CRISPRDesigner {
 		Strand orientation;
 		private Gene gene;
 		public String fastaSeqId;
-		List<SAMRecord> matches;
+		// Genomic locations of all matches, as chr_start(strand)
+		List<String> matches;
 
 		public CRISPRTarget(SequenceRegion targetRegion) {
 			sequence = targetRegion.getSequenceBases();
 			start = targetRegion.getStart();
-			matches = new ArrayList<SAMRecord>();
+			matches = new ArrayList<String>();
 		}
 
 		public String toString() {
@@ -77,14 +78,8 @@ public class CRISPRDesigner {
 				.append("\t").append(gene != null ? gene.getOrientation() : ".")
 				.append("\t").append(matches.size());
 			
-			for(SAMRecord r : matches) {
-				sb.append("\t")
-					.append(r.getReferenceName())
-					.append("_")
-					.append(r.getAlignmentStart())
-					.append("(")
-					.append(r.getReadNegativeStrandFlag() ? "-" : "+")
-					.append(")");
+			for(String m : matches) {
+				sb.append("\t").append(m);
 			}
 			return sb.toString();
 		}
@@ -124,7 +119,19 @@ public class CRISPRDesigner {
 		}
 
 		public void addMatch(SAMRecord aln) {
-			matches.add(aln);
+			addMatch(aln.getReferenceName(), aln.getAlignmentStart(), aln.getReadNegativeStrandFlag());
+		}
+
+		/**
+		 * @param hit Site found in an off target index
+		 */
+		public void addMatch(OffTargetIndex.Hit hit) {
+			// One based like the alignment start of SAM records
+			addMatch(hit.getChr(), hit.getStart() + 1, hit.getStrand().equals(Strand.NEGATIVE));
+		}
+
+		private void addMatch(String chr, int start, boolean negative) {
+			matches.add(chr + "_" + start + "(" + (negative ? "-" : "+") + ")");
 		}
 
 	}
@@ -166,9 +173,13 @@ public class CRISPRDesigner {
 			"\n\t\t-promoterStart <In bases before the TSS> \n\t\t-promoterEnd <In bases past the TSS>" +
 			"\n\t\tIf  you wish to invoke Bowtie to test for other possible matches by adding the following paramters: " +
 			"\n\t\t-bowtieBuild <e.g. full path to the bowtie build> -bowtieExcutable <path to the Bowtie executable > " +
+			"\n\t\tOr search for other matches in process (no external aligner) with: " +
+			"\n\t\t-offTargetIndex <Index file, built from -genome if it does not exist> [-genome <Genome fasta>] [-maxMismatches <Max mismatches, default 3>] " +
 			"\n\tDesignFromFasta. Get putative CRISPR matches to sequence: \n\t\t-in <FASTA Sequences> \n\t\t-num <Number of desired targets>" +
 			"\n\t\tIf  you wish to invoke Bowtie to test for other possible matches by adding the following paramters: " +
 			"\n\t\t-bowtieBuild <e.g. full path to the bowtie build> -bowtieExcutable <path to the Bowtie executable > " +
+			"\n\t\tOr search for other matches in process (no external aligner) with: " +
+			"\n\t\t-offTargetIndex <Index file, built from -genome if it does not exist> [-genome <Genome fasta>] [-maxMismatches <Max mismatches, default 3>] " +
 			"\n";
 
 	/**
@@ -197,7 +208,9 @@ public class CRISPRDesigner {
 				result.put(seq.getId(), targets);
 			}
 
-			if(argMap.isPresent("bowtieBuild")) {
+			if(argMap.isPresent("offTargetIndex")) {
+				checkOffTargets(result, argMap);
+			} else if(argMap.isPresent("bowtieBuild")) {
 				String bowtieBuild = argMap.getMandatory("bowtieBuild");
 				String bowtie     =  argMap.getMandatory("bowtieExecutable");
 				checkOfTargets(result, bowtieBuild, bowtie);
@@ -241,7 +254,9 @@ public class CRISPRDesigner {
 
 			}
 			
-			if(argMap.isPresent("bowtieBuild")) {
+			if(argMap.isPresent("offTargetIndex")) {
+				checkOffTargets(result, argMap);
+			} else if(argMap.isPresent("bowtieBuild")) {
 				String bowtieBuild = argMap.getMandatory("bowtieBuild");
 				String bowtie     =  argMap.getMandatory("bowtieExecutable");
 				checkOfTargets(result, bowtieBuild, bowtie);
@@ -266,6 +281,41 @@ public class CRISPRDesigner {
 		}
 	}
 
+	/**
+	 * Find other matches of the targets with an in process off target index
+	 * @param result Targets by sequence ID
+	 * @param argMap Arguments with the index file and optionally the genome to build it from and the max number of mismatches
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected static void checkOffTargets(LinkedHashMap<String, List<CRISPRTarget>> result, ArgumentMap argMap) throws IOException, InterruptedException {
+		File indexFile = new File(argMap.getMandatory("offTargetIndex"));
+		String genome = argMap.get("genome", null);
+		int maxMismatches = argMap.getInteger("maxMismatches", OffTargetIndex.MAX_MISMATCHES);
+		OffTargetIndex index = OffTargetIndex.getOrBuild(indexFile, genome);
+		List<String> guides = new ArrayList<String>();
+		for (List<CRISPRTarget> targets : result.values()) {
+			for (CRISPRTarget t : targets) {
+				guides.add(getGuide(t));
+			}
+		}
+		Map<String, List<OffTargetIndex.Hit>> hits = index.search(guides, maxMismatches, Runtime.getRuntime().availableProcessors());
+		for (List<CRISPRTarget> targets : result.values()) {
+			for (CRISPRTarget t : targets) {
+				for (OffTargetIndex.Hit hit : hits.get(getGuide(t))) {
+					t.addMatch(hit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The 20 bases of a target before its NGG PAM
+	 */
+	private static String getGuide(CRISPRTarget t) {
+		return t.sequence.substring(0, OffTargetIndex.GUIDE_LENGTH).toUpperCase();
+	}
+
 	private static void updateResultsWithAlignment(String alignmentFile, LinkedHashMap<String, List<CRISPRTarget>> result) {
 		File alignmentFileFile = new File(alignmentFile);
 		if(!alignmentFileFile.exists()) {
@@ -37,6 +37,7 @@ public class DoubleNickCRISPRDesigner {
 	
 	private static Logger logger = Logger.getLogger(DoubleNickCRISPRDesigner.class.getName());
 	private Map<String, Sequence> chrsByName;
+	private OffTargetIndex offTargetIndex;
 	
 	
 	private static int MIN_UPSTREAM_DISTANCE = 1;
@@ -52,7 +53,10 @@ public class DoubleNickCRISPRDesigner {
 	private static boolean ENFORCE_MIN_OFF_TARGET_SCORE = true;
 	private static boolean ENFORCE_MAX_GUIDE_EFFICACY_SCORE = true;
 	private static double MAX_GUIDE_EFFICACY_SCORE = 0.6;
+	private static double MIN_OFF_TARGET_SCORE = 50;
+	private static int MAX_OFF_TARGET_MISMATCHES = OffTargetIndex.MAX_MISMATCHES;
 	private static boolean WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS = false;
+	private static String OFF_TARGET_INDEX_EXTENSION = ".ngg.idx";
 	private FileWriter failedPairBedWriter;
 	private FileWriter failedPairTableWriter;
 	
@@ -89,17 +93,28 @@ public class DoubleNickCRISPRDesigner {
 		annotation = BEDFileParser.loadDataByChr(new File(bedFileFullAnnotation));
 	}
 	
+	/**
+	 * Use an off target index for the off target score filter
+	 * @param indexFile Index file, built from the genome if it does not exist
+	 * @param genomeFasta Genome fasta file
+	 * @throws IOException
+	 */
+	private void useOffTargetIndex(String indexFile, String genomeFasta) throws IOException {
+		offTargetIndex = OffTargetIndex.getOrBuild(new File(indexFile), genomeFasta);
+	}
+	
 	/**
 	 * Whether the guide RNA pair passes a set of filters common to upstream and downstream pairs
 	 * @param target Target gene for the guide pair
 	 * @param pair The guide RNA pair
 	 * @param minDistToNearestGene Minimum required distance to nearest gene other than target gene
 	 * @param guideEfficacy Guide efficacy object, preferably with score instantiated with all guide RNAs of interest (faster), or null if not using
+	 * @param guideSpecificity Guide specificity object, preferably with score instantiated with all guide RNAs of interest (faster), or null if not using
 	 * @return Whether the pair passes the filters
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 */
-	private boolean guidePairPassesAllBasicFilters(Gene target, GuideRNAPair pair, GuideSufficientEfficacy guideEfficacy) throws IOException, InterruptedException {
+	private boolean guidePairPassesAllBasicFilters(Gene target, GuideRNAPair pair, GuideSufficientEfficacy guideEfficacy, GuideSufficientSpecificity guideSpecificity) throws IOException, InterruptedException {
 		
 		if(ENFORCE_DOUBLE_NICK_CONFIGURATION) {
 			// Check that the pair are arranged correctly
@@ -129,7 +144,17 @@ public class DoubleNickCRISPRDesigner {
 		}
 		
 		if(ENFORCE_MIN_OFF_TARGET_SCORE) {
-			// TODO off-target score filter
+			if(guideSpecificity == null) {
+				throw new IllegalArgumentException("Must pass valid guide specificity object");
+			}
+			if(!guideSpecificity.evaluate(pair.getLeftGuideRNA())) {
+				logger.debug("LEFT_GUIDE_FAILS_OFF_TARGET_SCORE\t" + pair.toString());
+				return false;
+			}
+			if(!guideSpecificity.evaluate(pair.getRightGuideRNA())) {
+				logger.debug("RIGHT_GUIDE_FAILS_OFF_TARGET_SCORE\t" + pair.toString());
+				return false;
+			}
 		}
 		
 		logger.debug("PAIR_PASSES_BASIC_FILTERS\t" + pair.toString());
@@ -286,6 +311,7 @@ public class DoubleNickCRISPRDesigner {
 		if(ENFORCE_MAX_GUIDE_EFFICACY_SCORE) {
 			ge = new GuideSufficientEfficacy(new GuideEfficacyScore(GuideRNAPair.getIndividualGuideRNAs(allPairs)), MAX_GUIDE_EFFICACY_SCORE);
 		}
+		GuideSufficientSpecificity gs = getGuideSpecificity(allPairs);
 		
 		logger.debug("Before filters there are " + allPairs.size() + " pairs downstream of transcription stop.");
 		Collection<GuideRNAPair> rtrn = new ArrayList<GuideRNAPair>();
@@ -299,7 +325,7 @@ public class DoubleNickCRISPRDesigner {
 		
 		for(GuideRNAPair pair : allPairs) {
 			boolean passes = true;
-			if(!guidePairPassesAllBasicFilters(gene, pair, ge)) {
+			if(!guidePairPassesAllBasicFilters(gene, pair, ge, gs)) {
 				passes = false;
 			}
 			
@@ -348,7 +374,7 @@ public class DoubleNickCRISPRDesigner {
 						continue;
 					}
 					
-					String bedName = pair.toString() + ":" + getFailureMessageBasicFilters(pair, ge);
+					String bedName = pair.toString() + ":" + getFailureMessageBasicFilters(pair, ge, gs);
 					
 					if(ENFORCE_DOWNSTREAM_PROXIMITY_TO_RESTRICTION_ENZYME) {
 						GuideProximityToNearestRegion p = new GuideProximityToNearestRegion(restrictionSites, MAX_DIST_TO_RESTRICTION_SITE, "proximity_to_restriction_enzyme_site");
@@ -401,12 +427,13 @@ public class DoubleNickCRISPRDesigner {
 		if(ENFORCE_MAX_GUIDE_EFFICACY_SCORE) {
 			ge = new GuideSufficientEfficacy(new GuideEfficacyScore(GuideRNAPair.getIndividualGuideRNAs(allPairs)), MAX_GUIDE_EFFICACY_SCORE);
 		}
+		GuideSufficientSpecificity gs = getGuideSpecificity(allPairs);
 
 		
 		Collection<GuideRNAPair> rtrn = new ArrayList<GuideRNAPair>();
 		for(GuideRNAPair pair : allPairs) {
 			boolean passes = true;
-			if(!guidePairPassesAllBasicFilters(gene, pair, ge)) {
+			if(!guidePairPassesAllBasicFilters(gene, pair, ge, gs)) {
 				passes = false;
 			}
 			
@@ -425,7 +452,7 @@ public class DoubleNickCRISPRDesigner {
 					if(!dnc.evaluate(pair)) {
 						continue;
 					}
-					String bedName = pair.toString() + ":" + getFailureMessageBasicFilters(pair, ge);
+					String bedName = pair.toString() + ":" + getFailureMessageBasicFilters(pair, ge, gs);
 					failedPairBedWriter.write(pair.toBED(bedName) + "\n");
 					failedPairTableWriter.write(gene.getName() + "\t" + pair.toString() + "\t" + pair.getOligos() + "\n");
 				}
@@ -439,11 +466,12 @@ public class DoubleNickCRISPRDesigner {
 	 * Get a string describing which basic filters the guide pair fails
 	 * @param pair Guide pair
 	 * @param ge Guide efficacy object or null if not using
+	 * @param gs Guide specificity object or null if not using
 	 * @return String with all failed filters or empty string if passes all basic filters
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 */
-	private static String getFailureMessageBasicFilters(GuideRNAPair pair, GuideSufficientEfficacy ge) throws IOException, InterruptedException {
+	private static String getFailureMessageBasicFilters(GuideRNAPair pair, GuideSufficientEfficacy ge, GuideSufficientSpecificity gs) throws IOException, InterruptedException {
 		
 		String rtrn = "";
 		
@@ -472,7 +500,15 @@ public class DoubleNickCRISPRDesigner {
 		}
 		
 		if(ENFORCE_MIN_OFF_TARGET_SCORE) {
-			// TODO off-target score filter
+			if(gs == null) {
+				throw new IllegalArgumentException("Must pass valid guide specificity object");
+			}
+			if(!gs.evaluate(pair.getLeftGuideRNA())) {
+				rtrn += "left_" + gs.getShortFailureMessage(pair.getLeftGuideRNA()) + ":";
+			}
+			if(!gs.evaluate(pair.getRightGuideRNA())) {
+				rtrn += "right_" + gs.getShortFailureMessage(pair.getRightGuideRNA()) + ":";
+			}
 		}
 
 		return rtrn;
@@ -527,6 +563,21 @@ public class DoubleNickCRISPRDesigner {
 	
 
 	
+	/**
+	 * @param allPairs Guide pairs whose guides are scored up front
+	 * @return Guide specificity object or null if not enforcing the off target score
+	 * @throws InterruptedException
+	 */
+	private GuideSufficientSpecificity getGuideSpecificity(Collection<GuideRNAPair> allPairs) throws InterruptedException {
+		if(!ENFORCE_MIN_OFF_TARGET_SCORE) {
+			return null;
+		}
+		if(offTargetIndex == null) {
+			throw new IllegalStateException("Must provide an off target index to enforce the off target score");
+		}
+		return new GuideSufficientSpecificity(new GuideOffTargetScore(offTargetIndex, GuideRNAPair.getIndividualGuideRNAs(allPairs), MAX_OFF_TARGET_MISMATCHES), MIN_OFF_TARGET_SCORE);
+	}
+	
 	private static void validateMinMaxDist(int minDistance, int maxDistance) {
 		if(minDistance < 0 || maxDistance < 0) {
 			throw new IllegalArgumentException("Min and max distances must be > 0");
@@ -563,6 +614,9 @@ public class DoubleNickCRISPRDesigner {
 		p.addBooleanArg("-ot", "Enforce minimum off target score", false, ENFORCE_MIN_OFF_TARGET_SCORE);
 		p.addBooleanArg("-ge", "Enforce maximum guide efficacy score", false, ENFORCE_MAX_GUIDE_EFFICACY_SCORE);
 		p.addDoubleArg("-mge", "Max guide efficacy score", false, MAX_GUIDE_EFFICACY_SCORE);
+		p.addDoubleArg("-mot", "Min off target score", false, MIN_OFF_TARGET_SCORE);
+		p.addIntArg("-mmot", "Max mismatches of off target sites (at most " + OffTargetIndex.MAX_MISMATCHES + ")", false, MAX_OFF_TARGET_MISMATCHES);
+		p.addStringArg("-oti", "Off target index file, built from the genome if it does not exist (default: genome fasta + " + OFF_TARGET_INDEX_EXTENSION + ")", false, null);
 		p.addStringArg("-se", "File containing list of restriction enzymes for single cut sites for downstream proximity filter", false, null);
 		p.addStringArg("-pe", "File containing list of restriction enzyme pairs for paired cut sites for downstream proximity filter (line format: left_enzyme right_enzyme)", false, null);
 		p.addBooleanArg("-fp", "For regions with no guide RNA pairs passing all filters, write all failed pairs to bed file", false, WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS);
@@ -577,6 +631,7 @@ public class DoubleNickCRISPRDesigner {
 			DoubleNickCRISPRDesigner.logger.setLevel(Level.DEBUG);
 			GuideEfficacyScore.logger.setLevel(Level.DEBUG);
 			GuideOffTargetScore.logger.setLevel(Level.DEBUG);
+			OffTargetIndex.logger.setLevel(Level.DEBUG);
 			GuideRNA.logger.setLevel(Level.DEBUG);
 			GuideRNAPair.logger.setLevel(Level.DEBUG);
 			GuideSufficientIsolation.logger.setLevel(Level.DEBUG);
@@ -597,6 +652,9 @@ public class DoubleNickCRISPRDesigner {
 		MAX_INNER_DIST_CUT_SITE_PAIRS = p.getIntArg("-maxp");
 		MAX_DIST_TO_RESTRICTION_SITE = p.getIntArg("-maxre");
 		MAX_GUIDE_EFFICACY_SCORE = p.getDoubleArg("-mge");
+		MIN_OFF_TARGET_SCORE = p.getDoubleArg("-mot");
+		MAX_OFF_TARGET_MISMATCHES = p.getIntArg("-mmot");
+		String offTargetIndexFile = p.getStringArg("-oti");
 		WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS = p.getBooleanArg("-fp");
 		String outPrefix = p.getStringArg("-o");
 		String listFileSingleEnzymes = p.getStringArg("-se");
@@ -607,6 +665,10 @@ public class DoubleNickCRISPRDesigner {
 		
 		DoubleNickCRISPRDesigner dncd = new DoubleNickCRISPRDesigner(genomeFasta, targetBed, annotBed);
 		
+		if(ENFORCE_MIN_OFF_TARGET_SCORE) {
+			dncd.useOffTargetIndex(offTargetIndexFile == null ? genomeFasta + OFF_TARGET_INDEX_EXTENSION : offTargetIndexFile, genomeFasta);
+		}
+		
 		if(ENFORCE_DOWNSTREAM_PROXIMITY_TO_RESTRICTION_ENZYME) {
 			if(listFileSingleEnzymes == null || listFilePairedEnzymes == null) {
 				throw new IllegalArgumentException("To use restriction enzyme filter must provide -se and -pe");
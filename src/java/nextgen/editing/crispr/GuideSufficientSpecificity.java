@@ -0,0 +1,37 @@
+package nextgen.editing.crispr;
+
+import nextgen.editing.crispr.score.GuideOffTargetScore;
+
+/**
+ * Check whether a guide RNA has a sufficiently high off target score, i.e. few and distant off target sites
+ */
+public class GuideSufficientSpecificity implements GuideRNAPredicate {
+	
+	private GuideOffTargetScore score;
+	private double minScore;
+	
+	/**
+	 * @param guideOffTargetScore Score object
+	 * @param minAllowableScore Min allowable off target score
+	 */
+	public GuideSufficientSpecificity(GuideOffTargetScore guideOffTargetScore, double minAllowableScore) {
+		score = guideOffTargetScore;
+		minScore = minAllowableScore;
+	}
+	
+	@Override
+	public boolean evaluate(GuideRNA g) {
+		return score.getScore(g) >= minScore;
+	}
+
+	@Override
+	public String getPredicateName() {
+		return "guide_specificity";
+	}
+
+	@Override
+	public String getShortFailureMessage(GuideRNA g) {
+		return "guide_off_target_score_" + score.getScore(g);
+	}
+
+}
@@ -0,0 +1,617 @@
+package nextgen.editing.crispr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nextgen.core.annotation.Annotation.Strand;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Memory mapped index of every 20mer followed by an NGG PAM on either strand of a genome, for finding the off target sites of guide RNAs without an external aligner
+ * Each site is stored as its 20mer in 2 bits per base, oriented 5' to 3' on the strand of the PAM, and its location
+ * The 20mer is split into four seeds of five bases, and the sites are bucketed by each seed
+ * By the pigeonhole principle a site within three mismatches of a guide matches it exactly on at least one seed, so a search only verifies the sites in four buckets
+ * The index is built once per genome assembly and written to a file, which later runs map into memory
+ */
+public class OffTargetIndex {
+
+	static Logger logger = Logger.getLogger(OffTargetIndex.class.getName());
+
+	/**
+	 * Length of the guide sequence matched against the genome
+	 */
+	public static final int GUIDE_LENGTH = 20;
+
+	/**
+	 * Largest number of mismatches a search can report
+	 */
+	public static final int MAX_MISMATCHES = 3;
+
+	private static final int MAGIC = 0x4e474731;
+	private static final int SEED_LENGTH = 5;
+	private static final int NUM_SEEDS = GUIDE_LENGTH / SEED_LENGTH;
+	private static final int NUM_SEED_VALUES = 1 << (2 * SEED_LENGTH);
+	// Sites are spilled to temporary files by their first bases while the genome is read
+	private static final int SPILL_BASES = 4;
+	private static final int NUM_SPILL_FILES = 1 << (2 * SPILL_BASES);
+	private static final long CODE_MASK = (1L << (2 * GUIDE_LENGTH)) - 1;
+	// Low bit of the 2 bit code of each base
+	private static final long MISMATCH_MASK = 0x5555555555L;
+	private static final int BATCH_SIZE = 100;
+
+	private List<String> chrNames;
+	private long numSites;
+	private MappedArray codes;
+	private MappedArray locations;
+	private MappedArray[] seedOffsets;
+	// Site numbers by seed, null for the first seed since the sites are sorted by it
+	private MappedArray[] seedSites;
+
+	/**
+	 * Open the index of a genome, building it first if the index file does not exist
+	 * @param indexFile Index file
+	 * @param genomeFasta Genome fasta file, used only to build the index
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static OffTargetIndex getOrBuild(File indexFile, String genomeFasta) throws IOException {
+		if(!indexFile.exists()) {
+			if(genomeFasta == null) {
+				throw new IllegalArgumentException("Off target index " + indexFile + " does not exist and no genome was given to build it from");
+			}
+			build(genomeFasta, indexFile);
+		}
+		return new OffTargetIndex(indexFile);
+	}
+
+	/**
+	 * Map an existing index into memory
+	 * @param indexFile Index file
+	 * @throws IOException
+	 */
+	public OffTargetIndex(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		long headerLength;
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IllegalArgumentException(indexFile + " is not an off target index");
+			}
+			int numChrs = in.readInt();
+			chrNames = new ArrayList<String>(numChrs);
+			for(int i = 0; i < numChrs; i++) {
+				chrNames.add(in.readUTF());
+			}
+			numSites = in.readLong();
+			headerLength = in.readLong();
+		} finally {
+			in.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			Layout layout = new Layout(headerLength, numSites);
+			FileChannel channel = raf.getChannel();
+			codes = new MappedArray(channel, FileChannel.MapMode.READ_ONLY, layout.codes, 8 * numSites);
+			locations = new MappedArray(channel, FileChannel.MapMode.READ_ONLY, layout.locations, 8 * numSites);
+			seedOffsets = new MappedArray[NUM_SEEDS];
+			seedSites = new MappedArray[NUM_SEEDS];
+			for(int s = 0; s < NUM_SEEDS; s++) {
+				seedOffsets[s] = new MappedArray(channel, FileChannel.MapMode.READ_ONLY, layout.seedOffsets[s], 8L * (NUM_SEED_VALUES + 1));
+				if(s > 0) seedSites[s] = new MappedArray(channel, FileChannel.MapMode.READ_ONLY, layout.seedSites[s], 4 * numSites);
+			}
+		} finally {
+			// Mappings stay valid after the file is closed
+			raf.close();
+		}
+		logger.info("Opened off target index " + indexFile + " with " + numSites + " sites on " + chrNames.size() + " sequences");
+	}
+
+	/**
+	 * @return Number of PAM sites in the genome
+	 */
+	public long getNumSites() {
+		return numSites;
+	}
+
+	/**
+	 * Find all sites within a number of mismatches of a guide
+	 * @param guide Guide sequence 5' to 3' without the PAM, only the first 20 bases are used
+	 * @param maxMismatches Max number of mismatches, at most MAX_MISMATCHES
+	 * @return All sites, in no particular order
+	 */
+	public List<Hit> search(String guide, int maxMismatches) {
+		if(maxMismatches < 0 || maxMismatches > MAX_MISMATCHES) {
+			throw new IllegalArgumentException("Max mismatches must be between 0 and " + MAX_MISMATCHES + ": " + maxMismatches);
+		}
+		long query = encode(guide);
+		int[] querySeeds = new int[NUM_SEEDS];
+		for(int s = 0; s < NUM_SEEDS; s++) {
+			querySeeds[s] = seed(query, s);
+		}
+		List<Hit> rtrn = new ArrayList<Hit>();
+		for(int s = 0; s < NUM_SEEDS; s++) {
+			long begin = seedOffsets[s].getLong(querySeeds[s]);
+			long end = seedOffsets[s].getLong(querySeeds[s] + 1);
+			for(long i = begin; i < end; i++) {
+				long site = seedSites[s] == null ? i : seedSites[s].getInt(i);
+				long code = codes.getLong(site);
+				// Sites matching an earlier seed exactly were verified there
+				boolean seen = false;
+				for(int t = 0; t < s; t++) {
+					if(seed(code, t) == querySeeds[t]) {
+						seen = true;
+						break;
+					}
+				}
+				if(seen) continue;
+				long mismatches = mismatches(code, query);
+				if(Long.bitCount(mismatches) <= maxMismatches) {
+					rtrn.add(new Hit(locations.getLong(site), mismatches));
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Search many guides on several threads
+	 * @param guides Guide sequences
+	 * @param maxMismatches Max number of mismatches, at most MAX_MISMATCHES
+	 * @param numThreads Number of threads
+	 * @return The sites of each distinct guide
+	 * @throws InterruptedException
+	 */
+	public Map<String, List<Hit>> search(Collection<String> guides, final int maxMismatches, int numThreads) throws InterruptedException {
+		final List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(guides));
+		final List<List<Hit>> hits = new ArrayList<List<Hit>>(Collections.<List<Hit>>nCopies(distinct.size(), null));
+		if(numThreads <= 1 || distinct.size() <= BATCH_SIZE) {
+			for(int i = 0; i < distinct.size(); i++) {
+				hits.set(i, search(distinct.get(i), maxMismatches));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			List<Future<Object>> batches = new ArrayList<Future<Object>>();
+			for(int b = 0; b < distinct.size(); b += BATCH_SIZE) {
+				final int begin = b;
+				final int end = Math.min(distinct.size(), b + BATCH_SIZE);
+				batches.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for(int i = begin; i < end; i++) {
+							// Each thread sets its own elements of the list, which is never resized
+							hits.set(i, search(distinct.get(i), maxMismatches));
+						}
+						return null;
+					}
+				}));
+			}
+			executor.shutdown();
+			try {
+				for(Future<Object> batch : batches) {
+					batch.get();
+				}
+			} catch(ExecutionException e) {
+				executor.shutdownNow();
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		Map<String, List<Hit>> rtrn = new HashMap<String, List<Hit>>();
+		for(int i = 0; i < distinct.size(); i++) {
+			rtrn.put(distinct.get(i), hits.get(i));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * A PAM site within a few mismatches of a guide
+	 */
+	public class Hit {
+
+		private long location;
+		private long mismatches;
+
+		Hit(long location, long mismatches) {
+			this.location = location;
+			this.mismatches = mismatches;
+		}
+
+		public String getChr() {
+			return chrNames.get((int) (location >>> 32));
+		}
+
+		/**
+		 * @return Start of the 20mer on the plus strand, zero based
+		 */
+		public int getStart() {
+			return (int) (location & Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @return Position after the last position of the 20mer
+		 */
+		public int getEnd() {
+			return getStart() + GUIDE_LENGTH;
+		}
+
+		/**
+		 * @return Strand of the PAM
+		 */
+		public Strand getStrand() {
+			return (location & (1L << 31)) != 0 ? Strand.NEGATIVE : Strand.POSITIVE;
+		}
+
+		public int getNumMismatches() {
+			return Long.bitCount(mismatches);
+		}
+
+		/**
+		 * @return Positions of the mismatches along the guide, zero based from the 5' end
+		 */
+		public int[] getMismatchPositions() {
+			int[] rtrn = new int[getNumMismatches()];
+			int n = 0;
+			for(int i = 0; i < GUIDE_LENGTH; i++) {
+				if((mismatches & (1L << (2 * (GUIDE_LENGTH - 1 - i)))) != 0) {
+					rtrn[n++] = i;
+				}
+			}
+			return rtrn;
+		}
+
+		@Override
+		public String toString() {
+			return getChr() + ":" + getStart() + "-" + getEnd() + ":" + getStrand().toString() + ":" + getNumMismatches();
+		}
+	}
+
+	/**
+	 * Find all 20mers followed by an NGG PAM on either strand of a genome and write the index
+	 * Sites are spilled to temporary files while the genome is read, so memory use is bounded by the largest spill file rather than the genome
+	 * @param genomeFasta Genome fasta file
+	 * @param indexFile Index file to write
+	 * @throws IOException
+	 */
+	public static void build(String genomeFasta, File indexFile) throws IOException {
+		logger.info("Building off target index " + indexFile + " from " + genomeFasta + "...");
+		File tmpDir = indexFile.getAbsoluteFile().getParentFile();
+		File[] spillFiles = new File[NUM_SPILL_FILES];
+		DataOutputStream[] spills = new DataOutputStream[NUM_SPILL_FILES];
+		long[] spillCounts = new long[NUM_SPILL_FILES];
+		List<String> chrNames = new ArrayList<String>();
+		try {
+			for(int i = 0; i < NUM_SPILL_FILES; i++) {
+				spillFiles[i] = File.createTempFile("offTargetSites", ".tmp", tmpDir);
+				spillFiles[i].deleteOnExit();
+				spills[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFiles[i])));
+			}
+			findSites(genomeFasta, chrNames, spills, spillCounts);
+			for(DataOutputStream spill : spills) {
+				spill.close();
+			}
+			long numSites = 0;
+			for(long count : spillCounts) {
+				numSites += count;
+			}
+			if(numSites > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many PAM sites to index: " + numSites);
+			}
+			writeIndex(indexFile, chrNames, numSites, spillFiles, spillCounts);
+			logger.info("Wrote " + numSites + " sites on " + chrNames.size() + " sequences to " + indexFile);
+		} finally {
+			for(int i = 0; i < NUM_SPILL_FILES; i++) {
+				if(spills[i] != null) spills[i].close();
+				if(spillFiles[i] != null) spillFiles[i].delete();
+			}
+		}
+	}
+
+	private static void findSites(String genomeFasta, List<String> chrNames, DataOutputStream[] spills, long[] spillCounts) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(genomeFasta));
+		try {
+			String line;
+			int chr = -1;
+			int pos = 0;
+			long window = 0;
+			int numValid = 0;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(">")) {
+					chrNames.add(line.substring(1));
+					chr++;
+					pos = 0;
+					window = 0;
+					numValid = 0;
+					continue;
+				}
+				if(chr < 0) continue;
+				for(int i = 0; i < line.length(); i++) {
+					int base = encode(line.charAt(i));
+					if(base < 0) {
+						numValid = 0;
+					} else {
+						// Last 23 bases, the most recent in the low bits
+						window = ((window << 2) | base) & ((1L << (2 * (GUIDE_LENGTH + 3))) - 1);
+						numValid++;
+						if(numValid >= GUIDE_LENGTH + 3) {
+							int start = pos - GUIDE_LENGTH - 2;
+							// 20mer followed by NGG
+							if((window & 0xF) == 0xA) {
+								long code = (window >>> 6) & CODE_MASK;
+								writeSite(spills, spillCounts, code, location(chr, start, false));
+							}
+							// CCN followed by the reverse complement of a 20mer
+							if((window >>> (2 * (GUIDE_LENGTH + 1))) == 0x5) {
+								long code = reverseComplement(window & CODE_MASK);
+								writeSite(spills, spillCounts, code, location(chr, start + 3, true));
+							}
+						}
+					}
+					pos++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void writeSite(DataOutputStream[] spills, long[] spillCounts, long code, long location) throws IOException {
+		int spill = (int) (code >>> (2 * (GUIDE_LENGTH - SPILL_BASES)));
+		spills[spill].writeLong(code);
+		spills[spill].writeLong(location);
+		spillCounts[spill]++;
+	}
+
+	private static void writeIndex(File indexFile, List<String> chrNames, long numSites, File[] spillFiles, long[] spillCounts) throws IOException {
+		DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		header.writeInt(MAGIC);
+		header.writeInt(chrNames.size());
+		for(String name : chrNames) {
+			header.writeUTF(name);
+		}
+		header.writeLong(numSites);
+		long headerLength = header.size() + 8;
+		header.writeLong(headerLength);
+		header.close();
+
+		Layout layout = new Layout(headerLength, numSites);
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		try {
+			raf.setLength(layout.length);
+			FileChannel channel = raf.getChannel();
+			MappedArray codes = new MappedArray(channel, FileChannel.MapMode.READ_WRITE, layout.codes, 8 * numSites);
+			MappedArray locations = new MappedArray(channel, FileChannel.MapMode.READ_WRITE, layout.locations, 8 * numSites);
+			long[][] seedCounts = new long[NUM_SEEDS][NUM_SEED_VALUES];
+
+			// Sorted sites, read back one spill file at a time
+			long site = 0;
+			for(int f = 0; f < spillFiles.length; f++) {
+				int n = (int) spillCounts[f];
+				long[] spillCodes = new long[n];
+				long[] spillLocations = new long[n];
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFiles[f])));
+				try {
+					for(int i = 0; i < n; i++) {
+						spillCodes[i] = in.readLong();
+						spillLocations[i] = in.readLong();
+					}
+				} catch(EOFException e) {
+					throw new IOException("Truncated temporary file " + spillFiles[f], e);
+				} finally {
+					in.close();
+				}
+				Integer[] order = new Integer[n];
+				for(int i = 0; i < n; i++) order[i] = Integer.valueOf(i);
+				sortByCode(order, spillCodes, spillLocations);
+				for(Integer i : order) {
+					long code = spillCodes[i.intValue()];
+					codes.putLong(site, code);
+					locations.putLong(site, spillLocations[i.intValue()]);
+					for(int s = 0; s < NUM_SEEDS; s++) {
+						seedCounts[s][seed(code, s)]++;
+					}
+					site++;
+				}
+				spillFiles[f].delete();
+			}
+
+			// Bucket offsets of each seed
+			MappedArray[] offsets = new MappedArray[NUM_SEEDS];
+			long[][] next = new long[NUM_SEEDS][NUM_SEED_VALUES];
+			for(int s = 0; s < NUM_SEEDS; s++) {
+				offsets[s] = new MappedArray(channel, FileChannel.MapMode.READ_WRITE, layout.seedOffsets[s], 8L * (NUM_SEED_VALUES + 1));
+				long offset = 0;
+				for(int v = 0; v < NUM_SEED_VALUES; v++) {
+					offsets[s].putLong(v, offset);
+					next[s][v] = offset;
+					offset += seedCounts[s][v];
+				}
+				offsets[s].putLong(NUM_SEED_VALUES, offset);
+			}
+
+			// Site numbers bucketed by the other seeds
+			for(int s = 1; s < NUM_SEEDS; s++) {
+				MappedArray sites = new MappedArray(channel, FileChannel.MapMode.READ_WRITE, layout.seedSites[s], 4 * numSites);
+				for(long i = 0; i < numSites; i++) {
+					int v = seed(codes.getLong(i), s);
+					sites.putInt(next[s][v]++, (int) i);
+				}
+				sites.force();
+			}
+			codes.force();
+			locations.force();
+			for(MappedArray offset : offsets) offset.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void sortByCode(Integer[] order, final long[] codes, final long[] locations) {
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				long c1 = codes[i1.intValue()];
+				long c2 = codes[i2.intValue()];
+				if(c1 != c2) return c1 < c2 ? -1 : 1;
+				long l1 = locations[i1.intValue()];
+				long l2 = locations[i2.intValue()];
+				return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Byte offsets of the sections of the index file
+	 */
+	private static class Layout {
+
+		long codes;
+		long locations;
+		long[] seedOffsets = new long[NUM_SEEDS];
+		long[] seedSites = new long[NUM_SEEDS];
+		long length;
+
+		Layout(long headerLength, long numSites) {
+			// Sections start on 8 byte boundaries
+			codes = (headerLength + 7) & ~7L;
+			locations = codes + 8 * numSites;
+			long offset = locations + 8 * numSites;
+			for(int s = 0; s < NUM_SEEDS; s++) {
+				seedOffsets[s] = offset;
+				offset += 8L * (NUM_SEED_VALUES + 1);
+				if(s > 0) {
+					seedSites[s] = offset;
+					offset = (offset + 4 * numSites + 7) & ~7L;
+				}
+			}
+			length = offset;
+		}
+	}
+
+	/**
+	 * Section of a file mapped in chunks, since a single mapping is limited to 2GB
+	 */
+	private static class MappedArray {
+
+		private static final int CHUNK_BITS = 30;
+		private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+		private MappedByteBuffer[] chunks;
+
+		MappedArray(FileChannel channel, FileChannel.MapMode mode, long position, long length) throws IOException {
+			int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+			chunks = new MappedByteBuffer[Math.max(1, numChunks)];
+			for(int i = 0; i < chunks.length; i++) {
+				long chunkStart = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(mode, position + chunkStart, Math.min(CHUNK_MASK + 1, length - chunkStart));
+			}
+		}
+
+		long getLong(long index) {
+			long offset = index << 3;
+			return chunks[(int) (offset >>> CHUNK_BITS)].getLong((int) (offset & CHUNK_MASK));
+		}
+
+		void putLong(long index, long value) {
+			long offset = index << 3;
+			chunks[(int) (offset >>> CHUNK_BITS)].putLong((int) (offset & CHUNK_MASK), value);
+		}
+
+		int getInt(long index) {
+			long offset = index << 2;
+			return chunks[(int) (offset >>> CHUNK_BITS)].getInt((int) (offset & CHUNK_MASK));
+		}
+
+		void putInt(long index, int value) {
+			long offset = index << 2;
+			chunks[(int) (offset >>> CHUNK_BITS)].putInt((int) (offset & CHUNK_MASK), value);
+		}
+
+		void force() {
+			for(MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+	}
+
+	private static long location(int chr, int start, boolean negative) {
+		return ((long) chr << 32) | (negative ? 1L << 31 : 0) | start;
+	}
+
+	private static int seed(long code, int seed) {
+		return (int) ((code >>> (2 * SEED_LENGTH * (NUM_SEEDS - 1 - seed))) & (NUM_SEED_VALUES - 1));
+	}
+
+	/**
+	 * @return Bit 2i is set if base i from the 3' end differs
+	 */
+	private static long mismatches(long code1, long code2) {
+		long diff = code1 ^ code2;
+		return (diff | (diff >>> 1)) & MISMATCH_MASK;
+	}
+
+	private static long reverseComplement(long code) {
+		long rtrn = 0;
+		for(int i = 0; i < GUIDE_LENGTH; i++) {
+			rtrn = (rtrn << 2) | (3 - (code & 3));
+			code >>>= 2;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return 2 bit code of a base, or -1 if not A, C, G or T
+	 */
+	private static int encode(char base) {
+		switch(base) {
+			case 'A': case 'a': return 0;
+			case 'C': case 'c': return 1;
+			case 'G': case 'g': return 2;
+			case 'T': case 't': return 3;
+			default: return -1;
+		}
+	}
+
+	private static long encode(String guide) {
+		if(guide.length() < GUIDE_LENGTH) {
+			throw new IllegalArgumentException("Guide must have at least " + GUIDE_LENGTH + " bases: " + guide);
+		}
+		long rtrn = 0;
+		for(int i = 0; i < GUIDE_LENGTH; i++) {
+			int base = encode(guide.charAt(i));
+			if(base < 0) {
+				throw new IllegalArgumentException("Can't process char " + guide.charAt(i) + " in guide " + guide);
+			}
+			rtrn = (rtrn << 2) | base;
+		}
+		return rtrn;
+	}
+
+}
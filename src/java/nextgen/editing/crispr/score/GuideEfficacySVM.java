@@ -0,0 +1,602 @@
+package nextgen.editing.crispr.score;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import broad.core.parser.StringParser;
+
+/**
+ * Support vector machine predicting guide RNA efficacy from the bases of the guide
+ * Reproduces the model of the R script provided by Tim Wang: e1071 svm with its default parameters (C-classification, radial kernel with gamma 1 / number of features, cost 1, scaled features) and Platt probabilities
+ * Training follows libsvm: sequential minimal optimization with second order working set selection, then a sigmoid fitted to decision values from 5-fold cross validation
+ * The folds are drawn from a fixed seed, so probabilities are reproducible but can differ slightly from those of an R session
+ */
+public class GuideEfficacySVM {
+
+	static Logger logger = Logger.getLogger(GuideEfficacySVM.class.getName());
+
+	/**
+	 * Training guides with log2 fold change below this value are in the depleted class
+	 */
+	public static final double DEPLETION_THRESHOLD = -1.6;
+
+	/**
+	 * Number of guide positions used as features
+	 */
+	public static final int NUM_POSITIONS = 20;
+
+	private static final String BASES = "ACTG";
+	private static final int NUM_FEATURES = 4 * NUM_POSITIONS;
+	// Column of the first feature in the training set
+	private static final int FIRST_FEATURE_COLUMN = 6;
+	private static final int L2FC_COLUMN = 4;
+
+	private static final double COST = 1;
+	private static final double EPSILON = 0.001;
+	private static final double TAU = 1e-12;
+	private static final int NUM_FOLDS = 5;
+	private static final long FOLD_SEED = 1;
+	private static final double MIN_PROBABILITY = 1e-7;
+	private static final int BATCH_SIZE = 1000;
+
+	private static GuideEfficacySVM defaultModel;
+
+	private double gamma;
+	private double[] center;
+	private double[] scale;
+	// Support vectors, scaled, and their coefficients alpha * y
+	private double[][] supportVectors;
+	private double[] coefficients;
+	private double rho;
+	private double probA;
+	private double probB;
+	// Class of the first training example, whose probability is 1 - score
+	private int firstLabel;
+
+	/**
+	 * Train the model on the training set embedded in GuideEfficacyScore
+	 * Training takes a few seconds, so the model is trained once and shared
+	 * @return The model
+	 * @throws IOException
+	 */
+	public static synchronized GuideEfficacySVM getDefaultModel() throws IOException {
+		if(defaultModel == null) {
+			StringWriter w = new StringWriter();
+			GuideEfficacyScore.writeTrainingSet(w);
+			List<double[]> features = new ArrayList<double[]>();
+			List<Integer> labels = new ArrayList<Integer>();
+			StringParser s = new StringParser();
+			String[] lines = w.toString().split("\n");
+			// First line is the header
+			for(int i = 1; i < lines.length; i++) {
+				s.parse(lines[i]);
+				double[] x = new double[NUM_FEATURES];
+				for(int j = 0; j < NUM_FEATURES; j++) {
+					x[j] = s.asDouble(FIRST_FEATURE_COLUMN + j);
+				}
+				features.add(x);
+				labels.add(Integer.valueOf(s.asDouble(L2FC_COLUMN) < DEPLETION_THRESHOLD ? -1 : 1));
+			}
+			long start = System.currentTimeMillis();
+			defaultModel = new GuideEfficacySVM(features, labels);
+			logger.info("Trained guide efficacy model on " + features.size() + " guides in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		return defaultModel;
+	}
+
+	/**
+	 * @param features Feature vector of each training example
+	 * @param labels Class of each training example, -1 or 1
+	 */
+	public GuideEfficacySVM(List<double[]> features, List<Integer> labels) {
+		int l = features.size();
+		int n = features.get(0).length;
+		gamma = 1.0 / n;
+		firstLabel = labels.get(0).intValue();
+
+		// Scale to zero mean and unit variance, unless a feature is constant in which case R does not scale at all
+		center = new double[n];
+		scale = new double[n];
+		boolean constant = false;
+		for(int j = 0; j < n; j++) {
+			double sum = 0;
+			for(double[] x : features) sum += x[j];
+			center[j] = sum / l;
+			double ss = 0;
+			for(double[] x : features) ss += (x[j] - center[j]) * (x[j] - center[j]);
+			scale[j] = Math.sqrt(ss / (l - 1));
+			if(scale[j] == 0) constant = true;
+		}
+		if(constant) {
+			logger.warn("Constant feature in training set, features are not scaled");
+			for(int j = 0; j < n; j++) {
+				center[j] = 0;
+				scale[j] = 1;
+			}
+		}
+		double[][] x = new double[l][];
+		for(int i = 0; i < l; i++) {
+			x[i] = scale(features.get(i));
+		}
+
+		// Class of the first example is the positive class of the solver
+		byte[] y = new byte[l];
+		for(int i = 0; i < l; i++) {
+			y[i] = (byte) (labels.get(i).intValue() == firstLabel ? 1 : -1);
+		}
+		float[][] kernel = new float[l][l];
+		for(int i = 0; i < l; i++) {
+			for(int j = 0; j <= i; j++) {
+				kernel[i][j] = kernel[j][i] = (float) kernel(x[i], x[j]);
+			}
+		}
+
+		// Sigmoid fitted on cross validated decision values
+		double[] cvDecision = crossValidate(kernel, y);
+		double[] sigmoid = fitSigmoid(cvDecision, y);
+		probA = sigmoid[0];
+		probB = sigmoid[1];
+
+		int[] all = new int[l];
+		for(int i = 0; i < l; i++) all[i] = i;
+		Solution solution = solve(kernel, y, all);
+		rho = solution.rho;
+		int numSV = 0;
+		for(int i = 0; i < l; i++) {
+			if(solution.alpha[i] > 0) numSV++;
+		}
+		supportVectors = new double[numSV][];
+		coefficients = new double[numSV];
+		int k = 0;
+		for(int i = 0; i < l; i++) {
+			if(solution.alpha[i] > 0) {
+				supportVectors[k] = x[i];
+				coefficients[k] = solution.alpha[i] * y[i];
+				k++;
+			}
+		}
+		logger.debug("Guide efficacy model has " + numSV + " support vectors, rho=" + rho + " probA=" + probA + " probB=" + probB);
+	}
+
+	/**
+	 * @param sequence Guide sequence, at least NUM_POSITIONS bases
+	 * @return Feature vector: one indicator per position and base, bases in the order A, C, T, G
+	 */
+	public static double[] getFeatures(String sequence) {
+		if(sequence.length() < NUM_POSITIONS) {
+			throw new IllegalArgumentException("Guide sequence must have at least " + NUM_POSITIONS + " bases: " + sequence);
+		}
+		double[] rtrn = new double[NUM_FEATURES];
+		for(int i = 0; i < NUM_POSITIONS; i++) {
+			char b = sequence.charAt(i);
+			int base = BASES.indexOf(Character.toUpperCase(b));
+			if(base < 0) {
+				throw new IllegalArgumentException("Can't process char " + b);
+			}
+			rtrn[4 * i + base] = 1;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param sequence Guide sequence
+	 * @return Probability that the guide is not depleted, lower is more efficient
+	 */
+	public double score(String sequence) {
+		double[] x = scale(getFeatures(sequence));
+		double decision = -rho;
+		for(int i = 0; i < supportVectors.length; i++) {
+			decision += coefficients[i] * kernel(supportVectors[i], x);
+		}
+		double p = Math.min(Math.max(sigmoid(decision, probA, probB), MIN_PROBABILITY), 1 - MIN_PROBABILITY);
+		// p is the probability of the class of the first training example, the score is the probability of the other class
+		return 1 - p;
+	}
+
+	/**
+	 * Score guides in batches on several threads
+	 * @param sequences Guide sequences
+	 * @param numThreads Number of threads
+	 * @return Score of each distinct sequence
+	 * @throws InterruptedException
+	 */
+	public Map<String, Double> score(Collection<String> sequences, int numThreads) throws InterruptedException {
+		final List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(sequences));
+		final double[] scores = new double[distinct.size()];
+		if(numThreads <= 1 || distinct.size() <= BATCH_SIZE) {
+			for(int i = 0; i < scores.length; i++) {
+				scores[i] = score(distinct.get(i));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			List<Future<Object>> batches = new ArrayList<Future<Object>>();
+			for(int b = 0; b < scores.length; b += BATCH_SIZE) {
+				final int begin = b;
+				final int end = Math.min(scores.length, b + BATCH_SIZE);
+				batches.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for(int i = begin; i < end; i++) {
+							scores[i] = score(distinct.get(i));
+						}
+						return null;
+					}
+				}));
+			}
+			executor.shutdown();
+			try {
+				for(Future<Object> batch : batches) {
+					batch.get();
+				}
+			} catch(ExecutionException e) {
+				executor.shutdownNow();
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		Map<String, Double> rtrn = new HashMap<String, Double>();
+		for(int i = 0; i < scores.length; i++) {
+			rtrn.put(distinct.get(i), Double.valueOf(scores[i]));
+		}
+		return rtrn;
+	}
+
+	private double[] scale(double[] features) {
+		double[] rtrn = new double[features.length];
+		for(int j = 0; j < features.length; j++) {
+			rtrn[j] = (features[j] - center[j]) / scale[j];
+		}
+		return rtrn;
+	}
+
+	private double kernel(double[] x1, double[] x2) {
+		double d = 0;
+		for(int j = 0; j < x1.length; j++) {
+			double diff = x1[j] - x2[j];
+			d += diff * diff;
+		}
+		return Math.exp(-gamma * d);
+	}
+
+	/**
+	 * Decision values of each example from models trained without its fold
+	 */
+	private static double[] crossValidate(float[][] kernel, byte[] y) {
+		int l = y.length;
+		int[] perm = new int[l];
+		for(int i = 0; i < l; i++) perm[i] = i;
+		Random random = new Random(FOLD_SEED);
+		for(int i = 0; i < l; i++) {
+			int j = i + random.nextInt(l - i);
+			int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+		double[] rtrn = new double[l];
+		for(int fold = 0; fold < NUM_FOLDS; fold++) {
+			int begin = fold * l / NUM_FOLDS;
+			int end = (fold + 1) * l / NUM_FOLDS;
+			int[] train = new int[l - (end - begin)];
+			int k = 0;
+			int numPositive = 0;
+			for(int i = 0; i < l; i++) {
+				if(i < begin || i >= end) {
+					train[k++] = perm[i];
+					if(y[perm[i]] > 0) numPositive++;
+				}
+			}
+			int numNegative = train.length - numPositive;
+			if(numPositive == 0 || numNegative == 0) {
+				for(int i = begin; i < end; i++) {
+					rtrn[perm[i]] = numPositive > 0 ? 1 : (numNegative > 0 ? -1 : 0);
+				}
+				continue;
+			}
+			Solution solution = solve(kernel, y, train);
+			for(int i = begin; i < end; i++) {
+				double decision = -solution.rho;
+				float[] row = kernel[perm[i]];
+				for(int t = 0; t < train.length; t++) {
+					if(solution.alpha[t] > 0) {
+						decision += solution.alpha[t] * y[train[t]] * row[train[t]];
+					}
+				}
+				rtrn[perm[i]] = decision;
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Dual solution of the C-SVM on a subset of the examples
+	 */
+	private static class Solution {
+		// Indexed like the subset
+		double[] alpha;
+		double rho;
+	}
+
+	/**
+	 * Solve the C-SVM dual on a subset of the examples by sequential minimal optimization
+	 * @param kernel Kernel between all examples
+	 * @param allY Class of all examples, 1 or -1
+	 * @param subset Examples to train on
+	 */
+	private static Solution solve(float[][] kernel, byte[] allY, int[] subset) {
+		int l = subset.length;
+		byte[] y = new byte[l];
+		double[] qd = new double[l];
+		for(int i = 0; i < l; i++) {
+			y[i] = allY[subset[i]];
+			qd[i] = kernel[subset[i]][subset[i]];
+		}
+		double[] alpha = new double[l];
+		// Gradient of the dual objective, all alpha start at zero
+		double[] g = new double[l];
+		for(int i = 0; i < l; i++) g[i] = -1;
+
+		int maxIter = Math.max(10000000, l > Integer.MAX_VALUE / 100 ? Integer.MAX_VALUE : 100 * l);
+		int iter = 0;
+		while(iter < maxIter) {
+			// Select the working set
+			double gmax = Double.NEGATIVE_INFINITY;
+			int i = -1;
+			for(int t = 0; t < l; t++) {
+				if(y[t] == 1) {
+					if(alpha[t] < COST && -g[t] >= gmax) {
+						gmax = -g[t];
+						i = t;
+					}
+				} else {
+					if(alpha[t] > 0 && g[t] >= gmax) {
+						gmax = g[t];
+						i = t;
+					}
+				}
+			}
+			if(i == -1) break;
+			float[] rowI = kernel[subset[i]];
+			double gmax2 = Double.NEGATIVE_INFINITY;
+			int j = -1;
+			double objDiffMin = Double.POSITIVE_INFINITY;
+			for(int t = 0; t < l; t++) {
+				double qit = y[i] * y[t] * rowI[subset[t]];
+				if(y[t] == 1) {
+					if(alpha[t] > 0) {
+						double gradDiff = gmax + g[t];
+						if(g[t] >= gmax2) gmax2 = g[t];
+						if(gradDiff > 0) {
+							double quad = qd[i] + qd[t] - 2.0 * y[i] * qit;
+							double objDiff = -(gradDiff * gradDiff) / (quad > 0 ? quad : TAU);
+							if(objDiff <= objDiffMin) {
+								j = t;
+								objDiffMin = objDiff;
+							}
+						}
+					}
+				} else {
+					if(alpha[t] < COST) {
+						double gradDiff = gmax - g[t];
+						if(-g[t] >= gmax2) gmax2 = -g[t];
+						if(gradDiff > 0) {
+							double quad = qd[i] + qd[t] + 2.0 * y[i] * qit;
+							double objDiff = -(gradDiff * gradDiff) / (quad > 0 ? quad : TAU);
+							if(objDiff <= objDiffMin) {
+								j = t;
+								objDiffMin = objDiff;
+							}
+						}
+					}
+				}
+			}
+			if(gmax + gmax2 < EPSILON || j == -1) break;
+			iter++;
+
+			// Update alpha[i] and alpha[j]
+			float[] rowJ = kernel[subset[j]];
+			double qij = y[i] * y[j] * rowI[subset[j]];
+			double oldAlphaI = alpha[i];
+			double oldAlphaJ = alpha[j];
+			if(y[i] != y[j]) {
+				double quad = qd[i] + qd[j] + 2 * qij;
+				if(quad <= 0) quad = TAU;
+				double delta = (-g[i] - g[j]) / quad;
+				double diff = alpha[i] - alpha[j];
+				alpha[i] += delta;
+				alpha[j] += delta;
+				if(diff > 0) {
+					if(alpha[j] < 0) {
+						alpha[j] = 0;
+						alpha[i] = diff;
+					}
+				} else {
+					if(alpha[i] < 0) {
+						alpha[i] = 0;
+						alpha[j] = -diff;
+					}
+				}
+				if(diff > 0) {
+					if(alpha[i] > COST) {
+						alpha[i] = COST;
+						alpha[j] = COST - diff;
+					}
+				} else {
+					if(alpha[j] > COST) {
+						alpha[j] = COST;
+						alpha[i] = COST + diff;
+					}
+				}
+			} else {
+				double quad = qd[i] + qd[j] - 2 * qij;
+				if(quad <= 0) quad = TAU;
+				double delta = (g[i] - g[j]) / quad;
+				double sum = alpha[i] + alpha[j];
+				alpha[i] -= delta;
+				alpha[j] += delta;
+				if(sum > COST) {
+					if(alpha[i] > COST) {
+						alpha[i] = COST;
+						alpha[j] = sum - COST;
+					}
+				} else {
+					if(alpha[j] < 0) {
+						alpha[j] = 0;
+						alpha[i] = sum;
+					}
+				}
+				if(sum > COST) {
+					if(alpha[j] > COST) {
+						alpha[j] = COST;
+						alpha[i] = sum - COST;
+					}
+				} else {
+					if(alpha[i] < 0) {
+						alpha[i] = 0;
+						alpha[j] = sum;
+					}
+				}
+			}
+
+			// Update the gradient
+			double deltaI = alpha[i] - oldAlphaI;
+			double deltaJ = alpha[j] - oldAlphaJ;
+			for(int t = 0; t < l; t++) {
+				g[t] += y[t] * (y[i] * rowI[subset[t]] * deltaI + y[j] * rowJ[subset[t]] * deltaJ);
+			}
+		}
+		if(iter >= maxIter) {
+			logger.warn("Reached maximum number of iterations");
+		}
+
+		// Offset of the decision function
+		int numFree = 0;
+		double sumFree = 0;
+		double ub = Double.POSITIVE_INFINITY;
+		double lb = Double.NEGATIVE_INFINITY;
+		for(int t = 0; t < l; t++) {
+			double yg = y[t] * g[t];
+			if(alpha[t] >= COST) {
+				if(y[t] == -1) ub = Math.min(ub, yg);
+				else lb = Math.max(lb, yg);
+			} else if(alpha[t] <= 0) {
+				if(y[t] == 1) ub = Math.min(ub, yg);
+				else lb = Math.max(lb, yg);
+			} else {
+				numFree++;
+				sumFree += yg;
+			}
+		}
+		Solution rtrn = new Solution();
+		rtrn.alpha = alpha;
+		rtrn.rho = numFree > 0 ? sumFree / numFree : (ub + lb) / 2;
+		return rtrn;
+	}
+
+	/**
+	 * Fit P(y = 1 | f) = 1 / (1 + exp(A f + B)) by Newton's method with backtracking (Lin, Lin and Weng's version of Platt's method)
+	 * @return A and B
+	 */
+	private static double[] fitSigmoid(double[] decision, byte[] y) {
+		int l = decision.length;
+		int prior1 = 0;
+		for(int i = 0; i < l; i++) {
+			if(y[i] > 0) prior1++;
+		}
+		int prior0 = l - prior1;
+		int maxIter = 100;
+		double minStep = 1e-10;
+		double sigma = 1e-12;
+		double eps = 1e-5;
+		double hiTarget = (prior1 + 1.0) / (prior1 + 2.0);
+		double loTarget = 1 / (prior0 + 2.0);
+		double[] t = new double[l];
+		for(int i = 0; i < l; i++) {
+			t[i] = y[i] > 0 ? hiTarget : loTarget;
+		}
+		double a = 0;
+		double b = Math.log((prior0 + 1.0) / (prior1 + 1.0));
+		double fval = sigmoidLoss(decision, t, a, b);
+		for(int iter = 0; iter < maxIter; iter++) {
+			double h11 = sigma;
+			double h22 = sigma;
+			double h21 = 0;
+			double g1 = 0;
+			double g2 = 0;
+			for(int i = 0; i < l; i++) {
+				double fApB = decision[i] * a + b;
+				double p;
+				double q;
+				if(fApB >= 0) {
+					p = Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+					q = 1.0 / (1.0 + Math.exp(-fApB));
+				} else {
+					p = 1.0 / (1.0 + Math.exp(fApB));
+					q = Math.exp(fApB) / (1.0 + Math.exp(fApB));
+				}
+				double d2 = p * q;
+				h11 += decision[i] * decision[i] * d2;
+				h22 += d2;
+				h21 += decision[i] * d2;
+				double d1 = t[i] - p;
+				g1 += decision[i] * d1;
+				g2 += d1;
+			}
+			if(Math.abs(g1) < eps && Math.abs(g2) < eps) break;
+			double det = h11 * h22 - h21 * h21;
+			double dA = -(h22 * g1 - h21 * g2) / det;
+			double dB = -(-h21 * g1 + h11 * g2) / det;
+			double gd = g1 * dA + g2 * dB;
+			double step = 1;
+			while(step >= minStep) {
+				double newA = a + step * dA;
+				double newB = b + step * dB;
+				double newf = sigmoidLoss(decision, t, newA, newB);
+				if(newf < fval + 0.0001 * step * gd) {
+					a = newA;
+					b = newB;
+					fval = newf;
+					break;
+				}
+				step = step / 2.0;
+			}
+			if(step < minStep) {
+				logger.warn("Line search fails in sigmoid fit");
+				break;
+			}
+		}
+		return new double[] {a, b};
+	}
+
+	private static double sigmoidLoss(double[] decision, double[] t, double a, double b) {
+		double rtrn = 0;
+		for(int i = 0; i < decision.length; i++) {
+			double fApB = decision[i] * a + b;
+			if(fApB >= 0) rtrn += t[i] * fApB + Math.log(1 + Math.exp(-fApB));
+			else rtrn += (t[i] - 1) * fApB + Math.log(1 + Math.exp(fApB));
+		}
+		return rtrn;
+	}
+
+	private static double sigmoid(double decision, double a, double b) {
+		double fApB = decision * a + b;
+		if(fApB >= 0) return Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+		return 1.0 / (1 + Math.exp(fApB));
+	}
+
+}
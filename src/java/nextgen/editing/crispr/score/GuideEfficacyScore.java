@@ -1,292 +1,64 @@
 package nextgen.editing.crispr.score;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
-
-import nextgen.core.pipeline.OGSUtils;
 import nextgen.editing.crispr.GuideRNA;
 
 import org.apache.log4j.Logger;
 
-import broad.core.parser.StringParser;
-
 /**
  * Guide RNA score based on Tim Wang's efficacy measure
- * Uses an R script written by Tim
- * Must have R installed along with the e1071 and limma libraries
+ * The score is the probability assigned by an SVM trained on Tim's data set, as in the R script he provided (e1071 svm with default parameters)
+ * The SVM is trained in process by GuideEfficacySVM the first time it is needed and shared by all score objects
  * @author prussell
  */
 public class GuideEfficacyScore implements GuideRNAScore {
 
 	public static Logger logger = Logger.getLogger(GuideEfficacyScore.class.getName());
-	private String script;
-	private String trainingFile;
+	private GuideEfficacySVM model;
 	private Map<GuideRNA, Double> scores;
 	
 	public GuideEfficacyScore(Collection<GuideRNA> sgRNAs) throws IOException, InterruptedException {
-
-		// Write the training file
-		trainingFile = "guide_efficacy_score_training_set_" + Long.valueOf(System.currentTimeMillis()).toString();
-		writeTrainingFile(trainingFile);
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(trainingFile));					
-			}
-		});
-
-		// Write the script file
-		script = "guide_efficacy_score_script_" + Long.valueOf(System.currentTimeMillis()).toString() + ".R";
-		writeRScript(script);
-		// Attach shutdown hook to delete R script when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(script));					
-			}
-		});
-
+		model = GuideEfficacySVM.getDefaultModel();
 		// Score the initially provided sgRNAs
 		scores = scoreSequences(sgRNAs);
 	}
 	
-	private Map<GuideRNA, Double> scoreSequences(Collection<GuideRNA> sequences) throws IOException, InterruptedException {
-		
-		// Create an input file for the R script
-		final String inputFile = "guide_efficacy_score_input_" + Long.valueOf(System.currentTimeMillis()).toString();
-		writeScriptInputFile(sequences, inputFile);
-		
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(inputFile));					
-			}
-		});
-		
-		// Run the R script
-		final String outputFile = "guide_efficacy_score_output_" + Long.valueOf(System.currentTimeMillis()).toString() + ".R";
-		runScript(inputFile, outputFile);
-		
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(outputFile));					
-			}
-		});
-		
-		// Read in the output
+	private Map<GuideRNA, Double> scoreSequences(Collection<GuideRNA> sequences) throws InterruptedException {
+		Collection<String> bases = new ArrayList<String>();
+		for(GuideRNA seq : sequences) {
+			bases.add(seq.getSequence().getSequenceBases());
+		}
+		Map<String, Double> scoresBySeq = model.score(bases, Runtime.getRuntime().availableProcessors());
 		Map<GuideRNA, Double> rtrn = new HashMap<GuideRNA, Double>();
-		Map<String, Double> scoresBySeq = readScriptOutput(outputFile);
 		for(GuideRNA seq : sequences) {
 			rtrn.put(seq, scoresBySeq.get(seq.getSequence().getSequenceBases()));
-			logger.debug("Read in guide\t" + seq.getSequence().getSequenceBases() + "\tscore\t" + rtrn.get(seq));
-		}
-		
-		return rtrn;
-		
-	}
-	
-	private void runScript(String inputFile, String outputFile) throws IOException, InterruptedException {
-		String cmmd = "R --slave --no-save -f " + script + " --args " + inputFile + " " + outputFile;
-		logger.debug("Running R command " + cmmd);
-		Process proc = Runtime.getRuntime().exec(cmmd);
-		proc.waitFor();
-		if(proc.exitValue() != 0) {
-			InputStream is = proc.getErrorStream();
-			InputStreamReader isr = new InputStreamReader(is);
-			BufferedReader b = new BufferedReader(isr);
-			while(b.ready()) {
-				logger.error(b.readLine());
-			}
-			is.close();
-			isr.close();
-			b.close();
-			throw new IllegalStateException("R process failed. See logger output for details.");
-		}
-	}
-	
-	private Map<String, Double> readScriptOutput(String file) throws IOException {
-		logger.debug("Reading script output from " + file);
-		Map<String, Double> rtrn = new TreeMap<String, Double>();
-		FileReader r = new FileReader(file);
-		BufferedReader b = new BufferedReader(r);
-		StringParser s = new StringParser();
-		while(b.ready()) {
-			String line = b.readLine();
-			String str = line.replaceAll("\"", "");
-			s.parse(str);
-			if(s.getFieldCount() != 2) {
-				r.close();
-				b.close();
-				throw new IllegalArgumentException("Each line must be <sequence> \t <score>");
-			}
-			String seq = s.asString(0);
-			double score = s.asDouble(1);
-			rtrn.put(seq, Double.valueOf(score));
+			logger.debug("Scored guide\t" + seq.getSequence().getSequenceBases() + "\tscore\t" + rtrn.get(seq));
 		}
-		r.close();
-		b.close();
 		return rtrn;
 	}
 	
 	@Override
 	public double getScore(GuideRNA guideRNA) throws IOException, InterruptedException {
 		if(!scores.containsKey(guideRNA)) {
-			logger.warn("Running R script again because score object was not initialized to include guide RNA " + guideRNA);
-			logger.warn("For efficiency, initialize score object with all guide RNAs of interest");
-			Collection<GuideRNA> thisRNA = new ArrayList<GuideRNA>();
-			thisRNA.add(guideRNA);
-			Map<GuideRNA, Double> thisScore = scoreSequences(thisRNA);
-			double score = thisScore.get(guideRNA);
-			scores.put(guideRNA, Double.valueOf(score));
+			scores.put(guideRNA, Double.valueOf(model.score(guideRNA.getSequence().getSequenceBases())));
 		}
 		return scores.get(guideRNA).doubleValue();
 	}
 	
 	/**
-	 * Write input file for R script
-	 * @param sequences Guide RNAs to include
-	 * @param file File to write
-	 * @throws IOException
-	 */
-	private static void writeScriptInputFile(Collection<GuideRNA> sequences, String file) throws IOException {
-		logger.debug("Writing input file for R script to " + file);
-		FileWriter w = new FileWriter(file);
-		String header = "SEQ\t";
-		for(int i = 1; i <= 19; i++) {
-			header += "BP" + i + "A\t";
-			header += "BP" + i + "C\t";
-			header += "BP" + i + "T\t";
-			header += "BP" + i + "G\t";
-		}
-		header += "BP20A\tBP20C\tBP20T\tBP20G";
-		w.write(header + "\n");
-		Collection<String> alreadyWritten = new TreeSet<String>();
-		for(GuideRNA g : sequences) {
-			String seq = g.getSequenceString();
-			if(alreadyWritten.contains(seq)) {
-				continue;
-			}
-			String line = g.getSequence().getSequenceBases() + "\t";
-			for(int i = 0; i < 19; i++) {
-				char b = line.charAt(i);
-				switch(b) {
-				case 'A':
-					line += "1\t0\t0\t0\t";
-					break;
-				case 'C':
-					line += "0\t1\t0\t0\t";
-					break;
-				case 'T':
-					line += "0\t0\t1\t0\t";
-					break;
-				case 'G':
-					line += "0\t0\t0\t1\t";
-					break;
-				case 'a':
-					line += "1\t0\t0\t0\t";
-					break;
-				case 'c':
-					line += "0\t1\t0\t0\t";
-					break;
-				case 't':
-					line += "0\t0\t1\t0\t";
-					break;
-				case 'g':
-					line += "0\t0\t0\t1\t";
-					break;
-				default:
-					throw new IllegalArgumentException("Can't process char " + b);
-				}
-			}
-			char b = line.charAt(19);
-			switch(b) {
-			case 'A':
-				line += "1\t0\t0\t0";
-				break;
-			case 'C':
-				line += "0\t1\t0\t0";
-				break;
-			case 'T':
-				line += "0\t0\t1\t0";
-				break;
-			case 'G':
-				line += "0\t0\t0\t1";
-				break;
-			case 'a':
-				line += "1\t0\t0\t0";
-				break;
-			case 'c':
-				line += "0\t1\t0\t0";
-				break;
-			case 't':
-				line += "0\t0\t1\t0";
-				break;
-			case 'g':
-				line += "0\t0\t0\t1";
-				break;
-			default:
-				throw new IllegalArgumentException("Can't process char " + b);
-			}
-
-			w.write(line + "\n");
-			alreadyWritten.add(seq);
-		}
-		w.close();
-	}
-	
-	
-	/**
-	 * Write an R script file
-	 * This R code is copied from a script provided by Tim Wang
-	 * @param outFile File to write script to
-	 * @throws IOException
-	 */
-	private void writeRScript(String outFile) throws IOException {
-		logger.debug("Writing script to file " + outFile);
-		FileWriter w = new FileWriter(outFile);
-		w.write("library(e1071)\n");
-		w.write("library(limma)\n");
-		w.write("args <- commandArgs(trailingOnly = TRUE)\n");
-		w.write("print(args[1])\n");
-		w.write("\n");
-		w.write("RMA=read.delim(\"" + trainingFile + "\", header = TRUE, row.names = 1)\n");
-		w.write("negative=-1.6\n");
-		w.write("myrows=c(6:85)\n");
-		w.write("totalclasses=array(1,dim(RMA)[1])\n");
-		w.write("totalclasses[which(negative>RMA$l2fc)]=-1\n");
-		w.write("\n");
-		w.write("predictor<-svm( as.matrix(RMA[,myrows]), as.factor(totalclasses),probability=T)\n");
-		w.write("set1=read.delim(args[1], header = TRUE, row.names = 1)\n");
-		w.write("set1.pred <- slot(predict(predictor, as.matrix(set1),probability=T),\"probabilities\")[,2]\n");
-		w.write("write.table(cbind(rownames(set1),set1.pred),args[2],sep=\"\t\",row.names=F,col.names=F)\n");
-		w.close();
-	}
-	
-	/**
-	 * Write the training file for input to R script
+	 * Write the training set
 	 * This was provided by Tim Wang
-	 * @param outFile File to write to
+	 * Columns are the guide name, INIT, FIN, strand.wrt, l2fc, gene, one column per position and base for the 20 guide positions (BP1A ... BP20G) and meddiff
+	 * @param w Writer to write to
 	 * @throws IOException
 	 */
-	private void writeTrainingFile(String outFile) throws IOException {
-		logger.debug("Writing training file to " + outFile);
-		FileWriter w = new FileWriter(outFile);
+	static void writeTrainingSet(Writer w) throws IOException {
 		w.write("gRNA\tINIT\tFIN\tstrand.wrt\tl2fc\tgene\tBP1A\tBP1C\tBP1T\tBP1G\tBP2A\tBP2C\tBP2T\tBP2G\tBP3A\tBP3C\tBP3T\tBP3G\tBP4A\tBP4C\tBP4T\tBP4G\tBP5A\tBP5C\tBP5T\tBP5G\tBP6A\tBP6C\tBP6T\tBP6G\tBP7A\tBP7C\tBP7T\tBP7G\tBP8A\tBP8C\tBP8T\tBP8G\tBP9A\tBP9C\tBP9T\tBP9G\tBP10A\tBP10C\tBP10T\tBP10G\tBP11A\tBP11C\tBP11T\tBP11G\tBP12A\tBP12C\tBP12T\tBP12G\tBP13A\tBP13C\tBP13T\tBP13G\tBP14A\tBP14C\tBP14T\tBP14G\tBP15A\tBP15C\tBP15T\tBP15G\tBP16A\tBP16C\tBP16T\tBP16G\tBP17A\tBP17C\tBP17T\tBP17G\tBP18A\tBP18C\tBP18T\tBP18G\tBP19A\tBP19C\tBP19T\tBP19G\tBP20A\tBP20C\tBP20T\tBP20G\tmeddiff\n");
 		w.write("RPL12_p130211606\t703\t0\t0\t-11.28397219\tRPL12\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t-8.470000219\n");
 		w.write("RPL13_p89627984\t1035\t0\t1\t-11.28397219\tRPL13\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t-9.384785779\n");
@@ -2749,7 +2521,6 @@ public class GuideEfficacyScore implements GuideRNAScore {
 		w.write("RPL27A_m8705572\t240\t1615\t0\t2.876376906\tRPL27A\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t5.191477564\n");
 		w.write("RPL11_m24022351\t40\t423\t0\t3.528534811\tRPL11\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t5.778994943\n");
 		w.write("RPL18_m49121112\t28\t754\t1\t4.877014844\tRPL18\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t6.427531701\n");
-		w.close();
 	}
 
 	@Override
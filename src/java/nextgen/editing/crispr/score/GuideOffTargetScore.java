@@ -1,21 +1,99 @@
 package nextgen.editing.crispr.score;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import nextgen.editing.crispr.GuideRNA;
+import nextgen.editing.crispr.OffTargetIndex;
 
 import org.apache.log4j.Logger;
 
 /**
  * Guide RNA score based on Feng Zhang's algorithm
+ * This is the aggregate specificity score of Hsu et al. 2013 (crispr.mit.edu), between 0 and 100 with higher scores more specific
+ * Each off target site within a few mismatches of the guide is scored by the positions of its mismatches and these scores are summed
+ * Off target sites are found in process with an OffTargetIndex of the genome
  * @author prussell
  */
 public class GuideOffTargetScore implements GuideRNAScore {
 
 	public static Logger logger = Logger.getLogger(GuideOffTargetScore.class.getName());
 
+	/**
+	 * Weight of a mismatch at each position of the guide, 5' to 3'
+	 */
+	private static final double[] MISMATCH_WEIGHTS = {0, 0, 0.014, 0, 0, 0.395, 0.317, 0, 0.389, 0.079, 0.445, 0.508, 0.613, 0.851, 0.732, 0.828, 0.615, 0.804, 0.685, 0.583};
+
+	private OffTargetIndex index;
+	private int maxMismatches;
+	private Map<GuideRNA, Double> scores;
+
+	/**
+	 * @param offTargetIndex Index of the genome
+	 * @param sgRNAs Guides to score up front on several threads, other guides are scored when requested
+	 * @param maxMismatches Max number of mismatches of off target sites
+	 * @throws InterruptedException
+	 */
+	public GuideOffTargetScore(OffTargetIndex offTargetIndex, Collection<GuideRNA> sgRNAs, int maxMismatches) throws InterruptedException {
+		index = offTargetIndex;
+		this.maxMismatches = maxMismatches;
+		scores = new HashMap<GuideRNA, Double>();
+		Collection<String> bases = new ArrayList<String>();
+		for(GuideRNA g : sgRNAs) {
+			bases.add(g.getSequenceString());
+		}
+		Map<String, List<OffTargetIndex.Hit>> hits = index.search(bases, maxMismatches, Runtime.getRuntime().availableProcessors());
+		for(GuideRNA g : sgRNAs) {
+			scores.put(g, Double.valueOf(aggregateScore(g, hits.get(g.getSequenceString()))));
+		}
+	}
+
 	@Override
 	public double getScore(GuideRNA guideRNA) {
-		// TODO
-		throw new UnsupportedOperationException();
+		if(!scores.containsKey(guideRNA)) {
+			scores.put(guideRNA, Double.valueOf(aggregateScore(guideRNA, index.search(guideRNA.getSequenceString(), maxMismatches))));
+		}
+		return scores.get(guideRNA).doubleValue();
+	}
+
+	private static double aggregateScore(GuideRNA guideRNA, List<OffTargetIndex.Hit> hits) {
+		double sum = 0;
+		int numOffTargets = 0;
+		for(OffTargetIndex.Hit hit : hits) {
+			if(isOnTarget(guideRNA, hit)) continue;
+			sum += hitScore(hit.getMismatchPositions());
+			numOffTargets++;
+		}
+		double rtrn = 100 * 100 / (100 + sum);
+		logger.debug("Guide\t" + guideRNA.getName() + "\t" + guideRNA.getSequenceString() + "\toff_targets\t" + numOffTargets + "\tscore\t" + rtrn);
+		return rtrn;
+	}
+
+	private static boolean isOnTarget(GuideRNA guideRNA, OffTargetIndex.Hit hit) {
+		return hit.getNumMismatches() == 0 && hit.getStart() == guideRNA.getStart() && hit.getStrand().equals(guideRNA.getStrand()) && hit.getChr().equals(guideRNA.getChr());
+	}
+
+	/**
+	 * Score of a single off target site
+	 * @param mismatchPositions Positions of the mismatches along the guide, zero based from the 5' end
+	 * @return Score between 0 and 100, 100 for a perfect match
+	 */
+	public static double hitScore(int[] mismatchPositions) {
+		int n = mismatchPositions.length;
+		double rtrn = 100;
+		for(int pos : mismatchPositions) {
+			rtrn *= 1 - MISMATCH_WEIGHTS[pos];
+		}
+		if(n > 1) {
+			// Mean distance between adjacent mismatches
+			double meanDist = (double) (mismatchPositions[n - 1] - mismatchPositions[0]) / (n - 1);
+			rtrn *= 1 / ((19 - meanDist) / 19 * 4 + 1);
+			rtrn *= 1.0 / (n * n);
+		}
+		return rtrn;
 	}
 
 	@Override
@@ -0,0 +1,152 @@
+package broad.core.datastructures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.datastructures.IntervalTree.Node;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that broad.core.datastructures.StaticIntervalIndex answers overlap queries as broad.core.datastructures.IntervalTree does
+ */
+public class TestStaticIntervalIndex extends TestCase {
+
+	private int[] starts;
+	private int[] ends;
+	private List<String> values;
+	private IntervalTree<String> tree;
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(17);
+		int n = 5000;
+		starts = new int[n];
+		ends = new int[n];
+		values = new ArrayList<String>();
+		tree = new IntervalTree<String>();
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && random.nextInt(10) == 0) {
+				// Same interval as an earlier one, sometimes with the same value
+				int j = random.nextInt(i);
+				starts[i] = starts[j];
+				ends[i] = ends[j];
+				values.add(random.nextBoolean() ? values.get(j) : "value" + i);
+			} else {
+				starts[i] = random.nextInt(1000000);
+				// A few long intervals and some empty ones
+				int length = random.nextInt(20) == 0 ? random.nextInt(200000) : random.nextInt(2000);
+				ends[i] = starts[i] + length;
+				values.add("value" + i);
+			}
+			tree.put(starts[i], ends[i], values.get(i));
+		}
+	}
+
+	private void checkSame(IntervalTree<String> tree, StaticIntervalIndex<String> index, int start, int end) {
+		Iterator<Node<String>> expected = tree.overlappers(start, end);
+		Iterator<StaticIntervalIndex.Entry<String>> observed = index.overlappers(start, end);
+		while (expected.hasNext()) {
+			assertTrue(start + "-" + end, observed.hasNext());
+			Node<String> node = expected.next();
+			StaticIntervalIndex.Entry<String> entry = observed.next();
+			assertEquals(node.getStart(), entry.getStart());
+			assertEquals(node.getEnd(), entry.getEnd());
+			assertEquals(node.getValue(), entry.getValue());
+			assertEquals(new HashSet<String>(node.getContainedValues()), new HashSet<String>(entry.getContainedValues()));
+		}
+		assertFalse(observed.hasNext());
+		assertEquals(tree.numOverlappers(start, end), index.numOverlappers(start, end));
+
+		Collection<String> expectedValues = new ArrayList<String>();
+		Iterator<String> itr = tree.overlappingValueIterator(start, end);
+		while (itr.hasNext()) expectedValues.add(itr.next());
+		Collection<String> observedValues = new ArrayList<String>();
+		itr = index.overlappingValueIterator(start, end);
+		while (itr.hasNext()) observedValues.add(itr.next());
+		assertEquals(expectedValues.size(), observedValues.size());
+		assertEquals(new HashSet<String>(expectedValues), new HashSet<String>(observedValues));
+	}
+
+	public void testSameOverlappersAsTree() {
+		StaticIntervalIndex<String> index = new StaticIntervalIndex<String>(tree);
+		assertEquals(tree.size(), index.size());
+		Random random = new Random(5);
+		for (int q = 0; q < 3000; q++) {
+			int start = random.nextInt(1100000) - 50000;
+			int end = start + (q % 3 == 0 ? 0 : random.nextInt(q % 2 == 0 ? 500 : 50000));
+			checkSame(tree, index, start, end);
+		}
+		// Queries on the bounds of the intervals
+		for (int i = 0; i < 500; i++) {
+			checkSame(tree, index, starts[i], ends[i]);
+			checkSame(tree, index, ends[i], ends[i] + 1);
+			checkSame(tree, index, starts[i] - 1, starts[i]);
+		}
+	}
+
+	public void testFromArrays() {
+		StaticIntervalIndex<String> index = new StaticIntervalIndex<String>(starts, ends, values);
+		assertEquals(tree.size(), index.size());
+		Random random = new Random(9);
+		for (int q = 0; q < 2000; q++) {
+			int start = random.nextInt(1000000);
+			checkSame(tree, index, start, start + random.nextInt(5000));
+		}
+		for (int i = 0; i < 200; i++) {
+			StaticIntervalIndex.Entry<String> entry = index.find(starts[i], ends[i]);
+			assertNotNull(entry);
+			assertEquals(tree.find(starts[i], ends[i]).getValue(), entry.getValue());
+		}
+		assertNull(index.find(-5, -1));
+	}
+
+	public void testSmallIndexes() {
+		for (int n = 0; n < 40; n++) {
+			IntervalTree<String> small = new IntervalTree<String>();
+			for (int i = 0; i < n; i++) {
+				small.put(starts[i] % 1000, starts[i] % 1000 + ends[i] - starts[i], values.get(i));
+			}
+			StaticIntervalIndex<String> index = new StaticIntervalIndex<String>(small);
+			for (int start = -10; start < 1100; start += 37) {
+				checkSame(small, index, start, start + 150);
+			}
+		}
+	}
+
+	public void testConcurrentQueries() throws Exception {
+		final StaticIntervalIndex<String> index = new StaticIntervalIndex<String>(tree);
+		final int[] expected = new int[1000];
+		for (int q = 0; q < expected.length; q++) {
+			expected[q] = tree.numOverlappers(q * 1000, q * 1000 + 700);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						for (int q = 0; q < expected.length; q++) {
+							if (index.numOverlappers(q * 1000, q * 1000 + 700) != expected[q]) return false;
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> f : futures) {
+				assertTrue(f.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
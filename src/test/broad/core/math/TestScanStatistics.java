@@ -0,0 +1,92 @@
+package broad.core.math;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the broad.core.math.ScanStatistics class against the direct sum of Poisson probabilities
+ */
+public class TestScanStatistics extends TestCase {
+
+	private static double referencePoisson(int k, double lambda) {
+		return new cern.jet.random.Poisson(lambda, new cern.jet.random.engine.DRand()).pdf(k);
+	}
+
+	private static double referencePVal(int k, double lambda, double w, double T) {
+		if(k<=2){return 1;}
+		double lambdaW=lambda*w;
+		double a=((k-lambdaW)/k)*(lambda*(T-w)*referencePoisson(k-1, lambdaW));
+		double cdf=0;
+		for(int i=0; i<k; i++){
+			cdf+=referencePoisson(i, lambdaW);
+		}
+		return Math.min(1, Math.abs(1-cdf*Math.exp(-a)));
+	}
+
+	public void testPoissonMatchesColt() {
+		double[] lambdas = {0.5, 3, 40, 250};
+		for(double lambda : lambdas) {
+			for(int k = 0; k < 400; k++) {
+				assertEquals(referencePoisson(k, lambda), ScanStatistics.poisson(k, lambda), 1e-12);
+			}
+			assertEquals(1.0, ScanStatistics.Fp(2000, lambda), 1e-12);
+		}
+	}
+
+	public void testPValuesMatchDirectSum() {
+		double lambda = 0.01;
+		double T = 1e8;
+		double[] windows = {100, 500, 2000};
+		for(double w : windows) {
+			for(int k = 0; k < 120; k++) {
+				double expected = referencePVal(k, lambda, w, T);
+				assertEquals(expected, ScanStatistics.calculatePVal(k, lambda, w, T), 1e-9);
+				// Second call is served from the memoized table
+				assertEquals(expected, ScanStatistics.calculatePVal(k, lambda, w, T), 1e-9);
+			}
+		}
+	}
+
+	public void testBatchMatchesSingle() {
+		int[] counts = {0, 3, 7, 12, 25, 3, 100, 70000};
+		double[] pvals = ScanStatistics.calculatePVal(counts, 0.02, 500, 1e7);
+		double[] sizes = new double[counts.length];
+		for(int i = 0; i < counts.length; i++) {
+			assertEquals(ScanStatistics.calculatePVal(counts[i], 0.02, 500, 1e7), pvals[i], 0);
+			sizes[i] = 100 + 50 * i;
+		}
+		double[] varying = ScanStatistics.calculatePVal(counts, 0.02, sizes, 1e7);
+		for(int i = 0; i < counts.length; i++) {
+			assertEquals(ScanStatistics.calculatePVal(counts[i], 0.02, sizes[i], 1e7), varying[i], 0);
+		}
+	}
+
+	/**
+	 * Genes scored once with their own lambda and length, then scanned with windows of a fixed size at the lambda of the gene
+	 */
+	public void testMemoHitsOnGeneScans() {
+		ScanStatistics.clearMemo();
+		Random random = new Random(29);
+		double T = 1e8;
+		int numGenes = 40;
+		int numWindows = 300;
+		for(int g = 0; g < numGenes; g++) {
+			double localLambda = 0.01 + random.nextDouble();
+			int geneLength = 500 + random.nextInt(5000);
+			double expected = referencePVal(50, localLambda, geneLength, T);
+			assertEquals(expected, ScanStatistics.calculatePVal(50, localLambda, geneLength, T), 1e-9);
+			double geneLambda = (100 + 10 * g) / T;
+			for(int i = 0; i < numWindows; i++) {
+				int k = random.nextInt(40);
+				assertEquals(referencePVal(k, geneLambda, 200, T), ScanStatistics.calculatePVal(k, geneLambda, 200, T), 1e-9);
+			}
+		}
+		// Gene level parameters are never repeated so only the window scans keep a table
+		assertEquals(numGenes, ScanStatistics.getNumMemoTables());
+		assertEquals(numGenes * 8L * 256, ScanStatistics.getMemoBytes());
+		long hits = ScanStatistics.getMemoHits();
+		long calls = hits + ScanStatistics.getMemoMisses();
+		assertTrue(hits + " hits of " + calls, hits > 0.8 * calls);
+	}
+}
@@ -0,0 +1,175 @@
+package broad.core.multiplealignment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.forester.phylogeny.Phylogeny;
+
+import Jama.Matrix;
+import broad.core.error.ParseException;
+import broad.core.siphy.ColumnBatchPruner;
+import broad.core.siphy.ConservationUtils;
+import broad.core.siphy.EvolutionaryModel;
+import broad.core.siphy.EvolutionaryModel.OmegaFit;
+import broad.core.siphy.EvolutionaryModelParameters;
+import broad.core.siphy.TreeScaler;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the broad.core.multiplealignment.ColumnarAlignment and broad.core.siphy.ColumnBatchPruner classes
+ * The pruner is checked against EvolutionaryModel.fitOmega on the same columns
+ */
+public class TestColumnarAlignment extends TestCase {
+
+	private static final String MAF = "##maf version=1\n" +
+		"a score=1\n" +
+		"s hg18.chr1    100 9 + 1000 ACG-TACGTA\n" +
+		"s mm8.chr4     200 9 + 1000 ACGTTAC-TA\n" +
+		"s rn4.chr2     300 10 + 1000 ACGATNCGTA\n" +
+		"s monDom4.chr7 400 8 + 1000 AC--TACGTT\n" +
+		"\n" +
+		"a score=2\n" +
+		"s hg18.chr1    112 8 + 1000 GGCCAATT\n" +
+		"s mm8.chr4     220 8 + 1000 GGCCAATA\n" +
+		"s canFam2.chr3 500 8 + 1000 GGCAAATT\n" +
+		"s monDom4.chr7 420 7 + 1000 GG-CAATT\n";
+
+	private static final String MODEL = "BACKGROUND: 0.214713 0.307324 0.248610 0.229353\n" +
+		"RATE_MAT:\n" +
+		"-1.113121 0.267171 0.611653 0.234297\n" +
+		"0.186659 -0.888845 0.199678 0.502508\n" +
+		"0.528254 0.246835 -0.956902 0.181813\n" +
+		"0.219341 0.673340 0.197079 -1.089760\n" +
+		"TREE: ((((mm8:0.085233,rn4:0.098462):0.262242,hg18:0.128359):0.025266,canFam2:0.171487):0.308235,monDom4:0.308235);\n";
+
+	private File dir;
+	private ColumnarAlignment alignment;
+	private EvolutionaryModel model;
+
+	@Override
+	protected void setUp() throws IOException, ParseException {
+		dir = File.createTempFile("columnar", "");
+		dir.delete();
+		dir.mkdir();
+		File maf = write("test.maf", MAF);
+		File columnar = new File(dir, "test.col");
+		ColumnarAlignment.convertMAF(maf.getAbsolutePath(), columnar.getAbsolutePath(), null);
+		alignment = new ColumnarAlignment(columnar.getAbsolutePath());
+		model = new EvolutionaryModel(new EvolutionaryModelParameters(write("test.mod", MODEL)));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		alignment.close();
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private File write(String name, String contents) throws IOException {
+		File f = new File(dir, name);
+		FileWriter w = new FileWriter(f);
+		w.write(contents);
+		w.close();
+		return f;
+	}
+
+	public void testConversion() {
+		assertEquals("hg18", alignment.getReferenceId());
+		assertEquals("chr1", alignment.getReferenceChromosome());
+		assertEquals(100, alignment.getReferenceStart());
+		assertEquals(20, alignment.length());
+		assertEquals("[hg18, mm8, rn4, monDom4, canFam2]", alignment.getSpecies().toString());
+		int hg18 = alignment.getSpeciesIndex("hg18");
+		int mm8 = alignment.getSpeciesIndex("mm8");
+		int rn4 = alignment.getSpeciesIndex("rn4");
+		int monDom4 = alignment.getSpeciesIndex("monDom4");
+		int canFam2 = alignment.getSpeciesIndex("canFam2");
+		assertEquals(-1, alignment.getSpeciesIndex("panTro2"));
+		// Reference gap at the fourth column of the first block is dropped
+		assertEquals(MultipleAlignment.G_CODE, alignment.getBase(102, hg18));
+		assertEquals(MultipleAlignment.T_CODE, alignment.getBase(103, hg18));
+		assertEquals(MultipleAlignment.T_CODE, alignment.getBase(103, mm8));
+		assertEquals(ColumnarAlignment.MISSING_CODE, alignment.getBase(104, rn4));
+		assertEquals(ColumnarAlignment.GAP_CODE, alignment.getBase(102, monDom4));
+		assertEquals(ColumnarAlignment.GAP_CODE, alignment.getBase(106, mm8));
+		// Species missing from a block
+		assertEquals(ColumnarAlignment.GAP_CODE, alignment.getBase(100, canFam2));
+		assertEquals(ColumnarAlignment.GAP_CODE, alignment.getBase(112, rn4));
+		assertEquals(MultipleAlignment.A_CODE, alignment.getBase(115, canFam2));
+		// Between blocks and outside of the alignment
+		for(int k = 0; k < alignment.getNumSpecies(); k++) {
+			assertEquals(ColumnarAlignment.MISSING_CODE, alignment.getBase(110, k));
+			assertEquals(ColumnarAlignment.MISSING_CODE, alignment.getBase(99, k));
+			assertEquals(ColumnarAlignment.MISSING_CODE, alignment.getBase(120, k));
+		}
+		List<int[]> islands = alignment.getUngappedReferenceIslands();
+		assertEquals(1, islands.size());
+		assertEquals(0, islands.get(0)[0]);
+		assertEquals(20, islands.get(0)[1]);
+
+		int[] species = {canFam2, -1, hg18};
+		byte[] buffer = new byte[species.length * 3];
+		alignment.getColumns(114, 3, species, buffer);
+		byte[] expected = {MultipleAlignment.C_CODE, MultipleAlignment.A_CODE, MultipleAlignment.A_CODE,
+				ColumnarAlignment.MISSING_CODE, ColumnarAlignment.MISSING_CODE, ColumnarAlignment.MISSING_CODE,
+				MultipleAlignment.C_CODE, MultipleAlignment.C_CODE, MultipleAlignment.A_CODE};
+		for(int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], buffer[i]);
+		}
+	}
+
+	public void testFitOmega() {
+		Phylogeny tree = model.getTree();
+		ColumnBatchPruner pruner = new ColumnBatchPruner(model, tree, alignment);
+		TreeScaler scaler = new TreeScaler();
+		assertEquals(scaler.getTotalDistanceFromNode(tree.getRoot()), pruner.getTreeLength(), 1e-12);
+		int[][] windows = {{100, 9}, {112, 8}, {103, 1}, {105, 4}, {100, 20}};
+		for(int[] window : windows) {
+			Map<String, Matrix> columns = alignment.getColumnsAsVector(window[0], window[1]);
+			pruner.loadColumns(window[0], window[1]);
+			for(int j = 0; j < window[1]; j++) {
+				List<String> gapped = ConservationUtils.getGappedSeqsInWindowMatrix(1, columns, j);
+				if(alignment.getNumSpecies() - gapped.size() > 1) {
+					double expectedLength = scaler.getTotalDistanceFromNode(ConservationUtils.pruneTree(gapped, tree).getRoot());
+					assertEquals(expectedLength, pruner.getTreeLength(j), 1e-9);
+				} else {
+					assertEquals(0d, pruner.getTreeLength(j), 0);
+				}
+				ConservationUtils.setUninformativeNodes(columns, gapped, j);
+			}
+			OmegaFit expected = model.fitOmega(columns, tree, window[1]);
+			OmegaFit fit = model.fitOmega(pruner);
+			assertEquals(expected.getNumOfIterations(), fit.getNumOfIterations());
+			assertEquals(expected.getOmega(), fit.getOmega(), 1e-8 * Math.max(1, expected.getOmega()));
+			assertEquals(expected.getInitialLogLikelihood(), fit.getInitialLogLikelihood(), 1e-8);
+			assertEquals(expected.getFittedLogLikelihood(), fit.getFittedLogLikelihood(), 1e-8);
+			assertEquals(expected.getTransitions(), fit.getTransitions(), 1e-8);
+			assertEquals(expected.getTotalTime(), fit.getTotalTime(), 1e-8);
+		}
+	}
+
+	public void testSpeciesSubset() throws IOException, ParseException {
+		File maf = new File(dir, "test.maf");
+		File columnar = new File(dir, "subset.col");
+		List<String> species = new ArrayList<String>();
+		species.add("hg18");
+		species.add("canFam2");
+		ColumnarAlignment.convertMAF(maf.getAbsolutePath(), columnar.getAbsolutePath(), species);
+		ColumnarAlignment subset = new ColumnarAlignment(columnar.getAbsolutePath());
+		assertEquals(species, subset.getSpecies());
+		assertEquals(20, subset.length());
+		for(int pos = 100; pos < 120; pos++) {
+			assertEquals(alignment.getBase(pos, alignment.getSpeciesIndex("hg18")), subset.getBase(pos, 0));
+			assertEquals(alignment.getBase(pos, alignment.getSpeciesIndex("canFam2")), subset.getBase(pos, 1));
+		}
+		subset.close();
+	}
+
+}
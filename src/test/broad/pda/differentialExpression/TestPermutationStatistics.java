@@ -0,0 +1,94 @@
+package broad.pda.differentialExpression;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import broad.core.datastructures.MatrixWithHeaders;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that broad.pda.differentialExpression.PermutationStatistics gives the statistics of DifferentialScoring for permuted groups
+ */
+public class TestPermutationStatistics extends TestCase {
+
+	private static final double[] FUDGE_FACTORS = {0.0, 0.1, 1.0};
+
+	private MatrixWithHeaders makeData(List<String> samples, int numRows) {
+		List<String> rows = new ArrayList<String>();
+		for (int i = 0; i < numRows; i++) rows.add("probe" + i);
+		MatrixWithHeaders data = new MatrixWithHeaders(rows, samples);
+		Random random = new Random(3);
+		for (int i = 0; i < numRows; i++) {
+			double level = 4 + 8 * random.nextDouble();
+			for (int j = 0; j < samples.size(); j++) {
+				data.set(i, j, level + random.nextGaussian());
+			}
+		}
+		data.set(7, samples.size() - 1, Double.NaN);
+		return data;
+	}
+
+	private void check(int size1, int size2, boolean paired) {
+		List<String> samples = new ArrayList<String>();
+		// Names out of order so the groups are reordered by name
+		for (int j = 0; j < size1 + size2; j++) samples.add("s" + ((j * 7) % (size1 + size2)) + "_" + j);
+		MatrixWithHeaders data = makeData(samples, 2500);
+
+		Random random = new Random(size1 * 31 + size2);
+		List<int[]> permutations = new ArrayList<int[]>();
+		for (int p = 0; p < 12; p++) {
+			List<Integer> all = new ArrayList<Integer>();
+			for (int j = 0; j < samples.size(); j++) all.add(j);
+			int[] group1 = new int[size1];
+			for (int k = 0; k < size1; k++) group1[k] = all.remove(random.nextInt(all.size()));
+			permutations.add(group1);
+		}
+
+		PermutationStatistics statistics = new PermutationStatistics(data, samples, FUDGE_FACTORS, true, paired);
+		double[][][] values = statistics.compute(permutations, 3);
+		List<String> names = statistics.getStatisticNames();
+
+		for (int p = 0; p < permutations.size(); p++) {
+			Collection<String> group1 = new TreeSet<String>();
+			for (int s : permutations.get(p)) group1.add(samples.get(s));
+			Collection<String> group2 = new TreeSet<String>();
+			for (String s : samples) if (!group1.contains(s)) group2.add(s);
+			MatrixWithHeaders expected = DifferentialScoring.computeTestStatistics(data, group1, group2, FUDGE_FACTORS, true, paired);
+			assertEquals(expected.getColumnNames(), names);
+			for (int c = 0; c < names.size(); c++) {
+				for (int r = 0; r < data.rowDimension(); r++) {
+					double e = expected.get(r, c);
+					double v = values[c][r][p];
+					if (Double.isNaN(e)) {
+						assertTrue("row " + r, Double.isNaN(v));
+					} else {
+						assertEquals(size1 + " vs " + size2 + " " + names.get(c) + " row " + r, e, v, 1e-9 * Math.max(1, Math.abs(e)));
+					}
+				}
+			}
+		}
+	}
+
+	public void testTStatistic() {
+		check(4, 6, false);
+		check(7, 3, false);
+	}
+
+	public void testPaired() {
+		check(5, 5, true);
+	}
+
+	public void testZScore() {
+		check(1, 6, false);
+		check(5, 1, false);
+	}
+
+	public void testSingleSamples() {
+		check(1, 1, false);
+	}
+
+}
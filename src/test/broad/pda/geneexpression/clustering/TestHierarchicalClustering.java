@@ -0,0 +1,119 @@
+package broad.pda.geneexpression.clustering;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import broad.core.datastructures.MatrixWithHeaders;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that broad.pda.geneexpression.clustering.HierarchicalClustering orders rows as merging the closest pair of clusters at each level does
+ */
+public class TestHierarchicalClustering extends TestCase {
+
+	private MatrixWithHeaders makeData(int numRows, int numColumns, long seed) {
+		List<String> rows = new ArrayList<String>();
+		for (int i = 0; i < numRows; i++) rows.add("gene" + i);
+		List<String> columns = new ArrayList<String>();
+		for (int j = 0; j < numColumns; j++) columns.add("sample" + j);
+		MatrixWithHeaders data = new MatrixWithHeaders(rows, columns);
+		Random random = new Random(seed);
+		for (int i = 0; i < numRows; i++) {
+			// A few groups of correlated rows
+			double shift = (i % 4) * 2.0;
+			for (int j = 0; j < numColumns; j++) {
+				data.set(i, j, shift * j + random.nextGaussian());
+			}
+		}
+		return data;
+	}
+
+	private double linkage(String metric, Cluster c1, Cluster c2, MatrixWithHeaders data, ClusterDistanceFunction function) {
+		double dist = metric.equals("single") ? Double.MAX_VALUE : 0;
+		for (String m1 : c1.getMembers()) {
+			for (String m2 : c2.getMembers()) {
+				double d = function.measure(data.getRow(m1), data.getRow(m2));
+				if (metric.equals("complete")) dist = Math.max(dist, d);
+				else if (metric.equals("single")) dist = Math.min(dist, d);
+				else dist += d;
+			}
+		}
+		if (metric.equals("average")) dist /= c1.getMembers().size() * c2.getMembers().size();
+		return dist;
+	}
+
+	/**
+	 * Merge the closest pair of clusters until one is left, scanning the clusters in order at every level
+	 */
+	private List<String> greedyOrder(String metric, List<Cluster> clusters, MatrixWithHeaders data, ClusterDistanceFunction function) {
+		clusters = new ArrayList<Cluster>(clusters);
+		while (clusters.size() > 1) {
+			double minDistance = Double.MAX_VALUE;
+			int iMin = -1;
+			int jMin = -1;
+			for (int i = 0; i < clusters.size(); i++) {
+				for (int j = i + 1; j < clusters.size(); j++) {
+					double d = linkage(metric, clusters.get(i), clusters.get(j), data, function);
+					if (d < minDistance) {
+						minDistance = d;
+						iMin = i;
+						jMin = j;
+					}
+				}
+			}
+			Cluster c1 = clusters.get(iMin);
+			Cluster c2 = clusters.get(jMin);
+			clusters.remove(c1);
+			clusters.remove(c2);
+			Collection<String> members = new TreeSet<String>(c1.getMembers());
+			members.addAll(c2.getMembers());
+			Cluster merged = new Cluster(members, null);
+			merged.setSubcluster(c1, c2);
+			merged.setScore(minDistance);
+			clusters.add(merged);
+		}
+		return clusters.get(0).getOrdered();
+	}
+
+	private void checkSameOrder(Map<String, Collection<String>> groups, ClusterDistanceFunction function, String functionName) {
+		for (String metric : new String[] {"complete", "single", "average"}) {
+			MatrixWithHeaders data = makeData(60, 8, 11);
+			List<Cluster> initial = new ArrayList<Cluster>();
+			if (groups == null) {
+				for (String row : data.getRowNames()) initial.add(new Cluster(row));
+			} else {
+				for (String group : groups.keySet()) initial.add(new Cluster(groups.get(group), group));
+			}
+			List<String> expected = greedyOrder(metric, initial, data, function);
+
+			HierarchicalClustering clustering = new HierarchicalClustering(data, null, groups);
+			clustering.setClusterDistanceFunction(functionName);
+			clustering.setLinkage(metric);
+			clustering.setNumThreads(3);
+			clustering.cluster(true, false);
+			assertEquals(metric + " " + functionName, expected, clustering.getMatrix().getRowNames());
+		}
+	}
+
+	public void testSameOrderAsGreedy() {
+		checkSameOrder(null, new PearsonDistance(), "pearson");
+		checkSameOrder(null, new EuclideanDistance(), "euclidean");
+	}
+
+	public void testGroups() {
+		Map<String, Collection<String>> groups = new LinkedHashMap<String, Collection<String>>();
+		for (int i = 0; i < 60; i++) {
+			String group = "group" + (i % 20);
+			if (!groups.containsKey(group)) groups.put(group, new ArrayList<String>());
+			groups.get(group).add("gene" + i);
+		}
+		checkSameOrder(groups, new EuclideanDistance(), "euclidean");
+	}
+
+}
@@ -0,0 +1,137 @@
+package broad.pda.seq.fastq;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests barcode assignment in broad.pda.seq.fastq.BarcodeLookup and splitting in broad.pda.seq.fastq.FastqDemultiplexer
+ */
+public class TestFastqDemultiplexer extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("demultiplex", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private int lookup(BarcodeLookup lookup, String barcode) {
+		byte[] bytes = ("xx" + barcode).getBytes();
+		return lookup.lookup(bytes, 2, barcode.length());
+	}
+
+	public void testLookup() {
+		BarcodeLookup exact = new BarcodeLookup(Arrays.asList("ACGT", "ACGA", "TTTT"), false);
+		assertEquals(0, lookup(exact, "ACGT"));
+		assertEquals(2, lookup(exact, "tttt"));
+		assertEquals(BarcodeLookup.NO_MATCH, lookup(exact, "TTTA"));
+
+		BarcodeLookup mismatch = new BarcodeLookup(Arrays.asList("ACGT", "ACGA", "TTTT"), true);
+		// Exact matches win over one mismatch from another barcode
+		assertEquals(0, lookup(mismatch, "ACGT"));
+		assertEquals(1, lookup(mismatch, "ACGA"));
+		assertEquals(2, lookup(mismatch, "TTNT"));
+		assertEquals(2, lookup(mismatch, "GTTT"));
+		// One mismatch from both ACGT and ACGA
+		assertEquals(BarcodeLookup.AMBIGUOUS, lookup(mismatch, "ACGC"));
+		assertEquals(BarcodeLookup.NO_MATCH, lookup(mismatch, "AAAA"));
+		assertEquals(BarcodeLookup.NO_MATCH, lookup(mismatch, "ACG"));
+	}
+
+	public void testPack() {
+		byte[] bytes = "ACGTNacgtn".getBytes();
+		assertEquals("ACGTNACGTN", BarcodeLookup.unpack(BarcodeLookup.pack(bytes, 0, bytes.length)));
+		assertTrue(BarcodeLookup.pack(bytes, 0, 3) != BarcodeLookup.pack(bytes, 0, 4));
+		assertTrue(BarcodeLookup.pack("ACXT".getBytes(), 0, 4) < 0);
+	}
+
+	private void writeFastq(File file, String[][] records) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		for(String[] record : records) {
+			writer.write("@" + record[0] + "\n" + record[1] + "\n+\n" + record[1].replaceAll(".", "I") + "\n");
+		}
+		writer.close();
+	}
+
+	private List<String> readNames(File file) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(FastqParser.openInputStream(file)));
+		String line;
+		int i = 0;
+		while((line = reader.readLine()) != null) {
+			if(i++ % 4 == 0) rtrn.add(line.substring(1));
+		}
+		reader.close();
+		return rtrn;
+	}
+
+	private Map<String, String> samples() {
+		Map<String, String> rtrn = new LinkedHashMap<String, String>();
+		rtrn.put("ACGTAC", "s1");
+		rtrn.put("TTGGCC", "s2");
+		rtrn.put("GGGAAA", "s2");
+		return rtrn;
+	}
+
+	public void testSplitByName() throws IOException {
+		File fastq = new File(dir, "reads.fq");
+		writeFastq(fastq, new String[][] {
+				{"r1#ACGTAC/1", "ACGTTT"},
+				{"r2#TTGGCC/1", "CCCCCC"},
+				{"r3#ACGTAA/1", "GGGGGG"},
+				{"r4#GGGAAA/1", "TTTTTT"},
+				{"r5#CCCCCC/1", "AAAAAA"},
+				{"r6/1", "AAAAAA"}});
+		FastqDemultiplexer demultiplexer = new FastqDemultiplexer(samples(), true, dir, true, 2);
+		demultiplexer.split(fastq, null);
+
+		assertEquals(Arrays.asList("s1", "s2", FastqDemultiplexer.REMAINDER), demultiplexer.getOutputNames());
+		assertEquals(Arrays.asList("r1#ACGTAC/1", "r3#ACGTAA/1"), readNames(new File(dir, "s1.fq.gz")));
+		assertEquals(Arrays.asList("r2#TTGGCC/1", "r4#GGGAAA/1"), readNames(new File(dir, "s2.fq.gz")));
+		assertEquals(Arrays.asList("r5#CCCCCC/1", "r6/1"), readNames(new File(dir, FastqDemultiplexer.REMAINDER + ".fq.gz")));
+
+		Map<String, Integer> counts = demultiplexer.getBarcodeCounts();
+		assertEquals(Integer.valueOf(1), counts.get("ACGTAA"));
+		assertEquals(Integer.valueOf(1), counts.get(FastqDemultiplexer.NO_BARCODE));
+	}
+
+	public void testSplitByIndex() throws IOException {
+		File fastq = new File(dir, "reads.fq");
+		File index = new File(dir, "index.fq");
+		writeFastq(fastq, new String[][] {{"r1 1:N", "ACGTTT"}, {"r2 1:N", "CCCCCC"}, {"r3 1:N", "GGGGGG"}});
+		writeFastq(index, new String[][] {{"r1 2:N", "ACGTAC"}, {"r2 2:N", "TTGGCA"}, {"r3 2:N", "TTGGCA"}});
+		FastqDemultiplexer exact = new FastqDemultiplexer(samples(), false, dir, false, 1);
+		exact.split(fastq, index);
+		assertEquals(Arrays.asList("r1 1:N"), readNames(new File(dir, "s1.fq")));
+		assertTrue(readNames(new File(dir, "s2.fq")).isEmpty());
+		assertEquals(Arrays.asList("r2 1:N", "r3 1:N"), readNames(new File(dir, FastqDemultiplexer.REMAINDER + ".fq")));
+		assertEquals(Integer.valueOf(2), exact.getBarcodeCounts().get("TTGGCA"));
+
+		writeFastq(index, new String[][] {{"r1 2:N", "ACGTAC"}, {"r4 2:N", "TTGGCA"}, {"r3 2:N", "TTGGCA"}});
+		try {
+			new FastqDemultiplexer(samples(), false, dir, false, 1).split(fastq, index);
+			fail("Reads and indexes with different names were split");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
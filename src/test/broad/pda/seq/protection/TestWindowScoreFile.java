@@ -0,0 +1,127 @@
+package broad.pda.seq.protection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that broad.pda.seq.protection.WindowScoreFile reads back what was written
+ */
+public class TestWindowScoreFile extends TestCase {
+
+	private File dir;
+	private File bam;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("window_scores", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		bam = new File(dir, "sample.bam");
+		assertTrue(bam.createNewFile());
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static double[] randomArray(Random random, int n) {
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = random.nextInt(1000) * random.nextDouble();
+		}
+		return values;
+	}
+
+	public void testRoundTrip() throws IOException {
+		String fileName = new File(dir, "scores").getAbsolutePath();
+		Random random = new Random(3);
+		int numGenes = 50;
+		double[][] statistics = new double[numGenes][];
+		double[][] counts = new double[numGenes][];
+		double[][] regionTotals = new double[numGenes][];
+		double[][] pvalues = new double[numGenes][];
+		WindowScoreFile.Writer writer = new WindowScoreFile.Writer(fileName, 30, 5, true, bam);
+		for (int g = 0; g < numGenes; g++) {
+			// Every tenth gene is shorter than a window
+			int n = g % 10 == 0 ? 0 : random.nextInt(500);
+			statistics[g] = randomArray(random, 7);
+			counts[g] = randomArray(random, n);
+			regionTotals[g] = randomArray(random, n);
+			pvalues[g] = randomArray(random, n);
+			writer.addGene("gene" + g, 100 + g, 1000L * g, statistics[g], counts[g], regionTotals[g], pvalues[g]);
+		}
+		writer.close();
+		// Only the bam file and the renamed score file
+		assertEquals(2, dir.listFiles().length);
+
+		WindowScoreFile file = new WindowScoreFile(fileName);
+		assertEquals(30, file.getWindowSize());
+		assertEquals(5, file.getStepSize());
+		assertTrue(file.isFullyContained());
+		assertEquals(bam.length(), file.getBamLength());
+		assertEquals(bam.lastModified(), file.getBamLastModified());
+		assertFalse(file.contains("gene" + numGenes));
+		for (int g = 0; g < numGenes; g++) {
+			String name = "gene" + g;
+			assertTrue(file.contains(name));
+			assertEquals(100 + g, file.getGeneLength(name));
+			assertEquals(1000L * g, file.getGeneFingerprint(name));
+			assertEquals(counts[g].length, file.getNumWindows(name));
+			for (int s = 0; s < 7; s++) {
+				assertEquals(statistics[g][s], file.getGeneStatistic(name, s), 0);
+			}
+			for (int i = 0; i < counts[g].length; i++) {
+				assertEquals(counts[g][i], file.getWindowCount(name, i), 0);
+				assertEquals(regionTotals[g][i], file.getWindowRegionTotal(name, i), 0);
+				assertEquals(pvalues[g][i], file.getWindowScanPvalue(name, i), 0);
+			}
+		}
+		try {
+			file.getWindowCount("gene0", 0);
+			fail("Gene with no windows should not have a window 0");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testFingerprint() {
+		List<Annotation> exons = new ArrayList<Annotation>();
+		exons.add(new BasicAnnotation("chr1", 100, 200, Strand.POSITIVE));
+		exons.add(new BasicAnnotation("chr1", 300, 400, Strand.POSITIVE));
+		long fingerprint = WindowScoreFile.getFingerprint(new Gene(exons, "gene", Strand.POSITIVE));
+		assertEquals(fingerprint, WindowScoreFile.getFingerprint(new Gene(exons, "renamed", Strand.POSITIVE)));
+		// Same length with a moved intron
+		List<Annotation> moved = new ArrayList<Annotation>();
+		moved.add(new BasicAnnotation("chr1", 100, 210, Strand.POSITIVE));
+		moved.add(new BasicAnnotation("chr1", 310, 400, Strand.POSITIVE));
+		assertFalse(fingerprint == WindowScoreFile.getFingerprint(new Gene(moved, "gene", Strand.POSITIVE)));
+		List<Annotation> otherChr = new ArrayList<Annotation>();
+		otherChr.add(new BasicAnnotation("chr2", 100, 200, Strand.POSITIVE));
+		otherChr.add(new BasicAnnotation("chr2", 300, 400, Strand.POSITIVE));
+		assertFalse(fingerprint == WindowScoreFile.getFingerprint(new Gene(otherChr, "gene", Strand.POSITIVE)));
+	}
+
+	public void testNotAWindowScoreFile() throws IOException {
+		try {
+			new WindowScoreFile(bam.getAbsolutePath());
+			fail("Empty file should not be read");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
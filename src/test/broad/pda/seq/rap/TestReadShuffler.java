@@ -0,0 +1,63 @@
+package broad.pda.seq.rap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.model.score.RatioScore;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the window counts and ratios used by the in-memory permutations of broad.pda.seq.rap.BuildRatioNullDistribution
+ */
+public class TestReadShuffler extends TestCase {
+
+	public void testCountOverlaps() {
+		Random random = new Random(7);
+		int numReads = 2000;
+		int[] readStarts = new int[numReads];
+		int[] readEnds = new int[numReads];
+		for (int i = 0; i < numReads; i++) {
+			readStarts[i] = random.nextInt(50000);
+			readEnds[i] = readStarts[i] + 1 + random.nextInt(400);
+		}
+		int[][] sorted = new int[][] {readStarts.clone(), readEnds.clone()};
+		Arrays.sort(sorted[0]);
+		Arrays.sort(sorted[1]);
+
+		// Windows of 500 overlapping by 250, the last one cut at the region end
+		int numWindows = 200;
+		int[] windowStarts = new int[numWindows];
+		int[] windowEnds = new int[numWindows];
+		for (int w = 0; w < numWindows; w++) {
+			windowStarts[w] = 250 * w;
+			windowEnds[w] = Math.min(windowStarts[w] + 500, 50000);
+		}
+
+		int[] counts = ReadShuffler.countOverlaps(sorted, windowStarts, windowEnds);
+		for (int w = 0; w < numWindows; w++) {
+			int expected = 0;
+			for (int i = 0; i < numReads; i++) {
+				if (readStarts[i] < windowEnds[w] && readEnds[i] > windowStarts[w]) expected++;
+			}
+			assertEquals("window " + w, expected, counts[w]);
+		}
+	}
+
+	public void testRatioFromCounts() {
+		RatioScore score = new RatioScore(new BasicAnnotation("chr1", 1000, 1500));
+		score.setNumeratorCount(12);
+		score.setNumeratorRegionTotal(40000);
+		score.setDenominatorCount(3);
+		score.setDenominatorRegionTotal(25000);
+		assertEquals(score.getRegionRatio(), RatioScore.getRatio(12, 40000, 3, 25000, 500), 1e-12);
+	}
+
+	public void testSeeds() {
+		assertEquals(ReadShuffler.getSeed(5, 3), ReadShuffler.getSeed(5, 3));
+		assertTrue(ReadShuffler.getSeed(5, 3) != ReadShuffler.getSeed(5, 4));
+		assertTrue(ReadShuffler.getSeed(5, 3) != ReadShuffler.getSeed(6, 3));
+	}
+
+}
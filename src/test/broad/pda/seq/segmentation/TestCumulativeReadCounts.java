@@ -0,0 +1,249 @@
+package broad.pda.seq.segmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import nextgen.core.alignment.Alignment;
+import nextgen.core.alignment.SingleEndAlignment;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.coordinatesystem.CoordinateSpace;
+import nextgen.core.feature.GenomeWindow;
+import nextgen.core.feature.Window;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import broad.pda.datastructures.Alignments;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that broad.pda.seq.segmentation.CumulativeReadCounts gives the same window counts as counting reads one by one
+ */
+public class TestCumulativeReadCounts extends TestCase {
+
+	private static final String CHR = "chr1";
+	private static final int LENGTH = 20000;
+
+	private File dir;
+	private ReadList data;
+	/**
+	 * Fragment blocks and count of each distinct read span
+	 */
+	private int[][] blockStarts;
+	private int[][] blockEnds;
+	private double[] readCounts;
+
+	/**
+	 * Alignment data held in memory, with multimapping reads weighted by their number of hits if weighted
+	 */
+	private static class ReadList extends AlignmentDataModelStats {
+
+		private List<Alignment> reads;
+		private boolean weighted;
+		private Map<String, Integer> lengths;
+
+		ReadList(List<Alignment> reads, boolean weighted) {
+			this.reads = reads;
+			this.weighted = weighted;
+			this.lengths = new TreeMap<String, Integer>();
+			lengths.put(CHR, Integer.valueOf(LENGTH));
+		}
+
+		@Override
+		public Map<String, Integer> getChromosomeLengths() {
+			return lengths;
+		}
+
+		/**
+		 * Reads overlapping the region, one node per distinct span as in GenericAlignmentDataModel
+		 */
+		@Override
+		public IntervalTree<Alignment> getIntervalTree(String chr, int start, int end) {
+			IntervalTree<Alignment> tree = new IntervalTree<Alignment>();
+			for(Alignment read : reads) {
+				if(read.getStart() >= end || read.getEnd() <= start) continue;
+				Node<Alignment> node = tree.find(read.getStart(), read.getEnd() + 1);
+				if(node != null) node.incrementCount();
+				else tree.put(read.getStart(), read.getEnd() + 1, read);
+			}
+			return tree;
+		}
+
+		@Override
+		public double getCount(Alignment record) {
+			if(!weighted) return 1;
+			return 1.0 / Double.parseDouble(record.getAttribute("NH").toString());
+		}
+
+	}
+
+	/**
+	 * A read whose fragment keeps its alignment blocks, so reads do not count in their introns
+	 */
+	private static class SplicedFragment extends SingleEndAlignment {
+
+		private static final long serialVersionUID = 1L;
+
+		SplicedFragment(SAMRecord record) {
+			super(record);
+		}
+
+		@Override
+		public Collection<? extends Window> getFragment(CoordinateSpace C) {
+			Collection<Window> rtrn = new TreeSet<Window>();
+			rtrn.add(new GenomeWindow(new BasicAnnotation(getBlocks())));
+			return rtrn;
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("cumulative_counts", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		setData(new ReadList(makeReads(), true));
+	}
+
+	private void setData(ReadList reads) {
+		data = reads;
+		IntervalTree<Alignment> tree = data.getIntervalTree(CHR, 0, LENGTH);
+		blockStarts = new int[tree.size()][];
+		blockEnds = new int[tree.size()][];
+		readCounts = new double[tree.size()];
+		Iterator<Node<Alignment>> iter = tree.iterator();
+		for(int i = 0; iter.hasNext(); i++) {
+			Node<Alignment> node = iter.next();
+			List<? extends Annotation> blocks = node.getValue().getFragment(null).iterator().next().getBlocks();
+			blockStarts[i] = new int[blocks.size()];
+			blockEnds[i] = new int[blocks.size()];
+			for(int j = 0; j < blocks.size(); j++) {
+				blockStarts[i][j] = blocks.get(j).getStart();
+				blockEnds[i][j] = blocks.get(j).getEnd();
+			}
+			readCounts[i] = data.getCount(node.getValue()) * node.getNumReplicates();
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static List<Alignment> makeReads() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord(CHR, LENGTH));
+		Random random = new Random(11);
+		List<Alignment> reads = new ArrayList<Alignment>();
+		for(int i = 0; i < 1500; i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			record.setReferenceName(CHR);
+			// Clusters of reads with gaps between them
+			int cluster = random.nextInt(20) * 1000;
+			record.setAlignmentStart(1 + cluster + random.nextInt(400));
+			if(i % 4 == 0) {
+				// Spliced reads, some sharing an intron
+				int intron = i % 8 == 0 ? 300 : 50 + random.nextInt(400);
+				record.setCigarString("20M" + intron + "N15M");
+			} else {
+				record.setCigarString("36M");
+			}
+			record.setAttribute("NH", Integer.valueOf(1 + random.nextInt(3)));
+			reads.add(i % 3 == 0 ? new SplicedFragment(record) : new SingleEndAlignment(record));
+		}
+		return reads;
+	}
+
+	/**
+	 * Count of reads with a fragment block overlapping the window, read by read, as in GenericAlignmentDataModel
+	 */
+	private double expectedCount(int start, int end) {
+		double count = 0;
+		for(int i = 0; i < blockStarts.length; i++) {
+			for(int j = 0; j < blockStarts[i].length; j++) {
+				if(blockStarts[i][j] < end && start < blockEnds[i][j]) {
+					count += readCounts[i];
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void checkCounts(CumulativeReadCounts counts) {
+		assertEquals(LENGTH, counts.getLength());
+		Random random = new Random(7);
+		for(int i = 0; i < 3000; i++) {
+			int start = random.nextInt(LENGTH);
+			int end = Math.min(LENGTH, start + 1 + random.nextInt(i % 2 == 0 ? 40 : 600));
+			assertEquals(start + "-" + end, expectedCount(start, end), counts.getCount(start, end), 1e-6);
+		}
+	}
+
+	public void testCountsInMemory() throws IOException {
+		CumulativeReadCounts counts = new CumulativeReadCounts(data, CHR, 3000);
+		checkCounts(counts);
+		counts.close();
+	}
+
+	public void testWholeCountsInMemory() throws IOException {
+		setData(new ReadList(makeReads(), false));
+		CumulativeReadCounts counts = new CumulativeReadCounts(data, CHR, 3000);
+		checkCounts(counts);
+		counts.close();
+	}
+
+	public void testCountsOnDisk() throws IOException {
+		CumulativeReadCounts counts = new CumulativeReadCounts(data, CHR, 7000, dir);
+		checkCounts(counts);
+		counts.close();
+		// The temporary file is deleted
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testSignificantWindows() throws IOException {
+		CumulativeReadCounts counts = new CumulativeReadCounts(data, CHR, 5000);
+		for(int windowSize : new int[] {10, 100, 250}) {
+			double criticalValue = windowSize / 10;
+			// Runs of overlapping windows with counts above the critical value
+			List<Annotation> expected = new ArrayList<Annotation>();
+			int runStart = -1;
+			int runEnd = -1;
+			for(int start = 0; start < LENGTH; start++) {
+				if(expectedCount(start, start + windowSize) > criticalValue + 1e-6) {
+					if(runStart >= 0 && start > runEnd) {
+						expected.add(new Alignments(CHR, runStart, runEnd));
+						runStart = -1;
+					}
+					if(runStart < 0) runStart = start;
+					runEnd = start + windowSize;
+				}
+			}
+			if(runStart >= 0) expected.add(new Alignments(CHR, runStart, runEnd));
+			List<Annotation> observed = counts.getSignificantWindows(windowSize, criticalValue);
+			assertFalse(expected.isEmpty());
+			assertEquals(expected.size(), observed.size());
+			for(int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).toUCSC(), observed.get(i).toUCSC());
+			}
+		}
+		counts.close();
+	}
+
+}